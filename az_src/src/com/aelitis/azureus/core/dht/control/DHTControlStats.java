@@ -48,4 +48,48 @@ DHTControlStats
 	
 	public long
 	getEstimatedDHTSize();
+	
+		/**
+		 * Smoothed round trip time of lookup requests in ms
+		 * @return
+		 */
+	
+	public long
+	getLookupRTT();
+	
+		/**
+		 * Smoothed percentage of lookup requests that got no reply
+		 * @return
+		 */
+	
+	public int
+	getLookupLossPercent();
+	
+		/**
+		 * Number of requests a lookup currently keeps in flight, including those added
+		 * to make up for losses
+		 * @return
+		 */
+	
+	public int
+	getLookupConcurrency();
+	
+	public long
+	getLookupRequestCount();
+	
+		/**
+		 * Number of lookups started from the contacts cached for a nearby key
+		 * @return
+		 */
+	
+	public long
+	getLookupCacheHitCount();
+	
+		/**
+		 * Number of lookups that joined one already in progress for the same key
+		 * @return
+		 */
+	
+	public long
+	getMergedLookupCount();
 }
@@ -65,7 +65,10 @@ DHTControlImpl
 {
 	private static final boolean DISABLE_REPLICATE_ON_JOIN	= true;
 	
-	public  static 		 int EXTERNAL_LOOKUP_CONCURRENCY	= 16;
+		// lookups don't hold a thread while waiting for replies so this just limits how many
+		// are in flight at once
+	
+	public  static 		 int EXTERNAL_LOOKUP_CONCURRENCY	= 64;
 	private static final int EXTERNAL_PUT_CONCURRENCY		= 8;
 	
 	private static final int RANDOM_QUERY_PERIOD			= 5*60*1000;
@@ -101,6 +104,17 @@ DHTControlImpl
 	private ThreadPool	internal_put_pool;
 	private ThreadPool	external_put_pool;
 	
+		// continues lookups when replies free up search slots, shared by all of them
+	
+	private AsyncDispatcher			lookup_dispatcher	= new AsyncDispatcher();
+	
+	private DHTControlLookupTuner	lookup_tuner		= new DHTControlLookupTuner();
+	
+		// concurrent external lookups with the same parameters share a single search
+	
+	private Map<String,mergedLookupResultHandler>	merged_lookups 		= new HashMap<String,mergedLookupResultHandler>();
+	private AEMonitor								merged_lookups_mon	= new AEMonitor( "DHTControl:merged" );
+	
 	private Map			imported_state	= new HashMap();
 	
 	private volatile boolean	seeded;
@@ -433,6 +447,18 @@ DHTControlImpl
 		return( stats );
 	}
 	
+	protected int
+	getSearchConcurrency()
+	{
+		return( search_concurrency );
+	}
+	
+	protected DHTControlLookupTuner
+	getLookupTuner()
+	{
+		return( lookup_tuner );
+	}
+	
 	public DHTTransport
 	getTransport()
 	{
@@ -2020,7 +2046,7 @@ DHTControlImpl
 		final int 					concurrency, 
 		final int 					max_values, 
 		final int 					search_accuracy, 
-		final lookupResultHandler 	handler )
+		final lookupResultHandler 	_handler )
 	{
 		final byte[] 	lookup_id;
 		final byte[]	obs_value;
@@ -2035,6 +2061,52 @@ DHTControlImpl
 			lookup_id 	= _lookup_id;
 			obs_value	= null;
 		}
+		
+		final String	merge_key;
+		
+		final lookupResultHandler	handler;
+		
+		if ( thread_pool == external_lookup_pool ){
+			
+			merge_key = 
+				ByteFormatter.encodeString( _lookup_id ) + ":" + flags + ":" + value_search + ":" + 
+				timeout + ":" + max_values + ":" + search_accuracy;
+			
+			mergedLookupResultHandler	existing;
+			
+			List<Object[]>				history;
+			
+			try{
+				merged_lookups_mon.enter();
+			
+				existing = merged_lookups.get( merge_key );
+				
+				history = existing==null?null:existing.join( _handler );
+				
+			}finally{
+				
+				merged_lookups_mon.exit();
+			}
+			
+			if ( history != null ){
+			
+				lookup_tuner.lookupMerged();
+				
+				existing.replay( _handler, history );
+				
+					// note that cancelling this cancels the shared search, callers only cancel
+					// lookups that have completed
+				
+				return( existing.getTask());
+			}
+			
+			handler = new mergedLookupResultHandler( merge_key, _handler );
+			
+		}else{
+			
+			merge_key	= null;
+			handler		= _handler;
+		}
 				
 		DhtTask	task =
 			new DhtTask(thread_pool)
@@ -2078,7 +2150,10 @@ DHTControlImpl
 				TimerEvent timeoutEvent;
 
 				private int runningState = 1; // -1 terminated, 0 waiting, 1 running
-				private int freeTasksCount = concurrency;
+				
+					// widened to make up for the requests we expect to lose
+				
+				private int freeTasksCount = lookup_tuner.getConcurrency( concurrency );
 				
 
 				private boolean	cancelled;
@@ -2093,6 +2168,19 @@ DHTControlImpl
 				private void startLookup()
 				{
 					contacts_to_query = getClosestContactsSet(lookup_id, K, false);
+					
+					// start from nodes that recently answered for a nearby key as well, they're
+					// usually closer than anything in our own routing table
+					List<DHTTransportContact> cached = lookup_tuner.getCachedClosest(lookup_id);
+					if (cached != null)
+					{
+						for (DHTTransportContact contact: cached)
+						{
+							if (!router.isID(contact.getID()))
+								contacts_to_query.add(contact);
+						}
+					}
+					
 					contacts_to_query_mon = new AEMonitor("DHTControl:ctq");
 					level_map = new LightHashMap();
 
@@ -2182,6 +2270,8 @@ DHTControlImpl
 							closest_res = new ArrayList(ok_contacts);
 							// we need to reverse the list as currently closest is at the end
 							Collections.reverse(closest_res);
+							
+							lookup_tuner.cacheClosest(lookup_id, closest_res);
 
 							if (timeout <= 0 && !value_search)
 								// we can use the results of this to estimate the DHT size
@@ -2221,13 +2311,18 @@ DHTControlImpl
 					{
 						//System.out.println("release-start");
 						runningState = 1;
-						new AEThread2("DHT lookup runner",true) {
-							public void run() {
+						lookup_dispatcher.dispatch(new AERunnable() {
+							public void runSupport() {
 								thread_pool.registerThreadAsChild(worker);
-								lookupSteps();
-								thread_pool.deregisterThreadAsChild(worker);
+								try
+								{
+									lookupSteps();
+								} finally
+								{
+									thread_pool.deregisterThreadAsChild(worker);
+								}
 							}
-						}.start();
+						});
 					}
 				}
 				
@@ -2372,12 +2467,66 @@ DHTControlImpl
 								handler.searching(closest, search_level, active_searches);
 
 
+								final long sent = SystemTime.getMonotonousTime();
+
 								DHTTransportReplyHandlerAdapter replyHandler = new DHTTransportReplyHandlerAdapter() {
 									private boolean	value_reply_received	= false;
+									
+									private boolean rtt_recorded;
+									private boolean done;
+									private boolean stalled;
+									private TimerEvent stall_event;
+									
+									private synchronized void replied()
+									{
+										if (!rtt_recorded)
+										{
+											rtt_recorded = true;
+											lookup_tuner.recordReply(SystemTime.getMonotonousTime() - sent);
+										}
+									}
+									
+									// a slow request stops counting against the lookup's concurrency
+									// so another can be sent, returns false if it already has
+									private synchronized boolean requestDone()
+									{
+										done = true;
+										if (stall_event != null)
+											stall_event.cancel();
+										return !stalled;
+									}
+									
+									// armed before the request is sent
+									{
+										stallCheck(lookup_tuner.getStallTime());
+									}
+									
+									private synchronized boolean markStalled()
+									{
+										if (done)
+											return false;
+										stalled = true;
+										return true;
+									}
+									
+									private synchronized void stallCheck(long stall_time)
+									{
+										if (!done)
+										{
+											stall_event = SimpleTimer.addEvent("DHT lookup stall", SystemTime.getOffsetTime(stall_time), new TimerEventPerformer() {
+												public void perform(TimerEvent event) {
+													if (markStalled())
+														release();
+												}
+											});
+										}
+									}
 
 									public void findNodeReply(DHTTransportContact target_contact, DHTTransportContact[] reply_contacts) {
 										try
 										{
+											replied();
+											
 											if ( DHTLog.isOn()){
 												DHTLog.log("findNodeReply: " + DHTLog.getString(reply_contacts));
 											}
@@ -2444,7 +2593,8 @@ DHTControlImpl
 											{
 												contacts_to_query_mon.exit();
 											}
-											release();
+											if (requestDone())
+												release();
 										}
 									}
 
@@ -2485,6 +2635,7 @@ DHTControlImpl
 											}
 											
 											value_reply_received = true;
+											replied();
 											router.contactAlive(contact.getID(), new DHTControlContactImpl(contact));
 											int new_values = 0;
 											if (!key_blocked)
@@ -2572,7 +2723,8 @@ DHTControlImpl
 												{
 													contacts_to_query_mon.exit();
 												}
-												release();
+												if (requestDone())
+													release();
 											}
 										}
 									}
@@ -2589,6 +2741,8 @@ DHTControlImpl
 											// a contact failure (just packet loss)
 											if (!value_reply_received)
 											{
+												lookup_tuner.recordFailure();
+												
 												if ( DHTLog.isOn()){
 													DHTLog.log("findNode/findValue " + DHTLog.getString(target_contact) + " -> failed: " + error.getMessage());
 												}
@@ -2605,7 +2759,8 @@ DHTControlImpl
 											{
 												contacts_to_query_mon.exit();
 											}
-											release();
+											if (requestDone())
+												release();
 										}
 									}
 									
@@ -2660,6 +2815,25 @@ DHTControlImpl
 				}
 			};
 			
+		if ( merge_key != null ){
+			
+			mergedLookupResultHandler	merged = (mergedLookupResultHandler)handler;
+			
+			merged.setTask( task );
+			
+			try{
+				merged_lookups_mon.enter();
+				
+				if ( !merged_lookups.containsKey( merge_key )){
+					
+					merged_lookups.put( merge_key, merged );
+				}
+			}finally{
+				
+				merged_lookups_mon.exit();
+			}
+		}
+		
 		thread_pool.run( task, high_priority, true);
 		
 		return( task );
@@ -4248,6 +4422,298 @@ DHTControlImpl
 	}
 	
 
+		/**
+		 * Passes the results of a lookup on to the handlers of all the lookups merged into it.
+		 * Values read and diversifications seen before a handler joins are replayed to it, events
+		 * arriving while it is being replayed to are held back and delivered after the replay
+		 */
+	
+	protected class
+	mergedLookupResultHandler
+		extends lookupResultHandler
+	{
+			// the first three are kept for replay
+		
+		private static final int	EV_STARTED		= 0;
+		private static final int	EV_READ			= 1;
+		private static final int	EV_DIVERSIFY	= 2;
+		private static final int	EV_SEARCHING	= 3;
+		private static final int	EV_DIVERSIFIED	= 4;
+		private static final int	EV_FOUND		= 5;
+		private static final int	EV_WROTE		= 6;
+		private static final int	EV_CLOSEST		= 7;
+		private static final int	EV_COMPLETE		= 8;
+		
+		private String						key;
+		private DhtTask						task;
+		
+		private List<lookupResultHandler>	handlers	= new ArrayList<lookupResultHandler>( 2 );
+		private List<Object[]>				history		= new ArrayList<Object[]>();
+		
+			// handlers still being replayed to and the live events queued for each
+		
+		private Map<lookupResultHandler,List<Object[]>>	replaying = new IdentityHashMap<lookupResultHandler,List<Object[]>>();
+		
+		private boolean						closed;
+		
+		protected
+		mergedLookupResultHandler(
+			String					_key,
+			lookupResultHandler		_handler )
+		{
+			super( _handler );
+			
+			key		= _key;
+			
+			handlers.add( _handler );
+		}
+		
+		protected void
+		setTask(
+			DhtTask		_task )
+		{
+			task	= _task;
+		}
+		
+		protected DhtTask
+		getTask()
+		{
+			return( task );
+		}
+		
+			/**
+			 * @return the events to replay to the new handler, null if the lookup has finished. 
+			 * The caller must pass them to replay(), live events are queued for the handler until then
+			 */
+		
+		protected synchronized List<Object[]>
+		join(
+			lookupResultHandler		handler )
+		{
+			if ( closed ){
+				
+				return( null );
+			}
+			
+			handlers.add( handler );
+			
+			replaying.put( handler, new ArrayList<Object[]>());
+			
+			return( new ArrayList<Object[]>( history ));
+		}
+		
+		protected void
+		replay(
+			lookupResultHandler		handler,
+			List<Object[]>			events )
+		{
+			while( true ){
+				
+				for ( Object[] event: events ){
+					
+					dispatch( handler, event );
+				}
+				
+				synchronized( this ){
+					
+					List<Object[]>	queued = replaying.get( handler );
+					
+					if ( queued.isEmpty()){
+						
+						replaying.remove( handler );
+						
+						return;
+					}
+					
+					events = new ArrayList<Object[]>( queued );
+					
+					queued.clear();
+				}
+			}
+		}
+		
+		private void
+		dispatch(
+			lookupResultHandler		handler,
+			Object[]				event )
+		{
+			int	type = ((Integer)event[0]).intValue();
+			
+			if ( type == EV_STARTED ){
+				
+				handler.incrementCompletes();
+				
+			}else if ( type == EV_READ ){
+				
+				handler.read((DHTTransportContact)event[1], (DHTTransportValue)event[2] );
+				
+			}else if ( type == EV_DIVERSIFY ){
+				
+				handler.diversify((DHTTransportContact)event[1], ((Byte)event[2]).byteValue());
+				
+			}else if ( type == EV_SEARCHING ){
+				
+				handler.searching((DHTTransportContact)event[1], ((Integer)event[2]).intValue(), ((Integer)event[3]).intValue());
+				
+			}else if ( type == EV_DIVERSIFIED ){
+				
+				handler.diversified((String)event[1] );
+				
+			}else if ( type == EV_FOUND ){
+				
+				handler.found((DHTTransportContact)event[1], ((Boolean)event[2]).booleanValue());
+				
+			}else if ( type == EV_WROTE ){
+				
+				handler.wrote((DHTTransportContact)event[1], (DHTTransportValue)event[2] );
+				
+			}else if ( type == EV_CLOSEST ){
+				
+				handler.closest((List)event[1] );
+				
+			}else{
+				
+				handler.complete(((Boolean)event[1]).booleanValue());
+			}
+		}
+		
+			/**
+			 * passes an event on to the handlers that aren't being replayed to and queues it for
+			 * those that are
+			 */
+		
+		private void
+		fire(
+			Object[]	event,
+			boolean		record,
+			boolean		close )
+		{
+			List<lookupResultHandler>	targets;
+			
+			synchronized( this ){
+			
+				if ( record ){
+					
+					history.add( event );
+				}
+				
+				if ( close ){
+					
+					closed = true;
+				}
+				
+				targets = new ArrayList<lookupResultHandler>( handlers.size());
+				
+				for ( lookupResultHandler h: handlers ){
+					
+					List<Object[]>	queued = replaying.get( h );
+					
+					if ( queued == null ){
+						
+						targets.add( h );
+						
+					}else{
+						
+						queued.add( event );
+					}
+				}
+			}
+			
+			for ( lookupResultHandler h: targets ){
+				
+				dispatch( h, event );
+			}
+		}
+		
+		private void
+		removeMerge()
+		{
+			try{
+				merged_lookups_mon.enter();
+				
+				if ( merged_lookups.get( key ) == this ){
+					
+					merged_lookups.remove( key );
+				}
+			}finally{
+				
+				merged_lookups_mon.exit();
+			}
+		}
+		
+		public void
+		incrementCompletes()
+		{
+			fire( new Object[]{ new Integer( EV_STARTED )}, true, false );
+		}
+		
+		public void
+		searching(
+			DHTTransportContact	contact,
+			int					level,
+			int					active_searches )
+		{
+			fire( new Object[]{ new Integer( EV_SEARCHING ), contact, new Integer( level ), new Integer( active_searches )}, false, false );
+		}
+		
+		public void
+		diversified(
+			String		desc )
+		{
+			fire( new Object[]{ new Integer( EV_DIVERSIFIED ), desc }, false, false );
+		}
+		
+		public void
+		found(
+			DHTTransportContact	contact,
+			boolean				is_closest )
+		{
+			fire( new Object[]{ new Integer( EV_FOUND ), contact, Boolean.valueOf( is_closest )}, false, false );
+		}
+		
+		public void
+		read(
+			DHTTransportContact	contact,
+			DHTTransportValue	value )
+		{
+			fire( new Object[]{ new Integer( EV_READ ), contact, value }, true, false );
+		}
+		
+		public void
+		wrote(
+			DHTTransportContact	contact,
+			DHTTransportValue	value )
+		{
+			fire( new Object[]{ new Integer( EV_WROTE ), contact, value }, false, false );
+		}
+		
+		public void
+		diversify(
+			DHTTransportContact	cause,
+			byte				diversification_type )
+		{
+			fire( new Object[]{ new Integer( EV_DIVERSIFY ), cause, new Byte( diversification_type )}, true, false );
+		}
+		
+		public void
+		closest(
+			List		res )
+		{
+			removeMerge();
+			
+			fire( new Object[]{ new Integer( EV_CLOSEST ), res }, false, true );
+		}
+		
+		public void
+		complete(
+			boolean		timeout )
+		{
+			removeMerge();
+			
+			fire( new Object[]{ new Integer( EV_COMPLETE ), Boolean.valueOf( timeout )}, false, true );
+		}
+	}
+	
 	protected static class
 	DHTTransportFindValueReplyImpl
 		implements DHTTransportFindValueReply
@@ -0,0 +1,247 @@
+/*
+ * Created on Oct 19, 2026
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package com.aelitis.azureus.core.dht.control.impl;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.gudy.azureus2.core3.util.SystemTime;
+
+import com.aelitis.azureus.core.dht.transport.DHTTransportContact;
+
+/**
+ * Shared state that lets lookups adapt to the network: smoothed RTT and loss of the find-node/
+ * find-value requests they send, from which each lookup's parallelism and the time after which
+ * an unanswered request stops counting against it are derived, and a cache of the closest
+ * contacts recently found for each key prefix to seed later lookups with.
+ */
+public class
+DHTControlLookupTuner
+{
+	private static final int	MAX_CONCURRENCY_FACTOR	= 3;
+
+	private static final long	DEFAULT_STALL_TIME	= 2000;
+	private static final long	MIN_STALL_TIME		= 250;
+	private static final long	MAX_STALL_TIME		= 5000;
+
+		// loss is fixed point, LOSS_ONE == 100%
+
+	private static final int	LOSS_ONE		= 1024;
+	private static final int	MAX_LOSS		= LOSS_ONE*2/3;
+
+	private static final int	CACHE_PREFIX_BYTES	= 2;
+	private static final int	CACHE_MAX_PREFIXES	= 1024;
+	private static final long	CACHE_EXPIRY		= 5*60*1000;
+
+	private long	srtt	= -1;
+	private long	rttvar;
+	private int		loss;
+
+	private long	requests;
+	private long	cache_hits;
+	private long	merged_lookups;
+
+	private Map<Integer,cacheEntry>	closest_cache =
+		new LinkedHashMap<Integer,cacheEntry>( CACHE_MAX_PREFIXES, 0.75f, true )
+		{
+			protected boolean
+			removeEldestEntry(
+				Map.Entry<Integer,cacheEntry> eldest )
+			{
+				return( size() > CACHE_MAX_PREFIXES );
+			}
+		};
+
+	protected synchronized void
+	recordReply(
+		long		rtt )
+	{
+		requests++;
+
+			// same smoothing as TCP's RTO estimator
+
+		if ( srtt < 0 ){
+
+			srtt	= rtt;
+			rttvar	= rtt/2;
+
+		}else{
+
+			rttvar	= rttvar + ( Math.abs( srtt - rtt ) - rttvar )/4;
+			srtt	= srtt + ( rtt - srtt )/8;
+		}
+
+		loss = loss - ( loss + 15 )/16;
+	}
+
+	protected synchronized void
+	recordFailure()
+	{
+		requests++;
+
+		loss = loss + ( LOSS_ONE - loss )/16;
+	}
+
+		/**
+		 * Number of requests a lookup should keep in flight so that, at the current loss rate,
+		 * about base of them get answered
+		 */
+
+	protected synchronized int
+	getConcurrency(
+		int		base )
+	{
+		int	l = Math.min( loss, MAX_LOSS );
+
+		int	c = ( base * LOSS_ONE + ( LOSS_ONE - l ) - 1 ) / ( LOSS_ONE - l );
+
+		return( Math.max( base, Math.min( c, base * MAX_CONCURRENCY_FACTOR )));
+	}
+
+		/**
+		 * Time after which an unanswered request is treated as slow and another one is sent
+		 * in its place
+		 */
+
+	protected synchronized long
+	getStallTime()
+	{
+		if ( srtt < 0 ){
+
+			return( DEFAULT_STALL_TIME );
+		}
+
+		return( Math.max( MIN_STALL_TIME, Math.min( MAX_STALL_TIME, srtt + 4*rttvar )));
+	}
+
+	protected void
+	cacheClosest(
+		byte[]							target,
+		List<DHTTransportContact>		closest )
+	{
+		if ( closest.size() == 0 ){
+
+			return;
+		}
+
+		cacheEntry	entry = new cacheEntry( new ArrayList<DHTTransportContact>( closest ));
+
+		synchronized( this ){
+
+			closest_cache.put( getPrefix( target ), entry );
+		}
+	}
+
+		/**
+		 * @return contacts close to target found by a recent lookup of a key with the same prefix,
+		 * null if there are none
+		 */
+
+	protected List<DHTTransportContact>
+	getCachedClosest(
+		byte[]		target )
+	{
+		synchronized( this ){
+
+			Integer	prefix = getPrefix( target );
+
+			cacheEntry	entry = closest_cache.get( prefix );
+
+			if ( entry == null ){
+
+				return( null );
+			}
+
+			if ( SystemTime.getMonotonousTime() - entry.time > CACHE_EXPIRY ){
+
+				closest_cache.remove( prefix );
+
+				return( null );
+			}
+
+			cache_hits++;
+
+			return( entry.contacts );
+		}
+	}
+
+	protected synchronized void
+	lookupMerged()
+	{
+		merged_lookups++;
+	}
+
+	protected synchronized long
+	getRTT()
+	{
+		return( Math.max( srtt, 0 ));
+	}
+
+	protected synchronized int
+	getLossPercent()
+	{
+		return( loss * 100 / LOSS_ONE );
+	}
+
+	protected synchronized long
+	getRequestCount()
+	{
+		return( requests );
+	}
+
+	protected synchronized long
+	getCacheHitCount()
+	{
+		return( cache_hits );
+	}
+
+	protected synchronized long
+	getMergedLookupCount()
+	{
+		return( merged_lookups );
+	}
+
+	private static Integer
+	getPrefix(
+		byte[]		target )
+	{
+		int	prefix = 0;
+
+		for (int i=0;i<CACHE_PREFIX_BYTES && i<target.length;i++){
+
+			prefix = ( prefix << 8 ) | ( target[i]&0xff );
+		}
+
+		return( new Integer( prefix ));
+	}
+
+	private static class
+	cacheEntry
+	{
+		private final long							time = SystemTime.getMonotonousTime();
+		private final List<DHTTransportContact>		contacts;
+
+		private
+		cacheEntry(
+			List<DHTTransportContact>	_contacts )
+		{
+			contacts	= _contacts;
+		}
+	}
+}
@@ -296,6 +296,42 @@ DHTControlStatsImpl
 		return( control.getEstimatedDHTSize());
 	}
 	
+	public long
+	getLookupRTT()
+	{
+		return( control.getLookupTuner().getRTT());
+	}
+	
+	public int
+	getLookupLossPercent()
+	{
+		return( control.getLookupTuner().getLossPercent());
+	}
+	
+	public int
+	getLookupConcurrency()
+	{
+		return( control.getLookupTuner().getConcurrency( control.getSearchConcurrency()));
+	}
+	
+	public long
+	getLookupRequestCount()
+	{
+		return( control.getLookupTuner().getRequestCount());
+	}
+	
+	public long
+	getLookupCacheHitCount()
+	{
+		return( control.getLookupTuner().getCacheHitCount());
+	}
+	
+	public long
+	getMergedLookupCount()
+	{
+		return( control.getLookupTuner().getMergedLookupCount());
+	}
+	
 	public String
 	getString()
 	{
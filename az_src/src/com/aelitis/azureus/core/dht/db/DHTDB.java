@@ -22,6 +22,7 @@
 
 package com.aelitis.azureus.core.dht.db;
 
+import java.io.File;
 import java.util.Iterator;
 import java.util.List;
 
@@ -158,6 +159,20 @@ DHTDB
 	public DHTDBStats
 	getStats();
 	
+		/**
+		 * Loads the cached values saved by a previous run from the file and keeps it up to date
+		 * from now on so they can be served straight after a restart. Must be called after
+		 * setControl
+		 * @param file
+		 */
+	
+	public void
+	openValueStore(
+		File		file );
+	
+	public void
+	closeValueStore();
+	
 	public void
 	print(
 		boolean		full );
@@ -31,6 +31,11 @@ DHTDBStats
 	public static final int	VD_INDIRECT_SIZE	= 3;		// indirectly (cache forwarded) stored
 	public static final int	VD_DIV_FREQ			= 4;		// diversifications caused by frequency
 	public static final int	VD_DIV_SIZE			= 5;		// diversifications caused by size
+
+	public static final int	OP_STORE			= 0;		// remote stores
+	public static final int	OP_GET				= 1;		// remote gets
+	public static final int	OP_LOCAL			= 2;		// local store, get and remove
+	public static final int	OP_QUERY_STORE		= 3;		// survey queries
 	
 	public int
 	getKeyCount();
@@ -54,4 +59,58 @@ DHTDBStats
 	
 	public int[]
 	getValueDetails();
+	
+	public int
+	getShardCount();
+	
+		/**
+		 * number of keys held by each shard of the store
+		 * @return
+		 */
+	
+	public int[]
+	getShardKeyCounts();
+	
+		/**
+		 * returned values indexed by above OP_ constants
+		 * @return
+		 */
+	
+	public long[]
+	getOperationCounts();
+	
+		/**
+		 * total time spent in each operation type, in microseconds, indexed by above OP_ constants
+		 * @return
+		 */
+	
+	public long[]
+	getOperationTimes();
+	
+		/**
+		 * number of cached keys dropped to keep the store within its size limit
+		 * @return
+		 */
+	
+	public long
+	getEvictedKeyCount();
+	
+		/**
+		 * time taken to load the persisted values at start of day in millis, -1 if no value store
+		 * @return
+		 */
+	
+	public long
+	getValueStoreLoadTime();
+	
+	public int
+	getValueStoreLoadCount();
+	
+		/**
+		 * size of the value store on disk in bytes, 0 if there isn't one
+		 * @return
+		 */
+	
+	public long
+	getValueStoreSize();
 }
@@ -22,9 +22,17 @@
 
 package com.aelitis.azureus.core.dht.db.impl;
 
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import org.gudy.azureus2.core3.ipfilter.IpFilter;
 import org.gudy.azureus2.core3.ipfilter.IpFilterManagerFactory;
@@ -40,6 +48,7 @@ import org.gudy.azureus2.core3.util.SimpleTimer;
 import org.gudy.azureus2.core3.util.SystemTime;
 import org.gudy.azureus2.core3.util.TimerEvent;
 import org.gudy.azureus2.core3.util.TimerEventPerformer;
+import org.gudy.azureus2.core3.util.TimerEventPeriodic;
 
 
 import com.aelitis.azureus.core.dht.DHT;
@@ -87,23 +96,32 @@ DHTDBImpl
 	private int			cache_republish_interval;
 	
 	private long		MIN_CACHE_EXPIRY_CHECK_INTERVAL		= 60*1000;
-	private long		last_cache_expiry_check;
 	
 	private static final long	IP_BLOOM_FILTER_REBUILD_PERIOD		= 15*60*1000;
 	private static final int	IP_COUNT_BLOOM_SIZE_INCREASE_CHUNK	= 1000;
 	
 	private BloomFilter	ip_count_bloom_filter = BloomFilterFactory.createAddRemove8Bit( IP_COUNT_BLOOM_SIZE_INCREASE_CHUNK );
 	
+	private AEMonitor		bloom_mon				= new AEMonitor( "DHTDB:bloom" );
+	private AtomicBoolean	bloom_rebuild_scheduled	= new AtomicBoolean();
+	
 	private static final int	VALUE_VERSION_CHUNK = 128;
 	private int	next_value_version;
 	private int next_value_version_left;
 	
+	private AEMonitor	version_mon	= new AEMonitor( "DHTDB:version" );
+	
 	
 	protected static final int		QUERY_STORE_REQUEST_ENTRY_SIZE	= 6;
 	protected static final int		QUERY_STORE_REPLY_ENTRY_SIZE	= 2;
 	
-	private Map<HashWrapper,DHTDBMapping>				stored_values 				= new HashMap<HashWrapper,DHTDBMapping>();
-	private Map<DHTDBMapping.ShortHash,DHTDBMapping>	stored_values_prefix_map	= new HashMap<DHTDBMapping.ShortHash,DHTDBMapping>();
+		// stored values are sharded on the top bits of the key so that operations on unrelated
+		// keys don't contend. The prefix map is keyed on the leading bytes of the key so each
+		// entry lives in the same shard as its mapping
+	
+	private static final int	SHARD_BITS	= 4;
+	
+	private StoreShard[]	shards = new StoreShard[ 1 << SHARD_BITS ];
 	
 	private DHTControl				control;
 	private DHTStorageAdapter		adapter;
@@ -113,10 +131,39 @@ DHTDBImpl
 	
 	private static final long	MAX_TOTAL_SIZE	= 4*1024*1024;
 	
-	private int		total_size;
-	private int		total_values;
-	private int		total_keys;
-	private int		total_local_keys;
+		// when full we evict cached keys down to this level rather than refusing all further
+		// stores, those we are least responsible for first and then the least read. Keys we are
+		// the primary replica for are never evicted. Stores only flag that we're over budget, 
+		// the eviction itself runs from a timer once per expiry check interval so flooding can't
+		// churn the table and the store path never consults the router. Friend locations are
+		// written as plain values like any other so can't be told apart here, their publishers
+		// republish any that are dropped
+	
+	private static final long	EVICTION_TARGET_SIZE	= MAX_TOTAL_SIZE*9/10;
+	
+	private AtomicBoolean	eviction_in_progress	= new AtomicBoolean();
+	private volatile boolean	eviction_needed;
+	private AtomicLong		evicted_keys			= new AtomicLong();
+	
+		// optional on-disk copy of the cached values, see openValueStore
+	
+	private static final int	VALUE_STORE_CHECK_PERIOD	= 60*1000;
+	
+	private volatile DHTDBValueStore	value_store;
+	private TimerEventPeriodic			value_store_timer;
+	private AEMonitor					value_store_mon			= new AEMonitor( "DHTDB:values" );
+	private long						value_store_load_time	= -1;
+	private int							value_store_load_count;
+	
+	private AtomicInteger	total_size			= new AtomicInteger();
+	private AtomicInteger	total_values		= new AtomicInteger();
+	private AtomicInteger	total_keys			= new AtomicInteger();
+	private AtomicInteger	total_local_keys	= new AtomicInteger();
+	
+	private static final int	OP_TYPES	= 4;
+	
+	private AtomicLongArray	op_counts	= new AtomicLongArray( OP_TYPES );
+	private AtomicLongArray	op_times	= new AtomicLongArray( OP_TYPES );
 	
 	
 	private boolean force_original_republish;
@@ -162,6 +209,11 @@ DHTDBImpl
 		byte				_protocol_version,
 		DHTLogger			_logger )
 	{
+		for (int i=0;i<shards.length;i++){
+			
+			shards[i] = new StoreShard( i );
+		}
+		
 		adapter							= _adapter==null?null:new adapterFacade( _adapter );
 		original_republish_interval		= _original_republish_interval;
 		cache_republish_interval		= _cache_republish_interval;
@@ -259,25 +311,35 @@ DHTDBImpl
 	
 		
 		SimpleTimer.addPeriodicEvent(
-				"DHTDB:bloom",
-				IP_BLOOM_FILTER_REBUILD_PERIOD,
+				"DHTDB:evict",
+				MIN_CACHE_EXPIRY_CHECK_INTERVAL,
 				new TimerEventPerformer()
 				{
 					public void
 					perform(
 						TimerEvent	event )
 					{
-						try{
-							this_mon.enter();
+						if ( eviction_needed ){
 							
-							rebuildIPBloomFilter( false );
-							
-						}finally{
+							eviction_needed = false;
 							
-							this_mon.exit();
+							evict();
 						}
 					}
 				});
+		
+		SimpleTimer.addPeriodicEvent(
+				"DHTDB:bloom",
+				IP_BLOOM_FILTER_REBUILD_PERIOD,
+				new TimerEventPerformer()
+				{
+					public void
+					perform(
+						TimerEvent	event )
+					{
+						rebuildIPBloomFilter( false );
+					}
+				});
 				
 		if ( survey_enabled ){
 			
@@ -314,11 +376,11 @@ DHTDBImpl
 			// our ID has changed - amend the originator of all our values
 		
 		try{
-			this_mon.enter();
+			lockAll();
 			
 			survey_state.clear();
 			
-			Iterator<DHTDBMapping>	it = stored_values.values().iterator();
+			Iterator<DHTDBMapping>	it = getMappings();
 			
 			while( it.hasNext()){
 				
@@ -328,7 +390,7 @@ DHTDBImpl
 			}
 		}finally{
 			
-			this_mon.exit();
+			unlockAll();
 		}
 	}
 	
@@ -360,23 +422,27 @@ DHTDBImpl
 				}
 			}
 			
+			StoreShard	shard = getShard( key );
+			
+			long	start = SystemTime.getHighPrecisionCounter();
+			
 			try{
-				this_mon.enter();
+				shard.mon.enter();
 					
-				total_local_keys++;
+				total_local_keys.incrementAndGet();
 				
 					// don't police max check for locally stored data
 					// only that received
 				
-				DHTDBMapping	mapping = (DHTDBMapping)stored_values.get( key );
+				DHTDBMapping	mapping = shard.stored_values.get( key );
 				
 				if ( mapping == null ){
 					
 					mapping = new DHTDBMapping( this, key, true );
 					
-					stored_values.put( key, mapping );
+					shard.stored_values.put( key, mapping );
 					
-					addToPrefixMap( mapping );
+					addToPrefixMap( shard, mapping );
 				}
 				
 				DHTDBValueImpl res =	
@@ -397,7 +463,9 @@ DHTDBImpl
 				
 			}finally{
 				
-				this_mon.exit();
+				shard.mon.exit();
+				
+				recordOperation( OP_LOCAL, start );
 			}
 		}else{
 			
@@ -435,32 +503,37 @@ DHTDBImpl
 		HashWrapper				key,
 		DHTTransportValue[]		values )
 	{
-			// allow 4 bytes per value entry to deal with overhead (prolly should be more but we're really
-			// trying to deal with 0-length value stores)
-		
-		if ( total_size + ( total_values*4 ) > MAX_TOTAL_SIZE ){
+		if ( getStorageSize() > MAX_TOTAL_SIZE ){
+			
+				// refuse until the timer has made room by dropping cached keys (see evict)
+			
+			eviction_needed = true;
 			
 			DHTLog.log( "Not storing " + DHTLog.getString2(key.getHash()) + " as maximum storage limit exceeded" );
-
+	
 			return( DHT.DT_SIZE );
 		}
 		
 		// logStoreOps();
 		
+		StoreShard	shard = getShard( key );
+		
+		long	start = SystemTime.getHighPrecisionCounter();
+		
 		try{
-			this_mon.enter();
+			shard.mon.enter();
 						
-			checkCacheExpiration( false );
+			checkCacheExpiration( shard, false );
 				
-			DHTDBMapping	mapping = (DHTDBMapping)stored_values.get( key );
+			DHTDBMapping	mapping = shard.stored_values.get( key );
 			
 			if ( mapping == null ){
 				
 				mapping = new DHTDBMapping( this, key, false );
 				
-				stored_values.put( key, mapping );
+				shard.stored_values.put( key, mapping );
 				
-				addToPrefixMap( mapping );
+				addToPrefixMap( shard, mapping );
 			}
 						
 				// we carry on an update as its ok to replace existing entries
@@ -479,7 +552,9 @@ DHTDBImpl
 	
 		}finally{
 			
-			this_mon.exit();
+			shard.mon.exit();
+			
+			recordOperation( OP_STORE, start );
 		}
 	}
 	
@@ -491,12 +566,16 @@ DHTDBImpl
 		byte					flags,
 		boolean					external_request )	
 	{
+		StoreShard	shard = getShard( key );
+		
+		long	start = SystemTime.getHighPrecisionCounter();
+
 		try{
-			this_mon.enter();
+			shard.mon.enter();
 			
-			checkCacheExpiration( false );
+			checkCacheExpiration( shard, false );
 					
-			final DHTDBMapping mapping = (DHTDBMapping)stored_values.get(key);
+			final DHTDBMapping mapping = shard.stored_values.get(key);
 			
 			if ( mapping == null ){
 				
@@ -528,7 +607,9 @@ DHTDBImpl
 			
 		}finally{
 			
-			this_mon.exit();
+			shard.mon.exit();
+			
+			recordOperation( OP_GET, start );
 		}
 	}
 	
@@ -538,10 +619,14 @@ DHTDBImpl
 	{
 			// local get
 		
+		StoreShard	shard = getShard( key );
+		
+		long	start = SystemTime.getHighPrecisionCounter();
+
 		try{
-			this_mon.enter();
+			shard.mon.enter();
 		
-			DHTDBMapping mapping = (DHTDBMapping)stored_values.get( key );
+			DHTDBMapping mapping = shard.stored_values.get( key );
 			
 			if ( mapping != null ){
 				
@@ -552,7 +637,9 @@ DHTDBImpl
 			
 		}finally{
 			
-			this_mon.exit();
+			shard.mon.exit();
+			
+			recordOperation( OP_LOCAL, start );
 		}
 	}
 	
@@ -560,10 +647,14 @@ DHTDBImpl
 	getAnyValue(
 		HashWrapper				key )
 	{		
+		StoreShard	shard = getShard( key );
+		
+		long	start = SystemTime.getHighPrecisionCounter();
+
 		try{
-			this_mon.enter();
+			shard.mon.enter();
 		
-			DHTDBMapping mapping = (DHTDBMapping)stored_values.get( key );
+			DHTDBMapping mapping = shard.stored_values.get( key );
 			
 			if ( mapping != null ){
 				
@@ -574,7 +665,9 @@ DHTDBImpl
 			
 		}finally{
 			
-			this_mon.exit();
+			shard.mon.exit();
+			
+			recordOperation( OP_LOCAL, start );
 		}
 	}
 	
@@ -582,15 +675,7 @@ DHTDBImpl
 	hasKey(
 		HashWrapper		key )
 	{
-		try{
-			this_mon.enter();
-			
-			return( stored_values.containsKey( key ));
-			
-		}finally{
-			
-			this_mon.exit();
-		}
+		return( getShard( key ).stored_values.containsKey( key ));
 	}
 	
 	public DHTDBValue
@@ -600,10 +685,14 @@ DHTDBImpl
 	{
 			// local remove
 		
+		StoreShard	shard = getShard( key );
+		
+		long	start = SystemTime.getHighPrecisionCounter();
+
 		try{
-			this_mon.enter();
+			shard.mon.enter();
 		
-			DHTDBMapping mapping = (DHTDBMapping)stored_values.get( key );
+			DHTDBMapping mapping = shard.stored_values.get( key );
 			
 			if ( mapping != null ){
 				
@@ -611,13 +700,13 @@ DHTDBImpl
 				
 				if ( res != null ){
 									
-					total_local_keys--;
+					total_local_keys.decrementAndGet();
 					
 					if ( !mapping.getValues().hasNext()){
 						
-						stored_values.remove( key );
+						shard.stored_values.remove( key );
 					
-						removeFromPrefixMap( mapping );
+						removeFromPrefixMap( shard, mapping );
 						
 						mapping.destroy();
 					}
@@ -632,7 +721,9 @@ DHTDBImpl
 			
 		}finally{
 			
-			this_mon.exit();
+			shard.mon.exit();
+			
+			recordOperation( OP_LOCAL, start );
 		}
 	}
 	
@@ -719,82 +810,93 @@ DHTDBImpl
 	public boolean
 	isEmpty()
 	{
-		return( total_keys == 0 );
+		return( total_keys.get() == 0 );
 	}
 	
 	public int
 	getKeyCount()
 	{
-		return( (int)total_keys );
+		return( total_keys.get());
 	}
 	
 	public int
 	getLocalKeyCount()
 	{
-		return( total_local_keys );
+		return( total_local_keys.get());
 	}
 	
 	public int
 	getValueCount()
 	{
-		return( (int)total_values );
+		return( total_values.get());
 	}
 	
 	public int
 	getSize()
 	{
-		return( (int)total_size );
+		return( total_size.get());
 	}
 	
 	public int[]
 	getValueDetails()
 	{
-		try{
-			this_mon.enter();
+		int[]	res = new int[6];
+
+		for ( StoreShard shard: shards ){
+			
+			try{
+				shard.mon.enter();
 			
-			int[]	res = new int[6];
+				getValueDetails( shard, res );
+				
+			}finally{
+				
+				shard.mon.exit();
+			}
+		}
+		
+		return( res );
+	}
+	
+	protected void
+	getValueDetails(
+		StoreShard		shard,
+		int[]			res )
+	{
+		Iterator<DHTDBMapping>	it = shard.stored_values.values().iterator();
+		
+		while( it.hasNext()){
 			
-			Iterator<DHTDBMapping>	it = stored_values.values().iterator();
+			DHTDBMapping	mapping = it.next();
 			
-			while( it.hasNext()){
+			res[DHTDBStats.VD_VALUE_COUNT] += mapping.getValueCount();
+			res[DHTDBStats.VD_LOCAL_SIZE] += mapping.getLocalSize();
+			res[DHTDBStats.VD_DIRECT_SIZE] += mapping.getDirectSize();
+			res[DHTDBStats.VD_INDIRECT_SIZE] += mapping.getIndirectSize();
+			
+			int	dt = mapping.getDiversificationType();
+			
+			if ( dt == DHT.DT_FREQUENCY ){
 				
-				DHTDBMapping	mapping = it.next();
+				res[DHTDBStats.VD_DIV_FREQ]++;
 				
-				res[DHTDBStats.VD_VALUE_COUNT] += mapping.getValueCount();
-				res[DHTDBStats.VD_LOCAL_SIZE] += mapping.getLocalSize();
-				res[DHTDBStats.VD_DIRECT_SIZE] += mapping.getDirectSize();
-				res[DHTDBStats.VD_INDIRECT_SIZE] += mapping.getIndirectSize();
+			}else if ( dt == DHT.DT_SIZE ){
 				
-				int	dt = mapping.getDiversificationType();
+				res[DHTDBStats.VD_DIV_SIZE]++;
 				
-				if ( dt == DHT.DT_FREQUENCY ){
-					
-					res[DHTDBStats.VD_DIV_FREQ]++;
-					
-				}else if ( dt == DHT.DT_SIZE ){
-					
-					res[DHTDBStats.VD_DIV_SIZE]++;
-					
-					/*
-					Iterator<DHTDBValueImpl> it2 = mapping.getIndirectValues();
+				/*
+				Iterator<DHTDBValueImpl> it2 = mapping.getIndirectValues();
+				
+				System.out.println( "values=" + mapping.getValueCount());
+				
+				while( it2.hasNext()){
 					
-					System.out.println( "values=" + mapping.getValueCount());
+					DHTDBValueImpl val = it2.next();
 					
-					while( it2.hasNext()){
-						
-						DHTDBValueImpl val = it2.next();
-						
-						System.out.println( new String( val.getValue()) + " - " + val.getOriginator().getAddress());
-					}
-					*/
+					System.out.println( new String( val.getValue()) + " - " + val.getOriginator().getAddress());
 				}
+				*/
 			}
-			
-			return( res );
-			
-		}finally{
-			
-			this_mon.exit();
 		}
 	}
 	
@@ -809,18 +911,98 @@ DHTDBImpl
 		return( adapter.getDirectKeyBlocks().length );
 	}
 	
-	public Iterator<HashWrapper>
-	getKeys()
+	public int
+	getShardCount()
 	{
-		try{
-			this_mon.enter();
+		return( shards.length );
+	}
+	
+	public int[]
+	getShardKeyCounts()
+	{
+		int[]	res = new int[shards.length];
+		
+		for (int i=0;i<shards.length;i++){
 			
-			return( new ArrayList<HashWrapper>( stored_values.keySet()).iterator());
+			res[i] = shards[i].stored_values.size();
+		}
+		
+		return( res );
+	}
+	
+	public long[]
+	getOperationCounts()
+	{
+		long[]	res = new long[OP_TYPES];
+		
+		for (int i=0;i<res.length;i++){
 			
-		}finally{
+			res[i] = op_counts.get(i);
+		}
+		
+		return( res );
+	}
+	
+	public long[]
+	getOperationTimes()
+	{
+		long[]	res = new long[OP_TYPES];
+		
+		for (int i=0;i<res.length;i++){
 			
-			this_mon.exit();
+			res[i] = op_times.get(i);
+		}
+		
+		return( res );
+	}
+	
+	public long
+	getEvictedKeyCount()
+	{
+		return( evicted_keys.get());
+	}
+	
+	protected void
+	recordOperation(
+		int		op,
+		long	start )
+	{
+		op_counts.incrementAndGet( op );
+		
+		op_times.addAndGet( op, ( SystemTime.getHighPrecisionCounter() - start ) / 1000 );
+	}
+	
+	public long
+	getValueStoreLoadTime()
+	{
+		return( value_store_load_time );
+	}
+	
+	public int
+	getValueStoreLoadCount()
+	{
+		return( value_store_load_count );
+	}
+	
+	public long
+	getValueStoreSize()
+	{
+		DHTDBValueStore	store = value_store;
+		
+		return( store==null?0:store.getFileSize());
+	}
+	
+	public Iterator<HashWrapper>
+	getKeys()
+	{
+		List<HashWrapper>	keys = new ArrayList<HashWrapper>( total_keys.get());
+		
+		for ( StoreShard shard: shards ){
+			
+			keys.addAll( shard.stored_values.keySet());
 		}
+		
+		return( keys.iterator());
 	}
 	
 	protected int
@@ -830,46 +1012,49 @@ DHTDBImpl
 
 		Map<HashWrapper,List<DHTDBValueImpl>>	republish = new HashMap<HashWrapper,List<DHTDBValueImpl>>();
 		
-		try{
-			this_mon.enter();
-			
-			Iterator<Map.Entry<HashWrapper,DHTDBMapping>>	it = stored_values.entrySet().iterator();
+		for ( StoreShard shard: shards ){
 			
-			while( it.hasNext()){
-				
-				Map.Entry<HashWrapper,DHTDBMapping>	entry = it.next();
-				
-				HashWrapper		key		= (HashWrapper)entry.getKey();
-				
-				DHTDBMapping	mapping	= (DHTDBMapping)entry.getValue();
-				
-				Iterator<DHTDBValueImpl>	it2 = mapping.getValues();
+			try{
+				shard.mon.enter();
 				
-				List<DHTDBValueImpl>	values = new ArrayList<DHTDBValueImpl>();
+				Iterator<Map.Entry<HashWrapper,DHTDBMapping>>	it = shard.stored_values.entrySet().iterator();
 				
-				while( it2.hasNext()){
+				while( it.hasNext()){
 					
-					DHTDBValueImpl	value = it2.next();
-				
-					if ( value != null && value.isLocal()){
-						
-						// we're republising the data, reset the creation time
+					Map.Entry<HashWrapper,DHTDBMapping>	entry = it.next();
+					
+					HashWrapper		key		= (HashWrapper)entry.getKey();
+					
+					DHTDBMapping	mapping	= (DHTDBMapping)entry.getValue();
+					
+					Iterator<DHTDBValueImpl>	it2 = mapping.getValues();
+					
+					List<DHTDBValueImpl>	values = new ArrayList<DHTDBValueImpl>();
+					
+					while( it2.hasNext()){
 						
-						value.setCreationTime();
+						DHTDBValueImpl	value = it2.next();
+					
+						if ( value != null && value.isLocal()){
+							
+							// we're republising the data, reset the creation time
+							
+							value.setCreationTime();
 
-						values.add( value );
+							values.add( value );
+						}
 					}
-				}
-				
-				if ( values.size() > 0 ){
-					
-					republish.put( key, values );
 					
+					if ( values.size() > 0 ){
+						
+						republish.put( key, values );
+						
+					}
 				}
+			}finally{
+				
+				shard.mon.exit();
 			}
-		}finally{
-			
-			this_mon.exit();
 		}
 		
 		Iterator<Map.Entry<HashWrapper,List<DHTDBValueImpl>>>	it = republish.entrySet().iterator();
@@ -910,91 +1095,94 @@ DHTDBImpl
 		
 		long	now = System.currentTimeMillis();
 		
-		try{
-			this_mon.enter();
+		for ( StoreShard shard: shards ){
 			
-			checkCacheExpiration( true );
-
-			Iterator<Map.Entry<HashWrapper,DHTDBMapping>>	it = stored_values.entrySet().iterator();
-			
-			while( it.hasNext()){
-				
-				Map.Entry<HashWrapper,DHTDBMapping>	entry = it.next();
-				
-				HashWrapper			key		= entry.getKey();
-				
-				DHTDBMapping		mapping	= entry.getValue();
+			try{
+				shard.mon.enter();
 				
-					// assume that if we've diversified then the other k-1 locations are under similar
-					// stress and will have done likewise - no point in republishing cache values to them
-					// New nodes joining will have had stuff forwarded to them regardless of diversification
-					// status
+				checkCacheExpiration( shard, true );
+
+				Iterator<Map.Entry<HashWrapper,DHTDBMapping>>	it = shard.stored_values.entrySet().iterator();
 				
-				if ( mapping.getDiversificationType() != DHT.DT_NONE ){
+				while( it.hasNext()){
 					
-					continue;
-				}
-				
-				Iterator<DHTDBValueImpl>	it2 = mapping.getValues();
-				
-				boolean	all_rf_values = it2.hasNext();
-				
-				List<DHTDBValueImpl>	values = new ArrayList<DHTDBValueImpl>();
-				
-				while( it2.hasNext()){
+					Map.Entry<HashWrapper,DHTDBMapping>	entry = it.next();
 					
-					DHTDBValueImpl	value = it2.next();
-				
-					if ( value.isLocal()){
-						
-						all_rf_values = false;
+					HashWrapper			key		= entry.getKey();
+					
+					DHTDBMapping		mapping	= entry.getValue();
+					
+						// assume that if we've diversified then the other k-1 locations are under similar
+						// stress and will have done likewise - no point in republishing cache values to them
+						// New nodes joining will have had stuff forwarded to them regardless of diversification
+						// status
+					
+					if ( mapping.getDiversificationType() != DHT.DT_NONE ){
 						
-					}else{
+						continue;
+					}
+					
+					Iterator<DHTDBValueImpl>	it2 = mapping.getValues();
+					
+					boolean	all_rf_values = it2.hasNext();
+					
+					List<DHTDBValueImpl>	values = new ArrayList<DHTDBValueImpl>();
+					
+					while( it2.hasNext()){
 						
-						if ( value.getReplicationFactor() == DHT.REP_FACT_DEFAULT ){
+						DHTDBValueImpl	value = it2.next();
+					
+						if ( value.isLocal()){
 							
 							all_rf_values = false;
-						}
-						
-							// if this value was stored < period ago then we assume that it was
-							// also stored to the other k-1 locations at the same time and therefore
-							// we don't need to re-store it
-						
-						if ( now < value.getStoreTime()){
 							
-								// deal with clock changes
-							
-							value.setStoreTime( now );
+						}else{
 							
-						}else if ( now - value.getStoreTime() <= cache_republish_interval ){
+							if ( value.getReplicationFactor() == DHT.REP_FACT_DEFAULT ){
+								
+								all_rf_values = false;
+							}
 							
-							// System.out.println( "skipping store" );
+								// if this value was stored < period ago then we assume that it was
+								// also stored to the other k-1 locations at the same time and therefore
+								// we don't need to re-store it
 							
-						}else{
+							if ( now < value.getStoreTime()){
 								
-							values.add( value );
-						}
-					}
-				}
+									// deal with clock changes
+								
+								value.setStoreTime( now );
+								
+							}else if ( now - value.getStoreTime() <= cache_republish_interval ){
+								
+								// System.out.println( "skipping store" );
+								
+							}else{
+									
+								values.add( value );
+							}
+						}
+					}
 
-				if ( all_rf_values ){
-					
-						// if surveying is disabled then we swallow values here to prevent them
-						// from being replicated using the existing technique and muddying the waters
-					
-					values.clear();	// handled by the survey process
-					
-					republish_via_survey.add( mapping );
-				}
-					
-				if ( values.size() > 0 ){
+					if ( all_rf_values ){
+						
+							// if surveying is disabled then we swallow values here to prevent them
+							// from being replicated using the existing technique and muddying the waters
+						
+						values.clear();	// handled by the survey process
+						
+						republish_via_survey.add( mapping );
+					}
 						
-					republish.put( key, values );
+					if ( values.size() > 0 ){
+							
+						republish.put( key, values );
+					}
 				}
+			}finally{
+				
+				shard.mon.exit();
 			}
-		}finally{
-			
-			this_mon.exit();
 		}
 		
 		if ( republish_via_survey.size() > 0 ){
@@ -1036,23 +1224,9 @@ DHTDBImpl
 			
 			if ( stop_caching.size() > 0 ){
 				
-				try{
-					this_mon.enter();
-					
-					for (int i=0;i<stop_caching.size();i++){
-						
-						DHTDBMapping	mapping = (DHTDBMapping)stored_values.remove( stop_caching.get(i));
-						
-						if ( mapping != null ){
-							
-							removeFromPrefixMap( mapping );
-							
-							mapping.destroy();
-						}
-					}
-				}finally{
+				for (int i=0;i<stop_caching.size();i++){
 					
-					this_mon.exit();
+					removeMapping( stop_caching.get(i));
 				}
 			}
 		}
@@ -1241,23 +1415,9 @@ DHTDBImpl
 				sem.reserve();
 			}
 			
-			try{
-				this_mon.enter();
-				
-				for (int i=0;i<stop_caching.size();i++){
-					
-					DHTDBMapping	mapping = (DHTDBMapping)stored_values.remove( stop_caching.get(i));
-					
-					if ( mapping != null ){
-						
-						removeFromPrefixMap( mapping );
-						
-						mapping.destroy();
-					}
-				}
-			}finally{
+			for (int i=0;i<stop_caching.size();i++){
 				
-				this_mon.exit();
+				removeMapping( stop_caching.get(i));
 			}
 		}
 		
@@ -1334,181 +1494,730 @@ DHTDBImpl
 								}
 							};
 						
-							if ( anti_spoof_done.contains( contact )){
+							if ( anti_spoof_done.contains( contact )){
+								
+								task.run();
+								
+							}else{
+								
+								contact.sendFindNode(
+										new DHTTransportReplyHandlerAdapter()
+										{
+											public void
+											findNodeReply(
+												DHTTransportContact 	contact,
+												DHTTransportContact[]	contacts )
+											{	
+												task.run();
+											}
+											public void
+											failed(
+												DHTTransportContact 	_contact,
+												Throwable				_error )
+											{
+												// System.out.println( "nodeAdded: pre-store findNode Failed" );
+
+												DHTLog.log( "pre-kb findNode failed " + DHTLog.getString( _contact ) + " -> failed: " + _error.getMessage());
+																						
+												router.contactDead( _contact.getID(), false);
+											}
+										},
+										contact.getProtocolVersion() >= DHTTransportUDP.PROTOCOL_VERSION_ANTI_SPOOF2?new byte[0]:new byte[20] );
+							}
+					}
+				}
+			}
+		}
+		
+		return( new int[]{ values_published[0], keys_published[0], republish_ops[0] });
+	}
+		
+	protected void
+	checkCacheExpiration(
+		boolean		force )
+	{
+		for ( StoreShard shard: shards ){
+			
+			try{
+				shard.mon.enter();
+				
+				checkCacheExpiration( shard, force );
+				
+			}finally{
+				
+				shard.mon.exit();
+			}
+		}
+	}
+	
+		/**
+		 * Expires the cached values of a single shard, caller must hold the shard's monitor.
+		 * Stores and gets check their own shard so expiry is spread across operations rather
+		 * than done as one sweep of the whole table
+		 */
+	
+	protected void
+	checkCacheExpiration(
+		StoreShard	shard,
+		boolean		force )
+	{
+		long	 now = SystemTime.getCurrentTime();
+		
+		if ( !force ){
+			
+			long elapsed = now - shard.last_cache_expiry_check;
+			
+			if ( elapsed > 0 && elapsed < MIN_CACHE_EXPIRY_CHECK_INTERVAL ){
+				
+				return;
+			}
+		}
+			
+		shard.last_cache_expiry_check	= now;
+			
+		Iterator<DHTDBMapping>	it = shard.stored_values.values().iterator();
+		
+		while( it.hasNext()){
+			
+			DHTDBMapping	mapping = it.next();
+
+			if ( mapping.getValueCount() == 0 ){
+									
+				it.remove();
+				
+				removeFromPrefixMap( shard, mapping );
+				
+				mapping.destroy();
+
+			}else{
+				
+				Iterator<DHTDBValueImpl>	it2 = mapping.getValues();
+				
+				while( it2.hasNext()){
+					
+					DHTDBValueImpl	value = it2.next();				
+					
+					if ( !value.isLocal() && hasExpired( value, now )){
+							
+						DHTLog.log( "removing cache entry (" + value.getString() + ")" );
+						
+						it2.remove();
+					}
+				}
+			}
+		}
+	}
+	
+	protected boolean
+	hasExpired(
+		DHTDBValueImpl	value,
+		long			now )
+	{
+			// distance 1 = initial store location. We use the initial creation date
+			// when deciding whether or not to remove this, plus a bit, as the 
+			// original publisher is supposed to republish these
+		
+		int life_hours = value.getLifeTimeHours();
+		
+		int	max_age;
+		
+		if ( life_hours < 1 ){
+			
+			max_age = original_republish_interval;
+			
+		}else{
+			
+			max_age = life_hours * 60*60*1000;
+			
+			if ( max_age > MAX_VALUE_LIFETIME ){
+				
+				max_age = MAX_VALUE_LIFETIME;
+			}
+		}
+		
+		int	grace;
+		
+		if (( value.getFlags() & DHT.FLAG_PUT_AND_FORGET ) != 0 ){
+			
+			grace = 0;
+			
+		}else{
+			
+				// scale the grace period for short lifetimes
+			
+			grace = Math.min( ORIGINAL_REPUBLISH_INTERVAL_GRACE, max_age/4 );
+		}
+		
+		return( now > value.getCreationTime() + max_age + grace );
+	}
+	
+	protected void
+	removeMapping(
+		HashWrapper		key )
+	{
+		StoreShard	shard = getShard( key );
+		
+		try{
+			shard.mon.enter();
+			
+			DHTDBMapping	mapping = shard.stored_values.remove( key );
+			
+			if ( mapping != null ){
+				
+				removeFromPrefixMap( shard, mapping );
+				
+				mapping.destroy();
+			}
+		}finally{
+			
+			shard.mon.exit();
+		}
+	}
+	
+	protected void
+	addToPrefixMap(
+		StoreShard			shard,
+		DHTDBMapping		mapping )
+	{
+		DHTDBMapping.ShortHash key = mapping.getShortKey();
+		
+		DHTDBMapping existing = shard.prefix_map.get( key );
+		
+			// possible to have clashes, be consistent in which one we use to avoid
+			// confusing other nodes
+		
+		if ( existing != null ){
+			
+			byte[]	existing_full 	= existing.getKey().getBytes();
+			byte[]	new_full		= mapping.getKey().getBytes();
+			
+			if ( control.computeAndCompareDistances( existing_full, new_full, local_contact.getID()) < 0 ){
+				
+				return;
+			}
+		}
+		
+		shard.prefix_map.put( key, mapping );
+	
+		if ( shard.prefix_map.size() > shard.stored_values.size()){
+			
+			Debug.out( "inconsistent" );
+		}
+	}
+	
+	protected void
+	removeFromPrefixMap(
+		StoreShard			shard,
+		DHTDBMapping		mapping )
+	{
+		DHTDBMapping.ShortHash key = mapping.getShortKey();
+
+		DHTDBMapping existing = shard.prefix_map.get( key );
+	
+		if ( existing == mapping ){
+			
+			shard.prefix_map.remove( key );
+		}
+	}
+	
+	protected StoreShard
+	getShard(
+		HashWrapper		key )
+	{
+		return( getShard( key.getBytes()));
+	}
+	
+	protected StoreShard
+	getShard(
+		byte[]			key )
+	{
+		return( shards[ ( key[0] & 0xff ) >>> ( 8 - SHARD_BITS )]);
+	}
+	
+		/**
+		 * Operations that need a consistent view of the whole table (survey, flood deletion,
+		 * bloom rebuilds) take the main monitor and then every shard, always in that order.
+		 * Per-key operations only ever take their own shard so can't deadlock against this
+		 */
+	
+	protected void
+	lockAll()
+	{
+		this_mon.enter();
+		
+		for (int i=0;i<shards.length;i++){
+			
+			shards[i].mon.enter();
+		}
+	}
+	
+	protected void
+	unlockAll()
+	{
+		for (int i=shards.length-1;i>=0;i--){
+			
+			shards[i].mon.exit();
+		}
+		
+		this_mon.exit();
+	}
+	
+	protected Iterator<DHTDBMapping>
+	getMappings()
+	{
+		return(
+			new Iterator<DHTDBMapping>()
+			{
+				private int						shard_index	= 0;
+				private Iterator<DHTDBMapping>	it 			= shards[0].stored_values.values().iterator();
+				
+				public boolean
+				hasNext()
+				{
+					while( !it.hasNext()){
+						
+						if ( ++shard_index == shards.length ){
+							
+							return( false );
+						}
+						
+						it = shards[shard_index].stored_values.values().iterator();
+					}
+					
+					return( true );
+				}
+				
+				public DHTDBMapping
+				next()
+				{
+					if ( !hasNext()){
+						
+						throw( new NoSuchElementException());
+					}
+					
+					return( it.next());
+				}
+				
+				public void
+				remove()
+				{
+					throw( new UnsupportedOperationException());
+				}
+			});
+	}
+	
+	protected int
+	getMappingCount()
+	{
+		int	res = 0;
+		
+		for ( StoreShard shard: shards ){
+			
+			res += shard.stored_values.size();
+		}
+		
+		return( res );
+	}
+	
+	protected long
+	getStorageSize()
+	{
+			// allow 4 bytes per value entry to deal with overhead (prolly should be more but we're really
+			// trying to deal with 0-length value stores)
+
+		return( total_size.get() + ( total_values.get()*4L ));
+	}
+	
+	protected boolean
+	hasLocalValues(
+		DHTDBMapping	mapping )
+	{
+		Iterator<DHTDBValueImpl>	it = mapping.getValues();
+		
+		while( it.hasNext()){
+			
+			if ( it.next().isLocal()){
+				
+				return( true );
+			}
+		}
+		
+		return( false );
+	}
+	
+		/**
+		 * @return our position amongst the K closest contacts to the key, 0 for the primary
+		 * replica, K if we aren't one of them
+		 */
+	
+	protected int
+	getReplicaRank(
+		HashWrapper		key )
+	{
+		List<DHTTransportContact>	contacts = control.getClosestKContactsList( key.getHash(), false );
+		
+		for (int i=0;i<contacts.size();i++){
+			
+			if ( router.isID( contacts.get(i).getID())){
+				
+				return( i );
+			}
+		}
+		
+		return( contacts.size());
+	}
+	
+	protected void
+	evict()
+	{
+		if ( !eviction_in_progress.compareAndSet( false, true )){
+			
+			return;
+		}
+		
+		try{
+			List<DHTDBMapping>	mappings = new ArrayList<DHTDBMapping>();
+			
+			for ( StoreShard shard: shards ){
+				
+				try{
+					shard.mon.enter();
+					
+						// anything that has expired anyway goes first
+					
+					checkCacheExpiration( shard, true );
+					
+					for ( DHTDBMapping mapping: shard.stored_values.values()){
+						
+						if ( !hasLocalValues( mapping )){
+							
+							mappings.add( mapping );
+						}
+					}
+				}finally{
+					
+					shard.mon.exit();
+				}
+			}
+			
+				// the router is consulted without any shard held
+			
+			List<Object[]>	candidates = new ArrayList<Object[]>();
+			
+			for ( DHTDBMapping mapping: mappings ){
+				
+				int	rank = getReplicaRank( mapping.getKey());
+				
+				if ( rank > 0 ){
+					
+					candidates.add( new Object[]{ new Integer( rank ), new Integer( mapping.getHits()), mapping });
+				}
+			}
+			
+			Collections.sort(
+				candidates,
+				new Comparator<Object[]>()
+				{
+					public int 
+					compare(
+						Object[] o1, 
+						Object[] o2 ) 
+					{
+						int	res = ((Integer)o2[0]).intValue() - ((Integer)o1[0]).intValue();
+						
+						if ( res == 0 ){
+						
+							res = ((Integer)o1[1]).intValue() - ((Integer)o2[1]).intValue();
+						}
+						
+						return( res );
+					}
+				});
+			
+			int	evicted = 0;
+			
+			for ( Object[] entry: candidates ){
+				
+				if ( getStorageSize() <= EVICTION_TARGET_SIZE ){
+					
+					break;
+				}
+				
+				DHTDBMapping	mapping = (DHTDBMapping)entry[2];
+				
+				HashWrapper		key		= mapping.getKey();
+				
+				StoreShard		shard	= getShard( key );
+				
+				try{
+					shard.mon.enter();
+					
+						// may have been replaced or had a local value added since we looked
+					
+					if ( shard.stored_values.get( key ) == mapping && !hasLocalValues( mapping )){
+						
+						shard.stored_values.remove( key );
+						
+						removeFromPrefixMap( shard, mapping );
+						
+						mapping.destroy();
+						
+						evicted++;
+					}
+				}finally{
+					
+					shard.mon.exit();
+				}
+			}
+			
+			if ( evicted > 0 ){
+				
+				evicted_keys.addAndGet( evicted );
+				
+				logger.log( "Evicted " + evicted + " cached keys, storage size now " + getStorageSize());
+			}
+		}finally{
+			
+			eviction_in_progress.set( false );
+		}
+	}
+	
+	public void
+	openValueStore(
+		File		file )
+	{
+		if ( value_store != null ){
+			
+			return;
+		}
+		
+		long	start = SystemTime.getHighPrecisionCounter();
+		
+		DHTDBValueStore	store = new DHTDBValueStore( file );
+		
+		final long	now = SystemTime.getCurrentTime();
+		
+		Map<HashWrapper,Map<HashWrapper,DHTDBValueImpl>>	values = 
+			store.load( 
+				control.getTransport(),
+				new DHTDBValueStore.valueFilter()
+				{
+					public boolean
+					accept(
+						DHTDBValueImpl	value )
+					{
+						return( !hasExpired( value, now ));
+					}
+				});
+		
+		int	loaded = 0;
+		
+		for ( Map.Entry<HashWrapper,Map<HashWrapper,DHTDBValueImpl>> entry: values.entrySet()){
+			
+			HashWrapper	key		= entry.getKey();
+			
+			StoreShard	shard	= getShard( key );
+			
+			try{
+				shard.mon.enter();
+				
+				DHTDBMapping	mapping = shard.stored_values.get( key );
+				
+				if ( mapping == null ){
+					
+					mapping = new DHTDBMapping( this, key, false );
+					
+					shard.stored_values.put( key, mapping );
+					
+					addToPrefixMap( shard, mapping );
+				}
+				
+					// store time is reset to now so these won't all be republished at the next
+					// cache republish
+				
+				for ( DHTDBValueImpl value: entry.getValue().values()){
+					
+					mapping.add( value );
+					
+					loaded++;
+				}
+			}finally{
+				
+				shard.mon.exit();
+			}
+		}
+		
+		value_store = store;
+		
+			// rewrite straight away, drops expired and dead records and any partial write at the end
+		
+		compactValueStore();
+		
+		value_store_timer = 
+			SimpleTimer.addPeriodicEvent(
+				"DHTDB:values",
+				VALUE_STORE_CHECK_PERIOD,
+				new TimerEventPerformer()
+				{
+					public void
+					perform(
+						TimerEvent	event )
+					{
+						DHTDBValueStore	store = value_store;
+						
+						if ( store != null ){
+							
+							if ( store.needsCompaction()){
 								
-								task.run();
+								compactValueStore();
 								
 							}else{
 								
-								contact.sendFindNode(
-										new DHTTransportReplyHandlerAdapter()
-										{
-											public void
-											findNodeReply(
-												DHTTransportContact 	contact,
-												DHTTransportContact[]	contacts )
-											{	
-												task.run();
-											}
-											public void
-											failed(
-												DHTTransportContact 	_contact,
-												Throwable				_error )
-											{
-												// System.out.println( "nodeAdded: pre-store findNode Failed" );
-
-												DHTLog.log( "pre-kb findNode failed " + DHTLog.getString( _contact ) + " -> failed: " + _error.getMessage());
-																						
-												router.contactDead( _contact.getID(), false);
-											}
-										},
-										contact.getProtocolVersion() >= DHTTransportUDP.PROTOCOL_VERSION_ANTI_SPOOF2?new byte[0]:new byte[20] );
+								store.flush();
 							}
+						}
 					}
-				}
-			}
-		}
+				});
 		
-		return( new int[]{ values_published[0], keys_published[0], republish_ops[0] });
-	}
+		value_store_load_count	= loaded;
+		value_store_load_time	= ( SystemTime.getHighPrecisionCounter() - start ) / 1000000;
 		
-	protected void
-	checkCacheExpiration(
-		boolean		force )
+		logger.log( "Loaded " + loaded + " values from " + file + " in " + value_store_load_time + "ms, size=" + store.getFileSize());
+	}
+	
+	public void
+	closeValueStore()
 	{
-		long	 now = SystemTime.getCurrentTime();
+		DHTDBValueStore	store = value_store;
 		
-		if ( !force ){
+		if ( store == null ){
 			
-			long elapsed = now - last_cache_expiry_check;
+			return;
+		}
+		
+		if ( value_store_timer != null ){
 			
-			if ( elapsed > 0 && elapsed < MIN_CACHE_EXPIRY_CHECK_INTERVAL ){
-				
-				return;
-			}
+			value_store_timer.cancel();
 		}
+		
+		compactValueStore();
+		
+		value_store = null;
+		
+		store.close();
+	}
+	
+	protected void
+	compactValueStore()
+	{
+		DHTDBValueStore	store = value_store;
+		
+		if ( store == null ){
 			
+			return;
+		}
+		
+		ByteArrayOutputStream	snapshot 	= new ByteArrayOutputStream( 64*1024 );
+		ByteArrayOutputStream	record		= new ByteArrayOutputStream( 1024 );
+		
+		int	records = 0;
+		
+			// one compaction at a time (timer vs close)
+		
 		try{
-			this_mon.enter();
-			
-			last_cache_expiry_check	= now;
-			
-			Iterator<DHTDBMapping>	it = stored_values.values().iterator();
-			
-			while( it.hasNext()){
+			value_store_mon.enter();
+		
+			try{
+				lockAll();
 				
-				DHTDBMapping	mapping = it.next();
-	
-				if ( mapping.getValueCount() == 0 ){
-										
-					it.remove();
-					
-					removeFromPrefixMap( mapping );
+				Iterator<DHTDBMapping>	it = getMappings();
+				
+				while( it.hasNext()){
 					
-					mapping.destroy();
-
-				}else{
+					DHTDBMapping	mapping = it.next();
 					
 					Iterator<DHTDBValueImpl>	it2 = mapping.getValues();
 					
 					while( it2.hasNext()){
 						
-						DHTDBValueImpl	value = it2.next();				
+						DHTDBValueImpl	value = it2.next();
 						
-						if ( !value.isLocal()){
-							
-								// distance 1 = initial store location. We use the initial creation date
-								// when deciding whether or not to remove this, plus a bit, as the 
-								// original publisher is supposed to republish these
+						if ( value.isLocal()){
 							
-							int life_hours = value.getLifeTimeHours();
-							
-							int	max_age;
+							continue;
+						}
+						
+							// serialise separately so a failure doesn't leave half a record behind
+						
+						record.reset();
+						
+						try{
+							DHTDBValueStore.writePut( new DataOutputStream( record ), mapping.getKey(), value );
 							
-							if ( life_hours < 1 ){
-								
-								max_age = original_republish_interval;
-								
-							}else{
-								
-								max_age = life_hours * 60*60*1000;
-								
-								if ( max_age > MAX_VALUE_LIFETIME ){
-									
-									max_age = MAX_VALUE_LIFETIME;
-								}
-							}
+							record.writeTo( snapshot );
 							
-							int	grace;
+							records++;
 							
-							if (( value.getFlags() & DHT.FLAG_PUT_AND_FORGET ) != 0 ){
-								
-								grace = 0;
-								
-							}else{
-								
-									// scale the grace period for short lifetimes
-								
-								grace = Math.min( ORIGINAL_REPUBLISH_INTERVAL_GRACE, max_age/4 );
-							}
+						}catch( IOException e ){
 							
-							if ( now > value.getCreationTime() + max_age + grace ){
-								
-								DHTLog.log( "removing cache entry (" + value.getString() + ")" );
-								
-								it2.remove();
-							}	
+							Debug.printStackTrace( e );
 						}
 					}
 				}
+				
+					// no values can change until we release the shards so later appends will
+					// follow the snapshot
+				
+				store.startCompaction( records );
+				
+			}finally{
+				
+				unlockAll();
 			}
+			
+			store.completeCompaction( snapshot.toByteArray());
+			
 		}finally{
 			
-			this_mon.exit();
+			value_store_mon.exit();
 		}
 	}
 	
 	protected void
-	addToPrefixMap(
-		DHTDBMapping		mapping )
+	valueStored(
+		DHTDBMapping		mapping,
+		DHTDBValueImpl		old_value,
+		DHTDBValueImpl		new_value )
 	{
-		DHTDBMapping.ShortHash key = mapping.getShortKey();
+		DHTDBValueStore	store = value_store;
 		
-		DHTDBMapping existing = stored_values_prefix_map.get( key );
+		if ( store == null ){
+			
+			return;
+		}
 		
-			// possible to have clashes, be consistent in which one we use to avoid
-			// confusing other nodes
+		boolean	replaces = old_value != null && !old_value.isLocal();
 		
-		if ( existing != null ){
+		if ( !new_value.isLocal()){
 			
-			byte[]	existing_full 	= existing.getKey().getBytes();
-			byte[]	new_full		= mapping.getKey().getBytes();
+			store.logPut( mapping.getKey(), new_value, replaces );
 			
-			if ( control.computeAndCompareDistances( existing_full, new_full, local_contact.getID()) < 0 ){
-				
-				return;
-			}
-		}
-		
-		stored_values_prefix_map.put( key, mapping );
-	
-		if ( stored_values_prefix_map.size() > stored_values.size()){
+		}else if ( replaces ){
 			
-			Debug.out( "inconsistent" );
+			store.logDelete( mapping.getKey(), old_value );
 		}
 	}
 	
 	protected void
-	removeFromPrefixMap(
-		DHTDBMapping		mapping )
+	valueRemoved(
+		DHTDBMapping		mapping,
+		DHTDBValueImpl		value )
 	{
-		DHTDBMapping.ShortHash key = mapping.getShortKey();
-
-		DHTDBMapping existing = stored_values_prefix_map.get( key );
-	
-		if ( existing == mapping ){
+		DHTDBValueStore	store = value_store;
+		
+		if ( store != null && !value.isLocal()){
 			
-			stored_values_prefix_map.remove( key );
+			store.logDelete( mapping.getKey(), value );
 		}
 	}
 	
@@ -1519,51 +2228,54 @@ DHTDBImpl
 		
 		Map<HashWrapper,List<DHTDBValueImpl>>	republish = new HashMap<HashWrapper,List<DHTDBValueImpl>>();
 
-		try{
-
-			this_mon.enter();
-						
-			Iterator<Map.Entry<HashWrapper,DHTDBMapping>>	it = stored_values.entrySet().iterator();
+		for ( StoreShard shard: shards ){
 			
-			while( it.hasNext()){
-				
-				Map.Entry<HashWrapper,DHTDBMapping>	entry = it.next();
-				
-				HashWrapper		key		= entry.getKey();
-				
-				DHTDBMapping	mapping	= entry.getValue();
+			try{
 
-				Iterator<DHTDBValueImpl>	it2 = mapping.getValues();
+				shard.mon.enter();
+							
+				Iterator<Map.Entry<HashWrapper,DHTDBMapping>>	it = shard.stored_values.entrySet().iterator();
 				
-				List<DHTDBValueImpl>	values = new ArrayList<DHTDBValueImpl>();
+				while( it.hasNext()){
+					
+					Map.Entry<HashWrapper,DHTDBMapping>	entry = it.next();
+					
+					HashWrapper		key		= entry.getKey();
+					
+					DHTDBMapping	mapping	= entry.getValue();
 
-				while( it2.hasNext()){
+					Iterator<DHTDBValueImpl>	it2 = mapping.getValues();
 					
-					DHTDBValueImpl	value = it2.next();				
+					List<DHTDBValueImpl>	values = new ArrayList<DHTDBValueImpl>();
 
-					if ( value.isLocal()){
+					while( it2.hasNext()){
 						
-						if (( value.getFlags() | DHT.FLAG_PRECIOUS ) != 0 ){
+						DHTDBValueImpl	value = it2.next();				
+
+						if ( value.isLocal()){
 							
-							if ( now - value.getCreationTime() > PRECIOUS_CHECK_INTERVAL ){
+							if (( value.getFlags() | DHT.FLAG_PRECIOUS ) != 0 ){
 								
-								value.setCreationTime();
+								if ( now - value.getCreationTime() > PRECIOUS_CHECK_INTERVAL ){
+									
+									value.setCreationTime();
 
-								values.add( value );
+									values.add( value );
+								}
 							}
 						}
 					}
-				}
-				
-				if ( values.size() > 0 ){
-					
-					republish.put( key, values );
 					
+					if ( values.size() > 0 ){
+						
+						republish.put( key, values );
+						
+					}
 				}
+			}finally{
+				
+				shard.mon.exit();
 			}
-		}finally{
-			
-			this_mon.exit();
 		}
 		
 		Iterator<Map.Entry<HashWrapper,List<DHTDBValueImpl>>>	it = republish.entrySet().iterator();
@@ -1646,7 +2358,7 @@ DHTDBImpl
 		final List<HashWrapper> applicable_keys = new ArrayList<HashWrapper>();
 		
 		try{
-			this_mon.enter();
+			lockAll();
 			
 			long	now = SystemTime.getMonotonousTime();
 			
@@ -1660,7 +2372,7 @@ DHTDBImpl
 				}
 			}
 			
-			Iterator<DHTDBMapping>	it = stored_values.values().iterator();
+			Iterator<DHTDBMapping>	it = getMappings();
 						
 			Set<HashWrapper>	existing_times = new HashSet<HashWrapper>( survey_mapping_times.keySet());
 			
@@ -1709,11 +2421,11 @@ DHTDBImpl
 				survey_mapping_times.remove( hw );
 			}
 			
-			logger.log( "Survey starts: state size=" + survey_state.size() + ", all keys=" + stored_values.size() + ", applicable keys=" + applicable_keys.size());
+			logger.log( "Survey starts: state size=" + survey_state.size() + ", all keys=" + getMappingCount() + ", applicable keys=" + applicable_keys.size());
 
 		}finally{
 			
-			this_mon.exit();
+			unlockAll();
 		}
 		
 		if ( DEBUG_SURVEY ){
@@ -1909,7 +2621,7 @@ DHTDBImpl
 			int max_nodes = Math.min( node_ids.length, router.getK());
 			
 			try{
-				this_mon.enter();
+				lockAll();
 							
 				Iterator<HashWrapper>	it = applicable_keys.iterator();
 				
@@ -1917,7 +2629,9 @@ DHTDBImpl
 				
 				while( it.hasNext()){
 					
-					DHTDBMapping	mapping = stored_values.get( it.next());
+					HashWrapper		hw = it.next();
+					
+					DHTDBMapping	mapping = getShard( hw ).stored_values.get( hw );
 		
 					if ( mapping == null ){
 							
@@ -2125,7 +2839,7 @@ DHTDBImpl
 				}
 			}finally{
 				
-				this_mon.exit();
+				unlockAll();
 			}
 						
 			LinkedList<Map.Entry<DHTTransportContact,ByteArrayHashMap<List<DHTDBMapping>>>> to_do = new LinkedList<Map.Entry<DHTTransportContact,ByteArrayHashMap<List<DHTDBMapping>>>>( request_map.entrySet());
@@ -2419,7 +3133,7 @@ DHTDBImpl
 		Map<SurveyContactState,List<DHTDBMapping>>	store_ops = new HashMap<SurveyContactState, List<DHTDBMapping>>();
 
 		try{
-			this_mon.enter();
+			lockAll();
 			
 			if ( !Arrays.equals( survey_my_id, router.getID())){
 				
@@ -2491,7 +3205,7 @@ DHTDBImpl
 							
 								// must match against our short-key mapping for consistency
 							
-							DHTDBMapping mapping_to_check = stored_values_prefix_map.get( mapping.getShortKey());
+							DHTDBMapping mapping_to_check = getShard( mapping.getKey()).prefix_map.get( mapping.getShortKey());
 							
 							if ( mapping_to_check == null ){
 								
@@ -2741,7 +3455,7 @@ DHTDBImpl
 			}
 		}finally{
 			
-			this_mon.exit();
+			unlockAll();
 			
 			survey_in_progress = false;
 		}
@@ -2878,6 +3592,8 @@ DHTDBImpl
 	{
 		final List<byte[]> reply = new ArrayList<byte[]>();
 		
+		long	start = SystemTime.getHighPrecisionCounter();
+		
 		try{
 			this_mon.enter();
 			
@@ -2904,7 +3620,7 @@ DHTDBImpl
 					
 					System.arraycopy( suffix, 0, header, prefix_len, suffix_len );
 					
-					DHTDBMapping mapping = stored_values_prefix_map.get( new DHTDBMapping.ShortHash( header ));
+					DHTDBMapping mapping = getShard( header ).prefix_map.get( new DHTDBMapping.ShortHash( header ));
 					
 					if ( mapping == null ){
 					
@@ -2947,6 +3663,8 @@ DHTDBImpl
 		}finally{
 			
 			this_mon.exit();
+			
+			recordOperation( OP_QUERY_STORE, start );
 		}
 	}
 	
@@ -2957,26 +3675,24 @@ DHTDBImpl
 		Map<Integer,Object[]>	count = new TreeMap<Integer,Object[]>();
 		
 		try{
-			this_mon.enter();
+			lockAll();
 			
-			logger.log( "Stored keys = " + stored_values.size() + ", values = " + getValueDetails()[DHTDBStats.VD_VALUE_COUNT]); 
+			logger.log( "Stored keys = " + getMappingCount() + ", values = " + getValueDetails()[DHTDBStats.VD_VALUE_COUNT]); 
 
 			if ( !full ){
 				
 				return;
 			}
 			
-			Iterator<Map.Entry<HashWrapper,DHTDBMapping>>	it1 = stored_values.entrySet().iterator();
+			Iterator<DHTDBMapping>	it1 = getMappings();
 			
 			// ByteArrayHashMap<Integer> blah = new ByteArrayHashMap<Integer>();
 			
 			while( it1.hasNext()){
 						
-				Map.Entry<HashWrapper,DHTDBMapping>		entry = it1.next();
+				DHTDBMapping	mapping 	= it1.next();
 				
-				HashWrapper		value_key	= entry.getKey();
-				
-				DHTDBMapping	mapping 	= entry.getValue();
+				HashWrapper		value_key	= mapping.getKey();
 				
 				/*
 				if ( mapping.getIndirectSize() > 1000 ){
@@ -3058,18 +3774,16 @@ DHTDBImpl
 				logger.log( "    " + k + " -> " + data[0] + " entries" ); // ": " + data[1]);
 			}
 			
-			Iterator<Map.Entry<HashWrapper,DHTDBMapping>> it3 = stored_values.entrySet().iterator();
+			Iterator<DHTDBMapping> it3 = getMappings();
 			
 			String	str 		= "    ";
 			int		str_entries	= 0;
 			
 			while( it3.hasNext()){
 						
-				Map.Entry<HashWrapper,DHTDBMapping>		entry = it3.next();
-				
-				HashWrapper		value_key	= entry.getKey();
+				DHTDBMapping	mapping 	= it3.next();
 				
-				DHTDBMapping	mapping 	= entry.getValue();
+				HashWrapper		value_key	= mapping.getKey();
 				
 				if ( str_entries == 16 ){
 					
@@ -3091,7 +3805,7 @@ DHTDBImpl
 			}
 		}finally{
 			
-			this_mon.exit();
+			unlockAll();
 		}
 	}
 	
@@ -3115,9 +3829,9 @@ DHTDBImpl
 					// interfere with the current action
 				
 				try{
-					this_mon.enter();
+					lockAll();
 					
-					Iterator<DHTDBMapping>	it = stored_values.values().iterator();
+					Iterator<DHTDBMapping>	it = getMappings();
 						
 					boolean	overall_deleted = false;
 					
@@ -3157,7 +3871,7 @@ DHTDBImpl
 					}
 				}finally{
 					
-					this_mon.exit();
+					unlockAll();
 					
 				}
 			}
@@ -3186,18 +3900,49 @@ DHTDBImpl
 		
 			// However, for CVS DHTs we can have sizes of 1000 or less. 
 		
-		int	hit_count = ip_count_bloom_filter.add( contact.getAddress().getAddress().getAddress());
+		int		hit_count;
+		boolean	rebuild;
+		
+		try{
+			bloom_mon.enter();
+			
+			hit_count = ip_count_bloom_filter.add( contact.getAddress().getAddress().getAddress());
+			
+				// allow up to 10% bloom filter utilisation
+
+			rebuild = ip_count_bloom_filter.getSize() / ip_count_bloom_filter.getEntryCount() < 10;
+			
+		}finally{
+			
+			bloom_mon.exit();
+		}
 		
 		if ( DHTLog.GLOBAL_BLOOM_TRACE ){
 		
 			System.out.println( "direct add from " + contact.getAddress() + ", hit count = " + hit_count );
 		}
 
-			// allow up to 10% bloom filter utilisation
-		
-		if ( ip_count_bloom_filter.getSize() / ip_count_bloom_filter.getEntryCount() < 10 ){
+		if ( rebuild ){
+			
+				// we're holding a shard monitor here so can't rebuild (which needs them all) inline
 			
-			rebuildIPBloomFilter( true );
+			if ( bloom_rebuild_scheduled.compareAndSet( false, true )){
+				
+				new AEThread2( "DHTDBImpl:bloom rebuild", true )
+				{
+					public void
+					run()
+					{
+						try{
+							rebuildIPBloomFilter( true );
+							
+						}finally{
+							
+							bloom_rebuild_scheduled.set( false );
+						}
+					}
+				}.start();
+			}
 		}
 		
 		if ( hit_count > 64 ){
@@ -3212,7 +3957,17 @@ DHTDBImpl
 	decrementValueAdds(
 		DHTTransportContact	contact )
 	{
-		int	hit_count = ip_count_bloom_filter.remove( contact.getAddress().getAddress().getAddress());
+		int	hit_count;
+		
+		try{
+			bloom_mon.enter();
+			
+			hit_count = ip_count_bloom_filter.remove( contact.getAddress().getAddress().getAddress());
+			
+		}finally{
+			
+			bloom_mon.exit();
+		}
 
 		if ( DHTLog.GLOBAL_BLOOM_TRACE ){
 			
@@ -3223,6 +3978,21 @@ DHTDBImpl
 	protected void
 	rebuildIPBloomFilter(
 		boolean	increase_size )
+	{
+		try{
+			lockAll();
+			
+			rebuildIPBloomFilterSupport( increase_size );
+			
+		}finally{
+			
+			unlockAll();
+		}
+	}
+	
+	private void
+	rebuildIPBloomFilterSupport(
+		boolean	increase_size )
 	{
 		BloomFilter	new_filter;
 		
@@ -3241,7 +4011,7 @@ DHTDBImpl
 			//Map		sender_map	= new HashMap();
 			//List	senders		= new ArrayList();
 			
-			Iterator<DHTDBMapping>	it = stored_values.values().iterator();
+			Iterator<DHTDBMapping>	it = getMappings();
 			
 			int	max_hits = 0;
 			
@@ -3415,7 +4185,7 @@ DHTDBImpl
 	getNextValueVersion()
 	{
 		try{
-			this_mon.enter();
+			version_mon.enter();
 			
 			if ( next_value_version_left == 0 ){
 				
@@ -3443,7 +4213,7 @@ DHTDBImpl
 			
 		}finally{
 			
-			this_mon.exit();
+			version_mon.exit();
 		}
 	}
 	
@@ -3475,7 +4245,7 @@ DHTDBImpl
 			
 			reportSizes( "keyAdded" );
 			
-			total_keys++;
+			total_keys.incrementAndGet();
 			
 			return( delegate.keyCreated( key, local ));
 		}
@@ -3484,7 +4254,7 @@ DHTDBImpl
 		keyDeleted(
 			DHTStorageKey	adapter_key )
 		{
-			total_keys--;
+			total_keys.decrementAndGet();
 						
 			delegate.keyDeleted( adapter_key );
 
@@ -3521,8 +4291,8 @@ DHTDBImpl
 			DHTStorageKey		key,
 			DHTTransportValue	value )
 		{
-			total_values++;
-			total_size += value.getValue().length;
+			total_values.incrementAndGet();
+			total_size.addAndGet( value.getValue().length );
 			
 			reportSizes( "valueAdded");
 			
@@ -3547,7 +4317,7 @@ DHTDBImpl
 			DHTTransportValue	old_value,
 			DHTTransportValue	new_value )
 		{
-			total_size += (new_value.getValue().length - old_value.getValue().length );
+			total_size.addAndGet( new_value.getValue().length - old_value.getValue().length );
 			
 			reportSizes("valueUpdated");
 			
@@ -3559,8 +4329,8 @@ DHTDBImpl
 			DHTStorageKey		key,
 			DHTTransportValue	value )
 		{
-			total_values--;
-			total_size -= value.getValue().length;
+			total_values.decrementAndGet();
+			total_size.addAndGet( -value.getValue().length );
 		
 			reportSizes("valueDeleted");
 			
@@ -3675,6 +4445,24 @@ DHTDBImpl
 		}
 	}
 	
+	protected static class
+	StoreShard
+	{
+		private AEMonitor	mon;
+		
+		private Map<HashWrapper,DHTDBMapping>				stored_values 	= new ConcurrentHashMap<HashWrapper,DHTDBMapping>();
+		private Map<DHTDBMapping.ShortHash,DHTDBMapping>	prefix_map		= new ConcurrentHashMap<DHTDBMapping.ShortHash,DHTDBMapping>();
+		
+		private long	last_cache_expiry_check;
+		
+		protected
+		StoreShard(
+			int		index )
+		{
+			mon	= new AEMonitor( "DHTDB:shard" + index );
+		}
+	}
+	
 	protected static class
 	SurveyContactState
 	{
@@ -820,6 +820,8 @@ DHTDBMapping
 			removeFromBloom( value );
 		}
 		
+		db.valueRemoved( this, value );
+		
 		try{
 			if ( adapter_key != null ){
 				
@@ -846,6 +848,8 @@ DHTDBMapping
 			addToBloom( value );
 		}
 
+		db.valueStored( this, null, value );
+		
 		try{
 			if ( adapter_key != null ){
 				
@@ -877,6 +881,8 @@ DHTDBMapping
 			addToBloom( new_value );
 		}
 		
+		db.valueStored( this, old_value, new_value );
+		
 		try{
 			if ( adapter_key != null ){
 				
@@ -0,0 +1,780 @@
+/*
+ * Created on Oct 19, 2026
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package com.aelitis.azureus.core.dht.db.impl;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.CRC32;
+
+import org.gudy.azureus2.core3.util.AEMonitor;
+import org.gudy.azureus2.core3.util.Debug;
+import org.gudy.azureus2.core3.util.HashWrapper;
+
+import com.aelitis.azureus.core.dht.transport.DHTTransport;
+import com.aelitis.azureus.core.dht.transport.DHTTransportContact;
+
+/**
+ * Append-only log of the cached (non-local) values held by a DHTDBImpl so that they can be
+ * served straight away after a restart.
+ *
+ * Every add or update of a value appends a put record and every removal a delete record,
+ * the last record for a key/originator wins when the log is replayed. Each record is framed
+ * with its length and a CRC; replay stops at the first torn or corrupt record (e.g. from a
+ * crash mid-write) and the log is truncated there so that later appends follow good data.
+ * After a failed write nothing more is appended until a compaction has rewritten the log.
+ * The log is compacted by rewriting it from a
+ * snapshot of the live values once dead records outnumber live ones; appends made while the
+ * snapshot is being written are buffered and added to the end of the new file.
+ *
+ * Writes are buffered and only flushed by {@link #flush()} and on compaction/close, losing the
+ * last few seconds of changes on a crash just means they are re-learnt from the network.
+ */
+public class
+DHTDBValueStore
+{
+	private static final int	MAGIC		= 0x44484456;	// DHDV
+	private static final byte	VERSION		= 2;
+
+	private static final byte	RT_PUT		= 1;
+	private static final byte	RT_DELETE	= 2;
+
+	private static final int	MIN_COMPACTION_RECORDS	= 1024;
+	private static final int	MAX_RECORD_SIZE			= 256*1024;
+
+	private File				file;
+
+	private AEMonitor			this_mon	= new AEMonitor( "DHTDBValueStore" );
+
+	private DataOutputStream		log;
+	private ByteArrayOutputStream	pending;
+
+	private int		live_records;
+	private int		dead_records;
+
+	private boolean	write_failed;
+
+	protected
+	DHTDBValueStore(
+		File		_file )
+	{
+		file	= _file;
+	}
+
+	protected File
+	getFile()
+	{
+		return( file );
+	}
+
+	protected long
+	getFileSize()
+	{
+		return( file.length());
+	}
+
+		/**
+		 * Replays the log, dropping values rejected by the filter (e.g. those that have expired)
+		 * @return live values by key then originator id
+		 */
+
+	protected Map<HashWrapper,Map<HashWrapper,DHTDBValueImpl>>
+	load(
+		DHTTransport		transport,
+		valueFilter			filter )
+	{
+		Map<HashWrapper,Map<HashWrapper,DHTDBValueImpl>>	result = new LinkedHashMap<HashWrapper,Map<HashWrapper,DHTDBValueImpl>>();
+
+		int	records = 0;
+
+		if ( file.exists()){
+
+			long	good_length = 0;
+			boolean	truncate	= false;
+
+			try{
+				DataInputStream	dis = new DataInputStream( new BufferedInputStream( new FileInputStream( file )));
+
+				try{
+					if ( dis.readInt() != MAGIC || dis.readByte() != VERSION ){
+
+						throw( new IOException( "Unrecognised value store format" ));
+					}
+
+					good_length = 5;
+
+					while( true ){
+
+						int	length;
+
+						try{
+							length = dis.readInt();
+
+						}catch( EOFException e ){
+
+								// clean end, or a torn length field
+
+							truncate = true;
+
+							break;
+						}
+
+						byte[]	record;
+
+						try{
+							if ( length <= 0 || length > MAX_RECORD_SIZE ){
+
+								throw( new IOException( "Invalid record length " + length ));
+							}
+
+							long	crc = dis.readInt()&0xffffffffL;
+
+							record = new byte[length];
+
+							dis.readFully( record );
+
+							if ( crc( record ) != crc ){
+
+								throw( new IOException( "Record CRC mismatch" ));
+							}
+
+							replay( transport, record, result );
+
+						}catch( IOException e ){
+
+								// torn or corrupt, keep everything before it
+
+							if ( !( e instanceof EOFException )){
+
+								Debug.out( "DHT value store " + file + " damaged at offset " + good_length + ", truncating: " + e.getMessage());
+							}
+
+							truncate = true;
+
+							break;
+						}
+
+						good_length += 8 + length;
+
+						records++;
+					}
+				}finally{
+
+					dis.close();
+				}
+			}catch( Throwable e ){
+
+				Debug.out( "Failed to load DHT value store " + file + ", discarding it", e );
+
+				result.clear();
+
+				records			= 0;
+				good_length		= 0;
+				truncate		= true;
+			}
+
+			if ( truncate && good_length < file.length()){
+
+				truncate( good_length );
+			}
+		}
+
+		int	live = 0;
+
+		Iterator<Map<HashWrapper,DHTDBValueImpl>>	it = result.values().iterator();
+
+		while( it.hasNext()){
+
+			Iterator<Map.Entry<HashWrapper,DHTDBValueImpl>>	it2 = it.next().entrySet().iterator();
+
+			while( it2.hasNext()){
+
+				if ( filter.accept( it2.next().getValue())){
+
+					live++;
+
+				}else{
+
+					it2.remove();
+				}
+			}
+		}
+
+		it = result.values().iterator();
+
+		while( it.hasNext()){
+
+			if ( it.next().size() == 0 ){
+
+				it.remove();
+			}
+		}
+
+		try{
+			this_mon.enter();
+
+			live_records	= live;
+			dead_records	= Math.max( 0, records - live );
+
+		}finally{
+
+			this_mon.exit();
+		}
+
+		return( result );
+	}
+
+	private static void
+	replay(
+		DHTTransport									transport,
+		byte[]											record,
+		Map<HashWrapper,Map<HashWrapper,DHTDBValueImpl>>	result )
+
+		throws IOException
+	{
+		DataInputStream	dis = new DataInputStream( new ByteArrayInputStream( record ));
+
+		byte	type = dis.readByte();
+
+		HashWrapper	key = new HashWrapper( readBytes( dis ));
+
+		if ( type == RT_PUT ){
+
+			DHTDBValueImpl	value = readValue( transport, dis );
+
+			Map<HashWrapper,DHTDBValueImpl>	values = result.get( key );
+
+			if ( values == null ){
+
+				values = new LinkedHashMap<HashWrapper,DHTDBValueImpl>();
+
+				result.put( key, values );
+			}
+
+			values.put( new HashWrapper( value.getOriginator().getID()), value );
+
+		}else if ( type == RT_DELETE ){
+
+			HashWrapper	originator_id = new HashWrapper( readBytes( dis ));
+
+			Map<HashWrapper,DHTDBValueImpl>	values = result.get( key );
+
+			if ( values != null ){
+
+				values.remove( originator_id );
+
+				if ( values.size() == 0 ){
+
+					result.remove( key );
+				}
+			}
+		}else{
+
+			throw( new IOException( "Invalid record type " + type ));
+		}
+	}
+
+	private void
+	truncate(
+		long	length )
+	{
+		try{
+			if ( length == 0 ){
+
+				file.delete();
+
+			}else{
+
+				RandomAccessFile	raf = new RandomAccessFile( file, "rw" );
+
+				try{
+					raf.setLength( length );
+
+				}finally{
+
+					raf.close();
+				}
+			}
+		}catch( Throwable e ){
+
+				// appending after the damage would hide everything we write from the next load
+
+			Debug.out( "Failed to truncate DHT value store " + file + ", discarding it", e );
+
+			file.delete();
+		}
+	}
+
+	protected void
+	logPut(
+		HashWrapper			key,
+		DHTDBValueImpl		value,
+		boolean				replaces )
+	{
+		try{
+			this_mon.enter();
+
+			if ( write_failed && pending == null ){
+
+				return;
+			}
+
+			DataOutputStream	os = getOutput();
+
+			writePut( os, key, value );
+
+			live_records++;
+
+			if ( replaces ){
+
+				live_records--;
+				dead_records++;
+			}
+		}catch( Throwable e ){
+
+			logFailed( e );
+
+		}finally{
+
+			this_mon.exit();
+		}
+	}
+
+	protected void
+	logDelete(
+		HashWrapper			key,
+		DHTDBValueImpl		value )
+	{
+		try{
+			this_mon.enter();
+
+			if ( write_failed && pending == null ){
+
+				return;
+			}
+
+			ByteArrayOutputStream	record = new ByteArrayOutputStream( 64 );
+
+			DataOutputStream	dos = new DataOutputStream( record );
+
+			dos.writeByte( RT_DELETE );
+
+			writeBytes( dos, key.getBytes());
+
+			writeBytes( dos, value.getOriginator().getID());
+
+			writeRecord( getOutput(), record.toByteArray());
+
+				// kills the put as well as itself
+
+			live_records--;
+			dead_records += 2;
+
+		}catch( Throwable e ){
+
+			logFailed( e );
+
+		}finally{
+
+			this_mon.exit();
+		}
+	}
+
+	protected boolean
+	needsCompaction()
+	{
+		try{
+			this_mon.enter();
+
+			return( pending == null && dead_records > MIN_COMPACTION_RECORDS && dead_records > live_records );
+
+		}finally{
+
+			this_mon.exit();
+		}
+	}
+
+		/**
+		 * Starts a compaction, subsequent appends are held in memory until it completes. The
+		 * caller must make sure no values change between taking its snapshot and calling this
+		 */
+
+	protected void
+	startCompaction(
+		int		snapshot_records )
+	{
+		try{
+			this_mon.enter();
+
+			pending = new ByteArrayOutputStream();
+
+			live_records	= snapshot_records;
+			dead_records	= 0;
+
+		}finally{
+
+			this_mon.exit();
+		}
+	}
+
+	protected void
+	completeCompaction(
+		byte[]		snapshot )
+	{
+		File	saving = new File( file.getParentFile(), file.getName() + ".saving" );
+
+		try{
+				// bulk of the writing is done without the monitor so appends aren't held up
+
+			FileOutputStream	fos = new FileOutputStream( saving );
+
+			DataOutputStream	dos = new DataOutputStream( new BufferedOutputStream( fos ));
+
+			boolean	ok = false;
+
+			try{
+				dos.writeInt( MAGIC );
+				dos.writeByte( VERSION );
+
+				dos.write( snapshot );
+
+				try{
+					this_mon.enter();
+
+					if ( pending != null ){
+
+						pending.writeTo( dos );
+					}
+
+					dos.flush();
+
+					fos.getFD().sync();
+
+					dos.close();
+
+					dos = null;
+
+					closeLog();
+
+					file.delete();
+
+					if ( !saving.renameTo( file )){
+
+						throw( new IOException( "Failed to rename " + saving + " to " + file ));
+					}
+
+					write_failed = false;
+
+					ok = true;
+
+				}finally{
+
+					ByteArrayOutputStream	buffered = pending;
+
+					pending = null;
+
+					if ( !ok ){
+
+						if ( write_failed ){
+
+								// old log is still unusable, try again next time
+
+							dead_records = Math.max( dead_records, MIN_COMPACTION_RECORDS + live_records + 1 );
+
+						}else if ( buffered != null ){
+
+								// keep what we can in the old log, the next compaction will tidy up
+
+							try{
+								DataOutputStream	os = getOutput();
+
+								buffered.writeTo( os );
+
+							}catch( Throwable e ){
+
+								logFailed( e );
+							}
+						}
+					}
+
+					this_mon.exit();
+				}
+			}finally{
+
+				if ( dos != null ){
+
+					dos.close();
+				}
+
+				if ( !ok ){
+
+					saving.delete();
+				}
+			}
+		}catch( Throwable e ){
+
+			Debug.out( "Failed to compact DHT value store " + file, e );
+		}
+	}
+
+	protected void
+	flush()
+	{
+		try{
+			this_mon.enter();
+
+			if ( log != null ){
+
+				log.flush();
+			}
+		}catch( Throwable e ){
+
+			logFailed( e );
+
+		}finally{
+
+			this_mon.exit();
+		}
+	}
+
+	protected void
+	close()
+	{
+		try{
+			this_mon.enter();
+
+			closeLog();
+
+		}finally{
+
+			this_mon.exit();
+		}
+	}
+
+	private DataOutputStream
+	getOutput()
+
+		throws IOException
+	{
+		if ( pending != null ){
+
+			return( new DataOutputStream( pending ));
+		}
+
+		if ( log == null ){
+
+			boolean	exists = file.exists() && file.length() > 0;
+
+			log = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( file, exists )));
+
+			if ( !exists ){
+
+				log.writeInt( MAGIC );
+				log.writeByte( VERSION );
+			}
+		}
+
+		return( log );
+	}
+
+	private void
+	closeLog()
+	{
+		if ( log != null ){
+
+			try{
+				log.close();
+
+			}catch( Throwable e ){
+
+				Debug.printStackTrace( e );
+			}
+
+			log = null;
+		}
+	}
+
+	private void
+	logFailed(
+		Throwable	e )
+	{
+			// stop writing until the next compaction rewrites the whole thing, anything torn
+			// at the end is truncated by the next load
+
+		Debug.out( "DHT value store write failed", e );
+
+		closeLog();
+
+		write_failed = true;
+
+		dead_records = Math.max( dead_records, MIN_COMPACTION_RECORDS + live_records + 1 );
+	}
+
+	protected static void
+	writePut(
+		DataOutputStream	os,
+		HashWrapper			key,
+		DHTDBValueImpl		value )
+
+		throws IOException
+	{
+			// serialised in full first so a failure doesn't leave half a record behind
+
+		ByteArrayOutputStream	record = new ByteArrayOutputStream( 256 );
+
+		DataOutputStream	dos = new DataOutputStream( record );
+
+		dos.writeByte( RT_PUT );
+
+		writeBytes( dos, key.getBytes());
+
+		writeContact( dos, value.getOriginator());
+		writeContact( dos, value.getSender());
+
+		dos.writeLong( value.getCreationTime());
+		dos.writeInt( value.getVersion());
+		dos.writeByte( value.getFlags());
+		dos.writeByte( value.getLifeTimeHours());
+		dos.writeByte( value.getReplicationControl());
+
+		writeBytes( dos, value.getValue());
+
+		writeRecord( os, record.toByteArray());
+	}
+
+	private static void
+	writeRecord(
+		DataOutputStream	os,
+		byte[]				record )
+
+		throws IOException
+	{
+		os.writeInt( record.length );
+		os.writeInt((int)crc( record ));
+		os.write( record );
+	}
+
+	private static long
+	crc(
+		byte[]		record )
+	{
+		CRC32	crc = new CRC32();
+
+		crc.update( record );
+
+		return( crc.getValue());
+	}
+
+	private static DHTDBValueImpl
+	readValue(
+		DHTTransport		transport,
+		DataInputStream		is )
+
+		throws IOException
+	{
+		DHTTransportContact	originator	= readContact( transport, is );
+		DHTTransportContact	sender		= readContact( transport, is );
+
+		long	creation_time	= is.readLong();
+		int		version			= is.readInt();
+		int		flags			= is.readByte()&0xff;
+		int		life_hours		= is.readByte()&0xff;
+		byte	rep_control		= is.readByte();
+
+		byte[]	value = readBytes( is );
+
+		return( new DHTDBValueImpl( creation_time, value, version, originator, sender, false, flags, life_hours, rep_control ));
+	}
+
+	private static void
+	writeContact(
+		DataOutputStream		os,
+		DHTTransportContact		contact )
+
+		throws IOException
+	{
+		try{
+			contact.exportContact( os );
+
+		}catch( IOException e ){
+
+			throw( e );
+
+		}catch( Throwable e ){
+
+			throw( new IOException( "Failed to export contact: " + Debug.getNestedExceptionMessage( e )));
+		}
+	}
+
+	private static DHTTransportContact
+	readContact(
+		DHTTransport		transport,
+		DataInputStream		is )
+
+		throws IOException
+	{
+		try{
+			return( transport.importContact( is ));
+
+		}catch( IOException e ){
+
+			throw( e );
+
+		}catch( Throwable e ){
+
+			throw( new IOException( "Failed to import contact: " + Debug.getNestedExceptionMessage( e )));
+		}
+	}
+
+	private static void
+	writeBytes(
+		DataOutputStream	os,
+		byte[]				bytes )
+
+		throws IOException
+	{
+		os.writeInt( bytes.length );
+		os.write( bytes );
+	}
+
+	private static byte[]
+	readBytes(
+		DataInputStream		is )
+
+		throws IOException
+	{
+		int	len = is.readInt();
+
+		if ( len < 0 || len > 65536 ){
+
+			throw( new IOException( "Invalid length " + len ));
+		}
+
+		byte[]	bytes = new byte[len];
+
+		is.readFully( bytes );
+
+		return( bytes );
+	}
+
+	protected interface
+	valueFilter
+	{
+		public boolean
+		accept(
+			DHTDBValueImpl	value );
+	}
+}
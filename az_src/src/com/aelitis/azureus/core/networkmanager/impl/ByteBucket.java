@@ -31,6 +31,9 @@ import com.aelitis.azureus.core.networkmanager.NetworkManager;
  * Byte-bucket implementation based on the token bucket algorithm.
  * Buckets can be configured with a guaranteed normal rate, along with
  * a burst rate.
+ * Buckets are shared between the read/write processor threads so are thread safe. Two threads
+ * can be granted the same bytes, the overdraw is carried as a debt and repaid from later
+ * fills so the long term rate holds.
  */
 public class ByteBucket {
   
@@ -68,9 +71,9 @@ public class ByteBucket {
    * Get the number of bytes currently available for use.
    * @return number of free bytes
    */
-  public int getAvailableByteCount() {
+  public synchronized int getAvailableByteCount() {
     update_avail_byte_count();
-    return (int)avail_bytes;
+    return avail_bytes < 0 ? 0 : (int)avail_bytes;
   }
   
   
@@ -78,9 +81,8 @@ public class ByteBucket {
    * Update the bucket with the number of bytes just used.
    * @param bytes_used
    */
-  public void setBytesUsed( int bytes_used ) {
+  public synchronized void setBytesUsed( int bytes_used ) {
     avail_bytes -= bytes_used;
-    if( avail_bytes < 0 ) Debug.out( "avail_bytes < 0: " + avail_bytes);
   }
   
   
@@ -112,7 +114,7 @@ public class ByteBucket {
    * @param rate_bytes_per_sec
    * @param burst_rate
    */
-  public void setRate( int rate_bytes_per_sec, int burst_rate ) {
+  public synchronized void setRate( int rate_bytes_per_sec, int burst_rate ) {
     if( rate_bytes_per_sec < 0 ) {
       Debug.out("rate_bytes_per_sec [" +rate_bytes_per_sec+ "] < 0");
       rate_bytes_per_sec = 0;
@@ -133,7 +135,6 @@ public class ByteBucket {
           avail_bytes +=((now -prev_update_time) * rate) / 1000;
           prev_update_time =now;
           if( avail_bytes > burst_rate ) avail_bytes = burst_rate;
-          else if( avail_bytes < 0 )  Debug.out("ERROR: avail_bytes < 0: " + avail_bytes);
       }
       else if (prev_update_time >now) {	//oops, time went backwards
           avail_bytes =burst_rate;
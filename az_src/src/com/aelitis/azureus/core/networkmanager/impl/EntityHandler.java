@@ -36,12 +36,15 @@ import com.aelitis.azureus.core.networkmanager.*;
  * connections by default.  Connections can also be "upgraded"
  * to a higher connection control level, i.e. each connection
  * has its own specialized entity for performance purposes.
+ * The global pool is split into one entity per read/write processor shard
+ * and each connection is pinned, by hash, to one of them. Upgraded entities
+ * are placed on the same shard as the connection's pool entity.
  */
 public class EntityHandler {
   private final HashMap upgraded_connections = new HashMap();
   private final AEMonitor lock = new AEMonitor( "EntityHandler" );
-  private final MultiPeerUploader global_uploader;
-  private final MultiPeerDownloader global_downloader;
+  private final MultiPeerUploader[] global_uploaders;
+  private final MultiPeerDownloader[] global_downloaders;
   private boolean global_registered = false;
   private final int handler_type;
   
@@ -53,16 +56,66 @@ public class EntityHandler {
    */
   public EntityHandler( int type, RateHandler rate_handler ) {
     this.handler_type = type;
+    int shards = NetworkManager.getControllerShardCount();
+    
+    //all pool entities share the one global rate handler
+    rate_handler = countBytes( rate_handler );
+    
     if( handler_type == TransferProcessor.TYPE_UPLOAD ) {
-      global_uploader = new MultiPeerUploader( rate_handler );
-      global_downloader = null;
+      global_uploaders = new MultiPeerUploader[ shards ];
+      for( int i=0; i < shards; i++ ) {
+        global_uploaders[i] = new MultiPeerUploader( rate_handler );
+      }
+      global_downloaders = null;
     }
     else {  //download type
-      global_downloader = new MultiPeerDownloader( rate_handler );
-      global_uploader = null;
+      global_downloaders = new MultiPeerDownloader[ shards ];
+      for( int i=0; i < shards; i++ ) {
+        global_downloaders[i] = new MultiPeerDownloader( rate_handler );
+      }
+      global_uploaders = null;
     }
   }
   
+  
+  private static int getShard( NetworkConnectionBase connection, int shards ) {
+    return( (System.identityHashCode( connection ) & 0x7fffffff) % shards );
+  }
+  
+  private MultiPeerUploader getGlobalUploader( NetworkConnectionBase connection ) {
+    return global_uploaders[ getShard( connection, global_uploaders.length )];
+  }
+  
+  private MultiPeerDownloader getGlobalDownloader( NetworkConnectionBase connection ) {
+    return global_downloaders[ getShard( connection, global_downloaders.length )];
+  }
+  
+  
+  /**
+   * Wraps a rate handler so the processed bytes are also credited to the
+   * processor shard doing the work, for its stats.
+   */
+  private RateHandler countBytes( final RateHandler handler ) {
+    final boolean upload = handler_type == TransferProcessor.TYPE_UPLOAD;
+    
+    return new RateHandler() {
+      public int getCurrentNumBytesAllowed() {
+        return handler.getCurrentNumBytesAllowed();
+      }
+      
+      public void bytesProcessed( int num_bytes_processed ) {
+        handler.bytesProcessed( num_bytes_processed );
+        
+        if( upload ) {
+          WriteController.bytesProcessed( num_bytes_processed );
+        }
+        else {
+          ReadController.bytesProcessed( num_bytes_processed );
+        }
+      }
+    };
+  }
+  
 
   
   /**
@@ -73,10 +126,14 @@ public class EntityHandler {
     try {  lock.enter();
       if( !global_registered ) {
         if( handler_type == TransferProcessor.TYPE_UPLOAD ) {
-          NetworkManager.getSingleton().addWriteEntity( global_uploader );  //register global upload entity
+          for( int i=0; i < global_uploaders.length; i++ ) {
+            NetworkManager.getSingleton().addWriteEntity( global_uploaders[i], i );  //register global upload entity
+          }
         }
         else {
-          NetworkManager.getSingleton().addReadEntity( global_downloader );  //register global download entity
+          for( int i=0; i < global_downloaders.length; i++ ) {
+            NetworkManager.getSingleton().addReadEntity( global_downloaders[i], i );  //register global download entity
+          }
         }
         
         global_registered = true;
@@ -85,10 +142,10 @@ public class EntityHandler {
     finally {  lock.exit();  }
     
     if( handler_type == TransferProcessor.TYPE_UPLOAD ) {
-      global_uploader.addPeerConnection( connection );
+      getGlobalUploader( connection ).addPeerConnection( connection );
     }
     else {
-      global_downloader.addPeerConnection( connection );
+      getGlobalDownloader( connection ).addPeerConnection( connection );
     }
   }
   
@@ -99,7 +156,7 @@ public class EntityHandler {
    */
   public void cancelPeerConnection( NetworkConnectionBase connection ) {
     if( handler_type == TransferProcessor.TYPE_UPLOAD ) {
-      if( !global_uploader.removePeerConnection( connection ) ) {  //if not found in the pool entity
+      if( !getGlobalUploader( connection ).removePeerConnection( connection ) ) {  //if not found in the pool entity
         SinglePeerUploader upload_entity = (SinglePeerUploader)upgraded_connections.remove( connection );  //check for it in the upgraded list
         if( upload_entity != null ) {
           NetworkManager.getSingleton().removeWriteEntity( upload_entity );  //cancel from write processing
@@ -107,7 +164,7 @@ public class EntityHandler {
       }
     }
     else {
-      if( !global_downloader.removePeerConnection( connection ) ) {  //if not found in the pool entity
+      if( !getGlobalDownloader( connection ).removePeerConnection( connection ) ) {  //if not found in the pool entity
         SinglePeerDownloader download_entity = (SinglePeerDownloader)upgraded_connections.remove( connection );  //check for it in the upgraded list
         if( download_entity != null ) {
           NetworkManager.getSingleton().removeReadEntity( download_entity );  //cancel from read processing
@@ -126,19 +183,19 @@ public class EntityHandler {
   public void upgradePeerConnection( NetworkConnectionBase connection, RateHandler handler ) {   
     try {  lock.enter();
       if( handler_type == TransferProcessor.TYPE_UPLOAD ) {
-        SinglePeerUploader upload_entity = new SinglePeerUploader( connection, handler );
-        if( !global_uploader.removePeerConnection( connection ) ) {  //remove it from the general upload pool
+        SinglePeerUploader upload_entity = new SinglePeerUploader( connection, countBytes( handler ));
+        if( !getGlobalUploader( connection ).removePeerConnection( connection ) ) {  //remove it from the general upload pool
           Debug.out( "upgradePeerConnection:: upload entity not found/removed !" );
         }
-        NetworkManager.getSingleton().addWriteEntity( upload_entity );  //register it for write processing
+        NetworkManager.getSingleton().addWriteEntity( upload_entity, getShard( connection, global_uploaders.length ));  //register it for write processing
         upgraded_connections.put( connection, upload_entity );  //add it to the upgraded list
       }
       else {
-        SinglePeerDownloader download_entity = new SinglePeerDownloader( connection, handler );
-        if( !global_downloader.removePeerConnection( connection ) ) {  //remove it from the general upload pool
+        SinglePeerDownloader download_entity = new SinglePeerDownloader( connection, countBytes( handler ));
+        if( !getGlobalDownloader( connection ).removePeerConnection( connection ) ) {  //remove it from the general upload pool
           Debug.out( "upgradePeerConnection:: download entity not found/removed !" );
         }
-        NetworkManager.getSingleton().addReadEntity( download_entity );  //register it for read processing
+        NetworkManager.getSingleton().addReadEntity( download_entity, getShard( connection, global_downloaders.length ));  //register it for read processing
         upgraded_connections.put( connection, download_entity );  //add it to the upgraded list
       }
     }
@@ -160,7 +217,7 @@ public class EntityHandler {
         else {
           Debug.out( "upload_entity == null" );
         }
-        global_uploader.addPeerConnection( connection );  //move back to the general pool
+        getGlobalUploader( connection ).addPeerConnection( connection );  //move back to the general pool
       }
       else {
         SinglePeerDownloader download_entity = (SinglePeerDownloader)upgraded_connections.remove( connection );  //remove from the upgraded list  
@@ -170,7 +227,7 @@ public class EntityHandler {
         else {
           Debug.out( "download_entity == null" );
         }
-        global_downloader.addPeerConnection( connection );  //move back to the general pool
+        getGlobalDownloader( connection ).addPeerConnection( connection );  //move back to the general pool
       } 
     }
     finally {  lock.exit();  }
@@ -24,9 +24,11 @@
 package com.aelitis.azureus.core.networkmanager.impl;
 
 import java.io.IOException;
-import java.lang.ref.WeakReference;
 import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.gudy.azureus2.core3.util.*;
 
@@ -40,32 +42,47 @@ import com.aelitis.azureus.core.peermanager.messaging.*;
 
 /**
  * Priority-based outbound peer message queue.
+ *
+ * Messages are added without locking: producers push onto a lock-free pending list which
+ * the consumer (the transport writer, or a caller removing messages) merges into the priority
+ * ordered ring under the queue monitor. Listener notifications queued for manual delivery are
+ * held the same way and drained as a batch.
  */
 public class 
 OutgoingMessageQueueImpl
 	implements OutgoingMessageQueue
 {
-  private final LinkedList 		queue		= new LinkedList();
+  private static final MessageQueueListener[]	NO_LISTENERS = new MessageQueueListener[0];
+
+  private final MessageRing	queue		= new MessageRing();
   private final AEMonitor	queue_mon	= new AEMonitor( "OutgoingMessageQueue:queue" );
 
-  private final ArrayList delayed_notifications = new ArrayList();
-  private final AEMonitor delayed_notifications_mon = new AEMonitor( "OutgoingMessageQueue:DN" );
+  	// multiple producers, drained into the ring by whoever holds queue_mon
+
+  private final ConcurrentLinkedQueue	pending_adds	= new ConcurrentLinkedQueue();
+
+  private final ConcurrentLinkedQueue delayed_notifications = new ConcurrentLinkedQueue();
 
-  private volatile ArrayList listeners 		= new ArrayList();  //copied-on-write
+  private volatile MessageQueueListener[] listeners 		= NO_LISTENERS;  //copied-on-write
   private final AEMonitor listeners_mon		= new AEMonitor( "OutgoingMessageQueue:L");
   
-  private int total_size = 0;
-  private RawMessage urgent_message = null;
-  private boolean destroyed = false;
+  private final AtomicInteger total_size = new AtomicInteger();
+  private final AtomicReference urgent_message = new AtomicReference();
+  private volatile boolean destroyed = false;
   
   private MessageStreamEncoder stream_encoder;
   private Transport transport;
   
-  private int percent_complete = -1;
+  private volatile int percent_complete = -1;
+
+  	// gather arrays for the vectored transport write, only touched under queue_mon
+
+  private ByteBuffer[]	raw_buffers;
+  private int[]			orig_positions;
     
   private static final boolean TRACE_HISTORY = false;  //TODO
   private static final int MAX_HISTORY_TRACES = 30;
-  private final LinkedList prev_sent = new LinkedList();
+  private final LinkedList prev_sent = TRACE_HISTORY?new LinkedList():null;
   
   private boolean	trace;
   
@@ -121,16 +138,26 @@ OutgoingMessageQueueImpl
     try{
       queue_mon.enter();
     
-      while( !queue.isEmpty() ) {
-      	((RawMessage)queue.remove( 0 )).destroy();
+      destroyPending();
+
+      while( queue.size() > 0 ) {
+      	queue.remove( 0 ).destroy();
+      }
+
+      total_size.set( 0 );
+
+      if( TRACE_HISTORY ) {
+        prev_sent.clear();
+      }
+
+      if ( raw_buffers != null ){
+    	  Arrays.fill( raw_buffers, null );
       }
     }finally{
       queue_mon.exit();
     }
-    total_size = 0;
-    prev_sent.clear();
-    listeners = new ArrayList();
-    urgent_message = null;
+    listeners = NO_LISTENERS;
+    urgent_message.set( null );
   }
   
   
@@ -138,14 +165,14 @@ OutgoingMessageQueueImpl
    * Get the total number of bytes ready to be transported.
    * @return total bytes remaining
    */
-  public int getTotalSize() {  return total_size;  }
+  public int getTotalSize() {  return total_size.get();  }
   
   
   /**
    * Whether or not an urgent message (one that needs an immediate send, i.e. a no-delay message) is queued.
    * @return true if there's a message tagged for immediate write
    */
-  public boolean hasUrgentMessage() {  return urgent_message == null ? false : true;  }
+  public boolean hasUrgentMessage() {  return urgent_message.get() != null;  }
   
   
   /**
@@ -161,11 +188,10 @@ OutgoingMessageQueueImpl
   public void addMessage( Message message, boolean manual_listener_notify ) {
     //do message add notifications
     boolean allowed = true;
-    ArrayList list_ref = listeners;
+    MessageQueueListener[] list_ref = listeners;
     
-    for( int i=0; i < list_ref.size(); i++ ) {
-      MessageQueueListener listener = (MessageQueueListener)list_ref.get( i );
-      allowed = allowed && listener.messageAdded( message );
+    for( int i=0; i < list_ref.length; i++ ) {
+      allowed = allowed && list_ref[i].messageAdded( message );
     }
     
     if( !allowed ) {  //message addition not allowed
@@ -190,55 +216,90 @@ OutgoingMessageQueueImpl
     	
 	    removeMessagesOfType( rmesg.messagesToRemove(), manual_listener_notify );
 	    
-	    try{
-	      queue_mon.enter();
+	    total_size.addAndGet( getRemaining( rmesg ));
 	    
-	      int pos = 0;
-	      for( Iterator it = queue.iterator(); it.hasNext(); ) {
-	        RawMessage msg = (RawMessage)it.next();
-	        if( rmesg.getPriority() > msg.getPriority() 
-	          && msg.getRawData()[0].position(DirectByteBuffer.SS_NET) == 0 ) {  //but don't insert in front of a half-sent message
-	          break;
-	        }
-	        pos++;
-	      }
-	      if( rmesg.isNoDelay() ) {
-	        urgent_message = rmesg;
-	      }
-	      queue.add( pos, rmesg );
+	    if( rmesg.isNoDelay() ) {
+	      urgent_message.set( rmesg );
+	    }
 	      
-	      DirectByteBuffer[] payload = rmesg.getRawData();
-	      for( int j=0; j < payload.length; j++ ) {
-	        total_size += payload[j].remaining(DirectByteBuffer.SS_NET);
-	      }
-	    }finally{
-	      queue_mon.exit();
+	    pending_adds.offer( rmesg );
+
+	    if( destroyed ) {  //lost a race with destroy, it may not have seen the add
+	      destroyPending();
+	      return;
 	    }
 	    
 	    if( manual_listener_notify ) {  //register listener event for later, manual notification
 	      NotificationItem item = new NotificationItem( NotificationItem.MESSAGE_ADDED );
 	      item.message = rmesg;
-	      try {
-	        delayed_notifications_mon.enter();
-	        
-	        delayed_notifications.add( item );
-	      }
-	      finally {
-	        delayed_notifications_mon.exit();
-	      }
+	      delayed_notifications.offer( item );
 	    }
 	    else { //do listener notification now
-	      ArrayList listeners_ref = listeners;
+	      MessageQueueListener[] listeners_ref = listeners;
 	    
-	      for( int j=0; j < listeners_ref.size(); j++ ) {
-	        MessageQueueListener listener = (MessageQueueListener)listeners_ref.get( j );
-	        listener.messageQueued( rmesg.getBaseMessage() );
+	      for( int j=0; j < listeners_ref.length; j++ ) {
+	        listeners_ref[j].messageQueued( rmesg.getBaseMessage() );
 	      }
 	    }
     }
   }
   
 
+  /**
+   * Merges messages added since the last call into the priority ordered queue.
+   * Must be called holding queue_mon.
+   */
+  private void drainPending() {
+	  while( true ) {
+		  RawMessage rmesg = (RawMessage)pending_adds.poll();
+
+		  if ( rmesg == null ){
+			  return;
+		  }
+
+		  int pos = queue.size();
+
+		  	// common case is a message of no higher priority than the tail, which simply appends
+
+		  while( pos > 0 ) {
+			  RawMessage msg = queue.get( pos - 1 );
+			  if( rmesg.getPriority() > msg.getPriority()
+					  && msg.getRawData()[0].position(DirectByteBuffer.SS_NET) == 0 ) {  //but don't insert in front of a half-sent message
+				  pos--;
+			  }else{
+				  break;
+			  }
+		  }
+
+		  queue.add( pos, rmesg );
+	  }
+  }
+
+  private void destroyPending() {
+	  while( true ) {
+		  RawMessage rmesg = (RawMessage)pending_adds.poll();
+
+		  if ( rmesg == null ){
+			  return;
+		  }
+
+		  total_size.addAndGet( -getRemaining( rmesg ));
+
+		  urgent_message.compareAndSet( rmesg, null );
+
+		  rmesg.destroy();
+	  }
+  }
+
+  private static int getRemaining( RawMessage msg ) {
+	  DirectByteBuffer[] payload = msg.getRawData();
+	  int size = 0;
+	  for( int j=0; j < payload.length; j++ ) {
+		  size += payload[j].remaining(DirectByteBuffer.SS_NET);
+	  }
+	  return size;
+  }
+
   
   /**
    * Remove all messages of the given types from the queue.
@@ -258,31 +319,25 @@ OutgoingMessageQueueImpl
     try{
       queue_mon.enter();
     
-      for( Iterator i = queue.iterator(); i.hasNext(); ) {
-        RawMessage msg = (RawMessage)i.next();
+      drainPending();
+
+      for( int i=0; i < queue.size(); ) {
+        RawMessage msg = queue.get( i );
+
+        boolean removed = false;
         
         for( int t=0; t < message_types.length; t++ ) {
           boolean same_type = message_types[t].getID().equals( msg.getID() );
           
           if( same_type && msg.getRawData()[0].position(DirectByteBuffer.SS_NET) == 0 ) {   //dont remove a half-sent message
-            if( msg == urgent_message ) urgent_message = null;
+            urgent_message.compareAndSet( msg, null );
             
-            DirectByteBuffer[] payload = msg.getRawData();
-            for( int x=0; x < payload.length; x++ ) {
-              total_size -= payload[x].remaining(DirectByteBuffer.SS_NET);
-            }
+            total_size.addAndGet( -getRemaining( msg ));
             
             if( manual_listener_notify ) {
               NotificationItem item = new NotificationItem( NotificationItem.MESSAGE_REMOVED );
               item.message = msg;
-              try {
-                delayed_notifications_mon.enter();
-                
-                delayed_notifications.add( item );
-              }
-              finally {
-                delayed_notifications_mon.exit();
-              }
+              delayed_notifications.offer( item );
             }
             else {
               if ( messages_removed == null ){
@@ -290,10 +345,15 @@ OutgoingMessageQueueImpl
               }
               messages_removed.add( msg );
             }
-        		i.remove();
+        	queue.remove( i );
+        	removed = true;
             break;
         	}
         }
+
+        if( !removed ) {
+          i++;
+        }
       }
     }finally{
       queue_mon.exit();
@@ -301,14 +361,13 @@ OutgoingMessageQueueImpl
 
     if( !manual_listener_notify && messages_removed != null ) {
       //do listener notifications now
-      ArrayList listeners_ref = listeners;
+      MessageQueueListener[] listeners_ref = listeners;
         
       for( int x=0; x < messages_removed.size(); x++ ) {
         RawMessage msg = (RawMessage)messages_removed.get( x );
         
-        for( int i=0; i < listeners_ref.size(); i++ ) {
-          MessageQueueListener listener = (MessageQueueListener)listeners_ref.get( i );
-          listener.messageRemoved( msg.getBaseMessage() );
+        for( int i=0; i < listeners_ref.length; i++ ) {
+          listeners_ref[i].messageRemoved( msg.getBaseMessage() );
         }
         msg.destroy();
       }
@@ -339,19 +398,18 @@ OutgoingMessageQueueImpl
     try{
       queue_mon.enter();
 
-      for( Iterator it = queue.iterator(); it.hasNext(); ) {
-        RawMessage raw = (RawMessage)it.next();
+      drainPending();
+
+      for( int i=0; i < queue.size(); i++ ) {
+        RawMessage raw = queue.get( i );
         
         if( message.equals( raw.getBaseMessage() ) ) {
           if( raw.getRawData()[0].position(DirectByteBuffer.SS_NET) == 0 ) {  //dont remove a half-sent message
-            if( raw == urgent_message ) urgent_message = null;  
+            urgent_message.compareAndSet( raw, null );
             
-            DirectByteBuffer[] payload = raw.getRawData();
-            for( int x=0; x < payload.length; x++ ) {
-              total_size -= payload[x].remaining(DirectByteBuffer.SS_NET);
-            }
+            total_size.addAndGet( -getRemaining( raw ));
 
-            queue.remove( raw );
+            queue.remove( i );
             msg_removed = raw;
           }
           
@@ -367,21 +425,13 @@ OutgoingMessageQueueImpl
       if( manual_listener_notify ) { //delayed manual notification
         NotificationItem item = new NotificationItem( NotificationItem.MESSAGE_REMOVED );
         item.message = msg_removed;
-        try {
-          delayed_notifications_mon.enter();
-          
-          delayed_notifications.add( item );
-        }
-        finally {
-          delayed_notifications_mon.exit();
-        }
+        delayed_notifications.offer( item );
       }
       else {   //do listener notification now
-        ArrayList listeners_ref = listeners;
+        MessageQueueListener[] listeners_ref = listeners;
       
-        for( int i=0; i < listeners_ref.size(); i++ ) {
-          MessageQueueListener listener = (MessageQueueListener)listeners_ref.get( i );
-          listener.messageRemoved( msg_removed.getBaseMessage() );
+        for( int i=0; i < listeners_ref.length; i++ ) {
+          listeners_ref[i].messageRemoved( msg_removed.getBaseMessage() );
         }
         msg_removed.destroy();
       }
@@ -392,9 +442,6 @@ OutgoingMessageQueueImpl
   }
   
   
-  private WeakReference rawBufferCache = new WeakReference(null);
-  private WeakReference origPositionsCache = new WeakReference(null);
-  
   /**
    * Deliver (write) message(s) data to the underlying transport.
    * 
@@ -425,43 +472,42 @@ OutgoingMessageQueueImpl
 	  try{
 		  queue_mon.enter();
 
-		  if( !queue.isEmpty() ){
+		  drainPending();
 			  
-			  int buffer_limit 		= 64;
+		  if( queue.size() > 0 ){
 			  
-			  ByteBuffer[] raw_buffers 	= (ByteBuffer[])rawBufferCache.get();
-			  if(raw_buffers == null)
-			  {
-				  raw_buffers = new ByteBuffer[buffer_limit];
-				  rawBufferCache = new WeakReference(raw_buffers);
-			  } else
-			  {
-				  Arrays.fill(raw_buffers, null);
-			  }
-				  
-			  
-			  int[] orig_positions	= (int[])origPositionsCache.get();
-			  if(orig_positions == null)
-			  {
-				  orig_positions = new int[buffer_limit];
-				  origPositionsCache = new WeakReference(orig_positions);
-			  } else
-			  {
-				  Arrays.fill(orig_positions, 0);
+			  if ( raw_buffers == null ){
+
+				  raw_buffers 		= new ByteBuffer[16];
+				  orig_positions	= new int[16];
 			  }
-				  
-			  
 			  
 			  int			buffer_count	= 0;
 			  
 			  int total_sofar = 0;
 
+			  int	queue_size = queue.size();
+
 outer:
-			  for( Iterator i = queue.iterator(); i.hasNext(); ){
+			  for( int i=0; i < queue_size; i++ ){
 				  
-				  DirectByteBuffer[] payloads = ((RawMessage)i.next()).getRawData();
+				  DirectByteBuffer[] payloads = queue.get( i ).getRawData();
 
 				  for( int x=0; x < payloads.length; x++ ){
+
+					  if ( buffer_count == raw_buffers.length ) {
+
+						  int	new_buffer_limit	= raw_buffers.length * 2;
+
+						  ByteBuffer[] 	new_raw_buffers 	= new ByteBuffer[new_buffer_limit];
+						  int[]		 	new_orig_positions	= new int[new_buffer_limit];
+
+						  System.arraycopy( raw_buffers, 0, new_raw_buffers, 0, buffer_count );
+						  System.arraycopy( orig_positions, 0, new_orig_positions, 0, buffer_count );
+
+						  raw_buffers 		= new_raw_buffers;
+						  orig_positions	= new_orig_positions;
+					  }
 					  
 					  ByteBuffer buff = payloads[x].getBuffer( DirectByteBuffer.SS_NET );
 					  
@@ -477,22 +523,6 @@ outer:
 						
 						  break outer;
 					  }
-					  
-					  if ( buffer_count == buffer_limit ) {
-							
-						  int	new_buffer_limit	= buffer_limit * 2;
-						  
-						  ByteBuffer[] 	new_raw_buffers 	= new ByteBuffer[new_buffer_limit];
-						  int[]		 	new_orig_positions	= new int[new_buffer_limit];
-						  
-						  System.arraycopy( raw_buffers, 0, new_raw_buffers, 0, buffer_limit );
-						  System.arraycopy( orig_positions, 0, new_orig_positions, 0, buffer_limit );
-						  
-						  raw_buffers 		= new_raw_buffers;
-						  orig_positions	= new_orig_positions;
-						  
-						  buffer_limit 		= new_buffer_limit;
-					  }
 				  }
 			  }
 
@@ -505,22 +535,30 @@ outer:
 				  last_buff.limit( orig_last_limit - (total_sofar - max_bytes) );
 			  }
 
-			  transport.write( raw_buffers, 0, buffer_count );
+			  try{
+				  transport.write( raw_buffers, 0, buffer_count );
+
+			  }finally{
+
+				  last_buff.limit( orig_last_limit );
+
+				  	// don't hang on to buffers that may be returned to the pool once sent
 
-			  last_buff.limit( orig_last_limit );
+				  Arrays.fill( raw_buffers, 0, buffer_count, null );
+			  }
 
 			  int pos = 0;
 			  boolean stop = false;
 
-			  while( !queue.isEmpty() && !stop ) {
-				  RawMessage msg = (RawMessage)queue.get( 0 );
+			  while( queue.size() > 0 && !stop ) {
+				  RawMessage msg = queue.get( 0 );
 				  DirectByteBuffer[] payloads = msg.getRawData();
 
 				  for( int x=0; x < payloads.length; x++ ) {
 					  ByteBuffer bb = payloads[x].getBuffer( DirectByteBuffer.SS_NET );
 
 					  int bytes_written = (bb.limit() - bb.remaining()) - orig_positions[ pos ];
-					  total_size -= bytes_written;
+					  total_size.addAndGet( -bytes_written );
 
 					  if( x > 0 && msg.getType() == Message.TYPE_DATA_PAYLOAD ) {  //assumes the first buffer is message header
 						  data_written += bytes_written;
@@ -554,7 +592,7 @@ outer:
 						  break;
 					  }
 					  else if( x == payloads.length - 1 ) {  //last payload buffer of message is empty
-						  if( msg == urgent_message ) urgent_message = null;
+						  urgent_message.compareAndSet( msg, null );
 
 						  queue.remove( 0 );
 
@@ -570,9 +608,7 @@ outer:
 						  if( manual_listener_notify ) {
 							  NotificationItem item = new NotificationItem( NotificationItem.MESSAGE_SENT );
 							  item.message = msg;
-							  try {  delayed_notifications_mon.enter();
-							  delayed_notifications.add( item );
-							  } finally {  delayed_notifications_mon.exit();  }
+							  delayed_notifications.offer( item );
 						  }
 						  else {
 							  if( messages_sent == null ) {
@@ -605,38 +641,19 @@ outer:
 
 		  if( manual_listener_notify ) {
 
-			  if( data_written > 0 ) {  //data bytes notify
-				  NotificationItem item = new NotificationItem( NotificationItem.DATA_BYTES_SENT );
+			  if( data_written + protocol_written > 0 ) {  //one notification for both byte counts
+				  NotificationItem item = new NotificationItem( NotificationItem.BYTES_SENT );
 				  item.byte_count = data_written;
-				  try {
-					  delayed_notifications_mon.enter();
-
-					  delayed_notifications.add( item );
-				  }
-				  finally {
-					  delayed_notifications_mon.exit();
-				  }
-			  }
-
-			  if( protocol_written > 0 ) {  //protocol bytes notify
-				  NotificationItem item = new NotificationItem( NotificationItem.PROTOCOL_BYTES_SENT );
-				  item.byte_count = protocol_written;
-				  try {
-					  delayed_notifications_mon.enter();
-
-					  delayed_notifications.add( item );
-				  }
-				  finally {
-					  delayed_notifications_mon.exit();
-				  }
+				  item.protocol_byte_count = protocol_written;
+				  delayed_notifications.offer( item );
 			  }
 		  }
 		  else {  //do listener notification now
-			  ArrayList listeners_ref = listeners;
+			  MessageQueueListener[] listeners_ref = listeners;
 
-			  int num_listeners = listeners_ref.size();
+			  int num_listeners = listeners_ref.length;
 			  for( int i=0; i < num_listeners; i++ ) {
-				  MessageQueueListener listener = (MessageQueueListener)listeners_ref.get( i );
+				  MessageQueueListener listener = listeners_ref[i];
 
 				  if( data_written > 0 )  listener.dataBytesSent( data_written );
 				  if( protocol_written > 0 )  listener.protocolBytesSent( protocol_written );
@@ -670,20 +687,22 @@ outer:
 	  try{
 		  queue_mon.enter();
 
-		  if ( queue.isEmpty()){
+		  drainPending();
+
+		  if ( queue.size() == 0 ){
 			  
 			  return;
 		  }
 		  
 		  for (int i=0;i<queue.size();i++){
 			  
-			  RawMessage	msg = (RawMessage)queue.get(i);
+			  RawMessage	msg = queue.get(i);
 			  
 			  msg.setNoDelay();
 			  
 			  if ( i == 0 ){
 				  
-				  urgent_message = msg;
+				  urgent_message.set( msg );
 			  }
 		  }
 	  }finally{
@@ -691,11 +710,10 @@ outer:
 		  queue_mon.exit();
 	  }
 	    
-	  ArrayList list_ref = listeners;
+	  MessageQueueListener[] list_ref = listeners;
 
-	  for( int i=0; i < list_ref.size(); i++ ) {
-		 MessageQueueListener listener = (MessageQueueListener)list_ref.get( i );
-		 listener.flush();
+	  for( int i=0; i < list_ref.length; i++ ) {
+		 list_ref[i].flush();
 	  }
   }
   public boolean
@@ -708,58 +726,39 @@ outer:
    * Manually send any unsent listener notifications.
    */
   public void doListenerNotifications() {
-    ArrayList notifications_copy;
-    try {
-      delayed_notifications_mon.enter();
+    MessageQueueListener[] listeners_ref = listeners;
       
-      if( delayed_notifications.size() == 0 )  return;
-      notifications_copy = new ArrayList( delayed_notifications );
-      delayed_notifications.clear();
-    }
-    finally {
-      delayed_notifications_mon.exit();
-    }
-    
-    ArrayList listeners_ref = listeners;
+    while( true ) {  //for each notification
+      NotificationItem item = (NotificationItem)delayed_notifications.poll();
     
-    for( int j=0; j < notifications_copy.size(); j++ ) {  //for each notification
-      NotificationItem item = (NotificationItem)notifications_copy.get( j );
+      if( item == null )  return;
 
       switch( item.type ) {
         case NotificationItem.MESSAGE_ADDED:
-          for( int i=0; i < listeners_ref.size(); i++ ) {  //for each listener
-            MessageQueueListener listener = (MessageQueueListener)listeners_ref.get( i );
-            listener.messageQueued( item.message.getBaseMessage() );
+          for( int i=0; i < listeners_ref.length; i++ ) {  //for each listener
+            listeners_ref[i].messageQueued( item.message.getBaseMessage() );
           }
           break;
           
         case NotificationItem.MESSAGE_REMOVED:
-          for( int i=0; i < listeners_ref.size(); i++ ) {  //for each listener
-            MessageQueueListener listener = (MessageQueueListener)listeners_ref.get( i );
-            listener.messageRemoved( item.message.getBaseMessage() );
+          for( int i=0; i < listeners_ref.length; i++ ) {  //for each listener
+            listeners_ref[i].messageRemoved( item.message.getBaseMessage() );
           }
           item.message.destroy();
           break;
           
         case NotificationItem.MESSAGE_SENT:
-          for( int i=0; i < listeners_ref.size(); i++ ) {  //for each listener
-            MessageQueueListener listener = (MessageQueueListener)listeners_ref.get( i );
-            listener.messageSent( item.message.getBaseMessage() );
+          for( int i=0; i < listeners_ref.length; i++ ) {  //for each listener
+            listeners_ref[i].messageSent( item.message.getBaseMessage() );
           }
           item.message.destroy();
           break;
           
-        case NotificationItem.PROTOCOL_BYTES_SENT:
-          for( int i=0; i < listeners_ref.size(); i++ ) {  //for each listener
-            MessageQueueListener listener = (MessageQueueListener)listeners_ref.get( i );
-            listener.protocolBytesSent( item.byte_count );
-          }
-          break;
-          
-        case NotificationItem.DATA_BYTES_SENT:
-          for( int i=0; i < listeners_ref.size(); i++ ) {  //for each listener
-            MessageQueueListener listener = (MessageQueueListener)listeners_ref.get( i );
-            listener.dataBytesSent( item.byte_count );
+        case NotificationItem.BYTES_SENT:
+          for( int i=0; i < listeners_ref.length; i++ ) {  //for each listener
+            MessageQueueListener listener = listeners_ref[i];
+            if( item.byte_count > 0 )  listener.dataBytesSent( item.byte_count );
+            if( item.protocol_byte_count > 0 )  listener.protocolBytesSent( item.protocol_byte_count );
           }
           break;
           
@@ -787,26 +786,28 @@ outer:
   	try{
       queue_mon.enter();
       
+      drainPending();
       
-      int i=0;
+      if( TRACE_HISTORY ) {
+	      int i=0;
     	
-    	for( Iterator it = prev_sent.iterator(); it.hasNext(); ) {
-    		RawMessage raw = (RawMessage)it.next();
-        trace.append( "[#h" +i+ "]: ")
-             .append(raw.getID())
-             .append(" [")
-             .append(raw.getDescription())
-             .append("]")
-             .append("\n" );
-        i++;
-    	}      
-      
+	    	for( Iterator it = prev_sent.iterator(); it.hasNext(); ) {
+	    		RawMessage raw = (RawMessage)it.next();
+	        trace.append( "[#h" +i+ "]: ")
+	             .append(raw.getID())
+	             .append(" [")
+	             .append(raw.getDescription())
+	             .append("]")
+	             .append("\n" );
+	        i++;
+	    	}
+      }
       
 
       int position = queue.size() - 1;
 
-      for( Iterator it = queue.iterator(); it.hasNext(); ) {
-        RawMessage raw = (RawMessage)it.next();
+      for( int i=0; i < queue.size(); i++ ) {
+        RawMessage raw = queue.get( i );
         
         int pos = raw.getRawData()[0].position(DirectByteBuffer.SS_NET);
         int length = raw.getRawData()[0].limit( DirectByteBuffer.SS_NET );
@@ -842,9 +843,10 @@ outer:
   public void registerQueueListener( MessageQueueListener listener ) {
     try{  listeners_mon.enter();
       //copy-on-write
-      ArrayList new_list = new ArrayList( listeners.size() + 1 );
-      new_list.addAll( listeners );
-      new_list.add( listener );
+      MessageQueueListener[] old_list = listeners;
+      MessageQueueListener[] new_list = new MessageQueueListener[ old_list.length + 1 ];
+      System.arraycopy( old_list, 0, new_list, 0, old_list.length );
+      new_list[ old_list.length ] = listener;
       listeners = new_list;
     }
     finally{  listeners_mon.exit();  }
@@ -858,9 +860,9 @@ outer:
   public void cancelQueueListener( MessageQueueListener listener ) {
     try{  listeners_mon.enter();
       //copy-on-write
-      ArrayList new_list = new ArrayList( listeners );
+      ArrayList new_list = new ArrayList( Arrays.asList( listeners ));
       new_list.remove( listener );
-      listeners = new_list;
+      listeners = (MessageQueueListener[])new_list.toArray( new MessageQueueListener[new_list.size()] );
     }
     finally{  listeners_mon.exit();  }
   }
@@ -872,7 +874,7 @@ outer:
    * @param message sent externally
    */
   public void notifyOfExternallySentMessage( Message message ) {
-    ArrayList listeners_ref = listeners;
+    MessageQueueListener[] listeners_ref = listeners;
 
     DirectByteBuffer[] buffs = message.getData();
     int size = 0;
@@ -880,8 +882,8 @@ outer:
       size += buffs[i].remaining( DirectByteBuffer.SS_NET );
     }
     
-    for( int i=0; i < listeners_ref.size(); i++ ) {
-      MessageQueueListener listener = (MessageQueueListener)listeners_ref.get( i );
+    for( int i=0; i < listeners_ref.length; i++ ) {
+      MessageQueueListener listener = listeners_ref[i];
 
       listener.messageSent( message );
       
@@ -899,17 +901,75 @@ outer:
   
   
   
+  /**
+   * Growable circular array of queued messages. Sending removes from the head and most adds
+   * append at the tail, both without shifting. Not thread safe, guarded by queue_mon.
+   */
+
+  private static class MessageRing {
+	private RawMessage[] 	entries = new RawMessage[8];
+	private int				head;
+	private int				size;
+
+	private int size() {
+		return size;
+	}
+
+	private RawMessage get( int index ) {
+		return entries[(head + index) & (entries.length - 1)];
+	}
+
+	private void add( int index, RawMessage msg ) {
+		if ( size == entries.length ){
+			RawMessage[] new_entries = new RawMessage[entries.length * 2];
+			for( int i=0; i < size; i++ ) {
+				new_entries[i] = get( i );
+			}
+			entries = new_entries;
+			head = 0;
+		}
+
+		int mask = entries.length - 1;
+
+		for( int i=size; i > index; i-- ) {
+			entries[(head + i) & mask] = entries[(head + i - 1) & mask];
+		}
+
+		entries[(head + index) & mask] = msg;
+		size++;
+	}
+
+	private RawMessage remove( int index ) {
+		int mask = entries.length - 1;
+
+		RawMessage msg = entries[(head + index) & mask];
+
+		if ( index == 0 ){
+			entries[head] = null;
+			head = (head + 1) & mask;
+		}else{
+			for( int i=index; i < size - 1; i++ ) {
+				entries[(head + i) & mask] = entries[(head + i + 1) & mask];
+			}
+			entries[(head + size - 1) & mask] = null;
+		}
+
+		size--;
+
+		return msg;
+	}
+  }
   
   
   private static class NotificationItem {
     private static final int MESSAGE_ADDED        = 0;
     private static final int MESSAGE_REMOVED      = 1;
     private static final int MESSAGE_SENT         = 2;
-    private static final int DATA_BYTES_SENT      = 3;
-    private static final int PROTOCOL_BYTES_SENT  = 4;
+    private static final int BYTES_SENT			  = 3;
     private final int type;
     private RawMessage message;
     private int byte_count = 0;
+    private int protocol_byte_count = 0;
     private NotificationItem( int notification_type ) {
       type = notification_type;
     }
@@ -24,6 +24,7 @@ package com.aelitis.azureus.core.networkmanager.impl;
 
 import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Map;
 import java.util.Set;
 
@@ -39,6 +40,9 @@ import com.aelitis.azureus.core.stats.AzureusCoreStatsProvider;
 
 /**
  * Processes reads of read-entities and handles the read selector.
+ * 
+ * As with the WriteController entities are spread over a number of processor threads, each
+ * with its own event waiter.
  */
 public class ReadController implements AzureusCoreStatsProvider{
 	
@@ -63,34 +67,14 @@ public class ReadController implements AzureusCoreStatsProvider{
 			});
 	}
 	
-  private volatile ArrayList normal_priority_entities = new ArrayList();  //copied-on-write
-  private volatile ArrayList high_priority_entities = new ArrayList();  //copied-on-write
+  private final Processor[]	processors;
+  private final Map			entity_processors = new IdentityHashMap();
   private final AEMonitor entities_mon = new AEMonitor( "ReadController:EM" );
-  private int next_normal_position = 0;
-  private int next_high_position = 0;
-    
-  private long	loop_count;
-  private long	wait_count;
-  private long	non_progress_count;
-  private long	progress_count;
 
-  private long	entity_check_count;
-  private long	last_entity_check_count;
   
-  private EventWaiter 	read_waiter = new EventWaiter();
-
-  
-  public ReadController() {
+  public ReadController( int num_shards ) {
      
-    //start read handler processing
-    Thread read_processor_thread = new AEThread( "ReadController:ReadProcessor" ) {
-      public void runSupport() {
-        readProcessorLoop();
-      }
-    };
-    read_processor_thread.setDaemon( true );
-    read_processor_thread.setPriority( Thread.MAX_PRIORITY - 1 );
-    read_processor_thread.start();
+    processors = new Processor[ Math.max( 1, num_shards )];
     
     Set	types = new HashSet();
     
@@ -101,6 +85,27 @@ public class ReadController implements AzureusCoreStatsProvider{
     types.add( AzureusCoreStats.ST_NET_READ_CONTROL_ENTITY_COUNT );
     types.add( AzureusCoreStats.ST_NET_READ_CONTROL_CON_COUNT );
     types.add( AzureusCoreStats.ST_NET_READ_CONTROL_READY_CON_COUNT );
+    types.add( AzureusCoreStats.ST_NET_READ_CONTROL_SHARD_COUNT );
+    
+    String[][]	shard_stats = new String[processors.length*2][];
+    
+    //start read handler processing
+    for (int i=0;i<processors.length;i++){
+    	
+    	processors[i] = new Processor( i );
+    	
+    	shard_stats[i*2]	= new String[]{ processors[i].loop_time_stat, AzureusCoreStats.POINT };
+    	shard_stats[i*2+1]	= new String[]{ processors[i].rate_stat, AzureusCoreStats.POINT };
+    	
+    	types.add( processors[i].loop_time_stat );
+    	types.add( processors[i].rate_stat );
+    	
+    	processors[i].setDaemon( true );
+    	processors[i].setPriority( Thread.MAX_PRIORITY - 1 );
+    	processors[i].start();
+    }
+    
+    AzureusCoreStats.addStatsDefinitions( shard_stats );
     
     AzureusCoreStats.registerProvider(
     	types,
@@ -118,26 +123,33 @@ public class ReadController implements AzureusCoreStatsProvider{
 				try{
 					writer.indent();
 					
-					ArrayList ref = normal_priority_entities;
+					for (int p=0;p<processors.length;p++){
 
-					writer.println( "normal - " + ref.size());
+						Processor processor = processors[p];
 					    
-					for (int i=0;i<ref.size();i++){
+						writer.println( "shard " + p + ": loop=" + processor.getLoopTime() + "us, rate=" + processor.getRate());
 						
-						RateControlledEntity entity = (RateControlledEntity)ref.get( i );
+						ArrayList ref = processor.normal_priority_entities;
 
-						writer.println( entity.getString());
-					}
+						writer.println( "normal - " + ref.size());
 
-					ref = high_priority_entities;
+						for (int i=0;i<ref.size();i++){
 
-					writer.println( "priority - " + ref.size());
+							RateControlledEntity entity = (RateControlledEntity)ref.get( i );
 					    
-					for (int i=0;i<ref.size();i++){
+							writer.println( entity.getString());
+						}
 						
-						RateControlledEntity entity = (RateControlledEntity)ref.get( i );
+						ref = processor.high_priority_entities;
 
-						writer.println( entity.getString());
+						writer.println( "priority - " + ref.size());
+						    
+						for (int i=0;i<ref.size();i++){
+							
+							RateControlledEntity entity = (RateControlledEntity)ref.get( i );
+	
+							writer.println( entity.getString());
+						}
 					}
 				}finally{
 					
@@ -147,11 +159,58 @@ public class ReadController implements AzureusCoreStatsProvider{
     	});
   }
   
+  /**
+   * @return number of processor threads entities are spread over
+   */
+  public int getShardCount() {
+	  return( processors.length );
+  }
+  
+  /**
+   * Records bytes read by an entity, called by rate handlers from within doProcessing.
+   * Ignored when not on a processor thread.
+   */
+  public static void bytesProcessed( int num_bytes ) {
+	  Thread	current = Thread.currentThread();
+	  
+	  if ( current instanceof Processor ){
+		  
+		  ((Processor)current).bytes_processed += num_bytes;
+	  }
+  }
+  
   public void
   updateStats(
 		  Set		types,
 		  Map		values )
   {
+	  long	loop_count			= 0;
+	  long	wait_count			= 0;
+	  long	progress_count		= 0;
+	  long	non_progress_count	= 0;
+	  int	entity_count		= 0;
+	  
+	  for (int i=0;i<processors.length;i++){
+		  
+		  Processor processor = processors[i];
+		  
+		  loop_count			+= processor.loop_count;
+		  wait_count			+= processor.wait_count;
+		  progress_count		+= processor.progress_count;
+		  non_progress_count	+= processor.non_progress_count;
+		  entity_count			+= processor.high_priority_entities.size() + processor.normal_priority_entities.size();
+		  
+		  if ( types.contains( processor.loop_time_stat )){
+			  
+			  values.put( processor.loop_time_stat, new Long( processor.getLoopTime()));
+		  }
+		  
+		  if ( types.contains( processor.rate_stat )){
+			  
+			  values.put( processor.rate_stat, new Long( processor.getRate()));
+		  }
+	  }
+	  
 	  if ( types.contains( AzureusCoreStats.ST_NET_READ_CONTROL_LOOP_COUNT )){
 
 		  values.put( AzureusCoreStats.ST_NET_READ_CONTROL_LOOP_COUNT, new Long( loop_count  ));
@@ -174,7 +233,12 @@ public class ReadController implements AzureusCoreStatsProvider{
 	  
 	  if ( types.contains( AzureusCoreStats.ST_NET_READ_CONTROL_ENTITY_COUNT )){
 
-		  values.put( AzureusCoreStats.ST_NET_READ_CONTROL_ENTITY_COUNT, new Long( high_priority_entities.size() + normal_priority_entities.size()));
+		  values.put( AzureusCoreStats.ST_NET_READ_CONTROL_ENTITY_COUNT, new Long( entity_count ));
+	  }
+	  
+	  if ( types.contains( AzureusCoreStats.ST_NET_READ_CONTROL_SHARD_COUNT )){
+
+		  values.put( AzureusCoreStats.ST_NET_READ_CONTROL_SHARD_COUNT, new Long( processors.length ));
 	  }
 	 
 	  if ( 	types.contains( AzureusCoreStats.ST_NET_READ_CONTROL_CON_COUNT ) ||
@@ -183,19 +247,22 @@ public class ReadController implements AzureusCoreStatsProvider{
 		  int	ready_connections	= 0;
 		  int	connections			= 0;
 		  
-		  ArrayList[] refs = { normal_priority_entities, high_priority_entities };
+		  for (int p=0;p<processors.length;p++){
 		    
-		  for (int i=0;i<refs.length;i++){
+			  ArrayList[] refs = { processors[p].normal_priority_entities, processors[p].high_priority_entities };
 			  
-			  ArrayList	ref = refs[i];
+			  for (int i=0;i<refs.length;i++){
 			 
-			  for (int j=0;j<ref.size();j++){
+				  ArrayList	ref = refs[i];
 		  
-			      RateControlledEntity entity = (RateControlledEntity)ref.get( j );
+				  for (int j=0;j<ref.size();j++){
 			      
-			      connections 		+= entity.getConnectionCount();
+				      RateControlledEntity entity = (RateControlledEntity)ref.get( j );
 			      
-			      ready_connections += entity.getReadyConnectionCount( read_waiter );
+				      connections 		+= entity.getConnectionCount();
+				      
+				      ready_connections += entity.getReadyConnectionCount( processors[p].read_waiter );
+				  }
 			  }
 		  }
 		  
@@ -205,164 +272,44 @@ public class ReadController implements AzureusCoreStatsProvider{
   }
 
   
-  
-  
-  private void readProcessorLoop() {
-    boolean check_high_first = true;
-    
-    while( true ) {
-      loop_count++;
-      try {
-        if( check_high_first ) {
-          check_high_first = false;
-          if( !doHighPriorityRead() ) {
-            if( !doNormalPriorityRead() ) {
-            	if ( read_waiter.waitForEvent( IDLE_SLEEP_TIME )){
-            		wait_count++;
-            	}
-            }
-          }
-        }
-        else {
-          check_high_first = true;
-          if( !doNormalPriorityRead() ) {
-            if( !doHighPriorityRead() ) {
-            	if ( read_waiter.waitForEvent( IDLE_SLEEP_TIME )){
-            		wait_count++;
-            	}
-            }
-          }
-        }
-      }
-      catch( Throwable t ) {
-        Debug.out( "readProcessorLoop() EXCEPTION: ", t );
-      }
-    }
-  }
-  
-  
-  private boolean 
-  doNormalPriorityRead() 
-  {
-	  return( doRead( getNextReadyNormalPriorityEntity()));
-  }
-  
-  private boolean 
-  doHighPriorityRead() 
-  {
-	  return( doRead( getNextReadyHighPriorityEntity()));
-  }
-  
-  private boolean
-  doRead(
-	  RateControlledEntity	  ready_entity )
-  {  
-	  if ( ready_entity != null ){
-		 
-		  if ( AGGRESIVE_READ ){
-			  
-			  	// skip over failed readers to find a good one
-			  
-			  if ( ready_entity.doProcessing( read_waiter ) ) {
-	
-				  progress_count++;
-	
-				  return( true );
-	
-			  }else{
-				  
-				  non_progress_count++;
-	
-				  if ( entity_check_count - last_entity_check_count >= normal_priority_entities.size() + high_priority_entities.size() ){
-	
-					  last_entity_check_count	= entity_check_count;
-					  
-					  	// force a wait
-					  
-					  if ( read_waiter.waitForEvent( IDLE_SLEEP_TIME )){
-		            		wait_count++;
-					  }
-					  
-					  return( false);
-				  }
-	
-				  return( true );
-			  }
-		  }else{
-			  
-			  return( ready_entity.doProcessing( read_waiter ));
-		  }
-	  }
-	  
-	  return false;
-  }
-  
-  
-  private RateControlledEntity getNextReadyNormalPriorityEntity() {
-    ArrayList ref = normal_priority_entities;
-    
-    int size = ref.size();
-    int num_checked = 0;
-
-    while( num_checked < size ) {
-      entity_check_count++;
-      next_normal_position = next_normal_position >= size ? 0 : next_normal_position;  //make circular
-      RateControlledEntity entity = (RateControlledEntity)ref.get( next_normal_position );
-      next_normal_position++;
-      num_checked++;
-      if( entity.canProcess( read_waiter ) ) {  //is ready
-        return entity;
-      }
-    }
-
-    return null;  //none found ready
-  }
-  
-  
-  private RateControlledEntity getNextReadyHighPriorityEntity() {
-    ArrayList ref = high_priority_entities;
-    
-    int size = ref.size();
-    int num_checked = 0;
-
-    while( num_checked < size ) {
-      entity_check_count++;
-      next_high_position = next_high_position >= size ? 0 : next_high_position;  //make circular
-      RateControlledEntity entity = (RateControlledEntity)ref.get( next_high_position );
-      next_high_position++;
-      num_checked++;
-      if( entity.canProcess( read_waiter ) ) {  //is ready
-        return entity;
-      }
-    }
-
-    return null;  //none found ready
+  /**
+   * Add the given entity to the controller for read processing.
+   * @param entity to process reads for
+   */
+  public void addReadEntity( RateControlledEntity entity ) {
+    addReadEntity( entity, System.identityHashCode( entity ));
   }
   
   
-  
   /**
-   * Add the given entity to the controller for read processing.
+   * Add the given entity to the controller for read processing on a particular processor.
    * @param entity to process reads for
+   * @param shard any value, entities with the same value are processed by the same thread
    */
-  public void addReadEntity( RateControlledEntity entity ) {
+  public void addReadEntity( RateControlledEntity entity, int shard ) {
+    Processor processor = processors[ (shard & 0x7fffffff) % processors.length ];
+    
     try {  entities_mon.enter();
+      entity_processors.put( entity, processor );
+      
       if( entity.getPriority() == RateControlledEntity.PRIORITY_HIGH ) {
         //copy-on-write
-        ArrayList high_new = new ArrayList( high_priority_entities.size() + 1 );
-        high_new.addAll( high_priority_entities );
+        ArrayList high_new = new ArrayList( processor.high_priority_entities.size() + 1 );
+        high_new.addAll( processor.high_priority_entities );
         high_new.add( entity );
-        high_priority_entities = high_new;
+        processor.high_priority_entities = high_new;
       }
       else {
         //copy-on-write
-        ArrayList norm_new = new ArrayList( normal_priority_entities.size() + 1 );
-        norm_new.addAll( normal_priority_entities );
+        ArrayList norm_new = new ArrayList( processor.normal_priority_entities.size() + 1 );
+        norm_new.addAll( processor.normal_priority_entities );
         norm_new.add( entity );
-        normal_priority_entities = norm_new;
+        processor.normal_priority_entities = norm_new;
       }
     }
     finally {  entities_mon.exit();  }
+    
+    processor.read_waiter.eventOccurred();
   }
   
   
@@ -372,19 +319,250 @@ public class ReadController implements AzureusCoreStatsProvider{
    */
   public void removeReadEntity( RateControlledEntity entity ) {
     try {  entities_mon.enter();
+      Processor processor = (Processor)entity_processors.remove( entity );
+      
+      if ( processor == null ){
+    	  return;
+      }
+      
       if( entity.getPriority() == RateControlledEntity.PRIORITY_HIGH ) {
         //copy-on-write
-        ArrayList high_new = new ArrayList( high_priority_entities );
+        ArrayList high_new = new ArrayList( processor.high_priority_entities );
         high_new.remove( entity );
-        high_priority_entities = high_new;
+        processor.high_priority_entities = high_new;
       }
       else {
         //copy-on-write
-        ArrayList norm_new = new ArrayList( normal_priority_entities );
+        ArrayList norm_new = new ArrayList( processor.normal_priority_entities );
         norm_new.remove( entity );
-        normal_priority_entities = norm_new;
+        processor.normal_priority_entities = norm_new;
       }
     }
     finally {  entities_mon.exit();  }
   }
+  
+  
+  private class
+  Processor
+  	extends AEThread
+  {
+	  private volatile ArrayList normal_priority_entities = new ArrayList();  //copied-on-write
+	  private volatile ArrayList high_priority_entities = new ArrayList();  //copied-on-write
+	  private int next_normal_position = 0;
+	  private int next_high_position = 0;
+	    
+	  private long	loop_count;
+	  private long	wait_count;
+	  private long	non_progress_count;
+	  private long	progress_count;
+	
+	  private long	entity_check_count;
+	  private long	last_entity_check_count;
+	  
+	  private final EventWaiter 	read_waiter = new EventWaiter();
+	  
+	  	// only updated by the processor thread, pushed into the averages periodically
+	  
+	  private long	bytes_processed;
+	  private long	loop_nanos;
+	  private long	active_loops;
+	  
+	  private final Average	rate_average		= Average.getInstance( 1000, 10 );
+	  private final Average	loop_time_average	= Average.getInstance( 1000, 10 );
+	  private final Average	loop_count_average	= Average.getInstance( 1000, 10 );
+	  
+	  private final String	loop_time_stat;
+	  private final String	rate_stat;
+	  
+	  private
+	  Processor(
+		int		index )
+	  {
+		  super( "ReadController:ReadProcessor" + (index==0?"":(":" + index )));
+		  
+		  loop_time_stat	= AzureusCoreStats.ST_NET_READ_CONTROL_SHARD + index + ".loop.time";
+		  rate_stat			= AzureusCoreStats.ST_NET_READ_CONTROL_SHARD + index + ".rate";
+	  }
+	  
+	  public void
+	  runSupport()
+	  {
+		  readProcessorLoop();
+	  }
+	  
+	  	/**
+	  	 * @return mean time in microseconds of a processing pass that found something to do
+	  	 */
+	  
+	  private long
+	  getLoopTime()
+	  {
+		  long	loops = loop_count_average.getAverage();
+		  
+		  return( loops==0?0:loop_time_average.getAverage()/loops );
+	  }
+	  
+	  private long
+	  getRate()
+	  {
+		  return( rate_average.getAverage());
+	  }
+	  
+	  private void readProcessorLoop() {
+	    boolean check_high_first = true;
+	    
+	    long next_flush = System.nanoTime();
+	    
+	    while( true ) {
+	      loop_count++;
+	      long start = System.nanoTime();
+	      boolean progress = true;
+	      try {
+	        if( check_high_first ) {
+	          check_high_first = false;
+	          if( !doHighPriorityRead() ) {
+	            if( !doNormalPriorityRead() ) {
+	              progress = false;
+	            	if ( read_waiter.waitForEvent( IDLE_SLEEP_TIME )){
+	            		wait_count++;
+	            	}
+	            }
+	          }
+	        }
+	        else {
+	          check_high_first = true;
+	          if( !doNormalPriorityRead() ) {
+	            if( !doHighPriorityRead() ) {
+	              progress = false;
+	            	if ( read_waiter.waitForEvent( IDLE_SLEEP_TIME )){
+	            		wait_count++;
+	            	}
+	            }
+	          }
+	        }
+	      }
+	      catch( Throwable t ) {
+	        Debug.out( "readProcessorLoop() EXCEPTION: ", t );
+	      }
+	      
+	      long now = System.nanoTime();
+	      
+	      if ( progress ){
+	    	  loop_nanos += now - start;
+	    	  active_loops++;
+	      }
+	      
+	      if ( now - next_flush >= 0 ){
+	    	  next_flush = now + 250*1000000L;
+	    	  
+	    	  rate_average.addValue( bytes_processed );
+	    	  loop_time_average.addValue( loop_nanos/1000 );
+	    	  loop_count_average.addValue( active_loops );
+	    	  
+	    	  bytes_processed	= 0;
+	    	  loop_nanos		= 0;
+	    	  active_loops		= 0;
+	      }
+	    }
+	  }
+	  
+	  
+	  private boolean 
+	  doNormalPriorityRead() 
+	  {
+		  return( doRead( getNextReadyNormalPriorityEntity()));
+	  }
+	  
+	  private boolean 
+	  doHighPriorityRead() 
+	  {
+		  return( doRead( getNextReadyHighPriorityEntity()));
+	  }
+	  
+	  private boolean
+	  doRead(
+		  RateControlledEntity	  ready_entity )
+	  {  
+		  if ( ready_entity != null ){
+			 
+			  if ( AGGRESIVE_READ ){
+				  
+				  	// skip over failed readers to find a good one
+				  
+				  if ( ready_entity.doProcessing( read_waiter ) ) {
+		
+					  progress_count++;
+		
+					  return( true );
+		
+				  }else{
+					  
+					  non_progress_count++;
+		
+					  if ( entity_check_count - last_entity_check_count >= normal_priority_entities.size() + high_priority_entities.size() ){
+		
+						  last_entity_check_count	= entity_check_count;
+						  
+						  	// force a wait
+						  
+						  if ( read_waiter.waitForEvent( IDLE_SLEEP_TIME )){
+			            		wait_count++;
+						  }
+						  
+						  return( false);
+					  }
+		
+					  return( true );
+				  }
+			  }else{
+				  
+				  return( ready_entity.doProcessing( read_waiter ));
+			  }
+		  }
+		  
+		  return false;
+	  }
+	  
+	  
+	  private RateControlledEntity getNextReadyNormalPriorityEntity() {
+	    ArrayList ref = normal_priority_entities;
+	    
+	    int size = ref.size();
+	    int num_checked = 0;
+	
+	    while( num_checked < size ) {
+	      entity_check_count++;
+	      next_normal_position = next_normal_position >= size ? 0 : next_normal_position;  //make circular
+	      RateControlledEntity entity = (RateControlledEntity)ref.get( next_normal_position );
+	      next_normal_position++;
+	      num_checked++;
+	      if( entity.canProcess( read_waiter ) ) {  //is ready
+	        return entity;
+	      }
+	    }
+	
+	    return null;  //none found ready
+	  }
+	  
+	  
+	  private RateControlledEntity getNextReadyHighPriorityEntity() {
+	    ArrayList ref = high_priority_entities;
+	    
+	    int size = ref.size();
+	    int num_checked = 0;
+	
+	    while( num_checked < size ) {
+	      entity_check_count++;
+	      next_high_position = next_high_position >= size ? 0 : next_high_position;  //make circular
+	      RateControlledEntity entity = (RateControlledEntity)ref.get( next_high_position );
+	      next_high_position++;
+	      num_checked++;
+	      if( entity.canProcess( read_waiter ) ) {  //is ready
+	        return entity;
+	      }
+	    }
+	
+	    return null;  //none found ready
+	  }
+  }
 }
@@ -24,6 +24,7 @@ package com.aelitis.azureus.core.networkmanager.impl;
 
 import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Map;
 import java.util.Set;
 
@@ -33,6 +34,7 @@ import org.gudy.azureus2.core3.util.AEDiagnostics;
 import org.gudy.azureus2.core3.util.AEDiagnosticsEvidenceGenerator;
 import org.gudy.azureus2.core3.util.AEMonitor;
 import org.gudy.azureus2.core3.util.AEThread;
+import org.gudy.azureus2.core3.util.Average;
 import org.gudy.azureus2.core3.util.Debug;
 import org.gudy.azureus2.core3.util.IndentWriter;
 
@@ -42,6 +44,11 @@ import com.aelitis.azureus.core.stats.AzureusCoreStatsProvider;
 
 /**
  * Processes writes of write-entities and handles the write selector.
+ * 
+ * Entities are spread over a number of processor threads, each with its own entity lists and
+ * event waiter, so transports only wake the thread that owns them. An entity stays on the
+ * processor it was added to; callers can pin related entities together by passing the same
+ * shard.
  */
 public class WriteController implements AzureusCoreStatsProvider{
   
@@ -67,37 +74,19 @@ public class WriteController implements AzureusCoreStatsProvider{
 			});
 	}
 	
-  private volatile ArrayList normal_priority_entities = new ArrayList();  //copied-on-write
-  private volatile ArrayList high_priority_entities = new ArrayList();  //copied-on-write
+  private final Processor[]	processors;
+  private final Map			entity_processors = new IdentityHashMap();
   private final AEMonitor entities_mon = new AEMonitor( "WriteController:EM" );
-  private int next_normal_position = 0;
-  private int next_high_position = 0;
-  
-  private int aggressive_np_normal_priority_count;
-  private int aggressive_np_high_priority_count;
   
-  private long	wait_count;
-  private long	progress_count;
-  private long	non_progress_count;
+  private volatile WriteEventListener writeEventListener;
   
-  private final EventWaiter 	write_waiter = new EventWaiter();
-  
-    private WriteEventListener writeEventListener;
   /**
    * Create a new write controller.
+   * @param num_shards number of processor threads
    */
-  public WriteController() {
+  public WriteController( int num_shards ) {
     
-    //start write handler processing
-    Thread write_processor_thread = new AEThread( "WriteController:WriteProcessor" ) {
-      @Override
-    public void runSupport() {
-        writeProcessorLoop();
-      }
-    };
-    write_processor_thread.setDaemon( true );
-    write_processor_thread.setPriority( Thread.MAX_PRIORITY - 1 );
-    write_processor_thread.start();
+    processors = new Processor[ Math.max( 1, num_shards )];
     
     Set	types = new HashSet();
     
@@ -108,6 +97,27 @@ public class WriteController implements AzureusCoreStatsProvider{
     types.add( AzureusCoreStats.ST_NET_WRITE_CONTROL_CON_COUNT );
     types.add( AzureusCoreStats.ST_NET_WRITE_CONTROL_READY_CON_COUNT );
     types.add( AzureusCoreStats.ST_NET_WRITE_CONTROL_READY_BYTE_COUNT );
+    types.add( AzureusCoreStats.ST_NET_WRITE_CONTROL_SHARD_COUNT );
+    
+    String[][]	shard_stats = new String[processors.length*2][];
+    
+    //start write handler processing
+    for (int i=0;i<processors.length;i++){
+    	
+    	processors[i] = new Processor( i );
+    	
+    	shard_stats[i*2]	= new String[]{ processors[i].loop_time_stat, AzureusCoreStats.POINT };
+    	shard_stats[i*2+1]	= new String[]{ processors[i].rate_stat, AzureusCoreStats.POINT };
+    	
+    	types.add( processors[i].loop_time_stat );
+    	types.add( processors[i].rate_stat );
+    	
+    	processors[i].setDaemon( true );
+    	processors[i].setPriority( Thread.MAX_PRIORITY - 1 );
+    	processors[i].start();
+    }
+    
+    AzureusCoreStats.addStatsDefinitions( shard_stats );
        
     AzureusCoreStats.registerProvider(
     	types,
@@ -126,26 +136,33 @@ public class WriteController implements AzureusCoreStatsProvider{
 				try{
 					writer.indent();
 					
-					ArrayList ref = normal_priority_entities;
+					for (int p=0;p<processors.length;p++){
 
-					writer.println( "normal - " + ref.size());
+						Processor processor = processors[p];
 					    
-					for (int i=0;i<ref.size();i++){
+						writer.println( "shard " + p + ": loop=" + processor.getLoopTime() + "us, rate=" + processor.getRate());
 						
-						RateControlledEntity entity = (RateControlledEntity)ref.get( i );
+						ArrayList ref = processor.normal_priority_entities;
 
-						writer.println( entity.getString());
-					}
+						writer.println( "normal - " + ref.size());
 
-					ref = high_priority_entities;
+						for (int i=0;i<ref.size();i++){
 
-					writer.println( "priority - " + ref.size());
+							RateControlledEntity entity = (RateControlledEntity)ref.get( i );
 					    
-					for (int i=0;i<ref.size();i++){
+							writer.println( entity.getString());
+						}
 						
-						RateControlledEntity entity = (RateControlledEntity)ref.get( i );
+						ref = processor.high_priority_entities;
 
-						writer.println( entity.getString());
+						writer.println( "priority - " + ref.size());
+						    
+						for (int i=0;i<ref.size();i++){
+							
+							RateControlledEntity entity = (RateControlledEntity)ref.get( i );
+	
+							writer.println( entity.getString());
+						}
 					}
 				}finally{
 					
@@ -159,12 +176,57 @@ public class WriteController implements AzureusCoreStatsProvider{
         this.writeEventListener = writeEventListener;
     }
 
+  /**
+   * @return number of processor threads entities are spread over
+   */
+  public int getShardCount() {
+	  return( processors.length );
+  }
+  
+  /**
+   * Records bytes written by an entity, called by rate handlers from within doProcessing.
+   * Ignored when not on a processor thread.
+   */
+  public static void bytesProcessed( int num_bytes ) {
+	  Thread	current = Thread.currentThread();
+	  
+	  if ( current instanceof Processor ){
+		  
+		  ((Processor)current).bytes_processed += num_bytes;
+	  }
+  }
+  
   @Override
 public void
   updateStats(
 		  Set		types,
 		  Map		values )
   {
+	  long	wait_count			= 0;
+	  long	progress_count		= 0;
+	  long	non_progress_count	= 0;
+	  int	entity_count		= 0;
+	  
+	  for (int i=0;i<processors.length;i++){
+		  
+		  Processor processor = processors[i];
+		  
+		  wait_count			+= processor.wait_count;
+		  progress_count		+= processor.progress_count;
+		  non_progress_count	+= processor.non_progress_count;
+		  entity_count			+= processor.high_priority_entities.size() + processor.normal_priority_entities.size();
+		  
+		  if ( types.contains( processor.loop_time_stat )){
+			  
+			  values.put( processor.loop_time_stat, new Long( processor.getLoopTime()));
+		  }
+		  
+		  if ( types.contains( processor.rate_stat )){
+			  
+			  values.put( processor.rate_stat, new Long( processor.getRate()));
+		  }
+	  }
+	  
 	  if ( types.contains( AzureusCoreStats.ST_NET_WRITE_CONTROL_WAIT_COUNT )){
 
 		  values.put( AzureusCoreStats.ST_NET_WRITE_CONTROL_WAIT_COUNT, new Long( wait_count ));
@@ -182,7 +244,12 @@ public void
 
 	  if ( types.contains( AzureusCoreStats.ST_NET_WRITE_CONTROL_ENTITY_COUNT )){
 
-		  values.put( AzureusCoreStats.ST_NET_WRITE_CONTROL_ENTITY_COUNT, new Long( high_priority_entities.size() + normal_priority_entities.size()));
+		  values.put( AzureusCoreStats.ST_NET_WRITE_CONTROL_ENTITY_COUNT, new Long( entity_count ));
+	  }
+	  
+	  if ( types.contains( AzureusCoreStats.ST_NET_WRITE_CONTROL_SHARD_COUNT )){
+
+		  values.put( AzureusCoreStats.ST_NET_WRITE_CONTROL_SHARD_COUNT, new Long( processors.length ));
 	  }
 	  
 	  if ( 	types.contains( AzureusCoreStats.ST_NET_WRITE_CONTROL_CON_COUNT ) ||
@@ -193,21 +260,24 @@ public void
 		  int	ready_connections	= 0;
 		  int	connections			= 0;
 		  
-		  ArrayList[] refs = { normal_priority_entities, high_priority_entities };
+		  for (int p=0;p<processors.length;p++){
 		    
-		  for (int i=0;i<refs.length;i++){
+			  ArrayList[] refs = { processors[p].normal_priority_entities, processors[p].high_priority_entities };
 			  
-			  ArrayList	ref = refs[i];
+			  for (int i=0;i<refs.length;i++){
 			 
-			  for (int j=0;j<ref.size();j++){
+				  ArrayList	ref = refs[i];
 				  
-			      RateControlledEntity entity = (RateControlledEntity)ref.get( j );
+				  for (int j=0;j<ref.size();j++){
 			      
-			      connections 		+= entity.getConnectionCount();
+				      RateControlledEntity entity = (RateControlledEntity)ref.get( j );
 			      
-			      ready_connections += entity.getReadyConnectionCount( write_waiter );
+				      connections 		+= entity.getConnectionCount();
 			      
-			      ready_bytes		+= entity.getBytesReadyToWrite();
+				      ready_connections += entity.getReadyConnectionCount( processors[p].write_waiter );
+				      
+				      ready_bytes		+= entity.getBytesReadyToWrite();
+				  }
 			  }
 		  }
 		  
@@ -217,170 +287,47 @@ public void
 	  }
   }
   
-  private void writeProcessorLoop() {
-    boolean check_high_first = true;
-    
-    long last_event_progress = 0;
-    while( true ) {
-            if (writeEventListener != null && progress_count > last_event_progress) {
-                last_event_progress = progress_count;
-                writeEventListener.writeEvent();
-            }
-      try {
-        if( check_high_first ) {
-          check_high_first = false;
-          if( !doHighPriorityWrite() ) {
-            if( !doNormalPriorityWrite() ) {
-              if ( write_waiter.waitForEvent( IDLE_SLEEP_TIME )){
-            	  wait_count++;
-              }
-            }
-          }
-        }
-        else {
-          check_high_first = true;
-          if( !doNormalPriorityWrite() ) {
-            if( !doHighPriorityWrite() ) {
-            	if ( write_waiter.waitForEvent( IDLE_SLEEP_TIME )){
-            		wait_count++;
-            	}
-            }
-          }
-        }
-      }
-      catch( Throwable t ) {
-        Debug.out( "writeProcessorLoop() EXCEPTION: ", t );
-      }
-    }
-  }
-  
   
-  private boolean doNormalPriorityWrite() {
-    RateControlledEntity ready_entity = getNextReadyNormalPriorityEntity();
-    if( ready_entity != null ){
-    	
-    	if ( ready_entity.doProcessing( write_waiter ) ) {
-    
-    		progress_count++;
-    		
-    		return true;
-    	}else{
-    		
-    		non_progress_count++;
-			
-    		if ( AGGRESIVE_WRITE ){
-    			
-     			aggressive_np_normal_priority_count++;
-    			     			
-    			if ( aggressive_np_normal_priority_count < normal_priority_entities.size()){
-    				
-    				return( true );
-    				
-    			}else{
-    				
-    				aggressive_np_normal_priority_count = 0;
-    			}
-    		}
-    	}
-    }
-    return false;
-  }
-  
-  private boolean doHighPriorityWrite() {
-    RateControlledEntity ready_entity = getNextReadyHighPriorityEntity();
-    if( ready_entity != null ){
-    	if ( ready_entity.doProcessing( write_waiter ) ) {
-    
-    		progress_count++;
-    		
-    		return true;
-    		
-    	}else{
-    		
-    		non_progress_count++;
-    		
-    		if ( AGGRESIVE_WRITE ){
-    			
-    			aggressive_np_high_priority_count++;
-    			
-    			if ( aggressive_np_high_priority_count < high_priority_entities.size()){
-    				
-    				return( true );
-    				
-    			}else{
-    				
-    				aggressive_np_high_priority_count = 0;
-    			}
-    		}
-    	}
-    }
-    return false;
-  }
-  
-  
-  private RateControlledEntity getNextReadyNormalPriorityEntity() {
-    ArrayList ref = normal_priority_entities;
-    
-    int size = ref.size();
-    int num_checked = 0;
-
-    while( num_checked < size ) {
-      next_normal_position = next_normal_position >= size ? 0 : next_normal_position;  //make circular
-      RateControlledEntity entity = (RateControlledEntity)ref.get( next_normal_position );
-      next_normal_position++;
-      num_checked++;
-      if( entity.canProcess( write_waiter ) ) {  //is ready
-        return entity;
-      }
-    }
-
-    return null;  //none found ready
-  }
-  
-  
-  private RateControlledEntity getNextReadyHighPriorityEntity() {
-    ArrayList ref = high_priority_entities;
-    
-    int size = ref.size();
-    int num_checked = 0;
-
-    while( num_checked < size ) {
-      next_high_position = next_high_position >= size ? 0 : next_high_position;  //make circular
-      RateControlledEntity entity = (RateControlledEntity)ref.get( next_high_position );
-      next_high_position++;
-      num_checked++;
-      if( entity.canProcess( write_waiter ) ) {  //is ready
-        return entity;
-      }
-    }
-
-    return null;  //none found ready
+  /**
+   * Add the given entity to the controller for write processing.
+   * @param entity to process writes for
+   */
+  public void addWriteEntity( RateControlledEntity entity ) {
+    addWriteEntity( entity, System.identityHashCode( entity ));
   }
   
   
-  
   /**
-   * Add the given entity to the controller for write processing.
+   * Add the given entity to the controller for write processing on a particular processor.
    * @param entity to process writes for
+   * @param shard any value, entities with the same value are processed by the same thread
    */
-  public void addWriteEntity( RateControlledEntity entity ) {
+  public void addWriteEntity( RateControlledEntity entity, int shard ) {
+    Processor processor = processors[ (shard & 0x7fffffff) % processors.length ];
+    
     try {  entities_mon.enter();
+      entity_processors.put( entity, processor );
+      
       if( entity.getPriority() == RateControlledEntity.PRIORITY_HIGH ) {
         //copy-on-write
-        ArrayList high_new = new ArrayList( high_priority_entities.size() + 1 );
-        high_new.addAll( high_priority_entities );
+        ArrayList high_new = new ArrayList( processor.high_priority_entities.size() + 1 );
+        high_new.addAll( processor.high_priority_entities );
         high_new.add( entity );
-        high_priority_entities = high_new;
+        processor.high_priority_entities = high_new;
       }
       else {
         //copy-on-write
-        ArrayList norm_new = new ArrayList( normal_priority_entities.size() + 1 );
-        norm_new.addAll( normal_priority_entities );
+        ArrayList norm_new = new ArrayList( processor.normal_priority_entities.size() + 1 );
+        norm_new.addAll( processor.normal_priority_entities );
         norm_new.add( entity );
-        normal_priority_entities = norm_new;
+        processor.normal_priority_entities = norm_new;
       }
     }
     finally {  entities_mon.exit();  }
+    
+    	// may well have data waiting, don't leave it until the idle timeout
+    
+    processor.write_waiter.eventOccurred();
   }
   
   
@@ -390,19 +337,260 @@ public void
    */
   public void removeWriteEntity( RateControlledEntity entity ) {
     try {  entities_mon.enter();
+      Processor processor = (Processor)entity_processors.remove( entity );
+      
+      if ( processor == null ){
+    	  return;
+      }
+      
       if( entity.getPriority() == RateControlledEntity.PRIORITY_HIGH ) {
         //copy-on-write
-        ArrayList high_new = new ArrayList( high_priority_entities );
+        ArrayList high_new = new ArrayList( processor.high_priority_entities );
         high_new.remove( entity );
-        high_priority_entities = high_new;
+        processor.high_priority_entities = high_new;
       }
       else {
         //copy-on-write
-        ArrayList norm_new = new ArrayList( normal_priority_entities );
+        ArrayList norm_new = new ArrayList( processor.normal_priority_entities );
         norm_new.remove( entity );
-        normal_priority_entities = norm_new;
+        processor.normal_priority_entities = norm_new;
       }
     }
     finally {  entities_mon.exit();  }
   }
+  
+  
+  private class
+  Processor
+  	extends AEThread
+  {
+	  private volatile ArrayList normal_priority_entities = new ArrayList();  //copied-on-write
+	  private volatile ArrayList high_priority_entities = new ArrayList();  //copied-on-write
+	  private int next_normal_position = 0;
+	  private int next_high_position = 0;
+	  
+	  private int aggressive_np_normal_priority_count;
+	  private int aggressive_np_high_priority_count;
+	  
+	  private long	wait_count;
+	  private long	progress_count;
+	  private long	non_progress_count;
+	  
+	  private final EventWaiter 	write_waiter = new EventWaiter();
+	  
+	  	// only updated by the processor thread, pushed into the averages periodically
+	  
+	  private long	bytes_processed;
+	  private long	loop_nanos;
+	  private long	active_loops;
+	  
+	  private final Average	rate_average		= Average.getInstance( 1000, 10 );
+	  private final Average	loop_time_average	= Average.getInstance( 1000, 10 );
+	  private final Average	loop_count_average	= Average.getInstance( 1000, 10 );
+	  
+	  private final String	loop_time_stat;
+	  private final String	rate_stat;
+	  
+	  private
+	  Processor(
+		int		index )
+	  {
+		  super( "WriteController:WriteProcessor" + (index==0?"":(":" + index )));
+		  
+		  loop_time_stat	= AzureusCoreStats.ST_NET_WRITE_CONTROL_SHARD + index + ".loop.time";
+		  rate_stat			= AzureusCoreStats.ST_NET_WRITE_CONTROL_SHARD + index + ".rate";
+	  }
+	  
+	  @Override
+	  public void
+	  runSupport()
+	  {
+		  writeProcessorLoop();
+	  }
+	  
+	  	/**
+	  	 * @return mean time in microseconds of a processing pass that found something to do
+	  	 */
+	  
+	  private long
+	  getLoopTime()
+	  {
+		  long	loops = loop_count_average.getAverage();
+		  
+		  return( loops==0?0:loop_time_average.getAverage()/loops );
+	  }
+	  
+	  private long
+	  getRate()
+	  {
+		  return( rate_average.getAverage());
+	  }
+	  
+	  private void writeProcessorLoop() {
+	    boolean check_high_first = true;
+	    
+	    long last_event_progress = 0;
+	    
+	    long next_flush = System.nanoTime();
+	    
+	    while( true ) {
+	            WriteEventListener listener = writeEventListener;
+	            if (listener != null && progress_count > last_event_progress) {
+	                last_event_progress = progress_count;
+	                listener.writeEvent();
+	            }
+	      long start = System.nanoTime();
+	      boolean progress = true;
+	      try {
+	        if( check_high_first ) {
+	          check_high_first = false;
+	          if( !doHighPriorityWrite() ) {
+	            if( !doNormalPriorityWrite() ) {
+	              progress = false;
+	              if ( write_waiter.waitForEvent( IDLE_SLEEP_TIME )){
+	            	  wait_count++;
+	              }
+	            }
+	          }
+	        }
+	        else {
+	          check_high_first = true;
+	          if( !doNormalPriorityWrite() ) {
+	            if( !doHighPriorityWrite() ) {
+	              progress = false;
+	            	if ( write_waiter.waitForEvent( IDLE_SLEEP_TIME )){
+	            		wait_count++;
+	            	}
+	            }
+	          }
+	        }
+	      }
+	      catch( Throwable t ) {
+	        Debug.out( "writeProcessorLoop() EXCEPTION: ", t );
+	      }
+	      
+	      long now = System.nanoTime();
+	      
+	      if ( progress ){
+	    	  loop_nanos += now - start;
+	    	  active_loops++;
+	      }
+	      
+	      if ( now - next_flush >= 0 ){
+	    	  next_flush = now + 250*1000000L;
+	    	  
+	    	  rate_average.addValue( bytes_processed );
+	    	  loop_time_average.addValue( loop_nanos/1000 );
+	    	  loop_count_average.addValue( active_loops );
+	    	  
+	    	  bytes_processed	= 0;
+	    	  loop_nanos		= 0;
+	    	  active_loops		= 0;
+	      }
+	    }
+	  }
+	  
+	  
+	  private boolean doNormalPriorityWrite() {
+	    RateControlledEntity ready_entity = getNextReadyNormalPriorityEntity();
+	    if( ready_entity != null ){
+	    	
+	    	if ( ready_entity.doProcessing( write_waiter ) ) {
+	    
+	    		progress_count++;
+	    		
+	    		return true;
+	    	}else{
+	    		
+	    		non_progress_count++;
+				
+	    		if ( AGGRESIVE_WRITE ){
+	    			
+	     			aggressive_np_normal_priority_count++;
+	    			     			
+	    			if ( aggressive_np_normal_priority_count < normal_priority_entities.size()){
+	    				
+	    				return( true );
+	    				
+	    			}else{
+	    				
+	    				aggressive_np_normal_priority_count = 0;
+	    			}
+	    		}
+	    	}
+	    }
+	    return false;
+	  }
+	  
+	  private boolean doHighPriorityWrite() {
+	    RateControlledEntity ready_entity = getNextReadyHighPriorityEntity();
+	    if( ready_entity != null ){
+	    	if ( ready_entity.doProcessing( write_waiter ) ) {
+	    
+	    		progress_count++;
+	    		
+	    		return true;
+	    		
+	    	}else{
+	    		
+	    		non_progress_count++;
+	    		
+	    		if ( AGGRESIVE_WRITE ){
+	    			
+	    			aggressive_np_high_priority_count++;
+	    			
+	    			if ( aggressive_np_high_priority_count < high_priority_entities.size()){
+	    				
+	    				return( true );
+	    				
+	    			}else{
+	    				
+	    				aggressive_np_high_priority_count = 0;
+	    			}
+	    		}
+	    	}
+	    }
+	    return false;
+	  }
+	  
+	  
+	  private RateControlledEntity getNextReadyNormalPriorityEntity() {
+	    ArrayList ref = normal_priority_entities;
+	    
+	    int size = ref.size();
+	    int num_checked = 0;
+	
+	    while( num_checked < size ) {
+	      next_normal_position = next_normal_position >= size ? 0 : next_normal_position;  //make circular
+	      RateControlledEntity entity = (RateControlledEntity)ref.get( next_normal_position );
+	      next_normal_position++;
+	      num_checked++;
+	      if( entity.canProcess( write_waiter ) ) {  //is ready
+	        return entity;
+	      }
+	    }
+	
+	    return null;  //none found ready
+	  }
+	  
+	  
+	  private RateControlledEntity getNextReadyHighPriorityEntity() {
+	    ArrayList ref = high_priority_entities;
+	    
+	    int size = ref.size();
+	    int num_checked = 0;
+	
+	    while( num_checked < size ) {
+	      next_high_position = next_high_position >= size ? 0 : next_high_position;  //make circular
+	      RateControlledEntity entity = (RateControlledEntity)ref.get( next_high_position );
+	      next_high_position++;
+	      num_checked++;
+	      if( entity.canProcess( write_waiter ) ) {  //is ready
+	        return entity;
+	      }
+	    }
+	
+	    return null;  //none found ready
+	  }
+  }
 }
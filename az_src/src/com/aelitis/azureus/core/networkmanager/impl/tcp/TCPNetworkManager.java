@@ -120,6 +120,8 @@ TCPNetworkManager
 		
 		types.add( AzureusCoreStats.ST_NET_TCP_SELECT_READ_COUNT );
 		types.add( AzureusCoreStats.ST_NET_TCP_SELECT_WRITE_COUNT );
+		types.add( AzureusCoreStats.ST_NET_TCP_WRITE_CALL_COUNT );
+		types.add( AzureusCoreStats.ST_NET_TCP_WRITE_BYTES );
 
 		AzureusCoreStats.registerProvider(
 			types,
@@ -138,6 +140,14 @@ TCPNetworkManager
 						
 						values.put( AzureusCoreStats.ST_NET_TCP_SELECT_WRITE_COUNT, new Long( write_select_count ));
 					}					
+					if ( types.contains( AzureusCoreStats.ST_NET_TCP_WRITE_CALL_COUNT )){
+						
+						values.put( AzureusCoreStats.ST_NET_TCP_WRITE_CALL_COUNT, new Long( TCPTransportHelper.getWriteCallCount()));
+					}
+					if ( types.contains( AzureusCoreStats.ST_NET_TCP_WRITE_BYTES )){
+						
+						values.put( AzureusCoreStats.ST_NET_TCP_WRITE_BYTES, new Long( TCPTransportHelper.getWriteByteCount()));
+					}
 				}
 			});
 		
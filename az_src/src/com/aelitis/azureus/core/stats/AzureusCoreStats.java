@@ -24,6 +24,8 @@
 package com.aelitis.azureus.core.stats;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.regex.Pattern;
 
 import org.gudy.azureus2.core3.util.Average;
@@ -64,6 +66,11 @@ AzureusCoreStats
 	public static final String ST_DISK_WRITE_IO_TIME			= "disk.write.io.time";	
 	public static final String ST_DISK_WRITE_IO_COUNT			= "disk.write.io.count";	
 	
+	public static final String ST_DISK_RECHECK_ACTIVE_COUNT		= "disk.recheck.active.count";	
+	public static final String ST_DISK_RECHECK_DEVICE_COUNT		= "disk.recheck.device.count";	
+	public static final String ST_DISK_RECHECK_BYTES_TOTAL		= "disk.recheck.bytes.total";	
+	public static final String ST_DISK_RECHECK_RATE				= "disk.recheck.rate";	
+	
 		// NETWORK
 	
 	public static final String ST_NET_WRITE_CONTROL_WAIT_COUNT			= "net.write.control.wait.count";	
@@ -73,6 +80,11 @@ AzureusCoreStats
 	public static final String ST_NET_WRITE_CONTROL_CON_COUNT			= "net.write.control.con.count";	
 	public static final String ST_NET_WRITE_CONTROL_READY_CON_COUNT		= "net.write.control.ready.con.count";	
 	public static final String ST_NET_WRITE_CONTROL_READY_BYTE_COUNT	= "net.write.control.ready.byte.count";	
+	public static final String ST_NET_WRITE_CONTROL_SHARD_COUNT			= "net.write.control.shard.count";	
+	
+		// per shard stats are this prefix followed by <n>.loop.time and <n>.rate
+	
+	public static final String ST_NET_WRITE_CONTROL_SHARD				= "net.write.control.shard.";	
 	    
 	public static final String ST_NET_READ_CONTROL_LOOP_COUNT			= "net.read.control.loop.count";	
 	public static final String ST_NET_READ_CONTROL_NP_COUNT				= "net.read.control.np.count";	
@@ -81,6 +93,8 @@ AzureusCoreStats
 	public static final String ST_NET_READ_CONTROL_ENTITY_COUNT			= "net.read.control.entity.count";	
 	public static final String ST_NET_READ_CONTROL_CON_COUNT			= "net.read.control.con.count";	
 	public static final String ST_NET_READ_CONTROL_READY_CON_COUNT		= "net.read.control.ready.con.count";	
+	public static final String ST_NET_READ_CONTROL_SHARD_COUNT			= "net.read.control.shard.count";	
+	public static final String ST_NET_READ_CONTROL_SHARD				= "net.read.control.shard.";	
 	
 		// TCP
 	
@@ -92,6 +106,59 @@ AzureusCoreStats
 	public static final String ST_NET_TCP_SELECT_WRITE_COUNT			= "net.tcp.select.write.count";
 	public static final String ST_NET_TCP_SELECT_READ_COUNT				= "net.tcp.select.read.count";
 
+	public static final String ST_NET_TCP_WRITE_CALL_COUNT				= "net.tcp.write.call.count";
+	public static final String ST_NET_TCP_WRITE_BYTES					= "net.tcp.write.bytes";
+
+		// SSL
+	
+	public static final String ST_NET_SSL_WRITE_RECORD_COUNT			= "net.ssl.write.record.count";
+	public static final String ST_NET_SSL_WRITE_BYTES					= "net.ssl.write.bytes";
+	public static final String ST_NET_SSL_WRAP_TIME						= "net.ssl.wrap.time";
+
+		// F2F overlay transports
+	
+	public static final String ST_F2F_OVERLAY_READ_BYTES				= "f2f.overlay.read.bytes";
+	public static final String ST_F2F_OVERLAY_READ_TIME					= "f2f.overlay.read.time";
+	public static final String ST_F2F_OVERLAY_WRITE_BYTES_COPIED		= "f2f.overlay.write.bytes.copied";
+	public static final String ST_F2F_OVERLAY_WRITE_BYTES_REFERENCED	= "f2f.overlay.write.bytes.referenced";
+	public static final String ST_F2F_OVERLAY_WRITE_TIME				= "f2f.overlay.write.time";
+
+		// F2F, published through AzureusCoreStatsRegistry (.us and .ms names are histograms)
+
+	public static final String ST_F2F_LOCK_WAIT_US						= "f2f.lock.wait.us";
+	public static final String ST_F2F_LOCK_HOLD_US						= "f2f.lock.hold.us";
+	public static final String ST_F2F_LOCK_QUEUE_LENGTH					= "f2f.lock.queue.length";
+	public static final String ST_F2F_FORWARD_MESSAGE_COUNT				= "f2f.forward.message.count";
+	public static final String ST_F2F_FORWARD_BYTES						= "f2f.forward.bytes";
+	public static final String ST_F2F_QUEUE_BYTES						= "f2f.queue.bytes";
+	public static final String ST_F2F_QUEUE_READY_TRANSPORT				= "f2f.queue.ready.transport";
+	public static final String ST_F2F_QUEUE_READY_FORWARD				= "f2f.queue.ready.forward";
+	public static final String ST_F2F_QUEUE_READY_SEARCH				= "f2f.queue.ready.search";
+	public static final String ST_F2F_QUEUE_READY_SERVICE				= "f2f.queue.ready.service";
+	public static final String ST_F2F_QUEUE_SENT_TRANSPORT				= "f2f.queue.sent.transport";
+	public static final String ST_F2F_QUEUE_SENT_FORWARD				= "f2f.queue.sent.forward";
+	public static final String ST_F2F_QUEUE_SENT_SEARCH					= "f2f.queue.sent.search";
+	public static final String ST_F2F_QUEUE_SENT_SERVICE				= "f2f.queue.sent.service";
+	public static final String ST_F2F_QUEUE_DELAY_TRANSPORT_MS			= "f2f.queue.delay.transport.ms";
+	public static final String ST_F2F_QUEUE_DELAY_FORWARD_MS			= "f2f.queue.delay.forward.ms";
+	public static final String ST_F2F_QUEUE_DELAY_SEARCH_MS				= "f2f.queue.delay.search.ms";
+	public static final String ST_F2F_QUEUE_DELAY_SERVICE_MS			= "f2f.queue.delay.service.ms";
+	public static final String ST_F2F_SEARCH_FORWARDED_COUNT			= "f2f.search.forwarded.count";
+	public static final String ST_F2F_SEARCH_BLOCKED_COUNT				= "f2f.search.blocked.count";
+	public static final String ST_F2F_SEARCH_RESPONSE_MS				= "f2f.search.response.ms";
+
+		// UI
+
+	public static final String ST_UI_RPC_TIME_US						= "ui.rpc.time.us";
+
+		// UDP
+	
+	public static final String ST_NET_UDP_PACKETS_SENT					= "net.udp.packets.sent";
+	public static final String ST_NET_UDP_PACKETS_RECEIVED				= "net.udp.packets.received";
+	public static final String ST_NET_UDP_SEND_BLOCKS					= "net.udp.send.blocks";
+	public static final String ST_NET_UDP_RECEIVE_DROPS					= "net.udp.receive.drops";
+	public static final String ST_NET_UDP_SEND_QUEUE_LENGTH				= "net.udp.send.queue.length";
+
 		// HTTP
 	
 	public static final String ST_NET_HTTP_IN_REQUEST_COUNT				= "net.http.inbound.request.count";			
@@ -100,6 +167,13 @@ AzureusCoreStats
 	public static final String ST_NET_HTTP_IN_REQUEST_WEBSEED_COUNT		= "net.http.inbound.request.webseed.count";	
 	public static final String ST_NET_HTTP_IN_REQUEST_GETRIGHT_COUNT	= "net.http.inbound.request.getright.count";	
 	
+		// Memory
+	
+	public static final String ST_MEMORY_DBB_MAGAZINE_OP_COUNT			= "memory.dbb.magazine.op.count";
+	public static final String ST_MEMORY_DBB_DEPOT_EXCHANGE_COUNT		= "memory.dbb.depot.exchange.count";
+	public static final String ST_MEMORY_DBB_LOCKED_OP_COUNT			= "memory.dbb.locked.op.count";
+	public static final String ST_MEMORY_DBB_DEPOT_BYTES				= "memory.dbb.depot.bytes";
+	
 		// Peer Control
 	
 	
@@ -125,6 +199,30 @@ AzureusCoreStats
 	public static final String ST_TRACKER_SCRAPE_COUNT		= "tracker.scrape.count";
 	public static final String ST_TRACKER_SCRAPE_TIME		= "tracker.scrape.time";
 
+		// Global Manager
+	
+	public static final String ST_GLOBAL_MANAGER_LOAD_COUNT			= "global.manager.load.count";
+	public static final String ST_GLOBAL_MANAGER_LOAD_FIRST_TIME	= "global.manager.load.first.time";
+	public static final String ST_GLOBAL_MANAGER_LOAD_ALL_TIME		= "global.manager.load.all.time";
+
+		// Reputation
+	
+	public static final String ST_REPUTATION_WRITE_PENDING_COUNT	= "reputation.write.pending.count";
+	public static final String ST_REPUTATION_WRITE_LAG				= "reputation.write.lag";
+	public static final String ST_REPUTATION_FLUSH_COUNT			= "reputation.flush.count";
+	public static final String ST_REPUTATION_FLUSH_ROWS				= "reputation.flush.rows";
+	public static final String ST_REPUTATION_FLUSH_TIME				= "reputation.flush.time";
+	public static final String ST_REPUTATION_VERIFY_COUNT			= "reputation.verify.count";
+	public static final String ST_REPUTATION_VERIFY_RATE			= "reputation.verify.rate";
+	public static final String ST_REPUTATION_VERIFY_FAILED			= "reputation.verify.failed";
+	public static final String ST_REPUTATION_VERIFY_DUPLICATES		= "reputation.verify.duplicates";
+	public static final String ST_REPUTATION_VERIFY_BACKLOG			= "reputation.verify.backlog";
+	public static final String ST_REPUTATION_UNCHOKE_DECISION_COUNT	= "reputation.unchoke.decision.count";
+	public static final String ST_REPUTATION_UNCHOKE_DECISION_TIME	= "reputation.unchoke.decision.time";
+	public static final String ST_REPUTATION_UNCHOKE_LAST_DECISION_TIME	= "reputation.unchoke.decision.last_time";
+	public static final String ST_REPUTATION_UNCHOKE_CHURN			= "reputation.unchoke.churn";
+	public static final String ST_REPUTATION_UNCHOKE_CANDIDATES		= "reputation.unchoke.candidates";
+
 		// xfer (persistent)
 	
 	public static final String ST_XFER_UPLOADED_PROTOCOL_BYTES		= "xfer.upload.protocol.bytes.total";
@@ -136,8 +234,10 @@ AzureusCoreStats
 	public static final String	POINT 		= "Point";
 	public static final String	CUMULATIVE 	= "Cumulative";
 	
-	private static final List		stats_names	= new ArrayList();
-	private static final Map		stats_types	= new HashMap();
+		// definitions can be added at runtime by AzureusCoreStatsRegistry while stats are read
+
+	private static final List		stats_names	= new CopyOnWriteArrayList();
+	private static final Map		stats_types	= new ConcurrentHashMap();
 	
 	private static final String[][] _ST_ALL = {
 		
@@ -163,6 +263,11 @@ AzureusCoreStats
 		{ ST_DISK_WRITE_IO_TIME,					CUMULATIVE },
 		{ ST_DISK_WRITE_IO_COUNT,					CUMULATIVE },
 
+		{ ST_DISK_RECHECK_ACTIVE_COUNT,				POINT },
+		{ ST_DISK_RECHECK_DEVICE_COUNT,				POINT },
+		{ ST_DISK_RECHECK_BYTES_TOTAL,				CUMULATIVE },
+		{ ST_DISK_RECHECK_RATE,						POINT },
+
 		{ ST_NET_WRITE_CONTROL_WAIT_COUNT,			CUMULATIVE },
 		{ ST_NET_WRITE_CONTROL_P_COUNT,				CUMULATIVE },
 		{ ST_NET_WRITE_CONTROL_NP_COUNT,			CUMULATIVE },
@@ -170,6 +275,7 @@ AzureusCoreStats
 		{ ST_NET_WRITE_CONTROL_CON_COUNT,			POINT },
 		{ ST_NET_WRITE_CONTROL_READY_CON_COUNT,		POINT },
 		{ ST_NET_WRITE_CONTROL_READY_BYTE_COUNT,	POINT },
+		{ ST_NET_WRITE_CONTROL_SHARD_COUNT,			POINT },
 
 		{ ST_NET_READ_CONTROL_LOOP_COUNT,			CUMULATIVE },
 		{ ST_NET_READ_CONTROL_P_COUNT,				CUMULATIVE },
@@ -178,6 +284,7 @@ AzureusCoreStats
 		{ ST_NET_READ_CONTROL_ENTITY_COUNT,			POINT },
 		{ ST_NET_READ_CONTROL_CON_COUNT,			POINT },
 		{ ST_NET_READ_CONTROL_READY_CON_COUNT,		POINT },
+		{ ST_NET_READ_CONTROL_SHARD_COUNT,			POINT },
 		
 		{ ST_NET_TCP_OUT_CONNECT_QUEUE_LENGTH,		POINT },
 		{ ST_NET_TCP_OUT_PENDING_QUEUE_LENGTH,		POINT },
@@ -186,6 +293,24 @@ AzureusCoreStats
 		
 		{ ST_NET_TCP_SELECT_WRITE_COUNT,			CUMULATIVE },
 		{ ST_NET_TCP_SELECT_READ_COUNT,				CUMULATIVE },
+		{ ST_NET_TCP_WRITE_CALL_COUNT,				CUMULATIVE },
+		{ ST_NET_TCP_WRITE_BYTES,					CUMULATIVE },
+		
+		{ ST_NET_SSL_WRITE_RECORD_COUNT,			CUMULATIVE },
+		{ ST_NET_SSL_WRITE_BYTES,					CUMULATIVE },
+		{ ST_NET_SSL_WRAP_TIME,						CUMULATIVE },
+		
+		{ ST_F2F_OVERLAY_READ_BYTES,				CUMULATIVE },
+		{ ST_F2F_OVERLAY_READ_TIME,					CUMULATIVE },
+		{ ST_F2F_OVERLAY_WRITE_BYTES_COPIED,		CUMULATIVE },
+		{ ST_F2F_OVERLAY_WRITE_BYTES_REFERENCED,	CUMULATIVE },
+		{ ST_F2F_OVERLAY_WRITE_TIME,				CUMULATIVE },
+		
+		{ ST_NET_UDP_PACKETS_SENT,					CUMULATIVE },
+		{ ST_NET_UDP_PACKETS_RECEIVED,				CUMULATIVE },
+		{ ST_NET_UDP_SEND_BLOCKS,					CUMULATIVE },
+		{ ST_NET_UDP_RECEIVE_DROPS,					CUMULATIVE },
+		{ ST_NET_UDP_SEND_QUEUE_LENGTH,				POINT },
 		
 		{ ST_NET_HTTP_IN_REQUEST_COUNT,				CUMULATIVE },
 		{ ST_NET_HTTP_IN_REQUEST_OK_COUNT,			CUMULATIVE },
@@ -193,6 +318,11 @@ AzureusCoreStats
 		{ ST_NET_HTTP_IN_REQUEST_WEBSEED_COUNT,		CUMULATIVE },
 		{ ST_NET_HTTP_IN_REQUEST_GETRIGHT_COUNT,	CUMULATIVE },
 		
+		{ ST_MEMORY_DBB_MAGAZINE_OP_COUNT,			CUMULATIVE },
+		{ ST_MEMORY_DBB_DEPOT_EXCHANGE_COUNT,		CUMULATIVE },
+		{ ST_MEMORY_DBB_LOCKED_OP_COUNT,			CUMULATIVE },
+		{ ST_MEMORY_DBB_DEPOT_BYTES,				POINT },
+		
 		{ ST_PEER_CONTROL_SCHEDULE_COUNT,			CUMULATIVE },
 		{ ST_PEER_CONTROL_LOOP_COUNT,				CUMULATIVE },
 		{ ST_PEER_CONTROL_YIELD_COUNT,				CUMULATIVE },
@@ -211,6 +341,26 @@ AzureusCoreStats
 		{ ST_TRACKER_SCRAPE_COUNT,					CUMULATIVE },
 		{ ST_TRACKER_SCRAPE_TIME,					CUMULATIVE },
 
+		{ ST_GLOBAL_MANAGER_LOAD_COUNT,				POINT },
+		{ ST_GLOBAL_MANAGER_LOAD_FIRST_TIME,		POINT },
+		{ ST_GLOBAL_MANAGER_LOAD_ALL_TIME,			POINT },
+
+		{ ST_REPUTATION_WRITE_PENDING_COUNT,		POINT },
+		{ ST_REPUTATION_WRITE_LAG,					POINT },
+		{ ST_REPUTATION_FLUSH_COUNT,				CUMULATIVE },
+		{ ST_REPUTATION_FLUSH_ROWS,					CUMULATIVE },
+		{ ST_REPUTATION_FLUSH_TIME,					CUMULATIVE },
+		{ ST_REPUTATION_VERIFY_COUNT,				CUMULATIVE },
+		{ ST_REPUTATION_VERIFY_RATE,				POINT },
+		{ ST_REPUTATION_VERIFY_FAILED,				CUMULATIVE },
+		{ ST_REPUTATION_VERIFY_DUPLICATES,			CUMULATIVE },
+		{ ST_REPUTATION_VERIFY_BACKLOG,				POINT },
+		{ ST_REPUTATION_UNCHOKE_DECISION_COUNT,		CUMULATIVE },
+		{ ST_REPUTATION_UNCHOKE_DECISION_TIME,		CUMULATIVE },
+		{ ST_REPUTATION_UNCHOKE_LAST_DECISION_TIME,	POINT },
+		{ ST_REPUTATION_UNCHOKE_CHURN,				CUMULATIVE },
+		{ ST_REPUTATION_UNCHOKE_CANDIDATES,			POINT },
+
 		{ ST_XFER_UPLOADED_PROTOCOL_BYTES,			CUMULATIVE },
 		{ ST_XFER_UPLOADED_DATA_BYTES,				CUMULATIVE },
 		{ ST_XFER_DOWNLOADED_PROTOCOL_BYTES,		CUMULATIVE },
@@ -246,6 +396,17 @@ AzureusCoreStats
 		}
 	}
 	
+	/**
+	 * @return POINT, CUMULATIVE or null if the stat has no definition
+	 */
+	
+	public static String
+	getStatsType(
+		String		name )
+	{
+		return((String)stats_types.get( name ));
+	}
+	
 	public static Map
 	getStats(
 		Set		types )
@@ -0,0 +1,80 @@
+/*
+ * Created on Oct 19, 2026
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package com.aelitis.azureus.core.stats;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A cumulative counter that can be bumped from many threads without them contending on a
+ * single cache line. Each thread adds into one of a few stripes, picked by thread id, and
+ * a read sums the stripes - reads are rare (stats polls) while adds are on hot paths.
+ */
+public class
+AzureusCoreStatsCounter
+{
+		// stripes are spaced a cache line (8 longs) apart so neighbours don't false share
+
+	private static final int	PAD		= 8;
+
+	private static final int	STRIPES;
+
+	static{
+		int	cpus 	= Runtime.getRuntime().availableProcessors();
+		int	stripes	= 1;
+
+		while( stripes < cpus*2 && stripes < 64 ){
+
+			stripes <<= 1;
+		}
+
+		STRIPES = stripes;
+	}
+
+	private final AtomicLongArray	cells = new AtomicLongArray( STRIPES*PAD );
+
+	public void
+	increment()
+	{
+		add( 1 );
+	}
+
+	public void
+	add(
+		long		delta )
+	{
+		cells.addAndGet( stripe(), delta );
+	}
+
+	public long
+	get()
+	{
+		long	total = 0;
+
+		for (int i=0;i<STRIPES;i++){
+
+			total += cells.get( i*PAD );
+		}
+
+		return( total );
+	}
+
+	private static int
+	stripe()
+	{
+		return(((int)Thread.currentThread().getId() & ( STRIPES-1 ))*PAD );
+	}
+}
@@ -0,0 +1,212 @@
+/*
+ * Created on Oct 19, 2026
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package com.aelitis.azureus.core.stats;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Formats AzureusCoreStats for external collection: the Prometheus text exposition format
+ * for scrapers and a flat JSON object for the UI. Cumulative stats become counters, point
+ * stats gauges and registry histograms summaries with quantiles.
+ */
+public class
+AzureusCoreStatsExporter
+{
+	public static final String	PROMETHEUS_CONTENT_TYPE	= "text/plain; version=0.0.4; charset=utf-8";
+
+	private static final String	PROMETHEUS_PREFIX	= "oneswarm_";
+
+	public static String
+	getPrometheusText(
+		Set		patterns )
+	{
+		Map	stats = new TreeMap( AzureusCoreStats.getStats( patterns ));
+
+		Map<String,AzureusCoreStatsHistogram>	histograms = new TreeMap<String,AzureusCoreStatsHistogram>();
+
+		Iterator<Map.Entry<String,AzureusCoreStatsHistogram>> h_it = AzureusCoreStatsRegistry.getHistograms().entrySet().iterator();
+
+		while( h_it.hasNext()){
+
+			Map.Entry<String,AzureusCoreStatsHistogram>	entry = h_it.next();
+
+			String	name = entry.getKey();
+
+			if ( stats.containsKey( name + AzureusCoreStatsRegistry.COUNT_SUFFIX )){
+
+				histograms.put( name, entry.getValue());
+			}
+
+				// written as a summary below rather than as separate stats
+
+			stats.remove( name + AzureusCoreStatsRegistry.COUNT_SUFFIX );
+			stats.remove( name + AzureusCoreStatsRegistry.SUM_SUFFIX );
+			stats.remove( name + AzureusCoreStatsRegistry.MAX_SUFFIX );
+
+			for (int i=0;i<AzureusCoreStatsRegistry.QUANTILE_SUFFIXES.length;i++){
+
+				stats.remove( name + AzureusCoreStatsRegistry.QUANTILE_SUFFIXES[i] );
+			}
+		}
+
+		StringBuffer	b = new StringBuffer( 64*stats.size() + 256*histograms.size());
+
+		Iterator	it = stats.entrySet().iterator();
+
+		while( it.hasNext()){
+
+			Map.Entry	entry = (Map.Entry)it.next();
+
+			String	key 	= (String)entry.getKey();
+			Object	value	= entry.getValue();
+
+			if ( !( value instanceof Number )){
+
+				continue;
+			}
+
+			String	name = getPrometheusName( key );
+
+			b.append( "# TYPE " ).append( name ).append( AzureusCoreStats.CUMULATIVE.equals( AzureusCoreStats.getStatsType( key ))?" counter\n":" gauge\n" );
+			b.append( name ).append( ' ' ).append( value ).append( '\n' );
+		}
+
+		h_it = histograms.entrySet().iterator();
+
+		while( h_it.hasNext()){
+
+			Map.Entry<String,AzureusCoreStatsHistogram>	entry = h_it.next();
+
+			String	name = getPrometheusName( entry.getKey());
+
+			AzureusCoreStatsHistogram.snapshot	snapshot = entry.getValue().getSnapshot();
+
+			b.append( "# TYPE " ).append( name ).append( " summary\n" );
+
+			for (int i=0;i<AzureusCoreStatsRegistry.QUANTILES.length;i++){
+
+				double	q = AzureusCoreStatsRegistry.QUANTILES[i];
+
+				b.append( name ).append( "{quantile=\"" ).append( q ).append( "\"} " ).append( snapshot.getValueAtQuantile( q )).append( '\n' );
+			}
+
+			b.append( name ).append( "_sum " ).append( snapshot.getSum()).append( '\n' );
+			b.append( name ).append( "_count " ).append( snapshot.getCount()).append( '\n' );
+
+			b.append( "# TYPE " ).append( name ).append( "_max gauge\n" );
+			b.append( name ).append( "_max " ).append( snapshot.getMax()).append( '\n' );
+		}
+
+		return( b.toString());
+	}
+
+		/**
+		 * @return the numeric stats as a single JSON object keyed by stat name, histograms
+		 * flattened to their .count, .sum, .max and quantile stats
+		 */
+
+	public static String
+	getJSON(
+		Set		patterns )
+	{
+		Map	stats = new TreeMap( AzureusCoreStats.getStats( patterns ));
+
+		StringBuffer	b = new StringBuffer( 48*stats.size() + 2 );
+
+		b.append( '{' );
+
+		Iterator	it = stats.entrySet().iterator();
+
+		boolean	first = true;
+
+		while( it.hasNext()){
+
+			Map.Entry	entry = (Map.Entry)it.next();
+
+			Object	value = entry.getValue();
+
+			if ( !( value instanceof Number )){
+
+				continue;
+			}
+
+			double	d = ((Number)value).doubleValue();
+
+			if ( Double.isNaN( d ) || Double.isInfinite( d )){
+
+					// not representable in JSON
+
+				continue;
+			}
+
+			if ( !first ){
+
+				b.append( ',' );
+			}
+
+			first = false;
+
+				// stat names are plain ascii identifiers, no escaping needed
+
+			b.append( '"' ).append( entry.getKey()).append( "\":" ).append( value );
+		}
+
+		b.append( '}' );
+
+		return( b.toString());
+	}
+
+	public static Set
+	getPatterns(
+		String		pattern )
+	{
+		Set	patterns = new HashSet();
+
+		patterns.add( pattern==null||pattern.length()==0?AzureusCoreStats.ST_ALL:pattern );
+
+		return( patterns );
+	}
+
+	protected static String
+	getPrometheusName(
+		String		key )
+	{
+		StringBuffer	b = new StringBuffer( PROMETHEUS_PREFIX.length() + key.length());
+
+		b.append( PROMETHEUS_PREFIX );
+
+		for (int i=0;i<key.length();i++){
+
+			char	c = key.charAt(i);
+
+			if (( c >= 'a' && c <= 'z' ) || ( c >= 'A' && c <= 'Z' ) || ( c >= '0' && c <= '9' ) || c == '_' ){
+
+				b.append( c );
+
+			}else{
+
+				b.append( '_' );
+			}
+		}
+
+		return( b.toString());
+	}
+}
@@ -0,0 +1,194 @@
+/*
+ * Created on Oct 19, 2026
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package com.aelitis.azureus.core.stats;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed size, lock free histogram of non-negative values (latencies, sizes) in the style of
+ * HdrHistogram: buckets are linear below 8 and split each power of two into 8 above that, so
+ * any recorded value is reported within 12.5% of its true value over the full range of a long
+ * while recording stays a single atomic add. The unit is up to the caller, by convention it
+ * is the suffix of the histogram's name.
+ */
+public class
+AzureusCoreStatsHistogram
+{
+	private static final int	SUB_BITS	= 3;
+	private static final int	SUB_COUNT	= 1 << SUB_BITS;
+
+		// values up to 2^62 need 60 doublings of 8 sub-buckets beyond the linear ones
+
+	private static final int	BUCKETS		= ( 64 - SUB_BITS )*SUB_COUNT;
+
+	private final AtomicLongArray			buckets	= new AtomicLongArray( BUCKETS );
+	private final AzureusCoreStatsCounter	sum		= new AzureusCoreStatsCounter();
+	private final AtomicLong				max		= new AtomicLong();
+
+	public void
+	record(
+		long		value )
+	{
+		if ( value < 0 ){
+
+			value = 0;
+		}
+
+		buckets.incrementAndGet( getBucket( value ));
+
+		sum.add( value );
+
+		while( true ){
+
+			long	current = max.get();
+
+			if ( value <= current || max.compareAndSet( current, value )){
+
+				break;
+			}
+		}
+	}
+
+	public snapshot
+	getSnapshot()
+	{
+		long[]	counts = new long[BUCKETS];
+
+		for (int i=0;i<BUCKETS;i++){
+
+			counts[i] = buckets.get( i );
+		}
+
+		return( new snapshot( counts, sum.get(), max.get()));
+	}
+
+	protected static int
+	getBucket(
+		long		value )
+	{
+		if ( value < SUB_COUNT ){
+
+			return((int)value );
+		}
+
+		int	shift = 63 - Long.numberOfLeadingZeros( value ) - SUB_BITS;
+
+		return(( shift + 1 )*SUB_COUNT + (int)(( value >>> shift ) & ( SUB_COUNT - 1 )));
+	}
+
+	protected static long
+	getBucketUpperBound(
+		int			bucket )
+	{
+		if ( bucket < SUB_COUNT ){
+
+			return( bucket );
+		}
+
+		int	shift 	= bucket/SUB_COUNT - 1;
+		int	sub		= bucket%SUB_COUNT;
+
+		return((((long)( SUB_COUNT + sub )) << shift ) + ( 1L << shift ) - 1 );
+	}
+
+	public static class
+	snapshot
+	{
+		private final long[]	counts;
+		private final long		count;
+		private final long		sum;
+		private final long		max;
+
+		protected
+		snapshot(
+			long[]		_counts,
+			long		_sum,
+			long		_max )
+		{
+			counts	= _counts;
+			sum		= _sum;
+			max		= _max;
+
+			long	total = 0;
+
+			for (int i=0;i<counts.length;i++){
+
+				total += counts[i];
+			}
+
+			count	= total;
+		}
+
+		public long
+		getCount()
+		{
+			return( count );
+		}
+
+		public long
+		getSum()
+		{
+			return( sum );
+		}
+
+		public long
+		getMax()
+		{
+			return( max );
+		}
+
+			/**
+			 * @param quantile 0..1
+			 * @return the smallest bucket bound that at least quantile of the values are
+			 * at or below, 0 if nothing has been recorded
+			 */
+
+		public long
+		getValueAtQuantile(
+			double		quantile )
+		{
+			if ( count == 0 ){
+
+				return( 0 );
+			}
+
+			long	rank = (long)Math.ceil( quantile*count );
+
+			if ( rank < 1 ){
+
+				rank = 1;
+			}
+
+			long	seen = 0;
+
+			for (int i=0;i<counts.length;i++){
+
+				seen += counts[i];
+
+				if ( seen >= rank ){
+
+						// the max is exact, don't report a bucket bound beyond it
+
+					return( Math.min( getBucketUpperBound( i ), max ));
+				}
+			}
+
+			return( max );
+		}
+	}
+}
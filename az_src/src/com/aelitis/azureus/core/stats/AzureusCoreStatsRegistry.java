@@ -0,0 +1,246 @@
+/*
+ * Created on Oct 19, 2026
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package com.aelitis.azureus.core.stats;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+import org.gudy.azureus2.core3.util.Debug;
+
+/**
+ * Named counters, gauges and histograms that report through AzureusCoreStats, so code can
+ * publish a stat with one call instead of writing an AzureusCoreStatsProvider for it. Everything
+ * registered here shows up in AzureusCoreStats.getStats under its name; a histogram shows up
+ * as <name>.count, .sum, .max and the .p50, .p90 and .p99 quantiles.
+ *
+ * Lookups by name are cheap but not free, hot paths should keep the returned object.
+ */
+public class
+AzureusCoreStatsRegistry
+{
+	public static final double[]	QUANTILES			= { 0.5, 0.9, 0.99 };
+	public static final String[]	QUANTILE_SUFFIXES	= { ".p50", ".p90", ".p99" };
+
+	public static final String		COUNT_SUFFIX	= ".count";
+	public static final String		SUM_SUFFIX		= ".sum";
+	public static final String		MAX_SUFFIX		= ".max";
+
+	private static final Map<String,AzureusCoreStatsCounter>	counters 	= new ConcurrentHashMap<String,AzureusCoreStatsCounter>();
+	private static final Map<String,AzureusCoreStatsGauge>		gauges 		= new ConcurrentHashMap<String,AzureusCoreStatsGauge>();
+	private static final Map<String,AzureusCoreStatsHistogram>	histograms	= new ConcurrentHashMap<String,AzureusCoreStatsHistogram>();
+
+		// live, AzureusCoreStats matches requests against it on every getStats
+
+	private static final Set<String>	types = new CopyOnWriteArraySet<String>();
+
+	static{
+
+		AzureusCoreStats.registerProvider(
+			types,
+			new AzureusCoreStatsProvider()
+			{
+				public void
+				updateStats(
+					Set		types,
+					Map		values )
+				{
+					updateRegistryStats( types, values );
+				}
+			});
+	}
+
+	public static AzureusCoreStatsCounter
+	getCounter(
+		String		name )
+	{
+		AzureusCoreStatsCounter	counter = counters.get( name );
+
+		if ( counter != null ){
+
+			return( counter );
+		}
+
+		synchronized( types ){
+
+			counter = counters.get( name );
+
+			if ( counter == null ){
+
+				counter = new AzureusCoreStatsCounter();
+
+				define( name, AzureusCoreStats.CUMULATIVE );
+
+				counters.put( name, counter );
+			}
+
+			return( counter );
+		}
+	}
+
+		/**
+		 * Registers a gauge, replacing any previous gauge with the same name
+		 */
+
+	public static void
+	registerGauge(
+		String					name,
+		AzureusCoreStatsGauge	gauge )
+	{
+		synchronized( types ){
+
+			define( name, AzureusCoreStats.POINT );
+
+			gauges.put( name, gauge );
+		}
+	}
+
+	public static AzureusCoreStatsHistogram
+	getHistogram(
+		String		name )
+	{
+		AzureusCoreStatsHistogram	histogram = histograms.get( name );
+
+		if ( histogram != null ){
+
+			return( histogram );
+		}
+
+		synchronized( types ){
+
+			histogram = histograms.get( name );
+
+			if ( histogram == null ){
+
+				histogram = new AzureusCoreStatsHistogram();
+
+				define( name + COUNT_SUFFIX, AzureusCoreStats.CUMULATIVE );
+				define( name + SUM_SUFFIX, AzureusCoreStats.CUMULATIVE );
+				define( name + MAX_SUFFIX, AzureusCoreStats.POINT );
+
+				for (int i=0;i<QUANTILE_SUFFIXES.length;i++){
+
+					define( name + QUANTILE_SUFFIXES[i], AzureusCoreStats.POINT );
+				}
+
+				histograms.put( name, histogram );
+			}
+
+			return( histogram );
+		}
+	}
+
+	public static Map<String,AzureusCoreStatsHistogram>
+	getHistograms()
+	{
+		return( Collections.unmodifiableMap( histograms ));
+	}
+
+	private static void
+	define(
+		String		name,
+		String		type )
+	{
+		if ( AzureusCoreStats.getStatsType( name ) == null ){
+
+			AzureusCoreStats.addStatsDefinitions( new String[][]{{ name, type }});
+		}
+
+		types.add( name );
+	}
+
+	private static void
+	updateRegistryStats(
+		Set		required,
+		Map		values )
+	{
+		Iterator<Map.Entry<String,AzureusCoreStatsCounter>> c_it = counters.entrySet().iterator();
+
+		while( c_it.hasNext()){
+
+			Map.Entry<String,AzureusCoreStatsCounter>	entry = c_it.next();
+
+			if ( required.contains( entry.getKey())){
+
+				values.put( entry.getKey(), new Long( entry.getValue().get()));
+			}
+		}
+
+		Iterator<Map.Entry<String,AzureusCoreStatsGauge>> g_it = gauges.entrySet().iterator();
+
+		while( g_it.hasNext()){
+
+			Map.Entry<String,AzureusCoreStatsGauge>	entry = g_it.next();
+
+			if ( required.contains( entry.getKey())){
+
+				try{
+					values.put( entry.getKey(), new Long( entry.getValue().getValue()));
+
+				}catch( Throwable e ){
+
+					Debug.printStackTrace( e );
+				}
+			}
+		}
+
+		Iterator<Map.Entry<String,AzureusCoreStatsHistogram>> h_it = histograms.entrySet().iterator();
+
+		while( h_it.hasNext()){
+
+			Map.Entry<String,AzureusCoreStatsHistogram>	entry = h_it.next();
+
+			String	name = entry.getKey();
+
+			AzureusCoreStatsHistogram.snapshot	snapshot = null;
+
+			if ( required.contains( name + COUNT_SUFFIX )){
+
+				snapshot = entry.getValue().getSnapshot();
+
+				values.put( name + COUNT_SUFFIX, new Long( snapshot.getCount()));
+			}
+
+			if ( required.contains( name + SUM_SUFFIX )){
+
+				snapshot = snapshot==null?entry.getValue().getSnapshot():snapshot;
+
+				values.put( name + SUM_SUFFIX, new Long( snapshot.getSum()));
+			}
+
+			if ( required.contains( name + MAX_SUFFIX )){
+
+				snapshot = snapshot==null?entry.getValue().getSnapshot():snapshot;
+
+				values.put( name + MAX_SUFFIX, new Long( snapshot.getMax()));
+			}
+
+			for (int i=0;i<QUANTILES.length;i++){
+
+				if ( required.contains( name + QUANTILE_SUFFIXES[i] )){
+
+					snapshot = snapshot==null?entry.getValue().getSnapshot():snapshot;
+
+					values.put( name + QUANTILE_SUFFIXES[i], new Long( snapshot.getValueAtQuantile( QUANTILES[i] )));
+				}
+			}
+		}
+	}
+}
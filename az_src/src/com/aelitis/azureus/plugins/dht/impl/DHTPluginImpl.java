@@ -260,6 +260,8 @@ DHTPluginImpl
 			
 			storage_manager.importContacts( dht );
 			
+			storage_manager.importValues( dht );
+			
 			plugin_interface.getUtilities().createTimer( "DHTExport", true ).addPeriodicEvent(
 					10*60*1000,
 					new UTTimerEventPerformer()
@@ -434,6 +436,24 @@ DHTPluginImpl
 				   	",ind=" + dbv_details[DHTDBStats.VD_INDIRECT_SIZE]+
 				   	",div_f=" + dbv_details[DHTDBStats.VD_DIV_FREQ]+
 				   	",div_s=" + dbv_details[DHTDBStats.VD_DIV_SIZE] );
+		
+		log.log(    "Lookup:rtt=" + c_stats.getLookupRTT() +
+					",loss=" + c_stats.getLookupLossPercent() + "%" +
+					",conc=" + c_stats.getLookupConcurrency() +
+					",reqs=" + c_stats.getLookupRequestCount() +
+					",cached=" + c_stats.getLookupCacheHitCount() +
+					",merged=" + c_stats.getMergedLookupCount());
+		
+		long[]	op_counts	= d_stats.getOperationCounts();
+		long[]	op_times	= d_stats.getOperationTimes();
+		
+		log.log(    "Database:shards=" + d_stats.getShardCount() +
+					",evicted=" + d_stats.getEvictedKeyCount() +
+					",store=" + op_counts[DHTDBStats.OP_STORE] + "/" + op_times[DHTDBStats.OP_STORE] + "us" +
+					",get=" + op_counts[DHTDBStats.OP_GET] + "/" + op_times[DHTDBStats.OP_GET] + "us" +
+					",local=" + op_counts[DHTDBStats.OP_LOCAL] + "/" + op_times[DHTDBStats.OP_LOCAL] + "us" +
+					",query=" + op_counts[DHTDBStats.OP_QUERY_STORE] + "/" + op_times[DHTDBStats.OP_QUERY_STORE] + "us" +
+					",persist=" + d_stats.getValueStoreLoadCount() + "/" + d_stats.getValueStoreLoadTime() + "ms/" + d_stats.getValueStoreSize() );
 	}
 	
 	protected File
@@ -1194,6 +1214,8 @@ outer:
 	{
 		storage_manager.exportContacts( dht );
 		
+		storage_manager.exportValues( dht );
+		
 		dht.destroy();
 	}
 
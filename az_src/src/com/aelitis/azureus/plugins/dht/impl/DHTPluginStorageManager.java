@@ -295,6 +295,34 @@ DHTPluginStorageManager
 		writeDiversifications();
 	}
 	
+		/**
+		 * Reloads the values cached for other nodes when they were saved last time, so they can
+		 * be served straight away rather than waiting for them to be republished to us
+		 */
+	
+	protected void
+	importValues(
+		DHT		dht )
+	{
+		File	target = new File( data_dir, "values.dat" );
+
+		if ( COConfigurationManager.getBooleanParameter( "dht.values.persist" )){
+			
+			dht.getDataBase().openValueStore( target );
+			
+		}else{
+			
+			target.delete();
+		}
+	}
+	
+	protected void
+	exportValues(
+		DHT		dht )
+	{
+		dht.getDataBase().closeValueStore();
+	}
+	
 	protected void
 	readRecentAddresses()
 	{
@@ -50,6 +50,16 @@ PRUDPPacketHandlerStats
 	public long
 	getReceiveQueueLength();
 	
+		/**
+		 * number of requests that had to wait for room in the send queue
+		 */
+	
+	public long
+	getSendBlocks();
+	
+	public long
+	getReceiveDrops();
+	
 	public PRUDPPacketHandlerStats
 	snapshot();
 }
@@ -32,7 +32,10 @@ import java.util.*;
 import org.gudy.azureus2.core3.util.AEMonitor;
 import org.gudy.azureus2.core3.util.Debug;
 
+import com.aelitis.azureus.core.stats.AzureusCoreStats;
+import com.aelitis.azureus.core.stats.AzureusCoreStatsProvider;
 import com.aelitis.net.udp.uc.PRUDPPacketHandler;
+import com.aelitis.net.udp.uc.PRUDPPacketHandlerStats;
 import com.aelitis.net.udp.uc.PRUDPReleasablePacketHandler;
 import com.aelitis.net.udp.uc.PRUDPRequestHandler;
 
@@ -44,6 +47,81 @@ PRUDPPacketHandlerFactoryImpl
 	private static Map			releasable_map = new HashMap();
 	private static Set			non_releasable_set = new HashSet();
 	
+	static{
+		Set	types = new HashSet();
+		
+		types.add( AzureusCoreStats.ST_NET_UDP_PACKETS_SENT );
+		types.add( AzureusCoreStats.ST_NET_UDP_PACKETS_RECEIVED );
+		types.add( AzureusCoreStats.ST_NET_UDP_SEND_BLOCKS );
+		types.add( AzureusCoreStats.ST_NET_UDP_RECEIVE_DROPS );
+		types.add( AzureusCoreStats.ST_NET_UDP_SEND_QUEUE_LENGTH );
+		
+		AzureusCoreStats.registerProvider(
+			types,
+			new AzureusCoreStatsProvider()
+			{
+				public void
+				updateStats(
+					Set		types,
+					Map		values )
+				{
+					long	sent		= 0;
+					long	received	= 0;
+					long	send_blocks	= 0;
+					long	recv_drops	= 0;
+					long	send_queue	= 0;
+					
+					List	handlers;
+					
+					try{
+						class_mon.enter();
+						
+						handlers = new ArrayList( receiver_map.values());
+						
+					}finally{
+						
+						class_mon.exit();
+					}
+					
+					for (int i=0;i<handlers.size();i++){
+						
+						PRUDPPacketHandlerStats	stats = ((PRUDPPacketHandler)handlers.get(i)).getStats();
+						
+						sent		+= stats.getPacketsSent();
+						received	+= stats.getPacketsReceived();
+						send_blocks	+= stats.getSendBlocks();
+						recv_drops	+= stats.getReceiveDrops();
+						send_queue	+= stats.getSendQueueLength();
+					}
+					
+					if ( types.contains( AzureusCoreStats.ST_NET_UDP_PACKETS_SENT )){
+						
+						values.put( AzureusCoreStats.ST_NET_UDP_PACKETS_SENT, new Long( sent ));
+					}
+					
+					if ( types.contains( AzureusCoreStats.ST_NET_UDP_PACKETS_RECEIVED )){
+						
+						values.put( AzureusCoreStats.ST_NET_UDP_PACKETS_RECEIVED, new Long( received ));
+					}
+					
+					if ( types.contains( AzureusCoreStats.ST_NET_UDP_SEND_BLOCKS )){
+						
+						values.put( AzureusCoreStats.ST_NET_UDP_SEND_BLOCKS, new Long( send_blocks ));
+					}
+					
+					if ( types.contains( AzureusCoreStats.ST_NET_UDP_RECEIVE_DROPS )){
+						
+						values.put( AzureusCoreStats.ST_NET_UDP_RECEIVE_DROPS, new Long( recv_drops ));
+					}
+					
+					if ( types.contains( AzureusCoreStats.ST_NET_UDP_SEND_QUEUE_LENGTH )){
+						
+						values.put( AzureusCoreStats.ST_NET_UDP_SEND_QUEUE_LENGTH, new Long( send_queue ));
+					}
+				}
+			});
+	}
+	
 
 	public static PRUDPPacketHandler
 	getHandler(
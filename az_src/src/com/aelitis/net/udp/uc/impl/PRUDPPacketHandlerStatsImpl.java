@@ -22,6 +22,8 @@
 
 package com.aelitis.net.udp.uc.impl;
 
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
 import org.gudy.azureus2.core3.util.Debug;
 
 import com.aelitis.net.udp.uc.PRUDPPacketHandlerStats;
@@ -35,6 +37,12 @@ public class
 PRUDPPacketHandlerStatsImpl
 	implements PRUDPPacketHandlerStats, Cloneable
 {
+		// any number of senders can block at once. an updater rather than an AtomicLong so that
+		// snapshot()'s clone copies the value
+	
+	private static final AtomicLongFieldUpdater<PRUDPPacketHandlerStatsImpl>	send_blocks_updater = 
+		AtomicLongFieldUpdater.newUpdater( PRUDPPacketHandlerStatsImpl.class, "send_blocks" );
+	
 	private PRUDPPacketHandlerImpl	packet_handler;
 	
 	private long packets_sent;
@@ -42,6 +50,8 @@ PRUDPPacketHandlerStatsImpl
 	private long requests_timeout;
 	private long bytes_sent;
 	private long bytes_received;
+	private volatile long send_blocks;
+	private long receive_drops;
 	
 	protected
 	PRUDPPacketHandlerStatsImpl(
@@ -127,6 +137,30 @@ PRUDPPacketHandlerStatsImpl
 		
 	}
 	
+	public long
+	getSendBlocks()
+	{
+		return( send_blocks );
+	}
+	
+	protected void
+	sendBlocked()
+	{
+		send_blocks_updater.incrementAndGet( this );
+	}
+	
+	public long
+	getReceiveDrops()
+	{
+		return( receive_drops );
+	}
+	
+	protected void
+	receiveDropped()
+	{
+		receive_drops++;
+	}
+	
 	public PRUDPPacketHandlerStats
 	snapshot()
 	{
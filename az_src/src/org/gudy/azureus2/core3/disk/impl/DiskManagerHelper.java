@@ -33,6 +33,7 @@ import org.gudy.azureus2.core3.disk.impl.piecemapper.DMPieceList;
 import org.gudy.azureus2.core3.download.DownloadManagerState;
 import org.gudy.azureus2.core3.torrent.TOTorrent;
 import org.gudy.azureus2.core3.torrent.TOTorrentException;
+import org.gudy.azureus2.core3.torrent.TOTorrentPieceHashes;
 
 import com.aelitis.azureus.core.diskmanager.access.DiskAccessController;
 
@@ -52,6 +53,11 @@ DiskManagerHelper
 		int	piece_number )
 	
 		throws TOTorrentException;
+	
+	public TOTorrentPieceHashes
+	getPieceHashes()
+	
+		throws TOTorrentException;
 		
 	/**
 	 * Stops the disk manager and informs the download manager that things have gone
@@ -22,23 +22,37 @@
 
 package org.gudy.azureus2.core3.disk.impl;
 
+import org.gudy.azureus2.core3.util.SystemTime;
+
 public class 
 DiskManagerRecheckInstance 
 {
 	private DiskManagerRecheckScheduler	scheduler;
+	private DiskManagerHelper			helper;
+	private String						device;
 	private long						metric;
+	private volatile long				bytes_to_check;
 	private int							piece_length;
 	private boolean						low_priority;
 	
+	private long						start_time	= SystemTime.getMonotonousTime();
+	private volatile long				bytes_checked;
+	private long						last_log_time;
+	
 	protected
 	DiskManagerRecheckInstance(
 		DiskManagerRecheckScheduler	_scheduler,
+		DiskManagerHelper			_helper,
+		String						_device,
 		long						_size,
 		int							_piece_length,
 		boolean						_low_priority )
 	{
 		scheduler		= _scheduler;
+		helper			= _helper;
+		device			= _device;
 		metric			= (_low_priority?0:0x7000000000000000L) + _size;
+		bytes_to_check	= _size;
 		piece_length	= _piece_length;
 		low_priority	= _low_priority;
 	}
@@ -61,12 +75,128 @@ DiskManagerRecheckInstance
 		return( low_priority );
 	}
 	
+	protected DiskManagerHelper
+	getHelper()
+	{
+		return( helper );
+	}
+	
+	protected long
+	getStartTime()
+	{
+		return( start_time );
+	}
+	
+	protected long
+	getLastLogTime()
+	{
+		return( last_log_time );
+	}
+	
+	protected void
+	setLastLogTime(
+		long	time )
+	{
+		last_log_time	= time;
+	}
+	
+		/**
+		 * @return the physical device (as best we can tell) that the download's data lives on
+		 */
+	
+	public String
+	getDevice()
+	{
+		return( device );
+	}
+	
+		/**
+		 * @return how many piece checks may be outstanding at once so that reads for the next
+		 * pieces are queued back to back while earlier ones are being hashed
+		 */
+	
+	public int
+	getMaxOutstanding()
+	{
+		return( scheduler.getMaxOutstanding( this ));
+	}
+	
 	public boolean
 	getPermission()
 	{
 		return( scheduler.getPermission( this ));
 	}
 	
+		/**
+		 * Records that a piece check has finished so that rates and ETAs can be reported
+		 */
+	
+	public void
+	pieceChecked(
+		int		length )
+	{
+		bytes_checked += length;
+		
+		scheduler.pieceChecked( this, length );
+	}
+	
+		/**
+		 * Sets how much data the recheck will actually read, if less than the whole torrent
+		 * (e.g. pieces that resume data says are fine aren't rechecked)
+		 */
+	
+	public void
+	setBytesToCheck(
+		long	bytes )
+	{
+		bytes_to_check	= bytes;
+	}
+	
+	public long
+	getBytesChecked()
+	{
+		return( bytes_checked );
+	}
+	
+		/**
+		 * @return bytes/sec for this recheck since it started
+		 */
+	
+	public long
+	getRate()
+	{
+		long	elapsed = SystemTime.getMonotonousTime() - start_time;
+		
+		if ( elapsed <= 0 ){
+			
+			return( 0 );
+		}
+		
+		return( bytes_checked*1000/elapsed );
+	}
+	
+		/**
+		 * @return estimated seconds remaining based on the current rate of the device, -1 if unknown
+		 */
+	
+	public long
+	getETA()
+	{
+		long	rate = scheduler.getDeviceRate( device );
+		
+		if ( rate <= 0 ){
+			
+			rate = getRate();
+		}
+		
+		if ( rate <= 0 ){
+			
+			return( -1 );
+		}
+		
+		return( Math.max( 0, bytes_to_check - bytes_checked ) / rate );
+	}
+	
 	public void
 	unregister()
 	{
@@ -22,22 +22,39 @@
 
 package org.gudy.azureus2.core3.disk.impl;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.List;
+import java.io.*;
+import java.util.*;
 
 import org.gudy.azureus2.core3.config.COConfigurationManager;
 import org.gudy.azureus2.core3.config.ParameterListener;
+import org.gudy.azureus2.core3.logging.LogEvent;
+import org.gudy.azureus2.core3.logging.LogIDs;
+import org.gudy.azureus2.core3.logging.Logger;
 import org.gudy.azureus2.core3.util.AEMonitor;
-import org.gudy.azureus2.core3.util.ConcurrentHasher;
+import org.gudy.azureus2.core3.util.Average;
+import org.gudy.azureus2.core3.util.Constants;
+import org.gudy.azureus2.core3.util.DisplayFormatters;
 import org.gudy.azureus2.core3.util.RealTimeInfo;
+import org.gudy.azureus2.core3.util.SystemTime;
+import org.gudy.azureus2.core3.util.TimeFormatter;
+
+import com.aelitis.azureus.core.stats.AzureusCoreStats;
+import com.aelitis.azureus.core.stats.AzureusCoreStatsProvider;
 
 public class 
 DiskManagerRecheckScheduler 
 {
+	private static final LogIDs LOGID = LogIDs.DISK;
+
+	private static final int	MIN_OUTSTANDING			= 2;
+	private static final int	MAX_OUTSTANDING			= 32;
+	private static final int	PROGRESS_LOG_PERIOD		= 30*1000;
+	private static final int	MOUNT_REFRESH_PERIOD	= 60*1000;
+
 	private static boolean 	friendly_hashing;
 	private static boolean 	smallest_first;
+	private static boolean 	per_device;
+	private static int		read_ahead_bytes;
 
     static{
     	
@@ -48,19 +65,94 @@ DiskManagerRecheckScheduler
     	    {
     	   	      friendly_hashing 	= COConfigurationManager.getBooleanParameter( "diskmanager.friendly.hashchecking" );
     	   	      smallest_first	= COConfigurationManager.getBooleanParameter( "diskmanager.hashchecking.smallestfirst" ); 
+    	   	      per_device		= COConfigurationManager.getBooleanParameter( "diskmanager.hashchecking.perdevice" ); 
+    	   	      read_ahead_bytes	= COConfigurationManager.getIntParameter( "diskmanager.hashchecking.readahead.mb" )*1024*1024; 
     	    }
     	 };
 
  		COConfigurationManager.addAndFireParameterListeners(
  				new String[]{
  					"diskmanager.friendly.hashchecking",
- 					"diskmanager.hashchecking.smallestfirst" },
+ 					"diskmanager.hashchecking.smallestfirst",
+ 					"diskmanager.hashchecking.perdevice",
+ 					"diskmanager.hashchecking.readahead.mb" },
  				param_listener );
     }
     
+	private static List		mount_points;
+	private static long		mount_points_time;
+	
 	private List		instances		= new ArrayList();
 	private AEMonitor	instance_mon	= new AEMonitor( "DiskManagerRecheckScheduler" );
 	
+	private Map			device_rates	= new HashMap();	// device -> Average
+	private long		total_bytes_checked;
+	
+	public
+	DiskManagerRecheckScheduler()
+	{
+		Set	types = new HashSet();
+		
+		types.add( AzureusCoreStats.ST_DISK_RECHECK_ACTIVE_COUNT );
+		types.add( AzureusCoreStats.ST_DISK_RECHECK_DEVICE_COUNT );
+		types.add( AzureusCoreStats.ST_DISK_RECHECK_BYTES_TOTAL );
+		types.add( AzureusCoreStats.ST_DISK_RECHECK_RATE );
+		
+		AzureusCoreStats.registerProvider( 
+			types,
+			new AzureusCoreStatsProvider()
+			{
+				public void
+				updateStats(
+					Set		types,
+					Map		values )
+				{
+					try{
+						instance_mon.enter();
+						
+						if ( types.contains( AzureusCoreStats.ST_DISK_RECHECK_ACTIVE_COUNT )){
+							
+							values.put( AzureusCoreStats.ST_DISK_RECHECK_ACTIVE_COUNT, new Long( instances.size()));
+						}
+						
+						if ( types.contains( AzureusCoreStats.ST_DISK_RECHECK_DEVICE_COUNT )){
+							
+							Set	devices = new HashSet();
+							
+							for (int i=0;i<instances.size();i++){
+								
+								devices.add(((DiskManagerRecheckInstance)instances.get(i)).getDevice());
+							}
+							
+							values.put( AzureusCoreStats.ST_DISK_RECHECK_DEVICE_COUNT, new Long( devices.size()));
+						}
+						
+						if ( types.contains( AzureusCoreStats.ST_DISK_RECHECK_BYTES_TOTAL )){
+							
+							values.put( AzureusCoreStats.ST_DISK_RECHECK_BYTES_TOTAL, new Long( total_bytes_checked ));
+						}
+						
+						if ( types.contains( AzureusCoreStats.ST_DISK_RECHECK_RATE )){
+							
+							long	total = 0;
+							
+							Iterator	it = device_rates.values().iterator();
+							
+							while( it.hasNext()){
+								
+								total += ((Average)it.next()).getAverage();
+							}
+							
+							values.put( AzureusCoreStats.ST_DISK_RECHECK_RATE, new Long( total ));
+						}
+					}finally{
+						
+						instance_mon.exit();
+					}
+				}
+			});
+	}
+	
 	
 	public DiskManagerRecheckInstance
 	register(
@@ -73,6 +165,8 @@ DiskManagerRecheckScheduler
 			DiskManagerRecheckInstance	res = 
 				new DiskManagerRecheckInstance( 
 						this, 
+						helper,
+						getDevice( helper.getSaveLocation()),
 						helper.getTorrent().getSize(),
 						(int)helper.getTorrent().getPieceLength(),
 						low_priority );
@@ -125,7 +219,24 @@ DiskManagerRecheckScheduler
 		try{
 			instance_mon.enter();
 
-			if ( instances.get(0) == instance ){
+				// one recheck at a time per device - rechecks of downloads on different
+				// disks don't compete for the same heads so can run concurrently
+			
+			DiskManagerRecheckInstance	first = null;
+			
+			for (int i=0;i<instances.size();i++){
+				
+				DiskManagerRecheckInstance	inst = (DiskManagerRecheckInstance)instances.get(i);
+				
+				if ( !per_device || inst.getDevice().equals( instance.getDevice())){
+					
+					first = inst;
+					
+					break;
+				}
+			}
+			
+			if ( first == instance ){
 					    
 				boolean	low_priority = instance.isLowPriority();
 				
@@ -178,6 +289,117 @@ DiskManagerRecheckScheduler
 		return( result );
 	}
 	
+	protected int
+	getMaxOutstanding(
+		DiskManagerRecheckInstance	instance )
+	{
+		int	res = read_ahead_bytes / Math.max( 1, instance.getPieceLength());
+		
+		return( Math.max( MIN_OUTSTANDING, Math.min( MAX_OUTSTANDING, res )));
+	}
+	
+	protected void
+	pieceChecked(
+		DiskManagerRecheckInstance	instance,
+		int							length )
+	{
+		boolean	log = false;
+		
+		try{
+			instance_mon.enter();
+			
+			total_bytes_checked += length;
+			
+			getDeviceAverage( instance.getDevice()).addValue( length );
+			
+			long	now = SystemTime.getMonotonousTime();
+			
+			if ( now - instance.getLastLogTime() >= PROGRESS_LOG_PERIOD ){
+				
+				instance.setLastLogTime( now );
+				
+				log = instance.getLastLogTime() - instance.getStartTime() >= PROGRESS_LOG_PERIOD;
+			}
+		}finally{
+			
+			instance_mon.exit();
+		}
+		
+		if ( log && Logger.isEnabled()){
+			
+			Logger.log( new LogEvent( instance.getHelper(), LOGID, 
+					"Recheck on " + instance.getDevice() + ": " + 
+					DisplayFormatters.formatByteCountToKiBEtcPerSec( getDeviceRate( instance.getDevice())) + 
+					", " + DisplayFormatters.formatByteCountToKiBEtc( instance.getBytesChecked()) + " checked" +
+					", ETA " + TimeFormatter.format( instance.getETA())));
+		}
+	}
+	
+		/**
+		 * @return bytes/sec currently being rechecked on the device
+		 */
+	
+	public long
+	getDeviceRate(
+		String		device )
+	{
+		try{
+			instance_mon.enter();
+			
+			Average	average = (Average)device_rates.get( device );
+			
+			return( average==null?0:average.getAverage());
+			
+		}finally{
+			
+			instance_mon.exit();
+		}
+	}
+	
+		/**
+		 * @return device -> bytes/sec for devices with active rechecks
+		 */
+	
+	public Map
+	getDeviceRates()
+	{
+		Map	res = new HashMap();
+		
+		try{
+			instance_mon.enter();
+			
+			for (int i=0;i<instances.size();i++){
+				
+				String	device = ((DiskManagerRecheckInstance)instances.get(i)).getDevice();
+				
+				Average	average = (Average)device_rates.get( device );
+				
+				res.put( device, new Long( average==null?0:average.getAverage()));
+			}
+		}finally{
+			
+			instance_mon.exit();
+		}
+		
+		return( res );
+	}
+	
+	private Average
+	getDeviceAverage(
+		String		device )
+	{
+		Average	average = (Average)device_rates.get( device );
+		
+		if ( average == null ){
+			
+			average = Average.getInstance( 1000, 10 );
+			
+			device_rates.put( device, average );
+		}
+		
+		return( average );
+	}
+	
 	protected void
 	unregister(
 		DiskManagerRecheckInstance	instance )
@@ -186,9 +408,197 @@ DiskManagerRecheckScheduler
 			instance_mon.enter();
 			
 			instances.remove( instance );
+			
+			boolean	device_active = false;
+			
+			for (int i=0;i<instances.size();i++){
+				
+				if (((DiskManagerRecheckInstance)instances.get(i)).getDevice().equals( instance.getDevice())){
+					
+					device_active = true;
+					
+					break;
+				}
+			}
+			
+			if ( !device_active ){
+				
+				device_rates.remove( instance.getDevice());
+			}
 		}finally{
 			
 			instance_mon.exit();
 		}	
+		
+		long	bytes = instance.getBytesChecked();
+		
+		if ( bytes > 0 && Logger.isEnabled()){
+			
+			long	elapsed = SystemTime.getMonotonousTime() - instance.getStartTime();
+			
+			Logger.log( new LogEvent( instance.getHelper(), LOGID, 
+					"Recheck on " + instance.getDevice() + " finished: " + 
+					DisplayFormatters.formatByteCountToKiBEtc( bytes ) + " in " + TimeFormatter.format( elapsed/1000 ) +
+					" (" + DisplayFormatters.formatByteCountToKiBEtcPerSec( instance.getRate()) + ")" ));
+		}
+	}
+	
+		/**
+		 * Works out which physical device a file lives on. Java gives us no direct way of doing
+		 * this so we go by drive/share on Windows, the longest matching mount point where the
+		 * mount table is available and the volume on OSX
+		 */
+	
+	public static String
+	getDevice(
+		File		file )
+	{
+		if ( file == null ){
+			
+			return( "" );
+		}
+		
+		String	path;
+		
+		try{
+			path = file.getCanonicalPath();
+			
+		}catch( Throwable e ){
+			
+			path = file.getAbsolutePath();
+		}
+		
+		if ( Constants.isWindows ){
+			
+			if ( path.startsWith( "\\\\" )){
+				
+					// UNC - \\server\share
+				
+				int	server_end = path.indexOf( '\\', 2 );
+				
+				int	share_end = server_end==-1?-1:path.indexOf( '\\', server_end+1 );
+				
+				return( share_end==-1?path:path.substring( 0, share_end ));
+			}
+			
+			int	colon = path.indexOf( ':' );
+			
+			return( colon==-1?path:path.substring( 0, colon+1 ).toUpperCase());
+		}
+		
+		List	mounts = getMountPoints();
+		
+		String	best = null;
+		
+		for (int i=0;i<mounts.size();i++){
+			
+			String	mount = (String)mounts.get(i);
+			
+			if ( 	( path.equals( mount ) || path.startsWith( mount.endsWith( "/" )?mount:( mount + "/" ))) &&
+					( best == null || mount.length() > best.length())){
+				
+				best = mount;
+			}
+		}
+		
+		if ( best != null ){
+			
+			return( best );
+		}
+		
+		if ( Constants.isOSX && path.startsWith( "/Volumes/" )){
+			
+			int	end = path.indexOf( '/', 9 );
+			
+			return( end==-1?path:path.substring( 0, end ));
+		}
+		
+		return( "/" );
+	}
+	
+	private static synchronized List
+	getMountPoints()
+	{
+		long	now = SystemTime.getMonotonousTime();
+		
+		if ( mount_points != null && now - mount_points_time < MOUNT_REFRESH_PERIOD ){
+			
+			return( mount_points );
+		}
+		
+		List	res = new ArrayList();
+		
+		File	mounts = new File( "/proc/mounts" );
+		
+		if ( mounts.canRead()){
+			
+			try{
+				LineNumberReader	lnr = new LineNumberReader( new FileReader( mounts ));
+				
+				try{
+					while( true ){
+						
+						String	line = lnr.readLine();
+						
+						if ( line == null ){
+							
+							break;
+						}
+						
+						String[]	bits = line.split( " " );
+						
+						if ( bits.length >= 2 ){
+							
+								// spaces etc. are octal escaped
+							
+							res.add( unescapeMountPoint( bits[1] ));
+						}
+					}
+				}finally{
+					
+					lnr.close();
+				}
+			}catch( Throwable e ){
+			}
+		}
+		
+		mount_points		= res;
+		mount_points_time	= now;
+		
+		return( res );
+	}
+	
+	private static String
+	unescapeMountPoint(
+		String	str )
+	{
+		if ( str.indexOf( '\\' ) == -1 ){
+			
+			return( str );
+		}
+		
+		StringBuffer	res = new StringBuffer( str.length());
+		
+		for (int i=0;i<str.length();i++){
+			
+			char	c = str.charAt(i);
+			
+			if ( c == '\\' && i+3 < str.length()){
+				
+				try{
+					res.append((char)Integer.parseInt( str.substring( i+1, i+4 ), 8 ));
+					
+					i += 3;
+					
+					continue;
+					
+				}catch( Throwable e ){
+				}
+			}
+			
+			res.append( c );
+		}
+		
+		return( res.toString());
 	}
 }
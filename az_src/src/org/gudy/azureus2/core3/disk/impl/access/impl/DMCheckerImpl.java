@@ -34,6 +34,7 @@ import org.gudy.azureus2.core3.disk.impl.access.DMChecker;
 import org.gudy.azureus2.core3.disk.impl.piecemapper.DMPieceList;
 import org.gudy.azureus2.core3.disk.impl.piecemapper.DMPieceMapEntry;
 import org.gudy.azureus2.core3.logging.*;
+import org.gudy.azureus2.core3.torrent.TOTorrentPieceHashes;
 import org.gudy.azureus2.core3.util.*;
 
 import com.aelitis.azureus.core.diskmanager.cache.CacheFile;
@@ -300,17 +301,34 @@ DMCheckerImpl
 		  		public void
 				run()
 		  		{
-		  			DiskManagerRecheckInstance	recheck_inst = disk_manager.getRecheckScheduler().register( disk_manager, true );
+		  			final DiskManagerRecheckInstance	recheck_inst = disk_manager.getRecheckScheduler().register( disk_manager, true );
 		  			
 		  			try{	  					
 		  				final AESemaphore	sem = new AESemaphore( "DMChecker::completeRecheck" );
 		  				
 		  				int	checks_submitted	= 0;
 		  				           
-			            final AESemaphore	 run_sem = new AESemaphore( "DMChecker::completeRecheck:runsem", 2 );
+			            	// enough outstanding checks to keep the device reading while the hasher
+			            	// threads work through the pieces already read
+			            
+			            final AESemaphore	 run_sem = new AESemaphore( "DMChecker::completeRecheck:runsem", recheck_inst.getMaxOutstanding());
 			            
 			            int nbPieces = disk_manager.getNbPieces();
 			            
+			            long	bytes_to_check = 0;
+			            
+		  				for ( int i=0; i < nbPieces; i++ ){
+		  					
+		  					DiskManagerPiece	dm_piece = disk_manager.getPiece(i);
+		  					
+		  					if ( dm_piece.isDone() || !dm_piece.isSkipped()){
+		  						
+		  						bytes_to_check += disk_manager.getPieceLength(i);
+		  					}
+		  				}
+		  				
+		  				recheck_inst.setBytesToCheck( bytes_to_check );
+		  				
 		  				for ( int i=0; i < nbPieces; i++ ){
 		  					
 		  					complete_recheck_progress = 1000*i / nbPieces;
@@ -346,6 +364,8 @@ DMCheckerImpl
 					  	       				DiskManagerCheckRequest 	request,
 					  	       				boolean						passed )
 					  	       			{
+					  	       				recheck_inst.pieceChecked( disk_manager.getPieceLength( request.getPieceNumber()));
+					  	       				
 					  	       				try{
 					  	       					listener.checkCompleted( request, passed );
 					  	       					
@@ -602,11 +622,13 @@ DMCheckerImpl
 			return;
 		}
 		
-		int	pieceNumber	= request.getPieceNumber();
+		final int	pieceNumber	= request.getPieceNumber();
 		
 		try{
 			
-			final byte[]	required_hash = disk_manager.getPieceHash(pieceNumber);
+				// compare against the flat hash store rather than pulling out a copy of the hash
+			
+			final TOTorrentPieceHashes	piece_hashes = disk_manager.getPieceHashes();
 	        
 				// quick check that the files that make up this piece are at least big enough
 				// to warrant reading the data to check
@@ -741,17 +763,7 @@ DMCheckerImpl
 														    								
 												if ( testHash != null ){
 															
-				    								async_result = 1; // success
-				    								
-				    								for (int i = 0; i < testHash.length; i++){
-				    									
-				    									if ( testHash[i] != required_hash[i]){
-				    										
-				    										async_result = 2; // failed;
-				    										
-				    										break;
-				    									}
-				    								}
+				    								async_result = piece_hashes.matches( pieceNumber, testHash )?1:2; // success:failed
 												}
 					    					}finally{
 					    						
@@ -88,7 +88,7 @@ RDResumeHandler
 	private volatile boolean	check_resume_was_valid;
 	private volatile boolean	check_is_full_check;
 	private volatile boolean	check_interrupted;
-	private volatile int		check_position;
+	private volatile boolean[]	check_pending;
 	
 
 	public 
@@ -131,9 +131,12 @@ RDResumeHandler
 	{
 		//long	start = System.currentTimeMillis();
 				
-		DiskManagerRecheckInstance	recheck_inst = disk_manager.getRecheckScheduler().register( disk_manager, false );
+		final DiskManagerRecheckInstance	recheck_inst = disk_manager.getRecheckScheduler().register( disk_manager, false );
 
-        final AESemaphore	 run_sem = new AESemaphore( "RDResumeHandler::checkAllPieces:runsem", 2 );
+			// keep enough checks outstanding that the reads for the next pieces are queued while
+			// earlier ones are being hashed
+		
+        final AESemaphore	 run_sem = new AESemaphore( "RDResumeHandler::checkAllPieces:runsem", recheck_inst.getMaxOutstanding());
 
 		try{
 			boolean	resume_data_complete = false;
@@ -156,6 +159,13 @@ RDResumeHandler
 	
 				DiskManagerPiece[]	pieces	= disk_manager.getPieces();
 				
+					// pieces whose check hasn't yet completed - if we're stopped part way through
+					// these are persisted as needing a recheck so that it resumes on next start
+				
+				final boolean[]	pending = new boolean[pieces.length];
+				
+				check_pending	= pending;
+				
 				
 				// calculate the current file sizes up front for performance reasons
 				DiskManagerFileInfo[]	files = disk_manager.getFiles();
@@ -291,9 +301,25 @@ RDResumeHandler
 						Logger.log(new LogEvent(disk_manager, LOGID, str ));
 					}
 
+					long	bytes_to_check = 0;
+					
 					for (int i = 0; i < pieces.length; i++){
 						
-						check_position	= i;
+						byte	piece_state = resume_pieces[i];
+						
+						if ( 	piece_state != PIECE_DONE &&
+								( piece_state != PIECE_NOT_DONE || recheck_all ) &&
+								( piece_state == PIECE_RECHECK_REQUIRED || !resumeValid )){
+							
+							pending[i] = true;
+							
+							bytes_to_check += disk_manager.getPieceLength(i);
+						}
+					}
+					
+					recheck_inst.setBytesToCheck( bytes_to_check );
+					
+					for (int i = 0; i < pieces.length; i++){
 						
 						DiskManagerPiece	dm_piece	= pieces[i];
 						
@@ -365,6 +391,9 @@ RDResumeHandler
 							if(pieceCannotExist)
 							{
 								dm_piece.setDone( false );
+								
+								pending[i] = false;
+								
 							} else if ( piece_state == PIECE_RECHECK_REQUIRED || !resumeValid ){
 										
 								run_sem.reserve();
@@ -397,6 +426,12 @@ RDResumeHandler
 													DiskManagerCheckRequest 	request,
 													boolean						passed )
 												{
+													int	piece_number = request.getPieceNumber();
+													
+													pending[piece_number] = false;
+													
+													recheck_inst.pieceChecked( disk_manager.getPieceLength( piece_number ));
+													
 													complete();
 												}
 												 
@@ -471,10 +506,10 @@ RDResumeHandler
 					
 					// resume not enabled, recheck everything
 					
+					Arrays.fill( pending, true );
+					
 					for (int i = 0; i < pieces.length; i++){
 	
-						check_position	= i;
-						
 						disk_manager.setPercentDone(((i + 1) * 1000) / disk_manager.getNbPieces() );
 
 						boolean pieceCannotExist = false;
@@ -501,6 +536,7 @@ RDResumeHandler
 						if(pieceCannotExist)
 						{
 							disk_manager.getPiece(i).setDone(false);
+							pending[i] = false;
 							continue;
 						}
 						
@@ -534,6 +570,12 @@ RDResumeHandler
 											DiskManagerCheckRequest 	request,
 											boolean						passed )
 										{
+											int	piece_number = request.getPieceNumber();
+											
+											pending[piece_number] = false;
+											
+											recheck_inst.pieceChecked( disk_manager.getPieceLength( piece_number ));
+											
 											complete();
 										}
 										 
@@ -658,14 +700,16 @@ RDResumeHandler
 		
 		byte[] resume_pieces = new byte[pieces.length];
 		
+		boolean[]	pending = check_interrupted?check_pending:null;
+		
 		for (int i = 0; i < resume_pieces.length; i++) {
 	  	
 			DiskManagerPiece piece = pieces[i];
 
-				// if we are terminating due to az closure and this has interrupted a recheck then
-				// make sure that the recheck continues appropriately on restart
+				// if we have been stopped part way through a recheck then make sure that the
+				// pieces not yet checked are rechecked on restart, rather than starting over
 			
-			if ( stopped_for_close && check_interrupted && check_is_full_check && i >= check_position ){
+			if ( pending != null && pending[i] && !piece.isDone()){
 				
 				resume_pieces[i] = PIECE_RECHECK_REQUIRED;
 				
@@ -50,6 +50,20 @@ DownloadManagerStateFactory
 		DownloadManagerStateImpl.loadGlobalStateCache();
 	}
 	
+	public static void
+	preloadDownloadStates(
+		byte[][]		hashes,
+		boolean[]		inactive )
+	{
+		DownloadManagerStateImpl.preloadDownloadStates( hashes, inactive );
+	}
+	
+	public static void
+	discardPreloadedStates()
+	{
+		DownloadManagerStateImpl.discardPreloadedStates();
+	}
+	
 	public static void
 	saveGlobalStateCache()
 	{
@@ -24,6 +24,7 @@ package org.gudy.azureus2.core3.download.impl;
 
 import java.io.*;
 import java.net.URL;
+import java.nio.channels.Channels;
 import java.security.SecureRandom;
 import java.util.*;
 import java.util.zip.GZIPInputStream;
@@ -107,6 +108,19 @@ DownloadManagerStateImpl
 	private static Map					global_state_cache			= new HashMap();
 	private static List					global_state_cache_wrappers	= new ArrayList();
 	
+		// state files read ahead of need by the startup preload pool, keyed by torrent hash.
+		// at most PRELOAD_MAX are held, the next is submitted as each is taken. anything not 
+		// picked up is dropped once the download list has been loaded
+	
+	private static final int			PRELOAD_CONCURRENCY			= 4;
+	private static final int			PRELOAD_MAX					= 512;
+	private static Map					preloaded_states			= new HashMap();
+	private static ThreadPool			preload_pool				= new ThreadPool( "DownloadManagerState:preload", PRELOAD_CONCURRENCY, true );
+	private static byte[][]				preload_hashes;
+	private static boolean[]			preload_inactive;
+	private static int					preload_next;
+	private static int					preload_active;
+	
 	private DownloadManagerImpl			download_manager;
 	
 	private TorrentUtils.ExtendedTorrent	torrent;
@@ -195,7 +209,7 @@ DownloadManagerStateImpl
 		if ( saved_file.exists()){
 			
 			try{
-				saved_state = TorrentUtils.readDelegateFromFile( saved_file, false );
+				saved_state = TorrentUtils.readDelegateFromFile( saved_file, false, true );
 				
 			}catch( Throwable e ){
 				
@@ -209,7 +223,7 @@ DownloadManagerStateImpl
 		
 			TorrentUtils.copyToFile( original_torrent, saved_file );
 			
-			saved_state = TorrentUtils.readDelegateFromFile( saved_file, false );
+			saved_state = TorrentUtils.readDelegateFromFile( saved_file, false, true );
 		}
 
 		return( getDownloadState( null, original_torrent, saved_state ));
@@ -224,7 +238,10 @@ DownloadManagerStateImpl
 	
 		throws TOTorrentException
 	{
-		boolean	discard_pieces = state_map.size() > 32;
+			// piece hashes of inactive downloads aren't needed until they are started or
+			// rechecked, at which point the delegate reloads them
+		
+		boolean	discard_pieces = inactive || state_map.size() > 32;
 		
 		// System.out.println( "getDownloadState: hash = " + (torrent_hash==null?"null":ByteFormatter.encodeString(torrent_hash) + ", file = " + torrent_file ));
 
@@ -252,7 +269,12 @@ DownloadManagerStateImpl
 						
 					}else{
 						
-						saved_state = TorrentUtils.readDelegateFromFile( saved_file, discard_pieces );
+						saved_state = getPreloadedState( torrent_hash );
+						
+						if ( saved_state == null ){
+						
+							saved_state = TorrentUtils.readDelegateFromFile( saved_file, discard_pieces, true );
+						}
 					}
 					
 				}catch( Throwable e ){
@@ -275,7 +297,7 @@ DownloadManagerStateImpl
 			if ( saved_file.exists()){
 				
 				try{
-					saved_state = TorrentUtils.readDelegateFromFile( saved_file, discard_pieces );
+					saved_state = TorrentUtils.readDelegateFromFile( saved_file, discard_pieces, true );
 					
 				}catch( Throwable e ){
 					
@@ -292,7 +314,7 @@ DownloadManagerStateImpl
 				
 				TorrentUtils.copyToFile( original_torrent, saved_file );
 				
-				saved_state = TorrentUtils.readDelegateFromFile( saved_file, discard_pieces );
+				saved_state = TorrentUtils.readDelegateFromFile( saved_file, discard_pieces, true );
 			}
 		}
 
@@ -411,7 +433,7 @@ DownloadManagerStateImpl
 			
 			try{
 				
-				os.write( BEncoder.encode( map ));
+				BEncoderStream.encode( map, Channels.newChannel( os ));
 				
 				os.close();
 				
@@ -437,6 +459,150 @@ DownloadManagerStateImpl
 		}
 	}
 	
+	/**
+	 * Starts reading the saved state of the supplied downloads on a bounded pool so that
+	 * the subsequent (sequential) creation of their download managers doesn't have to wait
+	 * for each torrent to be read and decoded in turn. Downloads covered by the global 
+	 * state cache are skipped as they are already loaded lazily. At most PRELOAD_MAX states
+	 * are held at a time, the window moves on as they are requested
+	 * @param hashes	torrent hashes in the order they will be requested
+	 * @param inactive	whether the corresponding download starts stopped/queued, in which case
+	 * 					its piece hashes are discarded immediately
+	 */
+	
+	public static void
+	preloadDownloadStates(
+		byte[][]		hashes,
+		boolean[]		inactive )
+	{
+		try{
+			class_mon.enter();
+			
+			preload_hashes		= hashes;
+			preload_inactive	= inactive;
+			preload_next		= 0;
+			preload_active		= state_map.size();
+			
+			submitPreloads();
+			
+		}finally{
+			
+			class_mon.exit();
+		}
+	}
+	
+		/**
+		 * Submits preloads for the next downloads in the list until the window is full. Called 
+		 * with class_mon held
+		 */
+	
+	private static void
+	submitPreloads()
+	{
+		while( 	preload_hashes != null && 
+				preload_next < preload_hashes.length &&
+				preloaded_states.size() < PRELOAD_MAX ){
+			
+			int		i		= preload_next++;
+			byte[]	hash	= preload_hashes[i];
+			
+			if ( hash == null ){
+				
+				continue;
+			}
+			
+			HashWrapper	hw = new HashWrapper( hash );
+			
+			if ( 	global_state_cache.containsKey( hw ) || 
+					state_map.containsKey( hw ) ||
+					preloaded_states.containsKey( hw )){
+				
+				continue;
+			}
+			
+			File	saved_file = getStateFile( hash );
+			
+			if ( !saved_file.exists()){
+				
+				continue;
+			}
+			
+			final StatePreload	preload = new StatePreload( saved_file, preload_inactive[i] || preload_active++ > 32 );
+			
+			preloaded_states.put( hw, preload );
+			
+			preload_pool.run(
+				new AERunnable()
+				{
+					public void
+					runSupport()
+					{
+						preload.load();
+					}
+				});
+		}
+		
+		if ( preload_hashes != null && preload_next >= preload_hashes.length ){
+			
+			preload_hashes		= null;
+			preload_inactive	= null;
+		}
+	}
+	
+	protected static TorrentUtils.ExtendedTorrent
+	getPreloadedState(
+		byte[]		torrent_hash )
+	{
+		StatePreload	preload;
+		
+		try{
+			class_mon.enter();
+
+			preload = (StatePreload)preloaded_states.remove( new HashWrapper( torrent_hash ));
+			
+			if ( preload != null ){
+				
+				submitPreloads();
+			}
+		}finally{
+			
+			class_mon.exit();
+		}
+		
+		if ( preload == null ){
+			
+			return( null );
+		}
+		
+			// failures fall back to a synchronous read so that they get reported as before
+		
+		return( preload.getResult());
+	}
+	
+	public static void
+	discardPreloadedStates()
+	{
+		try{
+			class_mon.enter();
+			
+			Iterator	it = preloaded_states.values().iterator();
+			
+			while( it.hasNext()){
+				
+				((StatePreload)it.next()).cancel();
+			}
+			
+			preloaded_states.clear();
+			
+			preload_hashes		= null;
+			preload_inactive	= null;
+			
+		}finally{
+			
+			class_mon.exit();
+		}
+	}
+	
 	public static void
 	discardGlobalStateCache()
 	{
@@ -2588,6 +2754,58 @@ DownloadManagerStateImpl
 		}
 	}
 	
+	protected static class
+	StatePreload
+	{
+		private final File			file;
+		private final boolean		discard_pieces;
+		private final AESemaphore	sem	= new AESemaphore( "DownloadManagerState:preload" );
+		
+		private TorrentUtils.ExtendedTorrent	result;
+		
+		private volatile boolean	cancelled;
+		
+		protected
+		StatePreload(
+			File		_file,
+			boolean		_discard_pieces )
+		{
+			file			= _file;
+			discard_pieces	= _discard_pieces;
+		}
+		
+		protected void
+		load()
+		{
+			try{
+				if ( !cancelled ){
+					
+					result = TorrentUtils.readDelegateFromFile( file, discard_pieces, true );
+				}
+				
+			}catch( Throwable e ){
+				
+			}finally{
+				
+				sem.releaseForever();
+			}
+		}
+		
+		protected void
+		cancel()
+		{
+			cancelled	= true;
+		}
+		
+		protected TorrentUtils.ExtendedTorrent
+		getResult()
+		{
+			sem.reserve();
+			
+			return( result );
+		}
+	}
+	
 	protected static class
 	CachedStateWrapper
 		extends 	LogRelation
@@ -2669,7 +2887,7 @@ DownloadManagerStateImpl
 				
 				if ( t instanceof CachedStateWrapper ){
 					
-					discard_pieces = ((CachedStateWrapper)t).peekPieces() == null;
+					discard_pieces = !((CachedStateWrapper)t).peekHasPieces();
 				}
 			}
 			
@@ -2766,7 +2984,7 @@ DownloadManagerStateImpl
 				
 				try{
 					
-					return( TorrentUtils.readDelegateFromFile( saved_file, discard_pieces ));
+					return( TorrentUtils.readDelegateFromFile( saved_file, discard_pieces, true ));
 					
 				}catch( Throwable e ){
 					
@@ -2785,7 +3003,7 @@ DownloadManagerStateImpl
 			if ( saved_file.exists()){
 				
 				try{
-					return( TorrentUtils.readDelegateFromFile( saved_file, discard_pieces ));
+					return( TorrentUtils.readDelegateFromFile( saved_file, discard_pieces, true ));
 					
 				}catch( Throwable e ){
 					
@@ -2800,7 +3018,7 @@ DownloadManagerStateImpl
 			
 			TorrentUtils.copyToFile( original_torrent, saved_file );
 			
-			return( TorrentUtils.readDelegateFromFile( saved_file, discard_pieces ));
+			return( TorrentUtils.readDelegateFromFile( saved_file, discard_pieces, true ));
 		}
 		
 		
@@ -2981,6 +3199,35 @@ DownloadManagerStateImpl
 	   		throw( fixup_failure );
     	}
     	
+    	public TOTorrentPieceHashes
+    	getPieceHashes()
+    	
+    		throws TOTorrentException
+	   	{
+	   		if ( fixup()){
+				
+				return( delegate.getPieceHashes());
+			}
+	   		
+	   		throw( fixup_failure );
+    	}
+    	
+    	public void
+    	setPieceHashes(
+    		TOTorrentPieceHashes	hashes )
+    	
+    		throws TOTorrentException
+	   	{
+	   		if ( fixup()){
+				
+				delegate.setPieceHashes( hashes );
+				
+				return;
+			}
+	   		
+	   		throw( fixup_failure );
+    	}
+    	
     	public byte[][]
     	peekPieces()
     	
@@ -2994,6 +3241,19 @@ DownloadManagerStateImpl
 	   		throw( fixup_failure );
     	}
     	
+    	public boolean
+    	peekHasPieces()
+    	
+    		throws TOTorrentException
+    	{
+    		if ( fixup()){
+    			    				
+    			return( delegate.peekHasPieces());
+    		}
+    		
+	   		throw( fixup_failure );
+    	}
+    	
     	public void 
     	setDiscardFluff(
     		boolean discard )
@@ -53,6 +53,8 @@ import org.gudy.azureus2.core3.util.*;
 import com.aelitis.azureus.core.AzureusCore;
 import com.aelitis.azureus.core.helpers.TorrentFolderWatcher;
 import com.aelitis.azureus.core.peermanager.control.PeerControlSchedulerFactory;
+import com.aelitis.azureus.core.stats.AzureusCoreStats;
+import com.aelitis.azureus.core.stats.AzureusCoreStatsProvider;
 import com.aelitis.azureus.core.util.CopyOnWriteList;
 
 import org.gudy.azureus2.plugins.network.ConnectionManager;
@@ -196,6 +198,10 @@ public class GlobalManagerImpl
    boolean loadingComplete = false;
    /** Monitor to block adding torrents while loading existing torrent list */
    AESemaphore loadingSem = new AESemaphore("Loading Torrents");
+   /** Startup load timings (ms from start of load), -1 until reached */
+   volatile long loadingFirstTime = -1;
+   volatile long loadingAllTime = -1;
+   volatile int  loadingCount;
 
    AEMonitor addingDM_monitor = new AEMonitor("addingDM");
    /** List of torrents being added, but not added to the GM list yet */ 
@@ -314,6 +320,38 @@ public class GlobalManagerImpl
   	AEDiagnostics.addEvidenceGenerator( this );
 	
     stats = new GlobalManagerStatsImpl( this );
+    
+    Set	types = new HashSet();
+    
+    types.add( AzureusCoreStats.ST_GLOBAL_MANAGER_LOAD_COUNT );
+    types.add( AzureusCoreStats.ST_GLOBAL_MANAGER_LOAD_FIRST_TIME );
+    types.add( AzureusCoreStats.ST_GLOBAL_MANAGER_LOAD_ALL_TIME );
+    
+    AzureusCoreStats.registerProvider(
+    	types,
+    	new AzureusCoreStatsProvider()
+    	{
+    		public void
+    		updateStats(
+    			Set		types,
+    			Map		values )
+    		{
+    			if ( types.contains( AzureusCoreStats.ST_GLOBAL_MANAGER_LOAD_COUNT )){
+    				
+    				values.put( AzureusCoreStats.ST_GLOBAL_MANAGER_LOAD_COUNT, new Long( loadingCount ));
+    			}
+    			
+    			if ( types.contains( AzureusCoreStats.ST_GLOBAL_MANAGER_LOAD_FIRST_TIME )){
+    				
+    				values.put( AzureusCoreStats.ST_GLOBAL_MANAGER_LOAD_FIRST_TIME, new Long( loadingFirstTime ));
+    			}
+    			
+    			if ( types.contains( AzureusCoreStats.ST_GLOBAL_MANAGER_LOAD_ALL_TIME )){
+    				
+    				values.put( AzureusCoreStats.ST_GLOBAL_MANAGER_LOAD_ALL_TIME, new Long( loadingAllTime ));
+    			}
+    		}
+    	});
        
     try{
     	stats_writer = new GlobalManagerStatsWriter( core );
@@ -1642,6 +1680,8 @@ public boolean canResumeDownloads() {
   
   private void loadDownloads() 
   {
+	  long loadStart = SystemTime.getMonotonousTime();
+	  
 	  try{
 		  DownloadManagerStateFactory.loadGlobalStateCache();
 		  
@@ -1671,6 +1711,12 @@ public boolean canResumeDownloads() {
 				  iter = downloads.iterator();
 				  nbDownloads = downloads.size();
 			  }
+			  
+			  	// kick off parallel reads of the saved state for the downloads so that
+			  	// they're (mostly) ready by the time we get to them below
+			  
+			  preloadDownloads( downloads == null ? map.values() : downloads, debug );
+			  
 			  int currentDownload = 0;
 			  while (iter.hasNext()) {
 				  currentDownload++;        
@@ -1723,31 +1769,7 @@ public boolean canResumeDownloads() {
 	
 	
 	
-					  int state = DownloadManager.STATE_WAITING;
-					  if (debug){
-	
-						  state = DownloadManager.STATE_STOPPED;
-	
-					  }else {
-	
-						  if (mDownload.containsKey("state")) {
-							  state = ((Long) mDownload.get("state")).intValue();
-							  if (state != DownloadManager.STATE_STOPPED &&
-									  state != DownloadManager.STATE_QUEUED &&
-									  state != DownloadManager.STATE_WAITING)
-	
-								  state = DownloadManager.STATE_QUEUED;
-	
-						  }else{
-	
-							  int stopped = ((Long) mDownload.get("stopped")).intValue();
-	
-							  if (stopped == 1){
-	
-								  state = DownloadManager.STATE_STOPPED;
-							  }
-						  } 
-					  }        
+					  int state = getInitialState( mDownload, debug );
 	
 					  Long seconds_downloading = (Long)mDownload.get("secondsDownloading");
 	
@@ -1772,11 +1794,16 @@ public boolean canResumeDownloads() {
 	
 						  if (addDownloadManager(dm, false, false) == dm) {
 							  downloadsAdded.add(dm);
+							  loadingCount++;
 	
 							  if (downloadsAdded.size() >= triggerOnCount) {
 								  triggerOnCount *= 2;
 								  triggerAddListener(downloadsAdded);
 								  downloadsAdded.clear();
+								  
+								  if ( loadingFirstTime == -1 ){
+									  loadingFirstTime = SystemTime.getMonotonousTime() - loadStart;
+								  }
 							  }
 						  }
 					  }
@@ -1839,14 +1866,100 @@ public boolean canResumeDownloads() {
 			  triggerAddListener(downloadsAdded);
 	
 			  loadingSem.releaseForever();
+			  
+			  loadingAllTime = SystemTime.getMonotonousTime() - loadStart;
+			  
+			  if ( loadingFirstTime == -1 ){
+				  loadingFirstTime = loadingAllTime;
+			  }
+			  
+			  Logger.log(new LogEvent(LOGID, "Download load timings: first="
+					  + loadingFirstTime + "ms, all=" + loadingAllTime + "ms ("
+					  + loadingCount + " downloads)"));
 		  }
 			  
 	  }finally{
 		  
+		  DownloadManagerStateFactory.discardPreloadedStates();
+		  
 		  DownloadManagerStateFactory.discardGlobalStateCache();
 	  }
   }
   
+  private static int
+  getInitialState(
+	Map			mDownload,
+	boolean		debug )
+  {
+	  int state = DownloadManager.STATE_WAITING;
+	  if (debug){
+
+		  state = DownloadManager.STATE_STOPPED;
+
+	  }else {
+
+		  if (mDownload.containsKey("state")) {
+			  state = ((Long) mDownload.get("state")).intValue();
+			  if (state != DownloadManager.STATE_STOPPED &&
+					  state != DownloadManager.STATE_QUEUED &&
+					  state != DownloadManager.STATE_WAITING)
+
+				  state = DownloadManager.STATE_QUEUED;
+
+		  }else{
+
+			  int stopped = ((Long) mDownload.get("stopped")).intValue();
+
+			  if (stopped == 1){
+
+				  state = DownloadManager.STATE_STOPPED;
+			  }
+		  } 
+	  }
+	  
+	  return( state );
+  }
+  
+  private void
+  preloadDownloads(
+	Collection	entries,
+	boolean		debug )
+  {
+	  byte[][]	hashes 		= new byte[entries.size()][];
+	  boolean[]	inactive	= new boolean[hashes.length];
+	  
+	  int	pos = 0;
+	  
+	  Iterator	it = entries.iterator();
+	  
+	  while( it.hasNext()){
+		  
+		  try{
+			  Map	mDownload = (Map)it.next();
+			  
+			  Long	lPersistent = (Long)mDownload.get( "persistent" );
+			  
+			  if ( lPersistent != null && lPersistent.longValue() != 1 ){
+				  
+				  continue;
+			  }
+			  
+			  int	state = getInitialState( mDownload, debug );
+
+			  hashes[pos]	= (byte[])mDownload.get( "torrent_hash" );
+			  inactive[pos]	= state == DownloadManager.STATE_STOPPED || state == DownloadManager.STATE_QUEUED;
+			  
+			  pos++;
+			  
+		  }catch( Throwable e ){
+			  
+			  	// dodgy entries get reported by the main load
+		  }
+	  }
+	  
+	  DownloadManagerStateFactory.preloadDownloadStates( hashes, inactive );
+  }
+  
   private void triggerAddListener(List downloadsToAdd) {
 		try {
 			managers_mon.enter();
@@ -136,6 +136,29 @@ TOTorrent
 	
 		throws TOTorrentException;
 	
+		/**
+		 * Gives access to the piece hashes in their flat form, use this in preference to
+		 * getPieces() when checking pieces as it doesn't create an array per piece 
+		 * @return null if the hashes are currently discarded (see getPieces)
+		 * @exception	can fail if re-reading of piece hashes for space spacing fails 
+		 */
+	
+	public TOTorrentPieceHashes
+	getPieceHashes()
+	
+		throws TOTorrentException;
+	
+		/**
+		 * As setPieces, with care!
+		 * @param hashes
+		 */
+	
+	public void
+	setPieceHashes(
+		TOTorrentPieceHashes	hashes )
+	
+		throws TOTorrentException;
+	
 	/**
 	 * Returns the piece length used for the torrent
 	 * @return
@@ -0,0 +1,331 @@
+/*
+ * File    : TOTorrentPieceHashes.java
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details ( see the LICENSE file ).
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package org.gudy.azureus2.core3.torrent;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * The SHA1 piece hashes of a torrent held in a single contiguous buffer (20 bytes per piece)
+ * rather than as one array per piece.
+ *
+ * The buffer is either a heap array - normally the "pieces" value the torrent was decoded
+ * from, so no copy is made - or a read-only mapping of a sidecar file, in which case the
+ * hashes live outside of the java heap and are paged in by the OS as checks need them.
+ */
+
+public class
+TOTorrentPieceHashes
+{
+	public static final int	HASH_LENGTH	= 20;
+
+	private static final int	SIDECAR_MAGIC		= 0x4F535048;	// "OSPH"
+	private static final int	SIDECAR_VERSION		= 1;
+	private static final int	SIDECAR_HEADER_SIZE	= 4 + 4 + HASH_LENGTH + 4;
+
+	private final byte[]		array;
+	private final ByteBuffer	buffer;
+	private final int			number_of_pieces;
+
+		/**
+		 * Wraps (without copying) the concatenated hashes as found in a torrent's info dictionary.
+		 * Any trailing partial hash is ignored
+		 */
+
+	public static TOTorrentPieceHashes
+	fromFlat(
+		byte[]		flat )
+	{
+		return( new TOTorrentPieceHashes( flat, null, flat.length / HASH_LENGTH ));
+	}
+
+	public static TOTorrentPieceHashes
+	fromArrays(
+		byte[][]	pieces )
+	{
+		byte[]	flat = new byte[pieces.length*HASH_LENGTH];
+
+		for (int i=0;i<pieces.length;i++){
+
+			System.arraycopy( pieces[i], 0, flat, i*HASH_LENGTH, HASH_LENGTH );
+		}
+
+		return( fromFlat( flat ));
+	}
+
+		/**
+		 * Maps a sidecar file previously written by {@link #writeSidecar(File, byte[])}
+		 * @return null if the file doesn't exist or doesn't belong to the given torrent
+		 */
+
+	public static TOTorrentPieceHashes
+	mapSidecar(
+		File		file,
+		byte[]		torrent_hash )
+
+		throws IOException
+	{
+		if ( !file.exists()){
+
+			return( null );
+		}
+
+		RandomAccessFile	raf = new RandomAccessFile( file, "r" );
+
+		try{
+			FileChannel	channel = raf.getChannel();
+
+			long	size = channel.size();
+
+			if ( size < SIDECAR_HEADER_SIZE ){
+
+				return( null );
+			}
+
+			ByteBuffer	header = ByteBuffer.allocate( SIDECAR_HEADER_SIZE );
+
+			while( header.hasRemaining()){
+
+				if ( channel.read( header ) < 0 ){
+
+					return( null );
+				}
+			}
+
+			header.flip();
+
+			if ( header.getInt() != SIDECAR_MAGIC || header.getInt() != SIDECAR_VERSION ){
+
+				return( null );
+			}
+
+			for (int i=0;i<HASH_LENGTH;i++){
+
+				if ( header.get() != torrent_hash[i] ){
+
+					return( null );
+				}
+			}
+
+			int	num = header.getInt();
+
+			if ( num < 0 || size != SIDECAR_HEADER_SIZE + (long)num*HASH_LENGTH ){
+
+				return( null );
+			}
+
+				// the mapping remains valid after the channel is closed
+
+			ByteBuffer	mapped = channel.map( FileChannel.MapMode.READ_ONLY, SIDECAR_HEADER_SIZE, (long)num*HASH_LENGTH );
+
+			return( new TOTorrentPieceHashes( null, mapped, num ));
+
+		}finally{
+
+			raf.close();
+		}
+	}
+
+	private
+	TOTorrentPieceHashes(
+		byte[]		_array,
+		ByteBuffer	_buffer,
+		int			_number_of_pieces )
+	{
+		array				= _array;
+		buffer				= _buffer;
+		number_of_pieces	= _number_of_pieces;
+	}
+
+	public int
+	getNumberOfPieces()
+	{
+		return( number_of_pieces );
+	}
+
+	public boolean
+	isMapped()
+	{
+		return( buffer != null );
+	}
+
+	public byte[]
+	getPieceHash(
+		int		piece_number )
+	{
+		byte[]	res = new byte[HASH_LENGTH];
+
+		getPieceHash( piece_number, res, 0 );
+
+		return( res );
+	}
+
+	public void
+	getPieceHash(
+		int		piece_number,
+		byte[]	target,
+		int		target_offset )
+	{
+		int	pos = checkPiece( piece_number );
+
+		if ( array != null ){
+
+			System.arraycopy( array, pos, target, target_offset, HASH_LENGTH );
+
+		}else{
+
+				// absolute gets so that concurrent readers don't need to co-ordinate
+
+			for (int i=0;i<HASH_LENGTH;i++){
+
+				target[target_offset+i] = buffer.get( pos+i );
+			}
+		}
+	}
+
+		/**
+		 * Compares a computed SHA1 against the stored hash for the piece without copying it out
+		 */
+
+	public boolean
+	matches(
+		int		piece_number,
+		byte[]	hash )
+	{
+		if ( hash == null || hash.length != HASH_LENGTH ){
+
+			return( false );
+		}
+
+		int	pos = checkPiece( piece_number );
+
+		if ( array != null ){
+
+			for (int i=0;i<HASH_LENGTH;i++){
+
+				if ( array[pos+i] != hash[i] ){
+
+					return( false );
+				}
+			}
+		}else{
+
+			for (int i=0;i<HASH_LENGTH;i++){
+
+				if ( buffer.get( pos+i ) != hash[i] ){
+
+					return( false );
+				}
+			}
+		}
+
+		return( true );
+	}
+
+		/**
+		 * Materialises the legacy one-array-per-piece form. Avoid on hot paths
+		 */
+
+	public byte[][]
+	toArrays()
+	{
+		byte[][]	res = new byte[number_of_pieces][];
+
+		for (int i=0;i<res.length;i++){
+
+			res[i] = getPieceHash( i );
+		}
+
+		return( res );
+	}
+
+		/**
+		 * @return the concatenated hashes, the backing array itself if possible
+		 */
+
+	public byte[]
+	toFlat()
+	{
+		int	len = number_of_pieces*HASH_LENGTH;
+
+		if ( array != null && array.length == len ){
+
+			return( array );
+		}
+
+		byte[]	res = new byte[len];
+
+		for (int i=0;i<number_of_pieces;i++){
+
+			getPieceHash( i, res, i*HASH_LENGTH );
+		}
+
+		return( res );
+	}
+
+		/**
+		 * Writes the hashes to a sidecar file suitable for {@link #mapSidecar(File, byte[])}. The
+		 * file is written to a temporary name first so that a partial write is never mapped
+		 */
+
+	public void
+	writeSidecar(
+		File		file,
+		byte[]		torrent_hash )
+
+		throws IOException
+	{
+		File	temp = new File( file.getParentFile(), file.getName() + ".tmp" );
+
+		DataOutputStream	dos = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( temp )));
+
+		try{
+			dos.writeInt( SIDECAR_MAGIC );
+			dos.writeInt( SIDECAR_VERSION );
+			dos.write( torrent_hash, 0, HASH_LENGTH );
+			dos.writeInt( number_of_pieces );
+			dos.write( toFlat());
+
+		}finally{
+
+			dos.close();
+		}
+
+		file.delete();
+
+		if ( !temp.renameTo( file )){
+
+			temp.delete();
+
+			throw( new IOException( "Failed to rename " + temp + " to " + file ));
+		}
+	}
+
+	private int
+	checkPiece(
+		int		piece_number )
+	{
+		if ( piece_number < 0 || piece_number >= number_of_pieces ){
+
+			throw( new IndexOutOfBoundsException( "piece " + piece_number + " of " + number_of_pieces ));
+		}
+
+		return( piece_number*HASH_LENGTH );
+	}
+}
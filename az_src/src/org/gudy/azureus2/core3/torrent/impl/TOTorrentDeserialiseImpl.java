@@ -24,6 +24,7 @@ package org.gudy.azureus2.core3.torrent.impl;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 import org.gudy.azureus2.core3.html.HTMLUtils;
@@ -207,7 +208,9 @@ TOTorrentDeserialiseImpl
 		throws TOTorrentException
 	{
 		try{
-			Map meta_data = BDecoder.decode(bytes);
+				// decode straight from the array rather than via BDecoder's mark/reset stream
+			
+			Map meta_data = BDecoderBuffer.decode( ByteBuffer.wrap( bytes ));
 	
 			// print( "", "", meta_data );
 			
@@ -552,14 +555,9 @@ TOTorrentDeserialiseImpl
 				Debug.out( "Torrent '" + new String( getName()) + "' has too many pieces (required=" + pieces_required + ",supplied=" + pieces_supplied + ") - ignoring excess" );
 			}
 
-			byte[][]pieces = new byte[pieces_supplied][20];
+				// keep the decoded array as is rather than splitting it into an array per piece
 			
-			for (int i=0;i<pieces.length;i++){
-				
-				System.arraycopy( flat_pieces, i*20, pieces[i], 0, 20 );
-			}	
-				
-			setPieces( pieces );	
+			setPieceHashes( TOTorrentPieceHashes.fromFlat( flat_pieces ));	
 			
 				// extract and additional info elements
 				
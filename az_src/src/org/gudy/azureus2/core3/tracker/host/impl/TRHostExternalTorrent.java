@@ -190,6 +190,18 @@ TRHostExternalTorrent
 	{
 	}
 	
+	public TOTorrentPieceHashes
+	getPieceHashes()
+	{
+		return( TOTorrentPieceHashes.fromFlat( new byte[0] ));
+	}
+	
+	public void
+	setPieceHashes(
+		TOTorrentPieceHashes	hashes )
+	{
+	}
+	
 	public int
 	getNumberOfPieces()
 	{
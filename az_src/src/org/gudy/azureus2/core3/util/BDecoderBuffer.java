@@ -0,0 +1,807 @@
+/*
+ * Created on Oct 19, 2026
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.gudy.azureus2.core3.util;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ * A bdecoder that works directly on a ByteBuffer (heap, direct or a mapped file) rather than
+ * through the mark/reset stream used by {@link BDecoder}.
+ *
+ * By default the results are the same as BDecoder's - Long, byte[], Map with String keys
+ * and List - so it can be used as a drop in replacement. In addition
+ * <ul>
+ * <li>byte strings at least as long as the lazy threshold are returned as {@link Slice}s that
+ * reference the source buffer instead of being copied</li>
+ * <li>map keys are resolved through a small per-decoder cache before being interned, so
+ * repeated keys don't allocate</li>
+ * <li>{@link #parse(ByteBuffer, Listener)} reports the structure as events without building it,
+ * for dictionaries too big to want in memory</li>
+ * </ul>
+ * Instances are not thread safe.
+ */
+
+public class
+BDecoderBuffer
+{
+	private static final int	MAX_BYTE_ARRAY_LENGTH	= 8*1024*1024;
+
+	private static final int	KEY_CACHE_SIZE			= 128;	// power of 2
+	private static final int	KEY_CACHE_MAX_LENGTH	= 64;
+
+	private boolean		recovery_mode;
+	private int			lazy_threshold	= -1;
+
+	private ByteBuffer	buffer;
+	private byte[]		array;
+	private int			array_offset;
+	private int			pos;
+	private int			limit;
+
+	private final char[]	number_chars	= new char[32];
+	private final String[]	key_cache		= new String[KEY_CACHE_SIZE];
+
+	public static Map
+	decode(
+		ByteBuffer	data )
+
+		throws IOException
+	{
+		return( new BDecoderBuffer().decodeBuffer( data ));
+	}
+
+		/**
+		 * Maps the file and decodes it. As values are copied out the mapping isn't referenced
+		 * by the result
+		 */
+
+	public static Map
+	decode(
+		File		file )
+
+		throws IOException
+	{
+		return( new BDecoderBuffer().decodeFile( file ));
+	}
+
+	public
+	BDecoderBuffer()
+	{
+	}
+
+	public void
+	setRecoveryMode(
+		boolean	r )
+	{
+		recovery_mode	= r;
+	}
+
+		/**
+		 * @param threshold byte strings of at least this length are returned as {@link Slice}s
+		 * rather than byte[]. -1 (the default) to always copy
+		 */
+
+	public void
+	setLazyThreshold(
+		int		threshold )
+	{
+		lazy_threshold	= threshold;
+	}
+
+		/**
+		 * Decodes the buffer from its position to its limit. The buffer's position isn't changed.
+		 * Any {@link Slice}s in the result remain valid only as long as the buffer's content does
+		 */
+
+	public Map
+	decodeBuffer(
+		ByteBuffer	data )
+
+		throws IOException
+	{
+		setBuffer( data );
+
+		try{
+			Object	res = decodeObject( 0 );
+
+			if ( res == null ){
+
+				throw( new BEncodingException( "BDecoder: zero length file" ));
+
+			}else if ( !(res instanceof Map )){
+
+				throw( new BEncodingException( "BDecoder: top level isn't a Map" ));
+			}
+
+			return((Map)res );
+
+		}finally{
+
+			setBuffer( null );
+		}
+	}
+
+	public Map
+	decodeFile(
+		File		file )
+
+		throws IOException
+	{
+		return( decodeBuffer( mapFile( file )));
+	}
+
+		/**
+		 * Maps a file read-only for use with {@link #decodeBuffer(ByteBuffer)} or
+		 * {@link #parse(ByteBuffer, Listener)}
+		 */
+
+	public static ByteBuffer
+	mapFile(
+		File		file )
+
+		throws IOException
+	{
+		RandomAccessFile	raf = new RandomAccessFile( file, "r" );
+
+		try{
+			FileChannel	channel = raf.getChannel();
+
+				// the mapping remains valid after the channel is closed
+
+			return( channel.map( FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+
+		}finally{
+
+			raf.close();
+		}
+	}
+
+		/**
+		 * Walks the buffer reporting its structure to the listener. Nothing is accumulated, so
+		 * this is suitable for arbitrarily large dictionaries. The top level needn't be a Map
+		 */
+
+	public void
+	parse(
+		ByteBuffer	data,
+		Listener	listener )
+
+		throws IOException
+	{
+		setBuffer( data );
+
+		try{
+			if ( pos >= limit ){
+
+				throw( new BEncodingException( "BDecoder: zero length file" ));
+			}
+
+			if ( !parseObject( listener, 0 )){
+
+				throw( new BEncodingException( "BDecoder: invalid input data, unexpected 'e'" ));
+			}
+		}finally{
+
+			setBuffer( null );
+		}
+	}
+
+	private void
+	setBuffer(
+		ByteBuffer	data )
+	{
+		buffer	= data;
+
+		if ( data == null ){
+
+			array	= null;
+
+			return;
+		}
+
+		pos		= data.position();
+		limit	= data.limit();
+
+		if ( data.hasArray()){
+
+			array			= data.array();
+			array_offset	= data.arrayOffset();
+
+		}else{
+
+			array	= null;
+		}
+	}
+
+	private int
+	read()
+	{
+		if ( pos >= limit ){
+
+			return( -1 );
+		}
+
+		int	b = array==null?buffer.get( pos ):array[array_offset+pos];
+
+		pos++;
+
+		return( b&0xff );
+	}
+
+	private int
+	peek()
+	{
+		if ( pos >= limit ){
+
+			return( -1 );
+		}
+
+		return((array==null?buffer.get( pos ):array[array_offset+pos])&0xff );
+	}
+
+	private Object
+	decodeObject(
+		int		nesting )
+
+		throws IOException
+	{
+		int	b = read();
+
+		switch( b ){
+
+			case 'd':{
+
+				LightHashMap	map = new LightHashMap();
+
+				try{
+					while( true ){
+
+						int	key_length = readStringLength();
+
+						if ( key_length < 0 ){
+
+							break;
+						}
+
+						String	key = readKey( key_length );
+
+						map.put( key, decodeObject( nesting+1 ));
+					}
+
+					if ( nesting > 0 && pos >= limit ){
+
+						throw( new BEncodingException( "BDecoder: invalid input data, 'e' missing from end of dictionary"));
+					}
+				}catch( Throwable e ){
+
+					if ( !recovery_mode ){
+
+						throw( asIOException( e ));
+					}
+				}
+
+				map.compactify( 0.9f );
+
+				return( map );
+			}
+			case 'l':{
+
+				ArrayList	list = new ArrayList();
+
+				try{
+					Object	element;
+
+					while(( element = decodeObject( nesting+1 )) != null ){
+
+						list.add( element );
+					}
+
+					list.trimToSize();
+
+					if ( nesting > 0 && pos >= limit ){
+
+						throw( new BEncodingException( "BDecoder: invalid input data, 'e' missing from end of list"));
+					}
+				}catch( Throwable e ){
+
+					if ( !recovery_mode ){
+
+						throw( asIOException( e ));
+					}
+				}
+
+				return( list );
+			}
+			case 'e':
+			case -1:{
+
+				return( null );
+			}
+			case 'i':{
+
+				return( new Long( readNumber( 'e' )));
+			}
+			case '0':
+			case '1':
+			case '2':
+			case '3':
+			case '4':
+			case '5':
+			case '6':
+			case '7':
+			case '8':
+			case '9':{
+
+				pos--;
+
+				int	length = readStringLength();
+
+				if ( length < 0 ){
+
+					return( null );
+				}
+
+				return( readString( length ));
+			}
+			default:{
+
+				throw( unknownCommand( b ));
+			}
+		}
+	}
+
+		/**
+		 * @return false if the object was an end marker (or end of data)
+		 */
+
+	private boolean
+	parseObject(
+		Listener	listener,
+		int			nesting )
+
+		throws IOException
+	{
+		int	b = read();
+
+		switch( b ){
+
+			case 'd':{
+
+				listener.startMap();
+
+				while( true ){
+
+					int	key_length = readStringLength();
+
+					if ( key_length < 0 ){
+
+						break;
+					}
+
+					listener.key( readKey( key_length ));
+
+					if ( !parseObject( listener, nesting+1 )){
+
+						throw( new BEncodingException( "BDecoder: invalid input data, missing value in dictionary" ));
+					}
+				}
+
+				if ( nesting > 0 && pos >= limit ){
+
+					throw( new BEncodingException( "BDecoder: invalid input data, 'e' missing from end of dictionary"));
+				}
+
+				listener.endMap();
+
+				return( true );
+			}
+			case 'l':{
+
+				listener.startList();
+
+				while( parseObject( listener, nesting+1 )){
+				}
+
+				if ( nesting > 0 && pos >= limit ){
+
+					throw( new BEncodingException( "BDecoder: invalid input data, 'e' missing from end of list"));
+				}
+
+				listener.endList();
+
+				return( true );
+			}
+			case 'e':
+			case -1:{
+
+				return( false );
+			}
+			case 'i':{
+
+				listener.value( readNumber( 'e' ));
+
+				return( true );
+			}
+			case '0':
+			case '1':
+			case '2':
+			case '3':
+			case '4':
+			case '5':
+			case '6':
+			case '7':
+			case '8':
+			case '9':{
+
+				pos--;
+
+				int	length = readStringLength();
+
+				if ( length < 0 ){
+
+					return( false );
+				}
+
+				listener.value( slice( length ));
+
+				return( true );
+			}
+			default:{
+
+				throw( unknownCommand( b ));
+			}
+		}
+	}
+
+		/**
+		 * Reads the length prefix of a byte string, or consumes an end marker
+		 * @return -1 at an end marker or end of data
+		 */
+
+	private int
+	readStringLength()
+
+		throws IOException
+	{
+		int	b = peek();
+
+		if ( b == 'e' || b == -1 ){
+
+			pos++;
+
+			return( -1 );
+		}
+
+		if ( b < '0' || b > '9' ){
+
+				// BDecoder treats a non-string key as a decode failure
+
+			pos++;
+
+			throw( b=='d'||b=='l'||b=='i'?
+					new BEncodingException( "BDecoder: invalid input data, dictionary key isn't a string" ):
+					unknownCommand( b ));
+		}
+
+		long	length = readNumber( ':' );
+
+		if ( length < 0 ){
+
+			return( -1 );
+		}
+
+		if ( length > MAX_BYTE_ARRAY_LENGTH ){
+
+			throw( new IOException( "Byte array length too large (" + length + ")"));
+		}
+
+		if ( pos + length > limit ){
+
+			throw( new IOException( "BDecoder::getByteArrayFromStream: truncated"));
+		}
+
+		return((int)length );
+	}
+
+	private long
+	readNumber(
+		char	terminator )
+	{
+		int	num_pos	= 0;
+
+		while( true ){
+
+			int	b = read();
+
+			if ( b == terminator ){
+
+				break;
+
+			}else if ( b < 0 ){
+
+				return( -1 );
+			}
+
+			number_chars[num_pos++] = (char)b;
+
+			if ( num_pos == number_chars.length ){
+
+				throw( new NumberFormatException( "Number too large: " + new String( number_chars, 0, num_pos ) + "..." ));
+			}
+		}
+
+		if ( num_pos == 0 ){
+
+				// support some borked impls that sometimes don't bother encoding anything
+
+			return( 0 );
+		}
+
+		return( BDecoder.parseLong( number_chars, 0, num_pos ));
+	}
+
+	private Object
+	readString(
+		int		length )
+	{
+		if ( lazy_threshold >= 0 && length >= lazy_threshold ){
+
+			return( new Slice( slice( length )));
+		}
+
+		byte[]	res = new byte[length];
+
+		if ( array != null ){
+
+			System.arraycopy( array, array_offset+pos, res, 0, length );
+
+		}else{
+
+			ByteBuffer	temp = buffer.duplicate();
+
+			temp.position( pos );
+
+			temp.get( res );
+		}
+
+		pos += length;
+
+		return( res );
+	}
+
+	private ByteBuffer
+	slice(
+		int		length )
+	{
+		ByteBuffer	temp = buffer.duplicate();
+
+		temp.limit( pos + length );
+		temp.position( pos );
+
+		pos += length;
+
+		return( temp.slice());
+	}
+
+		/**
+		 * Keys are ISO-8859-1 decoded, as BDecoder does, so the chars are just the bytes
+		 */
+
+	private String
+	readKey(
+		int		length )
+	{
+		int	start = pos;
+
+		pos += length;
+
+		if ( length > KEY_CACHE_MAX_LENGTH ){
+
+			return( StringInterner.intern( newKey( start, length )));
+		}
+
+		int	hash = length;
+
+		for (int i=0;i<length;i++){
+
+			hash = 31*hash + byteAt( start+i );
+		}
+
+		hash ^= hash >>> 16;
+
+		int	slot = hash & ( KEY_CACHE_SIZE - 1 );
+
+		String	cached = key_cache[slot];
+
+		if ( cached != null && cached.length() == length ){
+
+			boolean	match = true;
+
+			for (int i=0;i<length;i++){
+
+				if ( cached.charAt(i) != byteAt( start+i )){
+
+					match = false;
+
+					break;
+				}
+			}
+
+			if ( match ){
+
+				return( cached );
+			}
+		}
+
+		String	key = StringInterner.intern( newKey( start, length ));
+
+		key_cache[slot] = key;
+
+		return( key );
+	}
+
+	private String
+	newKey(
+		int		start,
+		int		length )
+	{
+		char[]	chars = new char[length];
+
+		for (int i=0;i<length;i++){
+
+			chars[i] = (char)byteAt( start+i );
+		}
+
+		return( new String( chars ));
+	}
+
+	private int
+	byteAt(
+		int		index )
+	{
+		return((array==null?buffer.get( index ):array[array_offset+index])&0xff );
+	}
+
+	private BEncodingException
+	unknownCommand(
+		int		b )
+	{
+		int	rem_len = Math.min( limit - pos, 256 );
+
+		char[]	rem = new char[rem_len];
+
+		for (int i=0;i<rem_len;i++){
+
+			rem[i] = (char)byteAt( pos+i );
+		}
+
+		return( new BEncodingException(
+				"BDecoder: unknown command '" + b + ", remainder = " + new String( rem )));
+	}
+
+	private static IOException
+	asIOException(
+		Throwable	e )
+	{
+		if ( e instanceof IOException ){
+
+			return((IOException)e );
+		}
+
+		return( new IOException( Debug.getNestedExceptionMessage(e)));
+	}
+
+		/**
+		 * A byte string left in place in the source buffer
+		 */
+
+	public static class
+	Slice
+	{
+		private final ByteBuffer	buffer;
+
+		protected
+		Slice(
+			ByteBuffer	_buffer )
+		{
+			buffer	= _buffer;
+		}
+
+		public int
+		getLength()
+		{
+			return( buffer.remaining());
+		}
+
+			/**
+			 * @return a read-only view of the bytes, independent of other callers' positions
+			 */
+
+		public ByteBuffer
+		getBuffer()
+		{
+			return( buffer.asReadOnlyBuffer());
+		}
+
+		public byte[]
+		getBytes()
+		{
+			byte[]	res = new byte[buffer.remaining()];
+
+			buffer.duplicate().get( res );
+
+			return( res );
+		}
+
+		public String
+		toString()
+		{
+			return( "Slice[" + getLength() + "]" );
+		}
+	}
+
+		/**
+		 * Receives the structure of the data from {@link BDecoderBuffer#parse(ByteBuffer, Listener)}.
+		 * Byte string values are passed as slices of the source buffer that are only valid for
+		 * the duration of the call unless the source outlives it
+		 */
+
+	public interface
+	Listener
+	{
+		public void
+		startMap()
+
+			throws IOException;
+
+		public void
+		key(
+			String		key )
+
+			throws IOException;
+
+		public void
+		endMap()
+
+			throws IOException;
+
+		public void
+		startList()
+
+			throws IOException;
+
+		public void
+		endList()
+
+			throws IOException;
+
+		public void
+		value(
+			long		value )
+
+			throws IOException;
+
+		public void
+		value(
+			ByteBuffer	value )
+
+			throws IOException;
+	}
+}
@@ -0,0 +1,687 @@
+/*
+ * Created on Oct 19, 2026
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.gudy.azureus2.core3.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.*;
+
+/**
+ * A bencoder that streams its output instead of building a byte[] as {@link BEncoder} does.
+ * The output is byte-for-byte the same as BEncoder.encode( map ) (url encoding isn't supported).
+ *
+ * Output goes either to a channel, through a single pooled buffer so that the extra memory
+ * needed is constant however large the map, or into a pooled DirectByteBuffer sized exactly
+ * by a first pass over the map.
+ *
+ * Large byte[] values are written to the channel directly rather than being copied through
+ * the buffer, Strings are UTF-8 encoded without intermediate buffers and the sorted key order
+ * of maps is cached by key set, as the same map shapes get written repeatedly (config entries,
+ * resume data, DHT values)
+ */
+
+public class
+BEncoderStream
+{
+	private static final int	CHANNEL_BUFFER_SIZE		= 64*1024;
+	private static final int	PASSTHROUGH_MIN_LENGTH	= 8*1024;
+
+	private static final int	KEY_ORDER_CACHE_SIZE	= 256;	// power of 2
+	private static final int	KEY_ORDER_MAX_KEYS		= 256;
+
+	private static final String[][]	key_order_cache	= new String[KEY_ORDER_CACHE_SIZE][];
+
+	private static final byte[]	MIN_LONG_BYTES	= Long.toString( Long.MIN_VALUE ).getBytes();
+
+		/**
+		 * @return the number of bytes written
+		 */
+
+	public static long
+	encode(
+		Map						map,
+		WritableByteChannel		channel )
+
+		throws IOException
+	{
+		DirectByteBuffer	buffer = DirectByteBufferPool.getBuffer( DirectByteBuffer.AL_FILE, CHANNEL_BUFFER_SIZE );
+
+		try{
+			BEncoderStream	encoder = new BEncoderStream( buffer.getBuffer( DirectByteBuffer.SS_FILE ), channel );
+
+			encoder.encodeObject( map );
+
+			encoder.flush();
+
+			return( encoder.written );
+
+		}finally{
+
+			buffer.returnToPool();
+		}
+	}
+
+		/**
+		 * @return a pooled buffer, positioned at 0 with its limit at the end of the encoding,
+		 * that the caller must return to the pool
+		 */
+
+	public static DirectByteBuffer
+	encodeToBuffer(
+		Map			map )
+
+		throws IOException
+	{
+		long	length = getEncodedLength( map );
+
+		if ( length > DirectByteBufferPool.MAX_SIZE ){
+
+			throw( new IOException( "BEncoder: encoding too large for buffer (" + length + ")" ));
+		}
+
+		DirectByteBuffer	buffer = DirectByteBufferPool.getBuffer( DirectByteBuffer.AL_OTHER, Math.max( 1, (int)length ));
+
+		try{
+			ByteBuffer	bb = buffer.getBuffer( DirectByteBuffer.SS_OTHER );
+
+			new BEncoderStream( bb, null ).encodeObject( map );
+
+			bb.flip();
+
+			return( buffer );
+
+		}catch( Throwable e ){
+
+			buffer.returnToPool();
+
+			if ( e instanceof IOException ){
+
+				throw((IOException)e );
+			}
+
+			throw( new IOException( "BEncoder: " + Debug.getNestedExceptionMessage( e )));
+		}
+	}
+
+	public static long
+	getEncodedLength(
+		Object		object )
+
+		throws IOException
+	{
+		return( new BEncoderStream( null, null ).encodeObject( object ));
+	}
+
+	private final ByteBuffer			buffer;
+	private final WritableByteChannel	channel;
+
+	private final byte[]	number_bytes	= new byte[20];
+
+	private long	written;
+
+		/**
+		 * A null buffer means a sizing pass - nothing is written
+		 */
+
+	private
+	BEncoderStream(
+		ByteBuffer				_buffer,
+		WritableByteChannel		_channel )
+	{
+		buffer	= _buffer;
+		channel	= _channel;
+	}
+
+		/**
+		 * @return the encoded length of the object
+		 */
+
+	private long
+	encodeObject(
+		Object		object )
+
+		throws IOException
+	{
+		if ( object instanceof byte[] ){
+
+			byte[]	bytes = (byte[])object;
+
+			return( writeLength( bytes.length ) + writeBytes( bytes ));
+
+		}else if ( object instanceof String || object instanceof Float ){
+
+			String	str = (object instanceof String)?(String)object:String.valueOf((Float)object);
+
+			return( writeLength( utf8Length( str )) + writeUTF8( str ));
+
+		}else if ( object instanceof Map ){
+
+			return( encodeMap((Map)object ));
+
+		}else if ( object instanceof List ){
+
+			List	list = (List)object;
+
+			long	len = writeByte( 'l' );
+
+			for (int i=0;i<list.size();i++){
+
+				len += encodeObject( list.get(i));
+			}
+
+			return( len + writeByte( 'e' ));
+
+		}else if ( object instanceof Long || object instanceof Integer ){
+
+			return( writeByte( 'i' ) + writeNumber(((Number)object).longValue()) + writeByte( 'e' ));
+
+		}else if ( object instanceof ByteBuffer ){
+
+			ByteBuffer	bb = (ByteBuffer)object;
+
+			return( writeLength( bb.remaining()) + writeByteBuffer( bb ));
+
+		}else if ( object == null ){
+
+				// as BEncoder, log rather than fail
+
+			if ( buffer != null ){
+
+				Debug.out( "Attempt to encode a null value" );
+			}
+
+			return( 0 );
+
+		}else{
+
+			if ( buffer != null ){
+
+				Debug.out( "Attempt to encode an unsupported entry type: " + object.getClass() + ";value=" + object);
+			}
+
+			return( 0 );
+		}
+	}
+
+	private long
+	encodeMap(
+		Map		map )
+
+		throws IOException
+	{
+		long	len = writeByte( 'd' );
+
+		boolean	byte_keys = map instanceof ByteEncodedKeyHashMap;
+
+		if ( map instanceof TreeMap ){
+
+			Iterator	it = map.entrySet().iterator();
+
+			while( it.hasNext()){
+
+				Map.Entry	entry = (Map.Entry)it.next();
+
+				len += encodeEntry( entry.getKey(), entry.getValue(), byte_keys );
+			}
+		}else{
+
+			String[]	keys = getSortedKeys( map );
+
+			if ( keys == null ){
+
+					// non-String keys, fall back to BEncoder's behaviour
+
+				Iterator	it = new TreeMap( map ).entrySet().iterator();
+
+				while( it.hasNext()){
+
+					Map.Entry	entry = (Map.Entry)it.next();
+
+					len += encodeEntry( entry.getKey(), entry.getValue(), byte_keys );
+				}
+			}else{
+
+				for (int i=0;i<keys.length;i++){
+
+					String	key = keys[i];
+
+					len += encodeEntry( key, map.get( key ), byte_keys );
+				}
+			}
+		}
+
+		return( len + writeByte( 'e' ));
+	}
+
+	private long
+	encodeEntry(
+		Object		key,
+		Object		value,
+		boolean		byte_keys )
+
+		throws IOException
+	{
+		if ( value == null ){
+
+			return( 0 );
+		}
+
+		long	len;
+
+		if ( key instanceof byte[] ){
+
+			len = encodeObject( key );
+
+		}else if ( byte_keys ){
+
+			len = encodeObject( Constants.BYTE_CHARSET.encode((String)key ));
+
+		}else{
+
+			len = encodeObject( key );
+		}
+
+		return( len + encodeObject( value ));
+	}
+
+		/**
+		 * @return the map's keys in bencoding order, or null if they aren't all Strings
+		 */
+
+	private static String[]
+	getSortedKeys(
+		Map		map )
+	{
+		int	size = map.size();
+
+		if ( size > KEY_ORDER_MAX_KEYS ){
+
+			return( sortKeys( map ));
+		}
+
+			// order independent signature of the key set, verified on a hit
+
+		int	signature = size;
+
+		Iterator	it = map.keySet().iterator();
+
+		while( it.hasNext()){
+
+			Object	key = it.next();
+
+			if ( !( key instanceof String )){
+
+				return( null );
+			}
+
+			signature += key.hashCode();
+		}
+
+		signature ^= signature >>> 16;
+
+		int	slot = signature & ( KEY_ORDER_CACHE_SIZE - 1 );
+
+		String[]	cached;
+
+		synchronized( key_order_cache ){
+
+			cached = key_order_cache[slot];
+		}
+
+		if ( cached != null && cached.length == size ){
+
+			boolean	match = true;
+
+			for (int i=0;i<size;i++){
+
+				if ( !map.containsKey( cached[i] )){
+
+					match = false;
+
+					break;
+				}
+			}
+
+			if ( match ){
+
+				return( cached );
+			}
+		}
+
+		String[]	keys = sortKeys( map );
+
+		synchronized( key_order_cache ){
+
+			key_order_cache[slot] = keys;
+		}
+
+		return( keys );
+	}
+
+	private static String[]
+	sortKeys(
+		Map		map )
+	{
+		Object[]	raw = map.keySet().toArray();
+
+		String[]	keys = new String[raw.length];
+
+		for (int i=0;i<raw.length;i++){
+
+			if ( !( raw[i] instanceof String )){
+
+				return( null );
+			}
+
+			keys[i] = (String)raw[i];
+		}
+
+		Arrays.sort( keys );
+
+		return( keys );
+	}
+
+		/**
+		 * Length of the UTF-8 encoding as produced by Constants.DEFAULT_CHARSET, which replaces
+		 * unpaired surrogates with '?'
+		 */
+
+	private static int
+	utf8Length(
+		String	str )
+	{
+		int	len = str.length();
+		int	res	= 0;
+
+		for (int i=0;i<len;i++){
+
+			char	c = str.charAt(i);
+
+			if ( c < 0x80 ){
+
+				res++;
+
+			}else if ( c < 0x800 ){
+
+				res += 2;
+
+			}else if ( Character.isHighSurrogate( c ) && i+1 < len && Character.isLowSurrogate( str.charAt(i+1))){
+
+				res += 4;
+
+				i++;
+
+			}else if ( Character.isHighSurrogate( c ) || Character.isLowSurrogate( c )){
+
+				res++;
+
+			}else{
+
+				res += 3;
+			}
+		}
+
+		return( res );
+	}
+
+	private long
+	writeUTF8(
+		String	str )
+
+		throws IOException
+	{
+		int	len = str.length();
+
+		if ( buffer == null ){
+
+			return( utf8Length( str ));
+		}
+
+		long	res = 0;
+
+		for (int i=0;i<len;i++){
+
+			char	c = str.charAt(i);
+
+			if ( c < 0x80 ){
+
+				res += writeByte( c );
+
+			}else if ( c < 0x800 ){
+
+				res += writeByte( 0xc0 | ( c >> 6 ));
+				res += writeByte( 0x80 | ( c & 0x3f ));
+
+			}else if ( Character.isHighSurrogate( c ) && i+1 < len && Character.isLowSurrogate( str.charAt(i+1))){
+
+				int	cp = Character.toCodePoint( c, str.charAt(++i));
+
+				res += writeByte( 0xf0 | ( cp >> 18 ));
+				res += writeByte( 0x80 | (( cp >> 12 ) & 0x3f ));
+				res += writeByte( 0x80 | (( cp >> 6 ) & 0x3f ));
+				res += writeByte( 0x80 | ( cp & 0x3f ));
+
+			}else if ( Character.isHighSurrogate( c ) || Character.isLowSurrogate( c )){
+
+				res += writeByte( '?' );
+
+			}else{
+
+				res += writeByte( 0xe0 | ( c >> 12 ));
+				res += writeByte( 0x80 | (( c >> 6 ) & 0x3f ));
+				res += writeByte( 0x80 | ( c & 0x3f ));
+			}
+		}
+
+		return( res );
+	}
+
+	private long
+	writeLength(
+		long	length )
+
+		throws IOException
+	{
+		return( writeNumber( length ) + writeByte( ':' ));
+	}
+
+	private long
+	writeNumber(
+		long	l )
+
+		throws IOException
+	{
+		if ( l == Long.MIN_VALUE ){
+
+			return( writeBytes( MIN_LONG_BYTES ));
+		}
+
+		boolean	negative = l < 0;
+
+		if ( negative ){
+
+			l = -l;
+		}
+
+		int	pos = number_bytes.length;
+
+		do{
+			number_bytes[--pos] = (byte)( '0' + ( l % 10 ));
+
+			l /= 10;
+
+		}while( l != 0 );
+
+		if ( negative ){
+
+			number_bytes[--pos] = '-';
+		}
+
+		int	len = number_bytes.length - pos;
+
+		if ( buffer != null ){
+
+			ensureSpace( len );
+
+			buffer.put( number_bytes, pos, len );
+		}
+
+		return( len );
+	}
+
+	private long
+	writeByte(
+		int		b )
+
+		throws IOException
+	{
+		if ( buffer != null ){
+
+			if ( !buffer.hasRemaining()){
+
+				ensureSpace( 1 );
+			}
+
+			buffer.put((byte)b );
+		}
+
+		return( 1 );
+	}
+
+	private long
+	writeBytes(
+		byte[]	bytes )
+
+		throws IOException
+	{
+		if ( buffer != null ){
+
+			if ( channel != null && bytes.length >= PASSTHROUGH_MIN_LENGTH ){
+
+					// hand the caller's array straight to the channel rather than copying it
+
+				flush();
+
+				writeFully( ByteBuffer.wrap( bytes ));
+
+			}else{
+
+				int	pos = 0;
+
+				while( pos < bytes.length ){
+
+					ensureSpace( 1 );
+
+					int	chunk = Math.min( buffer.remaining(), bytes.length - pos );
+
+					buffer.put( bytes, pos, chunk );
+
+					pos += chunk;
+				}
+			}
+		}
+
+		return( bytes.length );
+	}
+
+	private long
+	writeByteBuffer(
+		ByteBuffer	bb )
+
+		throws IOException
+	{
+		int	len = bb.remaining();
+
+		if ( buffer != null ){
+
+			ByteBuffer	temp = bb.duplicate();
+
+			if ( channel != null && len >= PASSTHROUGH_MIN_LENGTH ){
+
+				flush();
+
+				writeFully( temp );
+
+			}else{
+
+				while( temp.hasRemaining()){
+
+					ensureSpace( 1 );
+
+					int	chunk = Math.min( buffer.remaining(), temp.remaining());
+
+					int	old_limit = temp.limit();
+
+					temp.limit( temp.position() + chunk );
+
+					buffer.put( temp );
+
+					temp.limit( old_limit );
+				}
+			}
+		}
+
+		return( len );
+	}
+
+	private void
+	ensureSpace(
+		int		length )
+
+		throws IOException
+	{
+		if ( buffer.remaining() < length ){
+
+			if ( channel == null ){
+
+				throw( new IOException( "BEncoder: buffer overflow" ));
+			}
+
+			flush();
+		}
+	}
+
+	private void
+	flush()
+
+		throws IOException
+	{
+		if ( channel == null || buffer.position() == 0 ){
+
+			return;
+		}
+
+		buffer.flip();
+
+		writeFully( buffer );
+
+		buffer.clear();
+	}
+
+	private void
+	writeFully(
+		ByteBuffer	bb )
+
+		throws IOException
+	{
+		while( bb.hasRemaining()){
+
+			written += channel.write( bb );
+		}
+	}
+}
@@ -22,8 +22,12 @@
  */
 package org.gudy.azureus2.core3.util;
 
+import java.lang.ref.WeakReference;
 import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.math.*;
 
 import org.gudy.azureus2.core3.config.COConfigurationManager;
@@ -31,6 +35,8 @@ import org.gudy.azureus2.core3.disk.DiskManager;
 import org.gudy.azureus2.core3.logging.*;
 
 import com.aelitis.azureus.core.diskmanager.cache.*;
+import com.aelitis.azureus.core.stats.AzureusCoreStats;
+import com.aelitis.azureus.core.stats.AzureusCoreStatsProvider;
 
 
 /**
@@ -125,6 +131,60 @@ DirectByteBufferPool
 	private long bytesIn = 0;
 	private long bytesOut = 0;
   
+		// per-thread magazines sit in front of the pools for the sizes that see most of the traffic,
+		// 16K blocks with and without the protocol header. Slice sizes stay out of them, the slice
+		// arena is too small to be spread over per-thread caches. A thread
+		// allocates from and frees to its own magazines without locking and swaps whole magazines
+		// with a lock-free depot. Only when the depot is empty (or full) do we fall back to the 
+		// locked pools. Each thread holds at most two magazines of MAGAZINE_BYTES per size and 
+		// each depot at most DEPOT_BYTES, so the extra direct memory retained stays bounded. The
+		// magazines of threads that have exited are handed back to the pools by sweepMagazines,
+		// live threads empty theirs on their next alloc/free after requestMagazineFlush
+	
+	private static final int	MAGAZINE_BYTES		= 64*1024;
+	private static final int	MAGAZINE_MAX_COUNT	= 32;
+	private static final int	DEPOT_BYTES			= 1024*1024;
+	private static final int	MAGAZINE_OPS_BATCH	= 256;
+	
+	private final boolean		enable_magazines	= COConfigurationManager.getBooleanParameter( "memory.magazine.enable" );
+	
+	private final int[]			magazine_sizes		= { 4096, DiskManager.BLOCK_SIZE, DiskManager.BLOCK_SIZE + 128, 32768 };
+	
+	private final magazineDepot[]	depots			= new magazineDepot[ magazine_sizes.length ];
+	
+	private final ThreadLocal	thread_magazines	= 
+		new ThreadLocal()
+		{
+			protected Object
+			initialValue()
+			{
+				threadMagazines	tm = new threadMagazines( depots, flush_generation.get());
+				
+				synchronized( magazine_owners ){
+					
+					magazine_owners.add( tm );
+				}
+				
+				return( tm );
+			}
+		};
+		
+		// every threadMagazines handed out, each holding its thread weakly
+		
+	private final List			magazine_owners		= new ArrayList();
+		
+	private final AtomicLong	magazine_ops		= new AtomicLong();
+	
+		// bumped to ask every live thread to empty its magazines, the discard generation is the
+		// latest request whose buffers are to be dropped rather than pooled
+	
+	private final AtomicInteger	flush_generation	= new AtomicInteger();
+	private volatile int		discard_generation;
+	private final AtomicLong	depot_exchanges		= new AtomicLong();
+	private final AtomicLong	locked_ops			= new AtomicLong();
+		
+	private int[]				bucket_sizes;
+	
   
 	private 
 	DirectByteBufferPool() 
@@ -148,13 +208,64 @@ DirectByteBufferPool
 	    list.toArray( sizes );
 	    Arrays.sort( sizes);
 	    
+	    bucket_sizes = new int[sizes.length];
+	    
 	    for (int i=0;i<sizes.length;i++){
 	    	
 	    	ArrayList bufferPool = new ArrayList();
 	    	
 	    	buffersMap.put(sizes[i], bufferPool);
+	    	
+	    	bucket_sizes[i] = sizes[i].intValue();
 	    }
 	    
+	    for (int i=0;i<magazine_sizes.length;i++){
+	    	
+	    	depots[i] = new magazineDepot( magazine_sizes[i] );
+	    }
+	    
+	    Set	types = new HashSet();
+	    
+	    types.add( AzureusCoreStats.ST_MEMORY_DBB_MAGAZINE_OP_COUNT );
+	    types.add( AzureusCoreStats.ST_MEMORY_DBB_DEPOT_EXCHANGE_COUNT );
+	    types.add( AzureusCoreStats.ST_MEMORY_DBB_LOCKED_OP_COUNT );
+	    types.add( AzureusCoreStats.ST_MEMORY_DBB_DEPOT_BYTES );
+	    
+	    AzureusCoreStats.registerProvider(
+	    	types,
+	    	new AzureusCoreStatsProvider()
+	    	{
+	    		public void
+	    		updateStats(
+	    			Set		types,
+	    			Map		values )
+	    		{
+	    			if ( types.contains( AzureusCoreStats.ST_MEMORY_DBB_MAGAZINE_OP_COUNT )){
+	    				
+	    				values.put( AzureusCoreStats.ST_MEMORY_DBB_MAGAZINE_OP_COUNT, new Long( magazine_ops.get()));
+	    			}
+	    			if ( types.contains( AzureusCoreStats.ST_MEMORY_DBB_DEPOT_EXCHANGE_COUNT )){
+	    				
+	    				values.put( AzureusCoreStats.ST_MEMORY_DBB_DEPOT_EXCHANGE_COUNT, new Long( depot_exchanges.get()));
+	    			}
+	    			if ( types.contains( AzureusCoreStats.ST_MEMORY_DBB_LOCKED_OP_COUNT )){
+	    				
+	    				values.put( AzureusCoreStats.ST_MEMORY_DBB_LOCKED_OP_COUNT, new Long( locked_ops.get()));
+	    			}
+	    			if ( types.contains( AzureusCoreStats.ST_MEMORY_DBB_DEPOT_BYTES )){
+	    				
+	    				long	bytes = 0;
+	    				
+	    				for (int i=0;i<depots.length;i++){
+	    					
+	    					bytes += depots[i].getBytes();
+	    				}
+	    				
+	    				values.put( AzureusCoreStats.ST_MEMORY_DBB_DEPOT_BYTES, new Long( bytes ));
+	    			}
+	    		}
+	    	});
+	    
 	    //initiate periodic timer to check free memory usage
 	    SimpleTimer.addPeriodicEvent(
 	    	"DirectBB:compact",
@@ -257,7 +368,7 @@ DirectByteBufferPool
 			
 		}else{
 				
-			ByteBuffer	buff = null;
+			ByteBuffer	buff = (ByteBuffer)allocFromMagazine( getBucketSize( _length ));
 			
 			Integer reqVal = new Integer(_length);
 	    
@@ -265,7 +376,7 @@ DirectByteBufferPool
 	    
 			Iterator it = buffersMap.keySet().iterator();
 	    
-			while (it.hasNext()) {
+			while (buff == null && it.hasNext()) {
 	    	
 				Integer keyVal = (Integer)it.next();
 	
@@ -401,7 +512,8 @@ DirectByteBufferPool
 			
 			freeSliceBuffer( ddb );
 			
-		}else{
+		}else if ( !freeToMagazine( capacity, buff )){
+			
 		    Integer buffSize = new Integer(capacity);
 		    
 		    ArrayList bufferPool = (ArrayList)buffersMap.get(buffSize);
@@ -427,6 +539,9 @@ DirectByteBufferPool
    * unused buffers can be garbage collected.
    */
   private void clearBufferPools() {
+    requestMagazineFlush( true );
+    sweepMagazines( true );
+    drainDepots( true );
     Iterator it = buffersMap.values().iterator();
     while (it.hasNext()) {
         ArrayList bufferPool = (ArrayList)it.next();
@@ -453,6 +568,15 @@ DirectByteBufferPool
    */
   private void compactBuffers() {
 	  
+	  	// hand anything sitting in the depots back to the pools so it is subject to compaction,
+	  	// live threads' magazines follow on their next alloc/free
+	  
+	  requestMagazineFlush( false );
+	  
+	  sweepMagazines( false );
+	  
+	  drainDepots( false );
+	  
 	  nonsliecd: synchronized (poolsLock)
 		{
 			long freeSize = bytesFree();
@@ -838,7 +962,9 @@ DirectByteBufferPool
 	{		
 		if ( ddb instanceof sliceDBB ){
 			
-			int	slice_index = getSliceIndex( ddb.getBufferInternal().capacity());
+			int	capacity = ddb.getBufferInternal().capacity();
+			
+			int	slice_index = getSliceIndex( capacity );
 
 			List		my_slice_entries 	= slice_entries[slice_index];
 
@@ -959,6 +1085,334 @@ DirectByteBufferPool
 		}
 	}
 	
+		// Magazine management
+	
+	protected int
+	getBucketSize(
+		int	_length )
+	{
+		for (int i=0;i<bucket_sizes.length;i++){
+			
+			if ( _length <= bucket_sizes[i] ){
+				
+				return( bucket_sizes[i] );
+			}
+		}
+		
+		return( -1 );
+	}
+	
+	protected int
+	getMagazineIndex(
+		int	_size )
+	{
+		if ( enable_magazines ){
+			
+			for (int i=0;i<magazine_sizes.length;i++){
+				
+				if ( magazine_sizes[i] == _size ){
+					
+					return( i );
+				}
+			}
+		}
+		
+		return( -1 );
+	}
+	
+		/**
+		 * @return a ByteBuffer of exactly the given size, null if the size has no magazines or
+		 * none are available
+		 */
+	
+	protected Object
+	allocFromMagazine(
+		int		_size )
+	{
+		int	index = getMagazineIndex( _size );
+		
+		if ( index == -1 ){
+			
+			return( null );
+		}
+		
+		threadMagazines	tm = (threadMagazines)thread_magazines.get();
+		
+		if ( tm.generation != flush_generation.get()){
+			
+			flushMagazines( tm );
+		}
+		
+		magazine	loaded = tm.loaded[index];
+		
+		if ( loaded.count == 0 ){
+			
+			magazine	previous = tm.previous[index];
+			
+			if ( previous.count > 0 ){
+				
+				tm.previous[index]	= loaded;
+				tm.loaded[index]	= previous;
+				
+				loaded = previous;
+				
+			}else{
+				
+				tm.flushOps( magazine_ops );
+				
+				magazine	full = depots[index].takeFull();
+				
+				if ( full == null ){
+					
+					locked_ops.incrementAndGet();
+					
+					return( null );
+				}
+				
+				depot_exchanges.incrementAndGet();
+				
+					// both of ours are empty, drop one of them
+				
+				tm.loaded[index] = full;
+				
+				loaded = full;
+			}
+		}
+		
+		if ( ++tm.ops >= MAGAZINE_OPS_BATCH ){
+			
+			tm.flushOps( magazine_ops );
+		}
+		
+		Object	res = loaded.items[--loaded.count];
+		
+		loaded.items[loaded.count] = null;
+		
+		return( res );
+	}
+	
+		/**
+		 * @return false if the size has no magazines or they and the depot are full, in which case
+		 * the caller must return the buffer to the pools
+		 */
+	
+	protected boolean
+	freeToMagazine(
+		int		_size,
+		Object	_buffer )
+	{
+		int	index = getMagazineIndex( _size );
+		
+		if ( index == -1 ){
+			
+			return( false );
+		}
+		
+		threadMagazines	tm = (threadMagazines)thread_magazines.get();
+		
+		if ( tm.generation != flush_generation.get()){
+			
+			flushMagazines( tm );
+		}
+		
+		magazine	loaded = tm.loaded[index];
+		
+		if ( loaded.count == loaded.items.length ){
+			
+			magazine	previous = tm.previous[index];
+			
+			if ( previous.count < previous.items.length ){
+				
+				tm.previous[index]	= loaded;
+				tm.loaded[index]	= previous;
+				
+				loaded = previous;
+				
+			}else{
+				
+				tm.flushOps( magazine_ops );
+				
+				magazineDepot	depot = depots[index];
+				
+				if ( !depot.putFull( previous )){
+					
+					locked_ops.incrementAndGet();
+					
+					return( false );
+				}
+				
+				depot_exchanges.incrementAndGet();
+				
+				tm.previous[index]	= loaded;
+				
+				loaded = depot.newMagazine();
+				
+				tm.loaded[index]	= loaded;
+			}
+		}
+		
+		if ( ++tm.ops >= MAGAZINE_OPS_BATCH ){
+			
+			tm.flushOps( magazine_ops );
+		}
+		
+		loaded.items[loaded.count++] = _buffer;
+		
+		return( true );
+	}
+	
+	protected void
+	drainDepots(
+		boolean	discard )
+	{
+		for (int i=0;i<depots.length;i++){
+			
+			int	size = depots[i].size;
+			
+			while( true ){
+			
+				magazine	mag = depots[i].takeFull();
+				
+				if ( mag == null ){
+					
+					break;
+				}
+				
+				if ( discard ){
+					
+					continue;
+				}
+				
+				returnToPool( size, mag );
+			}
+		}
+	}
+	
+	protected void
+	returnToPool(
+		int			size,
+		magazine	mag )
+	{
+		ArrayList bufferPool = (ArrayList)buffersMap.get( new Integer( size ));
+		
+		synchronized( bufferPool ){
+			
+			for (int j=0;j<mag.count;j++){
+						
+				bufferPool.add( mag.items[j] );
+				
+				mag.items[j] = null;
+			}
+		}
+		
+		mag.count = 0;
+	}
+	
+	protected void
+	requestMagazineFlush(
+		boolean	discard )
+	{
+		int	generation = flush_generation.incrementAndGet();
+		
+		if ( discard ){
+			
+			discard_generation = generation;
+		}
+	}
+	
+		/**
+		 * Empties the calling thread's magazines in answer to requestMagazineFlush, into the pools
+		 * unless a request since the last flush asked for them to be dropped
+		 */
+	
+	protected void
+	flushMagazines(
+		threadMagazines	tm )
+	{
+		int		generation	= flush_generation.get();
+		boolean	discard		= discard_generation - tm.generation > 0;
+		
+		tm.generation = generation;
+		
+		tm.flushOps( magazine_ops );
+		
+		for (int i=0;i<depots.length;i++){
+			
+			if ( discard ){
+				
+				discardMagazine( tm.loaded[i] );
+				discardMagazine( tm.previous[i] );
+				
+			}else{
+				
+				returnToPool( depots[i].size, tm.loaded[i] );
+				returnToPool( depots[i].size, tm.previous[i] );
+			}
+		}
+	}
+	
+	protected void
+	discardMagazine(
+		magazine	mag )
+	{
+		for (int j=0;j<mag.count;j++){
+			
+			mag.items[j] = null;
+		}
+		
+		mag.count = 0;
+	}
+	
+		/**
+		 * Reclaims the magazines of threads that have exited. Their buffers go back to the pools,
+		 * or are dropped if discard is set. Thread termination happens-before isAlive returning
+		 * false, so the dead thread's last writes to its magazines are visible here
+		 */
+	
+	protected void
+	sweepMagazines(
+		boolean	discard )
+	{
+		List	dead = new ArrayList();
+		
+		synchronized( magazine_owners ){
+			
+			Iterator	it = magazine_owners.iterator();
+			
+			while( it.hasNext()){
+				
+				threadMagazines	tm = (threadMagazines)it.next();
+				
+				Thread	owner = (Thread)tm.owner.get();
+				
+				if ( owner == null || !owner.isAlive()){
+					
+					it.remove();
+					
+					dead.add( tm );
+				}
+			}
+		}
+		
+		if ( discard ){
+			
+			return;
+		}
+		
+		for (int i=0;i<dead.size();i++){
+			
+			threadMagazines	tm = (threadMagazines)dead.get(i);
+			
+			tm.flushOps( magazine_ops );
+			
+			for (int j=0;j<depots.length;j++){
+				
+				returnToPool( depots[j].size, tm.loaded[j] );
+				returnToPool( depots[j].size, tm.previous[j] );
+			}
+		}
+	}
+	
 	protected int
 	getSliceIndex( 
 		int	_length )
@@ -1013,6 +1467,127 @@ DirectByteBufferPool
 		}
 	}
 	
+	protected static class
+	magazine
+	{
+		private final Object[]	items;
+		private int				count;
+		
+		protected
+		magazine(
+			int		_capacity )
+		{
+			items	= new Object[_capacity];
+		}
+	}
+	
+	protected static class
+	magazineDepot
+	{
+		private final int		size;
+		private final int		magazine_capacity;
+		private final int		max_full;
+		
+		private final ConcurrentLinkedQueue	full		= new ConcurrentLinkedQueue();
+		private final AtomicInteger			full_count	= new AtomicInteger();
+		
+		protected
+		magazineDepot(
+			int		_size )
+		{
+			size				= _size;
+			magazine_capacity	= Math.max( 2, Math.min( MAGAZINE_MAX_COUNT, MAGAZINE_BYTES / _size ));
+			max_full			= Math.max( 1, DEPOT_BYTES / ( magazine_capacity * _size ));
+		}
+		
+		protected magazine
+		newMagazine()
+		{
+			return( new magazine( magazine_capacity ));
+		}
+		
+		protected magazine
+		takeFull()
+		{
+			magazine	mag = (magazine)full.poll();
+			
+			if ( mag != null ){
+				
+				full_count.decrementAndGet();
+			}
+			
+			return( mag );
+		}
+		
+		protected boolean
+		putFull(
+			magazine	mag )
+		{
+			if ( full_count.incrementAndGet() > max_full ){
+				
+				full_count.decrementAndGet();
+				
+				return( false );
+			}
+			
+			full.offer( mag );
+			
+			return( true );
+		}
+		
+		protected long
+		getBytes()
+		{
+			return( (long)full_count.get() * magazine_capacity * size );
+		}
+	}
+	
+	protected static class
+	threadMagazines
+	{
+		private final magazine[]	loaded;
+		private final magazine[]	previous;
+		
+		private final WeakReference	owner	= new WeakReference( Thread.currentThread());
+		
+			// batched into the shared counter every MAGAZINE_OPS_BATCH ops and on depot exchanges
+			// to keep the fast path local
+		
+		private long				ops;
+		
+			// the flush_generation this thread last emptied its magazines for
+		
+		private int					generation;
+		
+		protected
+		threadMagazines(
+			magazineDepot[]	depots,
+			int				_generation )
+		{
+			loaded		= new magazine[depots.length];
+			previous	= new magazine[depots.length];
+			generation	= _generation;
+			
+			for (int i=0;i<depots.length;i++){
+				
+				loaded[i]	= depots[i].newMagazine();
+				previous[i]	= depots[i].newMagazine();
+			}
+		}
+		
+		protected void
+		flushOps(
+			AtomicLong	counter )
+		{
+			if ( ops > 0 ){
+				
+				counter.addAndGet( ops );
+				
+				ops = 0;
+			}
+		}
+	}
+	
 	protected static class
 	sliceDBB
 		extends DirectByteBuffer
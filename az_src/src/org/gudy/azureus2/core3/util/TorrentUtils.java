@@ -73,6 +73,8 @@ TorrentUtils
 	
 	private static boolean bSaveTorrentBackup;
 	
+	private static boolean bPieceHashSidecar;
+	
 	static {
 		COConfigurationManager.addAndFireParameterListener("Save Torrent Backup",
 				new ParameterListener() {
@@ -81,6 +83,13 @@ TorrentUtils
 					}
 				});
 		
+		COConfigurationManager.addAndFireParameterListener("Torrent Piece Hash Sidecar",
+				new ParameterListener() {
+					public void parameterChanged(String parameterName) {
+						bPieceHashSidecar = COConfigurationManager.getBooleanParameter(parameterName);
+					}
+				});
+		
 		created_torrents = COConfigurationManager.getListParameter( "my.created.torrents", new ArrayList());
 		
 		created_torrents_set	= new HashSet();
@@ -125,6 +134,43 @@ TorrentUtils
 		return((ExtendedTorrent)readFromFile( file, true, force_initial_discard ));
 	}
 	
+		/**
+		 * As above but, if enabled, discarded piece hashes are swapped for a memory mapping of 
+		 * a sidecar file ("<file>.pieces") rather than re-read from the torrent when next needed.
+		 * Only use this for files that Azureus owns (e.g. download state) as the sidecar is 
+		 * created alongside them
+		 */
+	
+	public static ExtendedTorrent
+	readDelegateFromFile(
+		File		file,
+		boolean		force_initial_discard,
+		boolean		use_piece_hash_sidecar )
+		
+		throws TOTorrentException
+	{
+		torrentDelegate res = (torrentDelegate)readFromFile( file, true, false );
+		
+		if ( use_piece_hash_sidecar ){
+			
+			res.setPieceHashSidecar( getPieceHashSidecar( file ));
+		}
+		
+		if ( force_initial_discard ){
+			
+			res.discardPieces( SystemTime.getCurrentTime(), true );
+		}
+		
+		return( res );
+	}
+	
+	private static File
+	getPieceHashSidecar(
+		File		torrent_file )
+	{
+		return( new File( torrent_file.getParentFile(), torrent_file.getName() + ".pieces" ));
+	}
+	
 	public static TOTorrent
 	readFromFile(
 		File		file,
@@ -388,6 +434,11 @@ TorrentUtils
 		
 	    	new File( str + ".bak" ).delete();
 	    	
+	    		// may fail while still mapped on some platforms, a stale sidecar is detected
+	    		// and rewritten if the torrent ever comes back
+	    	
+	    	getPieceHashSidecar( new File( str )).delete();
+	    	
 	    }finally{
 	    	
 	    	torrent.getMonitor().exit();
@@ -1374,6 +1425,15 @@ TorrentUtils
 		    		
 			throws TOTorrentException;
 		
+			/**
+			 * same as peekPieces() != null without building the per-piece arrays
+			 */
+		
+		public boolean
+		peekHasPieces()
+		
+			throws TOTorrentException;
+		
 		public void
 		setDiscardFluff(
 			boolean	discard );
@@ -1386,6 +1446,7 @@ TorrentUtils
 	{
 		private TOTorrent		delegate;
 		private File			file;
+		private File			piece_hash_sidecar;
 		
 		private boolean			fluff_dirty;
 		
@@ -1518,6 +1579,13 @@ TorrentUtils
 			return( delegate.getAnnounceURLGroup());
 		}
 		 
+		protected void
+		setPieceHashSidecar(
+			File		_sidecar )
+		{
+			piece_hash_sidecar	= _sidecar;
+		}
+		
 		protected void
 		discardPieces(
 			long		now,
@@ -1532,15 +1600,17 @@ TorrentUtils
 			}else{
 			
 				try{
+					TOTorrentPieceHashes	current = delegate.getPieceHashes();
+					
 					if(		( now - last_pieces_read_time > PIECE_HASH_TIMEOUT || force ) &&
-							delegate.getPieces() != null ){
+							current != null && !current.isMapped()){
 						
 						try{
 							getMonitor().enter();
 							
 							// System.out.println( "clearing pieces for '" + new String(getName()) + "'");
 
-							delegate.setPieces( null );
+							delegate.setPieceHashes( mapPieceHashSidecar( current ));
 						}finally{
 							
 							getMonitor().exit();
@@ -1553,12 +1623,59 @@ TorrentUtils
 			}
 		}
 		
+			/**
+			 * @param current	the in-memory hashes, used to (re)create the sidecar if required. 
+			 * @return 			the mapped hashes, null if not available
+			 */
+		
+		protected TOTorrentPieceHashes
+		mapPieceHashSidecar(
+			TOTorrentPieceHashes	current )
+		{
+			if ( piece_hash_sidecar == null || !bPieceHashSidecar ){
+				
+				return( null );
+			}
+			
+			try{
+				byte[]	hash = delegate.getHash();
+				
+				TOTorrentPieceHashes	mapped = TOTorrentPieceHashes.mapSidecar( piece_hash_sidecar, hash );
+				
+				if ( 	current != null && 
+						( mapped == null || mapped.getNumberOfPieces() != current.getNumberOfPieces())){
+					
+					current.writeSidecar( piece_hash_sidecar, hash );
+					
+					mapped = TOTorrentPieceHashes.mapSidecar( piece_hash_sidecar, hash );
+				}
+				
+				return( mapped );
+				
+			}catch( Throwable e ){
+				
+				Debug.out( "Failed to map piece hashes from " + piece_hash_sidecar, e );
+				
+				return( null );
+			}
+		}
+		
 		public byte[][]
 		getPieces()
 		
 			throws TOTorrentException
 		{
-			byte[][]	res = delegate.getPieces();
+			TOTorrentPieceHashes	res = getPieceHashes();
+			
+			return( res==null?null:res.toArrays());
+		}
+		
+		public TOTorrentPieceHashes
+		getPieceHashes()
+		
+			throws TOTorrentException
+		{
+			TOTorrentPieceHashes	res = delegate.getPieceHashes();
 			
 			last_pieces_read_time	= SystemTime.getCurrentTime();
 		
@@ -1571,7 +1688,7 @@ TorrentUtils
 
 			   		restoreState( true, false );
 			   		
-			   		res = delegate.getPieces();
+			   		res = delegate.getPieceHashes();
 			   		
 				}finally{
 					
@@ -1596,7 +1713,7 @@ TorrentUtils
 		
 			throws TOTorrentException
 		{
-	   		boolean	had_pieces = delegate.getPieces() != null;
+	   		boolean	had_pieces = delegate.getPieceHashes() != null;
 	   		
 	   		boolean	had_fluff = true; 
 	   		
@@ -1608,6 +1725,19 @@ TorrentUtils
 	   		if ( had_pieces ){
 	   			
 	   			do_pieces = false;
+	   			
+	   		}else if ( do_pieces ){
+	   			
+	   				// cheap recovery from an existing sidecar if there is one
+	   			
+	   			TOTorrentPieceHashes	mapped = mapPieceHashSidecar( null );
+	   			
+	   			if ( mapped != null && mapped.getNumberOfPieces() >= delegate.getNumberOfPieces()){
+	   				
+	   				delegate.setPieceHashes( mapped );
+	   				
+	   				do_pieces = false;
+	   			}
 	   		}
 	   		
 	   		if ( had_fluff ){
@@ -1621,9 +1751,7 @@ TorrentUtils
 				
 		   		if ( do_pieces ){
 		   		
-		   			byte[][] res	= temp.getPieces();
-				
-		   			delegate.setPieces( res );
+		   			delegate.setPieceHashes( temp.getPieceHashes());
 		   		}
 		   		
 		   		if ( do_fluff ){
@@ -1656,7 +1784,21 @@ TorrentUtils
 		
 			throws TOTorrentException
 		{
-			return( delegate.getPieces());
+				// mapped hashes don't occupy the heap so count as discarded
+			
+			TOTorrentPieceHashes	res = delegate.getPieceHashes();
+			
+			return( res==null||res.isMapped()?null:res.toArrays());
+		}
+		
+		public boolean
+		peekHasPieces()
+		
+			throws TOTorrentException
+		{
+			TOTorrentPieceHashes	res = delegate.getPieceHashes();
+			
+			return( res!=null&&!res.isMapped());
 		}
 		
 		public void
@@ -1668,6 +1810,15 @@ TorrentUtils
 			throw( new TOTorrentException( "Unsupported Operation", TOTorrentException.RT_WRITE_FAILS ));
 		}
 		
+		public void
+		setPieceHashes(
+			TOTorrentPieceHashes	hashes )
+		
+			throws TOTorrentException
+		{
+			throw( new TOTorrentException( "Unsupported Operation", TOTorrentException.RT_WRITE_FAILS ));
+		}
+		
 		public long
 		getPieceLength()
 		{
@@ -0,0 +1,73 @@
+package com.aelitis.azureus.core.dht.control.impl;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.aelitis.azureus.core.dht.transport.DHTTransportContact;
+
+import edu.washington.cs.oneswarm.test.util.OneSwarmTestBase;
+import edu.washington.cs.oneswarm.test.util.TestUtils;
+
+public class DHTControlLookupTunerTest extends OneSwarmTestBase {
+
+    @Test
+    public void testConcurrencyFollowsLoss() throws Exception {
+        DHTControlLookupTuner tuner = new DHTControlLookupTuner();
+        Assert.assertEquals(5, tuner.getConcurrency(5));
+
+        for (int i = 0; i < 20; i++) {
+            tuner.recordFailure();
+        }
+        int lossy = tuner.getConcurrency(5);
+        Assert.assertTrue(lossy > 5);
+        Assert.assertTrue(lossy <= 15);
+
+        for (int i = 0; i < 100; i++) {
+            tuner.recordReply(100);
+        }
+        Assert.assertEquals(5, tuner.getConcurrency(5));
+        Assert.assertEquals(100, tuner.getRTT());
+        Assert.assertEquals(120, tuner.getRequestCount());
+    }
+
+    @Test
+    public void testStallTimeTracksRTT() throws Exception {
+        DHTControlLookupTuner tuner = new DHTControlLookupTuner();
+        for (int i = 0; i < 50; i++) {
+            tuner.recordReply(400);
+        }
+        Assert.assertTrue(tuner.getStallTime() >= 400);
+        Assert.assertTrue(tuner.getStallTime() < 1000);
+    }
+
+    @Test
+    public void testClosestCacheByPrefix() throws Exception {
+        DHTControlLookupTuner tuner = new DHTControlLookupTuner();
+        DHTTransportContact contact = (DHTTransportContact) Proxy.newProxyInstance(getClass()
+                .getClassLoader(), new Class[] { DHTTransportContact.class },
+                new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        return null;
+                    }
+                });
+
+        tuner.cacheClosest(new byte[] { 1, 2, 3 }, Collections.singletonList(contact));
+
+        List<DHTTransportContact> cached = tuner.getCachedClosest(new byte[] { 1, 2, 99 });
+        Assert.assertNotNull(cached);
+        Assert.assertSame(contact, cached.get(0));
+        Assert.assertNull(tuner.getCachedClosest(new byte[] { 1, 3, 3 }));
+        Assert.assertEquals(1, tuner.getCacheHitCount());
+    }
+
+    /** Boilerplate code for running as executable. */
+    public static void main(String[] args) throws Exception {
+        TestUtils.swtCompatibleTestRunner(DHTControlLookupTunerTest.class);
+    }
+}
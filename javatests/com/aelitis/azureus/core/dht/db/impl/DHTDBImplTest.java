@@ -0,0 +1,260 @@
+package com.aelitis.azureus.core.dht.db.impl;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.gudy.azureus2.core3.util.HashWrapper;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.aelitis.azureus.core.dht.DHT;
+import com.aelitis.azureus.core.dht.DHTLogger;
+import com.aelitis.azureus.core.dht.DHTStorageAdapter;
+import com.aelitis.azureus.core.dht.DHTStorageKey;
+import com.aelitis.azureus.core.dht.control.DHTControl;
+import com.aelitis.azureus.core.dht.db.DHTDBLookupResult;
+import com.aelitis.azureus.core.dht.router.DHTRouter;
+import com.aelitis.azureus.core.dht.transport.DHTTransport;
+import com.aelitis.azureus.core.dht.transport.DHTTransportContact;
+import com.aelitis.azureus.core.dht.transport.DHTTransportValue;
+
+import edu.washington.cs.oneswarm.test.util.OneSwarmTestBase;
+import edu.washington.cs.oneswarm.test.util.TestUtils;
+
+public class DHTDBImplTest extends OneSwarmTestBase {
+
+    private static final byte[] LOCAL_ID = id(0x7f, 0);
+    private static final byte[] OTHER_ID = id(0x7e, 0);
+
+    private DHTTransportContact local;
+    private DHTTransportContact other;
+    private DHTDBImpl db;
+
+    @Before
+    public void setUp() {
+        local = contact(LOCAL_ID, 1);
+        other = contact(OTHER_ID, 2);
+
+        final DHTRouter router = stub(DHTRouter.class, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if (method.getName().equals("isID")) {
+                    return Arrays.equals((byte[]) args[0], LOCAL_ID);
+                }
+                return null;
+            }
+        });
+        final DHTTransport transport = stub(DHTTransport.class, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                return method.getName().equals("getLocalContact") ? local : null;
+            }
+        });
+        DHTControl control = stub(DHTControl.class, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                String name = method.getName();
+                if (name.equals("getRouter")) {
+                    return router;
+                }
+                if (name.equals("getTransport")) {
+                    return transport;
+                }
+                if (name.equals("getClosestKContactsList")) {
+                    // we're the primary replica for keys with an even last byte
+                    byte[] key = (byte[]) args[0];
+                    List<DHTTransportContact> closest = new ArrayList<DHTTransportContact>();
+                    if (key[key.length - 1] % 2 == 0) {
+                        closest.add(local);
+                        closest.add(other);
+                    } else {
+                        closest.add(other);
+                        closest.add(local);
+                    }
+                    return closest;
+                }
+                if (name.equals("computeAndCompareDistances")) {
+                    return Integer.valueOf(0);
+                }
+                return null;
+            }
+        });
+        DHTLogger logger = stub(DHTLogger.class, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                return method.getReturnType() == boolean.class ? Boolean.FALSE : null;
+            }
+        });
+
+        // the storage size is only accounted for keys the adapter knows about
+        final DHTStorageKey storageKey = stub(DHTStorageKey.class, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if (method.getName().equals("getDiversificationType")) {
+                    return DHT.DT_NONE;
+                }
+                return defaultValue(method.getReturnType());
+            }
+        });
+        DHTStorageAdapter adapter = stub(DHTStorageAdapter.class, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if (method.getName().equals("keyCreated")) {
+                    return storageKey;
+                }
+                return defaultValue(method.getReturnType());
+            }
+        });
+
+        db = new DHTDBImpl(adapter, 60 * 60 * 1000, 30 * 60 * 1000, (byte) 0, logger);
+        db.setControl(control);
+    }
+
+    @Test
+    public void testShardRouting() throws Exception {
+        // shards are picked on the top bits of the key
+        Assert.assertSame(db.getShard(id(0x10, 1)), db.getShard(id(0x1f, 2)));
+        Assert.assertNotSame(db.getShard(id(0x10, 1)), db.getShard(id(0x20, 1)));
+        Assert.assertNotSame(db.getShard(id(0x00, 1)), db.getShard(id(0xf0, 1)));
+
+        List<HashWrapper> keys = new ArrayList<HashWrapper>();
+        for (int i = 0; i < 256; i += 8) {
+            HashWrapper key = new HashWrapper(id(i, i));
+            keys.add(key);
+            Assert.assertEquals(DHT.DT_NONE, store(key, 16));
+        }
+        Assert.assertEquals(keys.size(), db.getKeyCount());
+
+        for (HashWrapper key : keys) {
+            Assert.assertTrue(db.hasKey(key));
+            DHTDBLookupResult result = db.get(other, key, 0, (byte) 0, false);
+            Assert.assertNotNull(result);
+            Assert.assertEquals(1, result.getValues().length);
+        }
+        Assert.assertFalse(db.hasKey(new HashWrapper(id(0x11, 3))));
+    }
+
+    @Test
+    public void testStoreOverBudgetLeavesEvictionToTimer() throws Exception {
+        int stored = fill();
+
+        // the store that went over is refused and nothing is evicted on the caller's thread
+        Assert.assertEquals(DHT.DT_SIZE, store(new HashWrapper(id(0x40, 1, 0xffff)), 1024));
+        Assert.assertEquals(0, db.getEvictedKeyCount());
+        Assert.assertEquals(stored, db.getKeyCount());
+
+        db.evict();
+
+        Assert.assertTrue(db.getEvictedKeyCount() > 0);
+        Assert.assertEquals(stored - db.getEvictedKeyCount(), db.getKeyCount());
+        Assert.assertTrue(db.getStorageSize() < 4 * 1024 * 1024);
+        Assert.assertEquals(DHT.DT_NONE, store(new HashWrapper(id(0x40, 1, 0xffff)), 1024));
+    }
+
+    @Test
+    public void testEvictionKeepsPrimaryReplicaKeys() throws Exception {
+        int stored = fill();
+        db.evict();
+
+        int primary = 0;
+        for (int i = 0; i < stored; i++) {
+            HashWrapper key = new HashWrapper(id(i, 0, i));
+            if (i % 2 == 0) {
+                Assert.assertTrue(db.hasKey(key));
+                primary++;
+            }
+        }
+        // only keys we're not the primary replica for were dropped
+        Assert.assertTrue(db.getEvictedKeyCount() <= stored - primary);
+    }
+
+    /**
+     * Stores 1K values under distinct keys until the database refuses one.
+     *
+     * @return the number of keys stored
+     */
+    private int fill() {
+        for (int i = 0;; i++) {
+            if (store(new HashWrapper(id(i, 0, i)), 1024) == DHT.DT_SIZE) {
+                return i;
+            }
+        }
+    }
+
+    /**
+     * Stores a value cached for its originator by the other contact, rather than sent by the
+     * originator itself, so the per-IP flood limits don't apply.
+     */
+    private byte store(HashWrapper key, int size) {
+        byte[] bytes = key.getBytes();
+        DHTTransportContact originator = contact(id(0x01, bytes[0], key.hashCode()),
+                (bytes[18] & 0xff) + 1);
+        DHTTransportValue value = new DHTDBValueImpl(System.currentTimeMillis(), new byte[size],
+                1, originator, other, false, 0, 0, DHT.REP_FACT_DEFAULT);
+        return db.store(other, key, new DHTTransportValue[] { value });
+    }
+
+    /** A 20 byte id with the given leading byte and the given int in its last bytes. */
+    private static byte[] id(int first, int... rest) {
+        byte[] id = new byte[20];
+        id[0] = (byte) first;
+        int last = rest[rest.length - 1];
+        id[16] = (byte) (last >> 24);
+        id[17] = (byte) (last >> 16);
+        id[18] = (byte) (last >> 8);
+        id[19] = (byte) last;
+        if (rest.length > 1) {
+            id[1] = (byte) rest[0];
+        }
+        return id;
+    }
+
+    private static DHTTransportContact contact(final byte[] id, final int host) {
+        final InetSocketAddress address = new InetSocketAddress("10.0." + (host >> 8) + "."
+                + (host & 0xff), 6881);
+        return stub(DHTTransportContact.class, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) throws Exception {
+                String name = method.getName();
+                if (name.equals("getID")) {
+                    return id;
+                }
+                if (name.equals("getAddress") || name.equals("getExternalAddress")) {
+                    return address;
+                }
+                if (name.equals("equals")) {
+                    return proxy == args[0];
+                }
+                if (name.equals("hashCode")) {
+                    return System.identityHashCode(proxy);
+                }
+                return defaultValue(method.getReturnType());
+            }
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T stub(Class<T> type, InvocationHandler handler) {
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class[] { type }, handler);
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if (type == boolean.class) {
+            return Boolean.FALSE;
+        }
+        if (type == byte.class) {
+            return Byte.valueOf((byte) 0);
+        }
+        if (type == int.class) {
+            return Integer.valueOf(0);
+        }
+        if (type == long.class) {
+            return Long.valueOf(0);
+        }
+        return null;
+    }
+
+    /** Boilerplate code for running as executable. */
+    public static void main(String[] args) throws Exception {
+        TestUtils.swtCompatibleTestRunner(DHTDBImplTest.class);
+    }
+}
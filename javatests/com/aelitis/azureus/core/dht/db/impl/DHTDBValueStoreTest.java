@@ -0,0 +1,214 @@
+package com.aelitis.azureus.core.dht.db.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Map;
+
+import org.gudy.azureus2.core3.util.HashWrapper;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.aelitis.azureus.core.dht.DHT;
+import com.aelitis.azureus.core.dht.transport.DHTTransport;
+import com.aelitis.azureus.core.dht.transport.DHTTransportContact;
+
+import edu.washington.cs.oneswarm.test.util.OneSwarmTestBase;
+import edu.washington.cs.oneswarm.test.util.TestUtils;
+
+public class DHTDBValueStoreTest extends OneSwarmTestBase {
+
+    private static final DHTDBValueStore.valueFilter ALL = new DHTDBValueStore.valueFilter() {
+        public boolean accept(DHTDBValueImpl value) {
+            return true;
+        }
+    };
+
+    /** Contacts export as their 20 byte id. */
+    private static final DHTTransport TRANSPORT = (DHTTransport) Proxy.newProxyInstance(
+            DHTTransport.class.getClassLoader(), new Class[] { DHTTransport.class },
+            new InvocationHandler() {
+                public Object invoke(Object proxy, Method method, Object[] args)
+                        throws Exception {
+                    if (method.getName().equals("importContact") && args.length == 1
+                            && args[0] instanceof DataInputStream) {
+                        byte[] id = new byte[20];
+                        ((DataInputStream) args[0]).readFully(id);
+                        return contact(id);
+                    }
+                    return null;
+                }
+            });
+
+    private File dir;
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = File.createTempFile("DHTDBValueStoreTest", "");
+        dir.delete();
+        dir.mkdirs();
+        file = new File(dir, "values.dat");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void testTornTail() throws Exception {
+        DHTDBValueStore store = new DHTDBValueStore(file);
+        store.logPut(key(1), value(1, "one"), false);
+        store.logPut(key(2), value(2, "two"), false);
+        store.flush();
+        long good = file.length();
+        store.logPut(key(3), value(3, "three"), false);
+        store.close();
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(file.length() - 3);
+        raf.close();
+
+        // the torn put is dropped and cut off the end of the file
+        DHTDBValueStore reloaded = new DHTDBValueStore(file);
+        Map<HashWrapper, Map<HashWrapper, DHTDBValueImpl>> values = reloaded.load(TRANSPORT, ALL);
+        Assert.assertEquals(2, values.size());
+        assertValue(values, 1, "one");
+        assertValue(values, 2, "two");
+        Assert.assertEquals(good, file.length());
+
+        // appends carry on after the last good record
+        reloaded.logPut(key(4), value(4, "four"), false);
+        reloaded.close();
+        values = new DHTDBValueStore(file).load(TRANSPORT, ALL);
+        Assert.assertEquals(3, values.size());
+        assertValue(values, 4, "four");
+    }
+
+    @Test
+    public void testCorruptMiddleRecord() throws Exception {
+        DHTDBValueStore store = new DHTDBValueStore(file);
+        store.logPut(key(1), value(1, "one"), false);
+        store.flush();
+        long good = file.length();
+        store.logPut(key(2), value(2, "two"), false);
+        store.flush();
+        long second = file.length();
+        store.logPut(key(3), value(3, "three"), false);
+        store.close();
+
+        // flip a byte in the second record's payload, past its length and CRC
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        long offset = good + 8 + (second - good - 8) / 2;
+        raf.seek(offset);
+        int b = raf.read();
+        raf.seek(offset);
+        raf.write(b ^ 0xff);
+        raf.close();
+
+        // everything from the damaged record on is dropped, nothing after it can be trusted
+        Map<HashWrapper, Map<HashWrapper, DHTDBValueImpl>> values = new DHTDBValueStore(file)
+                .load(TRANSPORT, ALL);
+        Assert.assertEquals(1, values.size());
+        assertValue(values, 1, "one");
+        Assert.assertEquals(good, file.length());
+    }
+
+    @Test
+    public void testCompactionThenReload() throws Exception {
+        DHTDBValueStore store = new DHTDBValueStore(file);
+        for (int i = 0; i < 10; i++) {
+            store.logPut(key(i), value(i, "v" + i), false);
+        }
+        for (int i = 2; i < 10; i++) {
+            store.logDelete(key(i), value(i, "v" + i));
+        }
+        store.logPut(key(1), value(1, "replaced"), true);
+        store.flush();
+        long before = file.length();
+
+        // the caller snapshots the live values, anything logged meanwhile goes after them
+        ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(snapshot);
+        DHTDBValueStore.writePut(dos, key(0), value(0, "v0"));
+        DHTDBValueStore.writePut(dos, key(1), value(1, "replaced"));
+        dos.flush();
+        store.startCompaction(2);
+        store.logPut(key(20), value(20, "during"), false);
+        store.completeCompaction(snapshot.toByteArray());
+        store.logPut(key(21), value(21, "after"), false);
+        store.close();
+
+        Assert.assertTrue(file.length() < before);
+        Assert.assertFalse(new File(dir, "values.dat.saving").exists());
+
+        Map<HashWrapper, Map<HashWrapper, DHTDBValueImpl>> values = new DHTDBValueStore(file)
+                .load(TRANSPORT, ALL);
+        Assert.assertEquals(4, values.size());
+        assertValue(values, 0, "v0");
+        assertValue(values, 1, "replaced");
+        assertValue(values, 20, "during");
+        assertValue(values, 21, "after");
+    }
+
+    private static void assertValue(Map<HashWrapper, Map<HashWrapper, DHTDBValueImpl>> values,
+            int key, String expected) {
+        Map<HashWrapper, DHTDBValueImpl> byOriginator = values.get(key(key));
+        Assert.assertNotNull("key " + key, byOriginator);
+        Assert.assertEquals(1, byOriginator.size());
+        DHTDBValueImpl value = byOriginator.values().iterator().next();
+        Assert.assertEquals(expected, new String(value.getValue()));
+        Assert.assertArrayEquals(id(key), value.getOriginator().getID());
+    }
+
+    private static HashWrapper key(int i) {
+        byte[] key = id(i);
+        key[0] = (byte) 0xee;
+        return new HashWrapper(key);
+    }
+
+    private static DHTDBValueImpl value(int i, String value) {
+        DHTTransportContact contact = contact(id(i));
+        return new DHTDBValueImpl(1000L * i, value.getBytes(), i, contact, contact, false, 0, 0,
+                DHT.REP_FACT_DEFAULT);
+    }
+
+    private static byte[] id(int i) {
+        byte[] id = new byte[20];
+        id[19] = (byte) i;
+        return id;
+    }
+
+    private static DHTTransportContact contact(final byte[] id) {
+        return (DHTTransportContact) Proxy.newProxyInstance(DHTTransportContact.class
+                .getClassLoader(), new Class[] { DHTTransportContact.class },
+                new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args)
+                            throws Exception {
+                        if (method.getName().equals("getID")) {
+                            return id;
+                        }
+                        if (method.getName().equals("exportContact")) {
+                            ((DataOutputStream) args[0]).write(id);
+                        }
+                        return null;
+                    }
+                });
+    }
+
+    /** Boilerplate code for running as executable. */
+    public static void main(String[] args) throws Exception {
+        TestUtils.swtCompatibleTestRunner(DHTDBValueStoreTest.class);
+    }
+}
@@ -0,0 +1,131 @@
+package com.aelitis.azureus.core.networkmanager.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.gudy.azureus2.core3.util.DirectByteBuffer;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.aelitis.azureus.core.networkmanager.RawMessage;
+import com.aelitis.azureus.core.networkmanager.Transport;
+import com.aelitis.azureus.core.peermanager.messaging.Message;
+import com.aelitis.azureus.core.peermanager.messaging.MessageStreamEncoder;
+
+import edu.washington.cs.oneswarm.test.util.OneSwarmTestBase;
+import edu.washington.cs.oneswarm.test.util.TestUtils;
+
+public class OutgoingMessageQueueImplTest extends OneSwarmTestBase {
+
+    private final Map<Message, Integer> priorities = new HashMap<Message, Integer>();
+    private final ByteArrayOutputStream written = new ByteArrayOutputStream();
+    private OutgoingMessageQueueImpl queue;
+
+    /** A message whose payload is its single character id. */
+    private Message message(final String id, int priority) {
+        Message msg = (Message) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class[] { Message.class }, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        String name = method.getName();
+                        if (name.equals("getID") || name.equals("getDescription")
+                                || name.equals("toString")) {
+                            return id;
+                        } else if (name.equals("getType")) {
+                            return Message.TYPE_PROTOCOL_PAYLOAD;
+                        } else if (name.equals("equals")) {
+                            return proxy == args[0];
+                        } else if (name.equals("hashCode")) {
+                            return System.identityHashCode(proxy);
+                        }
+                        return null;
+                    }
+                });
+        priorities.put(msg, priority);
+        return msg;
+    }
+
+    @Before
+    public void setUp() {
+        queue = new OutgoingMessageQueueImpl(new MessageStreamEncoder() {
+            public RawMessage[] encodeMessage(Message message) {
+                DirectByteBuffer payload = new DirectByteBuffer(ByteBuffer.wrap(message.getID()
+                        .getBytes()));
+                return new RawMessage[] { new RawMessageImpl(message,
+                        new DirectByteBuffer[] { payload }, priorities.get(message), false, null) };
+            }
+        });
+
+        // Writes everything it is given, apart from the limit applied by the queue.
+        queue.setTransport((Transport) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class[] { Transport.class }, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (!method.getName().equals("write")) {
+                            return null;
+                        }
+                        ByteBuffer[] buffers = (ByteBuffer[]) args[0];
+                        int offset = (Integer) args[1];
+                        int length = (Integer) args[2];
+                        long total = 0;
+                        for (int i = offset; i < offset + length; i++) {
+                            while (buffers[i].hasRemaining()) {
+                                written.write(buffers[i].get());
+                                total++;
+                            }
+                        }
+                        return total;
+                    }
+                }));
+    }
+
+    @Test
+    public void testPriorityOrder() throws Exception {
+        queue.addMessage(message("a", RawMessage.PRIORITY_LOW), false);
+        queue.addMessage(message("b", RawMessage.PRIORITY_NORMAL), false);
+        queue.addMessage(message("c", RawMessage.PRIORITY_LOW), false);
+        queue.addMessage(message("d", RawMessage.PRIORITY_HIGH), false);
+        Assert.assertEquals(4, queue.getTotalSize());
+
+        Assert.assertEquals(4, queue.deliverToTransport(100, false));
+        Assert.assertEquals("dbac", written.toString());
+        Assert.assertEquals(0, queue.getTotalSize());
+    }
+
+    @Test
+    public void testPartialWriteAndRemove() throws Exception {
+        // Enough to wrap and grow the ring several times.
+        StringBuilder expected = new StringBuilder();
+        Message remove = null;
+        for (int i = 0; i < 40; i++) {
+            String id = String.valueOf((char) ('A' + i));
+            Message msg = message(id, RawMessage.PRIORITY_NORMAL);
+            queue.addMessage(msg, true);
+            if (i == 30) {
+                remove = msg;
+            } else {
+                expected.append(id);
+            }
+            if (i % 3 == 2) {
+                queue.deliverToTransport(2, true);
+            }
+        }
+        Assert.assertTrue(queue.removeMessage(remove, true));
+        while (queue.getTotalSize() > 0) {
+            queue.deliverToTransport(3, true);
+        }
+        queue.doListenerNotifications();
+
+        Assert.assertEquals(expected.toString(), written.toString());
+        Assert.assertFalse(queue.hasUrgentMessage());
+    }
+
+    /** Boilerplate code for running as executable. */
+    public static void main(String[] args) throws Exception {
+        TestUtils.swtCompatibleTestRunner(OutgoingMessageQueueImplTest.class);
+    }
+}
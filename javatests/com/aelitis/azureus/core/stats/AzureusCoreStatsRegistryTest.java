@@ -0,0 +1,114 @@
+package com.aelitis.azureus.core.stats;
+
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import edu.washington.cs.oneswarm.test.util.OneSwarmTestBase;
+import edu.washington.cs.oneswarm.test.util.TestUtils;
+
+public class AzureusCoreStatsRegistryTest extends OneSwarmTestBase {
+
+    @Test
+    public void testBucketsCoverValues() throws Exception {
+        Random random = new Random(1);
+        for (int i = 0; i < 100000; i++) {
+            long value = random.nextLong() >>> (1 + random.nextInt(63));
+            int bucket = AzureusCoreStatsHistogram.getBucket(value);
+            long upper = AzureusCoreStatsHistogram.getBucketUpperBound(bucket);
+            Assert.assertTrue(value + " above bucket bound " + upper, value <= upper);
+            // within 12.5%
+            Assert.assertTrue(value + " far below bucket bound " + upper,
+                    upper - value <= value / 8);
+            if (bucket > 0) {
+                Assert.assertTrue(value > AzureusCoreStatsHistogram
+                        .getBucketUpperBound(bucket - 1));
+            }
+        }
+        Assert.assertEquals(Long.MAX_VALUE, AzureusCoreStatsHistogram
+                .getBucketUpperBound(AzureusCoreStatsHistogram.getBucket(Long.MAX_VALUE)));
+    }
+
+    @Test
+    public void testQuantiles() throws Exception {
+        AzureusCoreStatsHistogram histogram = new AzureusCoreStatsHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i);
+        }
+        AzureusCoreStatsHistogram.snapshot snapshot = histogram.getSnapshot();
+        Assert.assertEquals(1000, snapshot.getCount());
+        Assert.assertEquals(500500, snapshot.getSum());
+        Assert.assertEquals(1000, snapshot.getMax());
+        assertNear(500, snapshot.getValueAtQuantile(0.5));
+        assertNear(990, snapshot.getValueAtQuantile(0.99));
+        Assert.assertEquals(1000, snapshot.getValueAtQuantile(1.0));
+        Assert.assertEquals(0, new AzureusCoreStatsHistogram().getSnapshot().getValueAtQuantile(
+                0.5));
+    }
+
+    @Test
+    public void testConcurrentCounter() throws Exception {
+        final AzureusCoreStatsCounter counter = new AzureusCoreStatsCounter();
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                public void run() {
+                    for (int i = 0; i < 100000; i++) {
+                        counter.increment();
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Assert.assertEquals(800000, counter.get());
+    }
+
+    @Test
+    public void testExport() throws Exception {
+        AzureusCoreStatsRegistry.getCounter("test.export.count").add(3);
+        AzureusCoreStatsRegistry.registerGauge("test.export.length", new AzureusCoreStatsGauge() {
+            public long getValue() {
+                return 7;
+            }
+        });
+        AzureusCoreStatsRegistry.getHistogram("test.export.time.us").record(40);
+
+        Map stats = AzureusCoreStats.getStats(AzureusCoreStatsExporter.getPatterns("test.*"));
+        Assert.assertEquals(new Long(3), stats.get("test.export.count"));
+        Assert.assertEquals(new Long(7), stats.get("test.export.length"));
+        Assert.assertEquals(new Long(1), stats.get("test.export.time.us.count"));
+        Assert.assertEquals(new Long(40), stats.get("test.export.time.us.p99"));
+
+        String text = AzureusCoreStatsExporter.getPrometheusText(AzureusCoreStatsExporter
+                .getPatterns("test.*"));
+        Assert.assertTrue(text, text.contains("# TYPE oneswarm_test_export_count counter\n"
+                + "oneswarm_test_export_count 3\n"));
+        Assert.assertTrue(text, text.contains("# TYPE oneswarm_test_export_length gauge\n"
+                + "oneswarm_test_export_length 7\n"));
+        Assert.assertTrue(text, text.contains("# TYPE oneswarm_test_export_time_us summary\n"));
+        Assert.assertTrue(text,
+                text.contains("oneswarm_test_export_time_us{quantile=\"0.5\"} 40\n"));
+        Assert.assertTrue(text, text.contains("oneswarm_test_export_time_us_count 1\n"));
+        Assert.assertFalse(text, text.contains("p99"));
+
+        String json = AzureusCoreStatsExporter.getJSON(AzureusCoreStatsExporter
+                .getPatterns("test.*"));
+        Assert.assertTrue(json, json.startsWith("{\"test.export.count\":3,"));
+        Assert.assertTrue(json, json.contains("\"test.export.time.us.max\":40"));
+    }
+
+    private static void assertNear(long expected, long actual) {
+        Assert.assertTrue("expected ~" + expected + " got " + actual, actual >= expected
+                && actual <= expected + expected / 8);
+    }
+
+    /** Boilerplate code for running as executable. */
+    public static void main(String[] args) throws Exception {
+        TestUtils.swtCompatibleTestRunner(AzureusCoreStatsRegistryTest.class);
+    }
+}
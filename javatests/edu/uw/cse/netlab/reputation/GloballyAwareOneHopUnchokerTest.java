@@ -0,0 +1,221 @@
+package edu.uw.cse.netlab.reputation;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import org.gudy.azureus2.core3.config.COConfigurationManager;
+import org.gudy.azureus2.core3.peer.PEPeer;
+import org.gudy.azureus2.core3.peer.PEPeerStats;
+import org.gudy.azureus2.core3.peer.impl.transport.PEPeerTransportProtocol;
+import org.gudy.azureus2.core3.util.HashWrapper;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.washington.cs.oneswarm.test.util.OneSwarmTestBase;
+import edu.washington.cs.oneswarm.test.util.TestUtils;
+
+public class GloballyAwareOneHopUnchokerTest extends OneSwarmTestBase {
+
+    private static final HashWrapper SWARM_A = new HashWrapper(new byte[] { 1 });
+    private static final HashWrapper SWARM_B = new HashWrapper(new byte[] { 2 });
+
+    private GloballyAwareOneHopUnchoker unchoker;
+
+    @Before
+    public void setUp() {
+        COConfigurationManager.setParameter("Max.Peer.Connections.Total", 3);
+        COConfigurationManager.setParameter("oneswarm.disallow.ratio.less.than.one", true);
+        COConfigurationManager.setParameter("Max Upload Speed KBs", 0);
+
+        unchoker = new GloballyAwareOneHopUnchoker(false) {
+            @Override
+            double computeReputation(PEPeerTransportProtocol p) {
+                return ((FakePeer) p).standing;
+            }
+        };
+    }
+
+    @Test
+    public void testFirstReportUnchokesBestPeers() throws Exception {
+        FakePeer p5 = peer("p5", 5), p4 = peer("p4", 4), p3 = peer("p3", 3), p2 = peer("p2", 2);
+        unchoker.consider_peers(SWARM_A, list(p2, p5, p3, p4));
+
+        assertPeers(unchoker.unchokes_for_swarm(SWARM_A), p5, p4, p3);
+        assertPeers(unchoker.chokes_for_swarm(SWARM_A), p2);
+        Assert.assertEquals(4, unchoker.getCandidateCount());
+    }
+
+    @Test
+    public void testUnchokablePeersOnly() throws Exception {
+        FakePeer seed = peer("seed", 9), bored = peer("bored", 8), p5 = peer("p5", 5);
+        FakePeer poor = peer("poor", 0.5);
+        seed.seed = true;
+        bored.interested = false;
+        unchoker.consider_peers(SWARM_A, list(seed, bored, p5, poor));
+
+        // ratios below one aren't allowed, so the poor peer stays choked despite the free slots
+        assertPeers(unchoker.unchokes_for_swarm(SWARM_A), p5);
+        assertPeers(unchoker.chokes_for_swarm(SWARM_A), seed, bored, poor);
+    }
+
+    @Test
+    public void testIncrementalDecisionLimitsChanges() throws Exception {
+        FakePeer p5 = peer("p5", 5), p4 = peer("p4", 4), p3 = peer("p3", 3);
+        unchoker.consider_peers(SWARM_A, list(p5, p4, p3));
+        assertPeers(unchoker.unchokes_for_swarm(SWARM_A), p5, p4, p3);
+
+        Thread.sleep(GloballyAwareOneHopUnchoker.DECISION_INTERVAL_MS + 100);
+
+        FakePeer p10 = peer("p10", 10), p9 = peer("p9", 9), p8 = peer("p8", 8);
+        unchoker.consider_peers(SWARM_B, list(p10, p9, p8));
+
+        // two swaps use up the four changes allowed, worst unchoke dropped first
+        assertPeers(unchoker.unchokes_for_swarm(SWARM_B), p10, p9);
+        assertPeers(unchoker.unchokes_for_swarm(SWARM_A), p5);
+
+        unchoker.full_unchoke_recompute();
+        assertPeers(unchoker.unchokes_for_swarm(SWARM_B), p10, p9, p8);
+        assertPeers(unchoker.unchokes_for_swarm(SWARM_A));
+        assertPeers(unchoker.chokes_for_swarm(SWARM_A), p5, p4, p3);
+    }
+
+    @Test
+    public void testReportsWithinIntervalWaitForDecision() throws Exception {
+        FakePeer p5 = peer("p5", 5);
+        unchoker.consider_peers(SWARM_A, list(p5));
+
+        FakePeer p9 = peer("p9", 9);
+        unchoker.consider_peers(SWARM_B, list(p9));
+
+        // too soon after the last decision, the new swarm starts out choked
+        assertPeers(unchoker.unchokes_for_swarm(SWARM_B));
+        assertPeers(unchoker.chokes_for_swarm(SWARM_B), p9);
+
+        unchoker.full_unchoke_recompute();
+        assertPeers(unchoker.unchokes_for_swarm(SWARM_B), p9);
+        assertPeers(unchoker.unchokes_for_swarm(SWARM_A), p5);
+    }
+
+    @Test
+    public void testDepartedPeerIsDropped() throws Exception {
+        FakePeer p5 = peer("p5", 5), p4 = peer("p4", 4), p3 = peer("p3", 3), p2 = peer("p2", 2);
+        unchoker.consider_peers(SWARM_A, list(p5, p4, p3, p2));
+        assertPeers(unchoker.unchokes_for_swarm(SWARM_A), p5, p4, p3);
+
+        unchoker.consider_peers(SWARM_A, list(p4, p3, p2));
+        unchoker.full_unchoke_recompute();
+
+        Assert.assertEquals(3, unchoker.getCandidateCount());
+        assertPeers(unchoker.unchokes_for_swarm(SWARM_A), p4, p3, p2);
+        Assert.assertTrue(unchoker.getChurn() > 0);
+    }
+
+    private static ArrayList<PEPeerTransportProtocol> list(PEPeerTransportProtocol... peers) {
+        return new ArrayList<PEPeerTransportProtocol>(Arrays.asList(peers));
+    }
+
+    private static void assertPeers(List<?> actual, FakePeer... expected) {
+        Assert.assertEquals(new HashSet<Object>(Arrays.asList(expected)), new HashSet<Object>(
+                actual));
+        Assert.assertEquals(expected.length, actual.size());
+    }
+
+    /**
+     * Peers are allocated without running the transport's constructor, which needs a live peer
+     * manager and connection; only the calls the unchoker makes are overridden.
+     */
+    private static FakePeer peer(String name, double standing) throws Exception {
+        Field f = Class.forName("sun.misc.Unsafe").getDeclaredField("theUnsafe");
+        f.setAccessible(true);
+        Object unsafe = f.get(null);
+        Method allocate = unsafe.getClass().getMethod("allocateInstance", Class.class);
+        FakePeer peer = (FakePeer) allocate.invoke(unsafe, FakePeer.class);
+        peer.name = name;
+        peer.standing = standing;
+        peer.interested = true;
+        return peer;
+    }
+
+    static class FakePeer extends PEPeerTransportProtocol {
+        String name;
+        double standing;
+        boolean seed;
+        boolean interested;
+        double weight;
+
+        FakePeer() {
+            super(null, null, null, null);
+        }
+
+        @Override
+        public int getPeerState() {
+            return PEPeer.TRANSFERING;
+        }
+
+        @Override
+        public boolean isSeed() {
+            return seed;
+        }
+
+        @Override
+        public boolean isInterested() {
+            return interested;
+        }
+
+        @Override
+        public boolean isSnubbed() {
+            return false;
+        }
+
+        @Override
+        public boolean isLANLocal() {
+            return false;
+        }
+
+        @Override
+        public boolean isOneSwarm() {
+            return true;
+        }
+
+        @Override
+        public PEPeerStats getStats() {
+            return (PEPeerStats) Proxy.newProxyInstance(PEPeerStats.class.getClassLoader(),
+                    new Class[] { PEPeerStats.class }, new InvocationHandler() {
+                        public Object invoke(Object proxy, Method method, Object[] args) {
+                            return Long.valueOf(0);
+                        }
+                    });
+        }
+
+        @Override
+        public double getWeight() {
+            return weight;
+        }
+
+        @Override
+        public void setWeight(double weight) {
+            this.weight = weight;
+        }
+
+        @Override
+        public void setOptimisticUnchoke(boolean is_optimistic) {
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    /** Boilerplate code for running as executable. */
+    public static void main(String[] args) throws Exception {
+        TestUtils.swtCompatibleTestRunner(GloballyAwareOneHopUnchokerTest.class);
+    }
+}
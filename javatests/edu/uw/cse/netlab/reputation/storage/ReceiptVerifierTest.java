@@ -0,0 +1,57 @@
+package edu.uw.cse.netlab.reputation.storage;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import edu.uw.cse.netlab.utils.KeyManipulation;
+import edu.washington.cs.oneswarm.test.util.OneSwarmTestBase;
+import edu.washington.cs.oneswarm.test.util.TestUtils;
+
+public class ReceiptVerifierTest extends OneSwarmTestBase {
+
+    @Test
+    public void testVerifyWithCachedInstances() throws Exception {
+        KeyPairGenerator gen = KeyPairGenerator.getInstance("RSA");
+        gen.initialize(512);
+        KeyPair keys = gen.generateKeyPair();
+        byte[] data = "receipt".getBytes();
+
+        Signature s = Signature.getInstance("SHA1withRSA");
+        s.initSign(keys.getPrivate());
+        s.update(data);
+        byte[] sig = s.sign();
+
+        Assert.assertTrue(ReceiptVerifier.verify(keys.getPublic(), data, sig));
+        Assert.assertFalse(ReceiptVerifier.verify(keys.getPublic(), "other".getBytes(), sig));
+        // The thread's instance is reused after a failed check.
+        Assert.assertTrue(ReceiptVerifier.verify(keys.getPublic(), data, sig));
+
+        byte[] encoded = keys.getPublic().getEncoded();
+        Assert.assertEquals(keys.getPublic(), KeyManipulation.keyForEncodedBytes(encoded));
+        Assert.assertSame(KeyManipulation.keyForEncodedBytes(encoded),
+                KeyManipulation.keyForEncodedBytes(encoded));
+    }
+
+    @Test
+    public void testVerifiedCache() throws Exception {
+        ReceiptVerifier verifier = new ReceiptVerifier(2);
+        byte[] hash = new byte[] { 1, 2, 3 };
+        byte[] sig = new byte[] { 4, 5, 6 };
+
+        Assert.assertFalse(verifier.is_cached(hash, sig));
+        verifier.verified(hash, sig, true);
+        Assert.assertTrue(verifier.is_cached(hash, sig));
+        // Same receipt with a different signature must be checked.
+        Assert.assertFalse(verifier.is_cached(hash, new byte[] { 4, 5, 7 }));
+        Assert.assertEquals(2, verifier.get_verify_count() + verifier.get_cache_hits());
+    }
+
+    /** Boilerplate code for running as executable. */
+    public static void main(String[] args) throws Exception {
+        TestUtils.swtCompatibleTestRunner(ReceiptVerifierTest.class);
+    }
+}
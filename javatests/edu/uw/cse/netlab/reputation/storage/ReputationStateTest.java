@@ -0,0 +1,56 @@
+package edu.uw.cse.netlab.reputation.storage;
+
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import edu.washington.cs.oneswarm.test.util.OneSwarmTestBase;
+import edu.washington.cs.oneswarm.test.util.TestUtils;
+
+public class ReputationStateTest extends OneSwarmTestBase {
+
+    @Test
+    public void testCountersQueueOnce() throws Exception {
+        ReputationState state = new ReputationState();
+        Assert.assertEquals(-1, state.get_counter(7, ReputationState.SENT_DIRECT));
+
+        state.add(7);
+        state.increment_counter(7, ReputationState.SENT_DIRECT, 100);
+        state.increment_counter(7, ReputationState.SENT_DIRECT, 50);
+        state.increment_counter(7, ReputationState.RECEIVED_DIRECT, 10);
+        // Unknown ids are ignored, as the UPDATE would be.
+        state.increment_counter(8, ReputationState.SENT_DIRECT, 10);
+
+        Assert.assertEquals(150, state.get_counter(7, ReputationState.SENT_DIRECT));
+        Assert.assertEquals(1, state.get_pending_count());
+
+        List<ReputationState.Entry> dirty = state.take_dirty();
+        Assert.assertEquals(1, dirty.size());
+        Assert.assertEquals(0, state.get_pending_count());
+        Assert.assertEquals(0, state.get_write_lag());
+
+        // Changed again after being taken, so queued for the next flush.
+        state.increment_counter(7, ReputationState.SENT_DIRECT, 1);
+        Assert.assertEquals(1, state.take_dirty().size());
+    }
+
+    @Test
+    public void testSeenToday() throws Exception {
+        ReputationState state = new ReputationState();
+        long now = System.currentTimeMillis();
+
+        Assert.assertTrue(state.seen(1, "aa", now));
+        Assert.assertFalse(state.seen(1, "aa", now + 1000));
+        Assert.assertTrue(state.seen(1, "bb", now + 1000));
+        // A day later the ip counts again.
+        Assert.assertTrue(state.seen(1, "aa", now + 86400000 + 1));
+
+        Assert.assertEquals(2, state.take_seen_inserts().size());
+    }
+
+    /** Boilerplate code for running as executable. */
+    public static void main(String[] args) throws Exception {
+        TestUtils.swtCompatibleTestRunner(ReputationStateTest.class);
+    }
+}
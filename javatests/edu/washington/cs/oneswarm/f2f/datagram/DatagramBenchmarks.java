@@ -0,0 +1,67 @@
+package edu.washington.cs.oneswarm.f2f.datagram;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import edu.washington.cs.oneswarm.test.benchmark.Microbenchmark;
+
+/**
+ * Datagram encryption benchmarks for BenchmarkRunner, here as
+ * EncryptedPacket is package private.
+ */
+public class DatagramBenchmarks {
+
+    // a full datagram after the udp and encryption overhead
+    private static final int PAYLOAD = 1400;
+
+    public static List<Microbenchmark> create() {
+        List<Microbenchmark> benchmarks = new ArrayList<Microbenchmark>();
+        final byte[] data = new byte[PAYLOAD];
+        new Random(7).nextBytes(data);
+
+        benchmarks.add(new Microbenchmark("DatagramEncrypter.encrypt", PAYLOAD) {
+            private final ByteBuffer payload = ByteBuffer.wrap(data);
+            private final byte[] packet = new byte[PAYLOAD + 64];
+            private DatagramEncrypter encrypter;
+
+            @Override
+            public void setUp() throws Exception {
+                encrypter = new DatagramEncrypter();
+            }
+
+            @Override
+            public Object run() throws Exception {
+                payload.rewind();
+                return encrypter.encrypt(payload, packet);
+            }
+        });
+        benchmarks.add(new Microbenchmark("DatagramEncrypter+DatagramDecrypter", PAYLOAD) {
+            private final ByteBuffer payload = ByteBuffer.wrap(data);
+            private final byte[] packet = new byte[PAYLOAD + 64];
+            private final ByteBuffer decrypted = ByteBuffer.allocate(PAYLOAD + 64);
+            private DatagramEncrypter encrypter;
+            private DatagramDecrypter decrypter;
+
+            @Override
+            public void setUp() throws Exception {
+                encrypter = new DatagramEncrypter();
+                decrypter = new DatagramDecrypter(encrypter.getKey(), encrypter.getIv(),
+                        encrypter.getHmac());
+            }
+
+            @Override
+            public Object run() throws Exception {
+                payload.rewind();
+                EncryptedPacket p = encrypter.encrypt(payload, packet);
+                decrypted.clear();
+                if (!decrypter.decrypt(packet, 0, p.getLength(), decrypted)) {
+                    throw new IllegalStateException("decrypt failed");
+                }
+                return decrypted;
+            }
+        });
+        return benchmarks;
+    }
+}
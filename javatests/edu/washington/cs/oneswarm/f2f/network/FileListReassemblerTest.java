@@ -0,0 +1,97 @@
+package edu.washington.cs.oneswarm.f2f.network;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Random;
+
+import org.gudy.azureus2.core3.util.DirectByteBuffer;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.aelitis.azureus.core.peermanager.messaging.MessageException;
+
+import edu.washington.cs.oneswarm.f2f.messaging.OSF2FMessage;
+import edu.washington.cs.oneswarm.f2f.messaging.OSF2FTextSearchResp;
+import edu.washington.cs.oneswarm.test.util.OneSwarmTestBase;
+import edu.washington.cs.oneswarm.test.util.TestUtils;
+
+public class FileListReassemblerTest extends OneSwarmTestBase {
+
+    private static byte[] randomList(int length) {
+        byte[] list = new byte[length];
+        new Random(length).nextBytes(list);
+        return list;
+    }
+
+    private static byte[] readAll(InputStream in) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[1000];
+        int read;
+        while ((read = in.read(buf)) != -1) {
+            out.write(buf, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testReassemble() throws Exception {
+        byte[] list = randomList(5 * OSF2FMessage.FILE_LIST_CHUNK_SIZE + 17);
+        List<OSF2FTextSearchResp> chunks = OSF2FTextSearchResp.createChunks(
+                OSF2FMessage.CURRENT_VERSION, 42, list, OSF2FMessage.FILE_LIST_CHUNK_SIZE);
+        Assert.assertEquals(6, chunks.size());
+
+        FileListReassembler reassembler = new FileListReassembler(chunks.get(0));
+        for (OSF2FTextSearchResp chunk : chunks) {
+            Assert.assertEquals(OSF2FMessage.FILE_LIST_TYPE_COMPLETE_CHUNK,
+                    chunk.getFileListType());
+            Assert.assertFalse(reassembler.isComplete());
+            Assert.assertTrue(reassembler.add(chunk));
+        }
+        Assert.assertTrue(reassembler.isComplete());
+        Assert.assertEquals(100, reassembler.getPercentComplete());
+        Assert.assertArrayEquals(list, readAll(reassembler.getInputStream()));
+    }
+
+    @Test
+    public void testRejectsOtherLists() throws Exception {
+        byte[] list = randomList(3 * OSF2FMessage.FILE_LIST_CHUNK_SIZE);
+        List<OSF2FTextSearchResp> chunks = OSF2FTextSearchResp.createChunks(
+                OSF2FMessage.CURRENT_VERSION, 1, list, OSF2FMessage.FILE_LIST_CHUNK_SIZE);
+        List<OSF2FTextSearchResp> other = OSF2FTextSearchResp.createChunks(
+                OSF2FMessage.CURRENT_VERSION, 2, list, OSF2FMessage.FILE_LIST_CHUNK_SIZE);
+
+        FileListReassembler reassembler = new FileListReassembler(chunks.get(0));
+        Assert.assertTrue(reassembler.add(chunks.get(0)));
+        // skipped a chunk
+        Assert.assertFalse(reassembler.add(chunks.get(2)));
+        // from a different response
+        Assert.assertFalse(reassembler.add(other.get(1)));
+        Assert.assertTrue(reassembler.add(chunks.get(1)));
+        Assert.assertEquals(66, reassembler.getPercentComplete());
+    }
+
+    @Test
+    public void testRejectsOversizedList() throws Exception {
+        ByteBuffer payload = ByteBuffer.allocate(9 + 8 + 16);
+        payload.put(OSF2FMessage.FILE_LIST_TYPE_COMPLETE_CHUNK);
+        payload.putInt(42);
+        payload.putInt(0);
+        payload.putInt(0);
+        payload.putInt(OSF2FMessage.MAX_FILE_LIST_LENGTH + 1);
+        payload.flip();
+        try {
+            new OSF2FTextSearchResp(OSF2FMessage.CURRENT_VERSION,
+                    OSF2FMessage.FILE_LIST_TYPE_COMPLETE_CHUNK, 0, 0, new byte[0]).deserialize(
+                    new DirectByteBuffer(payload), OSF2FMessage.CURRENT_VERSION);
+            Assert.fail("accepted a chunk of a list above the limit");
+        } catch (MessageException e) {
+        }
+    }
+
+    /** Boilerplate code for running as executable. */
+    public static void main(String[] args) throws Exception {
+        TestUtils.swtCompatibleTestRunner(FileListReassemblerTest.class);
+    }
+}
@@ -0,0 +1,79 @@
+package edu.washington.cs.oneswarm.f2f.network;
+
+import java.nio.ByteBuffer;
+
+import org.gudy.azureus2.core3.util.DirectByteBuffer;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.aelitis.azureus.core.networkmanager.RawMessage;
+import com.aelitis.azureus.core.peermanager.messaging.bittorrent.BTKeepAlive;
+import com.aelitis.azureus.core.peermanager.messaging.bittorrent.BTMessageFactory;
+import com.aelitis.azureus.core.peermanager.messaging.bittorrent.BTPiece;
+
+import edu.washington.cs.oneswarm.test.util.OneSwarmTestBase;
+import edu.washington.cs.oneswarm.test.util.TestUtils;
+
+public class OverlayMessageEncoderTest extends OneSwarmTestBase {
+
+    static class TrackedBuffer extends DirectByteBuffer {
+        int returned = 0;
+
+        TrackedBuffer(int size) {
+            super(ByteBuffer.allocate(size));
+        }
+
+        @Override
+        public void returnToPool() {
+            returned++;
+        }
+    }
+
+    @BeforeClass
+    public static void setUpClass() {
+        BTMessageFactory.init();
+    }
+
+    @Test
+    public void testPieceFreedAfterLastSlice() throws Exception {
+        OverlayMessageEncoder encoder = new OverlayMessageEncoder();
+        TrackedBuffer data = new TrackedBuffer(16384);
+        for (int i = 0; i < 16384; i++) {
+            data.put(DirectByteBuffer.SS_MSG, (byte) i);
+        }
+        data.flip(DirectByteBuffer.SS_MSG);
+
+        RawMessage raw = encoder.encodeMessage(new BTPiece(1, 0, data, (byte) 1))[0];
+        ByteBuffer source = raw.getRawData()[2].getBuffer(DirectByteBuffer.SS_NET);
+        Assert.assertEquals(3, encoder.getSharedBufferCount());
+
+        DirectByteBuffer first = encoder.reference(source, 8192);
+        DirectByteBuffer second = encoder.reference(source, 8192);
+        Assert.assertFalse(source.hasRemaining());
+        Assert.assertEquals((byte) 8192, second.get(DirectByteBuffer.SS_MSG, 0));
+
+        // the queue is done with the message but the slices are still queued
+        raw.destroy();
+        Assert.assertEquals(0, encoder.getSharedBufferCount());
+        first.returnToPool();
+        first.returnToPool();
+        Assert.assertEquals(0, data.returned);
+
+        second.returnToPool();
+        Assert.assertEquals(1, data.returned);
+    }
+
+    @Test
+    public void testSmallMessagesNotShared() throws Exception {
+        OverlayMessageEncoder encoder = new OverlayMessageEncoder();
+        encoder.encodeMessage(new BTKeepAlive((byte) 1));
+        Assert.assertEquals(0, encoder.getSharedBufferCount());
+        Assert.assertNull(encoder.reference(ByteBuffer.allocate(4096), 4096));
+    }
+
+    /** Boilerplate code for running as executable. */
+    public static void main(String[] args) throws Exception {
+        TestUtils.swtCompatibleTestRunner(OverlayMessageEncoderTest.class);
+    }
+}
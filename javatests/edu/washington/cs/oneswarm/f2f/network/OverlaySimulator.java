@@ -0,0 +1,530 @@
+package edu.washington.cs.oneswarm.f2f.network;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.Set;
+
+import edu.washington.cs.oneswarm.f2f.messaging.OSF2FMessage;
+import edu.washington.cs.oneswarm.f2f.messaging.OSF2FMessageFactory;
+
+/**
+ * Deterministic single process simulation of a OneSwarm overlay, used as a
+ * benchmark for changes to the f2f networking code.
+ *
+ * Nodes are connected by in memory friend links with a configurable latency,
+ * bandwidth and loss rate. They exchange real OSF2F messages, encoded and
+ * decoded with OSF2FMessageFactory exactly as on the wire. Each node has a
+ * real QueueManager and a real FriendConnectionQueue per friend, and the link
+ * is the outgoing message queue under it, so what is sent when is decided by
+ * the same scheduling as in a running client. Searches are handled as in
+ * SearchManager and OverlayManager: each search is forwarded once, after the
+ * search forward delay, to the friends picked by the same deterministic per
+ * friend coin. Responses set up the channel that transfers and service
+ * tunnels then use, hop by hop.
+ *
+ * Time is simulated and all randomness comes from the seed. The exception is
+ * what the queues measure with the wall clock: the upload rates that size the
+ * per friend and global queues, and the age at which queued searches expire.
+ * Runs that keep the queues short only depend on the parameters, saturated
+ * links may queue a little more or less from run to run. The CPU time spent
+ * handling each node's events is measured and reported per node.
+ *
+ * Run main() for the benchmark, usage() lists the parameters.
+ */
+public class OverlaySimulator {
+
+    public static class LinkParams {
+        final long latencyMicros;
+        final long bytesPerSecond;
+        final double lossRate;
+
+        /**
+         * @param latencyMs
+         *            one way latency
+         * @param bytesPerSecond
+         *            bandwidth in each direction
+         * @param lossRate
+         *            fraction of messages that need a retransmission
+         */
+        public LinkParams(long latencyMs, long bytesPerSecond, double lossRate) {
+            this.latencyMicros = latencyMs * 1000;
+            this.bytesPerSecond = bytesPerSecond;
+            this.lossRate = lossRate;
+        }
+    }
+
+    private static boolean messagesRegistered = false;
+
+    // defaults as in ConfigurationDefaults
+    long searchForwardDelayMicros = 150 * 1000;
+    double forwardSearchProbability = 0.5;
+    long responseDelayMinMicros = 1 * 150 * 1000;
+    long responseDelayMaxMicros = 2 * 150 * 1000;
+
+    private final Random random;
+    private final PriorityQueue<Event> events = new PriorityQueue<Event>();
+    private final List<SimNode> nodes = new ArrayList<SimNode>();
+    private final List<SimLink> links = new ArrayList<SimLink>();
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    private final boolean threadCpuTime;
+
+    private long now = 0;
+    private long nextSeq = 0;
+
+    public OverlaySimulator(long seed) {
+        synchronized (OverlaySimulator.class) {
+            if (!messagesRegistered) {
+                OSF2FMessageFactory.init();
+                messagesRegistered = true;
+            }
+        }
+        this.random = new Random(seed);
+        this.threadCpuTime = threads.isCurrentThreadCpuTimeSupported();
+    }
+
+    public SimNode addNode() {
+        byte[] secret = new byte[20];
+        random.nextBytes(secret);
+        SimNode node = new SimNode(this, nodes.size(), random.nextInt(), new RandomnessManager(
+                secret));
+        nodes.add(node);
+        return node;
+    }
+
+    public void connect(SimNode a, SimNode b, LinkParams params) {
+        SimLink ab = new SimLink(this, a, b, params);
+        SimLink ba = new SimLink(this, b, a, params);
+        ab.reverse = ba;
+        ba.reverse = ab;
+        a.links.add(ab);
+        b.links.add(ba);
+        links.add(ab);
+        links.add(ba);
+    }
+
+    /**
+     * Creates count nodes connected in a ring, plus random friendships until
+     * the average number of friends is degree.
+     */
+    public List<SimNode> createRandomTopology(int count, int degree, LinkParams params) {
+        List<SimNode> created = new ArrayList<SimNode>(count);
+        for (int i = 0; i < count; i++) {
+            created.add(addNode());
+        }
+        Set<Long> edges = new HashSet<Long>();
+        for (int i = 0; i < count && count > 1; i++) {
+            addEdge(created, edges, i, (i + 1) % count, params);
+        }
+        long target = (long) count * degree / 2;
+        int attempts = 0;
+        while (edges.size() < target && attempts++ < target * 10) {
+            addEdge(created, edges, random.nextInt(count), random.nextInt(count), params);
+        }
+        return created;
+    }
+
+    private void addEdge(List<SimNode> created, Set<Long> edges, int a, int b, LinkParams params) {
+        if (a == b) {
+            return;
+        }
+        long key = ((long) Math.min(a, b) << 32) | Math.max(a, b);
+        if (edges.add(key)) {
+            connect(created.get(a), created.get(b), params);
+        }
+    }
+
+    public List<SimNode> getNodes() {
+        return nodes;
+    }
+
+    public SimNode getRandomNode() {
+        return nodes.get(random.nextInt(nodes.size()));
+    }
+
+    Random getRandom() {
+        return random;
+    }
+
+    /**
+     * @return simulated time in microseconds
+     */
+    public long now() {
+        return now;
+    }
+
+    public void schedule(long delayMicros, SimNode node, Runnable task) {
+        scheduleAt(now + delayMicros, node, task);
+    }
+
+    void scheduleAt(long time, SimNode node, Runnable task) {
+        events.add(new Event(Math.max(time, now), nextSeq++, node, task));
+    }
+
+    /**
+     * Runs events until there are none left
+     */
+    public void run() {
+        runUntil(Long.MAX_VALUE);
+    }
+
+    public void runUntil(long timeMicros) {
+        while (!events.isEmpty() && events.peek().time <= timeMicros) {
+            Event e = events.poll();
+            now = e.time;
+            long start = cpuTime();
+            e.task.run();
+            e.node.cpuNanos += cpuTime() - start;
+            e.node.eventCount++;
+        }
+    }
+
+    private long cpuTime() {
+        return threadCpuTime ? threads.getCurrentThreadCpuTime() : System.nanoTime();
+    }
+
+    /**
+     * Clears the per node and per link counters before a scenario
+     */
+    public void resetCounters() {
+        for (SimNode n : nodes) {
+            n.cpuNanos = 0;
+            n.eventCount = 0;
+        }
+        for (SimLink l : links) {
+            l.messagesSent = 0;
+            l.bytesSent = 0;
+        }
+    }
+
+    /**
+     * Adds the message, byte and CPU counters since the last reset to the
+     * report
+     */
+    void collectCounters(SimReport report) {
+        for (SimLink l : links) {
+            report.messages += l.messagesSent;
+            report.bytes += l.bytesSent;
+        }
+        long[] cpu = new long[nodes.size()];
+        for (int i = 0; i < cpu.length; i++) {
+            cpu[i] = nodes.get(i).cpuNanos;
+        }
+        report.setNodeCpu(cpu);
+    }
+
+    private static class Event implements Comparable<Event> {
+        final long time;
+        final long seq;
+        final SimNode node;
+        final Runnable task;
+
+        Event(long time, long seq, SimNode node, Runnable task) {
+            this.time = time;
+            this.seq = seq;
+            this.node = node;
+            this.task = task;
+        }
+
+        @Override
+        public int compareTo(Event o) {
+            if (time != o.time) {
+                return time < o.time ? -1 : 1;
+            }
+            return seq < o.seq ? -1 : (seq == o.seq ? 0 : 1);
+        }
+    }
+
+    /*
+     * Scenarios
+     */
+
+    /**
+     * Floods searches from random nodes, one every intervalMs, for content
+     * that each node has with the given probability.
+     */
+    public SimReport searchFlood(int searches, double replication, long intervalMs) {
+        final SimReport report = new SimReport("search flood");
+        resetCounters();
+        long start = now;
+
+        for (int i = 0; i < searches; i++) {
+            final long infohashhash = random.nextLong();
+            placeContent(infohashhash, replication);
+            final SimNode source = getRandomNode();
+            source.content.remove(infohashhash);
+            schedule(i * intervalMs * 1000, source, new Runnable() {
+                @Override
+                public void run() {
+                    report.started++;
+                    final long sent = now;
+                    source.search(infohashhash, new SimNode.SearchListener() {
+                        boolean first = true;
+
+                        @Override
+                        public void response(SimChannel channel) {
+                            if (first) {
+                                first = false;
+                                report.completed++;
+                                report.addLatency(now - sent);
+                            }
+                        }
+                    });
+                }
+            });
+        }
+        return finish(report, start);
+    }
+
+    /**
+     * Starts a transfer every intervalMs between a random node searching for
+     * content and the single random node that has it. The searching node
+     * sends size bytes over the channel set up by the first response, which
+     * is the same path a download would take in the other direction.
+     */
+    public SimReport transfer(int transfers, int size, long intervalMs) {
+        SimReport report = new SimReport("multi-hop transfer");
+        resetCounters();
+        long start = now;
+        SimChannel.Listener serverListener = transferListener(report, size);
+        for (int i = 0; i < transfers; i++) {
+            SimNode source = getRandomNode();
+            SimNode server;
+            do {
+                server = getRandomNode();
+            } while (server == source && nodes.size() > 1);
+            startTransfer(report, serverListener, source, server, size, i * intervalMs * 1000);
+        }
+        return finish(report, start);
+    }
+
+    /**
+     * Transfers size bytes from source to the server of the content it
+     * searches for
+     */
+    public SimReport transfer(SimNode source, SimNode server, int size) {
+        SimReport report = new SimReport("multi-hop transfer");
+        resetCounters();
+        long start = now;
+        startTransfer(report, transferListener(report, size), source, server, size, 0);
+        return finish(report, start);
+    }
+
+    private SimChannel.Listener transferListener(final SimReport report, final int size) {
+        return new SimChannel.Listener() {
+            private final Map<SimChannel, Integer> received = new HashMap<SimChannel, Integer>();
+
+            @Override
+            public void dataReceived(SimChannel channel, int bytes, long sentTime, long tag) {
+                report.payloadBytes += bytes;
+                report.addLatency(now - sentTime);
+                Integer sofar = received.get(channel);
+                int total = (sofar == null ? 0 : sofar) + bytes;
+                received.put(channel, total);
+                if (total >= size) {
+                    report.completed++;
+                    report.addCompletionTime(now - tag);
+                }
+            }
+        };
+    }
+
+    private void startTransfer(final SimReport report, SimChannel.Listener serverListener,
+            final SimNode source, SimNode server, final int size, long delayMicros) {
+        final long infohashhash = random.nextLong();
+        server.content.add(infohashhash);
+        server.setChannelListener(serverListener);
+
+        schedule(delayMicros, source, new Runnable() {
+            @Override
+            public void run() {
+                report.started++;
+                final long started = now;
+                source.search(infohashhash, new SimNode.SearchListener() {
+                    boolean first = true;
+
+                    @Override
+                    public void response(SimChannel channel) {
+                        if (!first) {
+                            return;
+                        }
+                        first = false;
+                        for (int sent = 0; sent < size; sent += OSF2FMessage.MAX_PAYLOAD_SIZE) {
+                            channel.send(Math.min(OSF2FMessage.MAX_PAYLOAD_SIZE, size - sent),
+                                    now, started);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Sets up service tunnels between random pairs of nodes. Over each one the
+     * client sends requests of requestSize bytes every intervalMs and the
+     * server answers each with responseSize bytes, latency is the round trip.
+     */
+    public SimReport tunnel(int tunnels, int requests, int requestSize, int responseSize,
+            long intervalMs) {
+        SimReport report = new SimReport("service tunnel");
+        resetCounters();
+        long start = now;
+        SimChannel.Listener serverListener = tunnelListener(report, responseSize);
+        for (int i = 0; i < tunnels; i++) {
+            SimNode client = getRandomNode();
+            SimNode server;
+            do {
+                server = getRandomNode();
+            } while (server == client && nodes.size() > 1);
+            startTunnel(report, serverListener, client, server, requests, requestSize,
+                    intervalMs, i * 10 * 1000);
+        }
+        return finish(report, start);
+    }
+
+    /**
+     * A single service tunnel from client to server
+     */
+    public SimReport tunnel(SimNode client, SimNode server, int requests, int requestSize,
+            int responseSize, long intervalMs) {
+        SimReport report = new SimReport("service tunnel");
+        resetCounters();
+        long start = now;
+        startTunnel(report, tunnelListener(report, responseSize), client, server, requests,
+                requestSize, intervalMs, 0);
+        return finish(report, start);
+    }
+
+    private SimChannel.Listener tunnelListener(final SimReport report, final int responseSize) {
+        return new SimChannel.Listener() {
+            @Override
+            public void dataReceived(SimChannel channel, int bytes, long sentTime, long tag) {
+                report.payloadBytes += bytes;
+                channel.send(responseSize, sentTime, tag);
+            }
+        };
+    }
+
+    private void startTunnel(final SimReport report, SimChannel.Listener serverListener,
+            final SimNode client, SimNode server, final int requests, final int requestSize,
+            final long intervalMs, long delayMicros) {
+        final long infohashhash = random.nextLong();
+        server.services.add(infohashhash);
+        server.setChannelListener(serverListener);
+
+        schedule(delayMicros, client, new Runnable() {
+            @Override
+            public void run() {
+                report.started++;
+                client.search(infohashhash, true, new SimNode.SearchListener() {
+                    boolean first = true;
+
+                    @Override
+                    public void response(final SimChannel channel) {
+                        if (!first) {
+                            return;
+                        }
+                        first = false;
+                        channel.setListener(new SimChannel.Listener() {
+                            int answered = 0;
+
+                            @Override
+                            public void dataReceived(SimChannel c, int bytes, long sentTime,
+                                    long tag) {
+                                report.payloadBytes += bytes;
+                                report.addLatency(now - sentTime);
+                                if (++answered == requests) {
+                                    report.completed++;
+                                }
+                            }
+                        });
+                        for (int r = 0; r < requests; r++) {
+                            schedule(r * intervalMs * 1000, client, new Runnable() {
+                                @Override
+                                public void run() {
+                                    channel.send(requestSize, now, 0);
+                                }
+                            });
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private SimReport finish(SimReport report, long start) {
+        run();
+        report.simMicros = now - start;
+        collectCounters(report);
+        return report;
+    }
+
+    private void placeContent(long infohashhash, double replication) {
+        boolean placed = false;
+        for (SimNode n : nodes) {
+            if (random.nextDouble() < replication) {
+                n.content.add(infohashhash);
+                placed = true;
+            }
+        }
+        if (!placed) {
+            getRandomNode().content.add(infohashhash);
+        }
+    }
+
+    private static void usage() {
+        System.out.println("usage: OverlaySimulator [name=value ...]");
+        System.out.println("  nodes=500 degree=8 seed=1");
+        System.out.println("  latency=20 (ms) bandwidth=1000000 (bytes/s) loss=0.001");
+        System.out.println("  searches=500 replication=0.01");
+        System.out.println("  transfers=20 size=4194304");
+        System.out.println("  tunnels=50 requests=20 request=512 response=8192 interval=100 (ms)");
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> params = new HashMap<String, String>();
+        for (String a : args) {
+            int eq = a.indexOf('=');
+            if (eq <= 0) {
+                usage();
+                return;
+            }
+            params.put(a.substring(0, eq), a.substring(eq + 1));
+        }
+
+        int nodes = Integer.parseInt(get(params, "nodes", "500"));
+        int degree = Integer.parseInt(get(params, "degree", "8"));
+        long seed = Long.parseLong(get(params, "seed", "1"));
+        LinkParams link = new LinkParams(Long.parseLong(get(params, "latency", "20")),
+                Long.parseLong(get(params, "bandwidth", "1000000")), Double.parseDouble(get(
+                        params, "loss", "0.001")));
+
+        OverlaySimulator sim = new OverlaySimulator(seed);
+        sim.createRandomTopology(nodes, degree, link);
+        System.out.println(sim.searchFlood(Integer.parseInt(get(params, "searches", "500")),
+                Double.parseDouble(get(params, "replication", "0.01")), 10));
+
+        sim = new OverlaySimulator(seed);
+        sim.createRandomTopology(nodes, degree, link);
+        System.out.println(sim.transfer(Integer.parseInt(get(params, "transfers", "20")),
+                Integer.parseInt(get(params, "size", "4194304")), 1000));
+
+        sim = new OverlaySimulator(seed);
+        sim.createRandomTopology(nodes, degree, link);
+        System.out.println(sim.tunnel(Integer.parseInt(get(params, "tunnels", "50")),
+                Integer.parseInt(get(params, "requests", "20")), Integer.parseInt(get(params,
+                        "request", "512")), Integer.parseInt(get(params, "response", "8192")),
+                Long.parseLong(get(params, "interval", "100"))));
+    }
+
+    private static String get(Map<String, String> params, String name, String def) {
+        String v = params.get(name);
+        return v == null ? def : v;
+    }
+}
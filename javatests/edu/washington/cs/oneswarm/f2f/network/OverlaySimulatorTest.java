@@ -0,0 +1,76 @@
+package edu.washington.cs.oneswarm.f2f.network;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import edu.washington.cs.oneswarm.f2f.messaging.OSF2FMessage;
+import edu.washington.cs.oneswarm.f2f.network.OverlaySimulator.LinkParams;
+import edu.washington.cs.oneswarm.test.util.OneSwarmTestBase;
+import edu.washington.cs.oneswarm.test.util.TestUtils;
+
+public class OverlaySimulatorTest extends OneSwarmTestBase {
+
+    private static final LinkParams LINK = new LinkParams(20, 1000 * 1000, 0.01);
+
+    @Test
+    public void testSearchFloodDeterministic() throws Exception {
+        SimReport[] reports = new SimReport[2];
+        for (int i = 0; i < reports.length; i++) {
+            OverlaySimulator sim = new OverlaySimulator(42);
+            sim.createRandomTopology(200, 6, LINK);
+            reports[i] = sim.searchFlood(50, 0.02, 10);
+        }
+        Assert.assertEquals(50, reports[0].getStarted());
+        Assert.assertTrue(reports[0].getCompleted() > 0);
+        Assert.assertEquals(reports[0].getCompleted(), reports[1].getCompleted());
+        Assert.assertEquals(reports[0].getMessages(), reports[1].getMessages());
+        Assert.assertEquals(reports[0].getLatencyPercentile(50),
+                reports[1].getLatencyPercentile(50));
+        Assert.assertEquals(reports[0].getSimulatedMicros(), reports[1].getSimulatedMicros());
+    }
+
+    @Test
+    public void testTransferLimitedByBandwidth() throws Exception {
+        OverlaySimulator sim = new OverlaySimulator(1);
+        sim.forwardSearchProbability = 1.0;
+        SimNode a = sim.addNode();
+        SimNode b = sim.addNode();
+        SimNode c = sim.addNode();
+        sim.connect(a, b, new LinkParams(10, 1000 * 1000, 0));
+        sim.connect(b, c, new LinkParams(10, 100 * 1000, 0));
+
+        final int size = 1024 * 1024;
+        SimReport report = sim.transfer(a, c, size);
+        Assert.assertEquals(1, report.getCompleted());
+        Assert.assertEquals(size, report.getPayloadBytes());
+        // the slower hop's bandwidth, less the overlay framing, less the search
+        Assert.assertTrue(report.getThroughput() < 100 * 1000);
+        Assert.assertTrue(report.getThroughput() > 80 * 1000);
+        // one search, one response, forwarded once each, and two hops per chunk
+        int chunks = (size + OSF2FMessage.MAX_PAYLOAD_SIZE - 1) / OSF2FMessage.MAX_PAYLOAD_SIZE;
+        Assert.assertTrue(report.getMessages() >= 4 + 2 * chunks);
+    }
+
+    @Test
+    public void testTunnelRoundTrip() throws Exception {
+        OverlaySimulator sim = new OverlaySimulator(1);
+        sim.forwardSearchProbability = 1.0;
+        SimNode a = sim.addNode();
+        SimNode b = sim.addNode();
+        SimNode c = sim.addNode();
+        LinkParams link = new LinkParams(50, 10 * 1000 * 1000, 0);
+        sim.connect(a, b, link);
+        sim.connect(b, c, link);
+
+        SimReport report = sim.tunnel(a, c, 10, 100, 1000, 500);
+        Assert.assertEquals(1, report.getCompleted());
+        // two hops each way
+        Assert.assertTrue(report.getLatencyPercentile(50) >= 4 * 50 * 1000);
+        Assert.assertTrue(report.getLatencyPercentile(100) < 5 * 50 * 1000);
+    }
+
+    /** Boilerplate code for running as executable. */
+    public static void main(String[] args) throws Exception {
+        TestUtils.swtCompatibleTestRunner(OverlaySimulatorTest.class);
+    }
+}
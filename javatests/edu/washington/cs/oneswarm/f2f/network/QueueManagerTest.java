@@ -0,0 +1,208 @@
+package edu.washington.cs.oneswarm.f2f.network;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.gudy.azureus2.core3.config.COConfigurationManager;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.washington.cs.oneswarm.f2f.Friend;
+import edu.washington.cs.oneswarm.f2f.network.QueueManager.TrafficClass;
+import edu.washington.cs.oneswarm.test.util.OneSwarmTestBase;
+import edu.washington.cs.oneswarm.test.util.TestUtils;
+
+/**
+ * Runs the queue manager's deficit round robin over friend queues that only
+ * count what they are asked to send.
+ */
+public class QueueManagerTest extends OneSwarmTestBase {
+
+    private static final int MESSAGE_BYTES = 1000;
+
+    private QueueManager queueManager;
+
+    // bytes the stub queues may still send in one triggerPacketSending() call
+    private final long[] budget = new long[1];
+
+    @Before
+    public void setUp() throws Exception {
+        COConfigurationManager.setParameter("f2f_queue_weight_transport", 7);
+        COConfigurationManager.setParameter("f2f_queue_weight_service", 3);
+        COConfigurationManager.setParameter("f2f_queue_weight_forward", 2);
+        COConfigurationManager.setParameter("f2f_queue_weight_search", 1);
+        COConfigurationManager.setParameter("f2f_queue_weight_by_friend_score", false);
+        queueManager = new QueueManager(false);
+    }
+
+    @Test
+    public void testSharesFollowWeights() throws Exception {
+        List<StubQueue> friends = new ArrayList<StubQueue>();
+        for (int i = 0; i < 2; i++) {
+            StubQueue friend = new StubQueue("friend" + i);
+            for (TrafficClass trafficClass : TrafficClass.values()) {
+                friend.queue(trafficClass, 10000);
+            }
+            friends.add(friend);
+        }
+        send(10 * 1000 * 1000);
+
+        long[] sent = sentPerClass(friends);
+        assertShare(7.0 / 13, sent, TrafficClass.TRANSPORT);
+        assertShare(3.0 / 13, sent, TrafficClass.SERVICE);
+        assertShare(2.0 / 13, sent, TrafficClass.FORWARD);
+        assertShare(1.0 / 13, sent, TrafficClass.SEARCH);
+
+        // and the friends split each class evenly
+        for (TrafficClass trafficClass : TrafficClass.values()) {
+            long a = friends.get(0).sent[trafficClass.ordinal()];
+            long b = friends.get(1).sent[trafficClass.ordinal()];
+            Assert.assertTrue(trafficClass + " " + a + "/" + b,
+                    Math.abs(a - b) <= 8 * MESSAGE_BYTES);
+        }
+    }
+
+    @Test
+    public void testIdleClassShareRedistributed() throws Exception {
+        StubQueue friend = new StubQueue("busy");
+        friend.queue(TrafficClass.TRANSPORT, 10000);
+        friend.queue(TrafficClass.FORWARD, 10000);
+        send(5 * 1000 * 1000);
+
+        long[] sent = friend.sent;
+        assertShare(7.0 / 9, sent, TrafficClass.TRANSPORT);
+        assertShare(2.0 / 9, sent, TrafficClass.FORWARD);
+        Assert.assertEquals(0, sent[TrafficClass.SERVICE.ordinal()]);
+        Assert.assertEquals(0, sent[TrafficClass.SEARCH.ordinal()]);
+    }
+
+    @Test
+    public void testFriendOverBudgetDoesNotBlockOthers() throws Exception {
+        StubQueue full = new StubQueue("full");
+        full.contribution = QueueManager.MAX_FRIEND_QUEUE_BUDGET + 1;
+        full.queue(TrafficClass.FORWARD, 100);
+        StubQueue a = new StubQueue("a");
+        a.queue(TrafficClass.FORWARD, 100);
+        StubQueue b = new StubQueue("b");
+        b.queue(TrafficClass.FORWARD, 100);
+        send(100 * MESSAGE_BYTES);
+
+        int forward = TrafficClass.FORWARD.ordinal();
+        Assert.assertEquals(0, full.sent[forward]);
+        Assert.assertEquals(50 * MESSAGE_BYTES, a.sent[forward], 8 * MESSAGE_BYTES);
+        Assert.assertEquals(100 * MESSAGE_BYTES, a.sent[forward] + b.sent[forward]);
+    }
+
+    @Test
+    public void testServiceSkipsTransportBacklog() throws Exception {
+        StubQueue friend = new StubQueue("friend");
+        friend.queue(TrafficClass.TRANSPORT, 1000);
+        friend.queue(TrafficClass.SERVICE, 1);
+        send(Long.MAX_VALUE);
+
+        int position = friend.order.indexOf(TrafficClass.SERVICE);
+        Assert.assertTrue("service message sent as number " + position, position >= 0
+                && position < 50);
+        Assert.assertEquals(1001, friend.order.size());
+    }
+
+    private void send(long bytes) {
+        budget[0] = bytes;
+        queueManager.triggerPacketSending();
+    }
+
+    private static long[] sentPerClass(List<StubQueue> friends) {
+        long[] sent = new long[TrafficClass.values().length];
+        for (StubQueue friend : friends) {
+            for (int i = 0; i < sent.length; i++) {
+                sent[i] += friend.sent[i];
+            }
+        }
+        return sent;
+    }
+
+    private static void assertShare(double expected, long[] sent, TrafficClass trafficClass) {
+        long total = 0;
+        for (long s : sent) {
+            total += s;
+        }
+        double share = (double) sent[trafficClass.ordinal()] / total;
+        Assert.assertEquals(trafficClass.toString(), expected, share, 0.01);
+    }
+
+    /**
+     * Holds a count of equally sized messages per class and records what the
+     * queue manager has it send.
+     */
+    private class StubQueue extends FriendConnectionQueue {
+        private final List<LinkedList<Integer>> backlog = new ArrayList<LinkedList<Integer>>();
+        private final boolean[] registered = new boolean[TrafficClass.values().length];
+
+        final long[] sent = new long[TrafficClass.values().length];
+        final List<TrafficClass> order = new ArrayList<TrafficClass>();
+        long contribution = 0;
+
+        StubQueue(String nick) {
+            super(queueManager, new Friend("", nick, null, false));
+            for (int i = 0; i < registered.length; i++) {
+                backlog.add(new LinkedList<Integer>());
+            }
+        }
+
+        void queue(TrafficClass trafficClass, int count) {
+            OverlayManager.lock.lock();
+            try {
+                for (int i = 0; i < count; i++) {
+                    backlog.get(trafficClass.ordinal()).add(MESSAGE_BYTES);
+                }
+                register(trafficClass);
+            } finally {
+                OverlayManager.lock.unlock();
+            }
+        }
+
+        private void register(TrafficClass trafficClass) {
+            if (!registered[trafficClass.ordinal()]
+                    && !backlog.get(trafficClass.ordinal()).isEmpty()) {
+                registered[trafficClass.ordinal()] = true;
+                queueManager.registerForSelects(trafficClass, this);
+            }
+        }
+
+        @Override
+        int sendQueuedPacket(TrafficClass trafficClass) {
+            int c = trafficClass.ordinal();
+            registered[c] = false;
+            if (budget[0] <= 0 || backlog.get(c).isEmpty()) {
+                return 0;
+            }
+            int bytes = backlog.get(c).remove();
+            budget[0] -= bytes;
+            sent[c] += bytes;
+            order.add(trafficClass);
+            register(trafficClass);
+            return bytes;
+        }
+
+        @Override
+        public long getTotalOutgoingBytesContributionToGlobalQueue() {
+            return contribution;
+        }
+
+        @Override
+        void doListenerNotifications() {
+        }
+
+        @Override
+        public String toString() {
+            return "StubQueue";
+        }
+    }
+
+    /** Boilerplate code for running as executable. */
+    public static void main(String[] args) throws Exception {
+        TestUtils.swtCompatibleTestRunner(QueueManagerTest.class);
+    }
+}
@@ -0,0 +1,86 @@
+package edu.washington.cs.oneswarm.f2f.network;
+
+import java.nio.ByteBuffer;
+
+import org.gudy.azureus2.core3.util.DirectByteBuffer;
+
+import com.aelitis.azureus.core.peermanager.messaging.MessageException;
+
+import edu.washington.cs.oneswarm.f2f.messaging.OSF2FChannelDataMsg;
+import edu.washington.cs.oneswarm.f2f.messaging.OSF2FMessage;
+import edu.washington.cs.oneswarm.f2f.servicesharing.OSF2FServiceDataMsg;
+
+/**
+ * End of a channel set up by a search response in the simulated overlay. Data
+ * is sent as OSF2FChannelDataMsgs, or OSF2FServiceDataMsgs on service
+ * channels, whose payload starts with the time it was first sent and a tag,
+ * which the other end gets back.
+ */
+public class SimChannel {
+
+    public interface Listener {
+        /**
+         * @param sentTime
+         *            simulated time the data was sent at, or whatever the
+         *            sender passed on
+         */
+        public void dataReceived(SimChannel channel, int bytes, long sentTime, long tag);
+    }
+
+    static final int HEADER_SIZE = 16;
+
+    final SimNode node;
+    final SimLink link;
+    final int channelId;
+    final boolean service;
+    private Listener listener;
+    private int sequenceNumber = 0;
+
+    SimChannel(SimNode node, SimLink link, int channelId, boolean service) {
+        this.node = node;
+        this.link = link;
+        this.channelId = channelId;
+        this.service = service;
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Sends size bytes of payload, at least HEADER_SIZE
+     */
+    public void send(int size, long sentTime, long tag) {
+        ByteBuffer b = ByteBuffer.allocate(Math.max(size, HEADER_SIZE));
+        b.putLong(0, sentTime);
+        b.putLong(8, tag);
+        OSF2FChannelDataMsg msg;
+        if (service) {
+            msg = new OSF2FServiceDataMsg(OSF2FMessage.CURRENT_VERSION, channelId,
+                    sequenceNumber++, (short) 0, new int[0], new DirectByteBuffer(b));
+        } else {
+            msg = new OSF2FChannelDataMsg(OSF2FMessage.CURRENT_VERSION, channelId,
+                    new DirectByteBuffer(b));
+        }
+        link.sendChannelMsg(msg, true);
+    }
+
+    void received(OSF2FChannelDataMsg msg) {
+        if (service) {
+            // as FriendConnection does for service channels
+            try {
+                msg = OSF2FServiceDataMsg.fromChannelMessage(msg);
+            } catch (MessageException e) {
+                throw new RuntimeException("not a service message", e);
+            }
+        }
+        DirectByteBuffer payload = msg.getPayload();
+        int bytes = payload.remaining(DirectByteBuffer.SS_MSG);
+        ByteBuffer b = payload.getBuffer(DirectByteBuffer.SS_MSG);
+        long sentTime = b.getLong(b.position());
+        long tag = b.getLong(b.position() + 8);
+        if (listener != null) {
+            listener.dataReceived(this, bytes, sentTime, tag);
+        }
+    }
+}
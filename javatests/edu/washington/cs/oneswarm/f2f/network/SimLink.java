@@ -0,0 +1,307 @@
+package edu.washington.cs.oneswarm.f2f.network;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.gudy.azureus2.core3.global.GlobalManagerStats;
+import org.gudy.azureus2.core3.util.DirectByteBuffer;
+
+import com.aelitis.azureus.core.networkmanager.NetworkConnection;
+import com.aelitis.azureus.core.networkmanager.OutgoingMessageQueue;
+import com.aelitis.azureus.core.networkmanager.RawMessage;
+import com.aelitis.azureus.core.networkmanager.Transport;
+import com.aelitis.azureus.core.peermanager.messaging.Message;
+import com.aelitis.azureus.core.peermanager.messaging.MessageStreamEncoder;
+
+import edu.washington.cs.oneswarm.f2f.Friend;
+import edu.washington.cs.oneswarm.f2f.messaging.OSF2FChannelMsg;
+import edu.washington.cs.oneswarm.f2f.messaging.OSF2FHashSearchResp;
+import edu.washington.cs.oneswarm.f2f.messaging.OSF2FMessage;
+import edu.washington.cs.oneswarm.f2f.messaging.OSF2FMessageFactory;
+import edu.washington.cs.oneswarm.f2f.messaging.OSF2FSearch;
+import edu.washington.cs.oneswarm.f2f.network.OverlaySimulator.LinkParams;
+import edu.washington.cs.oneswarm.f2f.network.QueueManager.QueueBuckets;
+
+/**
+ * One direction of a simulated friend connection. Messages are queued with a
+ * real FriendConnectionQueue of the sending node's QueueManager, the link is
+ * the outgoing message queue of its network connection: it sends what the
+ * queue manager hands it one message at a time at the link's bandwidth and
+ * tells the queue when each is sent, as the Azureus queue does.
+ */
+class SimLink implements OutgoingMessageQueue {
+
+    /**
+     * Friend connections run over TCP, so a lost segment delays the message
+     * (and everything behind it) by a retransmission timeout instead of
+     * dropping it.
+     */
+    private static final long MIN_RTO_MICROS = 200 * 1000;
+
+    final OverlaySimulator sim;
+    final SimNode from;
+    final SimNode to;
+    final LinkParams params;
+    SimLink reverse;
+
+    final FriendConnectionQueue queue;
+
+    private final List<MessageQueueListener> listeners = new ArrayList<MessageQueueListener>();
+    private final LinkedList<RawMessage> pending = new LinkedList<RawMessage>();
+    private final List<Message> addedNotifications = new ArrayList<Message>();
+    private int pendingBytes = 0;
+    private boolean sending = false;
+    private long lastArrival = 0;
+
+    long messagesSent = 0;
+    long bytesSent = 0;
+
+    SimLink(OverlaySimulator sim, SimNode from, SimNode to, LinkParams params) {
+        this.sim = sim;
+        this.from = from;
+        this.to = to;
+        this.params = params;
+        this.queue = new FriendConnectionQueue(from.queueManager, stub(NetworkConnection.class),
+                new Friend("sim", "node" + to.id, null, false),
+                stub(GlobalManagerStats.class));
+    }
+
+    /*
+     * The entry points FriendConnection has for the traffic the simulation
+     * sends, with the same queue buckets
+     */
+
+    void sendSearch(OSF2FSearch search, boolean skipQueue) {
+        queue.queuePacket(QueueBuckets.CONTROL, search, skipQueue);
+    }
+
+    void sendChannelSetup(OSF2FHashSearchResp message, boolean forwarded) {
+        message.updatePathID(from.randomness.getDeterministicRandomInt(message.getPathID()));
+        if (forwarded) {
+            queue.queuePacketForceQueue(QueueBuckets.FORWARD, message);
+        } else {
+            queue.queuePacketForceQueue(QueueBuckets.TRANSPORT, message);
+        }
+    }
+
+    void sendChannelMsg(OSF2FChannelMsg message, boolean transport) {
+        if (transport) {
+            queue.queuePacketForceQueue(QueueBuckets.TRANSPORT, message);
+        } else {
+            queue.queuePacketForceQueue(QueueBuckets.FORWARD, message);
+        }
+    }
+
+    /*
+     * OutgoingMessageQueue
+     */
+
+    public void addMessage(Message message, boolean manualListenerNotify) {
+        for (MessageQueueListener l : listeners.toArray(new MessageQueueListener[0])) {
+            l.messageAdded(message);
+        }
+        RawMessage raw = OSF2FMessageFactory.createOSF2FRawMessage(message);
+        pending.add(raw);
+        pendingBytes += wireLength(raw);
+        if (manualListenerNotify) {
+            addedNotifications.add(message);
+        } else {
+            for (MessageQueueListener l : listeners.toArray(new MessageQueueListener[0])) {
+                l.messageQueued(message);
+            }
+        }
+        if (!sending) {
+            sendNext();
+        }
+    }
+
+    public void doListenerNotifications() {
+        for (Message message : addedNotifications) {
+            for (MessageQueueListener l : listeners.toArray(new MessageQueueListener[0])) {
+                l.messageQueued(message);
+            }
+        }
+        addedNotifications.clear();
+    }
+
+    public int getTotalSize() {
+        return pendingBytes;
+    }
+
+    public void registerQueueListener(MessageQueueListener listener) {
+        listeners.add(listener);
+    }
+
+    public void cancelQueueListener(MessageQueueListener listener) {
+        listeners.remove(listener);
+    }
+
+    public boolean hasUrgentMessage() {
+        return false;
+    }
+
+    public boolean isDestroyed() {
+        return false;
+    }
+
+    public void destroy() {
+    }
+
+    public void flush() {
+    }
+
+    public void setTrace(boolean on) {
+    }
+
+    public String getQueueTrace() {
+        return "";
+    }
+
+    public int getMssSize() {
+        return OSF2FMessage.MAX_MESSAGE_SIZE;
+    }
+
+    public int getPercentDoneOfCurrentMessage() {
+        return 0;
+    }
+
+    public void setTransport(Transport transport) {
+        throw new UnsupportedOperationException();
+    }
+
+    public void setEncoder(MessageStreamEncoder encoder) {
+        throw new UnsupportedOperationException();
+    }
+
+    public MessageStreamEncoder getEncoder() {
+        throw new UnsupportedOperationException();
+    }
+
+    public void removeMessagesOfType(Message[] messageTypes, boolean manualListenerNotify) {
+        throw new UnsupportedOperationException();
+    }
+
+    public boolean removeMessage(Message message, boolean manualListenerNotify) {
+        throw new UnsupportedOperationException();
+    }
+
+    public int deliverToTransport(int maxBytes, boolean manualListenerNotify) {
+        throw new UnsupportedOperationException();
+    }
+
+    public void notifyOfExternallySentMessage(Message message) {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Puts the next pending message on the wire, the queue hears it was sent
+     * once its last byte is out and the other end gets it a latency later.
+     */
+    private void sendNext() {
+        final RawMessage raw = pending.peek();
+        if (raw == null) {
+            sending = false;
+            return;
+        }
+        sending = true;
+        final int length = wireLength(raw);
+        sim.schedule(length * 1000000L / params.bytesPerSecond, from, new Runnable() {
+            @Override
+            public void run() {
+                pending.remove();
+                pendingBytes -= length;
+                messagesSent++;
+                bytesSent += length;
+
+                final byte[] wire = toBytes(raw);
+                long arrival = sim.now() + params.latencyMicros;
+                if (params.lossRate > 0 && sim.getRandom().nextDouble() < params.lossRate) {
+                    arrival += Math.max(MIN_RTO_MICROS, 4 * params.latencyMicros);
+                }
+                // in order delivery
+                arrival = Math.max(arrival, lastArrival);
+                lastArrival = arrival;
+                sim.scheduleAt(arrival, to, new Runnable() {
+                    @Override
+                    public void run() {
+                        to.receive(reverse, decode(wire));
+                    }
+                });
+
+                Message message = raw.getBaseMessage();
+                for (MessageQueueListener l : listeners.toArray(new MessageQueueListener[0])) {
+                    l.messageSent(message);
+                    if (message instanceof OSF2FChannelMsg) {
+                        l.dataBytesSent(length);
+                    } else {
+                        l.protocolBytesSent(length);
+                    }
+                }
+                raw.destroy();
+                sendNext();
+            }
+        });
+    }
+
+    private static int wireLength(RawMessage raw) {
+        DirectByteBuffer[] data = raw.getRawData();
+        int size = 0;
+        for (int i = 0; i < data.length; i++) {
+            size += data[i].remaining(DirectByteBuffer.SS_NET);
+        }
+        return size;
+    }
+
+    private static byte[] toBytes(RawMessage raw) {
+        DirectByteBuffer[] data = raw.getRawData();
+        byte[] wire = new byte[wireLength(raw)];
+        int pos = 0;
+        for (int i = 0; i < data.length; i++) {
+            ByteBuffer b = data[i].getBuffer(DirectByteBuffer.SS_NET).duplicate();
+            int n = b.remaining();
+            b.get(wire, pos, n);
+            pos += n;
+        }
+        return wire;
+    }
+
+    static OSF2FMessage decode(byte[] wire) {
+        // skip the length field, the stream decoder hands over the rest
+        ByteBuffer b = ByteBuffer.wrap(wire, 4, wire.length - 4).slice();
+        try {
+            return (OSF2FMessage) OSF2FMessageFactory.createOSF2FMessage(new DirectByteBuffer(b));
+        } catch (Exception e) {
+            throw new RuntimeException("unable to decode simulated message", e);
+        }
+    }
+
+    /**
+     * The network connection and stats the friend connection queue is
+     * created with: the connection hands out this link as its outgoing
+     * queue, everything else does nothing.
+     */
+    private <T> T stub(Class<T> type) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class[] { type },
+                new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (method.getName().equals("getOutgoingMessageQueue")) {
+                            return SimLink.this;
+                        }
+                        Class<?> r = method.getReturnType();
+                        if (r == boolean.class) {
+                            return Boolean.FALSE;
+                        } else if (r == int.class) {
+                            return Integer.valueOf(0);
+                        } else if (r == long.class) {
+                            return Long.valueOf(0);
+                        }
+                        return null;
+                    }
+                }));
+    }
+}
@@ -0,0 +1,228 @@
+package edu.washington.cs.oneswarm.f2f.network;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import edu.washington.cs.oneswarm.f2f.messaging.OSF2FChannelDataMsg;
+import edu.washington.cs.oneswarm.f2f.messaging.OSF2FHashSearch;
+import edu.washington.cs.oneswarm.f2f.messaging.OSF2FHashSearchResp;
+import edu.washington.cs.oneswarm.f2f.messaging.OSF2FMessage;
+
+/**
+ * A node of the simulated overlay. Handles hash searches, responses and
+ * channel data the way SearchManager and OverlayManager do, minus the parts
+ * that don't affect traffic (search rate limiting, cancels, bloom filters).
+ * What it sends goes through the node's own QueueManager and a
+ * FriendConnectionQueue per friend, in the buckets FriendConnection uses.
+ */
+public class SimNode {
+
+    public interface SearchListener {
+        public void response(SimChannel channel);
+    }
+
+    final OverlaySimulator sim;
+    final int id;
+    final int keyHash;
+    final RandomnessManager randomness;
+    final QueueManager queueManager = new QueueManager(false);
+
+    final List<SimLink> links = new ArrayList<SimLink>();
+    final Set<Long> content = new HashSet<Long>();
+    // content served as a service, its channels carry service data
+    final Set<Long> services = new HashSet<Long>();
+
+    // search id -> link it came from, null for our own searches
+    private final Map<Integer, SimLink> searches = new HashMap<Integer, SimLink>();
+    private final Map<Integer, SearchListener> ownSearches = new HashMap<Integer, SearchListener>();
+    private final Set<Integer> ownServiceSearches = new HashSet<Integer>();
+
+    // channel id -> the two links it is forwarded between
+    private final Map<Integer, SimLink[]> forwards = new HashMap<Integer, SimLink[]>();
+    private final Map<Integer, SimChannel> channels = new HashMap<Integer, SimChannel>();
+    private SimChannel.Listener channelListener;
+
+    long cpuNanos = 0;
+    long eventCount = 0;
+
+    SimNode(OverlaySimulator sim, int id, int keyHash, RandomnessManager randomness) {
+        this.sim = sim;
+        this.id = id;
+        this.keyHash = keyHash;
+        this.randomness = randomness;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public int getFriendCount() {
+        return links.size();
+    }
+
+    public long getCpuNanos() {
+        return cpuNanos;
+    }
+
+    public void addContent(long infohashhash) {
+        content.add(infohashhash);
+    }
+
+    public void addService(long infohashhash) {
+        services.add(infohashhash);
+    }
+
+    /**
+     * Sets the listener of channels set up by responses to searches for our
+     * content
+     */
+    public void setChannelListener(SimChannel.Listener listener) {
+        this.channelListener = listener;
+    }
+
+    /**
+     * Sends a hash search to all friends, the listener is called for every
+     * response with the channel it set up.
+     */
+    public void search(long infohashhash, SearchListener listener) {
+        search(infohashhash, false, listener);
+    }
+
+    /**
+     * @param service
+     *            true if the content is a service, the channels then carry
+     *            service data
+     */
+    public void search(long infohashhash, boolean service, SearchListener listener) {
+        int searchId = sim.getRandom().nextInt();
+        searches.put(searchId, null);
+        ownSearches.put(searchId, listener);
+        if (service) {
+            ownServiceSearches.add(searchId);
+        }
+        OSF2FHashSearch search = new OSF2FHashSearch(OSF2FMessage.CURRENT_VERSION, searchId,
+                infohashhash);
+        for (SimLink link : links) {
+            // our own searches skip the queue
+            link.sendSearch(search.clone(), true);
+        }
+    }
+
+    void receive(SimLink from, OSF2FMessage msg) {
+        if (msg instanceof OSF2FHashSearch) {
+            handleSearch(from, (OSF2FHashSearch) msg);
+        } else if (msg instanceof OSF2FHashSearchResp) {
+            handleResponse(from, (OSF2FHashSearchResp) msg);
+        } else if (msg instanceof OSF2FChannelDataMsg) {
+            handleData(from, (OSF2FChannelDataMsg) msg);
+        }
+    }
+
+    private void handleSearch(final SimLink from, final OSF2FHashSearch search) {
+        final int searchId = search.getSearchID();
+        if (searches.containsKey(searchId)) {
+            return;
+        }
+        searches.put(searchId, from);
+
+        final boolean service = services.contains(search.getInfohashhash());
+        if (service || content.contains(search.getInfohashhash())) {
+            // answer after the emulated path delay, searches we can answer
+            // aren't forwarded
+            final int channelId = sim.getRandom().nextInt();
+            final int pathId = sim.getRandom().nextInt();
+            long spread = sim.responseDelayMaxMicros - sim.responseDelayMinMicros;
+            long delay = sim.responseDelayMinMicros
+                    + (long) (sim.getRandom().nextDouble() * spread);
+            sim.schedule(delay, this, new Runnable() {
+                @Override
+                public void run() {
+                    SimChannel channel = new SimChannel(SimNode.this, from, channelId, service);
+                    channel.setListener(channelListener);
+                    channels.put(channelId, channel);
+                    from.sendChannelSetup(new OSF2FHashSearchResp(OSF2FMessage.CURRENT_VERSION,
+                            searchId, channelId, pathId), false);
+                }
+            });
+            return;
+        }
+
+        sim.schedule(sim.searchForwardDelayMicros, this, new Runnable() {
+            @Override
+            public void run() {
+                for (SimLink link : links) {
+                    if (link != from && shouldForwardSearch(search.getInfohashhash(), link)) {
+                        link.sendSearch(search.clone(), false);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Same coin as OverlayManager.shouldForwardSearch
+     */
+    private boolean shouldForwardSearch(long infohashhash, SimLink link) {
+        byte[] infohashbytes = RandomnessManager.getBytes(infohashhash);
+        byte[] friendHash = RandomnessManager.getBytes(link.to.keyHash);
+        byte[] all = new byte[infohashbytes.length + friendHash.length];
+        System.arraycopy(infohashbytes, 0, all, 0, infohashbytes.length);
+        System.arraycopy(friendHash, 0, all, infohashbytes.length, friendHash.length);
+
+        int randomVal = randomness.getDeterministicRandomInt(all);
+        if (randomVal < 0) {
+            randomVal = -randomVal;
+        }
+        return randomVal < Integer.MAX_VALUE * sim.forwardSearchProbability;
+    }
+
+    private void handleResponse(SimLink from, OSF2FHashSearchResp resp) {
+        int searchId = resp.getSearchID();
+        if (!searches.containsKey(searchId)) {
+            return;
+        }
+        int channelId = resp.getChannelID();
+
+        SearchListener listener = ownSearches.get(searchId);
+        if (listener != null) {
+            if (channels.containsKey(channelId)) {
+                return;
+            }
+            SimChannel channel = new SimChannel(this, from, channelId,
+                    ownServiceSearches.contains(searchId));
+            channels.put(channelId, channel);
+            listener.response(channel);
+            return;
+        }
+
+        if (forwards.containsKey(channelId)) {
+            return;
+        }
+        SimLink back = searches.get(searchId);
+        forwards.put(channelId, new SimLink[] { from, back });
+        back.sendChannelSetup(resp, true);
+    }
+
+    private void handleData(SimLink from, OSF2FChannelDataMsg msg) {
+        int channelId = msg.getChannelId();
+        SimChannel channel = channels.get(channelId);
+        if (channel != null && channel.link == from) {
+            channel.received(msg);
+            msg.destroy();
+            return;
+        }
+
+        SimLink[] path = forwards.get(channelId);
+        if (path == null) {
+            msg.destroy();
+            return;
+        }
+        SimLink out = from == path[0] ? path[1] : path[0];
+        msg.setForward(true);
+        out.sendChannelMsg(msg, false);
+    }
+}
@@ -0,0 +1,155 @@
+package edu.washington.cs.oneswarm.f2f.network;
+
+import java.util.Arrays;
+
+/**
+ * Results of one OverlaySimulator scenario. Times are simulated
+ * microseconds, except CPU which is measured nanoseconds.
+ */
+public class SimReport {
+
+    final String name;
+
+    int started = 0;
+    int completed = 0;
+    long simMicros = 0;
+    long messages = 0;
+    long bytes = 0;
+    long payloadBytes = 0;
+
+    private long[] latencies = new long[64];
+    private int latencyCount = 0;
+    private long[] completionTimes = new long[16];
+    private int completionCount = 0;
+    private long[] nodeCpu = new long[0];
+
+    SimReport(String name) {
+        this.name = name;
+    }
+
+    void addLatency(long micros) {
+        if (latencyCount == latencies.length) {
+            latencies = Arrays.copyOf(latencies, latencies.length * 2);
+        }
+        latencies[latencyCount++] = micros;
+    }
+
+    void addCompletionTime(long micros) {
+        if (completionCount == completionTimes.length) {
+            completionTimes = Arrays.copyOf(completionTimes, completionTimes.length * 2);
+        }
+        completionTimes[completionCount++] = micros;
+    }
+
+    void setNodeCpu(long[] nanos) {
+        nodeCpu = nanos.clone();
+        Arrays.sort(nodeCpu);
+    }
+
+    public int getStarted() {
+        return started;
+    }
+
+    public int getCompleted() {
+        return completed;
+    }
+
+    public long getMessages() {
+        return messages;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    public long getPayloadBytes() {
+        return payloadBytes;
+    }
+
+    public long getSimulatedMicros() {
+        return simMicros;
+    }
+
+    /**
+     * @return payload bytes delivered per simulated second
+     */
+    public double getThroughput() {
+        return simMicros == 0 ? 0 : payloadBytes * 1000000.0 / simMicros;
+    }
+
+    /**
+     * @param p
+     *            0..100
+     * @return latency in microseconds below which p percent of the samples
+     *         are, -1 without samples
+     */
+    public long getLatencyPercentile(double p) {
+        return percentile(Arrays.copyOf(latencies, latencyCount), p);
+    }
+
+    public long getCompletionPercentile(double p) {
+        return percentile(Arrays.copyOf(completionTimes, completionCount), p);
+    }
+
+    public long getTotalCpuNanos() {
+        long total = 0;
+        for (long c : nodeCpu) {
+            total += c;
+        }
+        return total;
+    }
+
+    public long getNodeCpuPercentile(double p) {
+        return percentile(nodeCpu, p);
+    }
+
+    /**
+     * @return CPU nanoseconds spent over all nodes per MB of payload
+     */
+    public long getCpuPerMB() {
+        return payloadBytes == 0 ? 0 : (long) (getTotalCpuNanos() / (payloadBytes / 1048576.0));
+    }
+
+    private static long percentile(long[] values, double p) {
+        if (values.length == 0) {
+            return -1;
+        }
+        Arrays.sort(values);
+        int i = (int) Math.ceil(p / 100.0 * values.length) - 1;
+        return values[Math.max(0, Math.min(values.length - 1, i))];
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder b = new StringBuilder();
+        b.append(name).append(": ").append(completed).append("/").append(started)
+                .append(" completed in ").append(simMicros / 1000).append(" ms simulated\n");
+        b.append("  messages=").append(messages).append(" bytes=").append(bytes)
+                .append(" payload=").append(payloadBytes).append(" throughput=")
+                .append((long) getThroughput()).append(" B/s\n");
+        b.append("  latency ms: p50=").append(ms(getLatencyPercentile(50))).append(" p90=")
+                .append(ms(getLatencyPercentile(90))).append(" p99=")
+                .append(ms(getLatencyPercentile(99))).append(" max=")
+                .append(ms(getLatencyPercentile(100))).append("\n");
+        if (completionCount > 0) {
+            b.append("  completion ms: p50=").append(ms(getCompletionPercentile(50)))
+                    .append(" p90=").append(ms(getCompletionPercentile(90))).append(" max=")
+                    .append(ms(getCompletionPercentile(100))).append("\n");
+        }
+        b.append("  cpu per node us: p50=").append(getNodeCpuPercentile(50) / 1000)
+                .append(" p99=").append(getNodeCpuPercentile(99) / 1000).append(" max=")
+                .append(getNodeCpuPercentile(100) / 1000).append(" total ms=")
+                .append(getTotalCpuNanos() / 1000000);
+        if (payloadBytes > 0) {
+            b.append(" per MB us=").append(getCpuPerMB() / 1000);
+        }
+        return b.toString();
+    }
+
+    private static String ms(long micros) {
+        if (micros < 0) {
+            return "-";
+        }
+        return String.valueOf(micros / 1000.0);
+    }
+}
@@ -0,0 +1,136 @@
+package edu.washington.cs.oneswarm.f2f.permissions;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.bouncycastle.util.encoders.Base64;
+import org.junit.Assert;
+import org.junit.Test;
+
+import edu.washington.cs.oneswarm.test.util.OneSwarmTestBase;
+import edu.washington.cs.oneswarm.test.util.TestUtils;
+
+public class PermissionIndexTest extends OneSwarmTestBase {
+
+    private static byte[] bytes(int seed, int len) {
+        byte[] out = new byte[len];
+        for (int i = 0; i < len; i++) {
+            out[i] = (byte) (seed * 31 + i);
+        }
+        return out;
+    }
+
+    private static String base64(byte[] key) {
+        return new String(Base64.encode(key));
+    }
+
+    private static List<GroupBean> groups(GroupBean... groups) {
+        return new ArrayList<GroupBean>(Arrays.asList(groups));
+    }
+
+    @Test
+    public void testFriendAndGroupPermissions() throws Exception {
+        byte[] alice = bytes(1, 64);
+        byte[] bob = bytes(2, 64);
+        byte[] carol = bytes(3, 64);
+
+        GroupBean aliceGroup = GroupBean.createGroup("alice",
+                Collections.singletonList(base64(alice)), true, 3);
+        GroupBean team = GroupBean.createGroup("team", Arrays.asList(base64(alice), base64(bob)),
+                false, 4);
+
+        byte[] aliceOnly = bytes(10, 20);
+        byte[] teamOnly = bytes(11, 20);
+        byte[] everyone = bytes(12, 20);
+        byte[] publicOnly = bytes(13, 20);
+        byte[] unknown = bytes(14, 20);
+
+        PermissionIndex.Builder builder = new PermissionIndex.Builder();
+        builder.addSwarm(aliceOnly, groups(aliceGroup));
+        builder.addSwarm(teamOnly, groups(team));
+        builder.addSwarm(everyone, groups(GroupBean.ALL_FRIENDS));
+        builder.addSwarm(publicOnly, groups(GroupBean.PUBLIC));
+        PermissionIndex index = builder.build();
+
+        Assert.assertEquals(4, index.getSwarmCount());
+
+        Assert.assertTrue(index.hasPermissions(alice, aliceOnly));
+        Assert.assertFalse(index.hasPermissions(bob, aliceOnly));
+        Assert.assertTrue(index.hasPermissions(base64(alice), aliceOnly));
+
+        Assert.assertTrue(index.hasPermissions(alice, teamOnly));
+        Assert.assertTrue(index.hasPermissions(bob, teamOnly));
+        Assert.assertFalse(index.hasPermissions(carol, teamOnly));
+
+        // All friends covers keys that aren't in any group.
+        Assert.assertEquals(PermissionIndex.UNKNOWN, index.getFriendID(carol));
+        Assert.assertTrue(index.hasPermissions(carol, everyone));
+        Assert.assertTrue(index.hasAllFriendsPermission(everyone));
+        Assert.assertFalse(index.hasPublicPermission(everyone));
+
+        Assert.assertFalse(index.hasPermissions(alice, publicOnly));
+        Assert.assertTrue(index.hasPublicPermission(publicOnly));
+
+        Assert.assertFalse(index.hasPermissions(alice, unknown));
+        Assert.assertFalse(index.hasAllFriendsPermission(unknown));
+    }
+
+    @Test
+    public void testReplaceSwarm() throws Exception {
+        byte[] alice = bytes(1, 64);
+        byte[] swarm = bytes(10, 20);
+        GroupBean aliceGroup = GroupBean.createGroup("alice",
+                Collections.singletonList(base64(alice)), true, 3);
+
+        PermissionIndex.Builder builder = new PermissionIndex.Builder();
+        builder.addSwarm(swarm, groups(aliceGroup));
+        builder.addSwarm(swarm, groups());
+        PermissionIndex index = builder.build();
+
+        Assert.assertEquals(1, index.getSwarmCount());
+        Assert.assertFalse(index.hasPermissions(alice, swarm));
+    }
+
+    @Test
+    public void testDerivedIndex() throws Exception {
+        byte[] alice = bytes(1, 64);
+        byte[] bob = bytes(2, 64);
+        byte[] kept = bytes(10, 20);
+        byte[] removed = bytes(11, 20);
+        byte[] added = bytes(12, 20);
+        GroupBean aliceGroup = GroupBean.createGroup("alice",
+                Collections.singletonList(base64(alice)), true, 3);
+        GroupBean bobGroup = GroupBean.createGroup("bob", Collections.singletonList(base64(bob)),
+                true, 4);
+
+        PermissionIndex.Builder builder = new PermissionIndex.Builder();
+        builder.addSwarm(kept, groups(aliceGroup));
+        builder.addSwarm(removed, groups(GroupBean.ALL_FRIENDS));
+        PermissionIndex base = builder.build();
+
+        builder = new PermissionIndex.Builder(base);
+        builder.removeSwarm(removed);
+        builder.addSwarm(added, groups(bobGroup));
+        PermissionIndex derived = builder.build();
+
+        Assert.assertEquals(2, derived.getSwarmCount());
+        Assert.assertTrue(derived.hasPermissions(alice, kept));
+        Assert.assertFalse(derived.hasAllFriendsPermission(removed));
+        Assert.assertFalse(derived.hasPermissions(alice, removed));
+        Assert.assertTrue(derived.hasPermissions(bob, added));
+        Assert.assertFalse(derived.hasPermissions(alice, added));
+
+        // the index it was derived from is unchanged
+        Assert.assertEquals(2, base.getSwarmCount());
+        Assert.assertTrue(base.hasAllFriendsPermission(removed));
+        Assert.assertFalse(base.hasPermissions(bob, added));
+        Assert.assertEquals(PermissionIndex.UNKNOWN, base.getFriendID(bob));
+    }
+
+    /** Boilerplate code for running as executable. */
+    public static void main(String[] args) throws Exception {
+        TestUtils.swtCompatibleTestRunner(PermissionIndexTest.class);
+    }
+}
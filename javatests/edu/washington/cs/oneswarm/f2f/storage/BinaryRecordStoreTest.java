@@ -0,0 +1,276 @@
+package edu.washington.cs.oneswarm.f2f.storage;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.washington.cs.oneswarm.test.util.OneSwarmTestBase;
+import edu.washington.cs.oneswarm.test.util.TestUtils;
+
+public class BinaryRecordStoreTest extends OneSwarmTestBase {
+
+    private static final BinaryRecordStore.RecordCodec<String> CODEC =
+            new BinaryRecordStore.RecordCodec<String>() {
+        public void write(String record, DataOutputStream out) throws IOException {
+            BinaryRecordStore.writeString(out, record);
+        }
+
+        public String read(DataInputStream in, int version) throws IOException {
+            return BinaryRecordStore.readString(in);
+        }
+    };
+
+    private File dir;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = File.createTempFile("BinaryRecordStoreTest", "");
+        dir.delete();
+        dir.mkdirs();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void testSnapshotAndLog() throws Exception {
+        Map<String, String> records = records(2000);
+        BinaryRecordStore<String> store = create();
+        Assert.assertFalse(store.exists());
+        Assert.assertEquals(2000, store.sync(records, false, false));
+        Assert.assertTrue(store.exists());
+
+        // nothing changed, nothing written
+        Assert.assertEquals(0, store.sync(records, false, false));
+        Assert.assertFalse(new File(dir, "test.log").exists());
+
+        records.put("key7", "changed");
+        records.put("new", null);
+        Assert.assertEquals(2, store.sync(records, false, false));
+        Assert.assertTrue(new File(dir, "test.log").exists());
+
+        // loaded by a fresh store, decoded in parallel
+        Assert.assertEquals(records, create().load());
+
+        records.remove("key8");
+        try {
+            store.sync(records, false, false);
+            Assert.fail("removal without allowRemovals");
+        } catch (IOException e) {
+        }
+        Assert.assertEquals(1, store.sync(records, true, false));
+        Assert.assertEquals(records, create().load());
+
+        // compaction folds the log into the snapshot and keeps a backup
+        Assert.assertEquals(0, store.sync(records, false, true));
+        Assert.assertFalse(new File(dir, "test.log").exists());
+        Assert.assertTrue(new File(dir, "test.bin.backup").exists());
+        Assert.assertEquals(records, create().load());
+    }
+
+    @Test
+    public void testTornLogTail() throws Exception {
+        Map<String, String> records = records(10);
+        BinaryRecordStore<String> store = create();
+        store.sync(records, false, false);
+        records.put("key1", "first");
+        store.sync(records, false, false);
+        File log = new File(dir, "test.log");
+        long good = log.length();
+        records.put("key2", "second");
+        store.sync(records, false, false);
+
+        RandomAccessFile raf = new RandomAccessFile(log, "rw");
+        raf.setLength(log.length() - 3);
+        raf.close();
+
+        // the torn put of key2 is dropped
+        records.put("key2", "value2");
+        BinaryRecordStore<String> reloaded = create();
+        Assert.assertEquals(records, reloaded.load());
+        Assert.assertEquals(good, log.length());
+
+        // appends continue after the last good entry
+        records.put("key3", "third");
+        reloaded.sync(records, false, false);
+        Assert.assertEquals(records, create().load());
+    }
+
+    @Test
+    public void testStaleLogIgnored() throws Exception {
+        Map<String, String> records = records(10);
+        BinaryRecordStore<String> store = create();
+        store.sync(records, false, false);
+        records.put("key1", "logged");
+        store.sync(records, false, false);
+
+        // as if compaction crashed after renaming the new snapshot in but
+        // before deleting the log
+        File log = new File(dir, "test.log");
+        File saved = new File(dir, "saved.log");
+        log.renameTo(saved);
+        records.put("key1", "compacted");
+        store.sync(records, false, true);
+        saved.renameTo(log);
+
+        Assert.assertEquals(records, create().load());
+    }
+
+    @Test
+    public void testGarbageLogTail() throws Exception {
+        Map<String, String> records = records(10);
+        BinaryRecordStore<String> store = create();
+        store.sync(records, false, false);
+        records.put("key1", "first");
+        store.sync(records, false, false);
+        File log = new File(dir, "test.log");
+        long good = log.length();
+
+        // a huge length and garbage where the next entry would start
+        RandomAccessFile raf = new RandomAccessFile(log, "rw");
+        raf.seek(good);
+        raf.writeInt(Integer.MAX_VALUE);
+        raf.writeByte(1);
+        raf.writeShort(0xffff);
+        raf.writeInt(-1);
+        raf.close();
+
+        Assert.assertEquals(records, create().load());
+        Assert.assertEquals(good, log.length());
+    }
+
+    @Test
+    public void testCorruptSnapshotLoadsBackup() throws Exception {
+        Map<String, String> records = records(10);
+        BinaryRecordStore<String> store = create();
+        store.sync(records, false, false);
+        Map<String, String> backedUp = new HashMap<String, String>(records);
+        records.put("key1", "compacted");
+        store.sync(records, false, true);
+        records.put("key2", "logged");
+        store.sync(records, false, false);
+
+        File snapshot = new File(dir, "test.bin");
+        File backup = new File(dir, "test.bin.backup");
+        long backupLength = backup.length();
+        RandomAccessFile raf = new RandomAccessFile(snapshot, "rw");
+        raf.seek(snapshot.length() / 2);
+        raf.writeByte(raf.readByte() ^ 0xff);
+        raf.close();
+
+        // the log belongs to the damaged snapshot and is not replayed over the backup
+        BinaryRecordStore<String> reloaded = create();
+        Assert.assertEquals(backedUp, reloaded.load());
+
+        // the backup isn't rotated out, the damaged files are moved aside
+        backedUp.put("key3", "after");
+        reloaded.sync(backedUp, false, false);
+        Assert.assertEquals(backupLength, backup.length());
+        Assert.assertTrue(new File(dir, "test.bin.corrupt").exists());
+        Assert.assertTrue(new File(dir, "test.log.corrupt").exists());
+        Assert.assertEquals(backedUp, create().load());
+    }
+
+    @Test
+    public void testUnreadableStoreKept() throws Exception {
+        Map<String, String> records = records(10);
+        BinaryRecordStore<String> store = create();
+        store.sync(records, false, false);
+        store.sync(records, false, true);
+        for (String name : new String[] { "test.bin", "test.bin.backup" }) {
+            RandomAccessFile raf = new RandomAccessFile(new File(dir, name), "rw");
+            raf.setLength(raf.length() - 1);
+            raf.close();
+        }
+
+        BinaryRecordStore<String> reloaded = create();
+        try {
+            reloaded.load();
+            Assert.fail("both copies are truncated");
+        } catch (IOException e) {
+        }
+        reloaded.sync(records(2), false, false);
+        Assert.assertTrue(new File(dir, "test.bin.corrupt").exists());
+        Assert.assertTrue(new File(dir, "test.bin.backup.corrupt").exists());
+        Assert.assertFalse(new File(dir, "test.bin.backup").exists());
+        Assert.assertEquals(records(2), create().load());
+    }
+
+    @Test
+    public void testNewRecordVersionCompacts() throws Exception {
+        Map<String, String> records = records(10);
+        BinaryRecordStore<String> store = create();
+        store.sync(records, false, false);
+        records.put("key1", "logged");
+        store.sync(records, false, false);
+
+        // version 2 prefixes each record with its length, the snapshot and log hold version 1
+        BinaryRecordStore<String> upgraded = new BinaryRecordStore<String>(dir, "test", 2,
+                new VersionedCodec(2));
+        Assert.assertEquals(records, upgraded.load());
+
+        // every record is re-encoded, and not appended to a log that would be decoded as version 1
+        records.put("key2", "upgraded");
+        Assert.assertEquals(records.size(), upgraded.sync(records, false, false));
+        Assert.assertFalse(new File(dir, "test.log").exists());
+
+        records.put("key3", "logged");
+        upgraded.sync(records, false, false);
+        Assert.assertTrue(new File(dir, "test.log").exists());
+        Assert.assertEquals(records, new BinaryRecordStore<String>(dir, "test", 2,
+                new VersionedCodec(2)).load());
+    }
+
+    private static class VersionedCodec implements BinaryRecordStore.RecordCodec<String> {
+        private final int version;
+
+        VersionedCodec(int version) {
+            this.version = version;
+        }
+
+        public void write(String record, DataOutputStream out) throws IOException {
+            if (version >= 2) {
+                out.writeInt(record == null ? -1 : record.length());
+            }
+            BinaryRecordStore.writeString(out, record);
+        }
+
+        public String read(DataInputStream in, int version) throws IOException {
+            if (version >= 2) {
+                in.readInt();
+            }
+            return BinaryRecordStore.readString(in);
+        }
+    }
+
+    private BinaryRecordStore<String> create() {
+        return new BinaryRecordStore<String>(dir, "test", 1, CODEC);
+    }
+
+    private static Map<String, String> records(int count) {
+        Map<String, String> records = new HashMap<String, String>();
+        for (int i = 0; i < count; i++) {
+            records.put("key" + i, "value" + i);
+        }
+        return records;
+    }
+
+    /** Boilerplate code for running as executable. */
+    public static void main(String[] args) throws Exception {
+        TestUtils.swtCompatibleTestRunner(BinaryRecordStoreTest.class);
+    }
+}
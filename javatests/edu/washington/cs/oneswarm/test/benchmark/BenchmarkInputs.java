@@ -0,0 +1,194 @@
+package edu.washington.cs.oneswarm.test.benchmark;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.bouncycastle.util.encoders.Base64;
+import org.gudy.azureus2.core3.util.ByteFormatter;
+
+import edu.washington.cs.oneswarm.f2f.FileCollection;
+import edu.washington.cs.oneswarm.f2f.FileList;
+import edu.washington.cs.oneswarm.f2f.FileListFile;
+import edu.washington.cs.oneswarm.f2f.friends.FriendBean;
+import edu.washington.cs.oneswarm.f2f.permissions.SwarmBean;
+
+/**
+ * Inputs for the benchmarks. Everything is derived from fixed seeds so runs
+ * on different machines, or before and after a change, see the same data
+ * without needing files from a real install.
+ */
+class BenchmarkInputs {
+
+    private static final String[] WORDS = { "live", "concert", "album", "remastered", "the",
+            "complete", "series", "season", "episode", "lecture", "notes", "ubuntu", "linux",
+            "desktop", "amd64", "source", "code", "photos", "vacation", "summer", "winter",
+            "documentary", "nature", "ocean", "mountain", "symphony", "orchestra", "jazz",
+            "quartet", "acoustic", "session", "demo", "tapes", "collection", "archive", "public",
+            "domain", "film", "classic", "silent", "radio", "drama", "podcast", "interview",
+            "history", "science", "physics", "lectures", "course", "draft" };
+
+    private static final String[] EXTENSIONS = { ".mp3", ".flac", ".avi", ".mkv", ".jpg",
+            ".pdf", ".txt", ".iso", ".ogg", ".zip" };
+
+    /**
+     * A map shaped like a multi file .torrent: announce data, an info dict
+     * with per file entries and 20 byte piece hashes.
+     */
+    static Map torrent(int files, int pieces) {
+        Random random = new Random(1);
+        Map info = new HashMap();
+        info.put("name", words(random, 4).getBytes());
+        info.put("piece length", new Long(256 * 1024));
+        byte[] hashes = new byte[pieces * 20];
+        random.nextBytes(hashes);
+        info.put("pieces", hashes);
+        List fileList = new ArrayList();
+        for (int i = 0; i < files; i++) {
+            Map file = new HashMap();
+            file.put("length", new Long(random.nextInt(64 * 1024 * 1024)));
+            List path = new ArrayList();
+            path.add(words(random, 2).getBytes());
+            path.add(fileName(random).getBytes());
+            file.put("path", path);
+            fileList.add(file);
+        }
+        info.put("files", fileList);
+
+        Map torrent = new HashMap();
+        torrent.put("announce", "dht://0123456789abcdef0123456789abcdef01234567.dht".getBytes());
+        torrent.put("creation date", new Long(1300000000L));
+        torrent.put("comment", words(random, 8).getBytes());
+        torrent.put("info", info);
+        return torrent;
+    }
+
+    /**
+     * A friend's file list with the given number of swarms, each with a few
+     * files and the optional fields OneSwarm fills in.
+     */
+    static FileList fileList(int collections) {
+        Random random = new Random(2);
+        List<FileCollection> elements = new ArrayList<FileCollection>();
+        for (int i = 0; i < collections; i++) {
+            byte[] hash = new byte[20];
+            random.nextBytes(hash);
+            List<FileListFile> children = new ArrayList<FileListFile>();
+            int files = 1 + random.nextInt(12);
+            for (int f = 0; f < files; f++) {
+                FileListFile file = new FileListFile(fileName(random),
+                        random.nextInt(256 * 1024 * 1024));
+                byte[] sha1 = new byte[20];
+                random.nextBytes(sha1);
+                file.setSha1Hash(sha1);
+                children.add(file);
+            }
+            FileCollection collection = new FileCollection(FileCollection.TYPE_BITTORRENT,
+                    new String(Base64.encode(hash)), words(random, 2 + random.nextInt(4)), "",
+                    "", children, 1300000000000L + random.nextInt(1000000000));
+            collection.setOptionalField(FileCollection.ONESWARM_TAGS_ATTRIBUTE, words(random, 2));
+            elements.add(collection);
+        }
+        return new FileList(elements);
+    }
+
+    /**
+     * Search strings as typed in the search box, some single words, some
+     * several, some with quoted phrases.
+     */
+    static String[] searches(int count) {
+        Random random = new Random(3);
+        String[] searches = new String[count];
+        for (int i = 0; i < count; i++) {
+            switch (random.nextInt(4)) {
+            case 0:
+                searches[i] = WORDS[random.nextInt(WORDS.length)];
+                break;
+            case 1:
+                searches[i] = words(random, 2);
+                break;
+            case 2:
+                searches[i] = "\"" + words(random, 2) + "\" "
+                        + WORDS[random.nextInt(WORDS.length)];
+                break;
+            default:
+                searches[i] = WORDS[random.nextInt(WORDS.length)]
+                        + EXTENSIONS[random.nextInt(EXTENSIONS.length)];
+                break;
+            }
+        }
+        return searches;
+    }
+
+    /**
+     * Friends as saved by FriendManager, keyed by base64 public key, with
+     * 1024 bit RSA sized keys and DHT locations.
+     */
+    static Map<String, FriendBean> friends(int count) {
+        Random random = new Random(4);
+        Map<String, FriendBean> friends = new HashMap<String, FriendBean>();
+        for (int i = 0; i < count; i++) {
+            FriendBean bean = new FriendBean();
+            bean.setPublicKey(new String(Base64.encode(bytes(162, random.nextLong()))));
+            bean.setNick(words(random, 2));
+            bean.setSourceNetwork("Manual");
+            bean.setGroup(random.nextBoolean() ? "" : WORDS[random.nextInt(WORDS.length)]);
+            bean.setDateAdded(1250000000000L + random.nextInt(1000000000));
+            bean.setLastConnectDate(1280000000000L + random.nextInt(1000000000));
+            bean.setLastConnectIP("10." + random.nextInt(256) + "." + random.nextInt(256) + "."
+                    + random.nextInt(256));
+            bean.setLastConnectPort(1024 + random.nextInt(60000));
+            bean.setTotalDownloaded(random.nextLong() >>> 24);
+            bean.setTotalUploaded(random.nextLong() >>> 24);
+            bean.setCanSeeFileList(random.nextBoolean());
+            bean.setDhtReadLocation(new String(Base64.encode(bytes(20, random.nextLong()))));
+            bean.setDhtWriteLocation(new String(Base64.encode(bytes(20, random.nextLong()))));
+            friends.put(bean.getPublicKey(), bean);
+        }
+        return friends;
+    }
+
+    /**
+     * Per swarm permissions in the layout of the v1 permissions file: hex
+     * infohash to the ids of the one to three groups allowed to see it.
+     */
+    static Map<String, SwarmBean> swarmPermissions(int count, int groups) {
+        Random random = new Random(5);
+        Map<String, SwarmBean> swarms = new HashMap<String, SwarmBean>();
+        for (int i = 0; i < count; i++) {
+            SwarmBean bean = new SwarmBean();
+            bean.setHexHash(ByteFormatter.encodeString(bytes(20, random.nextLong())));
+            List<String> permitted = new ArrayList<String>();
+            for (int g = 1 + random.nextInt(3); g > 0; g--) {
+                permitted.add(Integer.toString(1 + random.nextInt(groups)));
+            }
+            bean.setPermitted_groups(permitted);
+            swarms.put(bean.getHexHash(), bean);
+        }
+        return swarms;
+    }
+
+    static byte[] bytes(int length, long seed) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    private static String fileName(Random random) {
+        return String.format("%02d %s%s", random.nextInt(30), words(random, 1 + random.nextInt(3)),
+                EXTENSIONS[random.nextInt(EXTENSIONS.length)]);
+    }
+
+    private static String words(Random random, int count) {
+        StringBuilder b = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                b.append(' ');
+            }
+            b.append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        return b.toString();
+    }
+}
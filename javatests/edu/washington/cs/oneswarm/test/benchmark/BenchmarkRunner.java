@@ -0,0 +1,251 @@
+package edu.washington.cs.oneswarm.test.benchmark;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs the microbenchmarks of the core and f2f hot paths and reports
+ * throughput per benchmark, optionally as JSON for comparing runs.
+ *
+ * Usage: BenchmarkRunner [-warmup N] [-iterations N] [-time ms] [-json file]
+ * [name-filter...]
+ *
+ * Each benchmark runs N warmup and N measured iterations of the given time.
+ * The JSON output follows the layout of JMH's JSON result format (benchmark,
+ * mode, primaryMetric with score, scoreError and rawData) so the usual JMH
+ * result viewers and comparison scripts can read it. All inputs are generated
+ * from fixed seeds, no input files or network are needed. The SSL benchmarks
+ * use the profile's SSL key and a loopback connection.
+ */
+public class BenchmarkRunner {
+
+    // clock reads per op would dominate the shortest benchmarks
+    private static final int CLOCK_CHECK_INTERVAL = 16;
+
+    // 99.9% confidence, as JMH reports
+    private static final double Z_999 = 3.291;
+
+    private static volatile Object sink;
+
+    public static void main(String[] args) throws Exception {
+        int warmup = 5;
+        int iterations = 10;
+        long timeMs = 1000;
+        File json = null;
+        List<String> filters = new ArrayList<String>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-warmup")) {
+                warmup = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-iterations")) {
+                iterations = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-time")) {
+                timeMs = Long.parseLong(args[++i]);
+            } else if (args[i].equals("-json")) {
+                json = new File(args[++i]);
+            } else if (args[i].startsWith("-")) {
+                System.err.println("Usage: BenchmarkRunner [-warmup N] [-iterations N] "
+                        + "[-time ms] [-json file] [name-filter...]");
+                System.exit(1);
+            } else {
+                filters.add(args[i]);
+            }
+        }
+        // the code under test logs at info and fine, keep that out of the
+        // measurements
+        Logger.getLogger("").setLevel(Level.WARNING);
+
+        List<Microbenchmark> benchmarks = new ArrayList<Microbenchmark>();
+        benchmarks.addAll(CoreBenchmarks.create());
+        benchmarks.addAll(F2FBenchmarks.create());
+        benchmarks.addAll(StoreBenchmarks.create());
+
+        List<Result> results = new ArrayList<Result>();
+        for (Microbenchmark benchmark : benchmarks) {
+            if (!matches(benchmark.getName(), filters)) {
+                continue;
+            }
+            Result result = run(benchmark, warmup, iterations, timeMs);
+            results.add(result);
+            System.out.println(result);
+        }
+
+        if (json != null) {
+            writeJson(json, results, warmup, iterations, timeMs);
+            System.out.println("wrote " + json.getPath());
+        }
+    }
+
+    private static boolean matches(String name, List<String> filters) {
+        if (filters.isEmpty()) {
+            return true;
+        }
+        for (String filter : filters) {
+            if (name.contains(filter)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Result run(Microbenchmark benchmark, int warmup, int iterations, long timeMs)
+            throws Exception {
+        benchmark.setUp();
+        try {
+            for (int i = 0; i < warmup; i++) {
+                iteration(benchmark, timeMs);
+            }
+            double[] scores = new double[iterations];
+            for (int i = 0; i < iterations; i++) {
+                scores[i] = iteration(benchmark, timeMs);
+            }
+            return new Result(benchmark, scores);
+        } finally {
+            benchmark.tearDown();
+        }
+    }
+
+    /**
+     * @return ops per second
+     */
+    private static double iteration(Microbenchmark benchmark, long timeMs) throws Exception {
+        long ops = 0;
+        Object last = null;
+        long start = System.nanoTime();
+        long end = start + timeMs * 1000000L;
+        long now;
+        do {
+            for (int i = 0; i < CLOCK_CHECK_INTERVAL; i++) {
+                last = benchmark.run();
+            }
+            ops += CLOCK_CHECK_INTERVAL;
+            now = System.nanoTime();
+        } while (now < end);
+        sink = last;
+        return ops * 1000000000.0 / (now - start);
+    }
+
+    private static void writeJson(File file, List<Result> results, int warmup, int iterations,
+            long timeMs) throws IOException {
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (dir != null) {
+            dir.mkdirs();
+        }
+        PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file),
+                "UTF-8"));
+        try {
+            out.println("[");
+            for (int r = 0; r < results.size(); r++) {
+                Result result = results.get(r);
+                out.println("    {");
+                out.println("        \"benchmark\" : " + quote(result.name) + ",");
+                out.println("        \"mode\" : \"thrpt\",");
+                out.println("        \"threads\" : 1,");
+                out.println("        \"forks\" : 0,");
+                out.println("        \"jvm\" : " + quote(System.getProperty("java.home")) + ",");
+                out.println("        \"vmVersion\" : " + quote(System.getProperty("java.version"))
+                        + ",");
+                out.println("        \"warmupIterations\" : " + warmup + ",");
+                out.println("        \"warmupTime\" : \"" + timeMs + " ms\",");
+                out.println("        \"measurementIterations\" : " + iterations + ",");
+                out.println("        \"measurementTime\" : \"" + timeMs + " ms\",");
+                out.println("        \"primaryMetric\" : "
+                        + metric(result.getScore(), result.getError(), "ops/s", result.scores, 1)
+                        + (result.bytesPerOp > 0 ? "," : ""));
+                if (result.bytesPerOp > 0) {
+                    double mb = result.bytesPerOp / (1024.0 * 1024.0);
+                    out.println("        \"secondaryMetrics\" : {");
+                    out.println("            \"MB/s\" : "
+                            + metric(result.getScore() * mb, result.getError() * mb, "MB/s",
+                                    result.scores, mb));
+                    out.println("        }");
+                }
+                out.println("    }" + (r < results.size() - 1 ? "," : ""));
+            }
+            out.println("]");
+        } finally {
+            out.close();
+        }
+    }
+
+    private static String metric(double score, double error, String unit, double[] raw,
+            double scale) {
+        StringBuilder b = new StringBuilder();
+        b.append("{ \"score\" : ").append(score).append(", \"scoreError\" : ")
+                .append(Double.isNaN(error) ? "\"NaN\"" : String.valueOf(error))
+                .append(", \"scoreUnit\" : ").append(quote(unit)).append(", \"rawData\" : [ [ ");
+        for (int i = 0; i < raw.length; i++) {
+            if (i > 0) {
+                b.append(", ");
+            }
+            b.append(raw[i] * scale);
+        }
+        b.append(" ] ] }");
+        return b.toString();
+    }
+
+    private static String quote(String s) {
+        StringBuilder b = new StringBuilder("\"");
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                b.append('\\').append(c);
+            } else if (c < 0x20) {
+                b.append(String.format("\\u%04x", (int) c));
+            } else {
+                b.append(c);
+            }
+        }
+        return b.append('"').toString();
+    }
+
+    private static class Result {
+        final String name;
+        final long bytesPerOp;
+        final double[] scores;
+
+        Result(Microbenchmark benchmark, double[] scores) {
+            this.name = benchmark.getName();
+            this.bytesPerOp = benchmark.getBytesPerOp();
+            this.scores = scores;
+        }
+
+        double getScore() {
+            double sum = 0;
+            for (double s : scores) {
+                sum += s;
+            }
+            return sum / scores.length;
+        }
+
+        double getError() {
+            if (scores.length < 2) {
+                return Double.NaN;
+            }
+            double mean = getScore();
+            double sq = 0;
+            for (double s : scores) {
+                sq += (s - mean) * (s - mean);
+            }
+            double stddev = Math.sqrt(sq / (scores.length - 1));
+            return Z_999 * stddev / Math.sqrt(scores.length);
+        }
+
+        @Override
+        public String toString() {
+            double score = getScore();
+            String line = String.format("%-48s %14.1f +- %10.1f ops/s %12.0f ns/op", name, score,
+                    getError(), 1000000000.0 / score);
+            if (bytesPerOp > 0) {
+                line += String.format(" %8.1f MB/s", score * bytesPerOp / (1024.0 * 1024.0));
+            }
+            return line;
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package edu.washington.cs.oneswarm.test.benchmark;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.gudy.azureus2.core3.disk.DiskManager;
+import org.gudy.azureus2.core3.util.BDecoder;
+import org.gudy.azureus2.core3.util.BDecoderBuffer;
+import org.gudy.azureus2.core3.util.BEncoder;
+import org.gudy.azureus2.core3.util.DirectByteBuffer;
+import org.gudy.azureus2.core3.util.DirectByteBufferPool;
+import org.gudy.azureus2.core3.util.SHA1Hasher;
+
+/**
+ * Benchmarks of the Azureus core utilities on OneSwarm's hot paths.
+ */
+class CoreBenchmarks {
+
+    // a 1000 file, 4000 piece torrent is ~100K encoded
+    private static final int TORRENT_FILES = 1000;
+    private static final int TORRENT_PIECES = 4000;
+
+    // message size and messages per delivery to the SSL filter
+    private static final int[][] SSL_DELIVERIES = { { 150, 16 }, { 1000, 64 },
+            { DiskManager.BLOCK_SIZE, 4 } };
+    private static final int SSL_WRITE_BATCH_BYTES = 32 * 1024;
+
+    static List<Microbenchmark> create() throws Exception {
+        List<Microbenchmark> benchmarks = new ArrayList<Microbenchmark>();
+
+        final Map torrent = BenchmarkInputs.torrent(TORRENT_FILES, TORRENT_PIECES);
+        final byte[] encoded = BEncoder.encode(torrent);
+
+        benchmarks.add(new Microbenchmark("BDecoder.decode", encoded.length) {
+            @Override
+            public Object run() throws Exception {
+                return BDecoder.decode(encoded);
+            }
+        });
+        benchmarks.add(new Microbenchmark("BDecoderBuffer.decode", encoded.length) {
+            private final ByteBuffer buffer = ByteBuffer.wrap(encoded);
+
+            @Override
+            public Object run() throws Exception {
+                return BDecoderBuffer.decode(buffer);
+            }
+        });
+        benchmarks.add(new Microbenchmark("BEncoder.encode", encoded.length) {
+            @Override
+            public Object run() throws Exception {
+                return BEncoder.encode(torrent);
+            }
+        });
+
+        benchmarks.add(new Microbenchmark("DirectByteBufferPool.getBuffer+returnToPool", 0) {
+            @Override
+            public Object run() throws Exception {
+                DirectByteBuffer buffer = DirectByteBufferPool.getBuffer(
+                        DirectByteBuffer.AL_OTHER, DiskManager.BLOCK_SIZE);
+                buffer.returnToPool();
+                return buffer;
+            }
+        });
+        benchmarks.add(new Microbenchmark("DirectByteBufferPool.getBuffer+returnToPool (1K)", 0) {
+            @Override
+            public Object run() throws Exception {
+                DirectByteBuffer buffer = DirectByteBufferPool.getBuffer(
+                        DirectByteBuffer.AL_OTHER, 1024);
+                buffer.returnToPool();
+                return buffer;
+            }
+        });
+
+        final byte[] block = BenchmarkInputs.bytes(DiskManager.BLOCK_SIZE, 4);
+        benchmarks.add(new Microbenchmark("SHA1Hasher.calculateHash (16K)", block.length) {
+            private final SHA1Hasher hasher = new SHA1Hasher();
+
+            @Override
+            public Object run() throws Exception {
+                return hasher.calculateHash(block);
+            }
+        });
+        final ByteBuffer piece = ByteBuffer.allocateDirect(256 * 1024);
+        piece.put(BenchmarkInputs.bytes(piece.capacity(), 5)).flip();
+        benchmarks.add(new Microbenchmark("SHA1Hasher.calculateHash (256K direct)", piece
+                .capacity()) {
+            private final SHA1Hasher hasher = new SHA1Hasher();
+
+            @Override
+            public Object run() throws Exception {
+                piece.rewind();
+                return hasher.calculateHash(piece);
+            }
+        });
+
+        benchmarks.add(new PiecePickerBenchmark());
+
+        // search and ack sized messages, overlay data messages and bulk
+        // BitTorrent blocks, one record per socket write and batched
+        for (int[] delivery : SSL_DELIVERIES) {
+            benchmarks.add(new SslWriteBenchmark(0, delivery[0], delivery[1]));
+            benchmarks.add(new SslWriteBenchmark(SSL_WRITE_BATCH_BYTES, delivery[0], delivery[1]));
+        }
+        return benchmarks;
+    }
+}
@@ -0,0 +1,167 @@
+package edu.washington.cs.oneswarm.test.benchmark;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.gudy.azureus2.core3.util.DirectByteBuffer;
+
+import com.aelitis.azureus.core.networkmanager.RawMessage;
+import com.aelitis.azureus.core.networkmanager.Transport;
+import com.aelitis.azureus.core.peermanager.messaging.Message;
+
+import edu.washington.cs.oneswarm.f2f.FileCollection;
+import edu.washington.cs.oneswarm.f2f.FileList;
+import edu.washington.cs.oneswarm.f2f.FileListManager;
+import edu.washington.cs.oneswarm.f2f.datagram.DatagramBenchmarks;
+import edu.washington.cs.oneswarm.f2f.messaging.OSF2FChannelDataMsg;
+import edu.washington.cs.oneswarm.f2f.messaging.OSF2FHashSearch;
+import edu.washington.cs.oneswarm.f2f.messaging.OSF2FMessage;
+import edu.washington.cs.oneswarm.f2f.messaging.OSF2FMessageDecoder;
+import edu.washington.cs.oneswarm.f2f.messaging.OSF2FMessageFactory;
+
+/**
+ * Benchmarks of the friend-to-friend layer: file lists, text search,
+ * datagram crypto and overlay message decoding.
+ */
+class F2FBenchmarks {
+
+    private static final int FILE_LIST_COLLECTIONS = 2000;
+    // one full overlay data message per 16 small ones, like a search heavy
+    // connection that also forwards a transfer
+    private static final int DECODE_SMALL_MESSAGES = 16;
+
+    static List<Microbenchmark> create() throws Exception {
+        List<Microbenchmark> benchmarks = new ArrayList<Microbenchmark>();
+
+        final FileList fileList = BenchmarkInputs.fileList(FILE_LIST_COLLECTIONS);
+        final byte[] basic = FileListManager.encode_basic(fileList, true);
+        final byte[] extended = FileListManager.encode_extended(fileList, true);
+
+        benchmarks.add(new Microbenchmark("FileListManager.encode_basic", basic.length) {
+            @Override
+            public Object run() throws Exception {
+                return FileListManager.encode_basic(fileList, true);
+            }
+        });
+        benchmarks.add(new Microbenchmark("FileListManager.encode_extended", extended.length) {
+            @Override
+            public Object run() throws Exception {
+                return FileListManager.encode_extended(fileList, true);
+            }
+        });
+        benchmarks.add(new Microbenchmark("FileListManager.decode_basic", basic.length) {
+            @Override
+            public Object run() throws Exception {
+                return FileListManager.decode_basic(basic);
+            }
+        });
+        benchmarks.add(new Microbenchmark("FileListManager.decode_extended", extended.length) {
+            @Override
+            public Object run() throws Exception {
+                return FileListManager.decode_extended(extended);
+            }
+        });
+
+        final String[] searches = BenchmarkInputs.searches(64);
+        benchmarks.add(new Microbenchmark("FileCollection.searchMatches (2000 swarms)", 0) {
+            private int next = 0;
+
+            @Override
+            public Object run() throws Exception {
+                String search = searches[next];
+                next = (next + 1) % searches.length;
+                int hits = 0;
+                for (FileCollection collection : fileList.getElements()) {
+                    if (collection.searchMatches(search) != null) {
+                        hits++;
+                    }
+                }
+                return hits;
+            }
+        });
+
+        benchmarks.addAll(DatagramBenchmarks.create());
+        benchmarks.add(new MessageDecodeBenchmark());
+        return benchmarks;
+    }
+
+    /**
+     * OSF2FMessageDecoder.performStreamDecode over a transport that replays
+     * the same encoded messages.
+     */
+    private static class MessageDecodeBenchmark extends Microbenchmark {
+        private static final byte[] STREAM = encodeStream();
+
+        private final ByteBuffer source = ByteBuffer.wrap(STREAM);
+        private OSF2FMessageDecoder decoder;
+        private Transport transport;
+
+        MessageDecodeBenchmark() {
+            super("OSF2FMessageDecoder.performStreamDecode", STREAM.length);
+        }
+
+        @Override
+        public void setUp() throws Exception {
+            decoder = new OSF2FMessageDecoder();
+            transport = Stubs.create(Transport.class, "read", new Stubs.Answer() {
+                public Object answer(Object[] args) {
+                    ByteBuffer[] buffers = (ByteBuffer[]) args[0];
+                    int offset = (Integer) args[1];
+                    int length = (Integer) args[2];
+                    long read = 0;
+                    for (int i = offset; i < offset + length && source.hasRemaining(); i++) {
+                        ByteBuffer b = buffers[i];
+                        int n = Math.min(b.remaining(), source.remaining());
+                        ByteBuffer slice = source.duplicate();
+                        slice.limit(slice.position() + n);
+                        b.put(slice);
+                        source.position(source.position() + n);
+                        read += n;
+                    }
+                    return Long.valueOf(read);
+                }
+            });
+        }
+
+        @Override
+        public Object run() throws Exception {
+            source.rewind();
+            decoder.performStreamDecode(transport, STREAM.length);
+            Message[] messages = decoder.removeDecodedMessages();
+            for (Message message : messages) {
+                message.destroy();
+            }
+            return messages;
+        }
+
+        @Override
+        public void tearDown() {
+            decoder.destroy();
+        }
+
+        private static byte[] encodeStream() {
+            OSF2FMessageFactory.init();
+            List<OSF2FMessage> messages = new ArrayList<OSF2FMessage>();
+            for (int i = 0; i < DECODE_SMALL_MESSAGES; i++) {
+                messages.add(new OSF2FHashSearch(OSF2FMessage.CURRENT_VERSION, i, i * 31L));
+            }
+            messages.add(new OSF2FChannelDataMsg(OSF2FMessage.CURRENT_VERSION, 1,
+                    new DirectByteBuffer(ByteBuffer.wrap(BenchmarkInputs.bytes(
+                            OSF2FMessage.MAX_PAYLOAD_SIZE, 9)))));
+
+            ByteBuffer stream = ByteBuffer.allocate(2 * OSF2FMessage.MAX_MESSAGE_SIZE);
+            for (OSF2FMessage message : messages) {
+                RawMessage raw = OSF2FMessageFactory.createOSF2FRawMessage(message);
+                for (DirectByteBuffer data : raw.getRawData()) {
+                    stream.put(data.getBuffer(DirectByteBuffer.SS_NET).duplicate());
+                }
+                raw.destroy();
+            }
+            stream.flip();
+            byte[] bytes = new byte[stream.remaining()];
+            stream.get(bytes);
+            return bytes;
+        }
+    }
+}
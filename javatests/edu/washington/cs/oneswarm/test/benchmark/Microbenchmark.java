@@ -0,0 +1,41 @@
+package edu.washington.cs.oneswarm.test.benchmark;
+
+/**
+ * One operation on a hot path, run repeatedly by {@link BenchmarkRunner}.
+ * Inputs are built in {@link #setUp()} so only run() is measured.
+ */
+public abstract class Microbenchmark {
+
+    private final String name;
+    private final long bytesPerOp;
+
+    /**
+     * @param bytesPerOp
+     *            payload bytes handled by one run(), used to also report MB/s,
+     *            0 if throughput in bytes doesn't apply
+     */
+    protected Microbenchmark(String name, long bytesPerOp) {
+        this.name = name;
+        this.bytesPerOp = bytesPerOp;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getBytesPerOp() {
+        return bytesPerOp;
+    }
+
+    public void setUp() throws Exception {
+    }
+
+    public void tearDown() throws Exception {
+    }
+
+    /**
+     * @return the result of the operation, which the runner consumes so the
+     *         JIT can't drop the work
+     */
+    public abstract Object run() throws Exception;
+}
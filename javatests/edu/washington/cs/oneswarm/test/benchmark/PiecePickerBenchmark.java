@@ -0,0 +1,113 @@
+package edu.washington.cs.oneswarm.test.benchmark;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.gudy.azureus2.core3.disk.DiskManager;
+import org.gudy.azureus2.core3.disk.DiskManagerPiece;
+import org.gudy.azureus2.core3.peer.PEPeer;
+import org.gudy.azureus2.core3.peer.PEPeerStats;
+import org.gudy.azureus2.core3.peer.PEPiece;
+import org.gudy.azureus2.core3.peer.impl.PEPeerControl;
+import org.gudy.azureus2.core3.peer.impl.PEPeerTransport;
+import org.gudy.azureus2.core3.torrent.TOTorrent;
+
+import com.aelitis.azureus.core.peermanager.piecepicker.impl.PiecePickerImpl;
+import com.aelitis.azureus.core.peermanager.piecepicker.util.BitFlags;
+
+/**
+ * PiecePickerImpl's request candidate selection: the scan over a peer's
+ * pieces that picks the piece to continue or start, run on every request
+ * allocation.
+ *
+ * The picker is built over stub peer and disk managers for a 4000 piece
+ * torrent with 30 peers, a tenth of the pieces done and some started. The
+ * start priorities are normally computed from file priorities on a running
+ * download, here they are set directly.
+ */
+class PiecePickerBenchmark extends Microbenchmark {
+
+    private static final int PIECES = 4000;
+    private static final int PEERS = 30;
+    private static final int BLOCKS_PER_PIECE = 16;
+
+    private final List<PEPeerTransport> peers = new ArrayList<PEPeerTransport>();
+    private PiecePickerImpl picker;
+    private Method getRequestCandidate;
+    private int next = 0;
+
+    PiecePickerBenchmark() {
+        super("PiecePickerImpl.getRequestCandidate", 0);
+    }
+
+    @Override
+    public void setUp() throws Exception {
+        Random random = new Random(6);
+        final long now = System.currentTimeMillis();
+
+        final DiskManagerPiece[] dmPieces = new DiskManagerPiece[PIECES];
+        PEPiece[] pePieces = new PEPiece[PIECES];
+        for (int i = 0; i < PIECES; i++) {
+            boolean done = random.nextInt(10) == 0;
+            dmPieces[i] = Stubs.create(DiskManagerPiece.class, "isDone", done, "calcNeeded",
+                    !done, "isDownloadable", !done, "getNbBlocks", BLOCKS_PER_PIECE,
+                    "getPieceNumber", i);
+            if (!done && random.nextInt(20) == 0) {
+                pePieces[i] = Stubs.create(PEPiece.class, "isRequestable", true,
+                        "getNbUnrequested", 1 + random.nextInt(BLOCKS_PER_PIECE),
+                        "hasUnrequestedBlock", true, "getNbRequests", 1, "getCreationTime",
+                        now - random.nextInt(60 * 1000), "getPieceNumber", i);
+            }
+        }
+
+        final PEPeerStats stats = Stubs.create(PEPeerStats.class, "getDataReceiveRate",
+                Long.valueOf(64 * 1024));
+        for (int p = 0; p < PEERS; p++) {
+            boolean[] has = new boolean[PIECES];
+            double fraction = 0.3 + 0.7 * random.nextDouble();
+            for (int i = 0; i < PIECES; i++) {
+                has[i] = random.nextDouble() < fraction;
+            }
+            peers.add(Stubs.create(PEPeerTransport.class, "getPeerState", PEPeer.TRANSFERING,
+                    "getAvailable", new BitFlags(has), "getReservedPieceNumber", -1,
+                    "getLastPiece", -1, "getStats", stats, "getIp", "10.0.0." + p));
+        }
+
+        TOTorrent torrent = Stubs.create(TOTorrent.class, "getHash", new byte[20]);
+        DiskManager diskManager = Stubs.create(DiskManager.class, "getPieces", dmPieces,
+                "getNbPieces", PIECES, "getTorrent", torrent);
+        PEPeerControl peerControl = Stubs.create(PEPeerControl.class, "getDiskManager",
+                diskManager, "getPieces", pePieces, "getPeers", peers, "getTimeStarted",
+                Long.valueOf(now - 3600 * 1000), "getDisplayName", "benchmark");
+
+        picker = new PiecePickerImpl(peerControl);
+
+        int[] startPriorities = new int[PIECES];
+        for (int i = 0; i < PIECES; i++) {
+            // a couple of files set to high priority
+            startPriorities[i] = dmPieces[i].isDone() ? -1 : (i / 500 == 3 ? 1000 : 0);
+        }
+        Field field = PiecePickerImpl.class.getDeclaredField("startPriorities");
+        field.setAccessible(true);
+        field.set(picker, startPriorities);
+
+        getRequestCandidate = PiecePickerImpl.class.getDeclaredMethod("getRequestCandidate",
+                PEPeerTransport.class);
+        getRequestCandidate.setAccessible(true);
+    }
+
+    @Override
+    public Object run() throws Exception {
+        PEPeerTransport peer = peers.get(next);
+        next = (next + 1) % peers.size();
+        return getRequestCandidate.invoke(picker, peer);
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        picker.destroy();
+    }
+}
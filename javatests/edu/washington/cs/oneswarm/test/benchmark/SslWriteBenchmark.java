@@ -0,0 +1,206 @@
+package edu.washington.cs.oneswarm.test.benchmark;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+
+import org.gudy.azureus2.core3.config.COConfigurationManager;
+
+import com.aelitis.azureus.core.networkmanager.impl.TransportHelper;
+import com.aelitis.azureus.core.networkmanager.impl.osssl.OneSwarmSslKeyManager;
+import com.aelitis.azureus.core.networkmanager.impl.osssl.OneSwarmSslTransportHelperFilterStream;
+import com.aelitis.azureus.core.networkmanager.impl.osssl.OneSwarmSslTransportHelperFilterStream.SslHandShakeMatch;
+
+/**
+ * OneSwarmSslTransportHelperFilterStream.write(): encrypting one delivery of
+ * queued messages and handing the records to the socket, with and without
+ * network.tcp.ssl.write.batch.bytes.
+ *
+ * The filter writes over a loopback socket through a stub TransportHelper
+ * that counts the writes reaching the socket, a plain SSLEngine drains the
+ * other end on its own thread. The socket writes per delivery and bytes per
+ * write are printed when the benchmark finishes, the throughput is the
+ * sender's. Uses the SSL key of the configured OneSwarm profile.
+ */
+class SslWriteBenchmark extends Microbenchmark {
+
+    private static final String BATCH_PARAMETER = "network.tcp.ssl.write.batch.bytes";
+
+    private final int batchBytes;
+    private final int messageSize;
+    private final int messagesPerDelivery;
+
+    private final ByteBuffer[] buffers;
+    private int previousBatchBytes;
+    private SocketChannel client;
+    private Thread drain;
+    private OneSwarmSslTransportHelperFilterStream filter;
+    private long deliveries;
+    private long socketWrites;
+    private long socketBytes;
+
+    /**
+     * @param batchBytes
+     *            the write batch target, 0 for one record per socket write
+     */
+    SslWriteBenchmark(int batchBytes, int messageSize, int messagesPerDelivery) {
+        super("SSL write (" + messageSize + " B x " + messagesPerDelivery + ", batch "
+                + batchBytes + ")", (long) messageSize * messagesPerDelivery);
+        this.batchBytes = batchBytes;
+        this.messageSize = messageSize;
+        this.messagesPerDelivery = messagesPerDelivery;
+        this.buffers = new ByteBuffer[messagesPerDelivery];
+    }
+
+    @Override
+    public void setUp() throws Exception {
+        byte[] message = BenchmarkInputs.bytes(messageSize, 9);
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = ByteBuffer.wrap(message);
+        }
+
+        SSLContext context = OneSwarmSslKeyManager.getInstance().getSSLContext();
+        ServerSocketChannel listen = ServerSocketChannel.open();
+        listen.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+        client = SocketChannel.open(listen.socket().getLocalSocketAddress());
+        final SocketChannel server = listen.accept();
+        listen.close();
+
+        final SSLEngine serverEngine = context.createSSLEngine();
+        serverEngine.setUseClientMode(false);
+        drain = new Thread("SslWriteBenchmark drain") {
+            @Override
+            public void run() {
+                try {
+                    drain(serverEngine, server);
+                } catch (IOException e) {
+                    // the sender closed the connection
+                } finally {
+                    try {
+                        server.close();
+                    } catch (IOException e) {
+                    }
+                }
+            }
+        };
+        drain.setDaemon(true);
+        drain.start();
+
+        TransportHelper transport = Stubs.create(TransportHelper.class, "getAddress",
+                client.socket().getRemoteSocketAddress(), "write", new Stubs.Answer() {
+                    public Object answer(Object[] args) throws Exception {
+                        int written = client.write((ByteBuffer) args[0]);
+                        socketWrites++;
+                        socketBytes += written;
+                        return written;
+                    }
+                });
+
+        previousBatchBytes = COConfigurationManager.getIntParameter(BATCH_PARAMETER);
+        COConfigurationManager.setParameter(BATCH_PARAMETER, batchBytes);
+        filter = new OneSwarmSslTransportHelperFilterStream(transport, true,
+                SslHandShakeMatch.SSL_NO_CLIENT_CERT);
+        handshake();
+        socketWrites = 0;
+        socketBytes = 0;
+    }
+
+    @Override
+    public Object run() throws Exception {
+        for (ByteBuffer buffer : buffers) {
+            buffer.clear();
+        }
+        // the socket may take less than all of it, like the write selector
+        // the caller comes back with what's left
+        long written = 0;
+        while (buffers[buffers.length - 1].hasRemaining()) {
+            written += filter.write(buffers, 0, buffers.length);
+        }
+        deliveries++;
+        return written;
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        while (filter.hasBufferedWrite()) {
+            filter.write(new ByteBuffer[0], 0, 0);
+        }
+        System.out.println(String.format("%-48s %.2f socket writes/delivery %8.0f B/write",
+                getName(), (double) socketWrites / deliveries, (double) socketBytes
+                        / socketWrites));
+        COConfigurationManager.setParameter(BATCH_PARAMETER, previousBatchBytes);
+        client.close();
+        drain.join();
+    }
+
+    /**
+     * Drives the filter's handshake the way ProtocolDecoderPHE does, reading
+     * and writing the socket directly.
+     */
+    private void handshake() throws IOException {
+        ByteBuffer in = ByteBuffer.allocate(64 * 1024);
+        ByteBuffer out = ByteBuffer.allocate(64 * 1024);
+        out.limit(0);
+        while (!filter.isHandshakeCompleted()) {
+            filter.doHandshake(in, out);
+            if (out.hasRemaining()) {
+                while (out.hasRemaining()) {
+                    client.write(out);
+                }
+            } else if (!filter.isHandshakeCompleted() && client.read(in) < 0) {
+                throw new IOException("closed during handshake");
+            }
+        }
+    }
+
+    /**
+     * Completes the handshake and decrypts everything that arrives until the
+     * connection is closed.
+     */
+    private static void drain(SSLEngine engine, SocketChannel channel) throws IOException {
+        ByteBuffer in = ByteBuffer.allocate(1024 * 1024);
+        ByteBuffer app = ByteBuffer.allocate(1024 * 1024);
+        ByteBuffer out = ByteBuffer.allocate(64 * 1024);
+        ByteBuffer empty = ByteBuffer.allocate(0);
+
+        engine.beginHandshake();
+        HandshakeStatus status = engine.getHandshakeStatus();
+        while (true) {
+            if (status == HandshakeStatus.NEED_WRAP) {
+                out.clear();
+                status = engine.wrap(empty, out).getHandshakeStatus();
+                out.flip();
+                while (out.hasRemaining()) {
+                    channel.write(out);
+                }
+            } else if (status == HandshakeStatus.NEED_TASK) {
+                Runnable task;
+                while ((task = engine.getDelegatedTask()) != null) {
+                    task.run();
+                }
+                status = engine.getHandshakeStatus();
+            } else {
+                // unwrapping during and after the handshake alike
+                in.flip();
+                app.clear();
+                SSLEngineResult result = engine.unwrap(in, app);
+                in.compact();
+                status = result.getHandshakeStatus();
+                if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                    return;
+                }
+                if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW
+                        && channel.read(in) < 0) {
+                    return;
+                }
+            }
+        }
+    }
+}
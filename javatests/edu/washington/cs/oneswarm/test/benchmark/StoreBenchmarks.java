@@ -0,0 +1,216 @@
+package edu.washington.cs.oneswarm.test.benchmark;
+
+import java.beans.XMLDecoder;
+import java.beans.XMLEncoder;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import edu.washington.cs.oneswarm.f2f.friends.FriendBean;
+import edu.washington.cs.oneswarm.f2f.friends.FriendBeanCodec;
+import edu.washington.cs.oneswarm.f2f.permissions.SwarmBean;
+import edu.washington.cs.oneswarm.f2f.storage.BinaryRecordStore;
+
+/**
+ * Load and save of the friend list and of swarm permissions in the binary
+ * record store and, for comparison, of the friend list with the XMLEncoder
+ * format it replaced. The XML form of 50k swarm permissions takes seconds per
+ * op so isn't run. The store benchmarks write to a temporary directory.
+ */
+class StoreBenchmarks {
+
+    private static final int FRIENDS = 1000;
+    private static final int SWARMS = 50000;
+    private static final int GROUPS = 50;
+
+    static List<Microbenchmark> create() throws Exception {
+        List<Microbenchmark> benchmarks = new ArrayList<Microbenchmark>();
+
+        final Map<String, FriendBean> friends = BenchmarkInputs.friends(FRIENDS);
+        final Map<String, SwarmBean> swarms = BenchmarkInputs.swarmPermissions(SWARMS, GROUPS);
+
+        benchmarks.add(new StoreLoadBenchmark<FriendBean>("friends", friends,
+                FriendBeanCodec.VERSION, new FriendBeanCodec()));
+        benchmarks.add(new StoreSyncBenchmark<FriendBean>("friends", friends,
+                FriendBeanCodec.VERSION, new FriendBeanCodec(), true));
+        benchmarks.add(new StoreSyncBenchmark<FriendBean>("friends", friends,
+                FriendBeanCodec.VERSION, new FriendBeanCodec(), false) {
+            private final FriendBean[] beans = friends.values().toArray(new FriendBean[0]);
+            private int next = 0;
+
+            @Override
+            void change() {
+                // a friend connecting, the common write
+                FriendBean bean = beans[next++ % beans.length];
+                bean.setLastConnectDate(bean.getLastConnectDate() + 1);
+            }
+        });
+        benchmarks.add(new StoreLoadBenchmark<SwarmBean>("swarm permissions", swarms, 1,
+                new SwarmBeanCodec()));
+        benchmarks.add(new StoreSyncBenchmark<SwarmBean>("swarm permissions", swarms, 1,
+                new SwarmBeanCodec(), true));
+
+        final byte[] friendsXml = encodeXml(friends.values().toArray(new FriendBean[0]));
+        benchmarks.add(new Microbenchmark("XMLEncoder (" + FRIENDS + " friends)",
+                friendsXml.length) {
+            private final FriendBean[] beans = friends.values().toArray(new FriendBean[0]);
+
+            @Override
+            public Object run() throws Exception {
+                return encodeXml(beans);
+            }
+        });
+        benchmarks.add(new Microbenchmark("XMLDecoder (" + FRIENDS + " friends)",
+                friendsXml.length) {
+            @Override
+            public Object run() throws Exception {
+                return decodeXml(friendsXml);
+            }
+        });
+
+        return benchmarks;
+    }
+
+    private static byte[] encodeXml(Object o) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        XMLEncoder encoder = new XMLEncoder(out);
+        encoder.writeObject(o);
+        encoder.close();
+        return out.toByteArray();
+    }
+
+    private static Object decodeXml(byte[] xml) {
+        XMLDecoder decoder = new XMLDecoder(new ByteArrayInputStream(xml));
+        Object o = decoder.readObject();
+        decoder.close();
+        return o;
+    }
+
+    private static File tempDir() throws IOException {
+        File dir = File.createTempFile("oneswarm_store", "");
+        dir.delete();
+        dir.mkdirs();
+        return dir;
+    }
+
+    private static void deleteDir(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    /**
+     * Startup: read the snapshot and decode every record.
+     */
+    private static class StoreLoadBenchmark<T> extends Microbenchmark {
+        private final Map<String, T> records;
+        private final int version;
+        private final BinaryRecordStore.RecordCodec<T> codec;
+        private File dir;
+        private BinaryRecordStore<T> store;
+
+        StoreLoadBenchmark(String what, Map<String, T> records, int version,
+                BinaryRecordStore.RecordCodec<T> codec) {
+            super("BinaryRecordStore.load (" + records.size() + " " + what + ")", 0);
+            this.records = records;
+            this.version = version;
+            this.codec = codec;
+        }
+
+        @Override
+        public void setUp() throws Exception {
+            dir = tempDir();
+            store = new BinaryRecordStore<T>(dir, "bench", version, codec);
+            store.sync(records, true, true);
+        }
+
+        @Override
+        public Object run() throws Exception {
+            return store.load();
+        }
+
+        @Override
+        public void tearDown() {
+            deleteDir(dir);
+        }
+    }
+
+    /**
+     * A save: either a full snapshot, or change() then a sync that appends
+     * just that change to the log.
+     */
+    private static class StoreSyncBenchmark<T> extends Microbenchmark {
+        private final Map<String, T> records;
+        private final int version;
+        private final BinaryRecordStore.RecordCodec<T> codec;
+        private final boolean compact;
+        private File dir;
+        private BinaryRecordStore<T> store;
+
+        StoreSyncBenchmark(String what, Map<String, T> records, int version,
+                BinaryRecordStore.RecordCodec<T> codec, boolean compact) {
+            super("BinaryRecordStore.sync " + (compact ? "snapshot" : "one change") + " ("
+                    + records.size() + " " + what + ")", 0);
+            this.records = records;
+            this.version = version;
+            this.codec = codec;
+            this.compact = compact;
+        }
+
+        void change() {
+        }
+
+        @Override
+        public void setUp() throws Exception {
+            dir = tempDir();
+            store = new BinaryRecordStore<T>(dir, "bench", version, codec);
+            store.sync(records, true, true);
+        }
+
+        @Override
+        public Object run() throws Exception {
+            change();
+            return store.sync(records, false, compact);
+        }
+
+        @Override
+        public void tearDown() {
+            deleteDir(dir);
+        }
+    }
+
+    /**
+     * Swarm permissions aren't in a store of their own, they live in each
+     * download's state. This gives the store a table of that size.
+     */
+    private static class SwarmBeanCodec implements BinaryRecordStore.RecordCodec<SwarmBean> {
+        public void write(SwarmBean bean, DataOutputStream out) throws IOException {
+            out.writeUTF(bean.getHexHash());
+            out.writeByte(bean.getPermitted_groups().size());
+            for (String group : bean.getPermitted_groups()) {
+                out.writeUTF(group);
+            }
+        }
+
+        public SwarmBean read(DataInputStream in, int version) throws IOException {
+            SwarmBean bean = new SwarmBean();
+            bean.setHexHash(in.readUTF());
+            List<String> groups = new ArrayList<String>();
+            for (int i = in.readUnsignedByte(); i > 0; i--) {
+                groups.add(in.readUTF());
+            }
+            bean.setPermitted_groups(groups);
+            return bean;
+        }
+    }
+}
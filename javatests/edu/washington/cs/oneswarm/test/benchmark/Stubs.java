@@ -0,0 +1,83 @@
+package edu.washington.cs.oneswarm.test.benchmark;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Minimal implementations of the core's interfaces (peer managers, disk
+ * managers, transports) so hot paths can be driven without a running core.
+ */
+class Stubs {
+
+    interface Answer {
+        Object answer(Object[] args) throws Exception;
+    }
+
+    /**
+     * @param answers
+     *            pairs of method name and either an Answer or the value to
+     *            return; other methods return 0, false or null
+     */
+    @SuppressWarnings("unchecked")
+    static <T> T create(final Class<T> type, Object... answers) {
+        final Map<String, Object> byName = new HashMap<String, Object>();
+        for (int i = 0; i < answers.length; i += 2) {
+            byName.put((String) answers[i], answers[i + 1]);
+        }
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class[] { type },
+                new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args)
+                            throws Throwable {
+                        String name = method.getName();
+                        if (byName.containsKey(name)) {
+                            Object value = byName.get(name);
+                            if (value instanceof Answer) {
+                                return ((Answer) value).answer(args);
+                            }
+                            return value;
+                        }
+                        if (name.equals("hashCode") && args == null) {
+                            return System.identityHashCode(proxy);
+                        }
+                        if (name.equals("equals") && args != null && args.length == 1) {
+                            return proxy == args[0];
+                        }
+                        if (name.equals("toString") && args == null) {
+                            return type.getSimpleName() + " stub";
+                        }
+                        return defaultValue(method.getReturnType());
+                    }
+                });
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if (!type.isPrimitive() || type == void.class) {
+            return null;
+        }
+        if (type == boolean.class) {
+            return Boolean.FALSE;
+        }
+        if (type == char.class) {
+            return Character.valueOf((char) 0);
+        }
+        if (type == byte.class) {
+            return Byte.valueOf((byte) 0);
+        }
+        if (type == short.class) {
+            return Short.valueOf((short) 0);
+        }
+        if (type == int.class) {
+            return Integer.valueOf(0);
+        }
+        if (type == long.class) {
+            return Long.valueOf(0);
+        }
+        if (type == float.class) {
+            return Float.valueOf(0);
+        }
+        return Double.valueOf(0);
+    }
+}
@@ -0,0 +1,77 @@
+package org.gudy.azureus2.core3.torrent;
+
+import java.io.File;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import edu.washington.cs.oneswarm.test.util.OneSwarmTestBase;
+import edu.washington.cs.oneswarm.test.util.TestUtils;
+
+public class TOTorrentPieceHashesTest extends OneSwarmTestBase {
+
+    private static byte[][] randomPieces(int count) {
+        Random random = new Random(12345);
+        byte[][] pieces = new byte[count][TOTorrentPieceHashes.HASH_LENGTH];
+        for (int i = 0; i < count; i++) {
+            random.nextBytes(pieces[i]);
+        }
+        return pieces;
+    }
+
+    @Test
+    public void testFlatRoundTrip() throws Exception {
+        byte[][] pieces = randomPieces(100);
+        TOTorrentPieceHashes hashes = TOTorrentPieceHashes.fromArrays(pieces);
+
+        Assert.assertEquals(100, hashes.getNumberOfPieces());
+        Assert.assertFalse(hashes.isMapped());
+        for (int i = 0; i < pieces.length; i++) {
+            Assert.assertArrayEquals(pieces[i], hashes.getPieceHash(i));
+            Assert.assertTrue(hashes.matches(i, pieces[i]));
+            Assert.assertFalse(hashes.matches(i, pieces[(i + 1) % pieces.length]));
+        }
+
+        // The flat form is the backing array and wrapping it again doesn't copy.
+        byte[] flat = hashes.toFlat();
+        Assert.assertSame(flat, TOTorrentPieceHashes.fromFlat(flat).toFlat());
+    }
+
+    @Test
+    public void testTrailingPartialHashIgnored() throws Exception {
+        TOTorrentPieceHashes hashes = TOTorrentPieceHashes.fromFlat(new byte[45]);
+        Assert.assertEquals(2, hashes.getNumberOfPieces());
+        Assert.assertEquals(40, hashes.toFlat().length);
+    }
+
+    @Test
+    public void testSidecar() throws Exception {
+        byte[][] pieces = randomPieces(1000);
+        byte[] torrentHash = pieces[0];
+        TOTorrentPieceHashes hashes = TOTorrentPieceHashes.fromArrays(pieces);
+
+        File sidecar = File.createTempFile("pieces", ".pieces");
+        try {
+            hashes.writeSidecar(sidecar, torrentHash);
+
+            TOTorrentPieceHashes mapped = TOTorrentPieceHashes.mapSidecar(sidecar, torrentHash);
+            Assert.assertNotNull(mapped);
+            Assert.assertTrue(mapped.isMapped());
+            Assert.assertEquals(pieces.length, mapped.getNumberOfPieces());
+            for (int i = 0; i < pieces.length; i++) {
+                Assert.assertTrue(mapped.matches(i, pieces[i]));
+            }
+            Assert.assertArrayEquals(hashes.toFlat(), mapped.toFlat());
+
+            // A sidecar for some other torrent must not be used.
+            Assert.assertNull(TOTorrentPieceHashes.mapSidecar(sidecar, pieces[1]));
+        } finally {
+            sidecar.delete();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        TestUtils.swtCompatibleTestRunner(TOTorrentPieceHashesTest.class);
+    }
+}
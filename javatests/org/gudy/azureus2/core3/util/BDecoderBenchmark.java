@@ -0,0 +1,145 @@
+package org.gudy.azureus2.core3.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares decode throughput and allocation of {@link BDecoder} and {@link BDecoderBuffer}.
+ *
+ * Usage: BDecoderBenchmark [-iterations N] file-or-directory...
+ *
+ * Directories are scanned (non-recursively) for .torrent files. Allocation figures need a
+ * HotSpot JVM and are reported as -1 elsewhere.
+ */
+public class BDecoderBenchmark {
+
+    private interface Decode {
+        void run(byte[] data, ByteBuffer mapped) throws IOException;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int iterations = 200;
+        List<File> files = new ArrayList<File>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-iterations")) {
+                iterations = Integer.parseInt(args[++i]);
+            } else {
+                addFiles(new File(args[i]), files);
+            }
+        }
+        if (files.isEmpty()) {
+            System.err.println("Usage: BDecoderBenchmark [-iterations N] file-or-directory...");
+            System.exit(1);
+        }
+
+        byte[][] data = new byte[files.size()][];
+        ByteBuffer[] mapped = new ByteBuffer[files.size()];
+        long totalBytes = 0;
+        for (int i = 0; i < files.size(); i++) {
+            data[i] = read(files.get(i));
+            mapped[i] = BDecoderBuffer.mapFile(files.get(i));
+            totalBytes += data[i].length;
+        }
+        System.out.println(files.size() + " files, " + totalBytes + " bytes, " + iterations
+                + " iterations");
+
+        final BDecoderBuffer lazy = new BDecoderBuffer();
+        lazy.setLazyThreshold(1024);
+
+        run("BDecoder (byte[])", data, mapped, iterations, totalBytes, new Decode() {
+            public void run(byte[] data, ByteBuffer mapped) throws IOException {
+                BDecoder.decode(data);
+            }
+        });
+        run("BDecoderBuffer (heap)", data, mapped, iterations, totalBytes, new Decode() {
+            public void run(byte[] data, ByteBuffer mapped) throws IOException {
+                BDecoderBuffer.decode(ByteBuffer.wrap(data));
+            }
+        });
+        run("BDecoderBuffer (mapped)", data, mapped, iterations, totalBytes, new Decode() {
+            public void run(byte[] data, ByteBuffer mapped) throws IOException {
+                BDecoderBuffer.decode(mapped);
+            }
+        });
+        run("BDecoderBuffer (mapped, lazy >= 1K)", data, mapped, iterations, totalBytes,
+                new Decode() {
+                    public void run(byte[] data, ByteBuffer mapped) throws IOException {
+                        lazy.decodeBuffer(mapped);
+                    }
+                });
+    }
+
+    private static void run(String name, byte[][] data, ByteBuffer[] mapped, int iterations,
+            long totalBytes, Decode decode) throws IOException {
+        // warm up
+        for (int i = 0; i < Math.max(10, iterations / 10); i++) {
+            for (int j = 0; j < data.length; j++) {
+                decode.run(data[j], mapped[j]);
+            }
+        }
+
+        long allocatedBefore = allocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            for (int j = 0; j < data.length; j++) {
+                decode.run(data[j], mapped[j]);
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocated = allocatedBytes() - allocatedBefore;
+
+        double mbPerSecond = (totalBytes * (double) iterations / (1024 * 1024))
+                / (elapsed / 1000000000.0);
+        long decodes = (long) iterations * data.length;
+        System.out.println(String.format("%-40s %8.1f MB/s %10d ns/decode %10d bytes/decode",
+                name, mbPerSecond, elapsed / decodes, allocatedBefore < 0 ? -1 : allocated
+                        / decodes));
+    }
+
+    private static long allocatedBytes() {
+        try {
+            com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory
+                    .getThreadMXBean();
+            return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+        } catch (Throwable e) {
+            return -1;
+        }
+    }
+
+    private static void addFiles(File file, List<File> files) {
+        if (file.isDirectory()) {
+            File[] children = file.listFiles();
+            if (children != null) {
+                for (File child : children) {
+                    if (child.isFile() && child.getName().endsWith(".torrent")) {
+                        files.add(child);
+                    }
+                }
+            }
+        } else {
+            files.add(file);
+        }
+    }
+
+    private static byte[] read(File file) throws IOException {
+        InputStream is = new FileInputStream(file);
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream((int) file.length());
+            byte[] buffer = new byte[65536];
+            int len;
+            while ((len = is.read(buffer)) > 0) {
+                baos.write(buffer, 0, len);
+            }
+            return baos.toByteArray();
+        } finally {
+            is.close();
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package org.gudy.azureus2.core3.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import edu.washington.cs.oneswarm.test.util.OneSwarmTestBase;
+import edu.washington.cs.oneswarm.test.util.TestUtils;
+
+public class BDecoderBufferTest extends OneSwarmTestBase {
+
+    private static Map randomMap(Random random, int depth) {
+        Map map = new HashMap();
+        int size = random.nextInt(8);
+        for (int i = 0; i < size; i++) {
+            map.put("key" + random.nextInt(20), randomValue(random, depth + 1));
+        }
+        return map;
+    }
+
+    private static Object randomValue(Random random, int depth) {
+        switch (depth > 4 ? random.nextInt(2) : random.nextInt(4)) {
+        case 0:
+            return new Long(random.nextLong());
+        case 1:
+            byte[] bytes = new byte[random.nextInt(100)];
+            random.nextBytes(bytes);
+            return bytes;
+        case 2:
+            List list = new ArrayList();
+            int size = random.nextInt(5);
+            for (int i = 0; i < size; i++) {
+                list.add(randomValue(random, depth + 1));
+            }
+            return list;
+        default:
+            return randomMap(random, depth);
+        }
+    }
+
+    @Test
+    public void testMatchesBDecoder() throws Exception {
+        Random random = new Random(42);
+        for (int i = 0; i < 200; i++) {
+            byte[] encoded = BEncoder.encode(randomMap(random, 0));
+
+            Map expected = BDecoder.decode(encoded);
+            Map heap = BDecoderBuffer.decode(ByteBuffer.wrap(encoded));
+
+            ByteBuffer direct = ByteBuffer.allocateDirect(encoded.length);
+            direct.put(encoded).flip();
+            Map offHeap = BDecoderBuffer.decode(direct);
+
+            Assert.assertTrue(BEncoder.mapsAreIdentical(expected, heap));
+            Assert.assertTrue(BEncoder.mapsAreIdentical(expected, offHeap));
+            Assert.assertEquals(0, direct.position());
+        }
+    }
+
+    @Test
+    public void testDecodeFile() throws Exception {
+        Map map = new HashMap();
+        map.put("announce", "http://tracker/announce".getBytes());
+        map.put("pieces", new byte[20 * 1000]);
+        File file = File.createTempFile("bdecoder", ".torrent");
+        try {
+            FileOutputStream fos = new FileOutputStream(file);
+            fos.write(BEncoder.encode(map));
+            fos.close();
+
+            Assert.assertTrue(BEncoder.mapsAreIdentical(map, BDecoderBuffer.decode(file)));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testLazySlices() throws Exception {
+        Map map = new HashMap();
+        map.put("short", "abc".getBytes());
+        map.put("long", new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10 });
+        byte[] encoded = BEncoder.encode(map);
+
+        BDecoderBuffer decoder = new BDecoderBuffer();
+        decoder.setLazyThreshold(8);
+        Map decoded = decoder.decodeBuffer(ByteBuffer.wrap(encoded));
+
+        Assert.assertTrue(decoded.get("short") instanceof byte[]);
+        BDecoderBuffer.Slice slice = (BDecoderBuffer.Slice) decoded.get("long");
+        Assert.assertEquals(10, slice.getLength());
+        Assert.assertArrayEquals((byte[]) map.get("long"), slice.getBytes());
+
+        // The slice references the source rather than a copy.
+        encoded[indexOf(encoded, (byte[]) map.get("long"))] = 99;
+        Assert.assertEquals(99, slice.getBuffer().get(0));
+    }
+
+    @Test
+    public void testInternedKeys() throws Exception {
+        Map map = new HashMap();
+        map.put("length", new Long(1));
+        byte[] encoded = BEncoder.encode(map);
+
+        Map a = BDecoderBuffer.decode(ByteBuffer.wrap(encoded));
+        Map b = BDecoderBuffer.decode(ByteBuffer.wrap(encoded));
+        Assert.assertSame(a.keySet().iterator().next(), b.keySet().iterator().next());
+    }
+
+    @Test
+    public void testParseEvents() throws Exception {
+        final StringBuilder events = new StringBuilder();
+        byte[] encoded = "d1:ai7e1:bl3:xyzee".getBytes();
+        new BDecoderBuffer().parse(ByteBuffer.wrap(encoded), new BDecoderBuffer.Listener() {
+            public void startMap() {
+                events.append("{");
+            }
+
+            public void key(String key) {
+                events.append(key).append("=");
+            }
+
+            public void endMap() {
+                events.append("}");
+            }
+
+            public void startList() {
+                events.append("[");
+            }
+
+            public void endList() {
+                events.append("]");
+            }
+
+            public void value(long value) {
+                events.append(value).append(",");
+            }
+
+            public void value(ByteBuffer value) {
+                byte[] bytes = new byte[value.remaining()];
+                value.get(bytes);
+                events.append(new String(bytes)).append(",");
+            }
+        });
+        Assert.assertEquals("{a=7,b=[xyz,]}", events.toString());
+    }
+
+    @Test
+    public void testMalformed() throws Exception {
+        String[] bad = { "", "i5e", "d1:al3:xyz", "d3:abc10:short", "d1:ax" };
+        for (String data : bad) {
+            try {
+                BDecoderBuffer.decode(ByteBuffer.wrap(data.getBytes()));
+                Assert.fail("decoded '" + data + "'");
+            } catch (IOException e) {
+                // expected
+            }
+        }
+    }
+
+    private static int indexOf(byte[] data, byte[] target) {
+        outer: for (int i = 0; i <= data.length - target.length; i++) {
+            for (int j = 0; j < target.length; j++) {
+                if (data[i + j] != target[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    public static void main(String[] args) throws Exception {
+        TestUtils.swtCompatibleTestRunner(BDecoderBufferTest.class);
+    }
+}
@@ -0,0 +1,151 @@
+package org.gudy.azureus2.core3.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Compares encode throughput and allocation of {@link BEncoder} and {@link BEncoderStream}.
+ *
+ * Usage: BEncoderBenchmark [-iterations N] [bencoded-file...]
+ *
+ * The files (torrents, downloads.config, resume data...) are decoded once and re-encoded
+ * repeatedly. With no files a synthetic downloads.config-like map is used. Output is
+ * discarded, so the figures are for the encoding alone. Allocation figures need a HotSpot JVM
+ * and are reported as -1 elsewhere.
+ */
+public class BEncoderBenchmark {
+
+    private interface Encode {
+        void run(Map map) throws IOException;
+    }
+
+    private static final WritableByteChannel NULL_CHANNEL = new WritableByteChannel() {
+        public int write(ByteBuffer src) {
+            int len = src.remaining();
+            src.position(src.limit());
+            return len;
+        }
+
+        public boolean isOpen() {
+            return true;
+        }
+
+        public void close() {
+        }
+    };
+
+    public static void main(String[] args) throws Exception {
+        int iterations = 200;
+        List<Map> maps = new ArrayList<Map>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-iterations")) {
+                iterations = Integer.parseInt(args[++i]);
+            } else {
+                maps.add(BDecoderBuffer.decode(new File(args[i])));
+            }
+        }
+        if (maps.isEmpty()) {
+            maps.add(syntheticConfig(2000));
+        }
+
+        long totalBytes = 0;
+        for (Map map : maps) {
+            totalBytes += BEncoder.encode(map).length;
+        }
+        System.out.println(maps.size() + " maps, " + totalBytes + " encoded bytes, "
+                + iterations + " iterations");
+
+        run("BEncoder.encode + write", maps, iterations, totalBytes, new Encode() {
+            public void run(Map map) throws IOException {
+                NULL_CHANNEL.write(ByteBuffer.wrap(BEncoder.encode(map)));
+            }
+        });
+        run("BEncoderStream.encode (channel)", maps, iterations, totalBytes, new Encode() {
+            public void run(Map map) throws IOException {
+                BEncoderStream.encode(map, NULL_CHANNEL);
+            }
+        });
+        run("BEncoderStream.encodeToBuffer", maps, iterations, totalBytes, new Encode() {
+            public void run(Map map) throws IOException {
+                BEncoderStream.encodeToBuffer(map).returnToPool();
+            }
+        });
+    }
+
+    /**
+     * Something shaped like downloads.config: a list of per-download maps that all have the same
+     * keys.
+     */
+    private static Map syntheticConfig(int downloads) {
+        Random random = new Random(1);
+        List list = new ArrayList();
+        for (int i = 0; i < downloads; i++) {
+            Map download = new HashMap();
+            byte[] hash = new byte[20];
+            random.nextBytes(hash);
+            download.put("torrent_hash", hash);
+            download.put("torrent", "/home/user/.oneswarm/torrents/download" + i + ".torrent");
+            download.put("save_dir", "/home/user/OneSwarm Downloads/download " + i);
+            download.put("state", new Long(random.nextInt(80)));
+            download.put("position", new Long(i));
+            download.put("uploaded", new Long(random.nextLong() >>> 24));
+            download.put("downloaded", new Long(random.nextLong() >>> 24));
+            download.put("secondsDownloading", new Long(random.nextInt()));
+            download.put("secondsOnlySeeding", new Long(random.nextInt()));
+            download.put("forceStart", new Long(0));
+            download.put("file_priorities", new ArrayList());
+            byte[] resume = new byte[random.nextInt(4096)];
+            random.nextBytes(resume);
+            download.put("blocks", resume);
+            list.add(download);
+        }
+        Map map = new HashMap();
+        map.put("downloads", list);
+        return map;
+    }
+
+    private static void run(String name, List<Map> maps, int iterations, long totalBytes,
+            Encode encode) throws IOException {
+        // warm up
+        for (int i = 0; i < Math.max(10, iterations / 10); i++) {
+            for (Map map : maps) {
+                encode.run(map);
+            }
+        }
+
+        long allocatedBefore = allocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            for (Map map : maps) {
+                encode.run(map);
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocated = allocatedBytes() - allocatedBefore;
+
+        double mbPerSecond = (totalBytes * (double) iterations / (1024 * 1024))
+                / (elapsed / 1000000000.0);
+        long encodes = (long) iterations * maps.size();
+        System.out.println(String.format("%-36s %8.1f MB/s %10d ns/encode %10d bytes/encode",
+                name, mbPerSecond, elapsed / encodes, allocatedBefore < 0 ? -1 : allocated
+                        / encodes));
+    }
+
+    private static long allocatedBytes() {
+        try {
+            com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory
+                    .getThreadMXBean();
+            return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+        } catch (Throwable e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package org.gudy.azureus2.core3.util;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import edu.washington.cs.oneswarm.test.util.OneSwarmTestBase;
+import edu.washington.cs.oneswarm.test.util.TestUtils;
+
+public class BEncoderStreamTest extends OneSwarmTestBase {
+
+    private static final String[] STRINGS = { "", "ascii", "caf\u00e9", "\u65e5\u672c",
+            "\ud83d\ude00 pair", "lone \ud83d high", "lone \ude00 low", "\u07ff\u0800" };
+
+    private static Map randomMap(Random random, int depth) {
+        Map map = random.nextBoolean() ? new HashMap() : new TreeMap();
+        int size = random.nextInt(10);
+        for (int i = 0; i < size; i++) {
+            map.put(STRINGS[random.nextInt(STRINGS.length)] + random.nextInt(30),
+                    randomValue(random, depth + 1));
+        }
+        return map;
+    }
+
+    private static Object randomValue(Random random, int depth) {
+        switch (depth > 4 ? random.nextInt(6) : random.nextInt(8)) {
+        case 0:
+            return new Long(random.nextLong());
+        case 1:
+            return new Integer(random.nextInt() >> random.nextInt(32));
+        case 2:
+            byte[] bytes = new byte[random.nextInt(10) == 0 ? 20000 : random.nextInt(100)];
+            random.nextBytes(bytes);
+            return bytes;
+        case 3:
+            return STRINGS[random.nextInt(STRINGS.length)];
+        case 4:
+            return new Float(random.nextFloat());
+        case 5:
+            return ByteBuffer.wrap(new byte[] { 1, 2, 3 });
+        case 6:
+            List list = new ArrayList();
+            int size = random.nextInt(5);
+            for (int i = 0; i < size; i++) {
+                list.add(randomValue(random, depth + 1));
+            }
+            return list;
+        default:
+            return randomMap(random, depth);
+        }
+    }
+
+    private static byte[] streamed(Map map) throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        long written = BEncoderStream.encode(map, Channels.newChannel(baos));
+        Assert.assertEquals(baos.size(), written);
+        return baos.toByteArray();
+    }
+
+    @Test
+    public void testMatchesBEncoder() throws Exception {
+        Random random = new Random(7);
+        for (int i = 0; i < 300; i++) {
+            Map map = randomMap(random, 0);
+            byte[] expected = BEncoder.encode(map);
+
+            Assert.assertArrayEquals(expected, streamed(map));
+            Assert.assertEquals(expected.length, BEncoderStream.getEncodedLength(map));
+
+            DirectByteBuffer buffer = BEncoderStream.encodeToBuffer(map);
+            try {
+                ByteBuffer bb = buffer.getBuffer(DirectByteBuffer.SS_OTHER);
+                byte[] actual = new byte[bb.remaining()];
+                bb.get(actual);
+                Assert.assertArrayEquals(expected, actual);
+            } finally {
+                buffer.returnToPool();
+            }
+        }
+    }
+
+    @Test
+    public void testLargeOutput() throws Exception {
+        // Bigger than the channel buffer, with values both above and below the passthrough size.
+        Map map = new HashMap();
+        for (int i = 0; i < 200; i++) {
+            map.put("small" + i, new byte[i * 10]);
+            map.put("large" + i, new byte[10000 + i]);
+        }
+        Assert.assertArrayEquals(BEncoder.encode(map), streamed(map));
+    }
+
+    @Test
+    public void testKeyOrderCache() throws Exception {
+        // "Aa" and "BB" have the same hash code so the key sets share a cache slot.
+        Map first = new HashMap();
+        first.put("Aa", new Long(1));
+        first.put("z", new Long(2));
+        Map second = new HashMap();
+        second.put("BB", new Long(1));
+        second.put("z", new Long(2));
+
+        for (int i = 0; i < 3; i++) {
+            Assert.assertArrayEquals(BEncoder.encode(first), streamed(first));
+            Assert.assertArrayEquals(BEncoder.encode(second), streamed(second));
+        }
+    }
+
+    @Test
+    public void testByteEncodedKeys() throws Exception {
+        Map map = new ByteEncodedKeyHashMap();
+        map.put(new String(new byte[] { (byte) 0xff, 0x01 }, Constants.BYTE_ENCODING), new Long(5));
+        map.put("caf\u00e9", "x");
+        Assert.assertArrayEquals(BEncoder.encode(map), streamed(map));
+    }
+
+    @Test
+    public void testNullValuesSkipped() throws Exception {
+        Map map = new HashMap();
+        map.put("a", null);
+        map.put("b", new Long(1));
+        Assert.assertArrayEquals(BEncoder.encode(map), streamed(map));
+    }
+
+    public static void main(String[] args) throws Exception {
+        TestUtils.swtCompatibleTestRunner(BEncoderStreamTest.class);
+    }
+}
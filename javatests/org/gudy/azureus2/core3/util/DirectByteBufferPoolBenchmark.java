@@ -0,0 +1,89 @@
+package org.gudy.azureus2.core3.util;
+
+import java.util.Random;
+
+import org.gudy.azureus2.core3.config.COConfigurationManager;
+import org.gudy.azureus2.core3.disk.DiskManager;
+
+/**
+ * Measures allocate/free throughput of {@link DirectByteBufferPool} with a mix of 16K block,
+ * block plus header and ~1K overlay message sizes.
+ *
+ * Usage: DirectByteBufferPoolBenchmark [-threads N] [-ops N] [-magazines true|false]
+ *
+ * The magazine setting is read when the pool is created, so compare the two modes with
+ * separate runs.
+ */
+public class DirectByteBufferPoolBenchmark {
+
+    private static final int[] SIZES = { DiskManager.BLOCK_SIZE, DiskManager.BLOCK_SIZE + 13,
+            1024, 1000, 600, DiskManager.BLOCK_SIZE, 4096 };
+
+    public static void main(String[] args) throws Exception {
+        int threads = Runtime.getRuntime().availableProcessors();
+        int ops = 2000000;
+        boolean magazines = true;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-threads")) {
+                threads = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-ops")) {
+                ops = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-magazines")) {
+                magazines = Boolean.valueOf(args[++i]).booleanValue();
+            } else {
+                System.err.println("Usage: DirectByteBufferPoolBenchmark [-threads N] [-ops N] "
+                        + "[-magazines true|false]");
+                System.exit(1);
+            }
+        }
+        COConfigurationManager.setParameter("memory.magazine.enable", magazines);
+
+        System.out.println("magazines=" + magazines + ", threads=" + threads + ", ops/thread="
+                + ops);
+        // warm up
+        run(threads, ops / 10);
+        for (int t = 1; t <= threads; t *= 2) {
+            long elapsed = run(t, ops);
+            long total = (long) t * ops;
+            System.out.println(String.format("%3d threads %10.2f Mops/s", t, total * 1000.0
+                    / elapsed));
+        }
+    }
+
+    /** @return elapsed nanoseconds */
+    private static long run(int threads, final int ops) throws InterruptedException {
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final Random random = new Random(t);
+            workers[t] = new Thread() {
+                public void run() {
+                    // hold a few buffers at a time, like a connection with queued messages
+                    DirectByteBuffer[] held = new DirectByteBuffer[16];
+                    for (int i = 0; i < ops; i++) {
+                        int slot = random.nextInt(held.length);
+                        if (held[slot] != null) {
+                            held[slot].returnToPool();
+                            held[slot] = null;
+                        } else {
+                            held[slot] = DirectByteBufferPool.getBuffer(
+                                    DirectByteBuffer.AL_OTHER, SIZES[random.nextInt(SIZES.length)]);
+                        }
+                    }
+                    for (int i = 0; i < held.length; i++) {
+                        if (held[i] != null) {
+                            held[i].returnToPool();
+                        }
+                    }
+                }
+            };
+        }
+        long start = System.nanoTime();
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return System.nanoTime() - start;
+    }
+}
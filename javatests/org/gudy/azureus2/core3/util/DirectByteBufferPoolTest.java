@@ -0,0 +1,167 @@
+package org.gudy.azureus2.core3.util;
+
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.gudy.azureus2.core3.disk.DiskManager;
+import org.junit.Assert;
+import org.junit.Test;
+
+import edu.washington.cs.oneswarm.test.util.OneSwarmTestBase;
+import edu.washington.cs.oneswarm.test.util.TestUtils;
+
+public class DirectByteBufferPoolTest extends OneSwarmTestBase {
+
+    private static final int[] SIZES = { 1000, 1024, 2048, 4096, DiskManager.BLOCK_SIZE,
+            DiskManager.BLOCK_SIZE + 13, 32768 };
+
+    @Test
+    public void testReuseOnSameThread() throws Exception {
+        DirectByteBuffer first = DirectByteBufferPool.getBuffer(DirectByteBuffer.AL_OTHER,
+                DiskManager.BLOCK_SIZE);
+        ByteBuffer buffer = first.getBuffer(DirectByteBuffer.SS_OTHER);
+        Assert.assertEquals(DiskManager.BLOCK_SIZE, buffer.limit());
+        first.returnToPool();
+
+        DirectByteBuffer second = DirectByteBufferPool.getBuffer(DirectByteBuffer.AL_OTHER, 100);
+        second.returnToPool();
+        DirectByteBuffer third = DirectByteBufferPool.getBuffer(DirectByteBuffer.AL_OTHER,
+                DiskManager.BLOCK_SIZE - 1);
+        Assert.assertSame(buffer, third.getBuffer(DirectByteBuffer.SS_OTHER));
+        Assert.assertEquals(DiskManager.BLOCK_SIZE - 1, third.getBuffer(
+                DirectByteBuffer.SS_OTHER).limit());
+        third.returnToPool();
+    }
+
+    @Test
+    public void testConcurrentNeverSharesBuffers() throws Exception {
+        final Map<ByteBuffer, Thread> in_use = new IdentityHashMap<ByteBuffer, Thread>();
+        final AtomicReference<String> failure = new AtomicReference<String>();
+
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            final int seed = t;
+            threads[t] = new Thread() {
+                public void run() {
+                    DirectByteBuffer[] held = new DirectByteBuffer[40];
+                    for (int i = 0; i < 20000 && failure.get() == null; i++) {
+                        int slot = (i * 7 + seed) % held.length;
+                        if (held[slot] != null) {
+                            ByteBuffer b = held[slot].getBuffer(DirectByteBuffer.SS_OTHER);
+                            if (b.get(0) != (byte) slot) {
+                                failure.set("buffer modified while held");
+                            }
+                            synchronized (in_use) {
+                                in_use.remove(b);
+                            }
+                            held[slot].returnToPool();
+                            held[slot] = null;
+                        } else {
+                            held[slot] = DirectByteBufferPool.getBuffer(
+                                    DirectByteBuffer.AL_OTHER, SIZES[(i + seed) % SIZES.length]);
+                            ByteBuffer b = held[slot].getBuffer(DirectByteBuffer.SS_OTHER);
+                            synchronized (in_use) {
+                                if (in_use.put(b, this) != null) {
+                                    failure.set("buffer handed out twice");
+                                }
+                            }
+                            b.put(0, (byte) slot);
+                        }
+                    }
+                    for (int i = 0; i < held.length; i++) {
+                        if (held[i] != null) {
+                            synchronized (in_use) {
+                                in_use.remove(held[i].getBuffer(DirectByteBuffer.SS_OTHER));
+                            }
+                            held[i].returnToPool();
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+
+        Assert.assertNull(failure.get());
+        Assert.assertTrue(in_use.isEmpty());
+    }
+
+    @Test
+    public void testDeadThreadMagazinesReclaimed() throws Exception {
+        final AtomicReference<ByteBuffer> freed = new AtomicReference<ByteBuffer>();
+        Thread thread = new Thread() {
+            public void run() {
+                DirectByteBuffer buffer = DirectByteBufferPool.getBuffer(
+                        DirectByteBuffer.AL_OTHER, 32768);
+                freed.set(buffer.getBuffer(DirectByteBuffer.SS_OTHER));
+                // lands in this thread's magazine
+                buffer.returnToPool();
+            }
+        };
+        thread.start();
+        thread.join();
+
+        DirectByteBufferPool pool = pool();
+        pool.sweepMagazines(false);
+        Assert.assertTrue(pooled(pool, 32768, freed.get()));
+    }
+
+    @Test
+    public void testLiveThreadMagazinesFlushed() throws Exception {
+        DirectByteBufferPool pool = pool();
+
+        DirectByteBuffer buffer = DirectByteBufferPool.getBuffer(DirectByteBuffer.AL_OTHER, 32768);
+        ByteBuffer freed = buffer.getBuffer(DirectByteBuffer.SS_OTHER);
+        buffer.returnToPool();
+        Assert.assertFalse(pooled(pool, 32768, freed));
+
+        // honoured on this thread's next use of the pool, whatever the size
+        pool.requestMagazineFlush(false);
+        DirectByteBufferPool.getBuffer(DirectByteBuffer.AL_OTHER, 4096).returnToPool();
+        Assert.assertTrue(pooled(pool, 32768, freed));
+
+        buffer = DirectByteBufferPool.getBuffer(DirectByteBuffer.AL_OTHER, 32768);
+        freed = buffer.getBuffer(DirectByteBuffer.SS_OTHER);
+        buffer.returnToPool();
+
+        // as for running low on memory, dropped rather than pooled
+        pool.requestMagazineFlush(true);
+        DirectByteBufferPool.getBuffer(DirectByteBuffer.AL_OTHER, 4096).returnToPool();
+        Assert.assertFalse(pooled(pool, 32768, freed));
+        buffer = DirectByteBufferPool.getBuffer(DirectByteBuffer.AL_OTHER, 32768);
+        Assert.assertNotSame(freed, buffer.getBuffer(DirectByteBuffer.SS_OTHER));
+        buffer.returnToPool();
+    }
+
+    private static DirectByteBufferPool pool() throws Exception {
+        Field poolField = DirectByteBufferPool.class.getDeclaredField("pool");
+        poolField.setAccessible(true);
+        return (DirectByteBufferPool) poolField.get(null);
+    }
+
+    private static boolean pooled(DirectByteBufferPool pool, int size, ByteBuffer buffer)
+            throws Exception {
+        Field mapField = DirectByteBufferPool.class.getDeclaredField("buffersMap");
+        mapField.setAccessible(true);
+        List<?> bucket = (List<?>) ((Map<?, ?>) mapField.get(pool)).get(new Integer(size));
+        synchronized (bucket) {
+            for (Object o : bucket) {
+                if (o == buffer) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /** Boilerplate code for running as executable. */
+    public static void main(String[] args) throws Exception {
+        TestUtils.swtCompatibleTestRunner(DirectByteBufferPoolTest.class);
+    }
+}
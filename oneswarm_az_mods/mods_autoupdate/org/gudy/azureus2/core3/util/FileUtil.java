@@ -444,17 +444,15 @@ public class FileUtil {
 	  	try{
 	  		getReservedFileHandles();
 	      File temp = new File(  parent_dir, file_name + ".saving");
-		    BufferedOutputStream	baos = null;
+		    FileOutputStream	tempOS = null;
 		    
 		    try{
-		    	byte[] encoded_data = BEncoder.encode(data);
-		    	FileOutputStream tempOS = new FileOutputStream( temp, false );
-		    	baos = new BufferedOutputStream( tempOS, 8192 );
-		    	baos.write( encoded_data );
-		    	baos.flush();
+		    	tempOS = new FileOutputStream( temp, false );
+		    		// stream the encoding rather than building the whole file in memory first
+		    	BEncoderStream.encode( data, tempOS.getChannel());
 		    	tempOS.getFD().sync();
-	        baos.close();
-	        baos = null;
+	        tempOS.close();
+	        tempOS = null;
 	           
 	        //only use newly saved file if it got this far, i.e. it saved successfully
 	        if ( temp.length() > 1L ) {
@@ -472,9 +470,9 @@ public class FileUtil {
 		    }finally{
 		    	
 		    	try {
-		    		if (baos != null){
+		    		if (tempOS != null){
 		    			
-		    			baos.close();
+		    			tempOS.close();
 		    		}
 		    	}catch( Exception e){
 		    		Logger.log(new LogAlert(LogAlert.UNREPEATABLE, "Save of '"
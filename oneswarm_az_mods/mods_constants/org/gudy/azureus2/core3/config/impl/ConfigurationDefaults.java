@@ -479,6 +479,7 @@ public class ConfigurationDefaults {
         def.put("config.style.doNotUseGB", FALSE);
 
         def.put("Save Torrent Backup", FALSE);
+        def.put("Torrent Piece Hash Sidecar", FALSE);
 
         def.put("Sharing Protocol", "DHT");
         def.put("Sharing Add Hashes", FALSE);
@@ -507,6 +508,8 @@ public class ConfigurationDefaults {
         def.put("Alert on close", FALSE);
         def.put("diskmanager.friendly.hashchecking", TRUE); // PIAMOD
         def.put("diskmanager.hashchecking.smallestfirst", TRUE);
+        def.put("diskmanager.hashchecking.perdevice", TRUE);
+        def.put("diskmanager.hashchecking.readahead.mb", new Long(4));
         def.put("Default Start Torrents Stopped", FALSE);
         def.put("Server Enable UDP", TRUE);
         def.put("diskmanager.perf.cache.enable", TRUE);
@@ -559,10 +562,12 @@ public class ConfigurationDefaults {
         def.put("network.tcp.socket.IPTOS", "");
         def.put("network.tcp.read.select.time", new Long(25));
         def.put("network.tcp.write.select.time", new Long(25));
+        def.put("network.tcp.ssl.write.batch.bytes", new Long(32 * 1024)); // 0 = one record per write
         def.put("network.control.write.idle.time", new Long(50));
         def.put("network.control.write.aggressive", FALSE);
         def.put("network.control.read.idle.time", new Long(50));
         def.put("network.control.read.aggressive", FALSE);
+        def.put("network.control.shards", ZERO); // 0 = pick from the processor count
         def.put("peermanager.schedule.time", new Long(100));
         def.put("confirm_torrent_removal", FALSE);
         def.put("add_torrents_silently", TRUE); // PIAMOD -- so we don't keep
@@ -596,6 +601,7 @@ public class ConfigurationDefaults {
         // Memory settings
 
         def.put("memory.slice.limit.multiplier", new Long(1));
+        def.put("memory.magazine.enable", TRUE);
 
         // Move on completion settings.
         def.put("Move Completed When Done", FALSE);
@@ -663,6 +669,7 @@ public class ConfigurationDefaults {
         def.put("Allow.Incoming.Speed.Check", FALSE);
 
         def.put("dht.enabled", TRUE);
+        def.put("dht.values.persist", TRUE);
 
         // fwd prob
         def.put("f2f_forward_search_probability", new Float(0.50));
@@ -677,6 +684,16 @@ public class ConfigurationDefaults {
         // for a value of 20, the added delay for overlay transports connections
         // will be 20-40ms
         def.put("f2f_overlay_emulate_link_latency_max", new Long(20));
+        // hand large outgoing BT messages to overlay messages without copying
+        def.put("f2f_overlay_send_by_reference", TRUE);
+        // relative shares of the f2f upload queue, transport is our own
+        // downloads/uploads, service is local service sharing traffic
+        def.put("f2f_queue_weight_transport", new Long(7));
+        def.put("f2f_queue_weight_service", new Long(3));
+        def.put("f2f_queue_weight_forward", new Long(2));
+        def.put("f2f_queue_weight_search", new Long(1));
+        // scale each friend's share by its download/upload ratio
+        def.put("f2f_queue_weight_by_friend_score", FALSE);
 
         // Allow users to clear upload and download ratios on torrents on close
         def.put("privacy.clear.seed.ratio.on.close", FALSE);
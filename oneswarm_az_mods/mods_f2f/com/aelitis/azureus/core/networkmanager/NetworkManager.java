@@ -141,8 +141,8 @@ public class NetworkManager {
   }
 
   
-  private final WriteController write_controller = new WriteController();
-  private final ReadController read_controller = new ReadController();
+  private final WriteController write_controller = new WriteController( getControllerShardCount());
+  private final ReadController read_controller = new ReadController( getControllerShardCount());
 
   
   private final TransferProcessor upload_processor = new TransferProcessor( TransferProcessor.TYPE_UPLOAD, new LimitedRateGroup(){
@@ -197,6 +197,30 @@ public class NetworkManager {
   private NetworkManager() {
   }
   
+  	// no initialiser, this is needed while the singleton is being constructed
+  
+  private static int controller_shards;
+  
+  /**
+   * Get the number of processor threads the read and write controllers each spread their
+   * entities over.
+   * @return shard count, at least 1
+   */
+  public static int getControllerShardCount() {
+	  if ( controller_shards == 0 ){
+		  int	shards = COConfigurationManager.getIntParameter( "network.control.shards" );
+		  
+		  if ( shards <= 0 ){
+			  
+			  shards = Math.min( 4, Math.max( 1, Runtime.getRuntime().availableProcessors() / 2 ));
+		  }
+		  
+		  controller_shards = shards;
+	  }
+	  
+	  return( controller_shards );
+  }
+  
   public static int getMinMssSize() {  return Math.min( TCPNetworkManager.getTcpMssSize(), UDPNetworkManager.getUdpMssSize()); }
 
   
@@ -368,6 +392,16 @@ public class NetworkManager {
   }
   
   
+  /**
+   * Add an upload entity for write processing, pinned to the processor for the given shard.
+   * @param entity to add
+   * @param shard entities with the same value share a processor thread
+   */
+  public void addWriteEntity( RateControlledEntity entity, int shard ) {
+    write_controller.addWriteEntity( entity, shard );
+  }
+  
+  
   /**
    * Remove an upload entity from write processing.
    * @param entity to remove
@@ -386,6 +420,16 @@ public class NetworkManager {
   }
   
   
+  /**
+   * Add a download entity for read processing, pinned to the processor for the given shard.
+   * @param entity to add
+   * @param shard entities with the same value share a processor thread
+   */
+  public void addReadEntity( RateControlledEntity entity, int shard ) {
+    read_controller.addReadEntity( entity, shard );
+  }
+  
+  
   /**
    * Remove a download entity from read processing.
    * @param entity to remove
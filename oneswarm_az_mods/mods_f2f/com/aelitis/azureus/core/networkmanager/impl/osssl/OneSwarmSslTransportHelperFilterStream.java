@@ -8,6 +8,10 @@ import java.security.NoSuchAlgorithmException;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateException;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -23,9 +27,12 @@ import org.gudy.azureus2.core3.config.COConfigurationManager;
 import org.gudy.azureus2.core3.util.Debug;
 import org.gudy.azureus2.core3.util.DirectByteBuffer;
 import org.gudy.azureus2.core3.util.DirectByteBufferPool;
+import org.gudy.azureus2.core3.util.SystemTime;
 
 import com.aelitis.azureus.core.networkmanager.impl.TransportHelper;
 import com.aelitis.azureus.core.networkmanager.impl.TransportHelperFilterStream;
+import com.aelitis.azureus.core.stats.AzureusCoreStats;
+import com.aelitis.azureus.core.stats.AzureusCoreStatsProvider;
 
 public class OneSwarmSslTransportHelperFilterStream
 	extends TransportHelperFilterStream
@@ -67,6 +74,36 @@ public class OneSwarmSslTransportHelperFilterStream
 
 	//public final static int								 SSL_HEADER_MIN_LENGTH = 100;
 
+	private static final AtomicLong					 recordsWritten							 = new AtomicLong();
+
+	private static final AtomicLong					 recordBytesWritten					 = new AtomicLong();
+
+	private static final AtomicLong					 wrapTime										 = new AtomicLong();
+
+	static {
+		Set<String> types = new HashSet<String>();
+		types.add(AzureusCoreStats.ST_NET_SSL_WRITE_RECORD_COUNT);
+		types.add(AzureusCoreStats.ST_NET_SSL_WRITE_BYTES);
+		types.add(AzureusCoreStats.ST_NET_SSL_WRAP_TIME);
+
+		AzureusCoreStats.registerProvider(types, new AzureusCoreStatsProvider() {
+			public void updateStats(Set types, Map values) {
+				if (types.contains(AzureusCoreStats.ST_NET_SSL_WRITE_RECORD_COUNT)) {
+					values.put(AzureusCoreStats.ST_NET_SSL_WRITE_RECORD_COUNT, new Long(
+							recordsWritten.get()));
+				}
+				if (types.contains(AzureusCoreStats.ST_NET_SSL_WRITE_BYTES)) {
+					values.put(AzureusCoreStats.ST_NET_SSL_WRITE_BYTES, new Long(
+							recordBytesWritten.get()));
+				}
+				if (types.contains(AzureusCoreStats.ST_NET_SSL_WRAP_TIME)) {
+					values.put(AzureusCoreStats.ST_NET_SSL_WRAP_TIME, new Long(
+							wrapTime.get()));
+				}
+			}
+		});
+	}
+
 	private final SslHandShakeMatch				 incomingHandshake;
 
 	private SSLEngineResult.HandshakeStatus handshakeStatus;
@@ -85,6 +122,16 @@ public class OneSwarmSslTransportHelperFilterStream
 
 	private DirectByteBuffer								encryptedDataForNetwork_db;
 
+	/*
+	 * records are encrypted back to back into the network buffer until it
+	 * holds this many bytes, so small messages go out in a single write
+	 */
+	private final int												writeBatchBytes;
+
+	private final int												netPacketSize;
+
+	private final int												netWriteBufferSize;
+
 	private boolean												 handshakeCompleted					 = false;
 
 	private final SSLEngine								 sslEngine;
@@ -134,6 +181,11 @@ public class OneSwarmSslTransportHelperFilterStream
 		SSL_APP_BUFFER_SIZE = sslSession.getApplicationBufferSize() * 2;
 		SSL_NET_BUFFER_SIZE = sslSession.getPacketBufferSize() * 2;
 
+		netPacketSize = sslSession.getPacketBufferSize();
+		writeBatchBytes = COConfigurationManager.getIntParameter("network.tcp.ssl.write.batch.bytes");
+		netWriteBufferSize = Math.max(SSL_NET_BUFFER_SIZE, writeBatchBytes
+				+ netPacketSize);
+
 		// we will need this during handshake, allocate here
 		decryptedDataForApp_db = DirectByteBufferPool.getBuffer(
 				DirectByteBuffer.AL_NET_CRYPT, SSL_APP_BUFFER_SIZE);
@@ -445,8 +497,7 @@ public class OneSwarmSslTransportHelperFilterStream
 		} else {
 			// we need this buffer for some time
 			encryptedDataForNetwork_db = DirectByteBufferPool.getBuffer(
-					DirectByteBuffer.AL_NET_CRYPT,
-					OneSwarmSslTransportHelperFilterStream.SSL_NET_BUFFER_SIZE);
+					DirectByteBuffer.AL_NET_CRYPT, netWriteBufferSize);
 			encryptedDataForNetwork = encryptedDataForNetwork_db.getBuffer(DirectByteBuffer.SS_NET);
 			encryptedDataForNetwork.clear();
 		}
@@ -478,19 +529,35 @@ public class OneSwarmSslTransportHelperFilterStream
 				return 0;
 			}
 
-			SSLEngineResult result = sslEngine.wrap(buffers, array_offset, length,
-					encryptedDataForNetwork);
-			totalDataWritten += result.bytesConsumed();
-			totalNetWritten += result.bytesProduced();
-			if (result.getStatus() == Status.CLOSED) {
-				logger.fine("SSL engine closed");
-				throw new IOException("SSL engine closed");
-			} else if (result.getStatus() != Status.OK) {
-				throw new IOException("wrapping, got error:\n" + result);
+			/*
+			 * keep wrapping while there is data left and room for another
+			 * record, the records then go to the transport in a single write
+			 */
+			int bytesConsumed = 0;
+			long wrapStart = SystemTime.getHighPrecisionCounter();
+			while (true) {
+				SSLEngineResult result = sslEngine.wrap(buffers, array_offset,
+						length, encryptedDataForNetwork);
+				totalDataWritten += result.bytesConsumed();
+				totalNetWritten += result.bytesProduced();
+				if (result.getStatus() == Status.CLOSED) {
+					logger.fine("SSL engine closed");
+					throw new IOException("SSL engine closed");
+				} else if (result.getStatus() != Status.OK) {
+					throw new IOException("wrapping, got error:\n" + result);
+				}
+				bytesConsumed += result.bytesConsumed();
+				total_written += result.bytesConsumed();
+				recordsWritten.incrementAndGet();
+				recordBytesWritten.addAndGet(result.bytesProduced());
+
+				if (total_written >= size || result.bytesProduced() == 0
+						|| encryptedDataForNetwork.position() >= writeBatchBytes
+						|| encryptedDataForNetwork.remaining() < netPacketSize) {
+					break;
+				}
 			}
-			int bytesConsumed = result.bytesConsumed();
-
-			total_written += bytesConsumed;
+			wrapTime.addAndGet(SystemTime.getHighPrecisionCounter() - wrapStart);
 			encryptedDataForNetwork.flip();
 
 			boolean partial_write;
@@ -27,6 +27,7 @@ import java.net.SocketException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.gudy.azureus2.core3.logging.*;
 import org.gudy.azureus2.core3.util.*;
@@ -62,6 +63,11 @@ TCPTransportHelper
 
 	private static boolean enable_efficient_io = !Constants.JAVA_VERSION.startsWith("1.4");
 
+		// socket level write accounting, bytes / calls gives the average size of each syscall
+	
+	private static final AtomicLong	write_call_count	= new AtomicLong();
+	private static final AtomicLong	write_byte_count	= new AtomicLong();
+
 	private	final SocketChannel	channel;
 	
 	private ByteBuffer	delayed_write;
@@ -262,6 +268,8 @@ TCPTransportHelper
 				try{
 					written_sofar = channel.write( buffers, array_offset, length );
 					
+					countWrite( written_sofar );
+					
 				}catch( IOException ioe ) {
 					
 					//a bug only fixed in Tiger (1.5 series):
@@ -312,6 +320,7 @@ TCPTransportHelper
 		while(remainingBytesToScatter > 0 && buf.remaining() > 0)
 		{
 			int currentWritten = channel.write((ByteBuffer)(buf.slice().limit(Math.min(50+rnd.nextInt(100),buf.remaining()))));
+			countWrite( currentWritten );
 			if(currentWritten == 0)
 				break;
 			buf.position(buf.position()+currentWritten);
@@ -330,12 +339,39 @@ TCPTransportHelper
 			written += currentWritten;
 		}
 		
-		if(buf.remaining() > 0)
-			written += channel.write(buf);
+		if(buf.remaining() > 0){
+			int currentWritten = channel.write(buf);
+			countWrite( currentWritten );
+			written += currentWritten;
+		}
 	
 		return written;		
 	}
 	
+	private static void
+	countWrite(
+		long	bytes )
+	{
+		write_call_count.incrementAndGet();
+		
+		if ( bytes > 0 ){
+			
+			write_byte_count.addAndGet( bytes );
+		}
+	}
+	
+	public static long
+	getWriteCallCount()
+	{
+		return( write_call_count.get());
+	}
+	
+	public static long
+	getWriteByteCount()
+	{
+		return( write_byte_count.get());
+	}
+	
 	public int 
 	read( 
 		ByteBuffer buffer ) 
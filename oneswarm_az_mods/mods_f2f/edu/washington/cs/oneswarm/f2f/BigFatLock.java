@@ -9,6 +9,11 @@ import java.util.logging.Logger;
 
 import org.gudy.azureus2.core3.util.Debug;
 
+import com.aelitis.azureus.core.stats.AzureusCoreStats;
+import com.aelitis.azureus.core.stats.AzureusCoreStatsGauge;
+import com.aelitis.azureus.core.stats.AzureusCoreStatsHistogram;
+import com.aelitis.azureus.core.stats.AzureusCoreStatsRegistry;
+
 public class BigFatLock
 	extends ReentrantLock
 {
@@ -19,6 +24,18 @@ public class BigFatLock
 
 	private long										mMostRecentAcquire;
 
+	private long										mMostRecentAcquireNanos;
+
+	/**
+	 * Always on, unlike the debug fields below, so lock contention can be
+	 * graphed from the exported stats.
+	 */
+	private static final AzureusCoreStatsHistogram	waitTimes = AzureusCoreStatsRegistry
+			.getHistogram(AzureusCoreStats.ST_F2F_LOCK_WAIT_US);
+
+	private static final AzureusCoreStatsHistogram	holdTimes = AzureusCoreStatsRegistry
+			.getHistogram(AzureusCoreStats.ST_F2F_LOCK_HOLD_US);
+
 	/**
 	 * These are for debugging.
 	 */
@@ -55,6 +72,15 @@ public class BigFatLock
 
 	private final static BigFatLock instance					 = new BigFatLock();
 
+	static {
+		AzureusCoreStatsRegistry.registerGauge(
+				AzureusCoreStats.ST_F2F_LOCK_QUEUE_LENGTH, new AzureusCoreStatsGauge() {
+					public long getValue() {
+						return instance.getQueueLength();
+					}
+				});
+	}
+
 	public static BigFatLock getInstance(boolean isAEMonitor) {
 		/*
 		 * if checkloglevel and the log level is <FINE, return null
@@ -96,8 +122,14 @@ public class BigFatLock
 		
 
 		long start = System.currentTimeMillis();
+		long startNanos = System.nanoTime();
 		super.lock();
 		long time = (System.currentTimeMillis() - start);
+		if (super.getHoldCount() == 1) {
+			// reentrant acquires never wait, don't let them skew the histogram
+			mMostRecentAcquireNanos = System.nanoTime();
+			waitTimes.record((mMostRecentAcquireNanos - startNanos) / 1000);
+		}
 		if (mCreated + 10000 < System.currentTimeMillis()) {
 			if (time > longestWaitTime) {
 				longestWaitTime = time;
@@ -127,8 +159,15 @@ public class BigFatLock
 
 	public void unlock() {
 
+		long acquired = mMostRecentAcquireNanos;
+		boolean releasing = super.getHoldCount() == 1;
+
 		super.unlock();
 
+		if (releasing) {
+			holdTimes.record((System.nanoTime() - acquired) / 1000);
+		}
+
 		long time = System.currentTimeMillis() - mMostRecentAcquire;
 		if (mCreated + 10000 < System.currentTimeMillis()) {
 			if (time > longestRunTime) {
@@ -189,6 +228,15 @@ public class BigFatLock
 			b.append("waits > " + w[1] + " " + w[0] + "\n");
 		}
 
+		AzureusCoreStatsHistogram.snapshot wait = waitTimes.getSnapshot();
+		AzureusCoreStatsHistogram.snapshot hold = holdTimes.getSnapshot();
+		b.append("wait us: count=" + wait.getCount() + " p50="
+				+ wait.getValueAtQuantile(0.5) + " p99=" + wait.getValueAtQuantile(0.99)
+				+ " max=" + wait.getMax() + "\n");
+		b.append("hold us: count=" + hold.getCount() + " p50="
+				+ hold.getValueAtQuantile(0.5) + " p99=" + hold.getValueAtQuantile(0.99)
+				+ " max=" + hold.getMax() + "\n");
+
 		synchronized (recentAcquireTimes) {
 			b.append("\n\nwaits (" + recentAcquireTimes.size() + "):");
 			for (Long l : recentAcquireTimes) {
@@ -62,6 +62,10 @@ public class FileCollection
 		this.addedTimeUTC = addedTimeUTC;
 	}
 
+	public Map<String, String> getOptionalFields() {
+		return optionalFields;
+	}
+
 	private void setOptionalFields(Map<String, String> optionalFields) {
 		this.optionalFields = optionalFields;
 	}
@@ -0,0 +1,46 @@
+package edu.washington.cs.oneswarm.f2f.permissions;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.washington.cs.oneswarm.f2f.storage.BinaryRecordStore;
+
+/**
+ * Binary form of a GroupBean for the groups store. Bump VERSION when adding fields and read
+ * older versions with the old layout.
+ */
+class GroupBeanCodec implements BinaryRecordStore.RecordCodec<GroupBean> {
+	static final int VERSION = 1;
+
+	public void write(GroupBean group, DataOutputStream out) throws IOException {
+		out.writeLong(group.getGroupID());
+		BinaryRecordStore.writeString(out, group.getGroupName());
+		out.writeBoolean(group.isUserGroup());
+		List<String> keys = group.getMemberKeys();
+		out.writeInt(keys == null ? -1 : keys.size());
+		if (keys != null) {
+			for (String key : keys) {
+				BinaryRecordStore.writeString(out, key);
+			}
+		}
+	}
+
+	public GroupBean read(DataInputStream in, int version) throws IOException {
+		GroupBean group = new GroupBean();
+		group.setGroupID(in.readLong());
+		group.setGroupName(BinaryRecordStore.readString(in));
+		group.setUserGroup(in.readBoolean());
+		int count = in.readInt();
+		if (count >= 0) {
+			List<String> keys = new ArrayList<String>(count);
+			for (int i = 0; i < count; i++) {
+				keys.add(BinaryRecordStore.readString(in));
+			}
+			group.setMemberKeys(keys);
+		}
+		return group;
+	}
+}
@@ -0,0 +1,216 @@
+package edu.washington.cs.oneswarm.f2f.permissions;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bouncycastle.util.encoders.Base64;
+import org.gudy.azureus2.core3.util.HashWrapper;
+
+/**
+ * An immutable, compiled form of the swarm -> group -> member key permissions. Friends and
+ * swarms are given dense integer ids and each swarm holds a bitset of the friends permitted to
+ * see it, along with flags for the special all friends and public groups.
+ *
+ * Instances are never modified once built so can be read without locking. The DAO builds a
+ * new one whenever groups or swarm permissions change, and derives one from the current index
+ * when a download is added or removed.
+ */
+public class PermissionIndex {
+
+	private static final byte FLAG_ALL_FRIENDS = 0x01;
+	private static final byte FLAG_PUBLIC = 0x02;
+
+	public static final int UNKNOWN = -1;
+
+	private final Map<String, Integer> base64Key_to_friendid;
+	private final Map<HashWrapper, Integer> key_to_friendid;
+	private final Map<HashWrapper, Integer> hash_to_swarmid;
+
+	private final BitSet[] swarm_friends;
+	private final byte[] swarm_flags;
+
+	private PermissionIndex(Builder builder) {
+		base64Key_to_friendid = builder.base64Key_to_friendid;
+		key_to_friendid = builder.key_to_friendid;
+		hash_to_swarmid = builder.hash_to_swarmid;
+
+		int num_swarms = builder.swarm_friends.size();
+
+		swarm_friends = builder.swarm_friends.toArray(new BitSet[num_swarms]);
+		swarm_flags = new byte[num_swarms];
+
+		for (int i = 0; i < num_swarms; i++) {
+			swarm_flags[i] = builder.swarm_flags.get(i);
+		}
+	}
+
+	public int getFriendID(String inBase64Key) {
+		Integer id = base64Key_to_friendid.get(inBase64Key);
+		return id == null ? UNKNOWN : id;
+	}
+
+	public int getFriendID(byte[] inKey) {
+		Integer id = key_to_friendid.get(new HashWrapper(inKey));
+		return id == null ? UNKNOWN : id;
+	}
+
+	public int getSwarmID(byte[] inSwarmHash) {
+		Integer id = hash_to_swarmid.get(new HashWrapper(inSwarmHash));
+		return id == null ? UNKNOWN : id;
+	}
+
+	public int getSwarmCount() {
+		return hash_to_swarmid.size();
+	}
+
+	public int getFriendCount() {
+		return base64Key_to_friendid.size();
+	}
+
+	/**
+	 * @param inFriendID
+	 *            as returned by getFriendID, may be UNKNOWN in which case only
+	 *            swarms shared with all friends are permitted
+	 */
+	public boolean hasPermissions(int inFriendID, byte[] inSwarmHash) {
+		int swarm = getSwarmID(inSwarmHash);
+		if (swarm == UNKNOWN) {
+			return false;
+		}
+
+		if ((swarm_flags[swarm] & FLAG_ALL_FRIENDS) != 0) {
+			return true;
+		}
+
+		return inFriendID != UNKNOWN && swarm_friends[swarm].get(inFriendID);
+	}
+
+	public boolean hasPermissions(byte[] inKey, byte[] inSwarmHash) {
+		return hasPermissions(getFriendID(inKey), inSwarmHash);
+	}
+
+	public boolean hasPermissions(String inBase64Key, byte[] inSwarmHash) {
+		return hasPermissions(getFriendID(inBase64Key), inSwarmHash);
+	}
+
+	public boolean hasAllFriendsPermission(byte[] inSwarmHash) {
+		return hasFlag(inSwarmHash, FLAG_ALL_FRIENDS);
+	}
+
+	public boolean hasPublicPermission(byte[] inSwarmHash) {
+		return hasFlag(inSwarmHash, FLAG_PUBLIC);
+	}
+
+	private boolean hasFlag(byte[] inSwarmHash, byte flag) {
+		int swarm = getSwarmID(inSwarmHash);
+		return swarm != UNKNOWN && (swarm_flags[swarm] & flag) != 0;
+	}
+
+	static class Builder {
+		private final Map<String, Integer> base64Key_to_friendid;
+		private final Map<HashWrapper, Integer> key_to_friendid;
+		private final Map<HashWrapper, Integer> hash_to_swarmid;
+
+		private final List<BitSet> swarm_friends;
+		private final List<Byte> swarm_flags;
+
+		Builder() {
+			base64Key_to_friendid = new HashMap<String, Integer>();
+			key_to_friendid = new HashMap<HashWrapper, Integer>();
+			hash_to_swarmid = new HashMap<HashWrapper, Integer>();
+			swarm_friends = new ArrayList<BitSet>();
+			swarm_flags = new ArrayList<Byte>();
+		}
+
+		/**
+		 * Starts from a copy of an existing index, which is left unchanged. The bitsets are
+		 * shared, addSwarm replaces a swarm's bitset rather than modifying it.
+		 */
+		Builder(PermissionIndex base) {
+			base64Key_to_friendid = new HashMap<String, Integer>(base.base64Key_to_friendid);
+			key_to_friendid = new HashMap<HashWrapper, Integer>(base.key_to_friendid);
+			hash_to_swarmid = new HashMap<HashWrapper, Integer>(base.hash_to_swarmid);
+			swarm_friends = new ArrayList<BitSet>(Arrays.asList(base.swarm_friends));
+			swarm_flags = new ArrayList<Byte>(base.swarm_flags.length);
+			for (byte flags : base.swarm_flags) {
+				swarm_flags.add(flags);
+			}
+		}
+
+		/**
+		 * Adds (or replaces) the permissions of a swarm.
+		 */
+		void addSwarm(byte[] inSwarmHash, List<GroupBean> inGroups) {
+			BitSet friends = new BitSet();
+			byte flags = 0;
+
+			for (GroupBean g : inGroups) {
+				if (g.equals(GroupBean.ALL_FRIENDS)) {
+					flags |= FLAG_ALL_FRIENDS;
+				} else if (g.equals(GroupBean.PUBLIC)) {
+					flags |= FLAG_PUBLIC;
+				}
+
+				List<String> keys = g.getMemberKeys();
+				if (keys == null) {
+					continue;
+				}
+				for (String key : keys) {
+					friends.set(getOrAddFriend(key));
+				}
+			}
+
+			HashWrapper hash = new HashWrapper(inSwarmHash);
+			Integer existing = hash_to_swarmid.get(hash);
+			if (existing != null) {
+				swarm_friends.set(existing, friends);
+				swarm_flags.set(existing, flags);
+			} else {
+				hash_to_swarmid.put(hash, swarm_friends.size());
+				swarm_friends.add(friends);
+				swarm_flags.add(flags);
+			}
+		}
+
+		/**
+		 * Removes the permissions of a swarm. Its id isn't reused, the slot stays empty until
+		 * the index is next built from scratch.
+		 */
+		void removeSwarm(byte[] inSwarmHash) {
+			Integer existing = hash_to_swarmid.remove(new HashWrapper(inSwarmHash));
+			if (existing != null) {
+				swarm_friends.set(existing, new BitSet());
+				swarm_flags.set(existing, (byte) 0);
+			}
+		}
+
+		private int getOrAddFriend(String inBase64Key) {
+			Integer id = base64Key_to_friendid.get(inBase64Key);
+			if (id != null) {
+				return id;
+			}
+
+			id = base64Key_to_friendid.size();
+			base64Key_to_friendid.put(inBase64Key, id);
+
+			/**
+			 * Member keys of the special groups aren't base64, they just
+			 * don't get a binary mapping
+			 */
+			try {
+				key_to_friendid.put(new HashWrapper(Base64.decode(inBase64Key)), id);
+			} catch (Exception e) {
+			}
+
+			return id;
+		}
+
+		PermissionIndex build() {
+			return new PermissionIndex(this);
+		}
+	}
+}
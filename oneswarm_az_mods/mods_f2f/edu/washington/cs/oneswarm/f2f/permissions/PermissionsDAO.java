@@ -1,12 +1,9 @@
 package edu.washington.cs.oneswarm.f2f.permissions;
 
 import java.beans.XMLDecoder;
-import java.beans.XMLEncoder;
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -16,6 +13,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -25,6 +23,7 @@ import org.gudy.azureus2.core3.download.DownloadManager;
 import org.gudy.azureus2.core3.download.DownloadManagerInitialisationAdapter;
 import org.gudy.azureus2.core3.download.DownloadManagerListener;
 import org.gudy.azureus2.core3.download.DownloadManagerState;
+import org.gudy.azureus2.core3.global.GlobalManagerListener;
 import org.gudy.azureus2.core3.peer.PEPeerSource;
 import org.gudy.azureus2.core3.torrent.impl.TOTorrentImpl;
 import org.gudy.azureus2.core3.util.AENetworkClassifier;
@@ -40,12 +39,14 @@ import com.aelitis.azureus.core.impl.AzureusCoreImpl;
 import edu.washington.cs.oneswarm.f2f.Friend;
 import edu.washington.cs.oneswarm.f2f.share.DownloadManagerStarter;
 import edu.washington.cs.oneswarm.f2f.share.DownloadManagerStarter.DownloadManagerStartListener;
+import edu.washington.cs.oneswarm.f2f.storage.BinaryRecordStore;
 
 public class PermissionsDAO {
 	private static Logger logger = Logger.getLogger(PermissionsDAO.class.getName());
 
 	private static final String PERMISSIONS_FILE_NAME = "permissions.xml";
 	private static final String GROUPS_FILE_NAME = "groups.xml";
+	private static final String GROUPS_STORE_NAME = "groups";
 	
 	private static final String PERMISSIONS_PATH = SystemProperties.getUserPath() + File.separator + PERMISSIONS_FILE_NAME;
 	private static final String GROUPS_PATH = SystemProperties.getUserPath() + File.separator + GROUPS_FILE_NAME;
@@ -54,6 +55,13 @@ public class PermissionsDAO {
 	
 	private static PermissionsDAO inst = new PermissionsDAO();
 	
+	/**
+	 * Groups v3 -- groups.bin/.log, groups.xml is only read to migrate from and left in place
+	 */
+	private final BinaryRecordStore<GroupBean> groupStore = new BinaryRecordStore<GroupBean>(
+			new File(SystemProperties.getUserPath()), GROUPS_STORE_NAME, GroupBeanCodec.VERSION,
+			new GroupBeanCodec());
+	
 	private long nextGroupID = 3;
 
 	/**
@@ -70,6 +78,14 @@ public class PermissionsDAO {
 	 */
 	Map<String, ArrayList<GroupBean>> temporaryHash_to_groups = new HashMap<String, ArrayList<GroupBean>>();
 	
+	/**
+	 * Compiled form of the above used for permission checks, rebuilt on demand after group or
+	 * permission changes and updated in place of a rebuild when downloads come and go.
+	 * Checks only read the volatile reference so don't contend with each other or with updates.
+	 */
+	private volatile PermissionIndex index = null;
+	private final AtomicInteger index_generation = new AtomicInteger();
+	
 	/**/
 
 	private IPCInterface f2fIpc = null;
@@ -101,6 +117,8 @@ public class PermissionsDAO {
 			
 			sanity_check_perms();
 			
+			invalidateIndex();
+			
 		} // f2fIpc != null
 	}
 	
@@ -156,12 +174,50 @@ public class PermissionsDAO {
 					e.printStackTrace();
 				}
 			}});
+		
+		AzureusCoreImpl.getSingleton().getGlobalManager().addListener(new GlobalManagerListener(){
+			public void downloadManagerAdded(DownloadManager dm) {
+				updateIndex(dm, true);
+			}
+
+			public void downloadManagerRemoved(DownloadManager dm) {
+				updateIndex(dm, false);
+			}
+
+			public void destroyInitiated() {
+			}
+
+			public void destroyed() {
+			}
+
+			public void seedingStatusChanged(boolean seeding_only_mode) {
+			}
+		}, false);
 	}
 	
 	private void load_groups() throws IOException {
-		logger.info("loading groups (v2)");
-		XMLDecoder decoder = new XMLDecoder(new BufferedInputStream(new FileInputStream(GROUPS_PATH)));
-		Map<Long, GroupBean> scratch_groupid_to_group = (Map<Long, GroupBean>)decoder.readObject();
+		Map<Long, GroupBean> scratch_groupid_to_group = null;
+		if( groupStore.exists() ) {
+			logger.info("loading groups (v3)");
+			try {
+				scratch_groupid_to_group = new HashMap<Long, GroupBean>();
+				for( GroupBean g : groupStore.load().values() ) {
+					scratch_groupid_to_group.put(g.getGroupID(), g);
+				}
+			} catch( IOException e ) {
+				// snapshot and backup both unreadable, save_groups moves them aside
+				logger.warning("Error loading v3 groups, trying v2. " + e.toString());
+				scratch_groupid_to_group = null;
+			}
+		}
+		
+		boolean migrate = scratch_groupid_to_group == null;
+		if( migrate ) {
+			logger.info("loading groups (v2)");
+			XMLDecoder decoder = new XMLDecoder(new BufferedInputStream(new FileInputStream(GROUPS_PATH)));
+			scratch_groupid_to_group = (Map<Long, GroupBean>)decoder.readObject();
+			decoder.close();
+		}
 		
 		/**
 		 * Sanity check this file -- does it include all friends and public at the correct IDs? If not, throw it out. 
@@ -173,6 +229,15 @@ public class PermissionsDAO {
 		}
 		
 		groupid_to_group = scratch_groupid_to_group;
+		
+		// otherwise the next group added after a restart would reuse an existing ID
+		for( Long id : groupid_to_group.keySet() ) {
+			nextGroupID = Math.max(nextGroupID, id + 1);
+		}
+		
+		if( migrate ) {
+			save_groups();
+		}
 	}
 
 	private void load_permissions() throws IOException {
@@ -377,6 +442,7 @@ public class PermissionsDAO {
 		}
 		
 		g.setGroupName(neu);
+		invalidateIndex();
 		save_groups();
 	}
 
@@ -393,10 +459,12 @@ public class PermissionsDAO {
 	private synchronized void save_groups() {
 		logger.fine("save groups");
 		try {
-			XMLEncoder encoder = new XMLEncoder(new BufferedOutputStream(new FileOutputStream(GROUPS_PATH)));
-			encoder.writeObject(groupid_to_group);
-			encoder.close();
-			logger.fine("done");
+			Map<String, GroupBean> records = new HashMap<String, GroupBean>();
+			for( Map.Entry<Long, GroupBean> e : groupid_to_group.entrySet() ) {
+				records.put(e.getKey().toString(), e.getValue());
+			}
+			int changed = groupStore.sync(records, true, false);
+			logger.fine("done, " + changed + " changed");
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
@@ -415,6 +483,7 @@ public class PermissionsDAO {
 			base64Key_to_groupid.put(userKeys.get(0), g.getGroupID());
 		}
 		
+		invalidateIndex();
 		save_groups();
 		logger.fine("added new group: " + inName);
 		
@@ -432,6 +501,7 @@ public class PermissionsDAO {
 			throw new IOException("Can't update keys for a user group.");
 		}
 		g.setMemberKeys(keys);
+		invalidateIndex();
 	}
 	
 	public synchronized void removeGroupID( Long inID ) throws IOException { 
@@ -457,24 +527,15 @@ public class PermissionsDAO {
 		}
 		
 		groupid_to_group.remove(inID);
+		invalidateIndex();
 	}
 
-	public synchronized boolean hasPublicPermission(byte[] infoHash) {
-		String inHexHash = ByteFormatter.encodeString(infoHash);
-		List<GroupBean> allowedGroups = getGroupsForHash(inHexHash);
-		if (allowedGroups == null) {
-			return false;
-		}
-		return allowedGroups.contains(GroupBean.PUBLIC);
+	public boolean hasPublicPermission(byte[] infoHash) {
+		return getPermissionIndex().hasPublicPermission(infoHash);
 	}
 
-	public synchronized boolean hasAllFriendsPermission(byte[] infoHash) {
-		String inHexHash = ByteFormatter.encodeString(infoHash);
-		List<GroupBean> allowedGroups = getGroupsForHash(inHexHash);
-		if (allowedGroups == null) {
-			return false;
-		}
-		return allowedGroups.contains(GroupBean.ALL_FRIENDS);
+	public boolean hasAllFriendsPermission(byte[] infoHash) {
+		return getPermissionIndex().hasAllFriendsPermission(infoHash);
 	}
 	
 	public synchronized ArrayList<GroupBean> getGroupsForHash( String inHexHash ) {
@@ -496,6 +557,11 @@ public class PermissionsDAO {
 			logger.warning("DownloadManager is not null, but temporary hash still has entry for swarm: " + dm.getDisplayName());
 		}
 		
+		return getGroupsForDownload(dm, inHexHash);
+	}
+	
+	private synchronized ArrayList<GroupBean> getGroupsForDownload( DownloadManager dm, String inHexHash ) {
+		
 		String[] groups = dm.getDownloadState().getListAttribute(TOTorrentImpl.OS_PERMISSIONS);
 		ArrayList<GroupBean> out = new ArrayList<GroupBean>();
 		try { 
@@ -556,6 +622,7 @@ public class PermissionsDAO {
 			}
 			
 			temporaryHash_to_groups.put(inHexHash, inGroups);
+			invalidateIndex();
 			logger.finest("setGroupsForHash -- used temporary storage while adding.");
 			return;
 		}
@@ -582,6 +649,7 @@ public class PermissionsDAO {
 		
 		dm.getDownloadState().setListAttribute(TOTorrentImpl.OS_PERMISSIONS, idsList.toArray(new String[0]));
 		dm.getDownloadState().save();
+		invalidateIndex();
 		
 		if( idsList.size() == 0 ) {
 			dm.setData(NO_PERMISSIONS_DATA, Boolean.TRUE);
@@ -677,25 +745,98 @@ public class PermissionsDAO {
 		return Arrays.asList(groupid_to_group.values().toArray(new GroupBean[0]));
 	}
 
-	public synchronized boolean hasPermissions(String inBase64Key, byte[] inSwarmHash) {
-		String hashStr = ByteFormatter.encodeString(inSwarmHash);
-		List<GroupBean> groups = getGroupsForHash(hashStr);
+	public boolean hasPermissions(String inBase64Key, byte[] inSwarmHash) {
+		return getPermissionIndex().hasPermissions(inBase64Key, inSwarmHash);
+	}
+
+	public boolean hasPermissions(byte[] inKey, byte[] inSwarmHash) {
+		return getPermissionIndex().hasPermissions(inKey, inSwarmHash);
+	}
+	
+	/**
+	 * @return the current compiled permissions. Callers checking many swarms for one friend
+	 *         (file list generation) should get this once and resolve the friend id once.
+	 */
+	public PermissionIndex getPermissionIndex() {
+		PermissionIndex current = index;
+		if (current != null) {
+			return current;
+		}
+		return buildIndex();
+	}
+	
+	private void invalidateIndex() {
+		index_generation.incrementAndGet();
+		index = null;
+	}
+	
+	/**
+	 * Applies one download being added or removed to a copy of the current index rather than
+	 * resolving the groups of every swarm again. Without a current index there's nothing to
+	 * update, the next check builds one from the downloads as they are then.
+	 */
+	private synchronized void updateIndex(DownloadManager dm, boolean added) {
+		PermissionIndex current = index;
+		if (current == null) {
+			return;
+		}
 		
-		for( GroupBean g : groups ) {
-			if( g.equals(GroupBean.ALL_FRIENDS) ) {
-				return true;
+		try {
+			byte[] hash = dm.getTorrent().getHash();
+			String hexHash = ByteFormatter.encodeString(hash);
+			PermissionIndex.Builder builder = new PermissionIndex.Builder(current);
+			if (added) {
+				builder.addSwarm(hash, getGroupsForDownload(dm, hexHash));
+			} else if (temporaryHash_to_groups.containsKey(hexHash)) {
+				// a full build would still include it
+				builder.addSwarm(hash, temporaryHash_to_groups.get(hexHash));
+			} else {
+				builder.removeSwarm(hash);
 			}
-			
-			if( g.getMemberKeys().contains(inBase64Key) ) {
-				return true;
+			index = builder.build();
+		} catch( Exception e ) {
+			logger.warning("Error updating permission index for: " + dm.getDisplayName() + " / " + e.toString());
+			invalidateIndex();
+		}
+	}
+	
+	private synchronized PermissionIndex buildIndex() {
+		PermissionIndex current = index;
+		if (current != null) {
+			return current;
+		}
+		
+		/**
+		 * Anything changing while we build (e.g. a download being added, which isn't done under our lock) 
+		 * means the result can't be kept, though it's still good enough to answer the current query
+		 */
+		int generation = index_generation.get();
+		long time = System.currentTimeMillis();
+		
+		PermissionIndex.Builder builder = new PermissionIndex.Builder();
+		
+		for( Map.Entry<String, ArrayList<GroupBean>> e : temporaryHash_to_groups.entrySet() ) {
+			builder.addSwarm(ByteFormatter.decodeString(e.getKey()), e.getValue());
+		}
+		
+		for( DownloadManager dm : (List<DownloadManager>)AzureusCoreImpl.getSingleton().getGlobalManager().getDownloadManagers() ) {
+			try {
+				byte[] hash = dm.getTorrent().getHash();
+				builder.addSwarm(hash, getGroupsForDownload(dm, ByteFormatter.encodeString(hash)));
+			} catch( Exception e ) {
+				logger.warning("Error indexing permissions for: " + dm.getDisplayName() + " / " + e.toString());
 			}
 		}
 		
-		return false;
-	}
-
-	public synchronized boolean hasPermissions(byte[] inKey, byte[] inSwarmHash) {
-		return hasPermissions(new String(Base64.encode(inKey)), inSwarmHash);
+		current = builder.build();
+		
+		if (generation == index_generation.get()) {
+			index = current;
+		}
+		
+		logger.fine("built permission index, swarms=" + current.getSwarmCount() + " friends=" + current.getFriendCount() + " time=" + (System.currentTimeMillis() - time));
+		
+		return current;
 	}
 	
 	public void setTorrentPrivacy(DownloadManager dm, boolean publicNet, boolean f2fNet) {
@@ -0,0 +1,502 @@
+package edu.washington.cs.oneswarm.f2f.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * A compact, versioned key/value store for small persistent tables (friends, permission groups)
+ * that used to be rewritten in full with XMLEncoder on every change.
+ *
+ * <name>.bin holds a snapshot, written to a temporary file and renamed into place. Changes
+ * between snapshots are appended to <name>.log as put/remove records, each with its own CRC so a
+ * torn write at the tail is dropped on load. Once the log outgrows the snapshot the two are
+ * compacted into a new snapshot, the previous one is kept as <name>.bin.backup.
+ *
+ * Snapshot and log carry a generation number, a log left behind by a crash during compaction
+ * doesn't match the new snapshot and is ignored.
+ *
+ * A snapshot that fails its checksum is skipped in favor of the backup. Files that couldn't be
+ * read are never rotated or overwritten, the next sync renames them to <file>.corrupt and writes
+ * a fresh snapshot next to the backup.
+ */
+public class BinaryRecordStore<T> {
+	private static Logger logger = Logger.getLogger(BinaryRecordStore.class.getName());
+
+	public interface RecordCodec<T> {
+		public void write(T record, DataOutputStream out) throws IOException;
+
+		/**
+		 * @param version the record version the store was written with, for reading
+		 * records written before fields were added
+		 */
+		public T read(DataInputStream in, int version) throws IOException;
+	}
+
+	private static final int SNAPSHOT_MAGIC = 0x4f534253; // "OSBS"
+	// log entries are [length][op, key, value][crc], a format 1 "OSBL" log is ignored
+	private static final int LOG_MAGIC = 0x4f53424a; // "OSBJ"
+	private static final int FORMAT_VERSION = 1;
+
+	private static final byte OP_PUT = 1;
+	private static final byte OP_REMOVE = 2;
+
+	// don't bother compacting logs smaller than this even if the snapshot is tiny
+	private static final int MIN_COMPACT_LOG_BYTES = 64 * 1024;
+
+	// records decoded per thread when loading, below this it's all done on the caller's thread
+	private static final int DECODE_CHUNK = 512;
+
+	private final File snapshotFile;
+	private final File backupFile;
+	private final File tempFile;
+	private final File logFile;
+	private final int recordVersion;
+	private final RecordCodec<T> codec;
+
+	/**
+	 * Encoded form of what's on disk (snapshot plus log), syncs diff against it so only the
+	 * records that changed get written.
+	 */
+	private final Map<String, byte[]> stored = new HashMap<String, byte[]>();
+	/**
+	 * Record version of the snapshot on disk. Log records are decoded with it, so the log is only
+	 * appended to once a snapshot has been written in the current version.
+	 */
+	private int storedVersion;
+	private long generation = 0;
+	private long snapshotBytes = 0;
+	private long logBytes = 0;
+
+	/**
+	 * Files the last load couldn't read, moved aside by the next sync instead of being rotated
+	 * into the backup slot.
+	 */
+	private final List<File> damaged = new ArrayList<File>();
+
+	public BinaryRecordStore(File dir, String name, int recordVersion, RecordCodec<T> codec) {
+		this.snapshotFile = new File(dir, name + ".bin");
+		this.backupFile = new File(dir, name + ".bin.backup");
+		this.tempFile = new File(dir, name + ".bin.tmp");
+		this.logFile = new File(dir, name + ".log");
+		this.recordVersion = recordVersion;
+		this.storedVersion = recordVersion;
+		this.codec = codec;
+	}
+
+	public boolean exists() {
+		return snapshotFile.isFile() || backupFile.isFile();
+	}
+
+	public File getSnapshotFile() {
+		return snapshotFile;
+	}
+
+	/**
+	 * Reads the snapshot, replays the log over it and decodes the records, in parallel for
+	 * large stores.
+	 *
+	 * @return the records in snapshot order, keyed as they were synced
+	 */
+	public synchronized Map<String, T> load() throws IOException {
+		stored.clear();
+		generation = 0;
+		snapshotBytes = 0;
+		logBytes = 0;
+		damaged.clear();
+
+		// a crash between moving the old snapshot away and renaming the new one in leaves only
+		// the backup, which still matches the log
+		File source = snapshotFile.isFile() ? snapshotFile : backupFile;
+
+		LinkedHashMap<String, byte[]> encoded = new LinkedHashMap<String, byte[]>();
+		int version;
+		try {
+			version = readSnapshot(source, encoded);
+		} catch (IOException e) {
+			damaged.add(source);
+			// the log was written against the damaged snapshot, replayLog skips it on the
+			// generation check and it is kept with it
+			if (logFile.isFile()) {
+				damaged.add(logFile);
+			}
+			if (source == backupFile || !backupFile.isFile()) {
+				throw e;
+			}
+			logger.warning(e.getMessage() + ", loading " + backupFile.getName());
+			encoded.clear();
+			source = backupFile;
+			try {
+				version = readSnapshot(source, encoded);
+			} catch (IOException backupFailed) {
+				damaged.add(source);
+				throw backupFailed;
+			}
+		}
+		replayLog(encoded);
+
+		stored.putAll(encoded);
+		storedVersion = version;
+
+		List<T> decoded = decode(new ArrayList<byte[]>(encoded.values()), version);
+		LinkedHashMap<String, T> out = new LinkedHashMap<String, T>();
+		Iterator<T> records = decoded.iterator();
+		for (String key : encoded.keySet()) {
+			out.put(key, records.next());
+		}
+		logger.fine("loaded " + out.size() + " records from " + source.getName() + " ("
+				+ snapshotBytes + " + " + logBytes + " log bytes)");
+		return out;
+	}
+
+	/**
+	 * Brings the store in line with records, appending just the changes to the log or
+	 * compacting into a new snapshot once the log has grown past the snapshot.
+	 *
+	 * @param allowRemovals if false and records is missing keys that are stored, nothing is
+	 * written. This guards against saving a partially built table.
+	 * @param compact always write a new snapshot, keeping the current one as the backup
+	 * @return the number of records added, changed or removed
+	 */
+	public synchronized int sync(Map<String, T> records, boolean allowRemovals, boolean compact)
+			throws IOException {
+		Map<String, byte[]> encoded = new HashMap<String, byte[]>();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+		DataOutputStream out = new DataOutputStream(bytes);
+		for (Map.Entry<String, T> e : records.entrySet()) {
+			bytes.reset();
+			codec.write(e.getValue(), out);
+			out.flush();
+			encoded.put(e.getKey(), bytes.toByteArray());
+		}
+
+		List<String> removed = new ArrayList<String>();
+		for (String key : stored.keySet()) {
+			if (!encoded.containsKey(key)) {
+				removed.add(key);
+			}
+		}
+		if (removed.size() > 0 && !allowRemovals) {
+			throw new IOException("refusing to remove " + removed.size() + " of " + stored.size()
+					+ " records from " + snapshotFile.getName());
+		}
+
+		ByteArrayOutputStream changes = new ByteArrayOutputStream();
+		DataOutputStream log = new DataOutputStream(changes);
+		int changed = 0;
+		for (Map.Entry<String, byte[]> e : encoded.entrySet()) {
+			byte[] previous = stored.get(e.getKey());
+			if (previous == null || !Arrays.equals(previous, e.getValue())) {
+				writeLogEntry(log, OP_PUT, e.getKey(), e.getValue());
+				changed++;
+			}
+		}
+		for (String key : removed) {
+			writeLogEntry(log, OP_REMOVE, key, null);
+			changed++;
+		}
+		log.flush();
+
+		if (compact || !snapshotFile.isFile() || damaged.size() > 0
+				|| storedVersion != recordVersion
+				|| logBytes + changes.size() > Math.max(snapshotBytes, MIN_COMPACT_LOG_BYTES)) {
+			writeSnapshot(encoded);
+		} else if (changed > 0) {
+			appendLog(changes.toByteArray());
+		}
+
+		stored.clear();
+		stored.putAll(encoded);
+		return changed;
+	}
+
+	private int readSnapshot(File source, Map<String, byte[]> encoded) throws IOException {
+		byte[] data = readFully(source);
+		if (data.length < 4) {
+			throw new IOException("truncated snapshot: " + source);
+		}
+		// check the whole file before trusting any length read from it
+		CRC32 crc = new CRC32();
+		crc.update(data, 0, data.length - 4);
+		if (readInt(data, data.length - 4) != (int) crc.getValue()) {
+			throw new IOException("snapshot checksum mismatch: " + source);
+		}
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, 0,
+				data.length - 4));
+		if (in.readInt() != SNAPSHOT_MAGIC) {
+			throw new IOException("not a record store snapshot: " + source);
+		}
+		int format = in.readInt();
+		if (format > FORMAT_VERSION) {
+			throw new IOException("snapshot format " + format + " is newer than supported ("
+					+ FORMAT_VERSION + "): " + source);
+		}
+		int version = in.readInt();
+		generation = in.readLong();
+		int count = in.readInt();
+		for (int i = 0; i < count; i++) {
+			String key = in.readUTF();
+			byte[] value = new byte[in.readInt()];
+			in.readFully(value);
+			encoded.put(key, value);
+		}
+		snapshotBytes = data.length;
+		return version;
+	}
+
+	private void replayLog(Map<String, byte[]> encoded) throws IOException {
+		if (!logFile.isFile()) {
+			return;
+		}
+		byte[] data = readFully(logFile);
+		if (data.length < 12 || readInt(data, 0) != LOG_MAGIC
+				|| readLong(data, 4) != generation) {
+			// left for the next snapshot to replace, it may belong to a damaged snapshot
+			logger.warning("ignoring stale or foreign log: " + logFile);
+			return;
+		}
+		int good = 12;
+		CRC32 crc = new CRC32();
+		while (data.length - good >= 8) {
+			// length and checksum are checked before anything in the entry is decoded, a torn or
+			// garbage tail can't drive an allocation
+			int length = readInt(data, good);
+			if (length < 3 || length > data.length - good - 8) {
+				break;
+			}
+			crc.reset();
+			crc.update(data, good + 4, length);
+			if (readInt(data, good + 4 + length) != (int) crc.getValue()) {
+				break;
+			}
+			try {
+				DataInputStream in = new DataInputStream(new ByteArrayInputStream(data,
+						good + 4, length));
+				byte op = in.readByte();
+				String key = in.readUTF();
+				if (op == OP_PUT) {
+					byte[] value = new byte[in.available()];
+					in.readFully(value);
+					encoded.remove(key);
+					encoded.put(key, value);
+				} else if (op == OP_REMOVE) {
+					encoded.remove(key);
+				} else {
+					break;
+				}
+			} catch (IOException e) {
+				break;
+			}
+			good += length + 8;
+		}
+		if (good < data.length) {
+			logger.warning("dropping " + (data.length - good) + " bytes of incomplete log: "
+					+ logFile);
+			RandomAccessFile raf = new RandomAccessFile(logFile, "rw");
+			try {
+				raf.setLength(good);
+			} finally {
+				raf.close();
+			}
+		}
+		logBytes = good;
+	}
+
+	private List<T> decode(final List<byte[]> values, final int version) throws IOException {
+		final List<T> decoded = new ArrayList<T>(values.size());
+		for (int i = 0; i < values.size(); i++) {
+			decoded.add(null);
+		}
+		int threads = Math.min(Runtime.getRuntime().availableProcessors(),
+				(values.size() + DECODE_CHUNK - 1) / DECODE_CHUNK);
+		if (threads <= 1) {
+			decodeRange(values, decoded, version, 0, values.size());
+			return decoded;
+		}
+
+		final IOException[] failure = new IOException[1];
+		Thread[] workers = new Thread[threads];
+		int per = (values.size() + threads - 1) / threads;
+		for (int t = 0; t < threads; t++) {
+			final int from = t * per;
+			final int to = Math.min(values.size(), from + per);
+			workers[t] = new Thread("BinaryRecordStore decode " + snapshotFile.getName()) {
+				public void run() {
+					try {
+						decodeRange(values, decoded, version, from, to);
+					} catch (IOException e) {
+						synchronized (failure) {
+							failure[0] = e;
+						}
+					}
+				}
+			};
+			workers[t].setDaemon(true);
+			workers[t].start();
+		}
+		for (Thread worker : workers) {
+			try {
+				worker.join();
+			} catch (InterruptedException e) {
+				throw new IOException("interrupted while decoding " + snapshotFile.getName());
+			}
+		}
+		synchronized (failure) {
+			if (failure[0] != null) {
+				throw failure[0];
+			}
+		}
+		return decoded;
+	}
+
+	private void decodeRange(List<byte[]> values, List<T> decoded, int version, int from, int to)
+			throws IOException {
+		for (int i = from; i < to; i++) {
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(values.get(i)));
+			// distinct indices, no two threads touch the same slot
+			decoded.set(i, codec.read(in, version));
+		}
+	}
+
+	private void writeSnapshot(Map<String, byte[]> encoded) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + 128 * encoded.size());
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(SNAPSHOT_MAGIC);
+		out.writeInt(FORMAT_VERSION);
+		out.writeInt(recordVersion);
+		out.writeLong(generation + 1);
+		out.writeInt(encoded.size());
+		for (Map.Entry<String, byte[]> e : encoded.entrySet()) {
+			out.writeUTF(e.getKey());
+			out.writeInt(e.getValue().length);
+			out.write(e.getValue());
+		}
+		out.flush();
+		CRC32 crc = new CRC32();
+		crc.update(bytes.toByteArray());
+		out.writeInt((int) crc.getValue());
+		out.flush();
+
+		writeFully(tempFile, bytes.toByteArray(), false);
+
+		// keep whatever the last load couldn't read out of the backup slot
+		for (File f : damaged) {
+			File aside = new File(f.getParentFile(), f.getName() + ".corrupt");
+			aside.delete();
+			if (f.isFile() && !f.renameTo(aside)) {
+				throw new IOException("couldn't move " + f + " to " + aside);
+			}
+			logger.warning("moved unreadable " + f.getName() + " to " + aside.getName());
+		}
+		damaged.clear();
+
+		if (snapshotFile.isFile()) {
+			backupFile.delete();
+			if (!snapshotFile.renameTo(backupFile)) {
+				throw new IOException("couldn't move " + snapshotFile + " to " + backupFile);
+			}
+		}
+		if (!tempFile.renameTo(snapshotFile)) {
+			throw new IOException("couldn't rename " + tempFile + " to " + snapshotFile);
+		}
+		logFile.delete();
+
+		generation++;
+		storedVersion = recordVersion;
+		snapshotBytes = bytes.size();
+		logBytes = 0;
+	}
+
+	private void appendLog(byte[] changes) throws IOException {
+		if (logBytes == 0) {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(12 + changes.length);
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeInt(LOG_MAGIC);
+			out.writeLong(generation);
+			out.write(changes);
+			out.flush();
+			changes = bytes.toByteArray();
+			writeFully(logFile, changes, false);
+		} else {
+			writeFully(logFile, changes, true);
+		}
+		logBytes += changes.length;
+	}
+
+	/**
+	 * Helpers for codecs, writeUTF doesn't take nulls.
+	 */
+	public static void writeString(DataOutputStream out, String s) throws IOException {
+		out.writeBoolean(s != null);
+		if (s != null) {
+			out.writeUTF(s);
+		}
+	}
+
+	public static String readString(DataInputStream in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
+	private static void writeLogEntry(DataOutputStream log, byte op, String key, byte[] value)
+			throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(16 + (value == null ? 0
+				: value.length));
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(op);
+		out.writeUTF(key);
+		if (value != null) {
+			out.write(value);
+		}
+		out.flush();
+		CRC32 crc = new CRC32();
+		crc.update(bytes.toByteArray());
+		log.writeInt(bytes.size());
+		log.write(bytes.toByteArray());
+		log.writeInt((int) crc.getValue());
+	}
+
+	private static int readInt(byte[] data, int offset) {
+		return ((data[offset] & 0xff) << 24) | ((data[offset + 1] & 0xff) << 16)
+				| ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff);
+	}
+
+	private static long readLong(byte[] data, int offset) {
+		return ((long) readInt(data, offset) << 32) | (readInt(data, offset + 4) & 0xffffffffL);
+	}
+
+	private static byte[] readFully(File f) throws IOException {
+		FileInputStream in = new FileInputStream(f);
+		try {
+			byte[] data = new byte[(int) f.length()];
+			new DataInputStream(in).readFully(data);
+			return data;
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void writeFully(File f, byte[] data, boolean append) throws IOException {
+		FileOutputStream out = new FileOutputStream(f, append);
+		try {
+			out.write(data);
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+	}
+}
@@ -97,7 +97,7 @@ TOTorrentImpl
 	private TOTorrentAnnounceURLGroupImpl	announce_group = new TOTorrentAnnounceURLGroupImpl(this);
 	
 	private long		piece_length;
-	private byte[][]	pieces;
+	private volatile TOTorrentPieceHashes	pieces;
 	private int			number_of_pieces;
 	
 	private byte[]		torrent_hash;
@@ -171,9 +171,9 @@ TOTorrentImpl
 			TorrentUtils.addCreatedTorrent( this );
 		}
 		
-		byte[]	res = serialiseToByteArray();
+		Map	root = serialiseToMap();
 						
-        BufferedOutputStream bos = null;
+        FileOutputStream fos = null;
 						
 		try{
 			File parent = output_file.getParentFile();
@@ -242,19 +242,17 @@ TOTorrentImpl
 				}
 			}
 			
-            FileOutputStream fos = new FileOutputStream( temp, false );
-			
-            bos = new BufferedOutputStream( fos, 8192 );
-			
-            bos.write( res );
+            fos = new FileOutputStream( temp, false );
 			
-            bos.flush();
+            	// streamed so that large torrents (resume data included) aren't encoded into memory first
+            
+            BEncoderStream.encode( root, fos.getChannel());
 			
             fos.getFD().sync();
             
-            bos.close();
+            fos.close();
             
-            bos = null;
+            fos = null;
               
               //only use newly saved file if it got this far, i.e. it was written successfully
             
@@ -274,10 +272,10 @@ TOTorrentImpl
 							
 		}finally{
 							
-			if ( bos != null ){
+			if ( fos != null ){
 				
 				try{
-					bos.close();
+					fos.close();
 					
 				}catch( IOException e ){
 				
@@ -394,14 +392,7 @@ TOTorrentImpl
 			throw( new TOTorrentException( "Pieces is null", TOTorrentException.RT_WRITE_FAILS ));
 		}
 		
-		byte[]	flat_pieces = new byte[pieces.length*20];
-		
-		for (int i=0;i<pieces.length;i++){
-			
-			System.arraycopy( pieces[i], 0, flat_pieces, i*20, 20 );
-		}
-		
-		info.put( TK_PIECES, flat_pieces );
+		info.put( TK_PIECES, pieces.toFlat());
 		
 		info.put( TK_NAME, torrent_name );
 		
@@ -791,12 +782,27 @@ TOTorrentImpl
 	public byte[][]
 	getPieces()
 	{
-		return( pieces );
+		TOTorrentPieceHashes	p = pieces;
+		
+		return( p==null?null:p.toArrays());
 	}
 	
 	public void
 	setPieces(
 		byte[][]	_pieces )
+	{
+		pieces = _pieces==null?null:TOTorrentPieceHashes.fromArrays( _pieces );
+	}
+	
+	public TOTorrentPieceHashes
+	getPieceHashes()
+	{
+		return( pieces );
+	}
+	
+	public void
+	setPieceHashes(
+		TOTorrentPieceHashes	_pieces )
 	{
 		pieces = _pieces;
 	}
@@ -1217,14 +1223,16 @@ TOTorrentImpl
 				}
 			}
 			
-			if ( pieces == null ){
+			TOTorrentPieceHashes	p = pieces;
+			
+			if ( p == null ){
 			
 				System.out.println( "\tpieces = null" );
 				
 			}else{
-				for (int i=0;i<pieces.length;i++){
+				for (int i=0;i<p.getNumberOfPieces();i++){
 				
-					System.out.println( "\t" + ByteFormatter.nicePrint(pieces[i]));
+					System.out.println( "\t" + ByteFormatter.nicePrint(p.getPieceHash(i)));
 				}
 			}
 											 
@@ -1452,7 +1452,15 @@ DiskManagerImpl
 
         throws TOTorrentException
     {
-        return( torrent.getPieces()[ piece_number ]);
+        return( torrent.getPieceHashes().getPieceHash( piece_number ));
+    }
+
+    public TOTorrentPieceHashes
+    getPieceHashes()
+
+        throws TOTorrentException
+    {
+        return( torrent.getPieceHashes());
     }
 
     public DiskManagerReadRequest
@@ -36,14 +36,19 @@ import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.PasswordAuthentication;
-import java.net.SocketTimeoutException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.bouncycastle.util.encoders.Base64;
 import org.gudy.azureus2.core3.logging.LogAlert;
@@ -85,8 +90,13 @@ PRUDPPacketHandlerImpl
 	private static final long	MAX_SEND_QUEUE_DATA_SIZE	= 2*1024*1024;
 	private static final long	MAX_RECV_QUEUE_DATA_SIZE	= 1*1024*1024;
 	
+		// number of back-to-back sends the pacing allows after the queue has been idle
+	
+	private static final int	SEND_BURST_PACKETS			= 4;
+	
 	private final int				port;
-	private DatagramSocket	socket;
+	private volatile DatagramChannel	channel;
+	private volatile DatagramSocket		socket;
 	
 	// TODO: who needs encapsulation?
 	public DatagramSocket getSocket() { return socket; }
@@ -101,11 +111,21 @@ PRUDPPacketHandlerImpl
 	private final AEMonitor	requests_mon	= new AEMonitor( "PRUDPPH:req" );
 	
 	
-	private final AEMonitor	send_queue_mon	= new AEMonitor( "PRUDPPH:sd" );
-	private long		send_queue_data_size;
-	private final List[]		send_queues		= new List[]{ new LinkedList(),new LinkedList(),new LinkedList()};
+		// senders add to these without locking, the single send thread drains them
+	
+	private final AEMonitor		send_queue_mon	= new AEMonitor( "PRUDPPH:sd" );
+	private final AtomicLong	send_queue_data_size	= new AtomicLong();
+	private final Queue[]		send_queues		= new Queue[]{ new ConcurrentLinkedQueue(),new ConcurrentLinkedQueue(),new ConcurrentLinkedQueue()};
+	private final AtomicInteger[]	send_queue_sizes	= new AtomicInteger[]{ new AtomicInteger(), new AtomicInteger(), new AtomicInteger()};
 	private final AESemaphore	send_queue_sem	= new AESemaphore( "PRUDPPH:sq" );
-	private AEThread	send_thread;
+	private volatile AEThread	send_thread;
+	
+		// senders held back by a full queue wait on send_space_mon until the send thread has 
+		// drained it. the send thread waits out its pacing on pacer_sem, released on destroy
+	
+	private final Object		send_space_mon		= new Object();
+	private final AtomicInteger	send_space_waiters	= new AtomicInteger();
+	private final AESemaphore	pacer_sem			= new AESemaphore( "PRUDPPH:pace" );
 	
 	private final AEMonitor	recv_queue_mon	= new AEMonitor( "PRUDPPH:rq" );
 	private long		recv_queue_data_size;
@@ -136,7 +156,9 @@ PRUDPPacketHandlerImpl
 
 	private Throwable 	init_error;
 	
-    private final LinkedList<ExternalUdpPacketHandler> externalHandlers = new LinkedList<ExternalUdpPacketHandler>();
+		// copy-on-write so the receive loop can walk it without locking or allocating
+	
+    private volatile ExternalUdpPacketHandler[] externalHandlers = new ExternalUdpPacketHandler[0];
 
 	protected
 	PRUDPPacketHandlerImpl(
@@ -192,8 +214,11 @@ PRUDPPacketHandlerImpl
 		init_sem.reserve();
 	}
 	
-    public void addExternalHandler(ExternalUdpPacketHandler handler) {
-        this.externalHandlers.add(handler);
+    public synchronized void addExternalHandler(ExternalUdpPacketHandler handler) {
+        ExternalUdpPacketHandler[] handlers = new ExternalUdpPacketHandler[externalHandlers.length + 1];
+        System.arraycopy(externalHandlers, 0, handlers, 0, externalHandlers.length);
+        handlers[externalHandlers.length] = handler;
+        externalHandlers = handlers;
     }
 
 	@Override
@@ -311,6 +336,31 @@ PRUDPPacketHandlerImpl
 			
 			target_bind_ip = default_bind_ip;
 		}
+		
+		if ( current_bind_ip != target_bind_ip ){
+			
+				// the receive blocks indefinitely, closing the channel gets the receive loop
+				// to pick up the change
+			
+			closeChannel();
+		}
+	}
+	
+	protected void
+	closeChannel()
+	{
+		DatagramChannel	c = channel;
+		
+		if ( c != null ){
+			
+			try{
+				c.close();
+				
+			}catch( Throwable e ){
+				
+				Debug.printStackTrace(e);
+			}
+		}
 	}
 	
 	protected void
@@ -341,45 +391,42 @@ PRUDPPacketHandlerImpl
 			
 			while( !( failed || destroyed )){
 				
-				if ( socket != null ){
-					
-					try{
-						socket.close();
-						
-					}catch( Throwable e ){
-						
-						Debug.printStackTrace(e);
-					}
-				}
+				closeChannel();
 								
-				InetSocketAddress	address;
+				InetAddress	bind_ip = target_bind_ip;
 				
-				DatagramSocket	new_socket;
+					// the channel is left in blocking mode so that the DatagramSocket we hand out to
+					// external handlers can still be used directly by them for sending
 				
-				if ( target_bind_ip == null ){
-					
-					address = new InetSocketAddress("127.0.0.1",port);
-					
-					new_socket = new DatagramSocket( port );
+				DatagramChannel	new_channel = DatagramChannel.open();
+				
+				DatagramSocket	new_socket = new_channel.socket();
+				
+				try{
+					if ( bind_ip == null ){
+						
+						new_socket.bind( new InetSocketAddress( port ));
+						
+					}else{
+						
+						new_socket.bind( new InetSocketAddress( bind_ip, port ));		
+					}
+						
+					new_socket.setReuseAddress(true);
 					
-				}else{
+				}catch( Throwable e ){
 					
-					address = new InetSocketAddress( target_bind_ip, port );
+					new_channel.close();
 					
-					new_socket = new DatagramSocket( address );		
+					throw( e );
 				}
-						
-				new_socket.setReuseAddress(true);
-				
-					// short timeout on receive so that we can interrupt a receive fairly quickly
-				
-				new_socket.setSoTimeout( 1000 );
 				
 					// only make the socket public once fully configured
 								
-				socket = new_socket;
+				channel	= new_channel;
+				socket 	= new_socket;
 				
-				current_bind_ip	= target_bind_ip;
+				current_bind_ip	= bind_ip;
 								
                 // Notify other handlers
                 for (ExternalUdpPacketHandler handler : externalHandlers) {
@@ -387,11 +434,22 @@ PRUDPPacketHandlerImpl
                 }
 				init_sem.release();
 				
+				if ( destroyed || current_bind_ip != target_bind_ip ){
+					
+						// changed while we were binding, the close may have been missed
+					
+					continue;
+				}
+				
 				if (Logger.isEnabled())
 					Logger.log(new LogEvent(LOGID,
 							"PRUDPPacketReceiver: receiver established on port " + port + (current_bind_ip==null?"":(", bound to " + current_bind_ip )))); 
 		
-				byte[] buffer = null;
+					// the buffer and packet are reused for every receive, only replaced when a
+					// primordial handler takes ownership of the data
+				
+				ByteBuffer		buffer 	= null;
+				DatagramPacket	packet	= null;
 				
 				long	successful_accepts 	= 0;
 				long	failed_accepts		= 0;
@@ -408,12 +466,23 @@ PRUDPPacketHandlerImpl
 						
 						if ( buffer == null ){
 							
-							buffer = new byte[PRUDPPacket.MAX_PACKET_SIZE];
+							byte[]	data = new byte[PRUDPPacket.MAX_PACKET_SIZE];
+							
+							buffer	= ByteBuffer.wrap( data );
+							packet	= new DatagramPacket( data, data.length );
 						}
 	
-						DatagramPacket packet = new DatagramPacket( buffer, buffer.length, address );
+						buffer.clear();
+						
+						SocketAddress	source = channel.receive( buffer );
 						
-						socket.receive( packet );
+						if ( source == null ){
+							
+							continue;
+						}
+						
+						packet.setData( buffer.array(), 0, buffer.position());
+						packet.setSocketAddress( source );
 						
 						long	receive_time = SystemTime.getCurrentTime();
 						
@@ -425,8 +494,9 @@ PRUDPPacketHandlerImpl
                         if (AzureusCoreImpl.isCoreAvailable()) {
                             // Check if the packet is an encrypted udp friend
                             // connection or a one-hop reputation packet.
-                            for (ExternalUdpPacketHandler handler : externalHandlers) {
-                                if (handler.packetReceived(packet)) {
+                            ExternalUdpPacketHandler[] handlers = externalHandlers;
+                            for (int i = 0; i < handlers.length; i++) {
+                                if (handlers[i].packetReceived(packet)) {
                                     continue packet;
                                 }
                             }
@@ -448,15 +518,14 @@ PRUDPPacketHandlerImpl
 							process( packet, receive_time );
 						}
 					
-					}catch( SocketTimeoutException e ){
-											
 					}catch( Throwable e ){							
 						
-							// on vista we get periodic socket closures
+							// on vista we get periodic socket closures, and we close the channel
+							// ourselves to pick up bind changes
 						
 						String	message = e.getMessage();
 						
-						if ( 	socket.isClosed() || 
+						if ( 	!channel.isOpen() || socket.isClosed() || 
 								( message != null && message.toLowerCase().indexOf( "socket closed" ) != -1 )){
 							
 							long	now = SystemTime.getCurrentTime();
@@ -526,16 +595,7 @@ PRUDPPacketHandlerImpl
 			
 			destroy_sem.releaseForever();
 			
-			if ( socket != null ){
-				
-				try{
-					socket.close();
-					
-				}catch( Throwable e ){
-					
-					Debug.printStackTrace(e);
-				}
-			}
+			closeChannel();
 			
 			NetworkAdmin.getSingleton().removePropertyChangeListener( prop_listener );
 		}
@@ -665,6 +725,8 @@ this, (InetSocketAddress) dg_packet
 							
 							long	now = SystemTime.getCurrentTime();
 							
+							stats.receiveDropped();
+							
 							if ( now - last_error_report > 30000 ){
 								
 								last_error_report	= now;
@@ -681,6 +743,8 @@ this, (InetSocketAddress) dg_packet
 							
 							long	now = SystemTime.getCurrentTime();
 							
+							stats.receiveDropped();
+							
 							if ( now - last_error_report > 30000 ){
 								
 								last_error_report	= now;
@@ -994,157 +1058,57 @@ this, (InetSocketAddress) dg_packet
 
 				if ( send_delay > 0 && priority != PRUDPPacketHandler.PRIORITY_IMMEDIATE ){
 									
-					try{
-						send_queue_mon.enter();
+					if ( send_queue_data_size.get() > MAX_SEND_QUEUE_DATA_SIZE ){
 						
-						if ( send_queue_data_size > MAX_SEND_QUEUE_DATA_SIZE ){
-														
-							request.sent();
-							
-								// synchronous write holding lock to block senders
-							
-							socket.send( dg_packet );
-							
-							stats.packetSent( buffer.length );
-							
-							if ( TRACE_REQUESTS ){
-								Logger.log(new LogEvent(LOGID,
-										"PRUDPPacketHandler: request packet sent to "
-												+ destination_address + ": "
-												+ request_packet.getString()));
-							}
-								
-							Thread.sleep( send_delay );
-							
-						}else{
-							
-							send_queue_data_size	+= dg_packet.getLength();
-								
-							send_queues[priority].add( new Object[]{ dg_packet, request });
-							
-							if ( TRACE_REQUESTS ){
-								
-								String	str = "";
+							// back the caller off until the sender has drained some of the queue. 
+							// failing the request instead would be reported to the DHT as a failure
+							// of the remote contact. no lock is held while waiting and the request's
+							// timeout only starts once it has been sent
+						
+						stats.sendBlocked();
+						
+						send_space_waiters.incrementAndGet();
+						
+						try{
+							synchronized( send_space_mon ){
 								
-								for (int i=0;i<send_queues.length;i++){
-									str += (i==0?"":",") + send_queues[i].size();
+								while( send_queue_data_size.get() > MAX_SEND_QUEUE_DATA_SIZE ){
+									
+									if ( destroyed ){
+										
+										throw( new PRUDPPacketHandlerException( "Transport destroyed" ));
+									}
+									
+									send_space_mon.wait();
 								}
-								System.out.println( "send queue sizes: " + str );
 							}
+						}finally{
 							
-							send_queue_sem.release();
+							send_space_waiters.decrementAndGet();
+						}
+					}
 					
-							if ( send_thread == null ){
-								
-								send_thread = 
-									new AEThread( "PRUDPPacketHandler:sender" )
-									{
-										@Override
-                                        public void
-										runSupport()
-										{
-											int[]		consecutive_sends = new int[send_queues.length];
-											
-											while( true ){
-												
-												try{
-													send_queue_sem.reserve();
-													
-													Object[]	data;
-													int			selected_priority	= 0;
-													
-													try{
-														send_queue_mon.enter();
-													
-															// invariant: at least one queue must have an entry
-														
-														for (int i=0;i<send_queues.length;i++){
-															
-															List	queue = send_queues[i];
-															
-															int	queue_size = queue.size();
-															
-															if ( queue_size > 0 ){
-																
-																selected_priority	= i;
-																
-																if ( 	consecutive_sends[i] >= 4 ||
-																		(	i < send_queues.length - 1 &&
-																			send_queues[i+1].size() - queue_size > 500 )){	
-																	
-																		// too many consecutive or too imbalanced, see if there are
-																		// lower priority queues with entries
-																	
-																	consecutive_sends[i]	= 0;
-																	
-																}else{
-																	
-																	consecutive_sends[i]++;
-																	
-																	break;
-																}
-															}else{
-																
-																consecutive_sends[i]	= 0;
-															}
-														}
-														
-														data = (Object[])send_queues[selected_priority].remove(0);
-														
-													}finally{
-														
-														send_queue_mon.exit();
-													}
-																									
-													DatagramPacket				p	= (DatagramPacket)data[0];
-													PRUDPPacketHandlerRequestImpl	r	= (PRUDPPacketHandlerRequestImpl)data[1];
-
-														// mark as sent before sending in case send fails
-														// and we then rely on timeout to pick this up
-													
-													send_queue_data_size	-= p.getLength();
-													
-													r.sent();
-													
-													socket.send( p );
-													
-													stats.packetSent( p.getLength() );
-							
-													if ( TRACE_REQUESTS ){
-														Logger.log(new LogEvent(LOGID,
-															"PRUDPPacketHandler: request packet sent to "
-																	+ p.getAddress()));											
-													}														
-												
-													long	delay = send_delay;
-													
-													if ( selected_priority == PRIORITY_HIGH ){
-														
-														delay	= delay/2;
-													}
-													
-													Thread.sleep( delay );
-													
-												}catch( Throwable e ){
-													// get occasional send fails, not very interesting
-													Logger.log(
-														new LogEvent(
-															LOGID, 
-															LogEvent.LT_WARNING,
-															"PRUDPPacketHandler: send failed: " + Debug.getNestedExceptionMessage(e)));
-												}
-											}
-										}
-									};
-								
-									send_thread.setDaemon( true );
-								
-									send_thread.start();
-							}
+					send_queue_data_size.addAndGet( dg_packet.getLength());
+						
+					send_queues[priority].offer( new Object[]{ dg_packet, request });
+					
+					send_queue_sizes[priority].incrementAndGet();
+					
+					if ( TRACE_REQUESTS ){
+						
+						String	str = "";
+						
+						for (int i=0;i<send_queues.length;i++){
+							str += (i==0?"":",") + send_queue_sizes[i].get();
 						}
-					}finally{
+						System.out.println( "send queue sizes: " + str );
+					}
+					
+					send_queue_sem.release();
+			
+					if ( send_thread == null ){
 						
-						send_queue_mon.exit();
+						startSendThread();
 					}
 				}else{
 					
@@ -1196,6 +1160,164 @@ this, (InetSocketAddress) dg_packet
 		}
 	}
 	
+	protected void
+	startSendThread()
+	{
+		try{
+			send_queue_mon.enter();
+			
+			if ( send_thread != null ){
+				
+				return;
+			}
+			
+			send_thread = 
+				new AEThread( "PRUDPPacketHandler:sender" )
+				{
+					@Override
+                    public void
+					runSupport()
+					{
+						sendLoop();
+					}
+				};
+			
+			send_thread.setDaemon( true );
+		
+			send_thread.start();
+			
+		}finally{
+			
+			send_queue_mon.exit();
+		}
+	}
+	
+		/**
+		 * Drains the send queues, pacing with a token bucket: each send costs send_delay ms (half 
+		 * that for high priority) and credit accrues in real time up to a small burst. A send can 
+		 * leave the credit in deficit, the next one is then due once the deficit has been paid back.
+		 * The wait comes before a packet is picked so anything of higher priority queued meanwhile
+		 * goes first
+		 */
+	
+	protected void
+	sendLoop()
+	{
+		int[]		consecutive_sends = new int[send_queues.length];
+		
+		long	credit		= 0;
+		long	last_refill	= SystemTime.getMonotonousTime();
+		
+		while( !destroyed ){
+			
+			try{
+				send_queue_sem.reserve();
+				
+				long	now = SystemTime.getMonotonousTime();
+				
+				credit 		= Math.min( credit + ( now - last_refill ), SEND_BURST_PACKETS*(long)send_delay );
+				last_refill	= now;
+				
+				while( credit < 0 && !destroyed ){
+					
+					pacer_sem.reserve( -credit );
+					
+					now = SystemTime.getMonotonousTime();
+					
+					credit 		+= now - last_refill;
+					last_refill	= now;
+				}
+				
+				if ( destroyed ){
+					
+					break;
+				}
+				
+				int	selected_priority	= 0;
+				
+					// invariant: at least one queue must have an entry
+				
+				for (int i=0;i<send_queues.length;i++){
+					
+					int	queue_size = send_queue_sizes[i].get();
+					
+					if ( queue_size > 0 ){
+						
+						selected_priority	= i;
+						
+						if ( 	consecutive_sends[i] >= 4 ||
+								(	i < send_queues.length - 1 &&
+									send_queue_sizes[i+1].get() - queue_size > 500 )){	
+							
+								// too many consecutive or too imbalanced, see if there are
+								// lower priority queues with entries
+							
+							consecutive_sends[i]	= 0;
+							
+						}else{
+							
+							consecutive_sends[i]++;
+							
+							break;
+						}
+					}else{
+						
+						consecutive_sends[i]	= 0;
+					}
+				}
+				
+				Object[]	data = (Object[])send_queues[selected_priority].poll();
+				
+				send_queue_sizes[selected_priority].decrementAndGet();
+				
+				DatagramPacket				p	= (DatagramPacket)data[0];
+				PRUDPPacketHandlerRequestImpl	r	= (PRUDPPacketHandlerRequestImpl)data[1];
+
+				long	cost = send_delay;
+				
+				if ( selected_priority == PRIORITY_HIGH ){
+					
+					cost	= cost/2;
+				}
+				
+				credit -= cost;
+				
+					// mark as sent before sending in case send fails
+					// and we then rely on timeout to pick this up
+				
+				long	queued = send_queue_data_size.addAndGet( -p.getLength());
+				
+				if ( queued <= MAX_SEND_QUEUE_DATA_SIZE && send_space_waiters.get() > 0 ){
+					
+					synchronized( send_space_mon ){
+						
+						send_space_mon.notifyAll();
+					}
+				}
+				
+				r.sent();
+				
+				socket.send( p );
+				
+				stats.packetSent( p.getLength() );
+
+				if ( TRACE_REQUESTS ){
+					Logger.log(new LogEvent(LOGID,
+						"PRUDPPacketHandler: request packet sent to "
+								+ p.getAddress()));											
+				}														
+				
+			}catch( Throwable e ){
+				// get occasional send fails, not very interesting
+				Logger.log(
+					new LogEvent(
+						LOGID, 
+						LogEvent.LT_WARNING,
+						"PRUDPPacketHandler: send failed: " + Debug.getNestedExceptionMessage(e)));
+			}
+		}
+	}
+	
 	@Override
     public void
 	send(
@@ -1293,8 +1415,8 @@ this, (InetSocketAddress) dg_packet
 	getSendQueueLength()
 	{
 		int	res = 0;
-		for (int i=0;i<send_queues.length;i++){
-			res += send_queues[i].size();
+		for (int i=0;i<send_queue_sizes.length;i++){
+			res += send_queue_sizes[i].get();
 		}
 		return(res);
 	}
@@ -1347,6 +1469,17 @@ this, (InetSocketAddress) dg_packet
 	{
 		destroyed	= true;
 		
+		synchronized( send_space_mon ){
+			
+			send_space_mon.notifyAll();
+		}
+		
+		pacer_sem.releaseForever();
+		
+		send_queue_sem.release();
+		
+		closeChannel();
+		
 		destroy_sem.reserve();
 	}
 }
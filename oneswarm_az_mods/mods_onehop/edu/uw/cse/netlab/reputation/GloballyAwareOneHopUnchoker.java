@@ -2,12 +2,17 @@ package edu.uw.cse.netlab.reputation;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -22,6 +27,8 @@ import org.gudy.azureus2.core3.util.HashWrapper;
 
 import com.aelitis.azureus.core.impl.AzureusCoreImpl;
 import com.aelitis.azureus.core.peermanager.unchoker.UnchokerUtil;
+import com.aelitis.azureus.core.stats.AzureusCoreStats;
+import com.aelitis.azureus.core.stats.AzureusCoreStatsProvider;
 
 public class GloballyAwareOneHopUnchoker
 {
@@ -44,14 +51,38 @@ public class GloballyAwareOneHopUnchoker
 	public static volatile GloballyAwareOneHopUnchoker							 inst										= null;
 
 	public static GloballyAwareOneHopUnchoker get() {
-		if (inst == null)
-			inst = new GloballyAwareOneHopUnchoker();
-		return inst;
+		// called for every peer, only the creation is locked
+		GloballyAwareOneHopUnchoker unchoker = inst;
+		if (unchoker == null) {
+			synchronized (GloballyAwareOneHopUnchoker.class) {
+				unchoker = inst;
+				if (unchoker == null) {
+					unchoker = new GloballyAwareOneHopUnchoker(true);
+					inst = unchoker;
+				}
+			}
+		}
+		return unchoker;
 	}
 
-	private GloballyAwareOneHopUnchoker() {
+	/**
+	 * @param global false for an unchoker other than the process's own (tests), which reads the 
+	 *   upload budgets once and isn't hooked up to the global manager or the stats 
+	 */
+	GloballyAwareOneHopUnchoker(boolean global) {
 		logger.info("Creating globally aware unchoker instance...");
 
+		if (!global) {
+			nonlan_upload_budget = COConfigurationManager.getIntParameter("Max Upload Speed KBs");
+			use_lan_speed = COConfigurationManager.getBooleanParameter("LAN Speed Enabled");
+			lan_upload_budget = COConfigurationManager.getIntParameter("Max LAN Download Speed KBs");
+			if (nonlan_upload_budget == 0)
+				nonlan_upload_budget = 100000;
+			if (lan_upload_budget == 0)
+				lan_upload_budget = 100000;
+			return;
+		}
+
 		COConfigurationManager.addAndFireParameterListener("Max Upload Speed KBs",
 				new ParameterListener() {
 					public void parameterChanged(String parameterName) {
@@ -99,7 +130,10 @@ public class GloballyAwareOneHopUnchoker
 						try {
 							logger.fine("Removing active peers for download manager: "
 									+ dm.getDisplayName());
-							swarm_to_active.remove(dm.getTorrent().getHashWrapper());
+							HashWrapper swarm = dm.getTorrent().getHashWrapper();
+							synchronized (GloballyAwareOneHopUnchoker.this) {
+								remove_swarm(swarm);
+							}
 						} catch (TOTorrentException e) {
 							e.printStackTrace();
 						}
@@ -116,6 +150,28 @@ public class GloballyAwareOneHopUnchoker
 
 		logger.finer("initial budgets: lan: " + lan_upload_budget + " / nonlan: "
 				+ nonlan_upload_budget);
+
+		Set<String> types = new HashSet<String>();
+		types.add(AzureusCoreStats.ST_REPUTATION_UNCHOKE_DECISION_COUNT);
+		types.add(AzureusCoreStats.ST_REPUTATION_UNCHOKE_DECISION_TIME);
+		types.add(AzureusCoreStats.ST_REPUTATION_UNCHOKE_LAST_DECISION_TIME);
+		types.add(AzureusCoreStats.ST_REPUTATION_UNCHOKE_CHURN);
+		types.add(AzureusCoreStats.ST_REPUTATION_UNCHOKE_CANDIDATES);
+
+		AzureusCoreStats.registerProvider(types, new AzureusCoreStatsProvider() {
+			public void updateStats(Set types, Map values) {
+				if (types.contains(AzureusCoreStats.ST_REPUTATION_UNCHOKE_DECISION_COUNT))
+					values.put(AzureusCoreStats.ST_REPUTATION_UNCHOKE_DECISION_COUNT, new Long(getDecisionCount()));
+				if (types.contains(AzureusCoreStats.ST_REPUTATION_UNCHOKE_DECISION_TIME))
+					values.put(AzureusCoreStats.ST_REPUTATION_UNCHOKE_DECISION_TIME, new Long(getDecisionTime()));
+				if (types.contains(AzureusCoreStats.ST_REPUTATION_UNCHOKE_LAST_DECISION_TIME))
+					values.put(AzureusCoreStats.ST_REPUTATION_UNCHOKE_LAST_DECISION_TIME, new Long(getLastDecisionTime()));
+				if (types.contains(AzureusCoreStats.ST_REPUTATION_UNCHOKE_CHURN))
+					values.put(AzureusCoreStats.ST_REPUTATION_UNCHOKE_CHURN, new Long(getChurn()));
+				if (types.contains(AzureusCoreStats.ST_REPUTATION_UNCHOKE_CANDIDATES))
+					values.put(AzureusCoreStats.ST_REPUTATION_UNCHOKE_CANDIDATES, new Long(getCandidateCount()));
+			}
+		});
 	}
 
 	public boolean hasExtraCapacity() {
@@ -140,249 +196,347 @@ public class GloballyAwareOneHopUnchoker
 		return AzureusCoreImpl.getSingleton().getGlobalManager().getStats().getDataAndProtocolSendRate() < 10 * 1024;
 	}
 
+	/**
+	 * A peer known to the unchoker. Candidates are ordered by score, the peer's reputation weighted 
+	 * by the rate it is sending to us, and are re-keyed when their swarm reports in. 
+	 */
+	private static class Candidate {
+		final PEPeerTransportProtocol peer;
+		final HashWrapper swarm;
+		final long seq;
+
+		double reputation;
+		double score;
+		long reputation_time;
+		boolean unchoked;
+
+		Candidate(PEPeerTransportProtocol peer, HashWrapper swarm, long seq) {
+			this.peer = peer;
+			this.swarm = swarm;
+			this.seq = seq;
+		}
+	}
+
+	private static final Comparator<Candidate> BY_SCORE = new Comparator<Candidate>() {
+		public int compare(Candidate o1, Candidate o2) {
+			if (o1.score != o2.score) {
+				return o1.score > o2.score ? -1 : 1;
+			}
+			return o1.seq < o2.seq ? -1 : (o1.seq == o2.seq ? 0 : 1);
+		}
+	};
+
+	/**
+	 * Running total of the upload rate calc_budget() would provision for a set of unchokes, so the 
+	 * budget check while picking peers doesn't rescan everything picked so far. 
+	 */
+	private class BudgetEstimate {
+		private final List<Candidate> members = new ArrayList<Candidate>();
+		private double min_roi = Double.MAX_VALUE;
+		private double total;
+
+		void add(Candidate c) {
+			if (c.peer.isLANLocal()) {
+				return;
+			}
+			members.add(c);
+			if (c.reputation < min_roi && c.reputation != 0) {
+				boolean had_roi = min_roi != Double.MAX_VALUE;
+				min_roi = c.reputation;
+				if (had_roi || members.size() > 1) {
+					total = 0;
+					for (Candidate m : members) {
+						total += provisioned(m);
+					}
+					return;
+				}
+			}
+			total += provisioned(c);
+		}
+
+		private double provisioned(Candidate c) {
+			if (min_roi == Double.MAX_VALUE) {
+				return 5.0;
+			}
+			return Math.min(0.20 * nonlan_upload_budget, (c.reputation / min_roi) * 5.0);
+		}
+
+		boolean exhausted() {
+			return total >= nonlan_upload_budget;
+		}
+	}
+
+	/** Most unchoke changes made between full recomputes, to limit churn */
+	public static final int MAX_CHANGES_PER_DECISION = 4;
+
+	/** Minimum time between incremental decisions */
+	public static final int DECISION_INTERVAL_MS = 1000;
+
+	private final Map<PEPeerTransportProtocol, Candidate> candidates = new HashMap<PEPeerTransportProtocol, Candidate>();
+
+	private final TreeSet<Candidate> by_score = new TreeSet<Candidate>(BY_SCORE);
+
+	private long next_seq;
+
 	private long last_recompute;
 
+	private long last_decision;
+
+	private final AtomicLong decisions = new AtomicLong();
+	private final AtomicLong decision_time_us = new AtomicLong();
+	private volatile long last_decision_us;
+	private final AtomicLong churn = new AtomicLong();
+
+	/**
+	 * Refreshes every peer's reputation and recomputes the unchoke set with no limit on the number 
+	 * of changes. Between these, consider_peers() updates swarms as they report and adjusts the 
+	 * unchokes a few at a time. 
+	 */
 	public synchronized void full_unchoke_recompute() {
-		long start = System.currentTimeMillis();
 		logger.finer("=============== Globally aware full unchoke recompute... "
 				+ swarm_to_active.size() + " active peer lists =================");
 
-		global_chokes.clear();
-		global_unchokes.clear();
-
-		List<PEPeerTransportProtocol> all_peers = new ArrayList<PEPeerTransportProtocol>();
+		long now = System.currentTimeMillis();
 		for (HashWrapper hw : swarm_to_active.keySet()) {
-			List<PEPeerTransportProtocol> peers = swarm_to_active.get(hw);
-			all_peers.addAll(peers);
-			global_chokes.put(hw, new ArrayList<PEPeerTransportProtocol>());
-			global_unchokes.put(hw, new ArrayList<PEPeerTransportProtocol>());
+			for (PEPeerTransportProtocol p : swarm_to_active.get(hw)) {
+				Candidate c = candidates.get(p);
+				if (c != null) {
+					c.reputation_time = 0;
+					refresh(c, now);
+				}
+			}
 		}
 
-		int max_to_unchoke = COConfigurationManager.getIntParameter("Max.Peer.Connections.Total");
-		if (max_to_unchoke == 0) {
-			max_to_unchoke = 500;
+		decide(Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Marks the peer's reputation as out of date, e.g. when it has sent receipts from shared 
+	 * intermediaries. It's recomputed the next time its swarm reports. 
+	 */
+	public synchronized void reputation_changed(PEPeerTransportProtocol peer) {
+		Candidate c = candidates.get(peer);
+		if (c != null) {
+			c.reputation_time = 0;
 		}
+	}
 
-		logger.finer("max to unchoke: " + max_to_unchoke);
+	private void refresh(Candidate c, long now) {
+		by_score.remove(c);
 
-		int total_unchokes = 0, total_lan_unchokes = 0;
+		if (now - c.reputation_time >= RECOMPUTE_INTERVAL_SECS * 1000) {
+			c.reputation = computeReputation(c.peer);
+			c.reputation_time = now;
+			c.peer.setReputation(c.reputation);
+		}
 
-		for (PEPeerTransportProtocol p : all_peers) {
-			p.setReputation(computeReputation(p));
+		if (c.reputation > 0) {
+			c.score = c.reputation * (1.0 + c.peer.getStats().getDataReceiveRate() / 1024.0);
+		} else {
+			c.score = c.reputation;
+		}
 
-			if (p.isLANLocal() && total_lan_unchokes < 5) { // magic #. keep a few LAN local peers always unchoked. these will be over quickly anyway
-				global_unchokes.get(new HashWrapper(p.getControl().getHash())).add(p);
-				total_lan_unchokes++;
-				
-				if( logger.isLoggable(Level.FINER) ) {
-					logger.finer(p + " from " + p.getControl().getDisplayName()
-							+ " is LAN local and will be unchoked, total lan unchokes: "
-							+ total_lan_unchokes);
+		by_score.add(c);
+	}
+
+	private void remove(Candidate c) {
+		by_score.remove(c);
+		candidates.remove(c.peer);
+		if (c.unchoked) {
+			churn.incrementAndGet();
+		}
+	}
+
+	private void remove_swarm(HashWrapper swarm) {
+		List<PEPeerTransportProtocol> peers = swarm_to_active.remove(swarm);
+		if (peers != null) {
+			for (PEPeerTransportProtocol p : peers) {
+				Candidate c = candidates.get(p);
+				if (c != null && c.swarm.equals(swarm)) {
+					remove(c);
 				}
 			}
 		}
+		global_unchokes.remove(swarm);
+		global_chokes.remove(swarm);
+	}
 
-		final PEPeerTransportProtocol[] peers_by_reputation = all_peers.toArray(new PEPeerTransportProtocol[0]);
-		Arrays.sort(peers_by_reputation, new Comparator<PEPeerTransportProtocol>() {
-			public int compare(PEPeerTransportProtocol o1, PEPeerTransportProtocol o2) {
-				double v = o2.getReputation() - o2.getReputation();
-				if (Math.abs(v) < 1e-14)
-					return 0;
-				if (v > 0)
-					return -1;
-				return 1;
-			}
-		});
+	/**
+	 * Works out the unchoke set the policy wants from the candidates in score order and moves the 
+	 * current set towards it, making at most max_changes chokes/unchokes. Peers that can no longer 
+	 * be unchoked are always dropped and don't count as changes. 
+	 */
+	private void decide(int max_changes) {
+		long start = System.nanoTime();
 
-		if( logger.isLoggable(Level.FINEST) ) {
-			for (PEPeerTransportProtocol p : peers_by_reputation) {
-				logger.finest(p.getControl().getDisplayName() + " " + p + " reputation: "
-						+ p.getReputation() + " (is OneSwarm?: "
-						+ Boolean.toString(p.isOneSwarm()) + ")");
-			}
+		int max_to_unchoke = COConfigurationManager.getIntParameter("Max.Peer.Connections.Total");
+		if (max_to_unchoke == 0) {
+			max_to_unchoke = 500;
 		}
 
 		/**
 		 * Unchoke policy is this: 
+		 * 0. A few LAN local peers, these will be over quickly anyway
 		 * 1. Descending order peers with reputation > 1.0
 		 * 2. Any OneSwarm peers (randomly)
 		 * 3. Any BitTorrent peers (randomly) if our ratio is < 1.0
 		 * 4. Any snubbed peers (randomly)
 		 */
+		Map<Candidate, Boolean> desired = new LinkedHashMap<Candidate, Boolean>();
+		BudgetEstimate budget = new BudgetEstimate();
+		int total_unchokes = 0, total_lan_unchokes = 0;
 
-		// 1. Descending order peers with reputation > 1.0
-		int positiveROI_cutoff = 0;
-		for (positiveROI_cutoff = 0; total_unchokes < max_to_unchoke
-				&& positiveROI_cutoff < all_peers.size()
-				&& calc_budget() < nonlan_upload_budget; positiveROI_cutoff++) {
-			PEPeerTransportProtocol peer = peers_by_reputation[positiveROI_cutoff];
-
-			if (peer.getReputation() < 1.0)
+		// 0. LAN local
+		for (Candidate c : by_score) {
+			if (total_lan_unchokes >= 5) { // magic #.
 				break;
+			}
+			if (c.peer.isLANLocal()) {
+				desired.put(c, Boolean.FALSE);
+				total_lan_unchokes++;
+			}
+		}
 
-			if (UnchokerUtil.isUnchokable(peer, false)) {
-				global_unchokes.get(new HashWrapper(peer.getControl().getHash())).add(
-						peer);
+		// 1. Descending order peers with reputation > 1.0
+		List<Candidate> shoddy = new ArrayList<Candidate>();
+		for (Candidate c : by_score) {
+			if (c.reputation < 1.0) {
+				shoddy.add(c);
+				continue;
+			}
+			if (total_unchokes >= max_to_unchoke || budget.exhausted() || desired.containsKey(c)) {
+				continue;
+			}
+			if (UnchokerUtil.isUnchokable(c.peer, false)) {
+				desired.put(c, Boolean.FALSE);
+				budget.add(c);
 				total_unchokes++;
-				peer.setOptimisticUnchoke(false);
-				
-				if( logger.isLoggable(Level.FINER) ) {
-					logger.finer("1) added reputation > 1.0, " + peer + " / total: "
-							+ total_unchokes + " rep: " + peer.getReputation());
-				}
-			} else {
-				if( logger.isLoggable(Level.FINEST) ) {
-					logger.finest("1) not unchokable: " + peer + " (rep: "
-							+ peer.getReputation());
-				}
 			}
 		}
 
 		if (COConfigurationManager.getBooleanParameter("oneswarm.disallow.ratio.less.than.one") == false) {
-			
-			if( logger.isLoggable(Level.FINER) ) {
-				logger.finer("allowing ratio < 1.0 peers, these include: "
-						+ (all_peers.size() - positiveROI_cutoff) + " candidates");
-			}
-
-			// Randomly permute peers < 1.0
-			PEPeerTransportProtocol[] shoddy_peers = new PEPeerTransportProtocol[peers_by_reputation.length
-					- positiveROI_cutoff];
-			System.arraycopy(peers_by_reputation, positiveROI_cutoff, shoddy_peers,
-					0, shoddy_peers.length);
-			Collections.shuffle(Arrays.asList(shoddy_peers));
-			
-			if( logger.isLoggable(Level.FINER) ) {
-				logger.finer("before 2). shoddy_peer.length: " + shoddy_peers.length
-						+ " / positiveROI_cutoff: " + positiveROI_cutoff
-						+ " max_to_unchoke: " + max_to_unchoke + " unchokes_size: "
-						+ total_unchokes + " budget: " + calc_budget());
-			}
+			Collections.shuffle(shoddy);
 
 			// 2. Any OneSwarm peers (randomly)
-			for (int i = 0; i < shoddy_peers.length
-					&& total_unchokes < max_to_unchoke
-					&& calc_budget() < nonlan_upload_budget; i++) {
-				PEPeerTransportProtocol peer = shoddy_peers[i];
-
-				if( logger.isLoggable(Level.FINEST) ) {
-					logger.finest("2) shoddy rep: " + peer.getReputation() + " " + peer);
-				}
-
-				if (UnchokerUtil.isUnchokable(peer, false) && peer.isOneSwarm()) {
-					global_unchokes.get(new HashWrapper(peer.getControl().getHash())).add(
-							peer);
+			for (int i = 0; i < shoddy.size() && total_unchokes < max_to_unchoke && !budget.exhausted(); i++) {
+				Candidate c = shoddy.get(i);
+				if (!desired.containsKey(c) && UnchokerUtil.isUnchokable(c.peer, false) && c.peer.isOneSwarm()) {
+					desired.put(c, Boolean.TRUE);
+					budget.add(c);
 					total_unchokes++;
-					peer.setOptimisticUnchoke(true);
-					if( logger.isLoggable(Level.FINER) ) {
-						logger.finer("adding in 2) " + peer + " / total: " + total_unchokes
-								+ " rep: " + peer.getReputation());
-					}
-				} else {
-					if( logger.isLoggable(Level.FINER) ) { 
-						logger.finest("2. not unchokable (or not OneSwarm)" + peer);
-					}
 				}
 			}
 
-			if( logger.isLoggable(Level.FINER) ) {
-				logger.finer("before 3). shoddy_peer.length: " + shoddy_peers.length
-						+ " / positiveROI_cutoff: " + positiveROI_cutoff
-						+ " max_to_unchoke: " + max_to_unchoke + " unchokes_size: "
-						+ total_unchokes + " budget: " + calc_budget());
-			}
-
 			// 3. Any BitTorrent peers (randomly) if our ratio is < 1.0
-			for (int i = 0; i < shoddy_peers.length
-					&& total_unchokes < max_to_unchoke
-					&& calc_budget() < nonlan_upload_budget; i++) {
-				PEPeerTransportProtocol peer = shoddy_peers[i];
-				// Some of these will be OneSwarm peers that we added previously, skip these.
-				List<PEPeerTransportProtocol> unchoked_this_swarm = global_unchokes.get(new HashWrapper(
-						peer.getControl().getHash()));
-				if (unchoked_this_swarm.contains(peer)) {
-					continue;
-				}
-
-				if (UnchokerUtil.isUnchokable(peer, false)) {
-					unchoked_this_swarm.add(peer);
+			for (int i = 0; i < shoddy.size() && total_unchokes < max_to_unchoke && !budget.exhausted(); i++) {
+				Candidate c = shoddy.get(i);
+				if (!desired.containsKey(c) && UnchokerUtil.isUnchokable(c.peer, false)) {
+					desired.put(c, Boolean.TRUE);
+					budget.add(c);
 					total_unchokes++;
-					peer.setOptimisticUnchoke(true);
-					if( logger.isLoggable(Level.FINER) ) {
-						logger.finer("adding in 3) " + peer + " / total: " + total_unchokes
-								+ " rep: " + peer.getReputation());
-					}
-				} else {
-					if( logger.isLoggable(Level.FINEST) ) {
-						logger.finest("not unchokable 3): " + peer);
-					}
 				}
-			} // if( System.getProperty("oneswarm.allow.ratio.less.than.one") != null )
-
-			if( logger.isLoggable(Level.FINER) ) {
-				logger.finer("before 4). shoddy_peer.length: " + shoddy_peers.length
-						+ " / positiveROI_cutoff: " + positiveROI_cutoff
-						+ " max_to_unchoke: " + max_to_unchoke + " unchokes_size: "
-						+ total_unchokes + " budget: " + calc_budget());
 			}
 
 			// 4. Any snubbed peers
-			for (int i = 0; total_unchokes < max_to_unchoke && i < all_peers.size()
-					&& calc_budget() < nonlan_upload_budget; i++) {
-				PEPeerTransportProtocol peer = peers_by_reputation[i];
-
-				List<PEPeerTransportProtocol> unchoked_this_swarm = global_unchokes.get(new HashWrapper(
-						peer.getControl().getHash()));
-				if (unchoked_this_swarm.contains(peer)) {
-					continue;
-				}
-
-				if (UnchokerUtil.isUnchokable(peer, true)) {
-					unchoked_this_swarm.add(peer);
+			for (Iterator<Candidate> it = by_score.iterator(); it.hasNext() && total_unchokes < max_to_unchoke && !budget.exhausted();) {
+				Candidate c = it.next();
+				if (!desired.containsKey(c) && UnchokerUtil.isUnchokable(c.peer, true)) {
+					desired.put(c, Boolean.TRUE);
+					budget.add(c);
 					total_unchokes++;
-					peer.setOptimisticUnchoke(true);
-					
-					if( logger.isLoggable(Level.FINER) ) {
-						logger.finer("adding in 4) " + peer + " / total: " + total_unchokes
-								+ " rep: " + peer.getReputation());
-					}
-				} else {
-					if( logger.isLoggable(Level.FINEST) ) {
-						logger.finest("4. not unchokable " + peer);
-					}
 				}
 			}
-		} // not allowing ratio < 1.0
-		else {
-			if( logger.isLoggable(Level.FINE) ) {
-				logger.fine("global unchoker not allowing ratio less than 1.0, thus skipping: "
-						+ (all_peers.size() - positiveROI_cutoff) + " candidates");
-			}
+		} else if (logger.isLoggable(Level.FINE)) {
+			logger.fine("global unchoker not allowing ratio less than 1.0, thus skipping: "
+					+ shoddy.size() + " candidates");
 		}
 
 		/**
-		 * If not unchoked, choke
+		 * Move towards the desired set. Additions are taken best first and, once the set is as big 
+		 * as it wants to be, each is paired with dropping the lowest scoring peer that's not wanted. 
 		 */
+		List<Candidate> unwanted = new ArrayList<Candidate>();
+		int current = 0;
+		for (Iterator<Candidate> it = by_score.descendingIterator(); it.hasNext();) {
+			Candidate c = it.next();
+			if (!c.unchoked) {
+				continue;
+			}
+			if (!UnchokerUtil.isUnchokable(c.peer, true)) {
+				c.unchoked = false;
+				continue;
+			}
+			current++;
+			if (!desired.containsKey(c)) {
+				unwanted.add(c);
+			}
+		}
+
+		int changes = 0, next_unwanted = 0;
+		for (Map.Entry<Candidate, Boolean> e : desired.entrySet()) {
+			Candidate c = e.getKey();
+			if (c.unchoked) {
+				c.peer.setOptimisticUnchoke(e.getValue().booleanValue());
+				continue;
+			}
+			boolean needs_slot = current >= desired.size() && next_unwanted < unwanted.size();
+			if (changes + (needs_slot ? 2 : 1) > max_changes) {
+				break;
+			}
+			if (needs_slot) {
+				unwanted.get(next_unwanted++).unchoked = false;
+				current--;
+				changes++;
+			}
+			c.unchoked = true;
+			c.peer.setOptimisticUnchoke(e.getValue().booleanValue());
+			current++;
+			changes++;
+		}
+		while (next_unwanted < unwanted.size() && current > desired.size() && changes < max_changes) {
+			unwanted.get(next_unwanted++).unchoked = false;
+			current--;
+			changes++;
+		}
+
+		global_unchokes.clear();
+		global_chokes.clear();
+		for (HashWrapper hw : swarm_to_active.keySet()) {
+			global_unchokes.put(hw, new ArrayList<PEPeerTransportProtocol>());
+			global_chokes.put(hw, new ArrayList<PEPeerTransportProtocol>());
+		}
+		for (Candidate c : by_score) {
+			if (c.unchoked) {
+				global_unchokes.get(c.swarm).add(c.peer);
+			}
+		}
+
+		double used = calc_budget();
+
 		int chokes = 0;
-		for (int i = 0; i < all_peers.size(); i++) {
-			PEPeerTransportProtocol peer = peers_by_reputation[i];
-			HashWrapper this_hash = new HashWrapper(peer.getControl().getHash());
-			if (global_unchokes.get(this_hash).contains(peer) == false) {
-				global_chokes.get(this_hash).add(peer);
-				peer.setWeight(1);
+		for (Candidate c : by_score) {
+			if (!c.unchoked) {
+				global_chokes.get(c.swarm).add(c.peer);
+				c.peer.setWeight(1);
 				chokes++;
 			}
 		}
 
-		if( logger.isLoggable(Level.FINE) ) {
-			logger.fine("=========== ended in " + (System.currentTimeMillis() - start)
-					+ " ms, upload budget: " + calc_budget() + " with " + total_unchokes
-					+ " unchokes of " + all_peers.size() + " chokes: " + chokes
-					+ " =================");
+		long elapsed_us = (System.nanoTime() - start) / 1000;
+		last_decision_us = elapsed_us;
+		decision_time_us.addAndGet(elapsed_us);
+		decisions.incrementAndGet();
+		churn.addAndGet(changes);
+		last_decision = System.currentTimeMillis();
+
+		if (logger.isLoggable(Level.FINE)) {
+			logger.fine("=========== decided in " + elapsed_us + " us, upload budget: " + used
+					+ " with " + current + " unchokes of " + by_score.size() + " chokes: " + chokes
+					+ " changes: " + changes + " =================");
 		}
 	}
 
-	private double computeReputation(PEPeerTransportProtocol p) {
+	double computeReputation(PEPeerTransportProtocol p) {
 		try {
 			// From the perspective of the one hop unchoker, these peers are useless
 			if (p.isOneSwarm() == false) {
@@ -480,7 +634,7 @@ public class GloballyAwareOneHopUnchoker
 		return total;
 	}
 
-	public void consider_peers(HashWrapper swarm, ArrayList all_peers) {
+	public synchronized void consider_peers(HashWrapper swarm, ArrayList all_peers) {
 
 		// by: isdal
 		// type safetypy not all peers are of type PEPeerTransportProtocol
@@ -492,22 +646,77 @@ public class GloballyAwareOneHopUnchoker
 			}
 		}
 
-		swarm_to_active.put(swarm, pepeers);
+		/**
+		 * Only this swarm's candidates are updated: peers that have gone are dropped and the rest 
+		 * re-keyed by their current rate (and reputation, if it's out of date) 
+		 */
+		long now = System.currentTimeMillis();
+		List<PEPeerTransportProtocol> previous = swarm_to_active.put(swarm, pepeers);
+		if (previous != null) {
+			Set<PEPeerTransportProtocol> still_active = new HashSet<PEPeerTransportProtocol>(pepeers);
+			for (PEPeerTransportProtocol p : previous) {
+				Candidate c = candidates.get(p);
+				if (!still_active.contains(p) && c != null && c.swarm.equals(swarm)) {
+					remove(c);
+				}
+			}
+		}
+		for (PEPeerTransportProtocol p : pepeers) {
+			Candidate c = candidates.get(p);
+			if (c == null) {
+				c = new Candidate(p, swarm, next_seq++);
+				candidates.put(p, c);
+			}
+			refresh(c, now);
+		}
+
 		if( logger.isLoggable(Level.FINER) ) {
 			logger.finer("adding peers for swarm: "
 					+ ByteFormatter.encodeString(swarm.getBytes()) + " next recompute: "
-					+ ((last_recompute + 9 * 1000) - System.currentTimeMillis()));
+					+ ((last_recompute + 9 * 1000) - now));
 		}
 		
 		/**
-		 * don't do this every time a swarm calls its unchoke recompute. instead, wait 9 secs in between to keep it to ~once per TFT round
+		 * a full recompute ~once per TFT round as a safety net, small adjustments in between 
 		 */
-		if (last_recompute + RECOMPUTE_INTERVAL_SECS * 1000 < System.currentTimeMillis()) {
+		if (last_recompute + RECOMPUTE_INTERVAL_SECS * 1000 < now) {
 			full_unchoke_recompute();
 			last_recompute = System.currentTimeMillis();
+		} else if (last_decision + DECISION_INTERVAL_MS < now) {
+			decide(MAX_CHANGES_PER_DECISION);
+		} else if (!global_unchokes.containsKey(swarm)) {
+			global_unchokes.put(swarm, new ArrayList<PEPeerTransportProtocol>());
+			ArrayList<PEPeerTransportProtocol> chokes = new ArrayList<PEPeerTransportProtocol>(pepeers);
+			global_chokes.put(swarm, chokes);
 		}
 	}
 
+	public long getDecisionCount() {
+		return decisions.get();
+	}
+
+	/**
+	 * @return total time spent deciding unchokes, in microseconds
+	 */
+	public long getDecisionTime() {
+		return decision_time_us.get();
+	}
+
+	public long getLastDecisionTime() {
+		return last_decision_us;
+	}
+
+	/**
+	 * @return number of peers choked or unchoked by decisions so far
+	 */
+	public long getChurn() {
+		return churn.get();
+	}
+
+	public synchronized int getCandidateCount() {
+		return by_score.size();
+	}
+
 	public synchronized ArrayList unchokes_for_swarm(HashWrapper swarm) {
 		for (List<PEPeerTransportProtocol> l : global_unchokes.values()) {
 			if (l.size() > 0) {
@@ -32,6 +32,7 @@ import com.aelitis.net.udp.uc.impl.ExternalUdpPacketHandler;
 
 import edu.uw.cse.netlab.reputation.messages.Attestation;
 import edu.uw.cse.netlab.reputation.storage.Receipt;
+import edu.uw.cse.netlab.reputation.storage.ReceiptVerifier;
 import edu.uw.cse.netlab.reputation.storage.ReputationDAO;
 import edu.uw.cse.netlab.reputation.storage.SoftStateListener;
 import edu.uw.cse.netlab.utils.BloomFilter;
@@ -324,6 +325,9 @@ public class UpdatePacketHandler extends CoreWaiter implements ExternalUdpPacket
 	 * This should be called only by our modified UDP packet handler. We might receive here from 
 	 * any UDP port so we can't rely only on the socket we have here... 
 	 * 
+	 * Signatures aren't checked on this thread, updates and acks are handed to the ReceiptVerifier 
+	 * and processed once verified. 
+	 * 
 	 * @param packet the packet to check
 	 * @return true if this was an update packet that we processed, false otherwise
 	 */
@@ -344,15 +348,41 @@ public class UpdatePacketHandler extends CoreWaiter implements ExternalUdpPacket
 		try
 		{
 			ObjectInputStream ois = new ObjectInputStream(bais);
-			UpdateReceiptWrapper r = (UpdateReceiptWrapper)ois.readObject();
+			final UpdateReceiptWrapper r = (UpdateReceiptWrapper)ois.readObject();
 			
 			if( isUpdate(r) )
-				receiveUpdate(r, packet);
+			{
+				final InetAddress addr = packet.getAddress();
+				final int port = packet.getPort();
+				ReceiptVerifier.get().submit(r.receipt, true, new ReceiptVerifier.Listener() {
+					public void verification_complete( Receipt inReceipt, int inResult ) {
+						if( inResult == ReceiptVerifier.FAILED )
+							logger.warning("dropping update with bad signature from " + addr);
+						else
+							receiveUpdate(r, inResult == ReceiptVerifier.DUPLICATE, addr, port);
+					}
+				});
+			}
 			else 
 			{
-				SentUpdate s = isAcknowledgement(r);
+				final SentUpdate s = isAcknowledgement(r);
 				if( s != null )
-					receiveAck(s, r);
+				{
+					ReceiptVerifier.get().submit(r.receipt, false, new ReceiptVerifier.Listener() {
+						public void verification_complete( Receipt inReceipt, int inResult ) {
+							if( inResult != ReceiptVerifier.VERIFIED )
+							{
+								logger.warning("dropping ack with bad signature from " + KeyManipulation.concise(s.intermediary.getEncoded()));
+								return;
+							}
+							try {
+								receiveAck(s, r);
+							} catch( IOException e ) {
+								logger.warning("Error processing update ack: " + e.toString());
+							}
+						}
+					});
+				}
 				else
 					throw new IOException("neither an update nor an ack receipt: " + r);
 			}
@@ -426,7 +456,11 @@ public class UpdatePacketHandler extends CoreWaiter implements ExternalUdpPacket
 		return bf.test(LocalIdentity.get().getKeys().getPublic().getEncoded());
 	}
 
-	public void receiveUpdate( UpdateReceiptWrapper r, DatagramPacket packet ) 
+	/**
+	 * @param inDuplicate true if this update has already been applied, its signature hasn't been 
+	 *   checked again
+	 */
+	void receiveUpdate( UpdateReceiptWrapper r, boolean inDuplicate, InetAddress inAddress, int inPort ) 
 	{
 		ReputationDAO db = ReputationDAO.get();
 		
@@ -435,7 +469,7 @@ public class UpdatePacketHandler extends CoreWaiter implements ExternalUdpPacket
 			/**
 			 * If this update has already been applied, discard
 			 */
-			if( db.is_duplicate_update(r.receipt) )
+			if( inDuplicate )
 			{
 				// TODO: punish replay attack? -- more likely just a retransmit due to loss. fall through and send ack again here. 
 				logger.warning("Seemingly a replay attack (or retransmit due to loss) from receipt: " + r);
@@ -488,8 +522,8 @@ public class UpdatePacketHandler extends CoreWaiter implements ExternalUdpPacket
 			oos.writeObject(ack);
 			
 			byte [] bytes = baos.toByteArray();
-			mSocket.send(new DatagramPacket(bytes, bytes.length, packet.getAddress(), packet.getPort()));
-			logger.fine("sent ack to: " + packet.getAddress().toString() + " port " + packet.getPort());
+			mSocket.send(new DatagramPacket(bytes, bytes.length, inAddress, inPort));
+			logger.fine("sent ack to: " + inAddress.toString() + " port " + inPort);
 		}
 		catch( IOException e )
 		{
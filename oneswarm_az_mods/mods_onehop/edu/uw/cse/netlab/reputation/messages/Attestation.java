@@ -76,6 +76,7 @@ public class Attestation implements Message
 		{
 			Map root = MessagingUtil.convertBencodedByteStreamToPayload( data, 512, getID() );
 			Receipt r = (Receipt) ByteManip.objectFromBytes((byte[])root.get("receipt"));
+			r.verify_signature();
 			return new Attestation(r, version);
 		} 
 		catch( Exception e )
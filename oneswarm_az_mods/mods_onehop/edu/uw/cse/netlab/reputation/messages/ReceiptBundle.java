@@ -17,6 +17,7 @@ import com.aelitis.azureus.core.peermanager.messaging.MessageException;
 import com.aelitis.azureus.core.peermanager.messaging.MessagingUtil;
 
 import edu.uw.cse.netlab.reputation.storage.Receipt;
+import edu.uw.cse.netlab.reputation.storage.ReceiptVerifier;
 import edu.uw.cse.netlab.utils.BloomFilter;
 import edu.uw.cse.netlab.utils.ByteManip;
 
@@ -64,6 +65,8 @@ public class ReceiptBundle implements Message
 			Receipt [] receipts = (Receipt[]) ByteManip.objectFromBytes((byte[])root.get("receipts"));
 			int [] received_reco_offsets = (int[]) ByteManip.objectFromBytes((byte[])root.get("offsets"));
 			
+			ReceiptVerifier.get().verify_now(receipts);
+			
 			return new ReceiptBundle(receipts, received_reco_offsets, version);
 		} 
 		catch( Exception e )
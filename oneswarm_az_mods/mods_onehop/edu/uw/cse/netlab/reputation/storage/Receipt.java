@@ -59,6 +59,8 @@ public class Receipt implements Serializable
 
 	transient byte[] mHash = null;
 
+	transient boolean mVerified = false;
+
 	/*
 	 * A subset of the information available in the state table -- this reflects
 	 * the fact that we're only interested in mIntermediary's opinion as an
@@ -209,27 +211,51 @@ public class Receipt implements Serializable
 		out.defaultWriteObject();
 	}
 
+	/**
+	 * The signature isn't checked here, receipts from the network are verified where they are
+	 * received (see ReceiptVerifier) so that duplicates can be dropped first and receipts
+	 * read back from the database aren't checked again.
+	 */
 	private void readObject( ObjectInputStream in ) throws IOException,
 			ClassNotFoundException {
 		in.defaultReadObject();
-		verify_signature();
+	}
+
+	public boolean is_verified() {
+		return mVerified;
 	}
 
 	public void verify_signature() throws IOException {
+		if (mVerified)
+			return;
+
 		byte[] bytes = get_protected_bytes();
+		ReceiptVerifier verifier = ReceiptVerifier.get();
+		boolean ok = false;
 		try
 		{
-			Signature s = Signature.getInstance("SHA1withRSA");
-			s.initVerify(mSigning);
-			s.update(bytes);
-			if (s.verify(mSignature) == false)
+			if (mHash == null)
+				mHash = MessageDigest.getInstance("SHA-1").digest(bytes);
+
+			if (verifier.is_cached(mHash, mSignature))
+			{
+				mVerified = true;
+				return;
+			}
+
+			if (mSignature == null || ReceiptVerifier.verify(mSigning, bytes, mSignature) == false)
 				throw new IOException("receipt check failed!");
+			ok = true;
 		} catch( Exception e )
 		{
 			System.err.println(e);
-			e.printStackTrace();
 			throw new IOException(e.toString());
+		} finally
+		{
+			if (mHash != null)
+				verifier.verified(mHash, mSignature, ok);
 		}
+		mVerified = true;
 	}
 
 	public Receipt(PublicKey inEncodingStateFor, BloomFilter inOnBehalfOf,
@@ -0,0 +1,436 @@
+package edu.uw.cse.netlab.reputation.storage;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import org.gudy.azureus2.core3.util.AEThread2;
+import org.gudy.azureus2.core3.util.Average;
+import org.gudy.azureus2.core3.util.ByteFormatter;
+
+import com.aelitis.azureus.core.stats.AzureusCoreStats;
+import com.aelitis.azureus.core.stats.AzureusCoreStatsProvider;
+
+/**
+ * Checks receipt signatures off the threads that receive them. Submitted receipts are taken in
+ * batches, updates that have already been applied are dropped before any signature work and the
+ * rest are verified in parallel on a small worker pool. Listeners are called in submission order
+ * on the batching thread, so one batch's updates are recorded before the next batch is deduped.
+ *
+ * Each thread keeps its own Signature instance and a receipt whose signature has been checked
+ * once (e.g. a retransmit) is not checked again.
+ */
+public class ReceiptVerifier
+{
+	private static Logger logger = Logger.getLogger(ReceiptVerifier.class.getName());
+
+	public static final int VERIFIED = 0;
+	public static final int DUPLICATE = 1;
+	public static final int FAILED = 2;
+
+	private static final int PENDING = -1;
+
+	static final int MAX_BATCH = 64;
+	static final int VERIFIED_CACHE_SIZE = 4096;
+
+	public interface Listener
+	{
+		/**
+		 * @param inResult one of VERIFIED, DUPLICATE or FAILED
+		 */
+		public void verification_complete( Receipt inReceipt, int inResult );
+	}
+
+	private static final ThreadLocal<Signature> mSignatures = new ThreadLocal<Signature>() {
+		protected Signature initialValue() {
+			try {
+				return Signature.getInstance("SHA1withRSA");
+			} catch( GeneralSecurityException e ) {
+				throw new RuntimeException(e);
+			}
+		}
+	};
+
+	private static ReceiptVerifier mInst = null;
+	public synchronized static ReceiptVerifier get()
+	{
+		if( mInst == null )
+			mInst = new ReceiptVerifier(Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors())));
+		return mInst;
+	}
+
+	private static class Pending
+	{
+		final Receipt receipt;
+		final boolean dedupe;
+		final Listener listener;
+		int result = PENDING;
+		/** an earlier copy of this receipt in the same batch */
+		Pending first = null;
+
+		Pending( Receipt inReceipt, boolean inDedupe, Listener inListener )
+		{
+			receipt = inReceipt;
+			dedupe = inDedupe;
+			listener = inListener;
+		}
+	}
+
+	private final LinkedBlockingQueue<Pending> mQueue = new LinkedBlockingQueue<Pending>();
+	private final ExecutorService mWorkers;
+	private final int mWorkerCount;
+
+	/** receipt hash -> signature that verified against it */
+	private final Map<String, byte []> mVerified = new LinkedHashMap<String, byte []>(16, 0.75f, true) {
+		protected boolean removeEldestEntry( Map.Entry<String, byte []> eldest ) {
+			return size() > VERIFIED_CACHE_SIZE;
+		}
+	};
+
+	private final AtomicLong mVerifyCount = new AtomicLong();
+	private final AtomicLong mFailedCount = new AtomicLong();
+	private final AtomicLong mDuplicateCount = new AtomicLong();
+	private final AtomicLong mCacheHits = new AtomicLong();
+	private final Average mVerifyRate = Average.getInstance(1000, 10);
+
+	private volatile AEThread2 mBatcher = null;
+
+	ReceiptVerifier( int inWorkers )
+	{
+		mWorkerCount = inWorkers;
+		mWorkers = new ThreadPoolExecutor(0, inWorkers, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+				new ThreadFactory() {
+					int next = 0;
+					public synchronized Thread newThread( Runnable r ) {
+						Thread t = new Thread(r, "receipt verifier " + (next++));
+						t.setDaemon(true);
+						return t;
+					}
+				}, new ThreadPoolExecutor.CallerRunsPolicy());
+
+		Set<String> types = new HashSet<String>();
+		types.add(AzureusCoreStats.ST_REPUTATION_VERIFY_COUNT);
+		types.add(AzureusCoreStats.ST_REPUTATION_VERIFY_RATE);
+		types.add(AzureusCoreStats.ST_REPUTATION_VERIFY_FAILED);
+		types.add(AzureusCoreStats.ST_REPUTATION_VERIFY_DUPLICATES);
+		types.add(AzureusCoreStats.ST_REPUTATION_VERIFY_BACKLOG);
+
+		AzureusCoreStats.registerProvider(types, new AzureusCoreStatsProvider() {
+			public void updateStats( Set types, Map values ) {
+				if( types.contains(AzureusCoreStats.ST_REPUTATION_VERIFY_COUNT) )
+					values.put(AzureusCoreStats.ST_REPUTATION_VERIFY_COUNT, new Long(mVerifyCount.get()));
+				if( types.contains(AzureusCoreStats.ST_REPUTATION_VERIFY_RATE) )
+					values.put(AzureusCoreStats.ST_REPUTATION_VERIFY_RATE, new Long(get_verify_rate()));
+				if( types.contains(AzureusCoreStats.ST_REPUTATION_VERIFY_FAILED) )
+					values.put(AzureusCoreStats.ST_REPUTATION_VERIFY_FAILED, new Long(mFailedCount.get()));
+				if( types.contains(AzureusCoreStats.ST_REPUTATION_VERIFY_DUPLICATES) )
+					values.put(AzureusCoreStats.ST_REPUTATION_VERIFY_DUPLICATES, new Long(mDuplicateCount.get()));
+				if( types.contains(AzureusCoreStats.ST_REPUTATION_VERIFY_BACKLOG) )
+					values.put(AzureusCoreStats.ST_REPUTATION_VERIFY_BACKLOG, new Long(get_backlog()));
+			}
+		});
+	}
+
+	/**
+	 * Queues a receipt for verification.
+	 *
+	 * @param inDedupe if true, a receipt that has already been applied as an update is reported
+	 *   as DUPLICATE without its signature being checked
+	 */
+	public void submit( Receipt inReceipt, boolean inDedupe, Listener inListener )
+	{
+		start();
+		mQueue.add(new Pending(inReceipt, inDedupe, inListener));
+	}
+
+	/**
+	 * Verifies the given receipts on the calling thread, spreading them over the workers when there
+	 * is more than one.
+	 *
+	 * @throws IOException if any of them fails
+	 */
+	public void verify_now( Receipt [] inReceipts ) throws IOException
+	{
+		List<Pending> batch = new ArrayList<Pending>(inReceipts.length);
+		for( Receipt r : inReceipts )
+			batch.add(new Pending(r, false, null));
+
+		verify_batch(batch);
+
+		for( Pending p : batch )
+			if( p.result != VERIFIED )
+				throw new IOException("receipt check failed!");
+	}
+
+	public long get_backlog()
+	{
+		return mQueue.size();
+	}
+
+	/**
+	 * @return verifications per second over the last 10 seconds
+	 */
+	public long get_verify_rate()
+	{
+		return mVerifyRate.getAverage();
+	}
+
+	public long get_verify_count()
+	{
+		return mVerifyCount.get();
+	}
+
+	public long get_cache_hits()
+	{
+		return mCacheHits.get();
+	}
+
+	private void start()
+	{
+		if( mBatcher != null )
+			return;
+
+		synchronized( this )
+		{
+			if( mBatcher != null )
+				return;
+
+			mBatcher = new AEThread2("receipt verification batcher", true) {
+				public void run() {
+					while( true )
+					{
+						try
+						{
+							List<Pending> batch = new ArrayList<Pending>();
+							batch.add(mQueue.take());
+							mQueue.drainTo(batch, MAX_BATCH - 1);
+
+							process(batch);
+						}
+						catch( Throwable t )
+						{
+							logger.warning("receipt verification: " + t.toString());
+							t.printStackTrace();
+						}
+					}
+				}
+			};
+			mBatcher.start();
+		}
+	}
+
+	void process( List<Pending> inBatch )
+	{
+		dedupe(inBatch);
+
+		List<Pending> to_check = new ArrayList<Pending>(inBatch.size());
+		List<Pending> copies = new ArrayList<Pending>();
+		for( Pending p : inBatch )
+		{
+			if( p.first != null )
+				copies.add(p);
+			else if( p.result != DUPLICATE )
+				to_check.add(p);
+		}
+
+		verify_batch(to_check);
+
+		// a copy is only a duplicate of an update that is known to be good, otherwise it gets
+		// its own signature check
+		to_check.clear();
+		for( Pending p : copies )
+		{
+			if( p.first.result == DUPLICATE ||
+					(p.first.result == VERIFIED && Arrays.equals(p.first.receipt.getSignature(), p.receipt.getSignature())) )
+			{
+				p.result = DUPLICATE;
+				mDuplicateCount.incrementAndGet();
+			}
+			else
+				to_check.add(p);
+		}
+
+		verify_batch(to_check);
+
+		for( Pending p : inBatch )
+		{
+			try
+			{
+				p.listener.verification_complete(p.receipt, p.result);
+			}
+			catch( Throwable t )
+			{
+				logger.warning("receipt verification listener: " + t.toString());
+				t.printStackTrace();
+			}
+		}
+	}
+
+	private void dedupe( List<Pending> inBatch )
+	{
+		ReputationDAO db = null;
+		Map<String, Pending> seen = new HashMap<String, Pending>();
+
+		for( Pending p : inBatch )
+		{
+			if( !p.dedupe )
+				continue;
+
+			byte [] hash = p.receipt.getSHA1();
+			if( hash == null )
+				continue;
+
+			String key = ByteFormatter.encodeString(hash);
+			Pending first = seen.get(key);
+			if( first != null )
+			{
+				// decided once the first copy has been checked
+				p.first = first;
+				continue;
+			}
+			seen.put(key, p);
+
+			boolean duplicate = false;
+			try
+			{
+				if( db == null )
+					db = ReputationDAO.get();
+				duplicate = db.is_duplicate_update(p.receipt);
+			}
+			catch( IOException e )
+			{
+				logger.warning("duplicate check failed: " + e.toString());
+			}
+
+			if( duplicate )
+			{
+				p.result = DUPLICATE;
+				mDuplicateCount.incrementAndGet();
+			}
+		}
+	}
+
+	private void verify_batch( List<Pending> inBatch )
+	{
+		if( inBatch.size() == 0 )
+			return;
+
+		if( inBatch.size() == 1 || mWorkerCount == 1 )
+		{
+			for( Pending p : inBatch )
+				p.result = check(p.receipt) ? VERIFIED : FAILED;
+			return;
+		}
+
+		// a share of the batch per worker rather than a task per receipt
+		int shares = Math.min(mWorkerCount, inBatch.size());
+		List<Future<?>> futures = new ArrayList<Future<?>>(shares);
+		for( int i=0; i<shares; i++ )
+		{
+			final List<Pending> share = new ArrayList<Pending>();
+			for( int j=i; j<inBatch.size(); j+=shares )
+				share.add(inBatch.get(j));
+
+			futures.add(mWorkers.submit(new Callable<Object>() {
+				public Object call() {
+					for( Pending p : share )
+						p.result = check(p.receipt) ? VERIFIED : FAILED;
+					return null;
+				}
+			}));
+		}
+
+		for( Future<?> f : futures )
+		{
+			try
+			{
+				f.get();
+			}
+			catch( Exception e )
+			{
+				logger.warning("receipt verification worker: " + e.toString());
+			}
+		}
+
+		// anything a failed worker didn't get to
+		for( Pending p : inBatch )
+			if( p.result == PENDING )
+				p.result = check(p.receipt) ? VERIFIED : FAILED;
+	}
+
+	private boolean check( Receipt inReceipt )
+	{
+		try
+		{
+			inReceipt.verify_signature();
+			return true;
+		}
+		catch( IOException e )
+		{
+			logger.warning("receipt signature check failed: " + e.toString());
+			return false;
+		}
+	}
+
+	/**
+	 * @return true if a receipt with this hash and signature has already been verified
+	 */
+	boolean is_cached( byte [] inHash, byte [] inSignature )
+	{
+		byte [] sig;
+		synchronized( mVerified )
+		{
+			sig = mVerified.get(ByteFormatter.encodeString(inHash));
+		}
+		boolean hit = sig != null && Arrays.equals(sig, inSignature);
+		if( hit )
+			mCacheHits.incrementAndGet();
+		return hit;
+	}
+
+	void verified( byte [] inHash, byte [] inSignature, boolean inOK )
+	{
+		if( inOK )
+		{
+			synchronized( mVerified )
+			{
+				mVerified.put(ByteFormatter.encodeString(inHash), inSignature);
+			}
+		}
+		else
+			mFailedCount.incrementAndGet();
+
+		mVerifyCount.incrementAndGet();
+		mVerifyRate.addValue(1);
+	}
+
+	/**
+	 * Checks a SHA1withRSA signature with this thread's Signature instance
+	 */
+	public static boolean verify( PublicKey inKey, byte [] inData, byte [] inSignature ) throws GeneralSecurityException
+	{
+		Signature s = mSignatures.get();
+		s.initVerify(inKey);
+		s.update(inData);
+		return s.verify(inSignature);
+	}
+}
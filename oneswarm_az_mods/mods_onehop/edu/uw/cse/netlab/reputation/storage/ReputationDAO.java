@@ -25,18 +25,23 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
 import org.gudy.azureus2.core3.config.COConfigurationManager;
 import org.gudy.azureus2.core3.util.ByteFormatter;
 import org.gudy.azureus2.core3.util.SystemProperties;
 
+import com.aelitis.azureus.core.stats.AzureusCoreStats;
+import com.aelitis.azureus.core.stats.AzureusCoreStatsProvider;
+
 import sun.security.x509.CertAndKeyGen;
 import edu.uw.cse.netlab.reputation.Computation;
 import edu.uw.cse.netlab.reputation.LocalIdentity;
@@ -132,6 +137,18 @@ public class ReputationDAO
 	
 	private Connection mDB = null; 
 	
+	/**
+	 * Counters, observations and recently used keys are served from memory so that the unchoke path 
+	 * never waits on Derby. Changes are written back every FLUSH_INTERVAL_MS in one transaction. 
+	 */
+	private static final long FLUSH_INTERVAL_MS = 5*1000;
+	
+	private final ReputationState mState = new ReputationState();
+	
+	private final AtomicLong mFlushCount = new AtomicLong();
+	private final AtomicLong mFlushedRows = new AtomicLong();
+	private final AtomicLong mFlushTime = new AtomicLong();
+	
 	private LocalTopK mTopKCache = null;
 	private long mLastTopKRefresh = 0;
 	
@@ -168,12 +185,212 @@ public class ReputationDAO
 		
 		create_tables();
 		
+		load_state();
+		
+		Timer timer = new Timer("reputation DAO", true);
+		
 		logger.fine("starting table pruning timer");
-		(new Timer("table prune", true)).schedule(new TimerTask(){
+		timer.schedule(new TimerTask(){
 			public void run() {
 				logger.fine("prune tables, named!");
 				prune_tables();
 			}}, 60*1000, 60*60*1000 );
+		
+		timer.schedule(new TimerTask(){
+			public void run() {
+				flush();
+			}}, FLUSH_INTERVAL_MS, FLUSH_INTERVAL_MS );
+		
+		Runtime.getRuntime().addShutdownHook(new Thread("reputation DAO flush") {
+			public void run() {
+				flush();
+			}
+		});
+		
+		Set<String> types = new HashSet<String>();
+		types.add(AzureusCoreStats.ST_REPUTATION_WRITE_PENDING_COUNT);
+		types.add(AzureusCoreStats.ST_REPUTATION_WRITE_LAG);
+		types.add(AzureusCoreStats.ST_REPUTATION_FLUSH_COUNT);
+		types.add(AzureusCoreStats.ST_REPUTATION_FLUSH_ROWS);
+		types.add(AzureusCoreStats.ST_REPUTATION_FLUSH_TIME);
+		
+		AzureusCoreStats.registerProvider(types, new AzureusCoreStatsProvider() {
+			public void updateStats( Set types, Map values ) {
+				if( types.contains(AzureusCoreStats.ST_REPUTATION_WRITE_PENDING_COUNT) )
+					values.put(AzureusCoreStats.ST_REPUTATION_WRITE_PENDING_COUNT, new Long(mState.get_pending_count()));
+				if( types.contains(AzureusCoreStats.ST_REPUTATION_WRITE_LAG) )
+					values.put(AzureusCoreStats.ST_REPUTATION_WRITE_LAG, new Long(mState.get_write_lag()));
+				if( types.contains(AzureusCoreStats.ST_REPUTATION_FLUSH_COUNT) )
+					values.put(AzureusCoreStats.ST_REPUTATION_FLUSH_COUNT, new Long(mFlushCount.get()));
+				if( types.contains(AzureusCoreStats.ST_REPUTATION_FLUSH_ROWS) )
+					values.put(AzureusCoreStats.ST_REPUTATION_FLUSH_ROWS, new Long(mFlushedRows.get()));
+				if( types.contains(AzureusCoreStats.ST_REPUTATION_FLUSH_TIME) )
+					values.put(AzureusCoreStats.ST_REPUTATION_FLUSH_TIME, new Long(mFlushTime.get()));
+			}
+		});
+	}
+	
+	/**
+	 * Reads the state and seen_today tables, and the most recent keys, into memory. 
+	 */
+	private synchronized void load_state()
+	{
+		Statement stmt = null;
+		try
+		{
+			stmt = mDB.createStatement();
+			
+			StringBuilder sql = new StringBuilder("SELECT remote_id");
+			for( String col : ReputationState.COUNTER_COLUMNS )
+				sql.append(", ").append(col);
+			sql.append(", my_observations, indirect_observations FROM state");
+			
+			ResultSet rs = stmt.executeQuery(sql.toString());
+			while( rs.next() )
+			{
+				ReputationState.Entry e = mState.add(rs.getLong(1));
+				int col = 2;
+				for( int i=0; i<ReputationState.COUNTER_COLUMNS.length; i++ )
+					e.counters.set(i, rs.getLong(col++));
+				e.my_observations = rs.getInt(col++);
+				e.indirect_observations = rs.getDouble(col++);
+			}
+			rs.close();
+			
+			rs = stmt.executeQuery("SELECT ip, infohash, time FROM seen_today");
+			while( rs.next() )
+				mState.load_seen(rs.getInt(1), rs.getString(2), rs.getTimestamp(3).getTime());
+			rs.close();
+			
+			stmt.setMaxRows(ReputationState.KEY_CACHE_SIZE);
+			rs = stmt.executeQuery("SELECT public_key, db_id FROM keys ORDER BY db_id DESC");
+			while( rs.next() )
+				mState.cache_key(rs.getString(1), rs.getLong(2), null);
+			rs.close();
+			
+			logger.fine("loaded reputation state for " + mState.size() + " peers");
+		}
+		catch( SQLException e )
+		{
+			logger.severe(e.toString());
+			e.printStackTrace();
+		}
+		finally
+		{
+			try {
+				if( stmt != null ) stmt.close();
+			} catch( Exception e ) {}
+		}
+	}
+	
+	/**
+	 * Writes changes made in memory since the last flush to the state and seen_today tables in a 
+	 * single transaction. Failed writes are retried by the next flush.  
+	 */
+	public synchronized void flush()
+	{
+		if( mDB == null )
+			return;
+		
+		List<ReputationState.Entry> dirty = mState.take_dirty();
+		List<Object []> seen = mState.take_seen_inserts();
+		
+		if( dirty.size() == 0 && seen.size() == 0 )
+			return;
+		
+		long start = System.currentTimeMillis();
+		
+		PreparedStatement update = null, delete_seen = null, insert_seen = null;
+		boolean auto_commit = true;
+		try
+		{
+			auto_commit = mDB.getAutoCommit();
+			mDB.setAutoCommit(false);
+			
+			if( dirty.size() > 0 )
+			{
+				StringBuilder sql = new StringBuilder("UPDATE state SET ");
+				for( String col : ReputationState.COUNTER_COLUMNS )
+					sql.append(col).append(" = ?, ");
+				sql.append("my_observations = ?, indirect_observations = ? WHERE remote_id = ?");
+				
+				update = mDB.prepareStatement(sql.toString());
+				for( ReputationState.Entry e : dirty )
+				{
+					int col = 1;
+					for( int i=0; i<ReputationState.COUNTER_COLUMNS.length; i++ )
+						update.setLong(col++, e.counters.get(i));
+					synchronized( e )
+					{
+						update.setInt(col++, e.my_observations);
+						update.setDouble(col++, e.indirect_observations);
+					}
+					update.setLong(col++, e.id);
+					update.addBatch();
+				}
+				update.executeBatch();
+			}
+			
+			if( seen.size() > 0 )
+			{
+				// an expired row for the ip may not have been pruned yet
+				delete_seen = mDB.prepareStatement("DELETE FROM seen_today WHERE ip = ?");
+				insert_seen = mDB.prepareStatement("INSERT INTO seen_today (ip, infohash, time) VALUES (?, ?, ?)");
+				for( Object [] s : seen )
+				{
+					delete_seen.setInt(1, (Integer)s[0]);
+					delete_seen.addBatch();
+					
+					insert_seen.setInt(1, (Integer)s[0]);
+					insert_seen.setString(2, (String)s[1]);
+					insert_seen.setTimestamp(3, new Timestamp((Long)s[2]));
+					insert_seen.addBatch();
+				}
+				delete_seen.executeBatch();
+				insert_seen.executeBatch();
+			}
+			
+			mDB.commit();
+			
+			mFlushCount.incrementAndGet();
+			mFlushedRows.addAndGet(dirty.size() + seen.size());
+			
+			logger.finer("flushed " + dirty.size() + " state and " + seen.size() + " seen_today rows");
+		}
+		catch( SQLException e )
+		{
+			logger.warning("reputation flush failed: " + e.toString());
+			
+			try {
+				mDB.rollback();
+			} catch( SQLException e2 ) {}
+			
+			mState.requeue(dirty, seen);
+		}
+		finally
+		{
+			try {
+				if( update != null ) update.close();
+				if( delete_seen != null ) delete_seen.close();
+				if( insert_seen != null ) insert_seen.close();
+				mDB.setAutoCommit(auto_commit);
+			} catch( Exception e ) {}
+			
+			mFlushTime.addAndGet(System.currentTimeMillis() - start);
+		}
+	}
+	
+	public int get_pending_write_count()
+	{
+		return mState.get_pending_count();
+	}
+	
+	/**
+	 * @return age in ms of the oldest change that hasn't been written to the database yet
+	 */
+	public long get_write_lag()
+	{
+		return mState.get_write_lag();
 	}
 	
 	private synchronized void prune_tables()
@@ -186,6 +403,8 @@ public class ReputationDAO
 			stmt.setTimestamp(1, new Timestamp(System.currentTimeMillis() - 86400000) ); // 1 day
 			int pruned = stmt.executeUpdate();
 			
+			mState.prune_seen(System.currentTimeMillis() - 86400000);
+			
 			if( pruned == 0 ) {
 				logger.fine("pruned " + pruned + " entries from seen_today");
 			} else { 
@@ -274,6 +493,8 @@ public class ReputationDAO
 		logger.fine("recomputing top K");
 		mLastTopKRefresh = System.currentTimeMillis();
 		
+		flush();
+		
 		// TODO: keep per-execution change bits on these so we aren't constantly recomputing these during exec.
 		// could be a pain to do so when the set of peers gets towards 4k... (then again, most peers should have occs <=1, so maybe 
 		// we should just prune to that)
@@ -387,7 +608,19 @@ public class ReputationDAO
 		return mTopKCache;
 	}
 	
-	public synchronized PublicKey get_public_key( long inInternalID ) throws IOException 
+	public PublicKey get_public_key( long inInternalID ) throws IOException 
+	{
+		PublicKey result = mState.get_cached_key(inInternalID);
+		if( result == null )
+		{
+			result = lookup_public_key(inInternalID);
+			if( result != null )
+				mState.cache_key(ByteFormatter.encodeString(result.getEncoded()), inInternalID, result);
+		}
+		return result;
+	}
+	
+	private synchronized PublicKey lookup_public_key( long inInternalID ) throws IOException 
 	{
 		PublicKey result = null;
 		PreparedStatement stmt = null;
@@ -415,12 +648,25 @@ public class ReputationDAO
 		return result;
 	}
 	
-	public synchronized long get_internal_id( PublicKey inPubKey ) throws IOException
+	public long get_internal_id( PublicKey inPubKey ) throws IOException
+	{
+		String encoded = ByteFormatter.encodeString(inPubKey.getEncoded());
+		
+		Long cached = mState.get_cached_id(encoded);
+		if( cached != null )
+			return cached;
+		
+		long id = lookup_internal_id(encoded);
+		mState.cache_key(encoded, id, inPubKey);
+		return id;
+	}
+	
+	private synchronized long lookup_internal_id( String inEncodedKey ) throws IOException
 	{
 		try 
 		{
 			PreparedStatement stmt = mDB.prepareStatement("SELECT db_id FROM keys where public_key = ?");
-			stmt.setString(1, ByteFormatter.encodeString(inPubKey.getEncoded()));
+			stmt.setString(1, inEncodedKey);
 			ResultSet rs = stmt.executeQuery();
 			boolean inserting = false;
 			if( rs.next() == false )
@@ -429,14 +675,14 @@ public class ReputationDAO
 				stmt.close();
 				
 				stmt = mDB.prepareStatement("INSERT INTO keys (public_key) VALUES (?)");
-				stmt.setString(1, ByteFormatter.encodeString((inPubKey.getEncoded())));
+				stmt.setString(1, inEncodedKey);
 				if( stmt.executeUpdate() != 1 )
 					throw new IOException("Insert into keys DB didn't update anything");
 				stmt.close();
 				
 				// reissue query
 				stmt = mDB.prepareStatement("SELECT db_id FROM keys where public_key = ?");
-				stmt.setString(1, ByteFormatter.encodeString(inPubKey.getEncoded()));
+				stmt.setString(1, inEncodedKey);
 				rs = stmt.executeQuery();
 				if( rs.next() == false )
 					throw new IOException("Couldn't retrieve db_id immediately after insertion");
@@ -458,6 +704,9 @@ public class ReputationDAO
 			}
 			mDB.commit();
 			
+			if( inserting )
+				mState.add(id);
+			
 			return id;
 		}
 		catch( Exception e )
@@ -467,20 +716,20 @@ public class ReputationDAO
 		}
 	}
 	
-	public void sent_direct( long inID, long bytes ) throws IOException { increment_field(inID, "sent_direct", bytes); }
-	public void received_direct( long inID, long bytes ) throws IOException { increment_field(inID, "received_direct", bytes); }
-	public long get_sent_direct( long inID ) throws IOException { return retrieve_long(inID, "sent_direct"); }
-	public long get_received_direct( long inID ) throws IOException { return retrieve_long(inID, "received_direct"); }
+	public void sent_direct( long inID, long bytes ) throws IOException { increment_field(inID, ReputationState.SENT_DIRECT, bytes); }
+	public void received_direct( long inID, long bytes ) throws IOException { increment_field(inID, ReputationState.RECEIVED_DIRECT, bytes); }
+	public long get_sent_direct( long inID ) throws IOException { return retrieve_long(inID, ReputationState.SENT_DIRECT); }
+	public long get_received_direct( long inID ) throws IOException { return retrieve_long(inID, ReputationState.RECEIVED_DIRECT); }
 	
-	public void local_sent_due_to_remote_reco( long inID, long bytes ) throws IOException { increment_field(inID, "local_sent_due_to_remote_reco", bytes); }
-	public void local_recv_due_to_remote_reco( long inID, long bytes ) throws IOException { increment_field(inID, "local_recv_due_to_remote_reco", bytes); }
-	public long get_local_sent_due_to_remote_reco( long inID ) throws IOException { return retrieve_long(inID, "local_sent_due_to_remote_reco"); }
-	public long get_local_recv_due_to_remote_reco( long inID ) throws IOException { return retrieve_long(inID, "local_recv_due_to_remote_reco"); }
+	public void local_sent_due_to_remote_reco( long inID, long bytes ) throws IOException { increment_field(inID, ReputationState.LOCAL_SENT_DUE_TO_REMOTE_RECO, bytes); }
+	public void local_recv_due_to_remote_reco( long inID, long bytes ) throws IOException { increment_field(inID, ReputationState.LOCAL_RECV_DUE_TO_REMOTE_RECO, bytes); }
+	public long get_local_sent_due_to_remote_reco( long inID ) throws IOException { return retrieve_long(inID, ReputationState.LOCAL_SENT_DUE_TO_REMOTE_RECO); }
+	public long get_local_recv_due_to_remote_reco( long inID ) throws IOException { return retrieve_long(inID, ReputationState.LOCAL_RECV_DUE_TO_REMOTE_RECO); }
 	
-	public void others_sent_due_to_my_reco( long inID, long bytes ) throws IOException { increment_field(inID, "others_sent_due_to_my_reco", bytes); }
-	public void others_recv_due_to_my_reco( long inID, long bytes ) throws IOException { increment_field(inID, "others_recv_due_to_my_reco", bytes); }
-	public long get_others_sent_due_to_my_reco( long inID ) throws IOException { return retrieve_long(inID, "others_sent_due_to_my_reco"); }
-	public long get_others_recv_due_to_my_reco( long inID ) throws IOException { return retrieve_long(inID, "others_recv_due_to_my_reco"); }
+	public void others_sent_due_to_my_reco( long inID, long bytes ) throws IOException { increment_field(inID, ReputationState.OTHERS_SENT_DUE_TO_MY_RECO, bytes); }
+	public void others_recv_due_to_my_reco( long inID, long bytes ) throws IOException { increment_field(inID, ReputationState.OTHERS_RECV_DUE_TO_MY_RECO, bytes); }
+	public long get_others_sent_due_to_my_reco( long inID ) throws IOException { return retrieve_long(inID, ReputationState.OTHERS_SENT_DUE_TO_MY_RECO); }
+	public long get_others_recv_due_to_my_reco( long inID ) throws IOException { return retrieve_long(inID, ReputationState.OTHERS_RECV_DUE_TO_MY_RECO); }
 	
 	
 	public synchronized String get_soft_state( PublicKey inKey ) throws IOException 
@@ -583,111 +832,42 @@ public class ReputationDAO
 		logger.fine("updated soft state: " + InetAddress.getByAddress(inIP).toString());
 	}
 	
-	private boolean is_daily_duplicate( InetAddress inIP, byte [] inInfohash ) throws IOException
-	{
-		PreparedStatement stmt = null;
-		boolean dupe = false;
-		try
-		{
-			DataInputStream dis = new DataInputStream(new ByteArrayInputStream(inIP.getAddress()));
-			int ip_int =  dis.readInt();
-			
-			stmt = mDB.prepareStatement("SELECT ip FROM seen_today WHERE ip = ? AND infohash = ? AND time > ?");
-			stmt.setLong(1, ip_int);
-			stmt.setString(2, ByteFormatter.encodeString(inInfohash));
-			stmt.setTimestamp(3, new Timestamp(System.currentTimeMillis() - 86400000) ); // 1 day
-			
-			ResultSet rs = stmt.executeQuery();
-			if( rs.next() )
-				dupe = true;
-		}
-		catch( SQLException e )
-		{
-			e.printStackTrace();
-		}
-		finally
-		{
-			if( stmt != null )
-			{
-				try {
-					stmt.close();
-				} catch( Exception e ) {}
-			}
-		}
-		return dupe;
-	}
-	
-	public synchronized void direct_observation( long inID, InetAddress inIP, byte [] inInfohash ) throws IOException
+	public void direct_observation( long inID, InetAddress inIP, byte [] inInfohash ) throws IOException
 	{
-		PreparedStatement stmt = null;
-		try 
-		{
-			if( is_daily_duplicate( inIP, inInfohash ) )
-			{
-				logger.fine("ignoring duplicate observation for " + inID);
-				return;
-			}
-			
-			stmt = mDB.prepareStatement("UPDATE state SET my_observations = my_observations + 1 WHERE remote_id = ?");
-			stmt.setLong(1, inID);
-			stmt.executeUpdate();
-			
-			DataInputStream dis = new DataInputStream(new ByteArrayInputStream(inIP.getAddress()));
-			int ip_int =  dis.readInt();
-			
-			stmt = mDB.prepareStatement("INSERT INTO seen_today (ip, infohash, time) VALUES (?, ?, ?)");
-			stmt.setLong(1, ip_int);
-			stmt.setString(2, ByteFormatter.encodeString(inInfohash));
-			stmt.setTimestamp(3, new Timestamp((new java.util.Date()).getTime()));
-			stmt.executeUpdate();
-			
-			mDB.commit();
-		}
-		catch( SQLException e )
+		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(inIP.getAddress()));
+		int ip_int =  dis.readInt();
+		
+		if( mState.seen(ip_int, ByteFormatter.encodeString(inInfohash), System.currentTimeMillis()) == false )
 		{
-			e.printStackTrace();
-			throw new IOException(e.toString());
+			logger.fine("ignoring duplicate observation for " + inID);
+			return;
 		}
-		finally
+		
+		ReputationState.Entry e = mState.get(inID);
+		if( e == null )
+			return;
+		synchronized( e )
 		{
-			if( stmt != null )
-			{
-				try {
-					stmt.close();
-				} catch( Exception e ) {}
-			}
+			e.my_observations++;
 		}
+		mState.changed(e);
 	}
 	
-	protected synchronized void multiplicative_decrease_observations( long inID ) throws IOException
+	protected void multiplicative_decrease_observations( long inID ) throws IOException
 	{
-		PreparedStatement stmt = null;
-		try 
-		{
-			stmt = mDB.prepareStatement(
-					"UPDATE state SET " +
-					// TODO: magic constant -- multiplicative decrease amount
-					"my_observations = my_observations * 0.95, " +
-					"indirect_observations = indirect_observations * 0.95 " +
-					"WHERE remote_id = ?");
-			stmt.setLong(1, inID);
-			stmt.executeUpdate();
-			mDB.commit();
-		}
-		catch( SQLException e )
-		{
-			e.printStackTrace();
-			throw new IOException(e.toString());
-		}
-		finally
+		ReputationState.Entry e = mState.get(inID);
+		if( e == null )
+			return;
+		synchronized( e )
 		{
-			try {
-				stmt.close();
-			} catch( Exception e ) {}
+			// TODO: magic constant -- multiplicative decrease amount
+			e.my_observations = (int)(e.my_observations * 0.95);
+			e.indirect_observations = e.indirect_observations * 0.95;
 		}
+		mState.changed(e);
 	}
 	
-	public synchronized void indirect_observation( long inID, double inFraction ) throws IOException
+	public void indirect_observation( long inID, double inFraction ) throws IOException
 	{
 		if( inID == 1 )
 		{
@@ -697,20 +877,14 @@ public class ReputationDAO
 		
 		logger.fine("recording indirect observation: " + inID + " / " + inFraction);
 		
-		try 
-		{
-			PreparedStatement stmt = mDB.prepareStatement("UPDATE state SET indirect_observations = indirect_observations + ? WHERE remote_id = ?");
-			stmt.setLong(2, inID);
-			stmt.setDouble(1, inFraction);
-			stmt.executeUpdate();
-			stmt.close();
-			mDB.commit();
-		}
-		catch( SQLException e )
+		ReputationState.Entry e = mState.get(inID);
+		if( e == null )
+			return;
+		synchronized( e )
 		{
-			e.printStackTrace();
-			throw new IOException(e.toString());
+			e.indirect_observations += inFraction;
 		}
+		mState.changed(e);
 	}
 	
 	public synchronized void record_update( Receipt inUpdateReceipt ) throws IOException
@@ -849,42 +1023,14 @@ public class ReputationDAO
 		
 	}
 	
-	private synchronized void increment_field( long inID, String inField, long inBytes ) throws IOException 
+	private void increment_field( long inID, int inCounter, long inBytes ) throws IOException 
 	{
-		try 
-		{
-			String sql = "UPDATE state SET " + inField + " = " + inField + " + ? WHERE remote_id = ?";
-			PreparedStatement stmt = mDB.prepareStatement(sql);
-			stmt.setLong(1, inBytes);
-			stmt.setLong(2, inID);
-			stmt.executeUpdate();
-			stmt.close();
-			mDB.commit();
-		}
-		catch( SQLException e )
-		{
-			e.printStackTrace();
-			throw new IOException(e.toString());
-		}
+		mState.increment_counter(inID, inCounter, inBytes);
 	}
 	
-	
-	private synchronized long retrieve_long( long inID, String inField ) throws IOException 
+	private long retrieve_long( long inID, int inCounter ) throws IOException 
 	{
-		try
-		{
-			PreparedStatement stmt = mDB.prepareStatement("SELECT " + inField + " FROM state WHERE remote_id = ?");
-			stmt.setLong(1, inID);
-			ResultSet rs = stmt.executeQuery();
-			if( rs.next() == false )
-				return -1;
-			return rs.getLong(1);
-		}
-		catch( SQLException e )
-		{
-			e.printStackTrace();
-			throw new IOException(e.toString());
-		}
+		return mState.get_counter(inID, inCounter);
 	}
 	
 	public synchronized static ReputationDAO get() {
@@ -1197,6 +1343,9 @@ public class ReputationDAO
 	{
 		Statement stmt = null;
 		List<PublicKey> freq = new LinkedList<PublicKey>();
+		
+		flush();
+		
 		try
 		{
 			long start = System.currentTimeMillis();
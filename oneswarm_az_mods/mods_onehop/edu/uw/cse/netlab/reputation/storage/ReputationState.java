@@ -0,0 +1,259 @@
+package edu.uw.cse.netlab.reputation.storage;
+
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * In memory copy of the state and seen_today tables along with LRU caches of the keys table. The
+ * unchoke path reads and updates these without touching Derby, changed rows are queued and written
+ * back by ReputationDAO.flush() in batched transactions.
+ */
+class ReputationState
+{
+	static final int SENT_DIRECT = 0;
+	static final int RECEIVED_DIRECT = 1;
+	static final int LOCAL_SENT_DUE_TO_REMOTE_RECO = 2;
+	static final int LOCAL_RECV_DUE_TO_REMOTE_RECO = 3;
+	static final int OTHERS_SENT_DUE_TO_MY_RECO = 4;
+	static final int OTHERS_RECV_DUE_TO_MY_RECO = 5;
+
+	/** Column names of the counters above, in order */
+	static final String [] COUNTER_COLUMNS =
+		{"sent_direct",
+		"received_direct",
+		"local_sent_due_to_remote_reco",
+		"local_recv_due_to_remote_reco",
+		"others_sent_due_to_my_reco",
+		"others_recv_due_to_my_reco"};
+
+	static final int KEY_CACHE_SIZE = 4096;
+
+	static class Entry
+	{
+		final long id;
+		final AtomicLongArray counters = new AtomicLongArray(COUNTER_COLUMNS.length);
+
+		// guarded by the entry
+		int my_observations;
+		double indirect_observations;
+
+		private final AtomicBoolean queued = new AtomicBoolean();
+
+		Entry( long inID )
+		{
+			id = inID;
+		}
+	}
+
+	static class Seen
+	{
+		final String infohash;
+		final long time;
+
+		Seen( String inInfohash, long inTime )
+		{
+			infohash = inInfohash;
+			time = inTime;
+		}
+	}
+
+	private final Map<Long, Entry> mEntries = new ConcurrentHashMap<Long, Entry>();
+	private final ConcurrentLinkedQueue<Entry> mDirty = new ConcurrentLinkedQueue<Entry>();
+
+	private final Map<Integer, Seen> mSeenToday = new ConcurrentHashMap<Integer, Seen>();
+	private final ConcurrentLinkedQueue<Object []> mSeenInserts = new ConcurrentLinkedQueue<Object []>();
+
+	/** When the oldest unwritten change was made, 0 if there are none */
+	private final AtomicLong mOldestChange = new AtomicLong();
+
+	private final Map<String, Long> mKeyToID = new LRUMap<String, Long>(KEY_CACHE_SIZE);
+	private final Map<Long, PublicKey> mIDToKey = new LRUMap<Long, PublicKey>(KEY_CACHE_SIZE);
+
+	Entry get( long inID )
+	{
+		return mEntries.get(inID);
+	}
+
+	Entry add( long inID )
+	{
+		Entry e = mEntries.get(inID);
+		if( e == null )
+		{
+			e = new Entry(inID);
+			mEntries.put(inID, e);
+		}
+		return e;
+	}
+
+	int size()
+	{
+		return mEntries.size();
+	}
+
+	/**
+	 * @return -1 if there is no state for this id, as with the table
+	 */
+	long get_counter( long inID, int inCounter )
+	{
+		Entry e = mEntries.get(inID);
+		if( e == null )
+			return -1;
+		return e.counters.get(inCounter);
+	}
+
+	void increment_counter( long inID, int inCounter, long inBytes )
+	{
+		Entry e = mEntries.get(inID);
+		if( e == null )
+			return;
+		e.counters.addAndGet(inCounter, inBytes);
+		changed(e);
+	}
+
+	void changed( Entry e )
+	{
+		if( e.queued.compareAndSet(false, true) )
+		{
+			mOldestChange.compareAndSet(0, System.currentTimeMillis());
+			mDirty.add(e);
+		}
+	}
+
+	/**
+	 * Records that ip was seen in a swarm unless it has already been seen today.
+	 *
+	 * @return false if this is a duplicate
+	 */
+	boolean seen( int inIP, String inInfohash, long inNow )
+	{
+		Seen s = mSeenToday.get(inIP);
+		if( s != null && s.time > inNow - 86400000 )
+		{
+			if( s.infohash.equals(inInfohash) )
+				return false;
+			// the table is keyed on ip alone so only the first swarm of the day is remembered
+			return true;
+		}
+
+		mSeenToday.put(inIP, new Seen(inInfohash, inNow));
+		mSeenInserts.add(new Object[]{inIP, inInfohash, inNow});
+		mOldestChange.compareAndSet(0, System.currentTimeMillis());
+		return true;
+	}
+
+	void load_seen( int inIP, String inInfohash, long inTime )
+	{
+		mSeenToday.put(inIP, new Seen(inInfohash, inTime));
+	}
+
+	void prune_seen( long inBefore )
+	{
+		for( Map.Entry<Integer, Seen> e : mSeenToday.entrySet() )
+		{
+			if( e.getValue().time < inBefore )
+				mSeenToday.remove(e.getKey());
+		}
+	}
+
+	/**
+	 * Takes the rows changed since the last call. A row changed again after this is queued again.
+	 */
+	List<Entry> take_dirty()
+	{
+		mOldestChange.set(0);
+
+		List<Entry> out = new ArrayList<Entry>();
+		Entry e;
+		while( (e = mDirty.poll()) != null )
+		{
+			e.queued.set(false);
+			out.add(e);
+		}
+		return out;
+	}
+
+	List<Object []> take_seen_inserts()
+	{
+		List<Object []> out = new ArrayList<Object []>();
+		Object [] s;
+		while( (s = mSeenInserts.poll()) != null )
+			out.add(s);
+		return out;
+	}
+
+	/**
+	 * Requeues rows whose write failed so they're retried by the next flush
+	 */
+	void requeue( List<Entry> inEntries, List<Object []> inSeen )
+	{
+		for( Entry e : inEntries )
+			changed(e);
+		mSeenInserts.addAll(inSeen);
+		if( inSeen.size() > 0 )
+			mOldestChange.compareAndSet(0, System.currentTimeMillis());
+	}
+
+	int get_pending_count()
+	{
+		return mDirty.size() + mSeenInserts.size();
+	}
+
+	/**
+	 * @return age in ms of the oldest change not yet written to the database
+	 */
+	long get_write_lag()
+	{
+		long oldest = mOldestChange.get();
+		return oldest == 0 ? 0 : Math.max(0, System.currentTimeMillis() - oldest);
+	}
+
+	Long get_cached_id( String inEncodedKey )
+	{
+		synchronized( mKeyToID )
+		{
+			return mKeyToID.get(inEncodedKey);
+		}
+	}
+
+	PublicKey get_cached_key( long inID )
+	{
+		synchronized( mKeyToID )
+		{
+			return mIDToKey.get(inID);
+		}
+	}
+
+	void cache_key( String inEncodedKey, long inID, PublicKey inKey )
+	{
+		synchronized( mKeyToID )
+		{
+			mKeyToID.put(inEncodedKey, inID);
+			if( inKey != null )
+				mIDToKey.put(inID, inKey);
+		}
+	}
+
+	private static class LRUMap<K, V> extends LinkedHashMap<K, V>
+	{
+		private final int mMax;
+
+		LRUMap( int inMax )
+		{
+			super(16, 0.75f, true);
+			mMax = inMax;
+		}
+
+		protected boolean removeEldestEntry( Map.Entry<K, V> eldest )
+		{
+			return size() > mMax;
+		}
+	}
+}
@@ -235,10 +235,7 @@ public class SoftStateSync extends CoreWaiter
 								byte [] bytes = s.protectedBytes();
 								try
 								{
-									Signature sigs = Signature.getInstance("SHA1withRSA");
-									sigs.initVerify(inID);
-									sigs.update(bytes);
-									if( sigs.verify(real_sig) == false )
+									if( ReceiptVerifier.verify(inID, bytes, real_sig) == false )
 									{
 										System.err.println("sig check failed for soft state update: " + s);
 										return;
@@ -8,6 +8,8 @@ import java.security.PublicKey;
 import java.security.cert.X509Certificate;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.X509EncodedKeySpec;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import org.gudy.azureus2.core3.util.ByteFormatter;
 
@@ -18,8 +20,28 @@ import sun.security.x509.X500Name;
 
 public class KeyManipulation
 {
+	private static final int KEY_CACHE_SIZE = 1024;
+	
+	private static final ThreadLocal<KeyFactory> mKeyFactories = new ThreadLocal<KeyFactory>() {
+		protected KeyFactory initialValue() {
+			try {
+				return KeyFactory.getInstance("RSA");
+			} catch( NoSuchAlgorithmException e ) {
+				e.printStackTrace();
+				return null;
+			}
+		}
+	};
+	
+	private static final Map<String, PublicKey> mKeys = new LinkedHashMap<String, PublicKey>(16, 0.75f, true) {
+		protected boolean removeEldestEntry( Map.Entry<String, PublicKey> eldest ) {
+			return size() > KEY_CACHE_SIZE;
+		}
+	};
+	
 	/**
-	 * Given an encoded public key (by Java, per the X509 spec), returns a PublicKey object
+	 * Given an encoded public key (by Java, per the X509 spec), returns a PublicKey object. Keys 
+	 * are decoded with a per-thread KeyFactory and recently decoded keys are reused. 
 	 * 
 	 * @param inBytes the encoded bytes
 	 * @return the public key
@@ -27,19 +49,24 @@ public class KeyManipulation
 	 */
 	public static PublicKey keyForEncodedBytes( byte [] inBytes ) throws InvalidKeySpecException 
 	{
-		X509EncodedKeySpec key_spec = new X509EncodedKeySpec(inBytes);
-		KeyFactory keyFactory = null;
-		try
-		{
-			keyFactory = KeyFactory.getInstance("RSA");
-		} 
-		catch( NoSuchAlgorithmException e )
+		String encoded = ByteFormatter.encodeString(inBytes);
+		synchronized( mKeys )
 		{
-			e.printStackTrace();
-			return null;
+			PublicKey cached = mKeys.get(encoded);
+			if( cached != null )
+				return cached;
 		}
 		
-		return keyFactory.generatePublic(key_spec);
+		KeyFactory keyFactory = mKeyFactories.get();
+		if( keyFactory == null )
+			return null;
+		
+		PublicKey key = keyFactory.generatePublic(new X509EncodedKeySpec(inBytes));
+		synchronized( mKeys )
+		{
+			mKeys.put(encoded, key);
+		}
+		return key;
 	}
 	
 	/**
@@ -145,6 +145,7 @@ import com.aelitis.azureus.core.peermanager.utils.PeerClassifier;
 import com.aelitis.azureus.core.peermanager.utils.PeerMessageLimiter;
 
 import edu.uw.cse.netlab.reputation.Computation;
+import edu.uw.cse.netlab.reputation.GloballyAwareOneHopUnchoker;
 import edu.uw.cse.netlab.reputation.LocalIdentity;
 import edu.uw.cse.netlab.reputation.ReceiptDispatcher;
 import edu.uw.cse.netlab.reputation.messages.Attestation;
@@ -2058,6 +2059,9 @@ public class PEPeerTransportProtocol extends LogRelation implements PEPeerTransp
 			}
 		}
 
+		// indirect reputation depends on these receipts
+		GloballyAwareOneHopUnchoker.get().reputation_changed(this);
+
 		// If we're here, we haven't yet sent this but now one hop negiotiation
 		// is fully complete
 		this.initPostConnection(mHandshake);
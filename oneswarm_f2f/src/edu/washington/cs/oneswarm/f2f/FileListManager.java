@@ -5,6 +5,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -18,6 +19,7 @@ import java.util.Timer;
 import java.util.TimerTask;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
@@ -45,6 +47,7 @@ import edu.washington.cs.oneswarm.f2f.multisource.Sha1HashManager;
 import edu.washington.cs.oneswarm.f2f.multisource.Sha1SourceFinder;
 import edu.washington.cs.oneswarm.f2f.network.OverlayManager;
 import edu.washington.cs.oneswarm.f2f.network.OverlayTransport;
+import edu.washington.cs.oneswarm.f2f.permissions.PermissionIndex;
 import edu.washington.cs.oneswarm.f2f.permissions.PermissionsDAO;
 
 public class FileListManager {
@@ -55,6 +58,7 @@ public class FileListManager {
     private static final int MAX_FILE_LIST_REFRESH_RATE = 5000;
     public static final int MAX_SEARCH_HITS = 30;
     private static final int MAX_SEND_FILE_LIST_RATE = 30 * 1000;
+    private static final int FULL_REFRESH_INTERVAL = 10 * 60 * 1000;
 
     private final ConcurrentHashMap<Long, byte[]> hashhashToInfoHashMapping = new ConcurrentHashMap<Long, byte[]>();
 
@@ -77,7 +81,27 @@ public class FileListManager {
     private volatile Timer updateRateLimiter = null;
     private long lastFileListRefreshMs = 0;
 
-    private final HashMap<DownloadManager, Boolean> includedInFileList = new HashMap<DownloadManager, Boolean>();
+    private final ConcurrentHashMap<DownloadManager, Boolean> includedInFileList = new ConcurrentHashMap<DownloadManager, Boolean>();
+
+    /*
+     * The own list is maintained incrementally: download events mark just
+     * that download as changed and the refresher updates its entry. Full
+     * rebuilds are only done when asked for from outside (permission
+     * changes etc.) and periodically in the background as a safety net.
+     * ownEntries is only touched from the refresher thread.
+     */
+    private Map<DownloadManager, OwnListEntry> ownEntries = new LinkedHashMap<DownloadManager, OwnListEntry>();
+    private final ConcurrentHashMap<DownloadManager, Boolean> changedDownloads = new ConcurrentHashMap<DownloadManager, Boolean>();
+    private volatile boolean fullRefreshNeeded = true;
+    private volatile long lastFullRefreshTime = 0;
+    private PermissionIndex lastRefreshPermissions = null;
+
+    /*
+     * bumped whenever the own list changes, the per friend lists are only
+     * regenerated when this or the permissions have changed
+     */
+    private final AtomicLong ownListVersion = new AtomicLong();
+    private final ConcurrentHashMap<Friend, FriendFileList> friendFileLists = new ConcurrentHashMap<Friend, FriendFileList>();
 
     private NegativeHitCache negativeHitCache = new NegativeHitCache();
 
@@ -97,9 +121,9 @@ public class FileListManager {
             private void checkIfRefreshNeeded(DownloadManager dm) {
                 boolean completedOrRunning = completedOrDownloading(dm);
                 if (completedOrRunning && !includedInFileList.containsKey(dm)) {
-                    scheduleFileListRefresh();
+                    scheduleDownloadRefresh(dm);
                 } else if (!completedOrRunning && includedInFileList.containsKey(dm)) {
-                    scheduleFileListRefresh();
+                    scheduleDownloadRefresh(dm);
                 }
             }
 
@@ -113,7 +137,7 @@ public class FileListManager {
 
             @Override
             public void downloadManagerAdded(final DownloadManager dm) {
-                scheduleFileListRefresh();
+                scheduleDownloadRefresh(dm);
 
                 dm.addListener(new DownloadManagerListener() {
                     @Override
@@ -179,7 +203,7 @@ public class FileListManager {
 
             @Override
             public void downloadManagerRemoved(DownloadManager dm) {
-                scheduleFileListRefresh();
+                scheduleDownloadRefresh(dm);
             }
 
             @Override
@@ -188,12 +212,16 @@ public class FileListManager {
         });
     }
 
-    private FileList generateFileListForFriend(FileList baseFileList, Friend f) {
+    private FileList generateFileListForFriend(FileList baseFileList, Friend f,
+            PermissionIndex permissions) {
         long time = System.currentTimeMillis();
         List<FileCollection> forFriend = new LinkedList<FileCollection>();
 
+        // resolve the friend once, each swarm is then just a bitset lookup
+        int friendId = permissions.getFriendID(f.getPublicKey());
+
         for (FileCollection c : baseFileList.getElements()) {
-            if (permissionsManager.hasPermissions(f.getPublicKey(), c.getUniqueIdBytes())) {
+            if (permissions.hasPermissions(friendId, c.getUniqueIdBytes())) {
                 forFriend.add(c);
             } else {
                 logger.fine("friend: " + f.getNick() + " has no access to file: " + c.getName());
@@ -204,12 +232,15 @@ public class FileListManager {
         return new FileList(forFriend);
     }
 
+    /**
+     * Full rebuild of the own lists from every download.
+     * 
+     * @return true if the list changed
+     */
     @SuppressWarnings({ "unchecked" })
-    private void generateOwnLists() {
+    private boolean generateOwnLists() {
         long time = System.currentTimeMillis();
-        includedInFileList.clear();
-        List<FileCollection> allFiles = new LinkedList<FileCollection>();
-        List<FileCollection> searchableFiles = new LinkedList<FileCollection>();
+        Map<DownloadManager, OwnListEntry> entries = new LinkedHashMap<DownloadManager, OwnListEntry>();
 
         logger.finest("Getting downloads list...");
 
@@ -217,202 +248,294 @@ public class FileListManager {
                 .getDownloadManagers();
         logger.finest("got it");
 
+        boolean changed = ownF2FFileList == null;
         for (DownloadManager download : downloads) {
-            try {
-                logger.finest("considering download: " + download.getDisplayName());
+            OwnListEntry entry = createOwnListEntry(download);
+            if (entry != null) {
+                entries.put(download, entry);
+                OwnListEntry existing = ownEntries.get(download);
+                if (existing == null || !existing.sameAs(entry)) {
+                    changed = true;
+                }
+            }
+        }
+        if (entries.size() != ownEntries.size()) {
+            changed = true;
+        }
 
-                TOTorrent t = download.getTorrent();
+        ownEntries = entries;
+        includedInFileList.clear();
+        for (DownloadManager download : entries.keySet()) {
+            includedInFileList.put(download, true);
+        }
 
-                if (t == null) {
-                    logger.warning("Null torrent for download: " + download.getDisplayName());
-                    continue;
-                }
+        long generateComplete = System.currentTimeMillis();
+        lastFileListRefreshMs = generateComplete - time;
+        logger.info("created own file list: num swarms=" + entries.size() + " time="
+                + lastFileListRefreshMs + " changed=" + changed);
 
-                boolean completedOrDownloading = completedOrDownloading(download);
-
-                /*
-                 * check if we marked this as a potential problem torrent
-                 */
-                if (completedOrDownloading) {
-                    if (download.getDownloadState().getBooleanAttribute(FILE_MISSING_CHECK_NEEDED)) {
-                        logger.finest("marked as potential problem torrent, checking if files exists: "
-                                + download.getDisplayName());
-                        if (download.filesExist()) {
-                            download.getDownloadState().setBooleanAttribute(
-                                    FILE_MISSING_CHECK_NEEDED, false);
-                        } else {
-                            logger.finest("files missing: " + download.getDisplayName());
-                            continue;
-                        }
-                    }
+        for (FileList friendsList : incomingFileLists.values()) {
+            addInfoHashHashes(friendsList);
+        }
+        logger.fine("added friends files to hashhash mapping, time="
+                + (System.currentTimeMillis() - generateComplete));
+
+        friendFileLists.clear();
+        if (changed) {
+            publishOwnLists();
+        }
+        return changed;
+    }
+
+    /**
+     * Updates the own lists for just the given downloads.
+     * 
+     * @return true if the list changed
+     */
+    private boolean updateOwnLists(Collection<DownloadManager> downloads) {
+        long time = System.currentTimeMillis();
+        boolean changed = false;
+        for (DownloadManager download : downloads) {
+            OwnListEntry entry = isManaged(download) ? createOwnListEntry(download) : null;
+            OwnListEntry existing = ownEntries.get(download);
+            if (entry == null) {
+                if (existing != null) {
+                    ownEntries.remove(download);
+                    includedInFileList.remove(download);
+                    changed = true;
                 }
+            } else if (existing == null || !existing.sameAs(entry)) {
+                ownEntries.put(download, entry);
+                includedInFileList.put(download, true);
+                changed = true;
+            }
+        }
+        logger.fine("updated own file list for " + downloads.size() + " downloads, changed="
+                + changed + " time=" + (System.currentTimeMillis() - time));
 
-                boolean autoAdded = download.getDownloadState().getBooleanAttribute(
-                        Sha1SourceFinder.ONESWARM_AUTO_ADDED);
-                // it is "allowed" if the f2f network and peer source is enabled
-                logger.finest("getting networks and sources");
+        if (changed) {
+            publishOwnLists();
+        }
+        return changed;
+    }
 
-                String[] networks = download.getDownloadState().getNetworks();
-                String[] peerSources = download.getDownloadState().getPeerSources();
-                logger.finest("done");
-                boolean allowed = OverlayTransport.checkOSF2FAllowed(peerSources, networks);
-                if (allowed) {
-
-                    DiskManagerFileInfo[] files = download.getDiskManagerFileInfo();
-
-                    String[] sha1List = null;
-                    String[] ed2kList = null;
-                    String hashesAdded = download.getDownloadState().getAttribute(
-                            Sha1HashManager.OS_HASHES_ADDED);
-                    if (hashesAdded != null
-                            && (hashesAdded.equals(Sha1HashManager.OS_HASHES_TYPE_LOCAL) || hashesAdded
-                                    .equals(Sha1HashManager.OS_HASHES_TYPE_TORRENT))) {
-                        sha1List = download.getDownloadState().getListAttribute(
-                                TOTorrentImpl.OS_SHA1);
-                        ed2kList = download.getDownloadState().getListAttribute(
-                                TOTorrentImpl.OS_ED2K);
+    /**
+     * @return false if the download has been removed
+     */
+    private static boolean isManaged(DownloadManager download) {
+        try {
+            TOTorrent t = download.getTorrent();
+            return t != null
+                    && AzureusCoreImpl.getSingleton().getGlobalManager()
+                            .getDownloadManager(new HashWrapper(t.getHash())) == download;
+        } catch (TOTorrentException e) {
+            return false;
+        }
+    }
+
+    private void publishOwnLists() {
+        List<FileCollection> allFiles = new LinkedList<FileCollection>();
+        List<FileCollection> searchableFiles = new LinkedList<FileCollection>();
+        for (OwnListEntry entry : ownEntries.values()) {
+            allFiles.add(entry.collection);
+            if (entry.searchable) {
+                searchableFiles.add(entry.collection);
+            }
+        }
+
+        ownF2FFileList = new FileList(allFiles);
+        searchableFileList = new FileList(searchableFiles);
+        negativeHitCache = new NegativeHitCache();
+
+        // after the lists, readers get the version first
+        ownListVersion.incrementAndGet();
+    }
+
+    /**
+     * @return the entry for the download if it should be in the own list,
+     *         null otherwise
+     */
+    private OwnListEntry createOwnListEntry(DownloadManager download) {
+        try {
+            logger.finest("considering download: " + download.getDisplayName());
+
+            TOTorrent t = download.getTorrent();
+
+            if (t == null) {
+                logger.warning("Null torrent for download: " + download.getDisplayName());
+                return null;
+            }
+
+            boolean completedOrDownloading = completedOrDownloading(download);
+
+            /*
+             * check if we marked this as a potential problem torrent
+             */
+            if (completedOrDownloading) {
+                if (download.getDownloadState().getBooleanAttribute(FILE_MISSING_CHECK_NEEDED)) {
+                    logger.finest("marked as potential problem torrent, checking if files exists: "
+                            + download.getDisplayName());
+                    if (download.filesExist()) {
+                        download.getDownloadState().setBooleanAttribute(
+                                FILE_MISSING_CHECK_NEEDED, false);
+                    } else {
+                        logger.finest("files missing: " + download.getDisplayName());
+                        return null;
                     }
-                    ArrayList<FileListFile> subListSearchable = new ArrayList<FileListFile>();
-
-                    for (int i = 0; i < files.length; i++) {
-                        DiskManagerFileInfo torrentFile = files[i];
-                        FileListFile f = new FileListFile(torrentFile.getTorrentFile()
-                                .getRelativePath(), torrentFile.getLength());
-                        /*
-                         * skipped files are not searchable or sent to friends
-                         * 
-                         * don't add files unless they are completed or
-                         * downloading
-                         */
-                        boolean includeFile = false;
-                        if (!torrentFile.isSkipped()) {
-                            if (completedOrDownloading) {
+                }
+            }
+
+            boolean autoAdded = download.getDownloadState().getBooleanAttribute(
+                    Sha1SourceFinder.ONESWARM_AUTO_ADDED);
+            // it is "allowed" if the f2f network and peer source is enabled
+            logger.finest("getting networks and sources");
+
+            String[] networks = download.getDownloadState().getNetworks();
+            String[] peerSources = download.getDownloadState().getPeerSources();
+            logger.finest("done");
+            boolean allowed = OverlayTransport.checkOSF2FAllowed(peerSources, networks);
+            if (allowed) {
+
+                DiskManagerFileInfo[] files = download.getDiskManagerFileInfo();
+
+                String[] sha1List = null;
+                String[] ed2kList = null;
+                String hashesAdded = download.getDownloadState().getAttribute(
+                        Sha1HashManager.OS_HASHES_ADDED);
+                if (hashesAdded != null
+                        && (hashesAdded.equals(Sha1HashManager.OS_HASHES_TYPE_LOCAL) || hashesAdded
+                                .equals(Sha1HashManager.OS_HASHES_TYPE_TORRENT))) {
+                    sha1List = download.getDownloadState().getListAttribute(
+                            TOTorrentImpl.OS_SHA1);
+                    ed2kList = download.getDownloadState().getListAttribute(
+                            TOTorrentImpl.OS_ED2K);
+                }
+                ArrayList<FileListFile> subListSearchable = new ArrayList<FileListFile>();
+
+                for (int i = 0; i < files.length; i++) {
+                    DiskManagerFileInfo torrentFile = files[i];
+                    FileListFile f = new FileListFile(torrentFile.getTorrentFile()
+                            .getRelativePath(), torrentFile.getLength());
+                    /*
+                     * skipped files are not searchable or sent to friends
+                     * 
+                     * don't add files unless they are completed or
+                     * downloading
+                     */
+                    boolean includeFile = false;
+                    if (!torrentFile.isSkipped()) {
+                        if (completedOrDownloading) {
+                            includeFile = true;
+                        } else {
+                            if (torrentFile.getDownloaded() == torrentFile.getLength()) {
                                 includeFile = true;
-                            } else {
-                                if (torrentFile.getDownloaded() == torrentFile.getLength()) {
-                                    includeFile = true;
-                                }
                             }
                         }
-                        if (includeFile) {
-                            subListSearchable.add(f);
-                        }
-
-                        /*
-                         * add sha1 for sha1 search matching, slightly different
-                         * if simple of non simple torrent
-                         */
-                        if (sha1List != null && sha1List.length > i) {
-                            f.setSha1Hash(Base64.decode(sha1List[i]));
-                        }
-                        if (ed2kList != null && ed2kList.length > i) {
-                            f.setEd2kHash(Base64.decode(ed2kList[i]));
-                        }
-
-                        // end sha1 + ed2k hashes
                     }
-
-                    if (subListSearchable.size() == 0) {
-                        logger.finest("no files completed or downloaded in torrent, skipping");
-                        continue;
+                    if (includeFile) {
+                        subListSearchable.add(f);
                     }
 
-                    byte[] infohash = t.getHash();
-
-                    String name = download.getDisplayName();
-                    final byte[] co = t.getComment();
-                    String comment = "";
-                    if (co != null) {
-                        comment = new String(co);
-                    }
-                    Category c = download.getDownloadState().getCategory();
-                    String category = "";
-                    if (c != null) {
-                        category = new String(category.getBytes());
+                    /*
+                     * add sha1 for sha1 search matching, slightly different
+                     * if simple of non simple torrent
+                     */
+                    if (sha1List != null && sha1List.length > i) {
+                        f.setSha1Hash(Base64.decode(sha1List[i]));
                     }
-                    String uniqueID = new String(Base64.encode(infohash));
-                    // System.out.println(uniqueID);
-                    logger.finest("creating FileCollection...");
-
-                    FileCollection allFilesCollection = new FileCollection(
-                            FileCollection.TYPE_BITTORRENT, uniqueID, name, comment, category,
-                            subListSearchable, download.getCreationTime());
-
-                    DownloadManager real_dl = AzureusCoreImpl.getSingleton().getGlobalManager()
-                            .getDownloadManager(new HashWrapper(t.getHash()));
-                    if (real_dl == null) {
-                        continue;
+                    if (ed2kList != null && ed2kList.length > i) {
+                        f.setEd2kHash(Base64.decode(ed2kList[i]));
                     }
 
-                    if (real_dl.getDownloadState() != null) {
-                        Object album = real_dl.getDownloadState().getAttribute(
-                                FileCollection.ONESWARM_ALBUM_ATTRIBUTE);
-                        if (album != null) {
-                            if (album instanceof String) {
-                                allFilesCollection.setOptionalField(
-                                        FileCollection.ONESWARM_ALBUM_ATTRIBUTE, (String) album);
-                                logger.finest("album info found, setting album to: " + album);
-                            }
-                        }
-                        Object artist = real_dl.getDownloadState().getAttribute(
-                                FileCollection.ONESWARM_ARTIST_ATTRIBUTE);
-                        if (artist != null) {
-                            if (artist instanceof String) {
-                                allFilesCollection.setOptionalField(
-                                        FileCollection.ONESWARM_ARTIST_ATTRIBUTE, (String) artist);
-                                logger.finest("artist info found, setting artist to: " + artist);
-                            }
-                        }
+                    // end sha1 + ed2k hashes
+                }
+
+                if (subListSearchable.size() == 0) {
+                    logger.finest("no files completed or downloaded in torrent, skipping");
+                    return null;
+                }
 
-                        List<List<String>> tags = new LinkedList<List<String>>();
-                        for (String tagpath : real_dl.getDownloadState().getListAttribute(
-                                FileCollection.ONESWARM_TAGS_ATTRIBUTE)) {
-                            tags.add(Arrays.asList(tagpath.split("/")));
+                byte[] infohash = t.getHash();
+
+                String name = download.getDisplayName();
+                final byte[] co = t.getComment();
+                String comment = "";
+                if (co != null) {
+                    comment = new String(co);
+                }
+                Category c = download.getDownloadState().getCategory();
+                String category = "";
+                if (c != null) {
+                    category = new String(category.getBytes());
+                }
+                String uniqueID = new String(Base64.encode(infohash));
+                // System.out.println(uniqueID);
+                logger.finest("creating FileCollection...");
+
+                FileCollection allFilesCollection = new FileCollection(
+                        FileCollection.TYPE_BITTORRENT, uniqueID, name, comment, category,
+                        subListSearchable, download.getCreationTime());
+
+                DownloadManager real_dl = AzureusCoreImpl.getSingleton().getGlobalManager()
+                        .getDownloadManager(new HashWrapper(t.getHash()));
+                if (real_dl == null) {
+                    return null;
+                }
+
+                if (real_dl.getDownloadState() != null) {
+                    Object album = real_dl.getDownloadState().getAttribute(
+                            FileCollection.ONESWARM_ALBUM_ATTRIBUTE);
+                    if (album != null) {
+                        if (album instanceof String) {
+                            allFilesCollection.setOptionalField(
+                                    FileCollection.ONESWARM_ALBUM_ATTRIBUTE, (String) album);
+                            logger.finest("album info found, setting album to: " + album);
                         }
-                        allFilesCollection.setDirectoryTags(tags);
-                        logger.finest("added " + tags.size() + " tags to "
-                                + allFilesCollection.getName());
                     }
-                    if (!autoAdded) {
-                        allFiles.add(allFilesCollection);
+                    Object artist = real_dl.getDownloadState().getAttribute(
+                            FileCollection.ONESWARM_ARTIST_ATTRIBUTE);
+                    if (artist != null) {
+                        if (artist instanceof String) {
+                            allFilesCollection.setOptionalField(
+                                    FileCollection.ONESWARM_ARTIST_ATTRIBUTE, (String) artist);
+                            logger.finest("artist info found, setting artist to: " + artist);
+                        }
                     }
-                    logger.finest("done");
 
-                    if (permissionsManager.hasAllFriendsPermission(infohash) && !autoAdded) {
-                        searchableFiles.add(allFilesCollection);
-                        logger.finest("adding to searchable files: " + download.getDisplayName());
-                    }
-                    // add to the hash map so we can find the metainfohash of a
-                    // metainfohashhash
-
-                    long key = getInfoHashhash(infohash);
-                    hashhashToInfoHashMapping.put(key, infohash);
-                    hashhashToTorrentName.put(key, download.getDisplayName());
-                    if (!autoAdded) {
-                        includedInFileList.put(download, true);
+                    List<List<String>> tags = new LinkedList<List<String>>();
+                    for (String tagpath : real_dl.getDownloadState().getListAttribute(
+                            FileCollection.ONESWARM_TAGS_ATTRIBUTE)) {
+                        tags.add(Arrays.asList(tagpath.split("/")));
                     }
-                } else {
-                    logger.finest("Not allowed: " + download.getDisplayName());
+                    allFilesCollection.setDirectoryTags(tags);
+                    logger.finest("added " + tags.size() + " tags to "
+                            + allFilesCollection.getName());
                 }
-            } catch (TOTorrentException e1) {
-                // TODO Auto-generated catch block
-                e1.printStackTrace();
-            }
-        }
+                logger.finest("done");
 
-        long generateComplete = System.currentTimeMillis();
-        lastFileListRefreshMs = generateComplete - time;
-        logger.info("created own file list: num swarms=" + allFiles.size() + " time="
-                + lastFileListRefreshMs);
+                // add to the hash map so we can find the metainfohash of a
+                // metainfohashhash
 
-        for (FileList friendsList : incomingFileLists.values()) {
-            addInfoHashHashes(friendsList);
+                long key = getInfoHashhash(infohash);
+                hashhashToInfoHashMapping.put(key, infohash);
+                hashhashToTorrentName.put(key, download.getDisplayName());
+                if (autoAdded) {
+                    return null;
+                }
+
+                boolean searchable = permissionsManager.hasAllFriendsPermission(infohash);
+                if (searchable) {
+                    logger.finest("adding to searchable files: " + download.getDisplayName());
+                }
+                return new OwnListEntry(allFilesCollection, searchable);
+            } else {
+                logger.finest("Not allowed: " + download.getDisplayName());
+            }
+        } catch (TOTorrentException e1) {
+            // TODO Auto-generated catch block
+            e1.printStackTrace();
         }
-        logger.fine("added friends files to hashhash mapping, time="
-                + (System.currentTimeMillis() - generateComplete));
-        ownF2FFileList = new FileList(allFiles);
-        searchableFileList = new FileList(searchableFiles);
-        negativeHitCache = new NegativeHitCache();
+        return null;
     }
 
     public FileList getFileListToSendToFriend(Friend f) {
@@ -428,7 +551,19 @@ public class FileListManager {
             Debug.out("Tried to send file list to friend, but our file list is null");
             return (new FileList());
         } else {
-            return (generateFileListForFriend(ownF2FFileList, f));
+            // version before the list, see publishOwnLists()
+            long version = ownListVersion.get();
+            FileList own = ownF2FFileList;
+            PermissionIndex permissions = permissionsManager.getPermissionIndex();
+
+            FriendFileList cached = friendFileLists.get(f);
+            if (cached != null && cached.version == version && cached.permissions == permissions) {
+                return cached.list;
+            }
+
+            FileList list = generateFileListForFriend(own, f, permissions);
+            friendFileLists.put(f, new FriendFileList(version, permissions, list));
+            return list;
         }
     }
 
@@ -621,6 +756,15 @@ public class FileListManager {
         return receivedFriendFileList(f, type, friendsList);
     }
 
+    /**
+     * For lists that arrived in chunks, decodes straight from the chunks
+     * without joining them into one array first.
+     */
+    public List<byte[]> receivedFriendFileList(Friend f, int type, InputStream data,
+            boolean use_extended_filelists) throws IOException {
+        return receivedFriendFileList(f, type, decode(data, use_extended_filelists));
+    }
+
     public List<byte[]> receivedFriendFileList(Friend f, int type, FileList friendsList) {
         incomingFileLists.put(f, friendsList);
         return addInfoHashHashes(friendsList);
@@ -654,14 +798,38 @@ public class FileListManager {
         long t = System.currentTimeMillis();
         boolean releaseFileListLock = ownF2FFileList == null;
 
-        logger.finer("Refreshing own lists...");
-        generateOwnLists();
+        boolean changed;
+        if (fullRefreshNeeded || releaseFileListLock
+                || t - lastFullRefreshTime > FULL_REFRESH_INTERVAL) {
+            logger.finer("Refreshing own lists...");
+            fullRefreshNeeded = false;
+            changedDownloads.clear();
+            changed = generateOwnLists();
+            lastFullRefreshTime = System.currentTimeMillis();
+        } else {
+            List<DownloadManager> downloads = new ArrayList<DownloadManager>();
+            for (DownloadManager dm : changedDownloads.keySet()) {
+                changedDownloads.remove(dm);
+                downloads.add(dm);
+            }
+            logger.finer("Updating own lists for " + downloads.size() + " downloads...");
+            changed = updateOwnLists(downloads);
+        }
         logger.fine("Refreshing file list took " + (System.currentTimeMillis() - t) + " ms");
 
         if (releaseFileListLock) {
             initialFileListSemaphore.release();
         }
 
+        // friends' views can change through permissions even if our list
+        // didn't
+        PermissionIndex permissions = permissionsManager.getPermissionIndex();
+        if (!changed && permissions == lastRefreshPermissions) {
+            logger.fine("File list unchanged, not sending to friends");
+            return;
+        }
+        lastRefreshPermissions = permissions;
+
         // check if the overlayManager is available
         final OverlayManager overlayManager = OSF2FMain.getSingelton().getOverlayManager();
         if (overlayManager == null) {
@@ -702,6 +870,13 @@ public class FileListManager {
     public void scheduleFileListRefresh() {
 
         logger.fine("Scheduling file list refresh");
+        fullRefreshNeeded = true;
+        refreshRateLimiter.schedule();
+    }
+
+    private void scheduleDownloadRefresh(DownloadManager dm) {
+        logger.fine("Scheduling file list update for " + dm.getDisplayName());
+        changedDownloads.put(dm, true);
         refreshRateLimiter.schedule();
     }
 
@@ -756,10 +931,17 @@ public class FileListManager {
         if (data == null || data.length < 1) {
             return new FileList();
         }
+        return decode(new ByteArrayInputStream(data), include_extended_info);
+    }
+
+    static FileList decode(InputStream bin, boolean include_extended_info) throws IOException {
         long time = System.currentTimeMillis();
-        boolean gzip = data[0] == 1;
+        int flags = bin.read();
+        if (flags == -1) {
+            return new FileList();
+        }
+        boolean gzip = flags == 1;
         try {
-            ByteArrayInputStream bin = new ByteArrayInputStream(data, 1, data.length - 1);
             DataInputStream in;
             if (gzip) {
                 in = new DataInputStream(new GZIPInputStream(bin));
@@ -1088,6 +1270,11 @@ public class FileListManager {
         public void run() {
             try {
                 while (true) {
+                    if (!doRefresh
+                            && System.currentTimeMillis() - lastFullRefreshTime > FULL_REFRESH_INTERVAL) {
+                        logger.finer("periodic full file list refresh");
+                        doRefresh = true;
+                    }
                     if (doRefresh) {
                         if (!delayDueToRateLimit()) {
                             logger.finer("refresh rate limiter triggered");
@@ -1117,6 +1304,66 @@ public class FileListManager {
         return ownF2FFileList != null;
     }
 
+    private static class OwnListEntry {
+        final FileCollection collection;
+        final boolean searchable;
+
+        OwnListEntry(FileCollection collection, boolean searchable) {
+            this.collection = collection;
+            this.searchable = searchable;
+        }
+
+        /**
+         * True if the two would serialize and search identically: every field written by
+         * writeCollection plus the hashes, category and metadata that searches match against.
+         */
+        boolean sameAs(OwnListEntry other) {
+            FileCollection c = other.collection;
+            if (searchable != other.searchable || collection.hashCode() != c.hashCode()
+                    || collection.getType() != c.getType()
+                    || !equal(collection.getUniqueID(), c.getUniqueID())
+                    || !equal(collection.getName(), c.getName())
+                    || !equal(collection.getDescription(), c.getDescription())
+                    || !equal(collection.getCategory(), c.getCategory())
+                    || collection.getAddedTimeUTC() != c.getAddedTimeUTC()
+                    || !equal(collection.getOptionalFields(), c.getOptionalFields())
+                    || !equal(collection.getDirectoryTags(), c.getDirectoryTags())) {
+                return false;
+            }
+            List<FileListFile> files = collection.getChildren();
+            List<FileListFile> otherFiles = c.getChildren();
+            if (files.size() != otherFiles.size()) {
+                return false;
+            }
+            for (int i = 0; i < files.size(); i++) {
+                FileListFile f = files.get(i);
+                FileListFile o = otherFiles.get(i);
+                if (!f.equals(o) || f.getLength() != o.getLength()
+                        || !Arrays.equals(f.getSha1Hash(), o.getSha1Hash())
+                        || !Arrays.equals(f.getEd2kHash(), o.getEd2kHash())) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static boolean equal(Object a, Object b) {
+            return a == null ? b == null : a.equals(b);
+        }
+    }
+
+    private static class FriendFileList {
+        final long version;
+        final PermissionIndex permissions;
+        final FileList list;
+
+        FriendFileList(long version, PermissionIndex permissions, FileList list) {
+            this.version = version;
+            this.permissions = permissions;
+            this.list = list;
+        }
+    }
+
     private class NegativeHitCache extends LinkedHashMap<String, Boolean> {
         public final static int MAX_SIZE = 500;
         private static final long serialVersionUID = 1L;
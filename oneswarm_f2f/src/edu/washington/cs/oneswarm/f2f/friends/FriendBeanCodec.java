@@ -0,0 +1,71 @@
+package edu.washington.cs.oneswarm.f2f.friends;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import edu.washington.cs.oneswarm.f2f.storage.BinaryRecordStore;
+
+/**
+ * Binary form of a FriendBean for the friend store. Bump VERSION when adding fields and read
+ * older versions with the old layout.
+ */
+public class FriendBeanCodec implements BinaryRecordStore.RecordCodec<FriendBean> {
+    public static final int VERSION = 1;
+
+    private static final int BLOCKED = 1;
+    private static final int CAN_SEE_FILE_LIST = 1 << 1;
+    private static final int REQUEST_FILE_LIST = 1 << 2;
+    private static final int ALLOW_CHAT = 1 << 3;
+    private static final int NEW_FRIEND = 1 << 4;
+    private static final int DHT_LOCATION_CONFIRMED = 1 << 5;
+
+    public void write(FriendBean bean, DataOutputStream out) throws IOException {
+        int flags = 0;
+        flags |= bean.isBlocked() ? BLOCKED : 0;
+        flags |= bean.isCanSeeFileList() ? CAN_SEE_FILE_LIST : 0;
+        flags |= bean.isRequestFileList() ? REQUEST_FILE_LIST : 0;
+        flags |= bean.isAllowChat() ? ALLOW_CHAT : 0;
+        flags |= bean.isNewFriend() ? NEW_FRIEND : 0;
+        flags |= bean.isDhtLocationConfirmed() ? DHT_LOCATION_CONFIRMED : 0;
+        out.writeByte(flags);
+
+        BinaryRecordStore.writeString(out, bean.getPublicKey());
+        BinaryRecordStore.writeString(out, bean.getNick());
+        BinaryRecordStore.writeString(out, bean.getGroup());
+        BinaryRecordStore.writeString(out, bean.getSourceNetwork());
+        out.writeLong(bean.getDateAdded());
+        out.writeLong(bean.getLastConnectDate());
+        BinaryRecordStore.writeString(out, bean.getLastConnectIP());
+        out.writeInt(bean.getLastConnectPort());
+        out.writeLong(bean.getTotalDownloaded());
+        out.writeLong(bean.getTotalUploaded());
+        BinaryRecordStore.writeString(out, bean.getDhtReadLocation());
+        BinaryRecordStore.writeString(out, bean.getDhtWriteLocation());
+    }
+
+    public FriendBean read(DataInputStream in, int version) throws IOException {
+        FriendBean bean = new FriendBean();
+        int flags = in.readUnsignedByte();
+        bean.setBlocked((flags & BLOCKED) != 0);
+        bean.setCanSeeFileList((flags & CAN_SEE_FILE_LIST) != 0);
+        bean.setRequestFileList((flags & REQUEST_FILE_LIST) != 0);
+        bean.setAllowChat((flags & ALLOW_CHAT) != 0);
+        bean.setNewFriend((flags & NEW_FRIEND) != 0);
+        bean.setDhtLocationConfirmed((flags & DHT_LOCATION_CONFIRMED) != 0);
+
+        bean.setPublicKey(BinaryRecordStore.readString(in));
+        bean.setNick(BinaryRecordStore.readString(in));
+        bean.setGroup(BinaryRecordStore.readString(in));
+        bean.setSourceNetwork(BinaryRecordStore.readString(in));
+        bean.setDateAdded(in.readLong());
+        bean.setLastConnectDate(in.readLong());
+        bean.setLastConnectIP(BinaryRecordStore.readString(in));
+        bean.setLastConnectPort(in.readInt());
+        bean.setTotalDownloaded(in.readLong());
+        bean.setTotalUploaded(in.readLong());
+        bean.setDhtReadLocation(BinaryRecordStore.readString(in));
+        bean.setDhtWriteLocation(BinaryRecordStore.readString(in));
+        return bean;
+    }
+}
@@ -1,6 +1,7 @@
 package edu.washington.cs.oneswarm.f2f.friends;
 
 import java.io.File;
+import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.Arrays;
@@ -21,6 +22,8 @@ import java.util.logging.Logger;
 
 import org.bouncycastle.util.encoders.Base64;
 import org.gudy.azureus2.core3.config.COConfigurationManager;
+import org.gudy.azureus2.core3.util.AERunnable;
+import org.gudy.azureus2.core3.util.AsyncDispatcher;
 import org.gudy.azureus2.core3.util.Debug;
 import org.gudy.azureus2.core3.util.SystemProperties;
 
@@ -34,9 +37,9 @@ import edu.washington.cs.oneswarm.f2f.Friend;
 import edu.washington.cs.oneswarm.f2f.OSF2FMain;
 import edu.washington.cs.oneswarm.f2f.dht.DHTConnector;
 import edu.washington.cs.oneswarm.f2f.permissions.PermissionsDAO;
+import edu.washington.cs.oneswarm.f2f.storage.BinaryRecordStore;
 import edu.washington.cs.oneswarm.f2f.xml.OSF2FXMLBeanReader;
 import edu.washington.cs.oneswarm.f2f.xml.OSF2FXMLBeanReader.OSF2FXMLBeanReaderCallback;
-import edu.washington.cs.oneswarm.f2f.xml.OSF2FXMLBeanWriter;
 import edu.washington.cs.publickey.PublicKeyFriend;
 
 public class FriendManager {
@@ -54,6 +57,14 @@ public class FriendManager {
 
     private final Semaphore diskSemaphore = new Semaphore(1);
 
+    /*
+     * osf2f.friends.bin/.log, the XML file is only read to migrate from and
+     * is left in place
+     */
+    private final BinaryRecordStore<FriendBean> friendStore = new BinaryRecordStore<FriendBean>(
+            OSF2F_DIR, OSF2F_FRIEND_FILE, FriendBeanCodec.VERSION, new FriendBeanCodec());
+    private final AsyncDispatcher diskDispatcher = new AsyncDispatcher();
+
     private final FriendImportManager friendImportManager;
 
     private final ConcurrentHashMap<FriendKey, Friend> friends;
@@ -263,28 +274,51 @@ public class FriendManager {
             diskSemaphore.release();
         }
 
-        FriendBean[] b = new FriendBean[friends.size()];
-        Friend[] f = friends.values().toArray(new Friend[friends.size()]);
-
-        for (int i = 0; i < b.length; i++) {
-            b[i] = new FriendBean(f[i]);
+        final Map<String, FriendBean> beans = new HashMap<String, FriendBean>();
+        for (Friend f : friends.values()) {
+            FriendBean b = new FriendBean(f);
+            beans.put(b.getPublicKey(), b);
         }
 
-        Thread t = new Thread(new OSF2FXMLBeanWriter<FriendBean>(b, diskSemaphore,
-                OSF2F_FRIEND_FILE, makeBackup, allowDecreasedSize));
-        t.setName("OSF2FXMLBeanWriter flushToDisk()");
-        t.setContextClassLoader(cl);
-
-        t.start();
         if (block) {
-            try {
-                t.join();
-            } catch (InterruptedException e) {
-                // TODO Auto-generated catch block
-                e.printStackTrace();
+            writeToDisk(beans, makeBackup, allowDecreasedSize);
+        } else {
+            diskDispatcher.dispatch(new AERunnable() {
+                @Override
+                public void runSupport() {
+                    writeToDisk(beans, makeBackup, allowDecreasedSize);
+                }
+            });
+        }
+    }
+
+    /**
+     * Only friends that changed since the last write are appended to the
+     * store's log, the periodic flush of unchanged friends writes nothing.
+     * makeBackup compacts into a new snapshot, keeping the previous one.
+     */
+    private void writeToDisk(Map<String, FriendBean> beans, boolean makeBackup,
+            boolean allowDecreasedSize) {
+        if (System.getProperty("oneswarm.experimental.config.file") != null) {
+            allowDecreasedSize = true;
+        }
+        try {
+            diskSemaphore.acquire();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            return;
+        }
+        try {
+            if (!OSF2F_DIR.isDirectory() && !OSF2F_DIR.mkdirs()) {
+                Debug.out("failed to create dir: " + OSF2F_DIR.getAbsolutePath());
             }
+            int changed = friendStore.sync(beans, allowDecreasedSize, makeBackup);
+            logger.finest("wrote " + changed + " of " + beans.size() + " friends to disk");
+        } catch (IOException e) {
+            Debug.out("unable to write friend file to disk", e);
+        } finally {
+            diskSemaphore.release();
         }
-        logger.finest("wrote " + b.length + " friends to disk");
     }
 
     public Map<byte[], String> getDeniedIncomingConnections() {
@@ -427,6 +461,31 @@ public class FriendManager {
             // TODO Auto-generated catch block
             e.printStackTrace();
         }
+
+        if (friendStore.exists()) {
+            try {
+                for (FriendBean bean : friendStore.load().values()) {
+                    Friend friend = getFriend(bean);
+                    if (friend != null) {
+                        friends.put(new FriendKey(friend.getPublicKey()), friend);
+                    }
+                }
+                diskSemaphore.release();
+                logger.finer("read " + friends.size() + " friends from "
+                        + friendStore.getSnapshotFile());
+                handleFileListRequestInitial();
+                return;
+            } catch (IOException e) {
+                // the store already fell back to its backup, neither copy was readable. They
+                // are moved aside rather than overwritten when the XML friends are migrated
+                Debug.out("unable to read " + friendStore.getSnapshotFile()
+                        + " or its backup, trying " + OSF2F_FRIEND_FILE, e);
+                friends.clear();
+            }
+        }
+
+        // no binary store yet, read the XML file and migrate it below. The
+        // reader releases the semaphore
         OSF2FXMLBeanReader<FriendBean> reader = new OSF2FXMLBeanReader<FriendBean>(cl,
                 FriendBean.class, OSF2F_FRIEND_FILE, diskSemaphore,
                 new OSF2FXMLBeanReaderCallback<FriendBean>() {
@@ -439,28 +498,9 @@ public class FriendManager {
 
                     @Override
                     public void completed() {
-                        // update community server friends to not request file
-                        // list, can
-                        // be removed in 2010...
-                        logger.finest("checking for initial file list requests settings");
                         handleFileListRequestInitial();
                         logger.finer("friend read completed");
                     }
-
-                    private void handleFileListRequestInitial() {
-                        String param = "osf2f_friend_file_list_request_initial";
-                        if (!COConfigurationManager.hasParameter(param, true)) {
-                            for (Friend f : friends.values()) {
-                                // default to limited=don't request the file
-                                // list
-                                f.setRequestFileList(f.isCanSeeFileList());
-                            }
-                            logger.finest("updated friends, saving...");
-                            flushToDisk(true, true, false);
-                            COConfigurationManager.setParameter(param, new Boolean(true));
-                        }
-
-                    }
                 });
         // Thread t = new Thread(reader);
         // t.setDaemon(true);
@@ -473,6 +513,30 @@ public class FriendManager {
             e.printStackTrace();
         }
         logger.finer("reading friend file from disk, completed");
+
+        // nothing read could also be a corrupt XML file, leave it to be tried
+        // again until there is something to write
+        if (friends.size() > 0) {
+            logger.fine("migrating " + friends.size() + " friends to "
+                    + friendStore.getSnapshotFile());
+            flushToDisk(false, true, true);
+        }
+    }
+
+    private void handleFileListRequestInitial() {
+        // update community server friends to not request file list, can be
+        // removed in 2010...
+        logger.finest("checking for initial file list requests settings");
+        String param = "osf2f_friend_file_list_request_initial";
+        if (!COConfigurationManager.hasParameter(param, true)) {
+            for (Friend f : friends.values()) {
+                // default to limited=don't request the file list
+                f.setRequestFileList(f.isCanSeeFileList());
+            }
+            logger.finest("updated friends, saving...");
+            flushToDisk(true, true, false);
+            COConfigurationManager.setParameter(param, new Boolean(true));
+        }
     }
 
     private void registerShutdownHook() {
@@ -14,22 +14,38 @@ public class OSF2FChannelDataMsg extends OSF2FChannelMsg {
     private String description = null;
     private final byte version;
     private final int channelID;
-    private final DirectByteBuffer[] buffer = new DirectByteBuffer[2];
+    private final DirectByteBuffer[] buffer;
     private int messageLength;
 
     public OSF2FChannelDataMsg(byte _version, int channelID, DirectByteBuffer data) {
         super(channelID);
         this.version = _version;
         this.channelID = channelID;
+        this.buffer = new DirectByteBuffer[2];
         this.buffer[1] = data;
         updateMessageLength();
     }
 
+    /**
+     * Creates a message whose payload is the concatenation of data, used to
+     * send without copying. getPayload() only returns the first part of such
+     * a message.
+     */
+    public OSF2FChannelDataMsg(byte _version, int channelID, DirectByteBuffer[] data) {
+        super(channelID);
+        this.version = _version;
+        this.channelID = channelID;
+        this.buffer = new DirectByteBuffer[data.length + 1];
+        System.arraycopy(data, 0, buffer, 1, data.length);
+        updateMessageLength();
+    }
+
     private void updateMessageLength() {
-        if (buffer[1] != null) {
-            messageLength = BASE_LENGTH + buffer[1].remaining(DirectByteBuffer.SS_MSG);
-        } else {
-            messageLength = BASE_LENGTH;
+        messageLength = BASE_LENGTH;
+        for (int i = 1; i < buffer.length; i++) {
+            if (buffer[i] != null) {
+                messageLength += buffer[i].remaining(DirectByteBuffer.SS_MSG);
+            }
         }
     }
 
@@ -89,9 +105,7 @@ public class OSF2FChannelDataMsg extends OSF2FChannelMsg {
     public String getDescription() {
         if (description == null) {
             description = OSF2FMessage.ID_OS_CHANNEL_DATA_MSG + "\tchannel=" + channelID
-                    + "\tbytes=";
-            if (buffer[1] != null)
-                description += buffer[1].remaining(DirectByteBuffer.SS_MSG);
+                    + "\tbytes=" + (messageLength - BASE_LENGTH);
         }
 
         return description;
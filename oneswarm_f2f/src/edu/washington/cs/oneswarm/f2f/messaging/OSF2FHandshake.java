@@ -24,6 +24,7 @@ public class OSF2FHandshake implements OSF2FMessage, RawMessage {
     public static final byte SUPPORTS_CHAT = 2;
     public static final byte SUPPORTS_DHT_LOCATION_HS = 4;
     public static final byte SUPPORTS_UDP = 8;
+    public static final byte SUPPORTS_CHUNKED_FILE_LISTS = 16;
     /**
      * Protocol extensions we support in the current version. This is a very
      * hacky way to do protocol versioning, but it's what we're using for now to
@@ -32,7 +33,8 @@ public class OSF2FHandshake implements OSF2FMessage, RawMessage {
      * handshake message
      */
     public final static byte[] OS_FLAGS = new byte[] {
-            SUPPORTS_EXTENDED_FILE_LISTS | SUPPORTS_CHAT | SUPPORTS_DHT_LOCATION_HS | SUPPORTS_UDP,
+            SUPPORTS_EXTENDED_FILE_LISTS | SUPPORTS_CHAT | SUPPORTS_DHT_LOCATION_HS | SUPPORTS_UDP
+                    | SUPPORTS_CHUNKED_FILE_LISTS,
             0, 0, 0, 0, 0,
             0, 0 };
 
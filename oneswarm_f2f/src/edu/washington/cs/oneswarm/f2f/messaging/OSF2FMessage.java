@@ -77,9 +77,11 @@ public interface OSF2FMessage extends Message {
     public final byte FILE_LIST_TYPE_COMPLETE = 0;
     public final byte FILE_LIST_TYPE_BLOOM = 1;
     public final byte FILE_LIST_TYPE_PARTIAL = 2;
+    // one piece of a complete file list, see OSF2FTextSearchResp.createChunks
+    public final byte FILE_LIST_TYPE_COMPLETE_CHUNK = 3;
 
     public final byte[] FILE_LIST_TYPES = { FILE_LIST_TYPE_COMPLETE, FILE_LIST_TYPE_BLOOM,
-            FILE_LIST_TYPE_PARTIAL };
+            FILE_LIST_TYPE_PARTIAL, FILE_LIST_TYPE_COMPLETE_CHUNK };
 
     // 4 for the length field
     // 1 for the type field
@@ -93,6 +95,14 @@ public interface OSF2FMessage extends Message {
 
     public static final int METAINFO_CHUNK_SIZE = 4096;
 
+    // file lists above this are sent in chunks of it to friends that support
+    // it, so that channel data can be sent in between
+    public static final int FILE_LIST_CHUNK_SIZE = 8192;
+
+    // chunks are held until the list is complete, limit the total to what an
+    // unchunked list could be (the decoder's maximum message length)
+    public static final int MAX_FILE_LIST_LENGTH = 1024 * 1024;
+
     static final byte SS_MSG = DirectByteBuffer.SS_MSG;
 
     public abstract int getMessageSize();
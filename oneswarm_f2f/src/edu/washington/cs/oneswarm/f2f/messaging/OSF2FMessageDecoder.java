@@ -363,6 +363,13 @@ public class OSF2FMessageDecoder implements MessageStreamDecoder {
                         || message_length > MAX_MESSAGE_LENGTH) {
                     throw new IOException("Invalid message length given for OS message decode: "
                             + message_length);
+                } else if (message_length > OSF2FMessage.MAX_MESSAGE_SIZE) {
+                    /*
+                     * only unchunked file lists from old clients get this big,
+                     * don't tie up a pooled direct buffer of up to a MB while
+                     * one trickles in
+                     */
+                    payload_buffer = new DirectByteBuffer(ByteBuffer.allocate(message_length));
                 } else { // normal message
                     payload_buffer = DirectByteBufferPool.getBuffer(
                             DirectByteBuffer.AL_MSG_BT_PAYLOAD, message_length);
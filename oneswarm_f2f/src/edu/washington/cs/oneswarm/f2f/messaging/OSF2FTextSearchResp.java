@@ -1,5 +1,9 @@
 package edu.washington.cs.oneswarm.f2f.messaging;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
 import org.gudy.azureus2.core3.util.DirectByteBuffer;
 import org.gudy.azureus2.core3.util.DirectByteBufferPool;
 
@@ -9,6 +13,8 @@ import com.aelitis.azureus.core.peermanager.messaging.MessageException;
 public class OSF2FTextSearchResp extends OSF2FMessageBase implements OSF2FMessage, OSF2FSearchResp {
 
     private static final int BASE_LENGTH = 1 + 4 + 4;
+    // offset and total length in front of the data of a chunk
+    private static final int CHUNK_HEADER_LENGTH = 4 + 4;
     private String description = null;
     private byte version;
     private final byte[] filelist;
@@ -25,15 +31,57 @@ public class OSF2FTextSearchResp extends OSF2FMessageBase implements OSF2FMessag
         this.type = type;
         this.searchID = searchID;
         this.channelID = channelID;
+        messageLength = BASE_LENGTH + filelist.length;
         if (filelist.length == 0) {
-            messageLength = BASE_LENGTH + filelist.length;
             buffer = new DirectByteBuffer[1];
         } else {
-            messageLength = BASE_LENGTH;
             buffer = new DirectByteBuffer[2];
         }
     }
 
+    /**
+     * Splits a complete file list into FILE_LIST_TYPE_COMPLETE_CHUNK messages
+     * of at most chunkSize bytes of list each, to be sent in order.
+     */
+    public static List<OSF2FTextSearchResp> createChunks(byte version, int searchID,
+            byte[] filelist, int chunkSize) {
+        List<OSF2FTextSearchResp> chunks = new ArrayList<OSF2FTextSearchResp>(
+                (filelist.length + chunkSize - 1) / chunkSize);
+        for (int offset = 0; offset < filelist.length; offset += chunkSize) {
+            int length = Math.min(chunkSize, filelist.length - offset);
+            ByteBuffer chunk = ByteBuffer.allocate(CHUNK_HEADER_LENGTH + length);
+            chunk.putInt(offset);
+            chunk.putInt(filelist.length);
+            chunk.put(filelist, offset, length);
+            chunks.add(new OSF2FTextSearchResp(version, FILE_LIST_TYPE_COMPLETE_CHUNK, searchID,
+                    0, chunk.array()));
+        }
+        return chunks;
+    }
+
+    /**
+     * For FILE_LIST_TYPE_COMPLETE_CHUNK: where this chunk starts in the list.
+     */
+    public int getChunkOffset() {
+        return ByteBuffer.wrap(filelist).getInt(0);
+    }
+
+    /**
+     * For FILE_LIST_TYPE_COMPLETE_CHUNK: the length of the whole list.
+     */
+    public int getChunkTotalLength() {
+        return ByteBuffer.wrap(filelist).getInt(4);
+    }
+
+    /**
+     * For FILE_LIST_TYPE_COMPLETE_CHUNK: this chunk's part of the list, a
+     * view of the message payload.
+     */
+    public ByteBuffer getChunkData() {
+        return ByteBuffer.wrap(filelist, CHUNK_HEADER_LENGTH, filelist.length
+                - CHUNK_HEADER_LENGTH);
+    }
+
     public OSF2FTextSearchResp clone() {
         return new OSF2FTextSearchResp(version, type, searchID, channelID, filelist);
     }
@@ -57,15 +105,29 @@ public class OSF2FTextSearchResp extends OSF2FMessageBase implements OSF2FMessag
         }
         byte t = data.get(DirectByteBuffer.SS_MSG);
         if (t != FILE_LIST_TYPE_BLOOM && t != FILE_LIST_TYPE_COMPLETE
-                && t != FILE_LIST_TYPE_PARTIAL) {
+                && t != FILE_LIST_TYPE_PARTIAL && t != FILE_LIST_TYPE_COMPLETE_CHUNK) {
             throw new MessageException("[" + getID() + "] decode error: unknown type[" + type
                     + "] != " + FILE_LIST_TYPE_BLOOM + "||" + FILE_LIST_TYPE_COMPLETE + "||"
-                    + FILE_LIST_TYPE_PARTIAL);
+                    + FILE_LIST_TYPE_PARTIAL + "||" + FILE_LIST_TYPE_COMPLETE_CHUNK);
         }
         int sID = data.getInt(DirectByteBuffer.SS_MSG);
         int cID = data.getInt(DirectByteBuffer.SS_MSG);
         byte[] f = new byte[data.remaining(DirectByteBuffer.SS_MSG)];
         data.get(DirectByteBuffer.SS_MSG, f);
+        if (t == FILE_LIST_TYPE_COMPLETE_CHUNK) {
+            ByteBuffer header = ByteBuffer.wrap(f);
+            if (f.length < CHUNK_HEADER_LENGTH || header.getInt(0) < 0
+                    || (long) header.getInt(0) + f.length - CHUNK_HEADER_LENGTH > header
+                            .getInt(4)) {
+                throw new MessageException("[" + getID() + "] decode error: bad chunk, len="
+                        + f.length);
+            }
+            if (header.getInt(4) > MAX_FILE_LIST_LENGTH) {
+                throw new MessageException("[" + getID()
+                        + "] decode error: chunked file list too large, total="
+                        + header.getInt(4));
+            }
+        }
 
         data.returnToPool();
         return new OSF2FTextSearchResp(version, t, sID, cID, f);
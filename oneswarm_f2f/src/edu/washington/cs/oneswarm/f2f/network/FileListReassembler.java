@@ -0,0 +1,67 @@
+package edu.washington.cs.oneswarm.f2f.network;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import edu.washington.cs.oneswarm.f2f.messaging.OSF2FTextSearchResp;
+
+/**
+ * Collects the FILE_LIST_TYPE_COMPLETE_CHUNK messages of one file list. The
+ * chunks are kept as they arrived and read back through a single stream by the
+ * file list decoder, so a large list never needs a contiguous buffer.
+ */
+class FileListReassembler {
+
+    private final int searchId;
+    private final int totalLength;
+    private final List<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+    private int received = 0;
+
+    /**
+     * @param first
+     *            the chunk at offset 0
+     */
+    FileListReassembler(OSF2FTextSearchResp first) {
+        this.searchId = first.getSearchID();
+        this.totalLength = first.getChunkTotalLength();
+    }
+
+    /**
+     * Chunks are sent in order on one connection, anything else belongs to a
+     * list that was superseded.
+     * 
+     * @return false if the chunk doesn't continue this list
+     */
+    boolean add(OSF2FTextSearchResp chunk) {
+        if (chunk.getSearchID() != searchId || chunk.getChunkTotalLength() != totalLength
+                || chunk.getChunkOffset() != received) {
+            return false;
+        }
+        ByteBuffer data = chunk.getChunkData();
+        chunks.add(data);
+        received += data.remaining();
+        return true;
+    }
+
+    boolean isComplete() {
+        return received == totalLength;
+    }
+
+    int getPercentComplete() {
+        return totalLength == 0 ? 100 : (int) (100L * received / totalLength);
+    }
+
+    InputStream getInputStream() {
+        List<InputStream> streams = new ArrayList<InputStream>(chunks.size());
+        for (ByteBuffer chunk : chunks) {
+            streams.add(new ByteArrayInputStream(chunk.array(), chunk.arrayOffset()
+                    + chunk.position(), chunk.remaining()));
+        }
+        return new SequenceInputStream(Collections.enumeration(streams));
+    }
+}
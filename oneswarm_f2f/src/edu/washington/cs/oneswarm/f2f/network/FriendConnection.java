@@ -41,6 +41,9 @@ import com.aelitis.azureus.core.networkmanager.impl.tcp.ProtocolEndpointTCP;
 import com.aelitis.azureus.core.peermanager.messaging.Message;
 import com.aelitis.azureus.core.peermanager.messaging.MessageException;
 import com.aelitis.azureus.core.peermanager.messaging.bittorrent.BTKeepAlive;
+import com.aelitis.azureus.core.stats.AzureusCoreStats;
+import com.aelitis.azureus.core.stats.AzureusCoreStatsCounter;
+import com.aelitis.azureus.core.stats.AzureusCoreStatsRegistry;
 import com.sun.org.apache.xerces.internal.impl.dv.util.Base64;
 
 import edu.washington.cs.oneswarm.f2f.BigFatLock;
@@ -115,6 +118,13 @@ public class FriendConnection implements DatagramListener {
 
     private static final long RECENTLY_CLOSED_TIME = 90 * 1000;
 
+    // totals over all overlay forwards, the per forward averages go away with
+    // the forward
+    private static final AzureusCoreStatsCounter forwardedMessages = AzureusCoreStatsRegistry
+            .getCounter(AzureusCoreStats.ST_F2F_FORWARD_MESSAGE_COUNT);
+    private static final AzureusCoreStatsCounter forwardedBytes = AzureusCoreStatsRegistry
+            .getCounter(AzureusCoreStats.ST_F2F_FORWARD_BYTES);
+
     final double FORWARD_SEARCH_PROBABILITY = COConfigurationManager.getFloatParameter(
             "f2f_forward_search_probability", 0.50f);
 
@@ -188,6 +198,7 @@ public class FriendConnection implements DatagramListener {
 
     private IncomingQueueListener incomingListener;
     private OutgoingQueueListener outgoingQueueListener;
+    private final FileListChunkSender fileListChunkSender = new FileListChunkSender();
 
     private final ConcurrentHashMap<Integer, Long> recentlyClosedChannels = new ConcurrentHashMap<Integer, Long>();
 
@@ -307,6 +318,7 @@ public class FriendConnection implements DatagramListener {
         } else {
             Debug.out("tried to register incoming listener multiple times");
         }
+        connection.getOutgoingMessageQueue().registerQueueListener(fileListChunkSender);
 
         if (debugMessageLog != null) {
             if (outgoingQueueListener == null) {
@@ -527,6 +539,7 @@ public class FriendConnection implements DatagramListener {
         listener.disconnected(FriendConnection.this);
 
         fileListRequestHandler.close();
+        fileListChunkSender.clear();
         if (udpConnection != null) {
             udpConnection.close();
             udpConnection = null;
@@ -1027,6 +1040,14 @@ public class FriendConnection implements DatagramListener {
         return (remoteFlags[0] & OSF2FHandshake.SUPPORTS_UDP) == OSF2FHandshake.SUPPORTS_UDP;
     }
 
+    public boolean hasChunkedFileListsSupport() {
+        if (remoteFlags == null) {
+            return false;
+        }
+
+        return (remoteFlags[0] & OSF2FHandshake.SUPPORTS_CHUNKED_FILE_LISTS) == OSF2FHandshake.SUPPORTS_CHUNKED_FILE_LISTS;
+    }
+
     public int getImageMetaInfoQueueSize() {
         return metaInfoRequestHandler.imageRequests.size();
     }
@@ -1202,6 +1223,8 @@ public class FriendConnection implements DatagramListener {
             OSF2FTextSearchResp resp = (OSF2FTextSearchResp) message;
             if (resp.getFileListType() == OSF2FMessage.FILE_LIST_TYPE_COMPLETE) {
                 fileListRequestHandler.handleFileListResponse(resp);
+            } else if (resp.getFileListType() == OSF2FMessage.FILE_LIST_TYPE_COMPLETE_CHUNK) {
+                fileListRequestHandler.handleFileListChunk(resp);
             } else if (resp.getFileListType() == OSF2FMessage.FILE_LIST_TYPE_PARTIAL) {
                 listener.gotSearchResponse(this, resp);
             } else {
@@ -1471,6 +1494,21 @@ public class FriendConnection implements DatagramListener {
         logger.finer(getDescription() + "sending custom list to friend, bytes="
                 + bytesToSend.length + " took " + (System.currentTimeMillis() - t)
                 + "ms to generate");
+        if (bytesToSend.length > OSF2FMessage.FILE_LIST_CHUNK_SIZE
+                && hasChunkedFileListsSupport()) {
+            /*
+             * a large list in one message holds up everything queued behind
+             * it and makes the friend buffer all of it at once. Chunks go
+             * through the queue manager instead, in order, taking turns with
+             * channel data
+             */
+            List<OSF2FTextSearchResp> chunks = OSF2FTextSearchResp.createChunks(
+                    OSF2FMessage.CURRENT_VERSION, searchId, bytesToSend,
+                    OSF2FMessage.FILE_LIST_CHUNK_SIZE);
+            logger.finer(getDescription() + "sending file list in " + chunks.size() + " chunks");
+            fileListChunkSender.send(chunks);
+            return;
+        }
         int channelId = 0;
         OSF2FTextSearchResp msg = new OSF2FTextSearchResp(OSF2FMessage.CURRENT_VERSION,
                 OSF2FMessage.FILE_LIST_TYPE_COMPLETE, searchId, channelId, bytesToSend);
@@ -1517,7 +1555,7 @@ public class FriendConnection implements DatagramListener {
             logger.finer(getDescription() + "waiting for handshake to complete, queue size: "
                     + bufferedMessages.size());
         } else {
-            friendConnectionQueue.queuePacket(QueueBuckets.CONTROL, msg, skipQueue);
+            friendConnectionQueue.queuePacket(queueBuckets, msg, skipQueue);
         }
     }
 
@@ -1564,13 +1602,10 @@ public class FriendConnection implements DatagramListener {
         sendMessage(search, skipQueue);
     }
 
-    void sendTextSearchResp(OSF2FTextSearchResp message, boolean forwarded) {
-        if (forwarded) {
-            sendMessage(message, QueueBuckets.FORWARD, false);
-        } else {
-            sendMessage(message, QueueBuckets.TRANSPORT, false);
-        }
-
+    void sendTextSearchResp(OSF2FTextSearchResp message) {
+        // our own responses as well as forwarded ones go through the forward
+        // queue, not ahead of the channel data in the transport queue
+        sendMessage(message, QueueBuckets.FORWARD, false);
     }
 
     private String desc = null;
@@ -1782,6 +1817,9 @@ public class FriendConnection implements DatagramListener {
 
         private final byte type = OSF2FMessage.FILE_LIST_TYPE_COMPLETE;
 
+        // the chunked list being received, if any
+        private FileListReassembler incomingChunks = null;
+
         public FileListRequestHandler() {
         }
 
@@ -1806,22 +1844,60 @@ public class FriendConnection implements DatagramListener {
             try {
                 List<byte[]> newInfoHashes = filelistManager.receivedFriendFileList(remoteFriend,
                         type, fileList, FriendConnection.this.hasExtendedFileListsSupport());
-                // valid list
-                notifyListenerComplete(filelistManager.getFriendsList(remoteFriend));
+                fileListReceived(newInfoHashes);
+            } catch (IOException e) {
+                logger.warning(getDescription() + ": got decode error when "
+                        + "processing file list: " + this + ": " + e.getMessage());
+            }
+        }
 
-                // now, try so sync up all the thumbnails
+        public void handleFileListChunk(OSF2FTextSearchResp chunk) {
 
-                final List<byte[]> neededThumbnails = filelistManager.getMetaInfoManager()
-                        .getTorrentThumbnailNeeded(newInfoHashes);
+            if (!remoteFriend.isRequestFileList()) {
+                return;
+            }
 
-                sendNextImageRequest(neededThumbnails);
+            if (chunk.getChunkOffset() == 0) {
+                // a new list replaces any partly received one
+                incomingChunks = new FileListReassembler(chunk);
+            }
+            if (incomingChunks == null || !incomingChunks.add(chunk)) {
+                logger.fine(getDescription() + "dropping out of order file list chunk: "
+                        + chunk.getDescription());
+                return;
+            }
+            if (!incomingChunks.isComplete()) {
+                notifyListenersProgress(incomingChunks.getPercentComplete());
+                return;
+            }
+
+            FileListReassembler complete = incomingChunks;
+            incomingChunks = null;
+            notifyListenersProgress(100);
 
+            try {
+                List<byte[]> newInfoHashes = filelistManager.receivedFriendFileList(remoteFriend,
+                        type, complete.getInputStream(),
+                        FriendConnection.this.hasExtendedFileListsSupport());
+                fileListReceived(newInfoHashes);
             } catch (IOException e) {
                 logger.warning(getDescription() + ": got decode error when "
                         + "processing file list: " + this + ": " + e.getMessage());
             }
         }
 
+        private void fileListReceived(List<byte[]> newInfoHashes) {
+            // valid list
+            notifyListenerComplete(filelistManager.getFriendsList(remoteFriend));
+
+            // now, try so sync up all the thumbnails
+
+            final List<byte[]> neededThumbnails = filelistManager.getMetaInfoManager()
+                    .getTorrentThumbnailNeeded(newInfoHashes);
+
+            sendNextImageRequest(neededThumbnails);
+        }
+
         public void notifyListenerComplete(FileList fileList) {
             synchronized (listeners) {
                 if (fileList != null) {
@@ -2329,6 +2405,8 @@ public class FriendConnection implements DatagramListener {
             int numBytes = message.getMessageSize();
             bytesForwarded += numBytes;
             average.addValue(numBytes);
+            forwardedMessages.increment();
+            forwardedBytes.add(numBytes);
             /*
              * count it as sent after it actually gets sent
              */
@@ -2432,6 +2510,81 @@ public class FriendConnection implements DatagramListener {
 
     }
 
+    /**
+     * Feeds the chunks of a file list to the transport queue a couple at a
+     * time, queueing the next one as each is sent. Channel data queued behind
+     * the list only ever waits for the chunks in flight, not the whole list.
+     */
+    private class FileListChunkSender implements OutgoingMessageQueue.MessageQueueListener {
+        private static final int MAX_CHUNKS_IN_FLIGHT = 2;
+
+        private final LinkedList<OSF2FTextSearchResp> pending = new LinkedList<OSF2FTextSearchResp>();
+        private final Set<OSF2FTextSearchResp> inFlight = new HashSet<OSF2FTextSearchResp>();
+
+        /**
+         * Chunks of an older list that haven't been queued yet are dropped,
+         * the friend starts over when the new list's first chunk arrives.
+         */
+        synchronized void send(List<OSF2FTextSearchResp> chunks) {
+            pending.clear();
+            pending.addAll(chunks);
+            queueNext();
+        }
+
+        synchronized void clear() {
+            pending.clear();
+            inFlight.clear();
+        }
+
+        /*
+         * called with the monitor held so chunks reach the queue in order
+         */
+        private void queueNext() {
+            while (inFlight.size() < MAX_CHUNKS_IN_FLIGHT && pending.peek() != null) {
+                OSF2FTextSearchResp chunk = pending.remove();
+                inFlight.add(chunk);
+                sendMessage(chunk, QueueBuckets.TRANSPORT, false);
+            }
+        }
+
+        private synchronized void chunkDone(Message message) {
+            if (inFlight.remove(message)) {
+                queueNext();
+            }
+        }
+
+        @Override
+        public void dataBytesSent(int byte_count) {
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public boolean messageAdded(Message message) {
+            return true;
+        }
+
+        @Override
+        public void messageQueued(Message message) {
+        }
+
+        @Override
+        public void messageRemoved(Message message) {
+            chunkDone(message);
+        }
+
+        @Override
+        public void messageSent(Message message) {
+            chunkDone(message);
+        }
+
+        @Override
+        public void protocolBytesSent(int byte_count) {
+        }
+    }
+
     public static class OverlayRegistrationError extends Exception {
 
         private static final long serialVersionUID = 1L;
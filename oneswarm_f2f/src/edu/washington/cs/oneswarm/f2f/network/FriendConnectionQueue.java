@@ -32,6 +32,7 @@ import edu.washington.cs.oneswarm.f2f.messaging.OSF2FSearchResp;
 import edu.washington.cs.oneswarm.f2f.messaging.OSF2FTextSearch;
 import edu.washington.cs.oneswarm.f2f.network.OverlayTransport.WriteQueueWaiter;
 import edu.washington.cs.oneswarm.f2f.network.QueueManager.QueueBuckets;
+import edu.washington.cs.oneswarm.f2f.network.QueueManager.TrafficClass;
 import edu.washington.cs.oneswarm.f2f.servicesharing.OSF2FServiceDataMsg;
 
 class FriendConnectionQueue implements Comparable<FriendConnectionQueue> {
@@ -80,6 +81,20 @@ class FriendConnectionQueue implements Comparable<FriendConnectionQueue> {
     private volatile boolean registeredForTransportSelects = false;
 
     private final LinkedList<QueuedSearch> searchQueue = new LinkedList<QueuedSearch>();
+
+    /*
+     * local service sharing traffic, kept apart from the transport queue so it
+     * doesn't wait behind bulk transfers. It shares the transport byte count
+     * and waiters
+     */
+    private final LinkedList<OSF2FMessage> serviceQueue = new LinkedList<OSF2FMessage>();
+    private volatile boolean registeredForServiceSelects = false;
+
+    /*
+     * deficit round robin credit in each traffic class, only touched by the
+     * queue manager
+     */
+    private final int[] credit = new int[TrafficClass.values().length];
     // private final SpeedManager speedManager;
     private final GlobalManagerStats stats;
 
@@ -97,17 +112,33 @@ class FriendConnectionQueue implements Comparable<FriendConnectionQueue> {
     private OSF2FMessage lastMsgQueued;
 
     public FriendConnectionQueue(QueueManager queueManager, FriendConnection fc) {
-        // this.friendConnection = fc;
-        this.nc = fc.getNetworkConnection();
-        this.friend = fc.getRemoteFriend();
+        this(queueManager, fc.getNetworkConnection(), fc.getRemoteFriend(), fc.getStats());
+    }
+
+    FriendConnectionQueue(QueueManager queueManager, NetworkConnection nc, Friend friend,
+            GlobalManagerStats stats) {
+        this.nc = nc;
+        this.friend = friend;
         this.queueManager = queueManager;
         // this.speedManager = new SpeedManager(queueManager, false);
-        this.stats = fc.getStats();
+        this.stats = stats;
         getFriendScore(true);
         nc.getOutgoingMessageQueue().registerQueueListener(queueListener);
         logger.fine(getDescription() + "connection queue created");
     }
 
+    /**
+     * A queue not attached to a connection, for exercising the queue manager's
+     * scheduling. Subclasses override the methods that would use the
+     * connection.
+     */
+    FriendConnectionQueue(QueueManager queueManager, Friend friend) {
+        this.nc = null;
+        this.friend = friend;
+        this.queueManager = queueManager;
+        this.stats = null;
+    }
+
     /**
      * closes the queue, also returns any messages that are still in the queue
      * for the queuemanager to free in it's next checking run
@@ -129,6 +160,10 @@ class FriendConnectionQueue implements Comparable<FriendConnectionQueue> {
             while ((m = forwardQueue.poll()) != null) {
                 queuedMessages.add(m);
             }
+
+            while ((m = serviceQueue.poll()) != null) {
+                queuedMessages.add(m);
+            }
             QueuedSearch qs;
             while ((qs = searchQueue.poll()) != null) {
                 m = qs.getSearchMessage();
@@ -184,6 +219,8 @@ class FriendConnectionQueue implements Comparable<FriendConnectionQueue> {
                     + " num=" + transportQueue.size() + " bytes=" + transportQueueBytes + "\n");
             b.append("   search: reg=" + registeredForSearchSelects + " searchQueueLen="
                     + searchQueue.size() + "\n");
+            b.append("   service: reg=" + registeredForServiceSelects + " num="
+                    + serviceQueue.size() + "\n");
         } finally {
             lock.unlock();
         }
@@ -218,10 +255,38 @@ class FriendConnectionQueue implements Comparable<FriendConnectionQueue> {
             // better reward contribution
             friendScore = Math.max(friendScore, 0.2);
             friendScore = Math.min(friendScore, 5);
+            if (Double.isNaN(friendScore)) {
+                // nothing transferred either way yet
+                friendScore = 1;
+            }
         }
         return friendScore;
     }
 
+    int getCredit(TrafficClass trafficClass) {
+        return credit[trafficClass.ordinal()];
+    }
+
+    /**
+     * @return the credit after the change
+     */
+    int addCredit(TrafficClass trafficClass, int bytes) {
+        return credit[trafficClass.ordinal()] += bytes;
+    }
+
+    /**
+     * How much this friend may have waiting in its network connection: what it
+     * uploads in MAX_GLOBAL_QUEUE_LEN_MS at its measured rate, but at least one
+     * full message and at most its share of the global queue. A fast friend's
+     * connection is kept busy between refills without a slow friend's messages
+     * sitting in a long queue.
+     */
+    int getQueueBudget() {
+        long bytes = uploadAverage.getAverage() * QueueManager.MAX_GLOBAL_QUEUE_LEN_MS / 1000;
+        return (int) Math.max(MAX_FRIEND_QUEUE_LENGTH,
+                Math.min(bytes, QueueManager.MAX_FRIEND_QUEUE_BUDGET));
+    }
+
     /**
      * Used for ClientServiceConnection and ServerServiceConnection unit tests
      * @return last message passed into queuePacketForceQueue
@@ -265,6 +330,19 @@ class FriendConnectionQueue implements Comparable<FriendConnectionQueue> {
         return registeredForTransportSelects;
     }
 
+    boolean isRegisteredForSelects(TrafficClass trafficClass) {
+        switch (trafficClass) {
+        case TRANSPORT:
+            return registeredForTransportSelects;
+        case SERVICE:
+            return registeredForServiceSelects;
+        case FORWARD:
+            return registeredForForwardSelects;
+        default:
+            return registeredForSearchSelects;
+        }
+    }
+
     /*
      * this function must be called from a thread that has the lock
      */
@@ -284,7 +362,7 @@ class FriendConnectionQueue implements Comparable<FriendConnectionQueue> {
     }
 
     private boolean queueFull() {
-        return this.getTotalOutgoingQueueLengthBytes() > MAX_FRIEND_QUEUE_LENGTH;
+        return this.getTotalOutgoingQueueLengthBytes() > getQueueBudget();
     }
 
     public void queuePacketForceQueue(QueueBuckets bucket, OSF2FMessage msg) {
@@ -294,7 +372,18 @@ class FriendConnectionQueue implements Comparable<FriendConnectionQueue> {
         boolean triggerPacketSending = false;
         lock.lock();
         try {
-            if (bucket == QueueBuckets.TRANSPORT) {
+            if (bucket == QueueBuckets.TRANSPORT && msg instanceof OSF2FServiceDataMsg) {
+                if (logger.isLoggable(Level.FINEST)) {
+                    logger.finest(getDescription() + "queueing service: " + msg.getDescription());
+                }
+                lastMsgQueued = msg;
+                serviceQueue.add(msg);
+                transportQueueBytes += msg.getMessageSize();
+                if (!registeredForServiceSelects) {
+                    triggerPacketSending = true;
+                    registerForServiceSelects();
+                }
+            } else if (bucket == QueueBuckets.TRANSPORT) {
                 if (logger.isLoggable(Level.FINEST)) {
                     logger.finest(getDescription() + "queueing transport: " + msg.getDescription());
                 }
@@ -389,7 +478,7 @@ class FriendConnectionQueue implements Comparable<FriendConnectionQueue> {
             }
         }
         registeredForForwardSelects = true;
-        queueManager.registerForForwardSelects(FriendConnectionQueue.this);
+        queueManager.registerForSelects(TrafficClass.FORWARD, FriendConnectionQueue.this);
     }
 
     private void registerForSearchSelects() {
@@ -404,7 +493,7 @@ class FriendConnectionQueue implements Comparable<FriendConnectionQueue> {
             }
         }
         registeredForSearchSelects = true;
-        queueManager.registerForSearchSelects(FriendConnectionQueue.this);
+        queueManager.registerForSelects(TrafficClass.SEARCH, FriendConnectionQueue.this);
     }
 
     private void registerForTransportSelects() {
@@ -419,16 +508,56 @@ class FriendConnectionQueue implements Comparable<FriendConnectionQueue> {
             }
         }
         registeredForTransportSelects = true;
-        queueManager.registerForTransportSelects(FriendConnectionQueue.this);
+        queueManager.registerForSelects(TrafficClass.TRANSPORT, FriendConnectionQueue.this);
+    }
+
+    private void registerForServiceSelects() {
+        if (QueueManager.QUEUE_LOCK_DEBUG) {
+            if (!lock.isHeldByCurrentThread()) {
+                Debug.out("not holding queue manager lock!!!");
+            }
+        }
+        if (QueueManager.QUEUE_DEBUG_LOGGING) {
+            if (registeredForServiceSelects) {
+                Debug.out("tried to register for service selects, but we are already registered!!!");
+            }
+        }
+        registeredForServiceSelects = true;
+        queueManager.registerForSelects(TrafficClass.SERVICE, FriendConnectionQueue.this);
+    }
+
+    /**
+     * this function should only be called from the queue manager, it sends
+     * one packet of the class if it can
+     * 
+     * @return the bytes sent, 0 if nothing was
+     */
+    int sendQueuedPacket(TrafficClass trafficClass) {
+        switch (trafficClass) {
+        case TRANSPORT:
+        case SERVICE:
+            return sendQueuedTransportPacket(trafficClass);
+        case FORWARD:
+            return sendQueuedForwardPacket();
+        default:
+            return sendQueuedSearchPacket();
+        }
+    }
+
+    private static void recordQueueDelay(TrafficClass trafficClass, Message message) {
+        if (message instanceof OSF2FChannelMsg) {
+            trafficClass.queueDelay.record(System.currentTimeMillis()
+                    - ((OSF2FChannelMsg) message).getCreatedTime());
+        }
     }
 
     /**
      * this function should only be called from the queue manager, it will
-     * return true if more packets can be queued, false otherwise
+     * return the bytes sent, 0 if nothing was
      */
-    boolean sendQueuedForwardPacket() {
+    private int sendQueuedForwardPacket() {
         registeredForForwardSelects = false;
-        boolean packetSent = false;
+        int packetSent = 0;
 
         if (QueueManager.QUEUE_LOCK_DEBUG) {
             if (!lock.isHeldByCurrentThread()) {
@@ -463,10 +592,11 @@ class FriendConnectionQueue implements Comparable<FriendConnectionQueue> {
             OSF2FMessage forwardedMessage = forwardQueue.remove();
 
             packetListenerNotify(forwardedMessage);
+            recordQueueDelay(TrafficClass.FORWARD, forwardedMessage);
 
             nc.getOutgoingMessageQueue().addMessage(forwardedMessage, true);
-            packetSent = true;
             int numBytes = getMessageLen(forwardedMessage);
+            packetSent = numBytes;
             stats.protocolBytesSent(numBytes, nc.isLANLocal());
             forwardQueueBytes -= numBytes;
             if (forwardQueueBytes < 0) {
@@ -523,9 +653,9 @@ class FriendConnectionQueue implements Comparable<FriendConnectionQueue> {
 
     /**
      * this function should only be called from the queue manager, it will
-     * return true if more packets are available, false otherwise
+     * return the bytes sent, 0 if nothing was
      */
-    boolean sendQueuedSearchPacket() {
+    private int sendQueuedSearchPacket() {
         logger.finest(getDescription() + "sendQueuedSearchPacket()");
         registeredForSearchSelects = false;
         if (QueueManager.QUEUE_LOCK_DEBUG) {
@@ -533,7 +663,7 @@ class FriendConnectionQueue implements Comparable<FriendConnectionQueue> {
                 Debug.out("not holding queue manager lock!!!");
             }
         }
-        boolean packetSent = false;
+        int packetSent = 0;
 
         boolean stayRegistered = false;
 
@@ -558,9 +688,11 @@ class FriendConnectionQueue implements Comparable<FriendConnectionQueue> {
             if (logger.isLoggable(Level.FINEST)) {
                 logger.finest(getDescription() + "sending packet from search queue");
             }
-            Message search = searchQueue.remove().getSearchMessage();
+            QueuedSearch queued = searchQueue.remove();
+            TrafficClass.SEARCH.queueDelay.record(System.currentTimeMillis() - queued.timeStamp);
+            Message search = queued.getSearchMessage();
             nc.getOutgoingMessageQueue().addMessage(search, true);
-            packetSent = true;
+            packetSent = getMessageLen(search);
 
             if (searchQueue.peek() != null) {
                 stayRegistered = true;
@@ -586,13 +718,21 @@ class FriendConnectionQueue implements Comparable<FriendConnectionQueue> {
 
     /**
      * this function should only be called from the queue manager, it will
-     * return true if more packets are available, false otherwise
+     * return the bytes sent, 0 if nothing was. Sends from the transport or the
+     * service queue.
      * 
      * make sure to have the queue manager lock when calling this funtion
      */
-    boolean sendQueuedTransportPacket() {
-        boolean packetSent = false;
-        registeredForTransportSelects = false;
+    private int sendQueuedTransportPacket(TrafficClass trafficClass) {
+        int packetSent = 0;
+        LinkedList<OSF2FMessage> queue;
+        if (trafficClass == TrafficClass.SERVICE) {
+            queue = serviceQueue;
+            registeredForServiceSelects = false;
+        } else {
+            queue = transportQueue;
+            registeredForTransportSelects = false;
+        }
         if (QueueManager.QUEUE_LOCK_DEBUG) {
             if (!lock.isHeldByCurrentThread()) {
                 Debug.out("not holding queue manager lock!!!");
@@ -626,25 +766,27 @@ class FriendConnectionQueue implements Comparable<FriendConnectionQueue> {
             /*
              * check if we actually have anything to send
              */
-            if (transportQueue.peek() == null) {
+            if (queue.peek() == null) {
                 stayRegistered = false;
                 Debug.out(getDescription()
                         + "sendQueuedTransportPacket() called, but noting to send!");
             } else {
                 if (logger.isLoggable(Level.FINEST)) {
-                    logger.finest(getDescription() + "sending packet from transport queue");
+                    logger.finest(getDescription() + "sending packet from " + trafficClass
+                            + " queue");
                 }
-                OSF2FMessage msg = transportQueue.remove();
+                OSF2FMessage msg = queue.remove();
                 packetListenerNotify(msg);
+                recordQueueDelay(trafficClass, msg);
                 nc.getOutgoingMessageQueue().addMessage(msg, true);
-                packetSent = true;
+                packetSent = getMessageLen(msg);
                 transportQueueBytes -= msg.getMessageSize();
             }
             if (QueueManager.QUEUE_DEBUG_LOGGING && logger.isLoggable(Level.FINEST)) {
-                logger.finest(getDescription() + "transport queue size: " + transportQueue.size());
+                logger.finest(getDescription() + trafficClass + " queue size: " + queue.size());
             }
             // if the queue size
-            if (transportQueue.peek() != null) {
+            if (queue.peek() != null) {
                 stayRegistered = true;
             } else {
                 stayRegistered = false;
@@ -656,7 +798,11 @@ class FriendConnectionQueue implements Comparable<FriendConnectionQueue> {
              * register for more selects, but we don't need to trigger packet
              * sending, the queue manager will just continue in the while loop
              */
-            registerForTransportSelects();
+            if (trafficClass == TrafficClass.SERVICE) {
+                registerForServiceSelects();
+            } else {
+                registerForTransportSelects();
+            }
         }
 
         return packetSent;
@@ -670,7 +816,7 @@ class FriendConnectionQueue implements Comparable<FriendConnectionQueue> {
                 + nc.getOutgoingMessageQueue().getTotalSize() + "\tfwDelay="
                 + getForwardQueueDelay() + "\tfwBytes=" + f.format(getForwardQueueBytes())
                 + "\ttrBytes=" + f.format(transportQueueBytes) + "\ttrDelay" + transportQueueDelay
-                + "\tsLen=" + searchQueue.size();
+                + "\tsLen=" + searchQueue.size() + "\tsvLen=" + serviceQueue.size();
     }
 
     public static int getMessageLen(Message message) {
@@ -888,6 +1034,12 @@ class FriendConnectionQueue implements Comparable<FriendConnectionQueue> {
                 if (searchQueue.peek() != null && !registeredForSearchSelects) {
                     registerForSearchSelects();
                 }
+                /*
+                 * and for service traffic
+                 */
+                if (serviceQueue.peek() != null && !registeredForServiceSelects) {
+                    registerForServiceSelects();
+                }
             } finally {
                 lock.unlock();
             }
@@ -400,6 +400,15 @@ public abstract class OverlayEndpoint implements EndpointInterface {
         return totalWritten;
     }
 
+    protected long writeMessageToFriendConnection(DirectByteBuffer[] msgBuffers) {
+        OSF2FChannelDataMsg msg = new OSF2FChannelDataMsg(OSF2FMessage.CURRENT_VERSION, channelId,
+                msgBuffers);
+        long totalWritten = msg.getMessageSize() - OSF2FChannelDataMsg.BASE_LENGTH;
+        this.writeMessage(msg);
+        bytesOut += totalWritten;
+        return totalWritten;
+    }
+
     protected void writeMessage(OSF2FChannelDataMsg msg) {
         msg.setForward(false);
         msg.setByteInChannel(bytesOut);
@@ -0,0 +1,232 @@
+package edu.washington.cs.oneswarm.f2f.network;
+
+import java.nio.ByteBuffer;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import org.gudy.azureus2.core3.util.DirectByteBuffer;
+
+import com.aelitis.azureus.core.networkmanager.RawMessage;
+import com.aelitis.azureus.core.peermanager.messaging.Message;
+import com.aelitis.azureus.core.peermanager.messaging.MessageException;
+import com.aelitis.azureus.core.peermanager.messaging.MessageStreamEncoder;
+import com.aelitis.azureus.core.peermanager.messaging.bittorrent.BTMessageFactory;
+
+/**
+ * BitTorrent message encoder for overlay transports. Messages of at least
+ * MIN_REFERENCE_SIZE bytes are encoded as shared messages so that
+ * OverlayTransport can put slices of their buffers into overlay messages
+ * instead of copying them. A shared message's buffers go back to the pool
+ * once the outgoing queue is done with it and every overlay message holding a
+ * slice of it has been sent or dropped.
+ */
+class OverlayMessageEncoder implements MessageStreamEncoder {
+
+    /** smaller messages are cheaper to copy than to reference */
+    static final int MIN_REFERENCE_SIZE = 1024;
+
+    // raw message buffer -> the shared message it belongs to
+    private final Map<ByteBuffer, SharedRawMessage> shared = new IdentityHashMap<ByteBuffer, SharedRawMessage>();
+
+    @Override
+    public RawMessage[] encodeMessage(Message message) {
+        RawMessage raw = BTMessageFactory.createBTRawMessage(message);
+        // handshake and keep-alive messages are already raw
+        if (raw == null || raw == message) {
+            return new RawMessage[] { raw };
+        }
+
+        DirectByteBuffer[] data = raw.getRawData();
+        int size = 0;
+        for (int i = 0; i < data.length; i++) {
+            size += data[i].remaining(DirectByteBuffer.SS_NET);
+        }
+        if (size < MIN_REFERENCE_SIZE) {
+            return new RawMessage[] { raw };
+        }
+
+        SharedRawMessage s = new SharedRawMessage(raw);
+        synchronized (shared) {
+            for (int i = 0; i < data.length; i++) {
+                shared.put(data[i].getBuffer(DirectByteBuffer.SS_NET), s);
+            }
+        }
+        return new RawMessage[] { s };
+    }
+
+    /**
+     * Takes the next length bytes of source, which must be a buffer of a
+     * message encoded by this encoder, by reference and advances source past
+     * them.
+     *
+     * @return null if source isn't shared, the caller has to copy it then
+     */
+    DirectByteBuffer reference(ByteBuffer source, int length) {
+        SharedRawMessage owner;
+        synchronized (shared) {
+            owner = shared.get(source);
+        }
+        if (owner == null) {
+            return null;
+        }
+        return owner.reference(source, length);
+    }
+
+    int getSharedBufferCount() {
+        synchronized (shared) {
+            return shared.size();
+        }
+    }
+
+    private void unregister(DirectByteBuffer[] data) {
+        synchronized (shared) {
+            for (int i = 0; i < data.length; i++) {
+                shared.remove(data[i].getBuffer(DirectByteBuffer.SS_NET));
+            }
+        }
+    }
+
+    private class SharedRawMessage implements RawMessage {
+        private final RawMessage raw;
+
+        // the outgoing queue holds the first reference
+        private int refs = 1;
+        private boolean queueDone = false;
+
+        SharedRawMessage(RawMessage raw) {
+            this.raw = raw;
+        }
+
+        synchronized DirectByteBuffer reference(ByteBuffer source, int length) {
+            if (refs == 0) {
+                return null;
+            }
+            refs++;
+
+            ByteBuffer slice = source.slice();
+            slice.limit(length);
+            source.position(source.position() + length);
+            return new Slice(slice);
+        }
+
+        private void release() {
+            boolean free;
+            synchronized (this) {
+                free = --refs == 0;
+            }
+            if (free) {
+                raw.destroy();
+            }
+        }
+
+        @Override
+        public void destroy() {
+            synchronized (this) {
+                if (queueDone) {
+                    return;
+                }
+                queueDone = true;
+            }
+            unregister(raw.getRawData());
+            release();
+        }
+
+        @Override
+        public DirectByteBuffer[] getRawData() {
+            return raw.getRawData();
+        }
+
+        @Override
+        public int getPriority() {
+            return raw.getPriority();
+        }
+
+        @Override
+        public boolean isNoDelay() {
+            return raw.isNoDelay();
+        }
+
+        @Override
+        public void setNoDelay() {
+            raw.setNoDelay();
+        }
+
+        @Override
+        public Message[] messagesToRemove() {
+            return raw.messagesToRemove();
+        }
+
+        @Override
+        public Message getBaseMessage() {
+            return raw.getBaseMessage();
+        }
+
+        @Override
+        public String getID() {
+            return raw.getID();
+        }
+
+        @Override
+        public byte[] getIDBytes() {
+            return raw.getIDBytes();
+        }
+
+        @Override
+        public String getFeatureID() {
+            return raw.getFeatureID();
+        }
+
+        @Override
+        public int getFeatureSubID() {
+            return raw.getFeatureSubID();
+        }
+
+        @Override
+        public int getType() {
+            return raw.getType();
+        }
+
+        @Override
+        public byte getVersion() {
+            return raw.getVersion();
+        }
+
+        @Override
+        public String getDescription() {
+            return raw.getDescription();
+        }
+
+        @Override
+        public DirectByteBuffer[] getData() {
+            return raw.getData();
+        }
+
+        @Override
+        public Message deserialize(DirectByteBuffer data, byte version) throws MessageException {
+            return raw.deserialize(data, version);
+        }
+
+        /**
+         * A slice of one of the message's buffers, returning it to the pool
+         * drops the reference it holds.
+         */
+        private class Slice extends DirectByteBuffer {
+            private boolean released = false;
+
+            Slice(ByteBuffer slice) {
+                super(slice);
+            }
+
+            @Override
+            public void returnToPool() {
+                synchronized (this) {
+                    if (released) {
+                        return;
+                    }
+                    released = true;
+                }
+                release();
+            }
+        }
+    }
+}
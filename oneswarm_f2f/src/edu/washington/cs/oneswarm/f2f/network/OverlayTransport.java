@@ -5,13 +5,19 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
 import org.bouncycastle.util.encoders.Base64;
+import org.gudy.azureus2.core3.config.COConfigurationManager;
 import org.gudy.azureus2.core3.download.DownloadManager;
 import org.gudy.azureus2.core3.peer.PEPeerManager;
 import org.gudy.azureus2.core3.peer.PEPeerSource;
@@ -23,6 +29,7 @@ import org.gudy.azureus2.core3.util.Debug;
 import org.gudy.azureus2.core3.util.DirectByteBuffer;
 import org.gudy.azureus2.core3.util.DirectByteBufferPool;
 import org.gudy.azureus2.core3.util.HashWrapper;
+import org.gudy.azureus2.core3.util.SystemTime;
 
 import com.aelitis.azureus.core.impl.AzureusCoreImpl;
 import com.aelitis.azureus.core.networkmanager.ConnectionEndpoint;
@@ -33,7 +40,10 @@ import com.aelitis.azureus.core.networkmanager.Transport;
 import com.aelitis.azureus.core.networkmanager.TransportEndpoint;
 import com.aelitis.azureus.core.networkmanager.impl.NetworkConnectionImpl;
 import com.aelitis.azureus.core.peermanager.messaging.bittorrent.BTMessageDecoder;
+import com.aelitis.azureus.core.peermanager.messaging.MessageStreamEncoder;
 import com.aelitis.azureus.core.peermanager.messaging.bittorrent.BTMessageEncoder;
+import com.aelitis.azureus.core.stats.AzureusCoreStats;
+import com.aelitis.azureus.core.stats.AzureusCoreStatsProvider;
 
 import edu.washington.cs.oneswarm.f2f.OSF2FAzSwtUi;
 import edu.washington.cs.oneswarm.f2f.messaging.OSF2FChannelDataMsg;
@@ -60,12 +70,55 @@ public class OverlayTransport extends OverlayEndpoint implements Transport {
 
     private final static Logger logger = Logger.getLogger(OverlayTransport.class.getName());
 
+    private static final AtomicLong readBytes = new AtomicLong();
+    private static final AtomicLong readTime = new AtomicLong();
+    private static final AtomicLong writeBytesCopied = new AtomicLong();
+    private static final AtomicLong writeBytesReferenced = new AtomicLong();
+    private static final AtomicLong writeTime = new AtomicLong();
+
+    static {
+        Set<String> types = new HashSet<String>();
+        types.add(AzureusCoreStats.ST_F2F_OVERLAY_READ_BYTES);
+        types.add(AzureusCoreStats.ST_F2F_OVERLAY_READ_TIME);
+        types.add(AzureusCoreStats.ST_F2F_OVERLAY_WRITE_BYTES_COPIED);
+        types.add(AzureusCoreStats.ST_F2F_OVERLAY_WRITE_BYTES_REFERENCED);
+        types.add(AzureusCoreStats.ST_F2F_OVERLAY_WRITE_TIME);
+
+        AzureusCoreStats.registerProvider(types, new AzureusCoreStatsProvider() {
+            @Override
+            public void updateStats(Set types, Map values) {
+                if (types.contains(AzureusCoreStats.ST_F2F_OVERLAY_READ_BYTES)) {
+                    values.put(AzureusCoreStats.ST_F2F_OVERLAY_READ_BYTES,
+                            new Long(readBytes.get()));
+                }
+                if (types.contains(AzureusCoreStats.ST_F2F_OVERLAY_READ_TIME)) {
+                    values.put(AzureusCoreStats.ST_F2F_OVERLAY_READ_TIME, new Long(readTime.get()));
+                }
+                if (types.contains(AzureusCoreStats.ST_F2F_OVERLAY_WRITE_BYTES_COPIED)) {
+                    values.put(AzureusCoreStats.ST_F2F_OVERLAY_WRITE_BYTES_COPIED, new Long(
+                            writeBytesCopied.get()));
+                }
+                if (types.contains(AzureusCoreStats.ST_F2F_OVERLAY_WRITE_BYTES_REFERENCED)) {
+                    values.put(AzureusCoreStats.ST_F2F_OVERLAY_WRITE_BYTES_REFERENCED, new Long(
+                            writeBytesReferenced.get()));
+                }
+                if (types.contains(AzureusCoreStats.ST_F2F_OVERLAY_WRITE_TIME)) {
+                    values.put(AzureusCoreStats.ST_F2F_OVERLAY_WRITE_TIME,
+                            new Long(writeTime.get()));
+                }
+            }
+        });
+    }
+
     // all operations on this object must be in a synchronized block
     private final LinkedList<OSF2FChannelDataMsg> bufferedMessages;
 
     private final byte[] channelPeerId;
     private ByteBuffer data_already_read = null;
 
+    // set when outgoing messages are encoded for sending by reference
+    private volatile OverlayMessageEncoder encoder;
+
     private final byte[] infoHash;
 
     private int posInHandshake = 0;
@@ -126,8 +179,15 @@ public class OverlayTransport extends OverlayEndpoint implements Transport {
 
         PEPeerControl control = (PEPeerControl) manager;
         // set it up the same way as an incoming connection
-        final NetworkConnection overlayConn = new NetworkConnectionImpl(this,
-                new BTMessageEncoder(), new BTMessageDecoder());
+        MessageStreamEncoder messageEncoder;
+        if (COConfigurationManager.getBooleanParameter("f2f_overlay_send_by_reference")) {
+            encoder = new OverlayMessageEncoder();
+            messageEncoder = encoder;
+        } else {
+            messageEncoder = new BTMessageEncoder();
+        }
+        final NetworkConnection overlayConn = new NetworkConnectionImpl(this, messageEncoder,
+                new BTMessageDecoder());
         PEPeerTransport pt = PEPeerTransportFactory.createTransport(control, PEPeerSource.PS_OSF2F,
                 overlayConn, null);
 
@@ -194,6 +254,8 @@ public class OverlayTransport extends OverlayEndpoint implements Transport {
     @Override
     protected void handleDelayedOverlayMessage(final OSF2FChannelDataMsg msg) {
         synchronized (bufferedMessages) {
+            // messages arrive in order, so this sees each handshake byte once
+            rewriteIncomingHandshake(msg.getPayload());
             bufferedMessages.add(msg);
 
             if (readWaiter.size() > 0) {
@@ -239,10 +301,14 @@ public class OverlayTransport extends OverlayEndpoint implements Transport {
         // for the incoming handshake before we
         // send our own see PEPeerTransportProtocol.java:~390
         if (!remoteHandshakeRecieved && !outgoing) {
-            if (waiter != null) {
-                writeWaiter.add(waiter);
+            synchronized (writeWaiter) {
+                if (!remoteHandshakeRecieved) {
+                    if (waiter != null) {
+                        writeWaiter.add(waiter);
+                    }
+                    return false;
+                }
             }
-            return false;
         }
         if (closed) {
             return false;
@@ -268,47 +334,62 @@ public class OverlayTransport extends OverlayEndpoint implements Transport {
         return true;
     }
 
-    private byte modifyIncomingHandShake(byte b) {
-        if (posInHandshake == -1) {
-            return b;
+    /**
+     * Rewrites the part of the remote handshake that is in this payload: the
+     * reserved bits are cleared, the end of the peer id is replaced with our
+     * own for the channel and the info hash is checked once all of it has
+     * arrived.
+     */
+    private void rewriteIncomingHandshake(DirectByteBuffer payload) {
+        if (posInHandshake == -1 || payload == null) {
+            return;
+        }
+        ByteBuffer b = payload.getBuffer(DirectByteBuffer.SS_MSG);
+        int start = posInHandshake;
+        int end = Math.min(HANDSHAKE_END_POS, start + b.remaining());
+        // index in b of the first handshake byte
+        int base = b.position() - start;
+
+        for (int i = Math.max(start, HANDSHAKE_RESERVED_BITS_START_POS); i < Math.min(end,
+                HANDSHAKE_RESERVED_BITS_END_POS); i++) {
+            b.put(base + i, (byte) 0);
+        }
+        for (int i = Math.max(start, HANDSHAKE_INFO_HASH_START_POS); i < Math.min(end,
+                HANDSHAKE_INFO_HASH_END_POS); i++) {
+            remoteHandshakeInfoHashBytes[i - HANDSHAKE_INFO_HASH_START_POS] = b.get(base + i);
+        }
+        for (int i = Math.max(start, HANDSHAKE_PEER_ID_START_MOD_POS); i < end; i++) {
+            b.put(base + i, channelPeerId[i - HANDSHAKE_PEER_ID_START_MOD_POS]);
+        }
+
+        if (start <= HANDSHAKE_INFO_HASH_END_POS && end > HANDSHAKE_INFO_HASH_END_POS) {
+            checkRemoteHandshakeInfoHash();
+        }
+
+        posInHandshake = end >= HANDSHAKE_END_POS ? -1 : end;
+    }
+
+    private void checkRemoteHandshakeInfoHash() {
+        // check if the info hash sent is what we
+        // expected, see PEPeerTransportProtocol:~390
+        if (!Arrays.equals(infoHash, remoteHandshakeInfoHashBytes)) {
+            logger.warning(getDescription()
+                    + ": WARNING in "
+                    + friendConnection
+                    + " :: remote host different infohash "
+                    + "than what we expected ,expected:\n "
+                    + new String(Base64.encode(infoHash) + " got\n"
+                            + new String(Base64.encode(remoteHandshakeInfoHashBytes))));
         } else {
-            if (posInHandshake >= HANDSHAKE_PEER_ID_START_MOD_POS
-                    && posInHandshake < HANDSHAKE_END_POS) {
-                b = channelPeerId[posInHandshake - HANDSHAKE_PEER_ID_START_MOD_POS];
-
-            } else if (posInHandshake >= HANDSHAKE_RESERVED_BITS_START_POS
-                    && posInHandshake < HANDSHAKE_RESERVED_BITS_END_POS) {
-                b = (byte) 0;
-            } else if (posInHandshake >= HANDSHAKE_INFO_HASH_START_POS
-                    && posInHandshake < HANDSHAKE_INFO_HASH_END_POS) {
-                remoteHandshakeInfoHashBytes[posInHandshake - HANDSHAKE_INFO_HASH_START_POS] = b;
-            } else if (posInHandshake == HANDSHAKE_INFO_HASH_END_POS) {
-                // check if the info hash sent is what we
-                // expected, see PEPeerTransportProtocol:~390
-                if (!Arrays.equals(infoHash, remoteHandshakeInfoHashBytes)) {
-                    logger.warning(getDescription()
-                            + ": WARNING in "
-                            + friendConnection
-                            + " :: remote host different infohash "
-                            + "than what we expected ,expected:\n "
-                            + new String(Base64.encode(infoHash) + " got\n"
-                                    + new String(Base64.encode(remoteHandshakeInfoHashBytes))));
-                } else {
-                    logger.finer(getDescription() + ": remote handshake matches, notifying waiter");
-                    remoteHandshakeRecieved = true;
-                    for (EventWaiter waiter : writeWaiter) {
-                        waiter.eventOccurred();
-                    }
-                    writeWaiter.clear();
+            logger.finer(getDescription() + ": remote handshake matches, notifying waiter");
+            synchronized (writeWaiter) {
+                remoteHandshakeRecieved = true;
+                for (EventWaiter waiter : writeWaiter) {
+                    waiter.eventOccurred();
                 }
-            }
-            posInHandshake++;
-            if (posInHandshake > HANDSHAKE_END_POS) {
-
-                posInHandshake = -1;
+                writeWaiter.clear();
             }
         }
-        return b;
     }
 
     private int putInBuffer(ByteBuffer sources[], int array_offset, int length,
@@ -342,7 +423,8 @@ public class OverlayTransport extends OverlayEndpoint implements Transport {
     }
 
     /**
-     * This function is used when reading from the network
+     * This function is used when reading from the network, the handshake has
+     * already been rewritten when the message arrived
      * 
      * @param source
      * @param targets
@@ -352,56 +434,35 @@ public class OverlayTransport extends OverlayEndpoint implements Transport {
      */
 
     private int putInBuffers(ByteBuffer source, ByteBuffer targets[], int array_offset, int length) {
-        /*
-         * check if we are past the handshake, in that case do the efficient
-         * copy
-         */
         int copied = 0;
 
-        if (posInHandshake == -1) {
-            for (int i = array_offset; i < array_offset + length; i++) {
-                ByteBuffer t = targets[i];
-                if (source.remaining() == 0) {
-                    break;
-                }
-                if (t.remaining() == 0) {
-                    continue;
-                }
-
-                int numBytesToCopy = Math.min(t.remaining(), source.remaining());
-                if (t.remaining() < source.remaining()) {
-                    // we need to set the limit to avoid buffer overflow
-                    int oldLimit = source.limit();
-                    source.limit(source.position() + t.remaining());
-                    t.put(source);
-                    source.limit(oldLimit);
-                } else {
-                    t.put(source);
-                }
-                copied += numBytesToCopy;
+        for (int i = array_offset; i < array_offset + length; i++) {
+            ByteBuffer t = targets[i];
+            if (source.remaining() == 0) {
+                break;
+            }
+            if (t.remaining() == 0) {
+                continue;
             }
-        } else {
-            for (int i = array_offset; i < array_offset + length; i++) {
-                // int start = copied;
-                while (targets[i].hasRemaining() && source.hasRemaining()) {
-                    byte b = source.get();
-                    // in the beginning we need to mod the handshake some
-                    b = modifyIncomingHandShake(b);
-                    targets[i].put(b);
-                    // System.out.print(b + ",");
-                    copied++;
 
-                }
-                // System.out.println("copied " + (copied - start)
-                // + " bytes into buffer " + i + " offset=" + array_offset
-                // + " len=" + length);
+            int numBytesToCopy = Math.min(t.remaining(), source.remaining());
+            if (t.remaining() < source.remaining()) {
+                // we need to set the limit to avoid buffer overflow
+                int oldLimit = source.limit();
+                source.limit(source.position() + t.remaining());
+                t.put(source);
+                source.limit(oldLimit);
+            } else {
+                t.put(source);
             }
+            copied += numBytesToCopy;
         }
         return copied;
     }
 
     @Override
     public long read(ByteBuffer[] buffers, int array_offset, int length) throws IOException {
+        long start = SystemTime.getHighPrecisionCounter();
 
         int totalRead = 0;
         int totalSpace = 0;
@@ -442,6 +503,8 @@ public class OverlayTransport extends OverlayEndpoint implements Transport {
         }
 
         downloadRateAverage.addValue(totalRead);
+        readBytes.addAndGet(totalRead);
+        readTime.addAndGet(SystemTime.getHighPrecisionCounter() - start);
         return totalRead;
     }
 
@@ -508,17 +571,81 @@ public class OverlayTransport extends OverlayEndpoint implements Transport {
         logger.finest(getDescription() + "got write request for: " + totalToWrite);
         // only write one packet at the time
         if (isReadyForWrite(null)) {
-            DirectByteBuffer msgBuffer = DirectByteBufferPool.getBuffer(DirectByteBuffer.AL_MSG,
-                    Math.min(totalToWrite, OSF2FMessage.MAX_PAYLOAD_SIZE));
-            this.putInBuffer(buffers, array_offset, length, msgBuffer);
-            msgBuffer.flip(DirectByteBuffer.SS_MSG);
-            totalWritten += writeMessageToFriendConnection(msgBuffer);
+            long start = SystemTime.getHighPrecisionCounter();
+            int size = Math.min(totalToWrite, OSF2FMessage.MAX_PAYLOAD_SIZE);
+            if (encoder != null) {
+                totalWritten += writeByReference(buffers, array_offset, length, size);
+            } else {
+                DirectByteBuffer msgBuffer = DirectByteBufferPool.getBuffer(
+                        DirectByteBuffer.AL_MSG, size);
+                int copied = this.putInBuffer(buffers, array_offset, length, msgBuffer);
+                msgBuffer.flip(DirectByteBuffer.SS_MSG);
+                writeBytesCopied.addAndGet(copied);
+                totalWritten += writeMessageToFriendConnection(msgBuffer);
+            }
+            writeTime.addAndGet(SystemTime.getHighPrecisionCounter() - start);
         }
         logger.finest("wrote " + totalWritten + " to overlay channel " + channelId);
         uploadRateAverage.addValue(totalWritten);
         return totalWritten;
     }
 
+    /**
+     * Writes up to size bytes as one overlay message. Large regions of
+     * messages encoded by our encoder go into it as slices of the original
+     * buffers, everything else is copied.
+     */
+    private long writeByReference(ByteBuffer[] buffers, int array_offset, int length, int size) {
+        List<DirectByteBuffer> parts = new ArrayList<DirectByteBuffer>(4);
+        DirectByteBuffer copy = null;
+        int room = size;
+
+        for (int i = array_offset; i < array_offset + length && room > 0; i++) {
+            ByteBuffer source = buffers[i];
+            int n = Math.min(room, source.remaining());
+            if (n == 0) {
+                continue;
+            }
+
+            DirectByteBuffer ref = null;
+            if (n >= OverlayMessageEncoder.MIN_REFERENCE_SIZE) {
+                ref = encoder.reference(source, n);
+            }
+
+            if (ref != null) {
+                if (copy != null) {
+                    copy.flip(DirectByteBuffer.SS_MSG);
+                    parts.add(copy);
+                    copy = null;
+                }
+                parts.add(ref);
+                writeBytesReferenced.addAndGet(n);
+            } else {
+                if (copy == null) {
+                    copy = DirectByteBufferPool.getBuffer(DirectByteBuffer.AL_MSG, room);
+                }
+                int oldLimit = source.limit();
+                source.limit(source.position() + n);
+                copy.put(DirectByteBuffer.SS_MSG, source);
+                source.limit(oldLimit);
+                writeBytesCopied.addAndGet(n);
+            }
+            room -= n;
+        }
+
+        if (copy != null) {
+            copy.flip(DirectByteBuffer.SS_MSG);
+            parts.add(copy);
+        }
+        if (parts.size() == 0) {
+            return 0;
+        }
+        if (parts.size() == 1) {
+            return writeMessageToFriendConnection(parts.get(0));
+        }
+        return writeMessageToFriendConnection(parts.toArray(new DirectByteBuffer[parts.size()]));
+    }
+
     /**
      * Checks if a download allows both OSF2F network, and osf2f search peers
      * 
@@ -8,15 +8,22 @@ import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Random;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import org.gudy.azureus2.core3.config.COConfigurationManager;
+import org.gudy.azureus2.core3.config.ParameterListener;
 import org.gudy.azureus2.core3.util.Debug;
 
+import com.aelitis.azureus.core.stats.AzureusCoreStats;
+import com.aelitis.azureus.core.stats.AzureusCoreStatsCounter;
+import com.aelitis.azureus.core.stats.AzureusCoreStatsGauge;
+import com.aelitis.azureus.core.stats.AzureusCoreStatsHistogram;
+import com.aelitis.azureus.core.stats.AzureusCoreStatsRegistry;
+
 import edu.washington.cs.oneswarm.f2f.BigFatLock;
 import edu.washington.cs.oneswarm.f2f.messaging.OSF2FMessage;
 import edu.washington.cs.oneswarm.ui.gwt.BackendErrorLog;
@@ -63,18 +70,29 @@ public class QueueManager {
 
     private final LinkedList<FriendConnectionQueue> searches = new LinkedList<FriendConnectionQueue>();
 
+    private final LinkedList<FriendConnectionQueue> services = new LinkedList<FriendConnectionQueue>();
+
     private int totalQueueDiffFixed = 0;
 
     private final LinkedList<FriendConnectionQueue> transports = new LinkedList<FriendConnectionQueue>();
 
-    private final Random random = new Random();
+    /*
+     * Packets are picked by deficit round robin, first among the traffic
+     * classes and then among the friends ready to send in the chosen class.
+     * Whoever has credit left sends, and is charged the bytes it sent. When it
+     * is out of credit it gets another quantum (QUANTUM_BYTES times its weight)
+     * and goes to the back. Credit goes negative when a message is bigger than
+     * what was left, the debt is paid from the next quantum.
+     */
+    private static final int QUANTUM_BYTES = 4 * 1024;
+
+    private static final TrafficClass[] TRAFFIC_CLASSES = TrafficClass.values();
 
-    private final static double PROB_SEARCH_TRAFFIC = 0.1;
-    private final static double PROB_FORWARD_TRAFFIC = 0.2;
+    private final int[] classCredit = new int[TRAFFIC_CLASSES.length];
+    private final int[] classWeight = new int[TRAFFIC_CLASSES.length];
+    private int currentClass = 0;
 
-    private final static double LIMIT_TRANSPORT_TRAFFIC = 1.0 - PROB_FORWARD_TRAFFIC
-            - PROB_SEARCH_TRAFFIC;
-    private final static double LIMIT_FORWARD_TRAFFIC = 1.0 - PROB_SEARCH_TRAFFIC;
+    private volatile boolean weightByFriendScore = false;
 
     /**
      * The maximum fraction of the global queue length
@@ -82,7 +100,23 @@ public class QueueManager {
      */
     private static final double MAX_QUEUE_FRACTION_PER_FRIEND = 0.4;
 
+    static final int MAX_FRIEND_QUEUE_BUDGET = (int) (MAX_QUEUE_FRACTION_PER_FRIEND
+            * MAX_GLOBAL_QUEUE_LEN_BYTES);
+
     public QueueManager() {
+        this(true);
+    }
+
+    /**
+     * @param global
+     *            false for queue managers other than the process's own (tests,
+     *            simulated nodes): the global queue length isn't corrected
+     *            periodically, as their friend queues aren't registered with
+     *            registerConnectionForQueueHandling(), the class weights are
+     *            read once instead of followed and the queue stats gauges are
+     *            left alone
+     */
+    QueueManager(boolean global) {
         this.globalSpeedManager = new SpeedManager(this, true);
 
         if (QUEUE_DEBUG_LOGGING) {
@@ -101,8 +135,56 @@ public class QueueManager {
          * couple bytes each time a friend connects/disconnects which causes the
          * global queue length to drift over time
          */
+        if (!global) {
+            readWeights();
+            return;
+        }
+
         Timer t = new Timer("QueueLengthChecker", true);
         t.schedule(new QueueChecker(), 0, 60 * 1000);
+
+        COConfigurationManager.addAndFireParameterListeners(new String[] {
+                "f2f_queue_weight_transport", "f2f_queue_weight_service",
+                "f2f_queue_weight_forward", "f2f_queue_weight_search",
+                "f2f_queue_weight_by_friend_score" }, new ParameterListener() {
+            public void parameterChanged(String parameterName) {
+                readWeights();
+            }
+        });
+
+        /*
+         * the gauges are process wide so only the global queue manager
+         * registers them, unlocked reads, these are only sampled for graphs
+         */
+        AzureusCoreStatsRegistry.registerGauge(AzureusCoreStats.ST_F2F_QUEUE_BYTES,
+                new AzureusCoreStatsGauge() {
+                    public long getValue() {
+                        return globalQueueLengthBytes;
+                    }
+                });
+        for (final TrafficClass trafficClass : TRAFFIC_CLASSES) {
+            AzureusCoreStatsRegistry.registerGauge(trafficClass.readyStat,
+                    new AzureusCoreStatsGauge() {
+                        public long getValue() {
+                            return getReadyQueues(trafficClass).size();
+                        }
+                    });
+        }
+    }
+
+    private void readWeights() {
+        lock.lock();
+        try {
+            for (TrafficClass trafficClass : TRAFFIC_CLASSES) {
+                // a zero weight would never earn the credit to send
+                classWeight[trafficClass.ordinal()] = Math.max(1,
+                        COConfigurationManager.getIntParameter(trafficClass.weightParameter));
+            }
+        } finally {
+            lock.unlock();
+        }
+        weightByFriendScore = COConfigurationManager
+                .getBooleanParameter("f2f_queue_weight_by_friend_score");
     }
 
     private boolean canQueuePacket() {
@@ -155,7 +237,8 @@ public class QueueManager {
                 + globalSpeedManager.getCurrentUploadSpeed() + " total_drift="
                 + totalQueueDiffFixed + " last_min_drift=" + lastQueueDiff + " mem_freed="
                 + memFreed + "\nready to send: forwards=" + forwards.size() + " transports="
-                + transports.size() + " searches=" + searches.size());
+                + transports.size() + " searches=" + searches.size() + " services="
+                + services.size());
 
         // If we can't queue, include extra information which may be helpful
         // when debugging.
@@ -234,13 +317,17 @@ public class QueueManager {
         return m;
     }
 
-    void registerForForwardSelects(FriendConnectionQueue friendConnectionManager) {
+    void registerForSelects(TrafficClass trafficClass,
+            FriendConnectionQueue friendConnectionManager) {
         if (logger.isLoggable(Level.FINEST)) {
-            logger.finest(friendConnectionManager + " registering for forward selects");
+            logger.finest(friendConnectionManager + " registering for " + trafficClass
+                    + " selects");
         }
+        LinkedList<FriendConnectionQueue> queues = getReadyQueues(trafficClass);
         if (QUEUE_DEBUG_LOGGING) {
-            if (forwards.contains(friendConnectionManager)) {
-                Debug.out("tried to register forward, but forward is already there!!!!");
+            if (queues.contains(friendConnectionManager)) {
+                Debug.out("tried to register for " + trafficClass
+                        + " selects, but already registered!!!!");
             }
         }
         if (QueueManager.QUEUE_LOCK_DEBUG) {
@@ -248,42 +335,20 @@ public class QueueManager {
                 Debug.out("not holding queue manager lock!!!");
             }
         }
-        forwards.offer(friendConnectionManager);
+        queues.offer(friendConnectionManager);
     }
 
-    void registerForSearchSelects(FriendConnectionQueue friendConnectionManager) {
-        if (logger.isLoggable(Level.FINEST)) {
-            logger.finest(friendConnectionManager + " registering for search selects");
-        }
-        if (QUEUE_DEBUG_LOGGING) {
-            if (searches.contains(friendConnectionManager)) {
-                Debug.out("tried to register for search selects, but already registered!!!!");
-            }
-        }
-        if (QueueManager.QUEUE_LOCK_DEBUG) {
-            if (!lock.isHeldByCurrentThread()) {
-                Debug.out("not holding queue manager lock!!!");
-            }
+    private LinkedList<FriendConnectionQueue> getReadyQueues(TrafficClass trafficClass) {
+        switch (trafficClass) {
+        case TRANSPORT:
+            return transports;
+        case SERVICE:
+            return services;
+        case FORWARD:
+            return forwards;
+        default:
+            return searches;
         }
-        searches.offer(friendConnectionManager);
-    }
-
-    void registerForTransportSelects(FriendConnectionQueue friendConnectionManager) {
-        if (logger.isLoggable(Level.FINEST)) {
-            logger.finest(friendConnectionManager + " registering for transport selects");
-        }
-        if (QUEUE_DEBUG_LOGGING) {
-            if (transports.contains(friendConnectionManager)) {
-                Debug.out("tried to register transport, but transport is already there!!!!");
-            }
-        }
-        if (QueueManager.QUEUE_LOCK_DEBUG) {
-            if (!lock.isHeldByCurrentThread()) {
-                Debug.out("not holding queue manager lock!!!");
-            }
-        }
-        transports.offer(friendConnectionManager);
-
     }
 
     /*
@@ -302,46 +367,28 @@ public class QueueManager {
         LinkedList<FriendConnectionQueue> toNotify = new LinkedList<FriendConnectionQueue>();
         lock.lock();
         try {
-            while (canQueuePacket()
-                    && (isFriendQueueAdmissible(transports.peek())
-                            || isFriendQueueAdmissible(forwards.peek()) || isFriendQueueAdmissible(searches
-                            .peek()))) {
-                double rand = random.nextDouble();
+            TrafficClass trafficClass;
+            while (canQueuePacket() && (trafficClass = selectTrafficClass()) != null) {
                 lastPacketSending = System.currentTimeMillis();
                 logger.finest("packet sending triggered");
 
-                // ok, there is room to queue a packet
-                if (isFriendQueueAdmissible(transports.peek()) && rand < LIMIT_TRANSPORT_TRAFFIC) {
-                    // lets use round robin for now, remove the first and put it
-                    // last
-                    FriendConnectionQueue luckyFriendQueue = transports.remove();
-                    // tell it to send a packet
-                    boolean packetSent = luckyFriendQueue.sendQueuedTransportPacket();
-                    // if it has more, it will register itself for additional
-                    // selects
-                    if (packetSent) {
-                        packetsSent++;
-                        toNotify.add(luckyFriendQueue);
-                    }
-                } else if (isFriendQueueAdmissible(forwards.peek()) && rand < LIMIT_FORWARD_TRAFFIC) {
-                    FriendConnectionQueue luckyFriendQueue = forwards.remove();
-                    // tell it to send a packet
-                    boolean packetSent = luckyFriendQueue.sendQueuedForwardPacket();
-                    // if it has more, it will register itself for additional
-                    // selects
-                    if (packetSent) {
-                        packetsSent++;
-                        toNotify.add(luckyFriendQueue);
-                    }
-                } else if (isFriendQueueAdmissible(searches.peek())) {
-                    FriendConnectionQueue luckyFriendQueue = searches.remove();
-                    // tell it to send a packet
-                    boolean packetSent = luckyFriendQueue.sendQueuedSearchPacket();
-                    // if it has more, it will register itself for additional
-                    // selects
-                    if (packetSent) {
-                        packetsSent++;
-                        toNotify.add(luckyFriendQueue);
+                // selectTrafficClass() left the friend to send from at the head
+                LinkedList<FriendConnectionQueue> queues = getReadyQueues(trafficClass);
+                FriendConnectionQueue luckyFriendQueue = queues.remove();
+                // tell it to send a packet
+                int bytesSent = luckyFriendQueue.sendQueuedPacket(trafficClass);
+                // if it has more, it will register itself for additional
+                // selects
+                if (bytesSent > 0) {
+                    packetsSent++;
+                    trafficClass.sent.increment();
+                    toNotify.add(luckyFriendQueue);
+
+                    classCredit[trafficClass.ordinal()] -= bytesSent;
+                    if (luckyFriendQueue.addCredit(trafficClass, -bytesSent) > 0
+                            && queues.peekLast() == luckyFriendQueue) {
+                        // it re-registered at the back but its turn isn't over
+                        queues.addFirst(queues.removeLast());
                     }
                 }
                 if (packetsSent > 0) {
@@ -366,6 +413,62 @@ public class QueueManager {
 
     }
 
+    /**
+     * Picks the class to send from next, or null if no class has a friend
+     * allowed to send. Only classes with something to send get credit, so an
+     * idle class's share goes to the others.
+     */
+    private TrafficClass selectTrafficClass() {
+        int idle = 0;
+        while (idle < TRAFFIC_CLASSES.length) {
+            TrafficClass trafficClass = TRAFFIC_CLASSES[currentClass];
+            int c = trafficClass.ordinal();
+            if (selectFriendQueue(trafficClass) == null) {
+                currentClass = (currentClass + 1) % TRAFFIC_CLASSES.length;
+                idle++;
+            } else if (classCredit[c] > 0) {
+                return trafficClass;
+            } else {
+                classCredit[c] += classWeight[c] * QUANTUM_BYTES;
+                currentClass = (currentClass + 1) % TRAFFIC_CLASSES.length;
+                idle = 0;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Moves the friend that should send the next packet of the class to the
+     * head of the class's ready list and returns it, or returns null if every
+     * ready friend is over its share of the global queue.
+     */
+    private FriendConnectionQueue selectFriendQueue(TrafficClass trafficClass) {
+        LinkedList<FriendConnectionQueue> queues = getReadyQueues(trafficClass);
+        int skipped = 0;
+        while (skipped < queues.size()) {
+            FriendConnectionQueue friendQueue = queues.peek();
+            if (!isFriendQueueAdmissible(friendQueue)) {
+                // don't let it hold up the friends behind it
+                queues.add(queues.remove());
+                skipped++;
+            } else if (friendQueue.getCredit(trafficClass) > 0) {
+                return friendQueue;
+            } else {
+                friendQueue.addCredit(trafficClass, getQuantum(friendQueue));
+                queues.add(queues.remove());
+                skipped = 0;
+            }
+        }
+        return null;
+    }
+
+    private int getQuantum(FriendConnectionQueue friendQueue) {
+        if (!weightByFriendScore) {
+            return QUANTUM_BYTES;
+        }
+        return Math.max(1, (int) (QUANTUM_BYTES * friendQueue.getFriendScore(false)));
+    }
+
     /**
      * Returns true iff our queueing policy permits sending from a given queue.
      * 
@@ -391,7 +494,7 @@ public class QueueManager {
                     + friendQueue.toString());
         }
 
-        if (totalQueuedBytes > MAX_QUEUE_FRACTION_PER_FRIEND * MAX_GLOBAL_QUEUE_LEN_BYTES) {
+        if (totalQueuedBytes > MAX_FRIEND_QUEUE_BUDGET) {
             return false;
         }
 
@@ -402,6 +505,46 @@ public class QueueManager {
         CONTROL, FORWARD, TRANSPORT;
     }
 
+    /**
+     * What the queue manager shares the upload between. TRANSPORT is our own
+     * transfers and SERVICE the local end of service sharing connections, both
+     * queued in the TRANSPORT bucket. FORWARD is everything relayed for others
+     * and SEARCH the queued searches.
+     */
+    public static enum TrafficClass {
+        TRANSPORT("f2f_queue_weight_transport", AzureusCoreStats.ST_F2F_QUEUE_READY_TRANSPORT,
+                AzureusCoreStats.ST_F2F_QUEUE_SENT_TRANSPORT,
+                AzureusCoreStats.ST_F2F_QUEUE_DELAY_TRANSPORT_MS),
+
+        SERVICE("f2f_queue_weight_service", AzureusCoreStats.ST_F2F_QUEUE_READY_SERVICE,
+                AzureusCoreStats.ST_F2F_QUEUE_SENT_SERVICE,
+                AzureusCoreStats.ST_F2F_QUEUE_DELAY_SERVICE_MS),
+
+        FORWARD("f2f_queue_weight_forward", AzureusCoreStats.ST_F2F_QUEUE_READY_FORWARD,
+                AzureusCoreStats.ST_F2F_QUEUE_SENT_FORWARD,
+                AzureusCoreStats.ST_F2F_QUEUE_DELAY_FORWARD_MS),
+
+        SEARCH("f2f_queue_weight_search", AzureusCoreStats.ST_F2F_QUEUE_READY_SEARCH,
+                AzureusCoreStats.ST_F2F_QUEUE_SENT_SEARCH,
+                AzureusCoreStats.ST_F2F_QUEUE_DELAY_SEARCH_MS);
+
+        final String weightParameter;
+        final String readyStat;
+        final AzureusCoreStatsCounter sent;
+        /**
+         * Time from a message being created until it is handed to the
+         * connection, where known
+         */
+        final AzureusCoreStatsHistogram queueDelay;
+
+        TrafficClass(String weightParameter, String readyStat, String sentStat, String delayStat) {
+            this.weightParameter = weightParameter;
+            this.readyStat = readyStat;
+            this.sent = AzureusCoreStatsRegistry.getCounter(sentStat);
+            this.queueDelay = AzureusCoreStatsRegistry.getHistogram(delayStat);
+        }
+    }
+
     /**
      * 
      * The per-friend connection queues are authoritative, and the global queue
@@ -429,6 +572,7 @@ public class QueueManager {
                     int totalQueueLen = 0;
                     for (FriendConnectionQueue q : queueManagers.values()) {
                         totalQueueLen += q.getTotalOutgoingQueueLengthBytes();
+                        q.getFriendScore(true);
                     }
                     lastQueueDiff = globalQueueLengthBytes - totalQueueLen;
                     totalQueueDiffFixed += Math.abs(lastQueueDiff);
@@ -462,48 +606,18 @@ public class QueueManager {
                 if (System.currentTimeMillis() - lastPacketSent > 10 * 1000) {
                     lock.lock();
                     try {
-                        /*
-                         * transports
-                         */
-
-                        for (FriendConnectionQueue q : queueManagers.values()) {
-                            boolean reg = q.isRegisteredForForwardSelects();
-                            boolean contains = transports.contains(q);
-                            if (reg != contains) {
-                                Debug.out("transport registration inconsistency (fixed): reg="
-                                        + reg + " contains=" + contains);
-                                if (reg && !contains) {
-                                    transports.add(q);
-                                }
-                            }
-                        }
-                        /*
-                         * forwards
-                         */
-
-                        for (FriendConnectionQueue q : queueManagers.values()) {
-                            boolean reg = q.isRegisteredForForwardSelects();
-                            boolean contains = forwards.contains(q);
-                            if (reg != contains) {
-                                Debug.out("forward registration inconsistency (fixed): reg=" + reg
-                                        + " contains=" + contains);
-                                if (reg && !contains) {
-                                    forwards.add(q);
-                                }
-                            }
-                        }
-                        /*
-                         * searches
-                         */
-
-                        for (FriendConnectionQueue q : queueManagers.values()) {
-                            boolean reg = q.isRegisteredForForwardSelects();
-                            boolean contains = searches.contains(q);
-                            if (reg != contains) {
-                                Debug.out("search registration inconsistency (fixed): reg=" + reg
-                                        + " contains=" + contains);
-                                if (reg && !contains) {
-                                    searches.add(q);
+                        for (TrafficClass trafficClass : TRAFFIC_CLASSES) {
+                            LinkedList<FriendConnectionQueue> queues = getReadyQueues(trafficClass);
+                            for (FriendConnectionQueue q : queueManagers.values()) {
+                                boolean reg = q.isRegisteredForSelects(trafficClass);
+                                boolean contains = queues.contains(q);
+                                if (reg != contains) {
+                                    Debug.out(trafficClass
+                                            + " registration inconsistency (fixed): reg=" + reg
+                                            + " contains=" + contains);
+                                    if (reg && !contains) {
+                                        queues.add(q);
+                                    }
                                 }
                             }
                         }
@@ -35,6 +35,10 @@ import org.gudy.azureus2.core3.util.HashWrapper;
 import org.oneswarm.util.ReflectionUtils;
 
 import com.aelitis.azureus.core.impl.AzureusCoreImpl;
+import com.aelitis.azureus.core.stats.AzureusCoreStats;
+import com.aelitis.azureus.core.stats.AzureusCoreStatsCounter;
+import com.aelitis.azureus.core.stats.AzureusCoreStatsHistogram;
+import com.aelitis.azureus.core.stats.AzureusCoreStatsRegistry;
 
 import edu.uw.cse.netlab.utils.BloomFilter;
 import edu.washington.cs.oneswarm.f2f.BigFatLock;
@@ -74,6 +78,14 @@ public class SearchManager {
     // be dropped
     public static final long MAX_SEARCH_AGE = 60 * 1000;
     public static final int MAX_SEARCH_QUEUE_LENGTH = 100;
+
+    private static final AzureusCoreStatsCounter searchForwardCount = AzureusCoreStatsRegistry
+            .getCounter(AzureusCoreStats.ST_F2F_SEARCH_FORWARDED_COUNT);
+    private static final AzureusCoreStatsCounter searchBlockedCount = AzureusCoreStatsRegistry
+            .getCounter(AzureusCoreStats.ST_F2F_SEARCH_BLOCKED_COUNT);
+    // time from sending one of our own searches to its first response
+    private static final AzureusCoreStatsHistogram searchResponseTimes = AzureusCoreStatsRegistry
+            .getHistogram(AzureusCoreStats.ST_F2F_SEARCH_RESPONSE_MS);
     // private static final int MAX_SEARCH_RESP_BEFORE_CANCEL =
     // COConfigurationManager.getIntParameter("f2f_search_max_paths");
 
@@ -361,11 +373,13 @@ public class SearchManager {
             int valueID = search.getValueID();
             if (recentSearches.contains(searchID, valueID)) {
                 bloomSearchesBlockedCurr++;
+                searchBlockedCount.increment();
                 logger.finest("not forwarding search, in recent filter. id: " + searchID);
                 return;
             }
             bloomSearchesSentCurr++;
             forwardedSearchNum++;
+            searchForwardCount.increment();
             if (logger.isLoggable(Level.FINEST)) {
                 logger.finest("forwarding search " + search.getDescription() + " id: " + searchID);
             }
@@ -880,6 +894,9 @@ public class SearchManager {
             logger.finest("got response to search: " + sentSearch.getSearch().getDescription());
             OSF2FSearch search = sentSearch.getSearch();
             // update response stats
+            if (sentSearch.getResponseNum() == 0) {
+                searchResponseTimes.record(sentSearch.getAge());
+            }
             sentSearch.gotResponse();
             /*
              * check if we got enough search responses to cancel this search
@@ -1004,7 +1021,7 @@ public class SearchManager {
                 if (msg instanceof OSF2FHashSearchResp) {
                     searcher.sendChannelSetup((OSF2FHashSearchResp) msg.clone(), true);
                 } else if (msg instanceof OSF2FTextSearchResp) {
-                    searcher.sendTextSearchResp((OSF2FTextSearchResp) msg.clone(), true);
+                    searcher.sendTextSearchResp((OSF2FTextSearchResp) msg.clone());
                 } else {
                     Debug.out("got unknown message: " + msg.getDescription());
                 }
@@ -1074,7 +1091,7 @@ public class SearchManager {
                                      * were sleeping
                                      */
                                     if (!isSearchCanceled(msg.getSearchID())) {
-                                        source.sendTextSearchResp(resp, false);
+                                        source.sendTextSearchResp(resp);
                                     }
                                 }
                             }));
@@ -91,7 +91,7 @@ public class DebugDialog extends OneSwarmDialogBox {
                 new Button("id3"), new Button("bind_audio"), new Button("autotag_music"),
                 new Button("Remote Access"), new Button("refresh_community_servers"),
                 new Button("ffmpeg"), new Button("searches"), new Button("locks"),
-                new Button("queue lengths"), new Button("rpc profiling"),
+                new Button("queue lengths"), new Button("rpc profiling"), new Button("metrics"),
                 new Button("backendtask"), new Button("error_dlog"), new Button("threads"),
                 new Button("reload_logging"), new Button("reshare_with_all_friends"),
                 new Button("republish_location") };
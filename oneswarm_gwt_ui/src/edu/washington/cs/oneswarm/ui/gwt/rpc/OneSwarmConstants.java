@@ -21,6 +21,11 @@ public interface OneSwarmConstants {
 
     public static final String ERROR_REPORTING_SERVER = "127.0.0.1";
 
+    /**
+     * Prometheus style text export of the core stats, see MetricsHandler.
+     */
+    public final static String METRICS_PATH = "/metrics";
+
     public final static String FRIEND_INVITE_CODE_PREFIX = "code=";
     public final static String FRIEND_INVITE_NICK_PREFIX = "nick=";
     public final static String FRIEND_INVITE_PREFIX = "invite:";
@@ -229,6 +229,12 @@ public interface OneSwarmUIService extends RemoteService {
 
     public String getDebugMessageLog(String session, String friendPublicKey);
 
+    /**
+     * @return the core stats whose names match the regular expression
+     *         pattern (all if empty) as a JSON object of name to value
+     */
+    public String getMetrics(String session, String pattern) throws OneSwarmException;
+
     public String[] getBase64HashesForOneSwarmHashes(String session, String[] inOneSwarmHashes);
 
     public String[] getBase64HashesForBase32s(String session, String[] inBase32s)
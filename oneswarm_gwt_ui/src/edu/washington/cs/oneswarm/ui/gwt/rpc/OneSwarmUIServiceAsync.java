@@ -264,6 +264,8 @@ public interface OneSwarmUIServiceAsync {
     public void getDebugMessageLog(String session, String friendPublicKey,
             AsyncCallback<String> callback);
 
+    public void getMetrics(String session, String pattern, AsyncCallback<String> callback);
+
     public void getBase64HashesForOneSwarmHashes(String session, String[] inOneSwarmHashes,
             AsyncCallback<String[]> callback);
 
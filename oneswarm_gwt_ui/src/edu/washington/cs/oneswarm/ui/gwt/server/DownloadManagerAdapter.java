@@ -27,6 +27,7 @@ import org.gudy.azureus2.core3.peer.PEPeer;
 import org.gudy.azureus2.core3.peer.PEPeerManager;
 import org.gudy.azureus2.core3.peer.PEPiece;
 import org.gudy.azureus2.core3.torrent.TOTorrent;
+import org.gudy.azureus2.core3.torrent.TOTorrentPieceHashes;
 import org.gudy.azureus2.core3.torrent.TOTorrentAnnounceURLGroup;
 import org.gudy.azureus2.core3.torrent.TOTorrentException;
 import org.gudy.azureus2.core3.torrent.TOTorrentFile;
@@ -533,6 +534,13 @@ public class DownloadManagerAdapter implements DownloadManager {
         public void setPieces(byte[][] pieces) throws TOTorrentException {
         }
 
+        public TOTorrentPieceHashes getPieceHashes() throws TOTorrentException {
+            return null;
+        }
+
+        public void setPieceHashes(TOTorrentPieceHashes hashes) throws TOTorrentException {
+        }
+
         public void setPrivate(boolean _private) throws TOTorrentException {
         }
 
@@ -36,6 +36,7 @@ import java.util.Set;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.LogManager;
 import java.util.logging.Logger;
+import java.util.regex.PatternSyntaxException;
 
 import javax.servlet.http.HttpServletRequest;
 
@@ -78,6 +79,10 @@ import com.aelitis.azureus.core.dht.db.DHTDB;
 import com.aelitis.azureus.core.dht.db.DHTDBValue;
 import com.aelitis.azureus.core.impl.AzureusCoreImpl;
 import com.aelitis.azureus.core.instancemanager.AZInstance;
+import com.aelitis.azureus.core.stats.AzureusCoreStats;
+import com.aelitis.azureus.core.stats.AzureusCoreStatsExporter;
+import com.aelitis.azureus.core.stats.AzureusCoreStatsHistogram;
+import com.aelitis.azureus.core.stats.AzureusCoreStatsRegistry;
 import com.aelitis.azureus.plugins.dht.DHTPlugin;
 import com.aelitis.azureus.plugins.dht.DHTPluginContact;
 import com.aelitis.azureus.plugins.dht.DHTPluginOperationListener;
@@ -177,6 +182,10 @@ public class OneSwarmUIServiceImpl extends RemoteServiceServlet implements OneSw
 
     private final boolean LOG_REQUEST_TIMES = false;
 
+    // all calls, unlike the per method profiling below this is always on
+    private static final AzureusCoreStatsHistogram rpcTimes = AzureusCoreStatsRegistry
+            .getHistogram(AzureusCoreStats.ST_UI_RPC_TIME_US);
+
     static class RpcProfiling implements Comparable<RpcProfiling> {
         long totalTime;
         long totalCalls;
@@ -247,7 +256,12 @@ public class OneSwarmUIServiceImpl extends RemoteServiceServlet implements OneSw
     @Override
     public String processCall(String payload) throws SerializationException {
         if (!LOG_REQUEST_TIMES) {
-            return super.processCall(payload);
+            long start = System.nanoTime();
+            try {
+                return super.processCall(payload);
+            } finally {
+                rpcTimes.record((System.nanoTime() - start) / 1000);
+            }
         } else {
             try {
                 long startTime = System.currentTimeMillis();
@@ -3059,6 +3073,9 @@ public class OneSwarmUIServiceImpl extends RemoteServiceServlet implements OneSw
             return coreInterface.getF2FInterface().getLockDebug();
         } else if (which.equals("queue lengths")) {
             return coreInterface.getF2FInterface().getForwardQueueLengthDebug();
+        } else if (which.equals("metrics")) {
+            return AzureusCoreStatsExporter.getPrometheusText(AzureusCoreStatsExporter
+                    .getPatterns(null));
         } else if (which.equals("rpc profiling")) {
             ArrayList<RpcProfiling> entries = new ArrayList<RpcProfiling>();
             synchronized (rpcProfilingMap) {
@@ -3564,6 +3581,19 @@ public class OneSwarmUIServiceImpl extends RemoteServiceServlet implements OneSw
         }
     }
 
+    @Override
+    public String getMetrics(String session, String pattern) throws OneSwarmException {
+        if (!this.passedSessionIDCheck(session)) {
+            throw new RuntimeException("bad cookie");
+        }
+
+        try {
+            return AzureusCoreStatsExporter.getJSON(AzureusCoreStatsExporter.getPatterns(pattern));
+        } catch (PatternSyntaxException e) {
+            throw new OneSwarmException(e.getMessage());
+        }
+    }
+
     @Override
     public String getDebugMessageLog(String session, String friendPublicKey) {
         if (!this.passedSessionIDCheck(session)) {
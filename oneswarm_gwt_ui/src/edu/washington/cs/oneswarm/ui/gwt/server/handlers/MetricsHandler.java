@@ -0,0 +1,48 @@
+package edu.washington.cs.oneswarm.ui.gwt.server.handlers;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.regex.PatternSyntaxException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.mortbay.jetty.Request;
+import org.mortbay.jetty.handler.AbstractHandler;
+
+import com.aelitis.azureus.core.stats.AzureusCoreStatsExporter;
+
+/**
+ * Serves the core stats in the Prometheus text format so they can be scraped
+ * and graphed without enabling debug logging. An optional 'match' parameter
+ * limits the output to stats matching that regular expression, for example
+ * /metrics?match=f2f.*
+ */
+class MetricsHandler extends AbstractHandler {
+
+    public void handle(String target, HttpServletRequest request, HttpServletResponse response,
+            int dispatch) throws IOException, ServletException {
+
+        String text;
+        try {
+            text = AzureusCoreStatsExporter.getPrometheusText(AzureusCoreStatsExporter
+                    .getPatterns(request.getParameter("match")));
+        } catch (PatternSyntaxException e) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+            ((Request) request).setHandled(true);
+            return;
+        }
+
+        byte[] bytes = text.getBytes("UTF-8");
+        response.setContentType(AzureusCoreStatsExporter.PROMETHEUS_CONTENT_TYPE);
+        response.setContentLength(bytes.length);
+        response.setHeader("Cache-Control", "no-cache");
+        response.setStatus(HttpServletResponse.SC_OK);
+
+        OutputStream out = response.getOutputStream();
+        out.write(bytes);
+        out.close();
+        ((Request) request).setHandled(true);
+    }
+}
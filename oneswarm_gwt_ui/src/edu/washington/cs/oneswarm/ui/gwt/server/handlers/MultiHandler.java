@@ -34,6 +34,7 @@ public class MultiHandler extends ServletHandler {
     private final FileHandler fileHandler;
     private final BrowseHandler browseHandler;
     private final CheckHandler checkHandler;
+    private final MetricsHandler metricsHandler;
     // private StatsHandler statsHandler = null;
 
     // private final VideoConvertionHandler videoHandler;
@@ -55,6 +56,7 @@ public class MultiHandler extends ServletHandler {
         this.fileHandler = new FileHandler();
         this.checkHandler = new CheckHandler();
         this.browseHandler = new BrowseHandler();
+        this.metricsHandler = new MetricsHandler();
 
         /**
          * Only respond to stats requests if experiment mode is enabled (then
@@ -130,6 +132,12 @@ public class MultiHandler extends ServletHandler {
                 || target.startsWith(OneSwarmConstants.DOWNLOAD_SHARE_PATH)) {
             logger.fine("browse handler: " + target);
             browseHandler.handle(target, request, response, dispatch);
+        } else if (target.equals(OneSwarmConstants.METRICS_PATH)) {
+            // no cookie needed, scrapers don't keep them. The security check
+            // above still limits this to localhost or authenticated remote
+            // access
+            logger.finer("metrics handler: " + target);
+            metricsHandler.handle(target, request, response, dispatch);
             // } else if( target.startsWith(OneSwarmConstants.STATS_PATH) &&
             // statsHandler != null ) {
             // logger.fine("stats handler: " + target);